@@ -0,0 +1,145 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.benchmark;
+
+import ch.ethz.globis.tinspin.TestStats;
+import ch.ethz.globis.tinspin.data.AbstractTest;
+import org.tinspin.index.test.util.TestInstances.IDX;
+import org.tinspin.index.test.util.TestInstances.TST;
+
+import java.util.Random;
+
+/**
+ * Generates reproducible data sets and query workloads for the JMH benchmarks.
+ * The data is created with the same generators as used by the {@code TestRunner},
+ * e.g. {@code TestPointCube} or {@code TestBoxCluster}.
+ */
+class BenchmarkData {
+
+	static final long SEED = 0;
+	/** Number of pre-generated queries per benchmark, queries are used round-robin. */
+	static final int N_QUERIES = 1000;
+
+	private final AbstractTest test;
+	private final Random R;
+	private final int dims;
+	private final int n;
+	private final double[] data;
+
+	BenchmarkData(TST tst, IDX idx, int n, int dims) {
+		// The cluster generators require a cluster type, 5.0 selects Gaussian clusters
+		double param1 = tst == TST.CLUSTER_P || tst == TST.CLUSTER_R ? 5.0 : 1.0;
+		TestStats ts = new TestStats(tst, idx, n, dims, param1);
+		ts.setSeed(SEED);
+		this.R = new Random(SEED);
+		this.dims = dims;
+		this.n = n;
+		this.test = tst.createInstance(R, ts);
+		this.data = test.generate();
+	}
+
+	int dims() {
+		return dims;
+	}
+
+	int size() {
+		return n;
+	}
+
+	/**
+	 * @return All points as separate arrays.
+	 */
+	double[][] points() {
+		double[][] points = new double[n][];
+		for (int i = 0; i < n; i++) {
+			points[i] = new double[dims];
+			System.arraycopy(data, i * dims, points[i], 0, dims);
+		}
+		return points;
+	}
+
+	/**
+	 * @return All boxes as min/max arrays, i.e. boxes[2*i] is the min and boxes[2*i+1]
+	 * is the max of the i'th box.
+	 */
+	double[][] boxes() {
+		double[][] boxes = new double[2 * n][];
+		for (int i = 0; i < 2 * n; i++) {
+			boxes[i] = new double[dims];
+			System.arraycopy(data, i * dims, boxes[i], 0, dims);
+		}
+		return boxes;
+	}
+
+	/**
+	 * Create window queries with the default result size of the test runner.
+	 * @param min output: lower left corners
+	 * @param max output: upper right corners
+	 */
+	void windowQueries(double[][] min, double[][] max) {
+		resetR(0);
+		test.generateWindowQueries(min, max);
+	}
+
+	/**
+	 * @param nQueries number of query points
+	 * @return Random points inside the data space. The random generator uses a different
+	 * seed than the data generator, otherwise query points would coincide with data points.
+	 */
+	double[][] randomPoints(int nQueries) {
+		resetR(12345);
+		double[][] q = new double[nQueries][dims];
+		for (int i = 0; i < nQueries; i++) {
+			for (int d = 0; d < dims; d++) {
+				q[i][d] = test.min(d) + R.nextDouble() * test.len(d);
+			}
+		}
+		return q;
+	}
+
+	/**
+	 * @param nQueries number of query points
+	 * @return Indexes of existing entries.
+	 */
+	int[] randomIds(int nQueries) {
+		resetR(1);
+		int[] ids = new int[nQueries];
+		for (int i = 0; i < nQueries; i++) {
+			ids[i] = R.nextInt(n);
+		}
+		return ids;
+	}
+
+	/**
+	 * @param p a point or box corner
+	 * @return A copy of the point that is moved randomly by at most the
+	 * test's maximum update distance in every dimension.
+	 */
+	double[] move(double[] p) {
+		double maxD = test.maxUpdateDistance();
+		double[] p2 = p.clone();
+		for (int d = 0; d < dims; d++) {
+			p2[d] += R.nextDouble() * 2 * maxD - maxD;
+		}
+		return p2;
+	}
+
+	private void resetR(int delta) {
+		R.setSeed(SEED + delta);
+	}
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.tinspin.index.BoxMap;
+import org.tinspin.index.rtree.RTreeEntry;
+import org.tinspin.index.test.util.TestInstances.IDX;
+import org.tinspin.index.test.util.TestInstances.TST;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * JMH benchmarks for all {@link BoxMap} implementations.
+ * <p>
+ * Run for example with:
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Djmh.args="BoxIndexBenchmark -p idx=RSTAR,STR -prof gc"
+ * </pre>
+ * The node overlap of the R-Tree variants is reported by {@link RTreeOverlapBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class BoxIndexBenchmark {
+
+	@Param({"QUAD_HC", "QUAD_PLAIN", "RSTAR", "STR", "HILBERT", "PHTREE"})
+	public IDX idx;
+
+	@Param({"CUBE_R", "CLUSTER_R"})
+	public TST data;
+
+	@Param({"3"})
+	public int dims;
+
+	@Param({"100000"})
+	public int n;
+
+	private double[][] boxes;
+	private BoxMap<Integer> tree;
+	private double[][] qMin;
+	private double[][] qMax;
+	private double[][] qKnn;
+	private int[] qIds;
+	private double[][] updMin;
+	private double[][] updMax;
+	private boolean[] updMoved;
+	private int pos = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		BenchmarkData bd = new BenchmarkData(data, idx, n, dims);
+		boxes = bd.boxes();
+		tree = createAndLoad(idx, dims, boxes);
+
+		qMin = new double[BenchmarkData.N_QUERIES][dims];
+		qMax = new double[BenchmarkData.N_QUERIES][dims];
+		bd.windowQueries(qMin, qMax);
+		qKnn = bd.randomPoints(BenchmarkData.N_QUERIES);
+		qIds = bd.randomIds(BenchmarkData.N_QUERIES);
+
+		//Every update moves an entry back and forth between its original and an updated position.
+		updMin = new double[n][];
+		updMax = new double[n][];
+		updMoved = new boolean[n];
+		for (int id : qIds) {
+			double[] min = bd.move(boxes[2 * id]);
+			double[] max = boxes[2 * id + 1].clone();
+			for (int d = 0; d < dims; d++) {
+				max[d] += min[d] - boxes[2 * id][d];
+			}
+			updMin[id] = min;
+			updMax[id] = max;
+		}
+	}
+
+	private int next() {
+		if (++pos >= BenchmarkData.N_QUERIES) {
+			pos = 0;
+		}
+		return pos;
+	}
+
+	static BoxMap<Integer> create(IDX idx, int dims) {
+		switch (idx) {
+			case PHTREE: return BoxMap.Factory.createPhTree(dims);
+			case QUAD_HC: return BoxMap.Factory.createQuadtreeHC(dims);
+			case QUAD_PLAIN: return BoxMap.Factory.createQuadtree(dims);
+			case RSTAR: return BoxMap.Factory.createRStarTree(dims);
+			default:
+				throw new UnsupportedOperationException(idx.name());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static BoxMap<Integer> createAndLoad(IDX idx, int dims, double[][] boxes) {
+		int n = boxes.length / 2;
+		if (idx == IDX.STR || idx == IDX.HILBERT) {
+			RTreeEntry<Integer>[] entries = new RTreeEntry[n];
+			for (int i = 0; i < n; i++) {
+				entries[i] = RTreeEntry.createBox(boxes[2 * i], boxes[2 * i + 1], i);
+			}
+			return idx == IDX.STR
+					? BoxMap.Factory.createAndLoadStrRTree(dims, entries)
+					: BoxMap.Factory.createAndLoadHilbertRTree(dims, entries);
+		}
+		BoxMap<Integer> tree = create(idx, dims);
+		for (int i = 0; i < n; i++) {
+			tree.insert(boxes[2 * i], boxes[2 * i + 1], i);
+		}
+		return tree;
+	}
+
+	/**
+	 * Loads the full data set into an empty index. The score is the time for loading all entries.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 3, batchSize = 1)
+	@Measurement(iterations = 10, batchSize = 1)
+	public BoxMap<Integer> insert() {
+		return createAndLoad(idx, dims, boxes);
+	}
+
+	@Benchmark
+	public void windowQuery(Blackhole bh) {
+		int i = next();
+		BoxIterator<Integer> it = tree.queryIntersect(qMin[i], qMax[i]);
+		while (it.hasNext()) {
+			bh.consume(it.next());
+		}
+	}
+
+	@Benchmark
+	public Integer pointQuery() {
+		int id = qIds[next()];
+		return tree.queryExact(boxes[2 * id], boxes[2 * id + 1]);
+	}
+
+	@Benchmark
+	public BoxEntryKnn<Integer> knn1() {
+		return tree.query1nn(qKnn[next()]);
+	}
+
+	@Benchmark
+	public void knn10(Blackhole bh) {
+		BoxIteratorKnn<Integer> it = tree.queryKnn(qKnn[next()], 10);
+		while (it.hasNext()) {
+			bh.consume(it.next());
+		}
+	}
+
+	@Benchmark
+	public Integer update() {
+		int id = qIds[next()];
+		double[] min = boxes[2 * id];
+		double[] max = boxes[2 * id + 1];
+		boolean moved = updMoved[id];
+		updMoved[id] = !moved;
+		return moved
+				? tree.update(updMin[id], updMax[id], min, max)
+				: tree.update(min, max, updMin[id], updMax[id]);
+	}
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.tinspin.index.PointMap;
+import org.tinspin.index.qthypercube.QuadTreeKD;
+import org.tinspin.index.qthypercube2.QuadTreeKD2;
+import org.tinspin.index.qtplain.QuadTreeKD0;
+import org.tinspin.index.rtree.RTreeEntry;
+import org.tinspin.index.test.util.TestInstances.IDX;
+import org.tinspin.index.test.util.TestInstances.TST;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * JMH benchmarks for all {@link PointMap} implementations.
+ * <p>
+ * Run for example with:
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Djmh.args="PointIndexBenchmark -p idx=KDTREE,QUAD_HC2 -prof gc"
+ * </pre>
+ * Indexes that do not support an operation (e.g. window queries on the CoverTree) throw an
+ * exception in that benchmark; JMH reports the error and continues with the next parameter set.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class PointIndexBenchmark {
+
+	@Param({"KDTREE", "KDTREE_FLAT", "QUAD_HC", "QUAD_HC2", "QUAD_PLAIN", "RSTAR", "STR", "HILBERT", "PHTREE", "COVER", "CRITBIT_Z"})
+	public IDX idx;
+
+	@Param({"CUBE_P", "CLUSTER_P"})
+	public TST data;
+
+	@Param({"3"})
+	public int dims;
+
+	@Param({"100000"})
+	public int n;
+
+	private double[][] points;
+	private PointMap<Integer> tree;
+	private double[][] qMin;
+	private double[][] qMax;
+	private double[][] qKnn;
+	private int[] qIds;
+	private double[][] updPos;
+	private boolean[] updMoved;
+	private Integer[] batchValues;
+	private double[] batchDist;
+	private int pos = 0;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		BenchmarkData bd = new BenchmarkData(data, idx, n, dims);
+		points = bd.points();
+		tree = createAndLoad(idx, dims, points);
+
+		qMin = new double[BenchmarkData.N_QUERIES][dims];
+		qMax = new double[BenchmarkData.N_QUERIES][dims];
+		bd.windowQueries(qMin, qMax);
+		qKnn = bd.randomPoints(BenchmarkData.N_QUERIES);
+		qIds = bd.randomIds(BenchmarkData.N_QUERIES);
+		batchValues = new Integer[BenchmarkData.N_QUERIES * 10];
+		batchDist = new double[BenchmarkData.N_QUERIES * 10];
+
+		//Every update moves an entry back and forth between its original and an updated position.
+		updPos = new double[n][];
+		updMoved = new boolean[n];
+		for (int id : qIds) {
+			updPos[id] = bd.move(points[id]);
+		}
+	}
+
+	private int next() {
+		if (++pos >= BenchmarkData.N_QUERIES) {
+			pos = 0;
+		}
+		return pos;
+	}
+
+	static PointMap<Integer> create(IDX idx, int dims) {
+		switch (idx) {
+			case KDTREE: return PointMap.Factory.createKdTree(dims);
+			case KDTREE_FLAT: return PointMap.Factory.createKdTreeFlat(dims);
+			case PHTREE: return PointMap.Factory.createPhTree(dims);
+			case QUAD_HC: return PointMap.Factory.createQuadtreeHC(dims);
+			case QUAD_HC2: return PointMap.Factory.createQuadtreeHC2(dims);
+			case QUAD_PLAIN: return PointMap.Factory.createQuadtree(dims);
+			case RSTAR: return PointMap.Factory.createRStarTree(dims);
+			case COVER: return PointMap.Factory.createCoverTree(dims);
+			case CRITBIT_Z: return PointMap.Factory.createCritBitZ(dims);
+			default:
+				throw new UnsupportedOperationException(idx.name());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static PointMap<Integer> createAndLoad(IDX idx, int dims, double[][] points) {
+		if (idx == IDX.STR || idx == IDX.HILBERT) {
+			RTreeEntry<Integer>[] entries = new RTreeEntry[points.length];
+			for (int i = 0; i < points.length; i++) {
+				entries[i] = RTreeEntry.createPoint(points[i], i);
+			}
+			return idx == IDX.STR
+					? PointMap.Factory.createAndLoadStrRTree(dims, entries)
+					: PointMap.Factory.createAndLoadHilbertRTree(dims, entries);
+		}
+		PointMap<Integer> tree = create(idx, dims);
+		for (int i = 0; i < points.length; i++) {
+			tree.insert(points[i], i);
+		}
+		return tree;
+	}
+
+	/**
+	 * Loads the full data set into an empty index. The score is the time for loading all entries.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 3, batchSize = 1)
+	@Measurement(iterations = 10, batchSize = 1)
+	public PointMap<Integer> insert() {
+		return createAndLoad(idx, dims, points);
+	}
+
+	/**
+	 * Same as {@link #insert()} but loads all entries with a single batch insert.
+	 * This is only supported by the quadtrees.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 3, batchSize = 1)
+	@Measurement(iterations = 10, batchSize = 1)
+	@SuppressWarnings("unchecked")
+	public PointMap<Integer> insertAll() {
+		PointEntry<Integer>[] entries = new PointEntry[points.length];
+		for (int i = 0; i < points.length; i++) {
+			entries[i] = new PointEntry<>(points[i], i);
+		}
+		switch (idx) {
+			case QUAD_HC: {
+				QuadTreeKD<Integer> tree = QuadTreeKD.create(dims);
+				tree.insertAll(entries);
+				return tree;
+			}
+			case QUAD_HC2: {
+				QuadTreeKD2<Integer> tree = QuadTreeKD2.create(dims);
+				tree.insertAll(entries);
+				return tree;
+			}
+			case QUAD_PLAIN: {
+				QuadTreeKD0<Integer> tree = QuadTreeKD0.create(dims);
+				tree.insertAll(entries);
+				return tree;
+			}
+			default:
+				throw new UnsupportedOperationException(idx.name());
+		}
+	}
+
+	@Benchmark
+	public void windowQuery(Blackhole bh) {
+		int i = next();
+		PointIterator<Integer> it = tree.query(qMin[i], qMax[i]);
+		while (it.hasNext()) {
+			bh.consume(it.next());
+		}
+	}
+
+	@Benchmark
+	public Integer pointQuery() {
+		return tree.queryExact(points[qIds[next()]]);
+	}
+
+	@Benchmark
+	public PointEntryKnn<Integer> knn1() {
+		return tree.query1nn(qKnn[next()]);
+	}
+
+	@Benchmark
+	public void knn10(Blackhole bh) {
+		PointIteratorKnn<Integer> it = tree.queryKnn(qKnn[next()], 10);
+		while (it.hasNext()) {
+			bh.consume(it.next());
+		}
+	}
+
+	/**
+	 * Executes all kNN queries as one batch. The score is the time for the whole batch.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 3, batchSize = 1)
+	@Measurement(iterations = 10, batchSize = 1)
+	public double[] knn10Batch() {
+		tree.queryKnnBatch(qKnn, 10, batchValues, batchDist, false);
+		return batchDist;
+	}
+
+	/**
+	 * Same as {@link #knn10Batch()} but executed in parallel.
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	@Warmup(iterations = 3, batchSize = 1)
+	@Measurement(iterations = 10, batchSize = 1)
+	public double[] knn10BatchParallel() {
+		tree.queryKnnBatch(qKnn, 10, batchValues, batchDist, true);
+		return batchDist;
+	}
+
+	@Benchmark
+	public Integer update() {
+		int id = qIds[next()];
+		boolean moved = updMoved[id];
+		updMoved[id] = !moved;
+		return moved ? tree.update(updPos[id], points[id]) : tree.update(points[id], updPos[id]);
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.tinspin.index.BoxMap;
+import org.tinspin.index.IndexConfig;
+import org.tinspin.index.IndexConfig.RTreeVariant;
+import org.tinspin.index.test.util.TestInstances.IDX;
+import org.tinspin.index.test.util.TestInstances.TST;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark for one-by-one insertion into R-Trees with different variants and node sizes.
+ * Larger nodes make choosing the subtree and splitting more expensive.
+ * <p>
+ * Run for example with:
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Djmh.args="RTreeInsertBenchmark -prof gc"
+ * </pre>
+ * With {@code -prof gc}, 'gc.alloc.rate.norm' shows the allocations per load; it should
+ * not be much higher than the size of the tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, batchSize = 1)
+@Measurement(iterations = 10, batchSize = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class RTreeInsertBenchmark {
+
+	@Param({"RSTAR", "RRSTAR", "QUADRATIC", "LINEAR"})
+	public RTreeVariant variant;
+
+	@Param({"10", "32"})
+	public int nodeSize;
+
+	@Param({"CUBE_R", "CLUSTER_R"})
+	public TST data;
+
+	@Param({"3"})
+	public int dims;
+
+	@Param({"100000"})
+	public int n;
+
+	private double[][] boxes;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		boxes = new BenchmarkData(data, IDX.RSTAR, n, dims).boxes();
+	}
+
+	/**
+	 * Loads the full data set into an empty tree. The score is the time for loading all entries.
+	 */
+	@Benchmark
+	public BoxMap<Integer> insert() {
+		IndexConfig cfg = IndexConfig.create(dims)
+				.setRTreeVariant(variant)
+				.setRTreeNodeMaxDir(nodeSize)
+				.setRTreeNodeMaxData(nodeSize)
+				.setRTreeNodeMinDir(Math.max(2, (int) (0.4 * nodeSize)))
+				.setRTreeNodeMinData(Math.max(2, (int) (0.4 * nodeSize)));
+		BoxMap<Integer> tree = BoxMap.Factory.createRTree(cfg);
+		for (int i = 0; i < n; i++) {
+			tree.insert(boxes[2 * i], boxes[2 * i + 1], i);
+		}
+		return tree;
+	}
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.tinspin.index.rtree.RTree;
+import org.tinspin.index.test.util.TestInstances.IDX;
+import org.tinspin.index.test.util.TestInstances.TST;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports the node overlap of R-Trees built by insertion (RSTAR), STR loading and Hilbert loading,
+ * see {@link RTree.RTreeStats#getNodeOverlap()}. The overlap appears as the secondary result
+ * 'nodeOverlap', the primary score is the time for computing the statistics.
+ * <p>
+ * Run for example with:
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Djmh.args="RTreeOverlapBenchmark"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1, batchSize = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class RTreeOverlapBenchmark {
+
+	@Param({"RSTAR", "STR", "HILBERT"})
+	public IDX idx;
+
+	@Param({"CUBE_R", "CLUSTER_R"})
+	public TST data;
+
+	@Param({"3"})
+	public int dims;
+
+	@Param({"100000"})
+	public int n;
+
+	private RTree<Integer> tree;
+
+	/**
+	 * Secondary results. With a single measurement of a single invocation, the reported
+	 * value is the overlap of the tree.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Overlap {
+		public double nodeOverlap;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			nodeOverlap = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		double[][] boxes = new BenchmarkData(data, idx, n, dims).boxes();
+		tree = (RTree<Integer>) BoxIndexBenchmark.createAndLoad(idx, dims, boxes);
+	}
+
+	@Benchmark
+	public void nodeOverlap(Overlap result) {
+		result.nodeOverlap = tree.getStats().getNodeOverlap();
+	}
+}
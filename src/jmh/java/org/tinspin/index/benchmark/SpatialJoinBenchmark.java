@@ -0,0 +1,106 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.tinspin.index.BoxMultimap;
+import org.tinspin.index.IndexMetrics;
+import org.tinspin.index.qthypercube.QuadTreeRKD;
+import org.tinspin.index.rtree.RTree;
+import org.tinspin.index.test.util.TestInstances.IDX;
+import org.tinspin.index.test.util.TestInstances.TST;
+import org.tinspin.index.util.MeteredBoxMultimap;
+import org.tinspin.index.util.SpatialJoin;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * JMH benchmark for the spatial self-join of a box data set, see {@link SpatialJoin}.
+ * 'join' traverses both trees together, 'probe' executes one window query per entry,
+ * which is what {@link SpatialJoin} does for index combinations without a native join.
+ * <p>
+ * Run for example with:
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Djmh.args="SpatialJoinBenchmark"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, batchSize = 1)
+@Measurement(iterations = 10, batchSize = 1)
+@Fork(value = 2, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class SpatialJoinBenchmark {
+
+	@Param({"RSTAR", "QUAD_HC"})
+	public IDX index;
+
+	@Param({"CUBE_R", "CLUSTER_R"})
+	public TST data;
+
+	@Param({"3"})
+	public int dims;
+
+	@Param({"100000"})
+	public int n;
+
+	@Param({"0", "0.001"})
+	public double maxDist;
+
+	@Param({"false", "true"})
+	public boolean parallel;
+
+	private BoxMultimap<Integer> tree1;
+	private BoxMultimap<Integer> tree2;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		double[][] boxes = new BenchmarkData(data, index, n, dims).boxes();
+		tree1 = create();
+		tree2 = create();
+		for (int i = 0; i < n; i++) {
+			tree1.insert(boxes[2 * i], boxes[2 * i + 1], i);
+			tree2.insert(boxes[2 * i], boxes[2 * i + 1], i);
+		}
+	}
+
+	private BoxMultimap<Integer> create() {
+		switch (index) {
+		case RSTAR: return RTree.createRStar(dims);
+		case QUAD_HC: return QuadTreeRKD.create(dims);
+		default: throw new IllegalArgumentException(index.name());
+		}
+	}
+
+	@Benchmark
+	public long join() {
+		LongAdder count = new LongAdder();
+		SpatialJoin.join(tree1, tree2, maxDist, (e1, e2) -> count.increment(), parallel);
+		return count.sum();
+	}
+
+	@Benchmark
+	public long probe() {
+		// Hide the tree type from SpatialJoin to force the window query fallback
+		BoxMultimap<Integer> wrapped = MeteredBoxMultimap.create(tree2, IndexMetrics.NONE);
+		LongAdder count = new LongAdder();
+		SpatialJoin.join(tree1, wrapped, maxDist, (e1, e2) -> count.increment(), parallel);
+		return count.sum();
+	}
+}
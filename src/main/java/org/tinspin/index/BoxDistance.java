@@ -143,17 +143,12 @@ public interface BoxDistance {
 		}
 
 		public double edgeDistance(double[] center, double[] min, double[] max) {
-			double[] dist = new double[center.length];
+			// the point in the box that is closest to the center
+			double[] closest = new double[center.length];
 			for (int i = 0; i < center.length; i++) {
-				double d = 0;
-				if (min[i] > center[i]) {
-					d = min[i] - center[i];
-				} else if (max[i] < center[i]) {
-					d = center[i] - max[i];
-				}
-				dist[i] = d;
+				closest[i] = Math.max(min[i], Math.min(max[i], center[i]));
 			}
-			return distFn.dist(dist, center);
+			return distFn.dist(center, closest);
 		}
 	}
 }
@@ -22,7 +22,9 @@ import org.tinspin.index.qthypercube.QuadTreeRKD;
 import org.tinspin.index.qtplain.QuadTreeRKD0;
 import org.tinspin.index.rtree.RTree;
 import org.tinspin.index.rtree.RTreeEntry;
+import org.tinspin.index.util.KnnFilter;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.function.Predicate;
 
@@ -65,6 +67,33 @@ public interface BoxMultimap<T> extends Index {
      */
     boolean removeIf(double[] min, double[] max, Predicate<BoxEntry<T>> condition);
 
+    /**
+     * Remove *all* entries that intersect with the query window and satisfy the condition.
+     * <p>
+     * The default implementation collects the matching entries with
+     * {@link #queryIntersect(double[], double[])} and then removes them one by one. Most indexes
+     * override this to remove the entries in a single traversal.
+     *
+     * @param min       Lower left corner of the query window
+     * @param max       Upper right corner of the query window
+     * @param condition the condition required for removing an entry
+     * @return the number of removed entries
+     */
+    default int removeAll(double[] min, double[] max, Predicate<BoxEntry<T>> condition) {
+        ArrayList<BoxEntry<T>> matches = new ArrayList<>();
+        BoxIterator<T> it = queryIntersect(min, max);
+        while (it.hasNext()) {
+            BoxEntry<T> e = it.next();
+            if (condition.test(e)) {
+                matches.add(new BoxEntry<>(e.min().clone(), e.max().clone(), e.value()));
+            }
+        }
+        for (BoxEntry<T> e : matches) {
+            remove(e.min(), e.max(), e.value());
+        }
+        return matches.size();
+    }
+
     /**
      * Update the position of an entry.
      *
@@ -143,6 +172,27 @@ public interface BoxMultimap<T> extends Index {
      */
     BoxIteratorKnn<T> queryKnn(double[] center, int k, BoxDistance distFn);
 
+    /**
+     * Finds the nearest neighbors that pass a filter. Entries that are rejected by the filter
+     * do not count towards 'k'. The filter may be called more than once per entry, it should
+     * therefore not have any side effects.
+     * <p>
+     * Most indexes apply the filter during the tree traversal. The default implementation
+     * repeats the unfiltered query with increasing 'k'.
+     *
+     * @param center   center point
+     * @param k        number of neighbors
+     * @param distFn   distance function
+     * @param filterFn filter for entries, the second argument is the entry's distance
+     * @return list of nearest neighbors
+     */
+    default BoxIteratorKnn<T> queryKnn(double[] center, int k, BoxDistance distFn, BoxFilterKnn<T> filterFn) {
+        if (distFn == BoxDistance.EDGE) {
+            return KnnFilter.queryBoxes(center, k, filterFn, this::queryKnn);
+        }
+        return KnnFilter.queryBoxes(center, k, filterFn, (c, k2) -> queryKnn(c, k2, distFn));
+    }
+
     interface Factory {
         /**
          * Create an array backed BoxMap. This is only for testing and rather inefficient for large data sets.
@@ -221,6 +271,31 @@ public interface BoxMultimap<T> extends Index {
             return RTree.createRStar(dims);
         }
 
+        /**
+         * Create an R*Tree. The configuration can be used to set the node sizes (fan-out),
+         * see {@link IndexConfig#setRTreeNodeMaxDir(int)} and {@link IndexConfig#setRTreeNodeMaxData(int)}.
+         *
+         * @param cfg Index configuration.
+         * @param <T> Value type
+         * @return New R*Tree
+         */
+        static <T> BoxMultimap<T> createRStarTree(IndexConfig cfg) {
+            return RTree.createRStar(cfg);
+        }
+
+        /**
+         * Create an R-Tree with the insertion and split strategy of the configuration, e.g. an RR*Tree
+         * for query-heavy or a linear R-Tree for update-heavy workloads,
+         * see {@link IndexConfig#setRTreeVariant(IndexConfig.RTreeVariant)}.
+         *
+         * @param cfg Index configuration.
+         * @param <T> Value type
+         * @return New R-Tree
+         */
+        static <T> BoxMultimap<T> createRTree(IndexConfig cfg) {
+            return RTree.create(cfg);
+        }
+
         /**
          * Create an STR-loaded R*Tree.
          *
@@ -235,5 +310,39 @@ public interface BoxMultimap<T> extends Index {
             tree.load(entries);
             return tree;
         }
+
+        /**
+         * Create an STR-loaded R*Tree. Sorting and node creation are executed in parallel
+         * on the common fork/join pool. The resulting tree is the same as with
+         * {@link #createAndLoadStrRTree(int, RTreeEntry[])}.
+         *
+         * @param dims    Number of dimensions.
+         * @param entries All entries of the tree. Entries can be created with
+         *                {@link RTreeEntry#createBox(double[], double[], Object)}
+         * @param <T>     Value type
+         * @return New STR-loaded R*Tree
+         */
+        static <T> BoxMultimap<T> createAndLoadStrRTreeParallel(int dims, RTreeEntry<T>[] entries) {
+            RTree<T> tree = RTree.createRStar(dims);
+            tree.load(entries, true);
+            return tree;
+        }
+
+        /**
+         * Create an R*Tree that is bulk-loaded by packing the entries in Hilbert order.
+         * Compared to {@link #createAndLoadStrRTree(int, RTreeEntry[])}, this results in less
+         * node overlap on clustered data.
+         *
+         * @param dims    Number of dimensions.
+         * @param entries All entries of the tree. Entries can be created with
+         *                {@link RTreeEntry#createBox(double[], double[], Object)}
+         * @param <T>     Value type
+         * @return New Hilbert-loaded R*Tree
+         */
+        static <T> BoxMultimap<T> createAndLoadHilbertRTree(int dims, RTreeEntry<T>[] entries) {
+            RTree<T> tree = RTree.createRStar(dims);
+            tree.loadHilbert(entries);
+            return tree;
+        }
     }
 }
\ No newline at end of file
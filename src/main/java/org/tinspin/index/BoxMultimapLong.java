@@ -0,0 +1,257 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ */
+package org.tinspin.index;
+
+import org.tinspin.index.PointMultimapLong.LongFilterKnn;
+import org.tinspin.index.rtree.RTreeLong;
+
+import java.util.PrimitiveIterator;
+import java.util.function.LongPredicate;
+
+/**
+ * A spatial multimap with box keys and primitive {@code long} values, for example row ids.
+ * <p>
+ * This is the counterpart of {@link BoxMultimap} for {@code long} values. Values are stored without boxing
+ * and the iterators return them via {@link PrimitiveIterator.OfLong#nextLong()}. The box (and distance)
+ * of the entry that was returned last can be read from the iterator, so iterating does not create
+ * any objects per entry.
+ *
+ * @see PointMultimapLong
+ */
+public interface BoxMultimapLong extends Index {
+
+    /**
+     * Insert a box.
+     *
+     * @param min   minimum corner
+     * @param max   maximum corner
+     * @param value value
+     */
+    void insert(double[] min, double[] max, long value);
+
+    /**
+     * Remove *one* entry with the given value.
+     *
+     * @param min   minimum corner
+     * @param max   maximum corner
+     * @param value only entries with this value are removed
+     * @return `true` iff an entry was found and removed
+     */
+    boolean remove(double[] min, double[] max, long value);
+
+    /**
+     * Remove *one* entry with the given condition.
+     *
+     * @param min       minimum corner
+     * @param max       maximum corner
+     * @param condition the condition on the value required for removing an entry
+     * @return `true` iff an entry was found and removed
+     */
+    boolean removeIf(double[] min, double[] max, LongPredicate condition);
+
+    /**
+     * Update the position of an entry.
+     *
+     * @param minOld old min
+     * @param maxOld old max
+     * @param minNew new min
+     * @param maxNew new max
+     * @param value  only entries with this value are updated
+     * @return `true` iff an entry was found and updated
+     */
+    boolean update(double[] minOld, double[] maxOld, double[] minNew, double[] maxNew, long value);
+
+    /**
+     * Lookup an entry, using exact match.
+     *
+     * @param min   minimum corner
+     * @param max   maximum corner
+     * @param value the value
+     * @return `true` if an entry was found, otherwise `false`.
+     */
+    boolean contains(double[] min, double[] max, long value);
+
+    /**
+     * Lookup an entry, using exact match.
+     *
+     * @param min minimum corner
+     * @param max maximum corner
+     * @return an iterator over all entries with the exact given box shape
+     */
+    BoxIteratorLong queryExactBox(double[] min, double[] max);
+
+    /**
+     * @return An iterator over all entries.
+     */
+    BoxIteratorLong iterator();
+
+    /**
+     * @param min Lower left corner of the query window
+     * @param max Upper right corner of the query window
+     * @return All boxes that intersect with the query rectangle.
+     */
+    BoxIteratorLong queryIntersect(double[] min, double[] max);
+
+    /**
+     * Finds the nearest neighbors. This uses Euclidean 'edge distance', i.e. the distance to the
+     * edge of a box.
+     *
+     * @param center center point
+     * @param k      number of neighbors
+     * @return list of nearest neighbors
+     */
+    default BoxIteratorKnnLong queryKnn(double[] center, int k) {
+        return queryKnn(center, k, BoxDistance.EDGE);
+    }
+
+    /**
+     * Finds the nearest neighbors.
+     *
+     * @param center center point
+     * @param k      number of neighbors
+     * @param distFn distance function
+     * @return list of nearest neighbors
+     */
+    BoxIteratorKnnLong queryKnn(double[] center, int k, BoxDistance distFn);
+
+    /**
+     * Finds the nearest neighbors that pass a filter. Entries that are rejected by the filter
+     * do not count towards 'k'.
+     *
+     * @param center   center point
+     * @param k        number of neighbors
+     * @param distFn   distance function
+     * @param filterFn filter for entries
+     * @return list of nearest neighbors
+     * @see BoxMultimap#queryKnn(double[], int, BoxDistance, Index.BoxFilterKnn)
+     */
+    BoxIteratorKnnLong queryKnn(double[] center, int k, BoxDistance distFn, LongFilterKnn filterFn);
+
+    /**
+     * Iterator over the results of a window query.
+     * {@link #min()} and {@link #max()} return the box of the entry that was last returned by
+     * {@link #nextLong()}. {@link #next()} boxes the value and should be avoided.
+     */
+    interface BoxIteratorLong extends PrimitiveIterator.OfLong {
+        /**
+         * @return a copy of the minimum corner of the current entry
+         */
+        default double[] min() {
+            return min(null);
+        }
+
+        /**
+         * @param buf an array to copy the minimum corner of the current entry to, or {@code null}
+         * @return 'buf' or a new array if 'buf' was {@code null}
+         */
+        double[] min(double[] buf);
+
+        /**
+         * @return a copy of the maximum corner of the current entry
+         */
+        default double[] max() {
+            return max(null);
+        }
+
+        /**
+         * @param buf an array to copy the maximum corner of the current entry to, or {@code null}
+         * @return 'buf' or a new array if 'buf' was {@code null}
+         */
+        double[] max(double[] buf);
+
+        /**
+         * Reset the iterator. This iterator can be reused in order to reduce load on the
+         * garbage collector.
+         *
+         * @param min lower left corner of query
+         * @param max upper right corner of query
+         * @return this.
+         */
+        BoxIteratorLong reset(double[] min, double[] max);
+    }
+
+    /**
+     * Iterator over the results of a kNN query.
+     * {@link #min()}, {@link #max()} and {@link #dist()} refer to the entry that was last returned by
+     * {@link #nextLong()}. {@link #next()} boxes the value and should be avoided.
+     */
+    interface BoxIteratorKnnLong extends PrimitiveIterator.OfLong {
+        /**
+         * @return a copy of the minimum corner of the current entry
+         */
+        default double[] min() {
+            return min(null);
+        }
+
+        /**
+         * @param buf an array to copy the minimum corner of the current entry to, or {@code null}
+         * @return 'buf' or a new array if 'buf' was {@code null}
+         */
+        double[] min(double[] buf);
+
+        /**
+         * @return a copy of the maximum corner of the current entry
+         */
+        default double[] max() {
+            return max(null);
+        }
+
+        /**
+         * @param buf an array to copy the maximum corner of the current entry to, or {@code null}
+         * @return 'buf' or a new array if 'buf' was {@code null}
+         */
+        double[] max(double[] buf);
+
+        /**
+         * @return the distance of the current entry
+         */
+        double dist();
+
+        /**
+         * Reset the iterator. This iterator can be reused in order to reduce load on the
+         * garbage collector.
+         *
+         * @param center center point
+         * @param k      number of neighbors
+         * @return this.
+         */
+        BoxIteratorKnnLong reset(double[] center, int k);
+    }
+
+    interface Factory {
+        /**
+         * Create an R*Tree that stores the values in primitive arrays in its leaves.
+         *
+         * @param dims Number of dimensions.
+         * @return New R*Tree
+         */
+        static BoxMultimapLong createRStarTree(int dims) {
+            return RTreeLong.create(IndexConfig.create(dims));
+        }
+
+        /**
+         * Create an R-Tree with the node sizes and the insertion and split strategy of the configuration,
+         * see {@link BoxMultimap.Factory#createRTree(IndexConfig)}.
+         *
+         * @param cfg Index configuration.
+         * @return New R-Tree
+         */
+        static BoxMultimapLong createRTree(IndexConfig cfg) {
+            return RTreeLong.create(cfg);
+        }
+    }
+}
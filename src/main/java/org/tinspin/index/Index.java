@@ -54,6 +54,17 @@ public interface Index {
 	 */
 	String toStringTree();
 
+	/**
+	 * Set a receiver for live metrics of internal events, such as node splits or node visits.
+	 * The reported counters depend on the index, see {@link IndexMetrics}.
+	 * Indexes that are not instrumented ignore the receiver.
+	 * @param metrics the receiver, {@link IndexMetrics#NONE} disables reporting
+	 * @see org.tinspin.index.util.MeteredPointMap
+	 */
+	default void setMetrics(IndexMetrics metrics) {
+		// no internal events
+	}
+
     interface QueryIterator<T> extends Iterator<T> {
         /**
          * This method resets an iterator. The arguments determin new iterator properties:
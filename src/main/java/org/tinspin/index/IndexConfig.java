@@ -18,8 +18,31 @@
 package org.tinspin.index;
 
 public class IndexConfig {
+
+	/**
+	 * Insertion and split strategies of R-trees, see {@link #setRTreeVariant(RTreeVariant)}.
+	 */
+	public enum RTreeVariant {
+		/** R*Tree (Beckmann et al. 1990) with forced reinsertion. */
+		RSTAR,
+		/**
+		 * Revised R*Tree (Beckmann and Seeger 2009). The nodes have much less overlap than in the R*Tree,
+		 * which makes queries faster. There is no forced reinsertion.
+		 */
+		RRSTAR,
+		/** Guttman's R-Tree (1984) with quadratic split. */
+		QUADRATIC,
+		/** Guttman's R-Tree (1984) with linear split. Fastest insertion, slowest queries. */
+		LINEAR
+	}
+
     private int dimensions = 3;
 	private boolean defensiveKeyCopy = true;
+	private int rTreeNodeMaxDir = 10;
+	private int rTreeNodeMaxData = 10;
+	private int rTreeNodeMinDir = 2;
+	private int rTreeNodeMinData = 2;
+	private RTreeVariant rTreeVariant = RTreeVariant.RSTAR;
 
 	protected IndexConfig(int dimensions) {
 		this.dimensions = dimensions;
@@ -56,6 +79,68 @@ public class IndexConfig {
 	}
 
 
+	/**
+	 * @param max Maximum number of children of directory nodes. Default is 10.
+	 * The original R*Tree paper uses M=56 for 1KB pages.
+	 * <p>
+	 * This setting works only for R-trees.
+	 * @return this
+	 */
+	public IndexConfig setRTreeNodeMaxDir(int max) {
+		this.rTreeNodeMaxDir = max;
+		return this;
+	}
+
+	/**
+	 * @param max Maximum number of entries of leaf nodes. Default is 10.
+	 * The original R*Tree paper uses M=50 for 1KB pages.
+	 * <p>
+	 * This setting works only for R-trees.
+	 * @return this
+	 */
+	public IndexConfig setRTreeNodeMaxData(int max) {
+		this.rTreeNodeMaxData = max;
+		return this;
+	}
+
+	/**
+	 * @param min Minimum number of children of directory nodes (except for the root).
+	 * Must be between 2 and max/2. Default is 2.
+	 * <p>
+	 * This setting works only for R-trees.
+	 * @return this
+	 */
+	public IndexConfig setRTreeNodeMinDir(int min) {
+		this.rTreeNodeMinDir = min;
+		return this;
+	}
+
+	/**
+	 * @param min Minimum number of entries of leaf nodes (except for the root).
+	 * Must be between 2 and max/2. Default is 2.
+	 * <p>
+	 * This setting works only for R-trees.
+	 * @return this
+	 */
+	public IndexConfig setRTreeNodeMinData(int min) {
+		this.rTreeNodeMinData = min;
+		return this;
+	}
+
+	/**
+	 * @param variant Algorithm for choosing subtrees and splitting nodes. Default is
+	 * {@link RTreeVariant#RSTAR}. {@link RTreeVariant#RRSTAR} is usually best for
+	 * query-heavy workloads, {@link RTreeVariant#LINEAR} and {@link RTreeVariant#QUADRATIC}
+	 * allow faster insertion at the cost of slower queries.
+	 * <p>
+	 * This setting works only for R-trees.
+	 * @return this
+	 */
+	public IndexConfig setRTreeVariant(RTreeVariant variant) {
+		this.rTreeVariant = variant;
+		return this;
+	}
+
 	public int getDimensions() {
 		return dimensions;
 	}
@@ -63,4 +148,24 @@ public class IndexConfig {
 	public boolean getDefensiveKeyCopy() {
 		return defensiveKeyCopy;
 	}
+
+	public int getRTreeNodeMaxDir() {
+		return rTreeNodeMaxDir;
+	}
+
+	public int getRTreeNodeMaxData() {
+		return rTreeNodeMaxData;
+	}
+
+	public int getRTreeNodeMinDir() {
+		return rTreeNodeMinDir;
+	}
+
+	public int getRTreeNodeMinData() {
+		return rTreeNodeMinData;
+	}
+
+	public RTreeVariant getRTreeVariant() {
+		return rTreeVariant;
+	}
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index;
+
+/**
+ * Receiver for live metrics of an index.
+ * <p>
+ * Unlike {@link Stats}, which is collected by traversing the whole tree, metrics are reported while
+ * the index is used. Indexes report internal events (e.g. node splits) via {@link #count(Counter, long)},
+ * see {@link Index#setMetrics(IndexMetrics)}. Operation latencies and returned entries are reported by
+ * the metered facades, e.g. {@link org.tinspin.index.util.MeteredPointMap}.
+ * <p>
+ * Not all indexes report all counters, the indexes report:
+ * <ul>
+ * <li>{@link org.tinspin.index.rtree.RTree}: node visits, scanned entries, node splits, node merges,
+ *     reinserts and root growth.</li>
+ * <li>{@link org.tinspin.index.qthypercube2.QuadTreeKD2} and
+ *     {@link org.tinspin.index.qthypercube2.QuadTreeKD2F}: node visits, scanned entries, node splits,
+ *     node merges and root growth.</li>
+ * <li>{@link org.tinspin.index.qthypercube.QuadTreeKD}, {@link org.tinspin.index.qthypercube.QuadTreeRKD},
+ *     {@link org.tinspin.index.qtplain.QuadTreeKD0} and {@link org.tinspin.index.qtplain.QuadTreeRKD0}:
+ *     node splits, node merges and root growth.</li>
+ * <li>{@link org.tinspin.index.kdtree.KDTree}, {@link org.tinspin.index.kdtree.KDTreeFlat},
+ *     {@link org.tinspin.index.kdtree.KDTreeF}, {@link org.tinspin.index.kdtree.KDTreeLong} and
+ *     {@link org.tinspin.index.covertree.CoverTree}: node visits and scanned entries.</li>
+ * <li>The critbit trees, the PH-trees and the arrays: nothing.</li>
+ * </ul>
+ * <p>
+ * By default, indexes report to {@link #NONE}. As long as no other implementation is used, the JIT
+ * inlines the empty methods and the instrumentation has no measurable cost.
+ * <p>
+ * Implementations must be thread-safe if the index is used by multiple threads.
+ * See {@link org.tinspin.index.util.MetricsRecorder} for an implementation with histograms.
+ */
+public interface IndexMetrics {
+
+	/**
+	 * Operations with latencies.
+	 */
+	enum Op {
+		INSERT,
+		REMOVE,
+		UPDATE,
+		/** Exact match queries, including 'contains()'. */
+		QUERY_EXACT,
+		/** Window queries and iterators. Only the creation of the iterator is measured. */
+		QUERY_WINDOW,
+		/** kNN queries, including 1NN queries. */
+		QUERY_KNN
+	}
+
+	/**
+	 * Event counters.
+	 */
+	enum Counter {
+		/** Nodes visited by queries. */
+		NODE_VISITS,
+		/** Entries that were compared with a query. */
+		ENTRIES_SCANNED,
+		/** Entries that were returned by queries. */
+		ENTRIES_RETURNED,
+		/** Nodes that were split because they overflowed. */
+		NODE_SPLITS,
+		/** Nodes that were merged or dissolved because they underflowed. */
+		NODE_MERGES,
+		/** Entries that were reinserted, e.g. by the R*-tree's forced reinsert. */
+		REINSERTS,
+		/** New root nodes that were created in order to cover a new entry or to increase the depth. */
+		ROOT_GROWTHS
+	}
+
+	/**
+	 * A receiver that ignores all metrics.
+	 */
+	IndexMetrics NONE = new IndexMetrics() {
+		@Override
+		public void count(Counter counter, long n) {
+			// nothing
+		}
+
+		@Override
+		public void record(Op op, long nanos) {
+			// nothing
+		}
+	};
+
+	/**
+	 * @param counter the counter
+	 * @param n the number of events
+	 */
+	void count(Counter counter, long n);
+
+	/**
+	 * @param op the operation
+	 * @param nanos the latency of the operation in nanoseconds
+	 */
+	void record(Op op, long nanos);
+}
@@ -19,13 +19,19 @@ package org.tinspin.index;
 
 import org.tinspin.index.array.PointArray;
 import org.tinspin.index.covertree.CoverTree;
+import org.tinspin.index.critbit.CritBitZ;
 import org.tinspin.index.kdtree.KDTree;
+import org.tinspin.index.kdtree.KDTreeF;
+import org.tinspin.index.kdtree.KDTreeFlat;
 import org.tinspin.index.phtree.PHTreeP;
 import org.tinspin.index.qthypercube.QuadTreeKD;
 import org.tinspin.index.qthypercube2.QuadTreeKD2;
+import org.tinspin.index.qthypercube2.QuadTreeKD2F;
 import org.tinspin.index.qtplain.QuadTreeKD0;
 import org.tinspin.index.rtree.RTree;
 import org.tinspin.index.rtree.RTreeEntry;
+import org.tinspin.index.util.KnnBatch;
+import org.tinspin.index.util.KnnFilter;
 import org.tinspin.index.util.PointMapWrapper;
 
 /**
@@ -116,6 +122,50 @@ public interface PointMap<T> extends Index {
      */
     PointIteratorKnn<T> queryKnn(double[] center, int k);
 
+    /**
+     * Finds the nearest neighbors that pass a filter. Entries that are rejected by the filter
+     * do not count towards 'k'. The filter may be called more than once per entry, it should
+     * therefore not have any side effects.
+     * <p>
+     * Most indexes apply the filter during the tree traversal. The default implementation
+     * repeats the unfiltered query with increasing 'k', it supports only {@link PointDistance#L2}.
+     *
+     * @param center   center point
+     * @param k        number of neighbors
+     * @param distFn   the point distance function to be used
+     * @param filterFn filter for entries, the second argument is the entry's distance
+     * @return list of nearest neighbors
+     */
+    default PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn, PointFilterKnn<T> filterFn) {
+        if (distFn != PointDistance.L2) {
+            throw new UnsupportedOperationException(
+                    getClass().getSimpleName() + " supports filtered kNN queries only with L2 distance");
+        }
+        return KnnFilter.queryPoints(center, k, filterFn, (c, k2) -> queryKnn(c, k2));
+    }
+
+    /**
+     * Batch kNN query. This is equivalent to calling {@link #queryKnn(double[], int)} for every
+     * query point, but avoids creating a new iterator for every query and can optionally process
+     * the queries in parallel in the common {@link java.util.concurrent.ForkJoinPool}.
+     * <p>
+     * The results for 'centers[i]' are written to 'values' and 'distances' at [i*k, (i+1)*k),
+     * ordered by distance. If fewer than 'k' entries are found, the remaining slots are set to
+     * 'null' and {@link Double#POSITIVE_INFINITY}.
+     * <p>
+     * Parallel queries must not overlap with any modifications of the index.
+     *
+     * @param centers   query points
+     * @param k         number of neighbors per query point
+     * @param values    Output: values of the nearest neighbors, length &gt;= centers.length * k
+     * @param distances Output: distances of the nearest neighbors, length &gt;= centers.length * k
+     * @param parallel  whether to process the queries in parallel
+     */
+    default void queryKnnBatch(double[][] centers, int k, T[] values, double[] distances, boolean parallel) {
+        KnnBatch.query(centers, k, values, distances, parallel, c -> queryKnn(c, k),
+                PointEntryKnn::value, PointEntryKnn::dist);
+    }
+
     interface Factory {
         /**
          * Create an array backed PointMap. This is only for testing and rather inefficient for large data sets.
@@ -140,6 +190,18 @@ public interface PointMap<T> extends Index {
             return CoverTree.create(dims);
         }
 
+        /**
+         * Create a CritBitZ, a crit-bit tree with z-order (Morton) keys.
+         * This supports only 1 to 4 dimensions.
+         *
+         * @param dims Number of dimensions, between 1 and 4.
+         * @param <T>  Value type
+         * @return New CritBitZ
+         */
+        static <T> PointMap<T> createCritBitZ(int dims) {
+            return CritBitZ.create(dims);
+        }
+
         /**
          * Create a kD-Tree.
          *
@@ -162,6 +224,45 @@ public interface PointMap<T> extends Index {
             return KDTree.create(cfg);
         }
 
+        /**
+         * Create a balanced kD-Tree by bulk loading the given entries.
+         *
+         * @param dims    Number of dimensions.
+         * @param entries All entries of the tree. Entries can be created with
+         *                {@link PointEntry#PointEntry(double[], Object)}
+         * @param <T>     Value type
+         * @return New bulk-loaded kD-Tree
+         */
+        static <T> PointMap<T> createAndLoadKdTree(int dims, PointEntry<T>[] entries) {
+            KDTree<T> tree = KDTree.create(dims);
+            tree.load(entries);
+            return tree;
+        }
+
+        /**
+         * Create a kD-Tree that stores coordinates, child references and values in flat arrays.
+         * This requires considerably less memory than {@link #createKdTree(int)}.
+         *
+         * @param dims Number of dimensions.
+         * @param <T>  Value type
+         * @return New kD-Tree
+         */
+        static <T> PointMap<T> createKdTreeFlat(int dims) {
+            return KDTreeFlat.create(dims);
+        }
+
+        /**
+         * Create a kD-Tree that stores coordinates as {@code float}. Keys are rounded to {@code float} precision.
+         * This requires roughly half the memory of {@link #createKdTreeFlat(int)}.
+         *
+         * @param dims Number of dimensions.
+         * @param <T>  Value type
+         * @return New kD-Tree
+         */
+        static <T> PointMap<T> createKdTreeFloat(int dims) {
+            return KDTreeF.create(dims);
+        }
+
         /**
          * Create a PH-Tree.
          *
@@ -254,6 +355,18 @@ public interface PointMap<T> extends Index {
             return QuadTreeKD2.create(dims, maxNodeCapacity, center, radius);
         }
 
+        /**
+         * Create a Quadtree with hypercube navigation that stores coordinates as {@code float}.
+         * Keys are rounded to {@code float} precision.
+         *
+         * @param dims Number of dimensions.
+         * @param <T>  Value type
+         * @return New QuadtreeHC2
+         */
+        static <T> PointMap<T> createQuadtreeHC2Float(int dims) {
+            return QuadTreeKD2F.create(dims);
+        }
+
         /**
          * Create an R*Tree.
          *
@@ -265,6 +378,31 @@ public interface PointMap<T> extends Index {
             return PointMapWrapper.create(RTree.createRStar(dims));
         }
 
+        /**
+         * Create an R*Tree. The configuration can be used to set the node sizes (fan-out),
+         * see {@link IndexConfig#setRTreeNodeMaxDir(int)} and {@link IndexConfig#setRTreeNodeMaxData(int)}.
+         *
+         * @param cfg Index configuration.
+         * @param <T> Value type
+         * @return New R*Tree
+         */
+        static <T> PointMap<T> createRStarTree(IndexConfig cfg) {
+            return PointMapWrapper.create(RTree.createRStar(cfg));
+        }
+
+        /**
+         * Create an R-Tree with the insertion and split strategy of the configuration, e.g. an RR*Tree
+         * for query-heavy or a linear R-Tree for update-heavy workloads,
+         * see {@link IndexConfig#setRTreeVariant(IndexConfig.RTreeVariant)}.
+         *
+         * @param cfg Index configuration.
+         * @param <T> Value type
+         * @return New R-Tree
+         */
+        static <T> PointMap<T> createRTree(IndexConfig cfg) {
+            return PointMapWrapper.create(RTree.create(cfg));
+        }
+
         /**
          * Create an STR-loaded R*Tree.
          *
@@ -279,5 +417,39 @@ public interface PointMap<T> extends Index {
             tree.load(entries);
             return PointMapWrapper.create(tree);
         }
+
+        /**
+         * Create an STR-loaded R*Tree. Sorting and node creation are executed in parallel
+         * on the common fork/join pool. The resulting tree is the same as with
+         * {@link #createAndLoadStrRTree(int, RTreeEntry[])}.
+         *
+         * @param dims    Number of dimensions.
+         * @param entries All entries of the tree. Entries can be created with
+         *                {@link RTreeEntry#createPoint(double[], Object)}
+         * @param <T>     Value type
+         * @return New STR-loaded R*Tree
+         */
+        static <T> PointMap<T> createAndLoadStrRTreeParallel(int dims, RTreeEntry<T>[] entries) {
+            RTree<T> tree = RTree.createRStar(dims);
+            tree.load(entries, true);
+            return PointMapWrapper.create(tree);
+        }
+
+        /**
+         * Create an R*Tree that is bulk-loaded by packing the entries in Hilbert order.
+         * Compared to {@link #createAndLoadStrRTree(int, RTreeEntry[])}, this results in less
+         * node overlap on clustered data.
+         *
+         * @param dims    Number of dimensions.
+         * @param entries All entries of the tree. Entries can be created with
+         *                {@link RTreeEntry#createPoint(double[], Object)}
+         * @param <T>     Value type
+         * @return New Hilbert-loaded R*Tree
+         */
+        static <T> PointMap<T> createAndLoadHilbertRTree(int dims, RTreeEntry<T>[] entries) {
+            RTree<T> tree = RTree.createRStar(dims);
+            tree.loadHilbert(entries);
+            return PointMapWrapper.create(tree);
+        }
     }
 }
\ No newline at end of file
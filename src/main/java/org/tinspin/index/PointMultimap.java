@@ -19,14 +19,20 @@ package org.tinspin.index;
 
 import org.tinspin.index.array.PointArray;
 import org.tinspin.index.kdtree.KDTree;
+import org.tinspin.index.kdtree.KDTreeF;
+import org.tinspin.index.kdtree.KDTreeFlat;
 import org.tinspin.index.phtree.PHTreeMMP;
 import org.tinspin.index.qthypercube.QuadTreeKD;
 import org.tinspin.index.qthypercube2.QuadTreeKD2;
+import org.tinspin.index.qthypercube2.QuadTreeKD2F;
 import org.tinspin.index.qtplain.QuadTreeKD0;
 import org.tinspin.index.rtree.RTree;
 import org.tinspin.index.rtree.RTreeEntry;
+import org.tinspin.index.util.KnnBatch;
+import org.tinspin.index.util.KnnFilter;
 import org.tinspin.index.util.PointMultimapWrapper;
 
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.function.Predicate;
 
@@ -66,6 +72,33 @@ public interface PointMultimap<T> extends Index {
      */
     boolean removeIf(double[] point, Predicate<PointEntry<T>> condition);
 
+    /**
+     * Remove *all* entries that lie inside the query window and satisfy the condition.
+     * <p>
+     * The default implementation collects the matching entries with
+     * {@link #query(double[], double[])} and then removes them one by one. Most indexes
+     * override this to remove the entries in a single traversal.
+     *
+     * @param min       Lower left corner of the query window
+     * @param max       Upper right corner of the query window
+     * @param condition the condition required for removing an entry
+     * @return the number of removed entries
+     */
+    default int removeAll(double[] min, double[] max, Predicate<PointEntry<T>> condition) {
+        ArrayList<PointEntry<T>> matches = new ArrayList<>();
+        PointIterator<T> it = query(min, max);
+        while (it.hasNext()) {
+            PointEntry<T> e = it.next();
+            if (condition.test(e)) {
+                matches.add(new PointEntry<>(e.point().clone(), e.value()));
+            }
+        }
+        for (PointEntry<T> e : matches) {
+            remove(e.point(), e.value());
+        }
+        return matches.size();
+    }
+
     /**
      * Update the position of an entry.
      *
@@ -140,6 +173,49 @@ public interface PointMultimap<T> extends Index {
      */
     PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn);
 
+    /**
+     * Finds the nearest neighbors that pass a filter. Entries that are rejected by the filter
+     * do not count towards 'k'. The filter may be called more than once per entry, it should
+     * therefore not have any side effects.
+     * <p>
+     * Most indexes apply the filter during the tree traversal. The default implementation
+     * repeats the unfiltered query with increasing 'k'.
+     *
+     * @param center   center point
+     * @param k        number of neighbors
+     * @param distFn   the point distance function to be used
+     * @param filterFn filter for entries, the second argument is the entry's distance
+     * @return list of nearest neighbors
+     */
+    default PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn, PointFilterKnn<T> filterFn) {
+        if (distFn == PointDistance.L2) {
+            return KnnFilter.queryPoints(center, k, filterFn, this::queryKnn);
+        }
+        return KnnFilter.queryPoints(center, k, filterFn, (c, k2) -> queryKnn(c, k2, distFn));
+    }
+
+    /**
+     * Batch kNN query. This is equivalent to calling {@link #queryKnn(double[], int)} for every
+     * query point, but avoids creating a new iterator for every query and can optionally process
+     * the queries in parallel in the common {@link java.util.concurrent.ForkJoinPool}.
+     * <p>
+     * The results for 'centers[i]' are written to 'values' and 'distances' at [i*k, (i+1)*k),
+     * ordered by distance. If fewer than 'k' entries are found, the remaining slots are set to
+     * 'null' and {@link Double#POSITIVE_INFINITY}.
+     * <p>
+     * Parallel queries must not overlap with any modifications of the index.
+     *
+     * @param centers   query points
+     * @param k         number of neighbors per query point
+     * @param values    Output: values of the nearest neighbors, length &gt;= centers.length * k
+     * @param distances Output: distances of the nearest neighbors, length &gt;= centers.length * k
+     * @param parallel  whether to process the queries in parallel
+     */
+    default void queryKnnBatch(double[][] centers, int k, T[] values, double[] distances, boolean parallel) {
+        KnnBatch.query(centers, k, values, distances, parallel, c -> queryKnn(c, k),
+                PointEntryKnn::value, PointEntryKnn::dist);
+    }
+
 
     interface Factory {
         /**
@@ -176,6 +252,45 @@ public interface PointMultimap<T> extends Index {
             return KDTree.create(cfg);
         }
 
+        /**
+         * Create a balanced kD-Tree by bulk loading the given entries.
+         *
+         * @param dims    Number of dimensions.
+         * @param entries All entries of the tree. Entries can be created with
+         *                {@link PointEntry#PointEntry(double[], Object)}
+         * @param <T>     Value type
+         * @return New bulk-loaded kD-Tree
+         */
+        static <T> PointMultimap<T> createAndLoadKdTree(int dims, PointEntry<T>[] entries) {
+            KDTree<T> tree = KDTree.create(dims);
+            tree.load(entries);
+            return tree;
+        }
+
+        /**
+         * Create a kD-Tree that stores coordinates, child references and values in flat arrays.
+         * This requires considerably less memory than {@link #createKdTree(int)}.
+         *
+         * @param dims Number of dimensions.
+         * @param <T>  Value type
+         * @return New kD-Tree
+         */
+        static <T> PointMultimap<T> createKdTreeFlat(int dims) {
+            return KDTreeFlat.create(dims);
+        }
+
+        /**
+         * Create a kD-Tree that stores coordinates as {@code float}. Keys are rounded to {@code float} precision.
+         * This requires roughly half the memory of {@link #createKdTreeFlat(int)}.
+         *
+         * @param dims Number of dimensions.
+         * @param <T>  Value type
+         * @return New kD-Tree
+         */
+        static <T> PointMultimap<T> createKdTreeFloat(int dims) {
+            return KDTreeF.create(dims);
+        }
+
         /**
          * Create a PH-Tree.
          *
@@ -268,6 +383,18 @@ public interface PointMultimap<T> extends Index {
             return QuadTreeKD2.create(dims, maxNodeCapacity, center, radius);
         }
 
+        /**
+         * Create a Quadtree with hypercube navigation that stores coordinates as {@code float}.
+         * Keys are rounded to {@code float} precision.
+         *
+         * @param dims Number of dimensions.
+         * @param <T>  Value type
+         * @return New QuadtreeHC2
+         */
+        static <T> PointMultimap<T> createQuadtreeHC2Float(int dims) {
+            return QuadTreeKD2F.create(dims);
+        }
+
         /**
          * Create an R*Tree.
          *
@@ -279,6 +406,31 @@ public interface PointMultimap<T> extends Index {
             return PointMultimapWrapper.create(RTree.createRStar(dims));
         }
 
+        /**
+         * Create an R*Tree. The configuration can be used to set the node sizes (fan-out),
+         * see {@link IndexConfig#setRTreeNodeMaxDir(int)} and {@link IndexConfig#setRTreeNodeMaxData(int)}.
+         *
+         * @param cfg Index configuration.
+         * @param <T> Value type
+         * @return New R*Tree
+         */
+        static <T> PointMultimap<T> createRStarTree(IndexConfig cfg) {
+            return PointMultimapWrapper.create(RTree.createRStar(cfg));
+        }
+
+        /**
+         * Create an R-Tree with the insertion and split strategy of the configuration, e.g. an RR*Tree
+         * for query-heavy or a linear R-Tree for update-heavy workloads,
+         * see {@link IndexConfig#setRTreeVariant(IndexConfig.RTreeVariant)}.
+         *
+         * @param cfg Index configuration.
+         * @param <T> Value type
+         * @return New R-Tree
+         */
+        static <T> PointMultimap<T> createRTree(IndexConfig cfg) {
+            return PointMultimapWrapper.create(RTree.create(cfg));
+        }
+
         /**
          * Create an STR-loaded R*Tree.
          *
@@ -293,5 +445,39 @@ public interface PointMultimap<T> extends Index {
             tree.load(entries);
             return PointMultimapWrapper.create(tree);
         }
+
+        /**
+         * Create an STR-loaded R*Tree. Sorting and node creation are executed in parallel
+         * on the common fork/join pool. The resulting tree is the same as with
+         * {@link #createAndLoadStrRTree(int, RTreeEntry[])}.
+         *
+         * @param dims    Number of dimensions.
+         * @param entries All entries of the tree. Entries can be created with
+         *                {@link RTreeEntry#createPoint(double[], Object)}
+         * @param <T>     Value type
+         * @return New STR-loaded R*Tree
+         */
+        static <T> PointMultimap<T> createAndLoadStrRTreeParallel(int dims, RTreeEntry<T>[] entries) {
+            RTree<T> tree = RTree.createRStar(dims);
+            tree.load(entries, true);
+            return PointMultimapWrapper.create(tree);
+        }
+
+        /**
+         * Create an R*Tree that is bulk-loaded by packing the entries in Hilbert order.
+         * Compared to {@link #createAndLoadStrRTree(int, RTreeEntry[])}, this results in less
+         * node overlap on clustered data.
+         *
+         * @param dims    Number of dimensions.
+         * @param entries All entries of the tree. Entries can be created with
+         *                {@link RTreeEntry#createPoint(double[], Object)}
+         * @param <T>     Value type
+         * @return New Hilbert-loaded R*Tree
+         */
+        static <T> PointMultimap<T> createAndLoadHilbertRTree(int dims, RTreeEntry<T>[] entries) {
+            RTree<T> tree = RTree.createRStar(dims);
+            tree.loadHilbert(entries);
+            return PointMultimapWrapper.create(tree);
+        }
     }
 }
\ No newline at end of file
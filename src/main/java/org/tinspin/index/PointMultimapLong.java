@@ -0,0 +1,226 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index;
+
+import org.tinspin.index.kdtree.KDTreeLong;
+import org.tinspin.index.qthypercube2.QuadTreeKD2Long;
+
+import java.util.PrimitiveIterator;
+import java.util.function.LongPredicate;
+
+/**
+ * A spatial multimap with point keys and primitive {@code long} values, for example row ids.
+ * <p>
+ * This is the counterpart of {@link PointMultimap} for {@code long} values. Values are stored without boxing
+ * and the iterators return them via {@link PrimitiveIterator.OfLong#nextLong()}. The key (and distance)
+ * of the entry that was returned last can be read from the iterator, so iterating does not create
+ * any objects per entry.
+ */
+public interface PointMultimapLong extends Index {
+
+    /**
+     * Insert a point.
+     *
+     * @param key   point
+     * @param value value
+     */
+    void insert(double[] key, long value);
+
+    /**
+     * Remove *one* entry with the given value.
+     *
+     * @param point the point
+     * @param value only entries with this value are removed
+     * @return `true` iff an entry was found and removed
+     */
+    boolean remove(double[] point, long value);
+
+    /**
+     * Remove *one* entry with the given condition.
+     *
+     * @param point     the point
+     * @param condition the condition on the value required for removing an entry
+     * @return `true` iff an entry was found and removed
+     */
+    boolean removeIf(double[] point, LongPredicate condition);
+
+    /**
+     * Update the position of an entry.
+     *
+     * @param oldPoint old position
+     * @param newPoint new position
+     * @param value    only entries with this value are updated
+     * @return `true` iff an entry was found and updated
+     */
+    boolean update(double[] oldPoint, double[] newPoint, long value);
+
+    /**
+     * Lookup an entry, using exact match.
+     *
+     * @param point the point
+     * @param value the value
+     * @return `true` if an entry was found, otherwise `false`.
+     */
+    boolean contains(double[] point, long value);
+
+    /**
+     * Lookup an entries at a given coordinate.
+     *
+     * @param point the point
+     * @return an iterator over all entries at the given point
+     */
+    PointIteratorLong queryExactPoint(double[] point);
+
+    /**
+     * @return An iterator over all entries.
+     */
+    PointIteratorLong iterator();
+
+    /**
+     * @param min Lower left corner of the query window
+     * @param max Upper right corner of the query window
+     * @return All points that lie inside the query rectangle.
+     */
+    PointIteratorLong query(double[] min, double[] max);
+
+    /**
+     * Finds the nearest neighbors. This uses Euclidean distance.
+     *
+     * @param center center point
+     * @param k      number of neighbors
+     * @return list of nearest neighbors
+     */
+    default PointIteratorKnnLong queryKnn(double[] center, int k) {
+        return queryKnn(center, k, PointDistance.L2);
+    }
+
+    /**
+     * Finds the nearest neighbors.
+     *
+     * @param center center point
+     * @param k      number of neighbors
+     * @param distFn the point distance function to be used
+     * @return list of nearest neighbors
+     */
+    PointIteratorKnnLong queryKnn(double[] center, int k, PointDistance distFn);
+
+    /**
+     * Finds the nearest neighbors that pass a filter. Entries that are rejected by the filter
+     * do not count towards 'k'.
+     *
+     * @param center   center point
+     * @param k        number of neighbors
+     * @param distFn   the point distance function to be used
+     * @param filterFn filter for entries
+     * @return list of nearest neighbors
+     * @see PointMultimap#queryKnn(double[], int, PointDistance, Index.PointFilterKnn)
+     */
+    PointIteratorKnnLong queryKnn(double[] center, int k, PointDistance distFn, LongFilterKnn filterFn);
+
+    /**
+     * Iterator over the results of a window query.
+     * {@link #point()} returns the key of the entry that was last returned by {@link #nextLong()}.
+     * {@link #next()} boxes the value and should be avoided.
+     */
+    interface PointIteratorLong extends PrimitiveIterator.OfLong {
+        /**
+         * @return a copy of the key of the current entry
+         */
+        default double[] point() {
+            return point(null);
+        }
+
+        /**
+         * @param buf an array to copy the key of the current entry to, or {@code null}
+         * @return 'buf' or a new array if 'buf' was {@code null}
+         */
+        double[] point(double[] buf);
+
+        /**
+         * Reset the iterator. This iterator can be reused in order to reduce load on the
+         * garbage collector.
+         *
+         * @param min lower left corner of query
+         * @param max upper right corner of query
+         * @return this.
+         */
+        PointIteratorLong reset(double[] min, double[] max);
+    }
+
+    /**
+     * Iterator over the results of a kNN query.
+     * {@link #point()} and {@link #dist()} refer to the entry that was last returned by {@link #nextLong()}.
+     * {@link #next()} boxes the value and should be avoided.
+     */
+    interface PointIteratorKnnLong extends PrimitiveIterator.OfLong {
+        /**
+         * @return a copy of the key of the current entry
+         */
+        default double[] point() {
+            return point(null);
+        }
+
+        /**
+         * @param buf an array to copy the key of the current entry to, or {@code null}
+         * @return 'buf' or a new array if 'buf' was {@code null}
+         */
+        double[] point(double[] buf);
+
+        /**
+         * @return the distance of the current entry
+         */
+        double dist();
+
+        /**
+         * Reset the iterator. This iterator can be reused in order to reduce load on the
+         * garbage collector.
+         *
+         * @param center center point
+         * @param k      number of neighbors
+         * @return this.
+         */
+        PointIteratorKnnLong reset(double[] center, int k);
+    }
+
+    @FunctionalInterface
+    interface LongFilterKnn {
+        boolean test(long value, double distance);
+    }
+
+    interface Factory {
+        /**
+         * Create a kD-Tree that stores coordinates, child references and values in flat arrays.
+         *
+         * @param dims Number of dimensions.
+         * @return New kD-Tree
+         */
+        static PointMultimapLong createKdTree(int dims) {
+            return KDTreeLong.create(dims);
+        }
+
+        /**
+         * Create a Quadtree with hypercube navigation.
+         *
+         * @param dims Number of dimensions.
+         * @return New QuadtreeHC2
+         */
+        static PointMultimapLong createQuadtreeHC2(int dims) {
+            return QuadTreeKD2Long.create(dims);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes and reads the values of an index when it is saved with {@code save(...)} and
+ * restored with {@code load(...)}.
+ * <p>
+ * The predefined codecs do not accept {@code null}, use {@link #nullable()} for indexes
+ * that contain {@code null} values.
+ *
+ * @param <T> value type
+ */
+public interface ValueCodec<T> {
+
+	/** Codec for {@link Integer} values. */
+	ValueCodec<Integer> INTEGER = of(DataOutput::writeInt, DataInput::readInt);
+	/** Codec for {@link Long} values. */
+	ValueCodec<Long> LONG = of(DataOutput::writeLong, DataInput::readLong);
+	/** Codec for {@link Double} values. */
+	ValueCodec<Double> DOUBLE = of(DataOutput::writeDouble, DataInput::readDouble);
+	/** Codec for {@link String} values, strings are limited to 65535 bytes in modified UTF-8. */
+	ValueCodec<String> STRING = of(DataOutput::writeUTF, DataInput::readUTF);
+
+	/**
+	 * @param out   output
+	 * @param value the value
+	 * @throws IOException if writing fails
+	 */
+	void write(DataOutput out, T value) throws IOException;
+
+	/**
+	 * @param in input
+	 * @return the value
+	 * @throws IOException if reading fails
+	 */
+	T read(DataInput in) throws IOException;
+
+	/**
+	 * @return a codec that accepts {@code null} values and delegates all other values to this codec.
+	 */
+	default ValueCodec<T> nullable() {
+		ValueCodec<T> codec = this;
+		return new ValueCodec<T>() {
+			@Override
+			public void write(DataOutput out, T value) throws IOException {
+				out.writeBoolean(value != null);
+				if (value != null) {
+					codec.write(out, value);
+				}
+			}
+
+			@Override
+			public T read(DataInput in) throws IOException {
+				return in.readBoolean() ? codec.read(in) : null;
+			}
+		};
+	}
+
+	@FunctionalInterface
+	interface Writer<T> {
+		void write(DataOutput out, T value) throws IOException;
+	}
+
+	@FunctionalInterface
+	interface Reader<T> {
+		T read(DataInput in) throws IOException;
+	}
+
+	/**
+	 * @param writer writes a value
+	 * @param reader reads a value
+	 * @return a codec
+	 * @param <T> value type
+	 */
+	static <T> ValueCodec<T> of(Writer<? super T> writer, Reader<? extends T> reader) {
+		return new ValueCodec<T>() {
+			@Override
+			public void write(DataOutput out, T value) throws IOException {
+				writer.write(out, value);
+			}
+
+			@Override
+			public T read(DataInput in) throws IOException {
+				return reader.read(in);
+			}
+		};
+	}
+}
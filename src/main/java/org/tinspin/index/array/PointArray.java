@@ -123,6 +123,11 @@ public class PointArray<T> implements PointMap<T>, PointMultimap<T> {
 		return it.hasNext() ? it.next() : null;
 	}
 
+	@Override
+	public void queryKnnBatch(double[][] centers, int k, T[] values, double[] distances, boolean parallel) {
+		PointMap.super.queryKnnBatch(centers, k, values, distances, parallel);
+	}
+
 	private class AQueryIterator implements PointIterator<T> {
 
     	private Iterator<PointEntry<T>> it;
@@ -171,6 +176,11 @@ public class PointArray<T> implements PointMap<T>, PointMultimap<T> {
 		return null;
 	}
 
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn, PointFilterKnn<T> filterFn) {
+		return PointMap.super.queryKnn(center, k, distFn, filterFn);
+	}
+
 
 	private class AQueryIteratorKnn implements PointIteratorKnn<T> {
 
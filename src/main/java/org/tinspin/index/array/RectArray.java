@@ -177,7 +177,7 @@ public class RectArray<T> implements BoxMap<T>, BoxMultimap<T> {
 		return new BoxIteratorWrapper<>(min, max, (lower, upper) -> {
 			ArrayList<BoxEntry<T>> results = new ArrayList<>();
 			for (int i = 0; i < N; i++) {
-				if (leq(phc[i*2], upper) && geq(phc[i*2+1], lower)) {
+				if (phc[i*2] != null && leq(phc[i*2], upper) && geq(phc[i*2+1], lower)) {
 					results.add(values[i]);
 				}
 			}
@@ -207,6 +207,11 @@ public class RectArray<T> implements BoxMap<T>, BoxMultimap<T> {
 		return null;
 	}
 
+	@Override
+	public BoxIteratorKnn<T> queryKnn(double[] center, int k, BoxDistance distFn, BoxFilterKnn<T> filterFn) {
+		return BoxMap.super.queryKnn(center, k, distFn, filterFn);
+	}
+
 
 	private class AQueryIteratorKnn implements BoxIteratorKnn<T> {
 
@@ -17,13 +17,22 @@
  */
 package org.tinspin.index.covertree;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
+import org.tinspin.index.IndexMetrics;
 import org.tinspin.index.PointDistance;
 import org.tinspin.index.PointMap;
 import org.tinspin.index.Stats;
+import org.tinspin.index.ValueCodec;
+import org.tinspin.index.util.IndexIO;
 
 
 /**
@@ -72,6 +81,11 @@ public class CoverTree<T> implements PointMap<T> {
 	private static final double DEFAULT_BASE = 2.0;
 	
 	private static final boolean NEAREST_ANCESTOR = true;
+
+	// Distance function identifiers for save() and load()
+	private static final int DIST_CUSTOM = 0;
+	private static final int DIST_L1 = 1;
+	private static final int DIST_L2 = 2;
 	
 	private final double BASE;
 	private final double LOG_BASE;
@@ -80,6 +94,7 @@ public class CoverTree<T> implements PointMap<T> {
 	private long nDistCalc = 0;
 	private long nDist1NN = 0;
 	private long nDistKNN = 0;
+	private IndexMetrics metrics = IndexMetrics.NONE;
 	
 	private final double log13(double n) {
 		//log_b(n) = log_e(n) / log_e(b)
@@ -146,12 +161,90 @@ public class CoverTree<T> implements PointMap<T> {
 
 		return tree;
 	}
+
+	/**
+	 * Write the tree, including its node structure, to a stream.
+	 * The distance function is not written, see {@link #load(InputStream, ValueCodec, PointDistance)}.
+	 * @param out the stream, it is flushed but not closed
+	 * @param codec codec for the values
+	 * @throws IOException if writing fails
+	 * @see #load(InputStream, ValueCodec)
+	 */
+	public void save(OutputStream out, ValueCodec<? super T> codec) throws IOException {
+		DataOutputStream dos = IndexIO.writeHeader(out, "CoverTree", dims);
+		dos.writeDouble(BASE);
+		dos.writeByte(dist == PointDistance.L1 ? DIST_L1 : (dist == PointDistance.L2 ? DIST_L2 : DIST_CUSTOM));
+		dos.writeInt(nEntries);
+		dos.writeBoolean(root != null);
+		if (root != null) {
+			root.write(dos, codec);
+		}
+		dos.flush();
+	}
+
+	/**
+	 * Read a tree that was written with {@link #save(OutputStream, ValueCodec)}.
+	 * The tree must use {@link PointDistance#L1} or {@link PointDistance#L2}.
+	 * @param in the stream, it should be buffered
+	 * @param codec codec for the values
+	 * @return the tree
+	 * @param <T> value type
+	 * @throws IOException if reading fails or if the stream does not contain a CoverTree with L1 or L2 distance
+	 */
+	public static <T> CoverTree<T> load(InputStream in, ValueCodec<? extends T> codec) throws IOException {
+		return load(in, codec, null);
+	}
+
+	/**
+	 * Read a tree that was written with {@link #save(OutputStream, ValueCodec)}.
+	 * The nodes are restored as they were written, there is no re-insertion.
+	 * @param in the stream, it should be buffered
+	 * @param codec codec for the values
+	 * @param dist the distance function of the saved tree, or {@code null} for L1 or L2
+	 * @return the tree
+	 * @param <T> value type
+	 * @throws IOException if reading fails or if the stream does not contain a CoverTree
+	 */
+	public static <T> CoverTree<T> load(InputStream in, ValueCodec<? extends T> codec, PointDistance dist)
+			throws IOException {
+		DataInputStream dis = IndexIO.readHeader(in, "CoverTree");
+		int dims = IndexIO.readDims(dis);
+		double base = dis.readDouble();
+		int distType = dis.readByte();
+		if (dist == null) {
+			if (distType == DIST_CUSTOM) {
+				throw new IOException("The tree uses a custom distance function, it must be passed to load()");
+			}
+			dist = distType == DIST_L1 ? PointDistance.L1 : PointDistance.L2;
+		}
+		CoverTree<T> tree = new CoverTree<>(dims, base, dist);
+		tree.nEntries = dis.readInt();
+		if (dis.readBoolean()) {
+			tree.root = Node.read(dis, codec, dims);
+		}
+		return tree;
+	}
 	
 	@Override
 	public int getDims() {
 		return dims;
 	}
 
+	/**
+	 * Reports node visits and scanned entries of window queries and nearest neighbor queries.
+	 * Every node holds exactly one entry, so both counters grow by one per visited node.
+	 * @param metrics the receiver
+	 */
+	@Override
+	public void setMetrics(IndexMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	private void countVisit() {
+		metrics.count(IndexMetrics.Counter.NODE_VISITS, 1);
+		metrics.count(IndexMetrics.Counter.ENTRIES_SCANNED, 1);
+	}
+
 	@Override
 	public int size() {
 		return nEntries;
@@ -227,24 +320,32 @@ public class CoverTree<T> implements PointMap<T> {
 	@Override
 	public void insert(double[] key, T value) {
 		//System.out.println("Inserting(" + nEntries + "): " + Arrays.toString(key));
-		Node<T> x = new Node<>(new PointEntry<>(key, value), -1);
+		insert(new Node<>(new PointEntry<>(key, value), -1));
+		nEntries++;
+	}
+
+	/**
+	 * Insert a node without children. This is used for new nodes and for re-insertion
+	 * of nodes after removal of their parent.
+	 * @param x a node without children
+	 */
+	private void insert(Node<T> x) {
 		if (root == null) {
 			root = x.initLevel(0);
-			nEntries++;
 			return;
 		}
 		if (!root.hasChildren()) {
 			double dist = d(root, x);
-			//initialize levels from current distance
-			int level = (int) log13(dist);
+			//initialize levels from current distance.
+			//For duplicates we keep the root's level, log13(0) would result in
+			//a level close to Integer.MIN_VALUE.
+			int level = dist > 0 ? (int) log13(dist) : root.getLevel() - 1;
 			root.setLevel(level + 1);
 			Node<T> q = x.initLevel(level);
 			root.addChild(q, dist);
-			nEntries++;
 			return;
 		}
 		insert(root, x);
-		nEntries++;
 	}
 	
 	private void insert(Node<T> p, Node<T> x) {
@@ -664,16 +765,119 @@ public class CoverTree<T> implements PointMap<T> {
 	
 	@Override
 	public T remove(double[] point) {
-		// TODO Auto-generated method stub
-		throw new UnsupportedOperationException();
-		//return null;
+		PointEntry<T> e = removeNode(point);
+		return e == null ? null : e.value();
+	}
+
+	/**
+	 * Removal of a node 'x' orphans all descendants of 'x'. Moving a whole
+	 * subtree to another parent would require checking the separation and
+	 * nearest-ancestor invariants for every node in the subtree, so we simply
+	 * re-insert all descendants one by one. For leaves (the vast majority of nodes)
+	 * nothing needs to be re-inserted, however, removing the root requires
+	 * rebuilding the whole tree. This can also be slow for large trees with
+	 * many duplicates.
+	 * <p>
+	 * Duplicates form chains of children with distance 0. Instead of removing the
+	 * top of such a chain, we move the entries up by one node and remove the
+	 * last node of the chain.
+	 * @param point the point to remove
+	 * @return the removed entry or 'null' if the point was not found.
+	 */
+	private PointEntry<T> removeNode(double[] point) {
+		if (root == null) {
+			return null;
+		}
+		ArrayList<Node<T>> path = new ArrayList<>();
+		if (!findPath(root, point, d(root.point(), point), path)) {
+			return null;
+		}
+		Node<T> x = path.get(path.size() - 1);
+		PointEntry<T> removed = x.point();
+		Node<T> dupl;
+		while ((dupl = findDuplicateChild(x)) != null) {
+			x.setPoint(dupl.point());
+			path.add(dupl);
+			x = dupl;
+		}
+		double maxDistX = x.hasChildren() ? x.maxdist(this) : 0;
+		ArrayList<Node<T>> orphans = new ArrayList<>();
+		x.clearAndRemoveAllChildren(orphans);
+		if (x == root) {
+			root = null;
+		} else {
+			Node<T> parent = path.get(path.size() - 2);
+			ArrayList<Node<T>> siblings = parent.getChildren();
+			for (int i = 0; i < siblings.size(); i++) {
+				if (siblings.get(i) == x) {
+					parent.removeChild(i);
+					break;
+				}
+			}
+			//Invalidate maxdist of ancestors that may have been defined by the removed subtree
+			for (int i = 0; i < path.size() - 1; i++) {
+				Node<T> a = path.get(i);
+				if (a.maxdistInternal() != -1 && d(a, x) + maxDistX >= a.maxdistInternal()) {
+					a.invalidateMaxDist();
+				}
+			}
+		}
+		nEntries--;
+		//Re-inserting from the top level down avoids frequent rebuilding of the root
+		orphans.sort((n1, n2) -> Integer.compare(n2.getLevel(), n1.getLevel()));
+		for (int i = 0; i < orphans.size(); i++) {
+			insert(orphans.get(i));
+		}
+		return removed;
+	}
+
+	private static <T> Node<T> findDuplicateChild(Node<T> x) {
+		if (x.hasChildren()) {
+			ArrayList<Node<T>> children = x.getChildren();
+			for (int i = 0; i < children.size(); i++) {
+				if (children.get(i).getDistanceToParent() == 0) {
+					return children.get(i);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Find the node with the given point.
+	 * @param p current node
+	 * @param x point to search
+	 * @param distPX distance between 'p' and 'x'
+	 * @param path Output: the path from the root to the node with 'x'
+	 * @return 'true' if 'x' was found
+	 */
+	private boolean findPath(Node<T> p, double[] x, double distPX, ArrayList<Node<T>> path) {
+		path.add(p);
+		if (Arrays.equals(p.point().point(), x)) {
+			return true;
+		}
+		if (p.hasChildren() && distPX <= p.maxdist(this)) {
+			ArrayList<Node<T>> children = p.getChildren();
+			for (int i = 0; i < children.size(); i++) {
+				Node<T> q = children.get(i);
+				if (findPath(q, x, d(q.point(), x), path)) {
+					return true;
+				}
+			}
+		}
+		path.remove(path.size() - 1);
+		return false;
 	}
 
 	@Override
 	public T update(double[] oldPoint, double[] newPoint) {
-		// TODO Auto-generated method stub
-		throw new UnsupportedOperationException();
-		//return null;
+		PointEntry<T> e = removeNode(oldPoint);
+		if (e == null) {
+			return null;
+		}
+		T value = e.value();
+		insert(newPoint, value);
+		return value;
 	}
 
 	@Override
@@ -707,16 +911,18 @@ public class CoverTree<T> implements PointMap<T> {
 
 	@Override
 	public PointIterator<T> iterator() {
-		// TODO Auto-generated method stub
-		throw new UnsupportedOperationException();
-		//return null;
+		return new CTIterator<>(this).reset(null, null);
 	}
 
+	/**
+	 * Window query. Subtrees are pruned if the distance between the subtree's
+	 * root point and the closest point in the query window is larger than
+	 * the subtree's 'maxdist'. This requires a distance function that is
+	 * monotone per dimension, such as L1 or L2.
+	 */
 	@Override
 	public PointIterator<T> query(double[] min, double[] max) {
-		// TODO Auto-generated method stub
-		throw new UnsupportedOperationException();
-		//return null;
+		return new CTIterator<>(this).reset(min, max);
 	}
 	
 	@Override
@@ -744,6 +950,7 @@ public class CoverTree<T> implements PointMap<T> {
 //		4: if d(y;x) > d(y;q)-maxdist(q) then
 //		5: y findNearestNeighbor(q;x;y)
 //		6: return y
+		countVisit();
 		if (distPX < y.dist()) {
 			y.set(p.point(), distPX);
 		}
@@ -773,14 +980,28 @@ public class CoverTree<T> implements PointMap<T> {
 
 	@Override
 	public PointIteratorKnn<T> queryKnn(double[] center, int k) {
-		return new KNNIterator<>(this).reset(center, k);
+		return new KNNIterator<>(this, (e, d) -> true).reset(center, k);
 		//The kNN search above is consistently 2x faster so we use it instead of
 		//the Hjaltason/Samet algorithm below.
 		//return new CoverTreeQueryKnn<>(this, center, k, dist);
 	}
 
-	private void findNearestNeighbor(Node<T> p, double[] x,
-									 int k, ArrayList<PointEntryKnn<T>> candidates, double distPX) {
+	/**
+	 * Filtered kNN query, the filter is applied during the traversal.
+	 * @param distFn The distance function, this must be the distance function of the tree.
+	 * @see PointMap#queryKnn(double[], int, PointDistance, PointFilterKnn)
+	 */
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn, PointFilterKnn<T> filterFn) {
+		if (distFn != dist) {
+			throw new IllegalArgumentException("The distance function must be the one used by the tree: "
+					+ PointDistance.getName(dist));
+		}
+		return new KNNIterator<>(this, filterFn).reset(center, k);
+	}
+
+	private void findNearestNeighbor(Node<T> p, double[] x, int k, ArrayList<PointEntryKnn<T>> candidates,
+									 double distPX, PointFilterKnn<T> filterFn) {
 //		Algorithm 1 Find nearest neighbor
 //		function findNearestNeighbor(cover tree p, query
 //		point x, nearest neighbor so far y)
@@ -790,12 +1011,12 @@ public class CoverTree<T> implements PointMap<T> {
 //		4: if d(y;x) > d(y;q)-maxdist(q) then
 //		5: y findNearestNeighbor(q;x;y)
 //		6: return y
+		countVisit();
 		PointEntry<T> nn = p.point();
-		if (candidates.size() < k) {
-			candidates.add(new PointEntryKnn<>(nn.point(), nn.value(), distPX));
-			candidates.sort(comparator);
-		} else if (distPX < candidates.get(k-1).dist()) {
-			candidates.remove(k-1);
+		if ((candidates.size() < k || distPX < candidates.get(k-1).dist()) && filterFn.test(nn, distPX)) {
+			if (candidates.size() >= k) {
+				candidates.remove(k-1);
+			}
 			candidates.add(new PointEntryKnn<>(nn.point(), nn.value(), distPX));
 			candidates.sort(comparator);
 		}
@@ -804,7 +1025,9 @@ public class CoverTree<T> implements PointMap<T> {
 			ArrayList<Node<T>> children = p.getChildren();
 			for (int i = 0; i < children.size(); i++) {
 				Node<T> q = children.get(i);
-				double distCurrentWorst = candidates.get(candidates.size() - 1).dist();
+				//Don't prune anything as long as we have fewer than 'k' candidates
+				double distCurrentWorst = candidates.size() < k ?
+						Double.POSITIVE_INFINITY : candidates.get(k - 1).dist();
 				
 				//Exclude children that are (compared to x) too close to the node or too far away
 				//to contain any useful points.
@@ -821,7 +1044,7 @@ public class CoverTree<T> implements PointMap<T> {
 				double distQX = d(q.point(), x);
 				nDistKNN++;
 				if (distCurrentWorst > (distQX - q.maxdist(this))) {
-					findNearestNeighbor(q, x, k, candidates, distQX);
+					findNearestNeighbor(q, x, k, candidates, distQX, filterFn);
 				}
 			}
 		}
@@ -830,11 +1053,13 @@ public class CoverTree<T> implements PointMap<T> {
 	private static class KNNIterator<T> implements PointIteratorKnn<T> {
 
 		private final CoverTree<T> tree;
+		private final PointFilterKnn<T> filterFn;
 		private final ArrayList<PointEntryKnn<T>> result = new ArrayList<>();
 		private Iterator<PointEntryKnn<T>> iter;
 		
-		public KNNIterator(CoverTree<T> tree) {
+		public KNNIterator(CoverTree<T> tree, PointFilterKnn<T> filterFn) {
 			this.tree = tree;
+			this.filterFn = filterFn;
 		}
 		
 		@Override
@@ -853,13 +1078,97 @@ public class CoverTree<T> implements PointMap<T> {
 			if (tree.root != null) {
 				double distPX = tree.d(tree.root.point(), center);
 				tree.nDistKNN++;
-				tree.findNearestNeighbor(tree.root, center, k, result, distPX);
+				tree.findNearestNeighbor(tree.root, center, k, result, distPX, filterFn);
 			}
 			iter = result.iterator();
 			return this;
 		}	
 	}
 	
+	private static class CTIterator<T> implements PointIterator<T> {
+
+		private final CoverTree<T> tree;
+		private final ArrayList<Node<T>> stack = new ArrayList<>();
+		private final double[] buf;
+		private double[] min;
+		private double[] max;
+		private PointEntry<T> next;
+
+		CTIterator(CoverTree<T> tree) {
+			this.tree = tree;
+			this.buf = new double[tree.dims];
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public PointEntry<T> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			PointEntry<T> ret = next;
+			findNext();
+			return ret;
+		}
+
+		/**
+		 * Reset the iterator. If 'min' and 'max' are 'null', the iterator
+		 * returns all entries.
+		 * @param min lower left corner of query window
+		 * @param max upper right corner of query window
+		 * @return this iterator
+		 */
+		@Override
+		public PointIterator<T> reset(double[] min, double[] max) {
+			this.min = min;
+			this.max = max;
+			stack.clear();
+			if (tree.root != null) {
+				stack.add(tree.root);
+			}
+			findNext();
+			return this;
+		}
+
+		private void findNext() {
+			while (!stack.isEmpty()) {
+				Node<T> node = stack.remove(stack.size() - 1);
+				tree.countVisit();
+				if (node.hasChildren() && overlapsSubtree(node)) {
+					stack.addAll(node.getChildren());
+				}
+				if (min == null || isInWindow(node.point().point())) {
+					next = node.point();
+					return;
+				}
+			}
+			next = null;
+		}
+
+		private boolean isInWindow(double[] p) {
+			for (int d = 0; d < p.length; d++) {
+				if (p[d] < min[d] || p[d] > max[d]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean overlapsSubtree(Node<T> node) {
+			if (min == null) {
+				return true;
+			}
+			double[] p = node.point().point();
+			for (int d = 0; d < buf.length; d++) {
+				buf[d] = Math.max(min[d], Math.min(max[d], p[d]));
+			}
+			return tree.d(node.point(), buf) <= node.maxdist(tree);
+		}
+	}
+
 	double d(PointEntry<?> x, PointEntry<?> y) {
 		return d(x, y.point());
 	}
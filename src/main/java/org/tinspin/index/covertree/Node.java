@@ -17,8 +17,14 @@
  */
 package org.tinspin.index.covertree;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 
+import org.tinspin.index.ValueCodec;
+import org.tinspin.index.util.IndexIO;
+
 import static org.tinspin.index.Index.*;
 
 public class Node<T> {
@@ -43,6 +49,10 @@ public class Node<T> {
 	PointEntry<T> point() {
 		return p;
 	}
+
+	void setPoint(PointEntry<T> p) {
+		this.p = p;
+	}
 	
 	void setDistanceToParent(double d) {
 		this.distToParent = d;
@@ -165,6 +175,35 @@ public class Node<T> {
 		}		
 	}
 
+	void write(DataOutput out, ValueCodec<? super T> codec) throws IOException {
+		IndexIO.writePoint(out, p.point());
+		codec.write(out, p.value());
+		out.writeInt(level);
+		out.writeDouble(distToParent);
+		// maxDist is calculated lazily, an invalid (-1) value is restored as such
+		out.writeDouble(maxDist);
+		int nChildren = children == null ? 0 : children.size();
+		out.writeInt(nChildren);
+		for (int i = 0; i < nChildren; i++) {
+			children.get(i).write(out, codec);
+		}
+	}
+
+	static <T> Node<T> read(DataInput in, ValueCodec<? extends T> codec, int dims) throws IOException {
+		double[] point = IndexIO.readPoint(in, dims);
+		Node<T> node = new Node<>(new PointEntry<>(point, codec.read(in)), in.readInt());
+		node.distToParent = in.readDouble();
+		node.maxDist = in.readDouble();
+		int nChildren = in.readInt();
+		if (nChildren > 0) {
+			node.children = new ArrayList<>(nChildren);
+			for (int i = 0; i < nChildren; i++) {
+				node.children.add(read(in, codec, dims));
+			}
+		}
+		return node;
+	}
+
 	void clearAndRemoveAllChildren(ArrayList<Node<T>> clearedChildren) {
 		if (hasChildren()) {
 			for (int i = 0; i < children.size(); i++) {
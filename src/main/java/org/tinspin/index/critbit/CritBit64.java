@@ -687,7 +687,7 @@ public class CritBit64<V> implements Iterable<V> {
 				return this;
 			}
 			Node<V> n = info.root;
-			if (!checkMatch(info.rootKey, n.posDiff-1)) {
+			if (n.posDiff > 0 && !checkMatch(info.rootKey, n.posDiff-1)) {
 				hasNext = false;
 				return this;
 			}
@@ -866,7 +866,7 @@ public class CritBit64<V> implements Iterable<V> {
 				return this;
 			}
 			Node<V> n = info.root;
-			if (!checkMatch(info.rootKey, n.posDiff-1)) {
+			if (n.posDiff > 0 && !checkMatch(info.rootKey, n.posDiff-1)) {
 				hasNext = false;
 				return this;
 			}
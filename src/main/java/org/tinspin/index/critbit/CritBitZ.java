@@ -0,0 +1,635 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.critbit;
+
+import java.util.*;
+
+import org.tinspin.index.PointDistance;
+import org.tinspin.index.PointMap;
+import org.tinspin.index.Stats;
+import org.tinspin.index.util.StringBuilderLn;
+
+/**
+ * A point index for low dimensional data (1 to 4 dimensions) that stores all points in a
+ * {@link CritBit64}, using a single z-order (Morton) key per point.
+ * <p>
+ * Key encoding: for 1D, the key is the sortable 64 bit representation of the coordinate,
+ * see {@link BitTools#toSortableLong(double)}. For 2D to 4D every coordinate is converted to the
+ * sortable 32 bit representation of a {@code float}, of which the highest {@code 64/dims} bits are
+ * interleaved into the key (dimension 0 is the highest bit). In 2D this means that every
+ * coordinate keeps full {@code float} precision.
+ * <p>
+ * Points that are mapped to the same key are stored in a bucket. The original coordinates are
+ * stored unmodified, i.e. all queries return exact results.
+ * <p>
+ * Window queries are decomposed into up to {@link #MAX_RANGES} z-order ranges (BIGMIN/LITMAX), every
+ * range is queried on the crit-bit tree and the results are filtered. kNN queries perform window
+ * queries with increasing size until the window is guaranteed to contain the k nearest neighbors.
+ *
+ * @param <T> Value type
+ */
+public class CritBitZ<T> implements PointMap<T> {
+
+	/** Maximum number of z-order ranges per window query. */
+	public static final int MAX_RANGES = 64;
+	private static final int MAX_DIMS = 4;
+
+	private final int dims;
+	private final int bitsPerDim;
+	// Values are buckets: either a single PointEntry or a PointEntry[]
+	private CritBit64<Object> cb = CritBit64.create();
+	private int size = 0;
+	private long nDistKNN = 0;
+	// Bounding box of all points ever inserted, this is used to estimate the initial kNN window.
+	private final double[] bbMin;
+	private final double[] bbMax;
+
+	private CritBitZ(int dims) {
+		if (dims < 1 || dims > MAX_DIMS) {
+			throw new IllegalArgumentException(
+					"Dimensions must be between 1 and " + MAX_DIMS + " but was " + dims);
+		}
+		this.dims = dims;
+		this.bitsPerDim = 64 / dims;
+		this.bbMin = new double[dims];
+		this.bbMax = new double[dims];
+		Arrays.fill(bbMin, Double.POSITIVE_INFINITY);
+		Arrays.fill(bbMax, Double.NEGATIVE_INFINITY);
+	}
+
+	/**
+	 * @param dims number of dimensions, must be between 1 and 4.
+	 * @return New CritBitZ
+	 * @param <T> Value type
+	 */
+	public static <T> CritBitZ<T> create(int dims) {
+		return new CritBitZ<>(dims);
+	}
+
+	/**
+	 * @param v coordinate
+	 * @return the grid cell of the coordinate. The ordering of cells is consistent with the ordering
+	 * of coordinates, i.e. {@code v1 <= v2} implies {@code cell(v1) <= cell(v2)}.
+	 */
+	private long cell(double v) {
+		// Convert -0.0 to 0.0
+		v += 0.0;
+		if (dims == 1) {
+			return BitTools.toSortableLong(v) ^ Long.MIN_VALUE;
+		}
+		long sortable = BitTools.toSortableLong((float) v) ^ Integer.MIN_VALUE;
+		return (sortable & 0xFFFFFFFFL) >>> (32 - bitsPerDim);
+	}
+
+	private long zKey(long[] cells) {
+		long key = 0;
+		for (int b = bitsPerDim - 1; b >= 0; b--) {
+			for (int d = 0; d < dims; d++) {
+				key = (key << 1) | ((cells[d] >>> b) & 1L);
+			}
+		}
+		return key;
+	}
+
+	private long zKey(double[] point) {
+		long[] cells = new long[dims];
+		for (int d = 0; d < dims; d++) {
+			cells[d] = cell(point[d]);
+		}
+		return zKey(cells);
+	}
+
+	/**
+	 * The z-keys are unsigned while {@link CritBit64} queries use signed comparison,
+	 * so we flip the highest bit.
+	 */
+	private static long toCB(long zKey) {
+		return zKey ^ Long.MIN_VALUE;
+	}
+
+	@Override
+	public void insert(double[] key, T value) {
+		long z = toCB(zKey(key));
+		PointEntry<T> e = new PointEntry<>(key, value);
+		Object bucket = cb.get(z);
+		if (bucket == null) {
+			cb.put(z, e);
+			size++;
+		} else if (bucket instanceof PointEntry) {
+			PointEntry<T> e0 = asEntry(bucket);
+			if (isEqual(e0.point(), key)) {
+				cb.put(z, e);
+			} else {
+				cb.put(z, new PointEntry<?>[]{e0, e});
+				size++;
+			}
+		} else {
+			PointEntry<T>[] entries = asArray(bucket);
+			int pos = find(entries, key);
+			if (pos >= 0) {
+				entries[pos] = e;
+			} else {
+				PointEntry<T>[] entries2 = Arrays.copyOf(entries, entries.length + 1);
+				entries2[entries.length] = e;
+				cb.put(z, entries2);
+				size++;
+			}
+		}
+		for (int d = 0; d < dims; d++) {
+			bbMin[d] = Math.min(bbMin[d], key[d]);
+			bbMax[d] = Math.max(bbMax[d], key[d]);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> PointEntry<T> asEntry(Object bucket) {
+		return (PointEntry<T>) bucket;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T> PointEntry<T>[] asArray(Object bucket) {
+		return (PointEntry<T>[]) bucket;
+	}
+
+	private static int bucketSize(Object bucket) {
+		return bucket instanceof PointEntry ? 1 : ((PointEntry<?>[]) bucket).length;
+	}
+
+	private static boolean isEqual(double[] p1, double[] p2) {
+		for (int d = 0; d < p1.length; d++) {
+			if (p1[d] != p2[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static <T> int find(PointEntry<T>[] entries, double[] point) {
+		for (int i = 0; i < entries.length; i++) {
+			if (isEqual(entries[i].point(), point)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private PointEntry<T> getEntry(double[] point) {
+		Object bucket = cb.get(toCB(zKey(point)));
+		if (bucket == null) {
+			return null;
+		}
+		if (bucket instanceof PointEntry) {
+			PointEntry<T> e = asEntry(bucket);
+			return isEqual(e.point(), point) ? e : null;
+		}
+		PointEntry<T>[] entries = asArray(bucket);
+		int pos = find(entries, point);
+		return pos >= 0 ? entries[pos] : null;
+	}
+
+	@Override
+	public T remove(double[] point) {
+		long z = toCB(zKey(point));
+		Object bucket = cb.get(z);
+		if (bucket == null) {
+			return null;
+		}
+		if (bucket instanceof PointEntry) {
+			PointEntry<T> e = asEntry(bucket);
+			if (!isEqual(e.point(), point)) {
+				return null;
+			}
+			cb.remove(z);
+			size--;
+			return e.value();
+		}
+		PointEntry<T>[] entries = asArray(bucket);
+		int pos = find(entries, point);
+		if (pos < 0) {
+			return null;
+		}
+		T value = entries[pos].value();
+		if (entries.length == 2) {
+			cb.put(z, entries[1 - pos]);
+		} else {
+			PointEntry<T>[] entries2 = Arrays.copyOf(entries, entries.length - 1);
+			if (pos < entries2.length) {
+				entries2[pos] = entries[entries.length - 1];
+			}
+			cb.put(z, entries2);
+		}
+		size--;
+		return value;
+	}
+
+	@Override
+	public T update(double[] oldPoint, double[] newPoint) {
+		PointEntry<T> e = getEntry(oldPoint);
+		if (e == null) {
+			return null;
+		}
+		remove(oldPoint);
+		insert(newPoint, e.value());
+		return e.value();
+	}
+
+	@Override
+	public boolean contains(double[] point) {
+		return getEntry(point) != null;
+	}
+
+	@Override
+	public T queryExact(double[] point) {
+		PointEntry<T> e = getEntry(point);
+		return e == null ? null : e.value();
+	}
+
+	@Override
+	public PointIterator<T> iterator() {
+		return new ZIterator<>(this, null, null);
+	}
+
+	@Override
+	public PointIterator<T> query(double[] min, double[] max) {
+		return new ZIterator<>(this, min, max);
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k) {
+		return new ZIteratorKnn<>(this, center, k, (e, d) -> true);
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn, PointFilterKnn<T> filterFn) {
+		if (distFn != PointDistance.L2) {
+			return PointMap.super.queryKnn(center, k, distFn, filterFn);
+		}
+		return new ZIteratorKnn<>(this, center, k, filterFn);
+	}
+
+	/**
+	 * Decompose a window query into z-order ranges. This recursively splits the query box at the highest
+	 * bit where the z-keys of the lower and upper corner differ (i.e. at LITMAX/BIGMIN) until the
+	 * ranges match the box exactly or until the maximum number of ranges is reached.
+	 * @param lo lower corner cells, modified during recursion
+	 * @param hi upper corner cells, modified during recursion
+	 * @param ranges Output: pairs of (min, max) z-keys, sorted
+	 */
+	private void decompose(long[] lo, long[] hi, ArrayList<long[]> ranges) {
+		long zLo = zKey(lo);
+		long zHi = zKey(hi);
+		if (zLo == zHi) {
+			ranges.add(new long[]{zLo, zHi});
+			return;
+		}
+		int hb = 63 - Long.numberOfLeadingZeros(zLo ^ zHi);
+		long suffix = hb == 63 ? -1L : (1L << (hb + 1)) - 1;
+		if ((zLo & suffix) == 0 && (zHi & suffix) == suffix) {
+			// The range contains only cells inside the box
+			ranges.add(new long[]{zLo, zHi});
+			return;
+		}
+		if (ranges.size() >= MAX_RANGES - 1) {
+			ranges.add(new long[]{zLo, zHi});
+			return;
+		}
+		int d = dims - 1 - hb % dims;
+		int b = hb / dims;
+		long split = (hi[d] >>> b) << b;
+		long hiD = hi[d];
+		hi[d] = split - 1;
+		decompose(lo, hi, ranges);
+		hi[d] = hiD;
+		long loD = lo[d];
+		lo[d] = split;
+		decompose(lo, hi, ranges);
+		lo[d] = loD;
+	}
+
+	private static boolean isInside(double[] p, double[] min, double[] max) {
+		for (int d = 0; d < p.length; d++) {
+			if (p[d] < min[d] || p[d] > max[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Window query iterator. The iterator processes one z-order range after the other.
+	 */
+	private static class ZIterator<T> implements PointIterator<T> {
+
+		private final CritBitZ<T> tree;
+		private final CritBit64.QueryIterator<Object> cbIt = new CritBit64.QueryIterator<>();
+		private final ArrayList<long[]> ranges = new ArrayList<>();
+		private double[] min;
+		private double[] max;
+		private int rangePos;
+		private PointEntry<T>[] bucket;
+		private int bucketPos;
+		private PointEntry<T> next;
+
+		ZIterator(CritBitZ<T> tree, double[] min, double[] max) {
+			this.tree = tree;
+			reset(min, max);
+		}
+
+		@Override
+		public PointIterator<T> reset(double[] min, double[] max) {
+			this.min = min;
+			this.max = max;
+			ranges.clear();
+			bucket = null;
+			next = null;
+			if (min == null) {
+				// iterate over everything
+				ranges.add(new long[]{0, -1L});
+			} else if (isValid(min, max)) {
+				long[] lo = new long[tree.dims];
+				long[] hi = new long[tree.dims];
+				for (int d = 0; d < tree.dims; d++) {
+					lo[d] = tree.cell(min[d]);
+					hi[d] = tree.cell(max[d]);
+				}
+				tree.decompose(lo, hi, ranges);
+			}
+			if (!ranges.isEmpty()) {
+				long[] r = ranges.get(0);
+				cbIt.reset(tree.cb, toCB(r[0]), toCB(r[1]));
+				rangePos = 1;
+				findNext();
+			}
+			return this;
+		}
+
+		private static boolean isValid(double[] min, double[] max) {
+			for (int d = 0; d < min.length; d++) {
+				if (!(min[d] <= max[d])) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private boolean matches(PointEntry<T> e) {
+			return min == null || isInside(e.point(), min, max);
+		}
+
+		private void findNext() {
+			while (true) {
+				if (bucket != null) {
+					while (bucketPos < bucket.length) {
+						PointEntry<T> e = bucket[bucketPos++];
+						if (matches(e)) {
+							next = e;
+							return;
+						}
+					}
+					bucket = null;
+				}
+				if (cbIt.hasNext()) {
+					Object v = cbIt.next();
+					if (v instanceof PointEntry) {
+						PointEntry<T> e = asEntry(v);
+						if (matches(e)) {
+							next = e;
+							return;
+						}
+					} else {
+						bucket = asArray(v);
+						bucketPos = 0;
+					}
+				} else if (rangePos < ranges.size()) {
+					long[] r = ranges.get(rangePos++);
+					cbIt.reset(tree.cb, toCB(r[0]), toCB(r[1]));
+				} else {
+					next = null;
+					return;
+				}
+			}
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public PointEntry<T> next() {
+			if (next == null) {
+				throw new NoSuchElementException();
+			}
+			PointEntry<T> ret = next;
+			findNext();
+			return ret;
+		}
+	}
+
+	/**
+	 * kNN query iterator. The result is calculated eagerly by window queries with increasing window size:
+	 * once a window contains at least k entries, the k-th distance is the radius of a window that is
+	 * guaranteed to contain the k nearest neighbors.
+	 */
+	private static class ZIteratorKnn<T> implements PointIteratorKnn<T> {
+
+		private final CritBitZ<T> tree;
+		private final ZIterator<T> it;
+		private final PointFilterKnn<T> filterFn;
+		private final ArrayList<PointEntryKnn<T>> result = new ArrayList<>();
+		private final double[] min;
+		private final double[] max;
+		private int pos;
+		// number of entries in the last query window, including entries rejected by the filter
+		private int nVisited;
+
+		ZIteratorKnn(CritBitZ<T> tree, double[] center, int k, PointFilterKnn<T> filterFn) {
+			this.tree = tree;
+			this.filterFn = filterFn;
+			this.it = new ZIterator<>(tree, null, null);
+			this.min = new double[tree.dims];
+			this.max = new double[tree.dims];
+			reset(center, k);
+		}
+
+		@Override
+		public PointIteratorKnn<T> reset(double[] center, int k) {
+			result.clear();
+			pos = 0;
+			if (tree.size == 0 || k <= 0) {
+				return this;
+			}
+			double w = initialWidth(center, k);
+			while (true) {
+				query(center, w);
+				if (result.size() >= k) {
+					double distK = kthDist(k);
+					if (distK <= w) {
+						break;
+					}
+					// The next window is guaranteed to contain the k nearest neighbors
+					w = distK;
+				} else if (nVisited == tree.size || w == Double.POSITIVE_INFINITY) {
+					break;
+				} else {
+					w = w > 0 ? w * 2 : Double.MIN_NORMAL;
+				}
+			}
+			result.sort(Comparator.comparingDouble(PointEntryKnn::dist));
+			if (result.size() > k) {
+				result.subList(k, result.size()).clear();
+			}
+			return this;
+		}
+
+		private double initialWidth(double[] center, int k) {
+			double extent = 0;
+			double distToBox = 0;
+			for (int d = 0; d < tree.dims; d++) {
+				extent = Math.max(extent, tree.bbMax[d] - tree.bbMin[d]);
+				distToBox = Math.max(distToBox, Math.max(tree.bbMin[d] - center[d], center[d] - tree.bbMax[d]));
+			}
+			return distToBox + extent * Math.pow((double) k / tree.size, 1.0 / tree.dims) / 2;
+		}
+
+		private void query(double[] center, double w) {
+			result.clear();
+			nVisited = 0;
+			for (int d = 0; d < tree.dims; d++) {
+				min[d] = center[d] - w;
+				max[d] = center[d] + w;
+			}
+			it.reset(min, max);
+			while (it.hasNext()) {
+				PointEntry<T> e = it.next();
+				tree.nDistKNN++;
+				nVisited++;
+				double dist = dist(center, e.point());
+				if (filterFn.test(e, dist)) {
+					result.add(new PointEntryKnn<>(e.point(), e.value(), dist));
+				}
+			}
+		}
+
+		private double kthDist(int k) {
+			double[] dists = new double[result.size()];
+			for (int i = 0; i < dists.length; i++) {
+				dists[i] = result.get(i).dist();
+			}
+			Arrays.sort(dists);
+			return dists[k - 1];
+		}
+
+		private static double dist(double[] a, double[] b) {
+			double dist = 0;
+			for (int i = 0; i < a.length; i++) {
+				double d = a[i] - b[i];
+				dist += d * d;
+			}
+			return Math.sqrt(dist);
+		}
+
+		@Override
+		public boolean hasNext() {
+			return pos < result.size();
+		}
+
+		@Override
+		public PointEntryKnn<T> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return result.get(pos++);
+		}
+	}
+
+	@Override
+	public int getDims() {
+		return dims;
+	}
+
+	@Override
+	public int size() {
+		return size;
+	}
+
+	@Override
+	public void clear() {
+		cb = CritBit64.create();
+		size = 0;
+		Arrays.fill(bbMin, Double.POSITIVE_INFINITY);
+		Arrays.fill(bbMax, Double.NEGATIVE_INFINITY);
+	}
+
+	/**
+	 * The statistics count buckets as nodes, i.e. {@code nNodes} is the number of distinct z-keys
+	 * and {@code maxNodeSize} is the largest number of points that share a z-key.
+	 */
+	@Override
+	public ZStats getStats() {
+		ZStats s = new ZStats(this);
+		s.nEntries = size;
+		s.nNodes = cb.size();
+		s.nLeaf = s.nNodes;
+		CritBit64.CBIterator<Object> it = cb.iterator();
+		while (it.hasNext()) {
+			s.maxNodeSize = Math.max(s.maxNodeSize, bucketSize(it.next()));
+		}
+		return s;
+	}
+
+	public static class ZStats extends Stats {
+		public ZStats(CritBitZ<?> tree) {
+			super(tree.nDistKNN, 0, tree.nDistKNN);
+			dims = tree.dims;
+		}
+	}
+
+	@Override
+	public int getNodeCount() {
+		return cb.size();
+	}
+
+	@Override
+	public int getDepth() {
+		return 0;
+	}
+
+	@Override
+	public String toStringTree() {
+		StringBuilderLn sb = new StringBuilderLn();
+		CritBit64.CBIterator<Object> it = cb.iterator();
+		while (it.hasNext()) {
+			CritBit64.Entry<Object> e = it.nextEntry();
+			sb.append("z=").append(Long.toHexString(toCB(e.key()))).append(":");
+			Object bucket = e.value();
+			PointEntry<?>[] entries = bucket instanceof PointEntry
+					? new PointEntry<?>[]{(PointEntry<?>) bucket} : (PointEntry<?>[]) bucket;
+			for (PointEntry<?> pe : entries) {
+				sb.append(" ").append(Arrays.toString(pe.point())).append(" v=").append(pe.value());
+			}
+			sb.appendLn();
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public String toString() {
+		return "CritBitZ;dims=" + dims + ";size=" + size + ";keys=" + cb.size();
+	}
+}
@@ -1,5 +1,7 @@
 package org.tinspin.index.kdtree;
 
+import org.tinspin.index.IndexMetrics;
+
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
 
@@ -48,6 +50,9 @@ public class KDIterator<T> implements PointIterator<T> {
 			}
 			IteratorPos<T> ni = stack.get(size++);
 			ni.set(node, min, max, depth, dims);
+			IndexMetrics metrics = tree.getMetrics();
+			metrics.count(IndexMetrics.Counter.NODE_VISITS, 1);
+			metrics.count(IndexMetrics.Counter.ENTRIES_SCANNED, 1);
 		}
 
 		IteratorPos<T> peek() {
@@ -18,49 +18,86 @@
 package org.tinspin.index.kdtree;
 
 import org.tinspin.index.*;
-import org.tinspin.index.util.MinHeap;
 import org.tinspin.index.util.MinMaxHeap;
 
+import java.util.ArrayList;
 import java.util.NoSuchElementException;
 
 import static org.tinspin.index.Index.*;
 
+/**
+ * kNN iterator for the {@link KDTree}.
+ * <p>
+ * The search is a depth-first traversal that visits the subtree containing the query point
+ * first. Subtrees are pruned with the distance between the query point and the closest point
+ * of their region. The candidates are kept in a {@link MinMaxHeap} that is bounded to 'k' entries.
+ * <p>
+ * After warm-up, queries do not allocate any objects: the heap, the scratch array for the
+ * closest point and the result entries are reused by {@link #reset(double[], int)}.
+ * As a consequence, result entries returned by {@link #next()} are only valid until the
+ * next call to {@link #reset(double[], int)}.
+ *
+ * @param <T> Value type
+ */
 public class KDIteratorKnn<T> implements PointIteratorKnn<T> {
 
-    private final Node<T> root;
+    private final KDTree<T> tree;
     private final PointDistance distFn;
     private final PointFilterKnn<T> filterFn;
-    MinHeap<NodeDist<T>> queueN = MinHeap.create((t1, t2) -> t1.closestDist < t2.closestDist);
-    MinMaxHeap<PointEntryKnn<T>> queueV = MinMaxHeap.create((t1, t2) -> t1.dist() < t2.dist());
-    double maxNodeDist = Double.POSITIVE_INFINITY;
+    private final MinMaxHeap<PointEntryKnn<T>> queueV = MinMaxHeap.create((t1, t2) -> t1.dist() < t2.dist());
+    // Entries that can be reused
+    private final ArrayList<PointEntryKnn<T>> pool = new ArrayList<>();
+    // Entries that have been returned by next()
+    private final ArrayList<PointEntryKnn<T>> returned = new ArrayList<>();
+    // The point in the current node's region that is closest to the query point
+    private double[] closest;
     private PointEntryKnn<T> current;
-    private int remaining;
     private double[] center;
+    private int k;
     private double currentDistance;
+    private long nDist;
+    private long nVisits;
 
-    KDIteratorKnn(Node<T> root, int minResults, double[] center, PointDistance distFn, PointFilterKnn<T> filterFn) {
+    KDIteratorKnn(KDTree<T> tree, int k, double[] center, PointDistance distFn, PointFilterKnn<T> filterFn) {
+        this.tree = tree;
         this.filterFn = filterFn;
         this.distFn = distFn;
-        this.root = root;
-        reset(center, minResults);
+        this.closest = new double[tree.getDims()];
+        reset(center, k);
     }
 
     @Override
-    public PointIteratorKnn<T> reset(double[] center, int minResults) {
+    public PointIteratorKnn<T> reset(double[] center, int k) {
         this.center = center;
+        this.k = k;
         this.currentDistance = Double.MAX_VALUE;
-        this.remaining = minResults;
-        this.maxNodeDist = Double.POSITIVE_INFINITY;
         this.current = null;
-        if (minResults <= 0 || root == null) {
+        for (int i = 0; i < returned.size(); i++) {
+            pool.add(returned.get(i));
+        }
+        returned.clear();
+        while (!queueV.isEmpty()) {
+            pool.add(queueV.peekMin());
+            queueV.popMin();
+        }
+
+        Node<T> root = tree.getRoot();
+        if (k <= 0 || root == null) {
             return this;
         }
-        queueN.clear();
-        queueV.clear();
 
-        // Initialize queue, use d=0 because every imaginable point lies inside the root Node
-        double[] closest = center.clone();
-        queueN.push(new NodeDist<>(distFn.dist(center, closest), root, closest));
+        // Every imaginable point lies inside the root node
+        if (closest.length != center.length) {
+            closest = new double[center.length];
+        }
+        System.arraycopy(center, 0, closest, 0, center.length);
+        nDist = 0;
+        nVisits = 0;
+        search(root);
+        tree.nDistKNN.add(nDist);
+        IndexMetrics metrics = tree.getMetrics();
+        metrics.count(IndexMetrics.Counter.NODE_VISITS, nVisits);
+        metrics.count(IndexMetrics.Counter.ENTRIES_SCANNED, nVisits);
         findNextElement();
         return this;
     }
@@ -85,105 +122,68 @@ public class KDIteratorKnn<T> implements PointIteratorKnn<T> {
     }
 
     private void findNextElement() {
-        while (remaining > 0 && !(queueN.isEmpty() && queueV.isEmpty())) {
-            boolean useV = !queueV.isEmpty();
-            if (useV && !queueN.isEmpty()) {
-                useV = queueV.peekMin().dist() <= queueN.peekMin().closestDist;
-            }
-            if (useV) {
-                // data entry
-                PointEntryKnn<T> result = queueV.peekMin();
-                queueV.popMin();
-                --remaining;
-                this.current = result;
-                currentDistance = result.dist();
-                return;
-            } else {
-                // inner node
-                NodeDist<T> entry = queueN.peekMin();
-                queueN.popMin();
-
-                if (entry.closestDist > maxNodeDist && queueV.size() >= remaining) {
-                    // ignore this node
-                    continue;
-                }
-
-                Node<T> node = entry.node;
-                double d = distFn.dist(center, node.point());
-                // Using '<=' allows dealing with infinite distances.
-                if (filterFn.test(node, d) && d <= maxNodeDist) {
-                    queueV.push(new PointEntryKnn<>(node, d));
-                    if (queueV.size() >= remaining) {
-                        if (queueV.size() > remaining) {
-                            queueV.popMax();
-                        }
-                        double dMax = queueV.peekMax().dist();
-                        maxNodeDist = Math.min(maxNodeDist, dMax);
-                    }
-                }
-                // left
-                if (node.getLo() != null) {
-                    createEntryLo(entry);
-                }
-                // right
-                if (node.getHi() != null) {
-                    createEntryHi(entry);
-                }
-            }
+        if (queueV.isEmpty()) {
+            current = null;
+            currentDistance = Double.POSITIVE_INFINITY;
+            return;
         }
-        current = null;
-        currentDistance = Double.POSITIVE_INFINITY;
+        current = queueV.peekMin();
+        queueV.popMin();
+        returned.add(current);
+        currentDistance = current.dist();
     }
 
-    void createEntryHi(NodeDist<T> entry) {
-        Node<T> node = entry.node;
-        int splitDim = node.getDim();
-        double[] newClosest;
-        double newClosestDist;
-        double splitX = node.point()[splitDim];
-        if (center[splitDim] < splitX) {
-            newClosest = entry.closest.clone();  // copy
-            newClosest[splitDim] = splitX;
-            newClosestDist = distFn.dist(newClosest, center);
-        } else {
-            newClosest = entry.closest;
-            newClosestDist = entry.closestDist;
-        }
-        if (newClosestDist <= maxNodeDist) {
-            queueN.push(new NodeDist<>(newClosestDist, node.getHi(), newClosest));
-        }
+    private double maxDist() {
+        return queueV.size() < k ? Double.POSITIVE_INFINITY : queueV.peekMax().dist();
     }
 
-    void createEntryLo(NodeDist<T> entry) {
-        Node<T> node = entry.node;
-        int splitDim = node.getDim();
-        double[] newClosest;
-        double newClosestDist;
-        double splitX = node.point()[splitDim];
-        if (center[splitDim] > splitX) {
-            newClosest = entry.closest.clone();  // copy
-            newClosest[splitDim] = splitX;
-            newClosestDist = distFn.dist(newClosest, center);
-        } else {
-            newClosest = entry.closest;
-            newClosestDist = entry.closestDist;
+    private void search(Node<T> node) {
+        double d = distFn.dist(center, node.point());
+        nDist++;
+        nVisits++;
+        if ((queueV.size() < k || d < queueV.peekMax().dist()) && filterFn.test(node, d)) {
+            addCandidate(node, d);
         }
 
-        if (newClosestDist <= maxNodeDist) {
-            queueN.push(new NodeDist<>(newClosestDist, node.getLo(), newClosest));
+        int dim = node.getDim();
+        double split = node.point()[dim];
+        Node<T> near;
+        Node<T> far;
+        if (center[dim] < split) {
+            near = node.getLo();
+            far = node.getHi();
+        } else {
+            near = node.getHi();
+            far = node.getLo();
+        }
+        if (near != null) {
+            // The near region contains the closest point of the current node
+            search(near);
+        }
+        if (far != null) {
+            double closestX = closest[dim];
+            closest[dim] = split;
+            double farDist = distFn.dist(center, closest);
+            // Using '<' for full queues allows dealing with infinite distances.
+            if (queueV.size() < k || farDist < maxDist()) {
+                search(far);
+            }
+            closest[dim] = closestX;
         }
     }
 
-    private static class NodeDist<T> {
-        double closestDist;
-        Node<T> node;
-        // The point in the nodes region that is closest to the query point
-        double[] closest;
-        NodeDist(double closestDist, Node<T> node, double[] closest) {
-            this.closestDist = closestDist;
-            this.node = node;
-            this.closest = closest;
+    private void addCandidate(Node<T> node, double d) {
+        PointEntryKnn<T> e;
+        if (queueV.size() >= k) {
+            e = queueV.peekMax();
+            queueV.popMax();
+            e.set(node, d);
+        } else if (!pool.isEmpty()) {
+            e = pool.remove(pool.size() - 1);
+            e.set(node, d);
+        } else {
+            e = new PointEntryKnn<>(node, d);
         }
+        queueV.push(e);
     }
 }
-
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2009-2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.kdtree;
+
+import org.tinspin.index.IndexMetrics;
+import org.tinspin.index.PointDistance;
+import org.tinspin.index.util.MinHeap;
+
+import java.util.ArrayList;
+import java.util.NoSuchElementException;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * Distance browsing iterator for the {@link KDTree}.
+ * <p>
+ * Entries are returned in order of increasing distance. Unlike {@link KDIteratorKnn}, the number of
+ * results does not need to be known in advance: the tree is traversed lazily (Hjaltason and Samet),
+ * every call to {@link #next()} only processes the nodes that are closer than the next result.
+ * Callers can simply stop iterating once they have found what they are looking for.
+ * <p>
+ * Node queue entries store the closest point of their region in a buffer that is reused.
+ * After warm-up, queries do not allocate any objects. Result entries returned by {@link #next()}
+ * are only valid until the next call to {@link #reset(double[], int)}.
+ *
+ * @param <T> Value type
+ */
+public class KDIteratorNearest<T> implements PointIteratorKnn<T> {
+
+    private final KDTree<T> tree;
+    private final PointDistance distFn;
+    private final PointFilterKnn<T> filterFn;
+    private final MinHeap<NodeDist<T>> queueN = MinHeap.create((t1, t2) -> t1.dist < t2.dist);
+    private final MinHeap<PointEntryKnn<T>> queueV = MinHeap.create((t1, t2) -> t1.dist() < t2.dist());
+    // Entries that can be reused
+    private final ArrayList<NodeDist<T>> poolN = new ArrayList<>();
+    private final ArrayList<PointEntryKnn<T>> poolV = new ArrayList<>();
+    // Entries that have been returned by next()
+    private final ArrayList<PointEntryKnn<T>> returned = new ArrayList<>();
+    private PointEntryKnn<T> current;
+    private double[] center;
+    private int remaining;
+    private double currentDistance;
+
+    KDIteratorNearest(KDTree<T> tree, int maxResults, double[] center, PointDistance distFn,
+                      PointFilterKnn<T> filterFn) {
+        this.tree = tree;
+        this.filterFn = filterFn;
+        this.distFn = distFn;
+        reset(center, maxResults);
+    }
+
+    /**
+     * Restart the iterator with a new center.
+     * @param center new center point
+     * @return this iterator
+     */
+    public PointIteratorKnn<T> reset(double[] center) {
+        return reset(center, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Restart the iterator.
+     * @param center new center point
+     * @param maxResults maximum number of entries to return, use {@link Integer#MAX_VALUE} for no limit
+     * @return this iterator
+     */
+    @Override
+    public PointIteratorKnn<T> reset(double[] center, int maxResults) {
+        this.center = center;
+        this.remaining = maxResults;
+        this.currentDistance = Double.MAX_VALUE;
+        this.current = null;
+        poolV.addAll(returned);
+        returned.clear();
+        while (!queueV.isEmpty()) {
+            poolV.add(queueV.peekMin());
+            queueV.popMin();
+        }
+        while (!queueN.isEmpty()) {
+            poolN.add(queueN.peekMin());
+            queueN.popMin();
+        }
+
+        Node<T> root = tree.getRoot();
+        if (maxResults <= 0 || root == null) {
+            return this;
+        }
+
+        // Every imaginable point lies inside the root node
+        NodeDist<T> rootEntry = createNode(root, 0);
+        System.arraycopy(center, 0, rootEntry.closest, 0, center.length);
+        queueN.push(rootEntry);
+        findNextElement();
+        return this;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return current != null;
+    }
+
+    @Override
+    public PointEntryKnn<T> next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        PointEntryKnn<T> ret = current;
+        findNextElement();
+        return ret;
+    }
+
+    public double distance() {
+        return currentDistance;
+    }
+
+    private void findNextElement() {
+        long nDist = 0;
+        long nVisits = 0;
+        while (remaining > 0 && !(queueN.isEmpty() && queueV.isEmpty())) {
+            boolean useV = !queueV.isEmpty();
+            if (useV && !queueN.isEmpty()) {
+                useV = queueV.peekMin().dist() <= queueN.peekMin().dist;
+            }
+            if (useV) {
+                // data entry
+                current = queueV.peekMin();
+                queueV.popMin();
+                returned.add(current);
+                --remaining;
+                currentDistance = current.dist();
+                tree.nDistKNN.add(nDist);
+                countVisits(nVisits);
+                return;
+            }
+
+            // node: queue the node's point and both children
+            NodeDist<T> top = queueN.peekMin();
+            queueN.popMin();
+            Node<T> node = top.node;
+            double d = distFn.dist(center, node.point());
+            nDist++;
+            nVisits++;
+            if (filterFn.test(node, d)) {
+                queueV.push(createEntry(node, d));
+            }
+
+            int dim = node.getDim();
+            double split = node.point()[dim];
+            Node<T> near;
+            Node<T> far;
+            if (center[dim] < split) {
+                near = node.getLo();
+                far = node.getHi();
+            } else {
+                near = node.getHi();
+                far = node.getLo();
+            }
+            if (far != null) {
+                // The far region's closest point lies on the splitting plane
+                NodeDist<T> farEntry = createNode(far, 0);
+                System.arraycopy(top.closest, 0, farEntry.closest, 0, center.length);
+                farEntry.closest[dim] = split;
+                farEntry.dist = distFn.dist(center, farEntry.closest);
+                nDist++;
+                queueN.push(farEntry);
+            }
+            if (near != null) {
+                // The near region contains the closest point of the current region
+                top.node = near;
+                queueN.push(top);
+            } else {
+                poolN.add(top);
+            }
+        }
+        tree.nDistKNN.add(nDist);
+        countVisits(nVisits);
+        current = null;
+        currentDistance = Double.POSITIVE_INFINITY;
+    }
+
+    private void countVisits(long nVisits) {
+        IndexMetrics metrics = tree.getMetrics();
+        metrics.count(IndexMetrics.Counter.NODE_VISITS, nVisits);
+        metrics.count(IndexMetrics.Counter.ENTRIES_SCANNED, nVisits);
+    }
+
+    private NodeDist<T> createNode(Node<T> node, double dist) {
+        NodeDist<T> e;
+        if (!poolN.isEmpty()) {
+            e = poolN.remove(poolN.size() - 1);
+            if (e.closest.length != center.length) {
+                e = new NodeDist<>(center.length);
+            }
+        } else {
+            e = new NodeDist<>(center.length);
+        }
+        e.node = node;
+        e.dist = dist;
+        return e;
+    }
+
+    private PointEntryKnn<T> createEntry(Node<T> node, double dist) {
+        if (poolV.isEmpty()) {
+            return new PointEntryKnn<>(node, dist);
+        }
+        PointEntryKnn<T> e = poolV.remove(poolV.size() - 1);
+        e.set(node, dist);
+        return e;
+    }
+
+    private static class NodeDist<T> {
+        Node<T> node;
+        double dist;
+        // The point in the node's region that is closest to the query point
+        final double[] closest;
+
+        NodeDist(int dims) {
+            this.closest = new double[dims];
+        }
+    }
+}
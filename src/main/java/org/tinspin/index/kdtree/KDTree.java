@@ -17,10 +17,20 @@
  */
 package org.tinspin.index.kdtree;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Predicate;
 
 import org.tinspin.index.*;
+import org.tinspin.index.util.IndexIO;
+import org.tinspin.index.util.KnnBatch;
 import org.tinspin.index.util.MutableRef;
 import org.tinspin.index.util.StringBuilderLn;
 
@@ -43,7 +53,9 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 	private int size = 0;
 	private int modCount = 0;
 	private long nDist1NN = 0;
-	private long nDistKNN = 0;
+	// Updated by concurrent kNN queries, e.g. by parallel batch queries
+	final LongAdder nDistKNN = new LongAdder();
+	private IndexMetrics metrics = IndexMetrics.NONE;
 	//During insertion, the tree maintains an invariant that if two points have the
 	//same value in any dimension, then one key is never in the 'lower' branch of the other.
 	//This allows very efficient look-up because we have to follow only a single path.
@@ -100,6 +112,253 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 		while ((n = n.getClosestNodeOrAddPoint(key, value, dims, defensiveKeyCopy)) != null) ;
 	}
 
+	/**
+	 * Bulk load the tree. This removes all previous entries from the tree.
+	 * <p>
+	 * The tree is built by recursive median partitioning, resulting in a balanced
+	 * tree independent of the order of the entries. Subtrees are built in parallel
+	 * with fork/join.
+	 *
+	 * @param entries The entries. The array is not modified.
+	 */
+	public void load(PointEntry<T>[] entries) {
+		clear();
+		build(entries.clone(), defensiveKeyCopy);
+	}
+
+	/**
+	 * Rebuild the tree with all current entries. The resulting tree is balanced.
+	 * This is useful after inserting sorted or otherwise skewed data.
+	 */
+	@SuppressWarnings("unchecked")
+	public void rebalance() {
+		if (root == null) {
+			return;
+		}
+		PointEntry<T>[] entries = new PointEntry[size];
+		int n = 0;
+		ArrayDeque<Node<T>> stack = new ArrayDeque<>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			Node<T> node = stack.pop();
+			entries[n++] = node;
+			if (node.getLo() != null) {
+				stack.push(node.getLo());
+			}
+			if (node.getHi() != null) {
+				stack.push(node.getHi());
+			}
+		}
+		clear();
+		//The keys are already owned by the tree, no need to copy them again.
+		build(entries, false);
+	}
+
+	/**
+	 * Write the tree, including its node structure, to a stream.
+	 * Nodes are written in pre-order without recursion, so unbalanced trees
+	 * of any depth can be written.
+	 * @param out the stream, it is flushed but not closed
+	 * @param codec codec for the values
+	 * @throws IOException if writing fails
+	 * @see #load(InputStream, ValueCodec)
+	 */
+	public void save(OutputStream out, ValueCodec<? super T> codec) throws IOException {
+		DataOutputStream dos = IndexIO.writeHeader(out, "KDTree", dims);
+		dos.writeBoolean(defensiveKeyCopy);
+		dos.writeBoolean(invariantBroken);
+		dos.writeInt(size);
+		if (root != null) {
+			ArrayDeque<Node<T>> stack = new ArrayDeque<>();
+			stack.push(root);
+			while (!stack.isEmpty()) {
+				Node<T> node = stack.pop();
+				dos.writeByte((node.getLo() != null ? 1 : 0) | (node.getHi() != null ? 2 : 0));
+				dos.writeInt(node.getDim());
+				IndexIO.writePoint(dos, node.point());
+				codec.write(dos, node.value());
+				if (node.getHi() != null) {
+					stack.push(node.getHi());
+				}
+				if (node.getLo() != null) {
+					stack.push(node.getLo());
+				}
+			}
+		}
+		dos.flush();
+	}
+
+	/**
+	 * Read a tree that was written with {@link #save(OutputStream, ValueCodec)}.
+	 * The nodes are restored as they were written, there is no re-insertion.
+	 * @param in the stream, it should be buffered
+	 * @param codec codec for the values
+	 * @return the tree
+	 * @param <T> value type
+	 * @throws IOException if reading fails or if the stream does not contain a KDTree
+	 */
+	public static <T> KDTree<T> load(InputStream in, ValueCodec<? extends T> codec) throws IOException {
+		DataInputStream dis = IndexIO.readHeader(in, "KDTree");
+		int dims = IndexIO.readDims(dis);
+		KDTree<T> t = new KDTree<>(dims, dis.readBoolean());
+		t.invariantBroken = dis.readBoolean();
+		t.size = dis.readInt();
+		if (t.size == 0) {
+			return t;
+		}
+		// Pending child slots: the parent node and whether the child is the 'hi' child.
+		// The 'lo' slot is pushed last so that it is filled first, this matches the pre-order of save().
+		ArrayDeque<Node<T>> parents = new ArrayDeque<>();
+		ArrayDeque<Boolean> isHi = new ArrayDeque<>();
+		int n = 0;
+		do {
+			int flags = dis.readByte();
+			int dim = dis.readInt();
+			if (dim < 0 || dim >= dims) {
+				throw new IOException("Invalid split dimension: " + dim);
+			}
+			double[] p = IndexIO.readPoint(dis, dims);
+			Node<T> node = new Node<>(p, codec.read(dis), dim, false);
+			if (n++ == 0) {
+				t.root = node;
+			} else if (isHi.pop()) {
+				parents.pop().setRight(node);
+			} else {
+				parents.pop().setLeft(node);
+			}
+			if ((flags & 2) != 0) {
+				parents.push(node);
+				isHi.push(true);
+			}
+			if ((flags & 1) != 0) {
+				parents.push(node);
+				isHi.push(false);
+			}
+		} while (!parents.isEmpty());
+		if (n != t.size) {
+			throw new IOException("Expected " + t.size + " entries but found " + n);
+		}
+		return t;
+	}
+
+	private void build(PointEntry<T>[] entries, boolean copyKeys) {
+		if (entries.length == 0) {
+			return;
+		}
+		root = ForkJoinPool.commonPool().invoke(new BuildTask<>(entries, 0, entries.length, 0, dims, copyKeys));
+		size = entries.length;
+		modCount++;
+	}
+
+	/**
+	 * Builds a subtree from entries[from, to). The entries in this range are reordered.
+	 */
+	private static class BuildTask<T> extends RecursiveTask<Node<T>> {
+		/** Below this size, subtrees are built sequentially. */
+		private static final int PARALLEL_THRESHOLD = 10_000;
+		private final PointEntry<T>[] entries;
+		private final int from;
+		private final int to;
+		private final int dim;
+		private final int dims;
+		private final boolean copyKeys;
+
+		BuildTask(PointEntry<T>[] entries, int from, int to, int dim, int dims, boolean copyKeys) {
+			this.entries = entries;
+			this.from = from;
+			this.to = to;
+			this.dim = dim;
+			this.dims = dims;
+			this.copyKeys = copyKeys;
+		}
+
+		@Override
+		protected Node<T> compute() {
+			return build(from, to, dim);
+		}
+
+		private Node<T> build(int from, int to, int dim) {
+			if (from >= to) {
+				return null;
+			}
+			int pos = partition(entries, from, to, dim);
+			PointEntry<T> e = entries[pos];
+			Node<T> node = new Node<>(e.point(), e.value(), dim, copyKeys);
+			int dim2 = (dim + 1) % dims;
+			if (to - from > PARALLEL_THRESHOLD) {
+				BuildTask<T> taskLo = new BuildTask<>(entries, from, pos, dim2, dims, copyKeys);
+				taskLo.fork();
+				node.setRight(build(pos + 1, to, dim2));
+				node.setLeft(taskLo.join());
+			} else {
+				node.setLeft(build(from, pos, dim2));
+				node.setRight(build(pos + 1, to, dim2));
+			}
+			return node;
+		}
+	}
+
+	/**
+	 * Partition entries[from, to) around the median in dimension 'dim'.
+	 * <p>
+	 * To maintain the tree invariant, all entries left of the returned position are
+	 * strictly smaller than the median and all entries right of it are larger or equal.
+	 * With duplicate coordinates the returned position may therefore be left of the
+	 * exact median.
+	 *
+	 * @return The position of the median entry.
+	 */
+	private static <T> int partition(PointEntry<T>[] entries, int from, int to, int dim) {
+		int k = (from + to) >>> 1;
+		int lo = from;
+		int hi = to - 1;
+		// Quickselect with three-way partitioning, this avoids quadratic behavior with duplicates.
+		while (lo < hi) {
+			double pivot = medianOfThree(entries, lo, (lo + hi) >>> 1, hi, dim);
+			int lt = lo;
+			int gt = hi;
+			int i = lo;
+			while (i <= gt) {
+				double x = entries[i].point()[dim];
+				if (x < pivot) {
+					swap(entries, lt++, i++);
+				} else if (x > pivot) {
+					swap(entries, i, gt--);
+				} else {
+					i++;
+				}
+			}
+			// [lo, lt) < pivot, [lt, gt] == pivot, (gt, hi] > pivot
+			// Entries left of 'lo' are smaller and entries right of 'hi' are larger than all
+			// entries in [lo, hi].
+			if (k < lt) {
+				hi = lt - 1;
+			} else if (k > gt) {
+				lo = gt + 1;
+			} else {
+				// The left-most entry that is equal to the median
+				return lt;
+			}
+		}
+		return k;
+	}
+
+	private static <T> double medianOfThree(PointEntry<T>[] entries, int i1, int i2, int i3, int dim) {
+		double a = entries[i1].point()[dim];
+		double b = entries[i2].point()[dim];
+		double c = entries[i3].point()[dim];
+		if (a < b) {
+			return b < c ? b : Math.max(a, c);
+		}
+		return a < c ? a : Math.max(b, c);
+	}
+
+	private static <T> void swap(PointEntry<T>[] entries, int i1, int i2) {
+		PointEntry<T> e = entries[i1];
+		entries[i1] = entries[i2];
+		entries[i2] = e;
+	}
+
 	/**
 	 * Check whether a given key exists.
 	 *
@@ -235,6 +494,17 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 			return true;
 		}
 		
+		removeNode(eToRemove, removeResult);
+		return true;
+	}
+
+	/**
+	 * Remove a node. Inner nodes are replaced with entries from leaves below them,
+	 * until a leaf can be removed.
+	 * @param eToRemove the node
+	 * @param removeResult the parent and the splitting dimension of the node
+	 */
+	private void removeNode(Node<T> eToRemove, RemoveResult<T> removeResult) {
 		// find replacement
 		while (eToRemove != null && !eToRemove.isLeaf()) {
 			//recurse
@@ -273,9 +543,68 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 			} else { 
 				throw new IllegalStateException();
 			}
+		} else {
+			root = null;
 		}
 		size--;
-		return true;
+	}
+
+	/**
+	 * Remove all entries inside the query window that match the condition, in a single traversal.
+	 * <p>
+	 * The subtrees below a node are processed before the node itself. Removed inner nodes are
+	 * therefore replaced with entries that are known to remain in the tree, and subtrees
+	 * that lose all their entries are removed leaf by leaf without searching for replacements.
+	 *
+	 * @param min Lower left corner of the query window
+	 * @param max Upper right corner of the query window
+	 * @param condition the condition required for removing an entry
+	 * @return the number of removed entries
+	 */
+	@Override
+	public int removeAll(double[] min, double[] max, Predicate<PointEntry<T>> condition) {
+		if (root == null) {
+			return 0;
+		}
+		//Collect the candidate nodes breadth-first, i.e. every node before its subtrees.
+		//There is no recursion, so unbalanced trees of any depth can be processed.
+		ArrayList<Node<T>> nodes = new ArrayList<>();
+		ArrayList<Node<T>> parents = new ArrayList<>();
+		nodes.add(root);
+		parents.add(null);
+		for (int i = 0; i < nodes.size(); i++) {
+			Node<T> node = nodes.get(i);
+			int dim = node.getDim();
+			//With a broken invariant, the lower branch may contain keys equal to the node's key
+			if (node.getLo() != null && min[dim] <= node.point()[dim]) {
+				nodes.add(node.getLo());
+				parents.add(node);
+			}
+			if (node.getHi() != null && max[dim] >= node.point()[dim]) {
+				nodes.add(node.getHi());
+				parents.add(node);
+			}
+		}
+
+		//Process the nodes in reverse order, i.e. every node after its subtrees
+		int sizeBefore = size;
+		RemoveResult<T> removeResult = new RemoveResult<>();
+		for (int i = nodes.size() - 1; i >= 0; i--) {
+			Node<T> node = nodes.get(i);
+			if (isEnclosed(node.point(), min, max) && condition.test(node)) {
+				invariantBroken = true;
+				removeResult.pos = node.getDim();
+				removeResult.nodeParent = parents.get(i);
+				removeNode(node, removeResult);
+			}
+		}
+		if (root == null) {
+			invariantBroken = false;
+		}
+		if (size != sizeBefore) {
+			modCount++;
+		}
+		return sizeBefore - size;
 	}
 
 	private static class RemoveResult<T> {
@@ -432,109 +761,6 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 		return true;
 	}
 
-	private List<PointEntryKnn<T>> knnQuery(double[] center, int k, PointDistance distFn) {
-		if (root == null) {
-			return Collections.emptyList();
-		}
-		ArrayList<PointEntryKnn<T>> candidates = new ArrayList<>(k);
-		rangeSearchKNN(root, center, candidates, k, Double.POSITIVE_INFINITY, distFn);
-		return candidates;
-	}
-
-	private double rangeSearchKNN(Node<T> node, double[] center,
-                                  ArrayList<PointEntryKnn<T>> candidates, int k, double maxRange, PointDistance distFn) {
-    	int pos = node.getDim();
-    	if (node.getLo() != null && (center[pos] < node.point()[pos] || node.getHi() == null)) {
-        	//go down
-    		maxRange = rangeSearchKNN(node.getLo(), center, candidates, k, maxRange, distFn);
-        	//refine result
-    		if (center[pos] + maxRange >= node.point()[pos]) {
-    			maxRange = addCandidate(node, center, candidates, k, maxRange, distFn);
-        		if (node.getHi() != null) {
-        			maxRange = rangeSearchKNN(node.getHi(), center, candidates, k, maxRange, distFn);
-        		}
-    		}
-    	} else if (node.getHi() != null) {
-        	//go down
-    		maxRange = rangeSearchKNN(node.getHi(), center, candidates, k, maxRange, distFn);
-        	//refine result
-    		if (center[pos] <= node.point()[pos] + maxRange) {
-    			maxRange = addCandidate(node, center, candidates, k, maxRange, distFn);
-        		if (node.getLo() != null) {
-        			maxRange = rangeSearchKNN(node.getLo(), center, candidates, k, maxRange, distFn);
-        		}
-    		}
-    	} else {
-    		//leaf -> first (probably best) match!
-    		maxRange = addCandidate(node, center, candidates, k, maxRange, distFn);
-    	}
-    	return maxRange;
-    }
-
-
-    private static final Comparator<PointEntryKnn<?>> compKnn =
-    		(PointEntryKnn<?> point1, PointEntryKnn<?> point2) -> {
-    			double deltaDist = point1.dist() - point2.dist();
-    			return deltaDist < 0 ? -1 : (deltaDist > 0 ? 1 : 0);
-    		};
-
-    
-    private double addCandidate(Node<T> node, double[] center,
-                                ArrayList<PointEntryKnn<T>> candidates, int k, double maxRange, PointDistance distFn) {
-    	nDistKNN++;
-    	//add ?
-    	double dist = distFn.dist(center, node.point());
-    	if (dist > maxRange) {
-    		//don't add if too far away
-    		return maxRange;
-    	}
-    	if (dist == maxRange && candidates.size() >= k) {
-    		//don't add if we already have enough equally good results.
-    		return maxRange;
-    	}
-		PointEntryKnn<T> cand;
-    	if (candidates.size() >= k) {
-    		cand = candidates.remove(k - 1);
-    		cand.set(node, dist);
-    	} else {
-    		cand = new PointEntryKnn<>(node, dist);
-    	}
-    	int insertionPos = Collections.binarySearch(candidates, cand, compKnn);
-    	insertionPos = insertionPos >= 0 ? insertionPos : -(insertionPos+1);
-    	candidates.add(insertionPos, cand);
-    	return candidates.size() < k ? maxRange : candidates.get(candidates.size() - 1).dist();
-    }
-
-
-    private static class KDQueryIteratorKnn<T> implements PointIteratorKnn<T> {
-
-    	private Iterator<PointEntryKnn<T>> it;
-    	private final KDTree<T> tree;
-		private final PointDistance distFn;
-
-		public KDQueryIteratorKnn(KDTree<T> tree, double[] center, int k, PointDistance distFn) {
-			this.tree = tree;
-			this.distFn = distFn;
-			reset(center, k);
-		}
-
-		@Override
-		public boolean hasNext() {
-			return it.hasNext();
-		}
-
-		@Override
-		public PointEntryKnn<T> next() {
-			return it.next();
-		}
-
-		@Override
-		public KDQueryIteratorKnn<T> reset(double[] center, int k) {
-			it = tree.knnQuery(center, k, distFn).iterator();
-			return this;
-		}
-    }
-    
     /**
 	 * Returns a printable list of the tree.
 	 * @return the tree as String
@@ -591,10 +817,24 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 	 */
 	public static class KDStats extends Stats {
 		public KDStats(KDTree<?> tree) {
-			super(tree.nDist1NN + tree.nDistKNN, tree.nDist1NN, tree.nDistKNN);
+			super(tree.nDist1NN + tree.nDistKNN.sum(), tree.nDist1NN, tree.nDistKNN.sum());
 		}
 	}
 
+	/**
+	 * Reports node visits and scanned entries of window queries and kNN queries.
+	 * Every node holds exactly one entry, so both counters grow by one per visited node.
+	 * @param metrics the receiver
+	 */
+	@Override
+	public void setMetrics(IndexMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	IndexMetrics getMetrics() {
+		return metrics;
+	}
+
 	@Override
 	public int getDims() {
 		return dims;
@@ -612,25 +852,89 @@ public class KDTree<T> implements PointMap<T>, PointMultimap<T> {
 
 	@Override
 	public PointEntryKnn<T> query1nn(double[] center) {
-		return queryKnn(center, 1).next();
+		PointIteratorKnn<T> it = queryKnn(center, 1);
+		return it.hasNext() ? it.next() : null;
 	}
 
+	/**
+	 * The returned iterator can be reused via {@link PointIteratorKnn#reset(double[], int)}.
+	 * Returned entries are only valid until the next reset, callers that keep entries across
+	 * resets must copy them.
+	 * @see KDIteratorKnn
+	 */
 	@Override
 	public PointIteratorKnn<T> queryKnn(double[] center, int k) {
-		if (size < 1_000_000 && k <= 10) {
-			return new KDQueryIteratorKnn<>(this, center, k, PointDistance.L2);
-		}
-		return new KDIteratorKnn<>(root, k, center, PointDistance.L2, (e, d) -> true);
+		return queryKnn(center, k, PointDistance.L2);
 	}
 
+	/**
+	 * The returned iterator can be reused via {@link PointIteratorKnn#reset(double[], int)}.
+	 * Reusing it avoids any allocations, however, returned entries are only valid until
+	 * the next reset, callers that keep entries across resets must copy them.
+	 * @see KDIteratorKnn
+	 */
 	@Override
 	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn) {
-		// For small trees, the old iterator is about 3x faster.
-		// For 1M it is about even, for 10M the new HS-iterator is about 2x faster.
-		if (size < 1_000_000 && k <= 10) {
-			return new KDQueryIteratorKnn<>(this, center, k, distFn);
-		}
-		return new KDIteratorKnn<>(root, k, center, distFn, (e, d) -> true);
+		return new KDIteratorKnn<>(this, k, center, distFn, (e, d) -> true);
+	}
+
+	/**
+	 * Filtered kNN query, the filter is applied during the traversal, i.e. rejected entries
+	 * do not affect the pruning distance.
+	 * @see KDIteratorKnn
+	 * @see PointMultimap#queryKnn(double[], int, PointDistance, PointFilterKnn)
+	 */
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn, PointFilterKnn<T> filterFn) {
+		return new KDIteratorKnn<>(this, k, center, distFn, filterFn);
+	}
+
+	/**
+	 * Distance browsing: returns all entries in order of increasing distance from the center.
+	 * The tree is traversed lazily, i.e. the caller can stop iterating at any time without
+	 * having paid for more results than it consumed. This is useful when the number of
+	 * required results is not known in advance.
+	 * @param center center point
+	 * @return an iterator over all entries, ordered by distance
+	 * @see KDIteratorNearest
+	 */
+	public KDIteratorNearest<T> queryNearest(double[] center) {
+		return queryNearest(center, PointDistance.L2);
+	}
+
+	/**
+	 * Distance browsing with a custom distance function.
+	 * @param center center point
+	 * @param distFn distance function
+	 * @return an iterator over all entries, ordered by distance
+	 * @see #queryNearest(double[])
+	 */
+	public KDIteratorNearest<T> queryNearest(double[] center, PointDistance distFn) {
+		return queryNearest(center, distFn, (e, d) -> true);
+	}
+
+	/**
+	 * Distance browsing with a custom distance function and a filter.
+	 * @param center center point
+	 * @param distFn distance function
+	 * @param filterFn filter, only entries that pass the filter are returned
+	 * @return an iterator over all entries that pass the filter, ordered by distance
+	 * @see #queryNearest(double[])
+	 */
+	public KDIteratorNearest<T> queryNearest(double[] center, PointDistance distFn, PointFilterKnn<T> filterFn) {
+		return new KDIteratorNearest<>(this, Integer.MAX_VALUE, center, distFn, filterFn);
+	}
+
+	/**
+	 * Batch kNN query. Each task reuses a single {@link KDIteratorKnn} for all its queries,
+	 * i.e. after warm-up the queries do not allocate any objects.
+	 * @see PointMap#queryKnnBatch(double[][], int, Object[], double[], boolean)
+	 */
+	@Override
+	public void queryKnnBatch(double[][] centers, int k, T[] values, double[] distances, boolean parallel) {
+		KnnBatch.query(centers, k, values, distances, parallel,
+				c -> new KDIteratorKnn<>(this, k, c, PointDistance.L2, (e, d) -> true),
+				PointEntryKnn::value, PointEntryKnn::dist);
 	}
 
 	@Override
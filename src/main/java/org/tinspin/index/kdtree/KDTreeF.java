@@ -0,0 +1,400 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.kdtree;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+import org.tinspin.index.*;
+import org.tinspin.index.util.MutableRef;
+
+/**
+ * A KD-Tree that stores coordinates as 32 bit {@code float} instead of {@code double}.
+ * <p>
+ * The layout is the same as in {@link KDTreeFlat}, see {@link KDTreeFlatBase}: coordinates are stored
+ * in a single contiguous {@code float[]}, children are referenced via {@code int} indexes and the values
+ * are kept in a parallel {@code Object[]}. Storing floats halves the memory required for
+ * coordinates and improves cache utilization during traversal.
+ * <p>
+ * Keys are rounded to the nearest {@code float} when they are inserted. All operations
+ * work on the rounded keys:
+ * <ul>
+ * <li>Exact lookups, removal and updates round the given key and compare the rounded values,
+ * i.e. keys that differ only beyond {@code float} precision are considered equal.</li>
+ * <li>Window queries round the query box. Rounding is monotonic, so every point inside
+ * the original box is found.</li>
+ * <li>kNN distances are calculated in {@code double} between the query point and the
+ * rounded keys.</li>
+ * </ul>
+ * Query results return the rounded keys as {@code double[]}.
+ *
+ * @param <T> Value type
+ */
+public class KDTreeF<T> extends KDTreeFlatBase implements PointMap<T>, PointMultimap<T> {
+
+	private float[] coords;
+	private Object[] values;
+
+
+	private KDTreeF(int dims) {
+		super(dims);
+		init();
+	}
+
+	public static <T> KDTreeF<T> create(int dims) {
+		return new KDTreeF<>(dims);
+	}
+
+	/**
+	 * @param config Index configuration. The defensive-copy setting is ignored because
+	 *               keys are always copied into the internal coordinate array.
+	 * @return New KD-tree
+	 * @param <T> Value type
+	 */
+	public static <T> KDTreeF<T> create(IndexConfig config) {
+		return new KDTreeF<>(config.getDimensions());
+	}
+
+	@Override
+	void initStorage(int capacity) {
+		coords = new float[capacity * dims];
+		values = new Object[capacity];
+	}
+
+	@Override
+	void growStorage(int capacity) {
+		coords = Arrays.copyOf(coords, capacity * dims);
+		values = Arrays.copyOf(values, capacity);
+	}
+
+	@Override
+	double coord(int slot, int dim) {
+		return coords[slot * dims + dim];
+	}
+
+	@Override
+	void moveSlot(int src, int dst) {
+		System.arraycopy(coords, src * dims, coords, dst * dims, dims);
+		values[dst] = values[src];
+	}
+
+	@Override
+	void clearValue(int slot) {
+		values[slot] = null;
+	}
+
+	@Override
+	String valueToString(int slot) {
+		return String.valueOf(values[slot]);
+	}
+
+	@SuppressWarnings("unchecked")
+	T value(int slot) {
+		return (T) values[slot];
+	}
+
+	private PointEntry<T> entry(int slot) {
+		return new PointEntry<>(point(slot), value(slot));
+	}
+
+	/**
+	 * @return the key rounded to {@code float} precision
+	 */
+	private static double[] round(double[] key) {
+		double[] rounded = new double[key.length];
+		for (int d = 0; d < key.length; d++) {
+			rounded[d] = (float) key[d];
+		}
+		return rounded;
+	}
+
+	/**
+	 * Insert a key-value pair. The key is rounded to {@code float} precision.
+	 *
+	 * @param key   the key
+	 * @param value the value
+	 */
+	@Override
+	public void insert(double[] key, T value) {
+		int slot = allocate();
+		int offs = slot * dims;
+		for (int d = 0; d < dims; d++) {
+			coords[offs + d] = (float) key[d];
+		}
+		values[slot] = value;
+		link(slot);
+	}
+
+	/**
+	 * Insert a key-value pair.
+	 *
+	 * @param key   the key, it is copied into the tree
+	 * @param value the value
+	 */
+	public void insert(float[] key, T value) {
+		int slot = allocate();
+		System.arraycopy(key, 0, coords, slot * dims, dims);
+		values[slot] = value;
+		link(slot);
+	}
+
+	/**
+	 * Check whether a given key exists.
+	 *
+	 * @param key the key to check
+	 * @return true iff the key exists
+	 */
+	@Override
+	public boolean contains(double[] key) {
+		return findSlot(round(key), null) != NONE;
+	}
+
+	@Override
+	public boolean contains(double[] key, T value) {
+		return findSlot(round(key), slot -> Objects.equals(value, values[slot])) != NONE;
+	}
+
+	/**
+	 * Lookup an entry, using exact match.
+	 *
+	 * @param point the point
+	 * @return an iterator over all entries at the given point
+	 */
+	@Override
+	public PointIterator<T> queryExactPoint(double[] point) {
+		return query(point, point);
+	}
+
+	/**
+	 * Get the value associates with the key.
+	 *
+	 * @param key the key to look up
+	 * @return the value for the key or 'null' if the key was not found
+	 */
+	@Override
+	public T queryExact(double[] key) {
+		int n = findSlot(round(key), null);
+		return n == NONE ? null : value(n);
+	}
+
+	/**
+	 * Remove all entries at the given point.
+	 *
+	 * @param key the point
+	 * @return `true` iff an entry was found and removed
+	 */
+	@Override
+	public boolean remove(double[] key, T value) {
+		return removeSlot(round(key), slot -> Objects.equals(values[slot], value));
+	}
+
+	/**
+	 * Remove a key.
+	 * @param key key to remove
+	 * @return the value associated with the key or 'null' if the key was not found
+	 */
+	@Override
+	public T remove(double[] key) {
+		MutableRef<T> ref = new MutableRef<>();
+		removeSlot(round(key), slot -> {
+			ref.set(value(slot));
+			return true;
+		});
+		return ref.get();
+	}
+
+	@Override
+	public boolean removeIf(double[] key, Predicate<PointEntry<T>> pred) {
+		return removeSlot(round(key), slot -> pred.test(entry(slot)));
+	}
+
+	/**
+	 * Reinsert the key.
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @return the value associated with the key or 'null' if the key was not found.
+	 */
+	@Override
+	public T update(double[] oldKey, double[] newKey) {
+		if (root == NONE) {
+			return null;
+		}
+		T value = remove(oldKey);
+		if (value != null) {
+			insert(newKey, value);
+			return value;
+		}
+		return null;
+	}
+
+	/**
+	 * Reinsert the key.
+	 *
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @param value  the value of the entry that should be updated
+	 * @return `true` iff the entry was found and updated
+	 */
+	@Override
+	public boolean update(double[] oldKey, double[] newKey, T value) {
+		if (root == NONE) {
+			return false;
+		}
+		if (remove(oldKey, value)) {
+			insert(newKey, value);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Query the tree, returning all points in the axis-aligned rectangle between 'min' and 'max'.
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @return all entries in the rectangle
+	 */
+	@Override
+	public KDFIterator<T> query(double[] min, double[] max) {
+		return new KDFIterator<>(this, min, max);
+	}
+
+	@Override
+	public KDFIterator<T> iterator() {
+		return new KDFIterator<>(this, null, null);
+	}
+
+	@Override
+	public PointEntryKnn<T> query1nn(double[] center) {
+		PointIteratorKnn<T> it = queryKnn(center, 1);
+		return it.hasNext() ? it.next() : null;
+	}
+
+	@Override
+	public void queryKnnBatch(double[][] centers, int k, T[] values, double[] distances, boolean parallel) {
+		PointMap.super.queryKnnBatch(centers, k, values, distances, parallel);
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k) {
+		return queryKnn(center, k, PointDistance.L2);
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn) {
+		return new KDFIteratorKnn<>(this, center, k, distFn, null);
+	}
+
+	/**
+	 * Filtered kNN query, the filter is applied during the traversal.
+	 * @see PointMultimap#queryKnn(double[], int, PointDistance, PointFilterKnn)
+	 */
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn, PointFilterKnn<T> filterFn) {
+		return new KDFIteratorKnn<>(this, center, k, distFn, filterFn);
+	}
+
+	/**
+	 * kNN iterator. The candidates are kept in primitive arrays that are reused
+	 * when the iterator is reset.
+	 */
+	public static class KDFIteratorKnn<T> extends KnnSearch implements PointIteratorKnn<T> {
+
+		private final KDTreeF<T> tree;
+		// 'null' for unfiltered queries
+		private final PointFilterKnn<T> filterFn;
+
+		KDFIteratorKnn(KDTreeF<T> tree, double[] center, int k, PointDistance distFn,
+					   PointFilterKnn<T> filterFn) {
+			super(tree, distFn);
+			this.tree = tree;
+			this.filterFn = filterFn;
+			reset(center, k);
+		}
+
+		@Override
+		boolean accept(int slot, double dist) {
+			return filterFn == null || filterFn.test(tree.entry(slot), dist);
+		}
+
+		@Override
+		public PointEntryKnn<T> next() {
+			int slot = nextSlot();
+			return new PointEntryKnn<>(tree.point(slot), tree.value(slot), currentDist());
+		}
+
+		@Override
+		public KDFIteratorKnn<T> reset(double[] center, int k) {
+			search(center, k);
+			return this;
+		}
+	}
+
+	/**
+	 * Window query iterator. The traversal stack consists of primitive arrays
+	 * that are reused when the iterator is reset.
+	 */
+	public static class KDFIterator<T> extends WindowSearch implements PointIterator<T> {
+
+		private final KDTreeF<T> tree;
+
+		KDFIterator(KDTreeF<T> tree, double[] min, double[] max) {
+			super(tree);
+			this.tree = tree;
+			reset(min, max);
+		}
+
+		@Override
+		public PointEntry<T> next() {
+			return tree.entry(nextSlot());
+		}
+
+		/**
+		 * Reset the iterator. This iterator can be reused in order to reduce load on the
+		 * garbage collector.
+		 *
+		 * @param min lower left corner of query, or 'null' for an extent query
+		 * @param max upper right corner of query, or 'null' for an extent query
+		 * @return this.
+		 */
+		@Override
+		public KDFIterator<T> reset(double[] min, double[] max) {
+			if (min == null && max == null) {
+				search(null, null);
+			} else {
+				// Rounding is monotonic, rounded points inside the box remain inside the rounded box
+				search(round(min), round(max));
+			}
+			return this;
+		}
+	}
+
+	@Override
+	public KDFStats getStats() {
+		return collectStats(new KDFStats(this));
+	}
+
+	/**
+	 * Statistics container class.
+	 */
+	public static class KDFStats extends Stats {
+		public KDFStats(KDTreeF<?> tree) {
+			super(tree.getNDistKNN(), 0, tree.getNDistKNN());
+		}
+	}
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.kdtree;
+
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.function.Predicate;
+
+import org.tinspin.index.*;
+import org.tinspin.index.util.MutableRef;
+
+/**
+ * A KD-Tree implementation that stores all nodes in flat arrays instead of
+ * one object per entry.
+ * <p>
+ * The coordinates of all nodes are stored in a single contiguous {@code double[]}, the
+ * children are referenced via {@code int} indexes and the values are kept in a
+ * parallel {@code Object[]}. This avoids object headers and pointer chasing and
+ * considerably reduces memory consumption for large trees.
+ * <p>
+ * The algorithms are the same as in {@link KDTree}. The split dimension of a node
+ * is not stored, it is derived from the depth of the node.
+ * Slots of removed nodes are reused by subsequent insertions, see {@link KDTreeFlatBase}.
+ * <p>
+ * Keys are always copied into the internal array, query results therefore
+ * return copies of the keys.
+ *
+ * @param <T> Value type
+ */
+public class KDTreeFlat<T> extends KDTreeFlatBase implements PointMap<T>, PointMultimap<T> {
+
+	private double[] coords;
+	private Object[] values;
+
+
+	private KDTreeFlat(int dims) {
+		super(dims);
+		init();
+	}
+
+	public static <T> KDTreeFlat<T> create(int dims) {
+		return new KDTreeFlat<>(dims);
+	}
+
+	/**
+	 * @param config Index configuration. The defensive-copy setting is ignored because
+	 *               keys are always copied into the internal coordinate array.
+	 * @return New KD-tree
+	 * @param <T> Value type
+	 */
+	public static <T> KDTreeFlat<T> create(IndexConfig config) {
+		return new KDTreeFlat<>(config.getDimensions());
+	}
+
+	@Override
+	void initStorage(int capacity) {
+		coords = new double[capacity * dims];
+		values = new Object[capacity];
+	}
+
+	@Override
+	void growStorage(int capacity) {
+		coords = Arrays.copyOf(coords, capacity * dims);
+		values = Arrays.copyOf(values, capacity);
+	}
+
+	@Override
+	double coord(int slot, int dim) {
+		return coords[slot * dims + dim];
+	}
+
+	@Override
+	double[] point(int slot, double[] buf) {
+		if (buf == null) {
+			buf = new double[dims];
+		}
+		System.arraycopy(coords, slot * dims, buf, 0, dims);
+		return buf;
+	}
+
+	@Override
+	void moveSlot(int src, int dst) {
+		System.arraycopy(coords, src * dims, coords, dst * dims, dims);
+		values[dst] = values[src];
+	}
+
+	@Override
+	void clearValue(int slot) {
+		values[slot] = null;
+	}
+
+	@Override
+	String valueToString(int slot) {
+		return String.valueOf(values[slot]);
+	}
+
+	@SuppressWarnings("unchecked")
+	T value(int slot) {
+		return (T) values[slot];
+	}
+
+	private PointEntry<T> entry(int slot) {
+		return new PointEntry<>(point(slot), value(slot));
+	}
+
+	/**
+	 * Insert a key-value pair.
+	 *
+	 * @param key   the key
+	 * @param value the value
+	 */
+	@Override
+	public void insert(double[] key, T value) {
+		int slot = allocate();
+		System.arraycopy(key, 0, coords, slot * dims, dims);
+		values[slot] = value;
+		link(slot);
+	}
+
+	/**
+	 * Check whether a given key exists.
+	 *
+	 * @param key the key to check
+	 * @return true iff the key exists
+	 */
+	@Override
+	public boolean contains(double[] key) {
+		return findSlot(key, null) != NONE;
+	}
+
+	@Override
+	public boolean contains(double[] key, T value) {
+		return findSlot(key, slot -> Objects.equals(value, values[slot])) != NONE;
+	}
+
+	/**
+	 * Lookup an entry, using exact match.
+	 *
+	 * @param point the point
+	 * @return an iterator over all entries at the given point
+	 */
+	@Override
+	public PointIterator<T> queryExactPoint(double[] point) {
+		return query(point, point);
+	}
+
+	/**
+	 * Get the value associates with the key.
+	 *
+	 * @param key the key to look up
+	 * @return the value for the key or 'null' if the key was not found
+	 */
+	@Override
+	public T queryExact(double[] key) {
+		int n = findSlot(key, null);
+		return n == NONE ? null : value(n);
+	}
+
+	/**
+	 * Remove all entries at the given point.
+	 *
+	 * @param key the point
+	 * @return `true` iff an entry was found and removed
+	 */
+	@Override
+	public boolean remove(double[] key, T value) {
+		return removeSlot(key, slot -> Objects.equals(values[slot], value));
+	}
+
+	/**
+	 * Remove a key.
+	 * @param key key to remove
+	 * @return the value associated with the key or 'null' if the key was not found
+	 */
+	@Override
+	public T remove(double[] key) {
+		MutableRef<T> ref = new MutableRef<>();
+		removeSlot(key, slot -> {
+			ref.set(value(slot));
+			return true;
+		});
+		return ref.get();
+	}
+
+	@Override
+	public boolean removeIf(double[] key, Predicate<PointEntry<T>> pred) {
+		return removeSlot(key, slot -> pred.test(entry(slot)));
+	}
+
+	/**
+	 * Reinsert the key.
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @return the value associated with the key or 'null' if the key was not found.
+	 */
+	@Override
+	public T update(double[] oldKey, double[] newKey) {
+		if (root == NONE) {
+			return null;
+		}
+		T value = remove(oldKey);
+		if (value != null) {
+			insert(newKey, value);
+			return value;
+		}
+		return null;
+	}
+
+	/**
+	 * Reinsert the key.
+	 *
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @param value  the value of the entry that should be updated
+	 * @return `true` iff the entry was found and updated
+	 */
+	@Override
+	public boolean update(double[] oldKey, double[] newKey, T value) {
+		if (root == NONE) {
+			return false;
+		}
+		if (remove(oldKey, value)) {
+			insert(newKey, value);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Query the tree, returning all points in the axis-aligned rectangle between 'min' and 'max'.
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @return all entries in the rectangle
+	 */
+	@Override
+	public KDFlatIterator<T> query(double[] min, double[] max) {
+		return new KDFlatIterator<>(this, min, max);
+	}
+
+	@Override
+	public KDFlatIterator<T> iterator() {
+		return new KDFlatIterator<>(this, null, null);
+	}
+
+	@Override
+	public PointEntryKnn<T> query1nn(double[] center) {
+		PointIteratorKnn<T> it = queryKnn(center, 1);
+		return it.hasNext() ? it.next() : null;
+	}
+
+	@Override
+	public void queryKnnBatch(double[][] centers, int k, T[] values, double[] distances, boolean parallel) {
+		PointMap.super.queryKnnBatch(centers, k, values, distances, parallel);
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k) {
+		return queryKnn(center, k, PointDistance.L2);
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn) {
+		return new KDFlatIteratorKnn<>(this, center, k, distFn, null);
+	}
+
+	/**
+	 * Filtered kNN query, the filter is applied during the traversal.
+	 * @see PointMultimap#queryKnn(double[], int, PointDistance, PointFilterKnn)
+	 */
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn, PointFilterKnn<T> filterFn) {
+		return new KDFlatIteratorKnn<>(this, center, k, distFn, filterFn);
+	}
+
+	/**
+	 * kNN iterator. The candidates are kept in primitive arrays that are reused
+	 * when the iterator is reset.
+	 */
+	public static class KDFlatIteratorKnn<T> extends KnnSearch implements PointIteratorKnn<T> {
+
+		private final KDTreeFlat<T> tree;
+		// 'null' for unfiltered queries
+		private final PointFilterKnn<T> filterFn;
+
+		KDFlatIteratorKnn(KDTreeFlat<T> tree, double[] center, int k, PointDistance distFn,
+						  PointFilterKnn<T> filterFn) {
+			super(tree, distFn);
+			this.tree = tree;
+			this.filterFn = filterFn;
+			reset(center, k);
+		}
+
+		@Override
+		boolean accept(int slot, double dist) {
+			return filterFn == null || filterFn.test(tree.entry(slot), dist);
+		}
+
+		@Override
+		public PointEntryKnn<T> next() {
+			int slot = nextSlot();
+			return new PointEntryKnn<>(tree.point(slot), tree.value(slot), currentDist());
+		}
+
+		@Override
+		public KDFlatIteratorKnn<T> reset(double[] center, int k) {
+			search(center, k);
+			return this;
+		}
+	}
+
+	/**
+	 * Window query iterator. The traversal stack consists of primitive arrays
+	 * that are reused when the iterator is reset.
+	 */
+	public static class KDFlatIterator<T> extends WindowSearch implements PointIterator<T> {
+
+		private final KDTreeFlat<T> tree;
+
+		KDFlatIterator(KDTreeFlat<T> tree, double[] min, double[] max) {
+			super(tree);
+			this.tree = tree;
+			reset(min, max);
+		}
+
+		@Override
+		public PointEntry<T> next() {
+			return tree.entry(nextSlot());
+		}
+
+		/**
+		 * Reset the iterator. This iterator can be reused in order to reduce load on the
+		 * garbage collector.
+		 *
+		 * @param min lower left corner of query, or 'null' for an extent query
+		 * @param max upper right corner of query, or 'null' for an extent query
+		 * @return this.
+		 */
+		@Override
+		public KDFlatIterator<T> reset(double[] min, double[] max) {
+			search(min, max);
+			return this;
+		}
+	}
+
+	@Override
+	public KDFlatStats getStats() {
+		return collectStats(new KDFlatStats(this));
+	}
+
+	/**
+	 * Statistics container class.
+	 */
+	public static class KDFlatStats extends Stats {
+		public KDFlatStats(KDTreeFlat<?> tree) {
+			super(tree.getNDistKNN(), 0, tree.getNDistKNN());
+		}
+	}
+}
@@ -0,0 +1,820 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.kdtree;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntPredicate;
+
+import org.tinspin.index.Index;
+import org.tinspin.index.IndexMetrics;
+import org.tinspin.index.PointDistance;
+import org.tinspin.index.Stats;
+import org.tinspin.index.util.StringBuilderLn;
+
+/**
+ * Base class of the KD-Trees that store all nodes in flat arrays, see {@link KDTreeFlat}.
+ * <p>
+ * This class implements the tree: nodes are identified by their slot, the children of
+ * a node are referenced via the {@code int} arrays 'lo' and 'hi'. The split dimension of a node
+ * is not stored, it is derived from the depth of the node. Slots of removed nodes are reused
+ * by subsequent insertions.
+ * <p>
+ * Subclasses store the coordinates and the values of the slots, e.g. {@link KDTreeF} stores
+ * the coordinates as {@code float} and {@link KDTreeLong} stores the values as {@code long}.
+ * All comparisons use the coordinates as returned by {@link #coord(int, int)}.
+ */
+abstract class KDTreeFlatBase implements Index {
+
+	static final int NONE = -1;
+	private static final int INITIAL_CAPACITY = 16;
+
+	final int dims;
+	private int size = 0;
+	private int modCount = 0;
+	// Updated by concurrent kNN queries, e.g. by parallel batch queries
+	private final LongAdder nDistKNN = new LongAdder();
+	private IndexMetrics metrics = IndexMetrics.NONE;
+	/** See {@link KDTree} for a discussion of the invariant. */
+	private boolean invariantBroken = false;
+
+	int root = NONE;
+	/** Number of slots in use, including slots in the free list. */
+	private int nSlots = 0;
+	/** Head of the list of free slots. The list is linked via 'lo'. */
+	private int freeList = NONE;
+	int[] lo;
+	int[] hi;
+
+	KDTreeFlatBase(int dims) {
+		this.dims = dims;
+	}
+
+	/**
+	 * Create the coordinate and value arrays. This must be called by the constructor of the subclass.
+	 */
+	void init() {
+		init(INITIAL_CAPACITY);
+	}
+
+	private void init(int capacity) {
+		lo = new int[capacity];
+		hi = new int[capacity];
+		initStorage(capacity);
+		nSlots = 0;
+		freeList = NONE;
+		root = NONE;
+	}
+
+	/**
+	 * Create new coordinate and value arrays.
+	 * @param capacity number of slots
+	 */
+	abstract void initStorage(int capacity);
+
+	/**
+	 * Copy the coordinate and value arrays into larger arrays.
+	 * @param capacity new number of slots
+	 */
+	abstract void growStorage(int capacity);
+
+	/**
+	 * @return coordinate 'dim' of the key in 'slot'
+	 */
+	abstract double coord(int slot, int dim);
+
+	/**
+	 * Copy the key and the value of slot 'src' to slot 'dst'.
+	 */
+	abstract void moveSlot(int src, int dst);
+
+	/**
+	 * Release the value of a removed slot.
+	 */
+	abstract void clearValue(int slot);
+
+	abstract String valueToString(int slot);
+
+	/**
+	 * Allocate a slot. The caller must set the key and the value of the slot
+	 * and then call {@link #link(int)}.
+	 * @return the slot
+	 */
+	int allocate() {
+		int slot;
+		if (freeList != NONE) {
+			slot = freeList;
+			freeList = lo[slot];
+		} else {
+			if (nSlots == lo.length) {
+				int newCapacity = nSlots + (nSlots >> 1) + 1;
+				lo = Arrays.copyOf(lo, newCapacity);
+				hi = Arrays.copyOf(hi, newCapacity);
+				growStorage(newCapacity);
+			}
+			slot = nSlots++;
+		}
+		lo[slot] = NONE;
+		hi[slot] = NONE;
+		return slot;
+	}
+
+	private void free(int slot) {
+		clearValue(slot);
+		hi[slot] = NONE;
+		lo[slot] = freeList;
+		freeList = slot;
+	}
+
+	/**
+	 * Insert an allocated slot into the tree.
+	 * @param slot the slot, its key must already be set
+	 */
+	void link(int slot) {
+		size++;
+		modCount++;
+		if (root == NONE) {
+			root = slot;
+			return;
+		}
+		int n = root;
+		int dim = 0;
+		while (true) {
+			if (coord(slot, dim) >= coord(n, dim)) {
+				if (hi[n] == NONE) {
+					hi[n] = slot;
+					return;
+				}
+				n = hi[n];
+			} else {
+				if (lo[n] == NONE) {
+					lo[n] = slot;
+					return;
+				}
+				n = lo[n];
+			}
+			dim = nextDim(dim);
+		}
+	}
+
+	int nextDim(int dim) {
+		return dim + 1 == dims ? 0 : dim + 1;
+	}
+
+	private boolean isLeaf(int slot) {
+		return lo[slot] == NONE && hi[slot] == NONE;
+	}
+
+	/**
+	 * @param slot the slot
+	 * @param buf buffer for the key, may be 'null'
+	 * @return the key of the slot
+	 */
+	double[] point(int slot, double[] buf) {
+		if (buf == null) {
+			buf = new double[dims];
+		}
+		for (int d = 0; d < dims; d++) {
+			buf[d] = coord(slot, d);
+		}
+		return buf;
+	}
+
+	double[] point(int slot) {
+		return point(slot, null);
+	}
+
+	private boolean equalsKey(int slot, double[] key) {
+		for (int d = 0; d < dims; d++) {
+			if (coord(slot, d) != key[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param key the key, it must have the precision of the stored keys
+	 * @param filter Filter for the slots, may be 'null'.
+	 * @return the first matching slot or NONE
+	 */
+	int findSlot(double[] key, IntPredicate filter) {
+		return findSlot(key, new RemoveResult(), filter);
+	}
+
+	private int findSlot(double[] key, RemoveResult result, IntPredicate filter) {
+		if (root == NONE) {
+			return NONE;
+		}
+		return invariantBroken
+				? findSlotSlow(key, root, 0, NONE, result, filter)
+				: findSlotFast(key, result, filter);
+	}
+
+	private int findSlotFast(double[] key, RemoveResult result, IntPredicate filter) {
+		int n = root;
+		int parent = NONE;
+		int dim = 0;
+		do {
+			double nodeX = coord(n, dim);
+			double keyX = key[dim];
+			if (keyX == nodeX && equalsKey(n, key) && (filter == null || filter.test(n))) {
+				result.pos = dim;
+				result.nodeParent = parent;
+				return n;
+			}
+			parent = n;
+			n = (keyX >= nodeX) ? hi[n] : lo[n];
+			dim = nextDim(dim);
+		} while (n != NONE);
+		return NONE;
+	}
+
+	private int findSlotSlow(double[] key, int n, int dim, int parent, RemoveResult result,
+							 IntPredicate filter) {
+		do {
+			double nodeX = coord(n, dim);
+			double keyX = key[dim];
+			if (keyX == nodeX) {
+				if (equalsKey(n, key) && (filter == null || filter.test(n))) {
+					result.pos = dim;
+					result.nodeParent = parent;
+					return n;
+				}
+				//Broken invariant? We need to check the 'lower' part as well...
+				if (lo[n] != NONE) {
+					int n2 = findSlotSlow(key, lo[n], nextDim(dim), n, result, filter);
+					if (n2 != NONE) {
+						return n2;
+					}
+				}
+			}
+			parent = n;
+			n = (keyX >= nodeX) ? hi[n] : lo[n];
+			dim = nextDim(dim);
+		} while (n != NONE);
+		return NONE;
+	}
+
+	/**
+	 * Remove the first entry at the given key that matches the filter.
+	 * @param key the key, it must have the precision of the stored keys
+	 * @param filter Filter for the slots. The filter is called before anything is modified.
+	 * @return `true` iff an entry was found and removed
+	 */
+	boolean removeSlot(double[] key, IntPredicate filter) {
+		if (root == NONE) {
+			return false;
+		}
+
+		invariantBroken = true;
+
+		//find
+		RemoveResult removeResult = new RemoveResult();
+		int eToRemove = findSlot(key, removeResult, filter);
+		if (eToRemove == NONE) {
+			return false;
+		}
+
+		//remove
+		modCount++;
+		if (eToRemove == root && size == 1) {
+			clear();
+			return true;
+		}
+
+		// find replacement
+		while (!isLeaf(eToRemove)) {
+			int pos = removeResult.pos;
+			removeResult.node = NONE;
+			if (hi[eToRemove] != NONE) {
+				//get replacement from right
+				//This is preferable, because it cannot break the invariant
+				removeResult.best = Double.POSITIVE_INFINITY;
+				removeMinLeaf(hi[eToRemove], nextDim(pos), eToRemove, pos, removeResult);
+			} else {
+				//get replacement from left
+				removeResult.best = Double.NEGATIVE_INFINITY;
+				removeMaxLeaf(lo[eToRemove], nextDim(pos), eToRemove, pos, removeResult);
+			}
+			int repl = removeResult.node;
+			moveSlot(repl, eToRemove);
+			eToRemove = repl;
+		}
+		//leaf node
+		int parent = removeResult.nodeParent;
+		if (parent != NONE) {
+			if (lo[parent] == eToRemove) {
+				lo[parent] = NONE;
+			} else if (hi[parent] == eToRemove) {
+				hi[parent] = NONE;
+			} else {
+				throw new IllegalStateException();
+			}
+		}
+		free(eToRemove);
+		size--;
+		return true;
+	}
+
+	private static class RemoveResult {
+		int node = NONE;
+		int nodeParent = NONE;
+		double best;
+		int pos;
+	}
+
+	private void removeMinLeaf(int node, int nodeDim, int parent, int pos, RemoveResult result) {
+		//Split in 'interesting' dimension
+		if (pos == nodeDim) {
+			//We strictly look for leaf nodes with left==null
+			// -> left!=null means the left child is at least as small as the current node
+			if (lo[node] != NONE) {
+				removeMinLeaf(lo[node], nextDim(nodeDim), node, pos, result);
+			} else if (coord(node, pos) <= result.best) {
+				result.node = node;
+				result.nodeParent = parent;
+				result.best = coord(node, pos);
+				result.pos = nodeDim;
+			}
+		} else {
+			//split in any other dimension.
+			//First, check local key.
+			double localX = coord(node, pos);
+			if (localX <= result.best) {
+				result.node = node;
+				result.nodeParent = parent;
+				result.best = localX;
+				result.pos = nodeDim;
+			}
+			if (lo[node] != NONE) {
+				removeMinLeaf(lo[node], nextDim(nodeDim), node, pos, result);
+			}
+			if (hi[node] != NONE) {
+				removeMinLeaf(hi[node], nextDim(nodeDim), node, pos, result);
+			}
+		}
+	}
+
+	private void removeMaxLeaf(int node, int nodeDim, int parent, int pos, RemoveResult result) {
+		//Split in 'interesting' dimension
+		if (pos == nodeDim) {
+			//We strictly look for leaf nodes with left==null
+			if (hi[node] != NONE) {
+				removeMaxLeaf(hi[node], nextDim(nodeDim), node, pos, result);
+			} else if (coord(node, pos) >= result.best) {
+				result.node = node;
+				result.nodeParent = parent;
+				result.best = coord(node, pos);
+				result.pos = nodeDim;
+			}
+		} else {
+			//split in any other dimension.
+			//First, check local key.
+			double localX = coord(node, pos);
+			if (localX >= result.best) {
+				result.node = node;
+				result.nodeParent = parent;
+				result.best = localX;
+				result.pos = nodeDim;
+			}
+			if (lo[node] != NONE) {
+				removeMaxLeaf(lo[node], nextDim(nodeDim), node, pos, result);
+			}
+			if (hi[node] != NONE) {
+				removeMaxLeaf(hi[node], nextDim(nodeDim), node, pos, result);
+			}
+		}
+	}
+
+	/**
+	 * Get the number of key-value pairs in the tree.
+	 * @return the size
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Removes all elements from the tree.
+	 */
+	@Override
+	public void clear() {
+		size = 0;
+		invariantBroken = false;
+		modCount++;
+		init(INITIAL_CAPACITY);
+	}
+
+	/**
+	 * @return the number of slots, including free slots
+	 */
+	int capacity() {
+		return lo.length;
+	}
+
+	private boolean isEnclosed(int slot, double[] min, double[] max) {
+		for (int d = 0; d < dims; d++) {
+			double x = coord(slot, d);
+			if (x < min[d] || x > max[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private double dist(double[] center, int slot, PointDistance distFn, double[] buf) {
+		if (distFn == PointDistance.L2) {
+			double dist = 0;
+			for (int d = 0; d < dims; d++) {
+				double x = center[d] - coord(slot, d);
+				dist += x * x;
+			}
+			return Math.sqrt(dist);
+		}
+		return distFn.dist(center, point(slot, buf));
+	}
+
+	private double rangeSearchKnn(int node, int dim, double[] center, KnnSearch cand, double maxRange) {
+		cand.nVisits++;
+		int nLo = lo[node];
+		int nHi = hi[node];
+		double x = coord(node, dim);
+		int dim2 = nextDim(dim);
+		if (nLo != NONE && (center[dim] < x || nHi == NONE)) {
+			//go down
+			maxRange = rangeSearchKnn(nLo, dim2, center, cand, maxRange);
+			//refine result
+			if (center[dim] + maxRange >= x) {
+				maxRange = cand.add(node, dist(center, node, cand.distFn, cand.buf));
+				if (nHi != NONE) {
+					maxRange = rangeSearchKnn(nHi, dim2, center, cand, maxRange);
+				}
+			}
+		} else if (nHi != NONE) {
+			//go down
+			maxRange = rangeSearchKnn(nHi, dim2, center, cand, maxRange);
+			//refine result
+			if (center[dim] <= x + maxRange) {
+				maxRange = cand.add(node, dist(center, node, cand.distFn, cand.buf));
+				if (nLo != NONE) {
+					maxRange = rangeSearchKnn(nLo, dim2, center, cand, maxRange);
+				}
+			}
+		} else {
+			//leaf -> first (probably best) match!
+			maxRange = cand.add(node, dist(center, node, cand.distFn, cand.buf));
+		}
+		return maxRange;
+	}
+
+	/**
+	 * Base class of the kNN iterators. The candidates are kept in primitive arrays that are reused
+	 * when the iterator is reset.
+	 */
+	abstract static class KnnSearch {
+
+		private final KDTreeFlatBase tree;
+		private final PointDistance distFn;
+		private final double[] buf;
+		private int[] candSlots = new int[0];
+		private double[] candDists = new double[0];
+		private int k;
+		private int nCand;
+		private int pos;
+		// Distance calculations of the current query, added to the tree when the query is finished
+		private long nDist;
+		private long nVisits;
+
+		KnnSearch(KDTreeFlatBase tree, PointDistance distFn) {
+			this.tree = tree;
+			this.distFn = distFn;
+			this.buf = new double[tree.dims];
+		}
+
+		/**
+		 * @return 'false' if the slot should not be returned, e.g. because it is filtered out
+		 */
+		abstract boolean accept(int slot, double dist);
+
+		/**
+		 * Insertion sort into candidate list.
+		 * @return the new maximum range
+		 */
+		private double add(int slot, double dist) {
+			nDist++;
+			if (nCand == k && dist >= candDists[k - 1]) {
+				//don't add if we already have enough equally good results.
+				return candDists[k - 1];
+			}
+			if (!accept(slot, dist)) {
+				return nCand < k ? Double.POSITIVE_INFINITY : candDists[k - 1];
+			}
+			if (nCand == k) {
+				nCand--;
+			}
+			int i = nCand;
+			while (i > 0 && candDists[i - 1] > dist) {
+				candDists[i] = candDists[i - 1];
+				candSlots[i] = candSlots[i - 1];
+				i--;
+			}
+			candDists[i] = dist;
+			candSlots[i] = slot;
+			nCand++;
+			return nCand < k ? Double.POSITIVE_INFINITY : candDists[k - 1];
+		}
+
+		public boolean hasNext() {
+			return pos < nCand;
+		}
+
+		/**
+		 * @return the next slot
+		 */
+		int nextSlot() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return candSlots[pos++];
+		}
+
+		/**
+		 * @return the slot returned by the last call to {@link #nextSlot()}
+		 */
+		int currentSlot() {
+			if (pos == 0) {
+				throw new IllegalStateException("next() has not been called");
+			}
+			return candSlots[pos - 1];
+		}
+
+		/**
+		 * @return the distance of the slot returned by the last call to {@link #nextSlot()}
+		 */
+		double currentDist() {
+			currentSlot();
+			return candDists[pos - 1];
+		}
+
+		void search(double[] center, int k) {
+			this.k = k;
+			this.nCand = 0;
+			this.pos = 0;
+			if (candSlots.length < k) {
+				candSlots = new int[k];
+				candDists = new double[k];
+			}
+			if (tree.root != NONE && k > 0) {
+				nDist = 0;
+				nVisits = 0;
+				tree.rangeSearchKnn(tree.root, 0, center, this, Double.POSITIVE_INFINITY);
+				tree.nDistKNN.add(nDist);
+				tree.metrics.count(IndexMetrics.Counter.NODE_VISITS, nVisits);
+				tree.metrics.count(IndexMetrics.Counter.ENTRIES_SCANNED, nDist);
+			}
+		}
+	}
+
+	/**
+	 * Base class of the window query iterators. The traversal stack consists of primitive arrays
+	 * that are reused when the iterator is reset.
+	 */
+	abstract static class WindowSearch {
+
+		private static final byte DO_LEFT = 0;
+		private static final byte DO_KEY = 1;
+		private static final byte DO_RIGHT = 2;
+		private static final byte DONE = 3;
+
+		private final KDTreeFlatBase tree;
+		private int[] stackNode = new int[16];
+		private int[] stackDim = new int[16];
+		private byte[] stackState = new byte[16];
+		private int stackSize = 0;
+		private int next = NONE;
+		private int current = NONE;
+		private double[] min;
+		private double[] max;
+
+		WindowSearch(KDTreeFlatBase tree) {
+			this.tree = tree;
+		}
+
+		private void push(int node, int dim) {
+			if (stackSize == stackNode.length) {
+				int newLen = stackSize * 2;
+				stackNode = Arrays.copyOf(stackNode, newLen);
+				stackDim = Arrays.copyOf(stackDim, newLen);
+				stackState = Arrays.copyOf(stackState, newLen);
+			}
+			stackNode[stackSize] = node;
+			stackDim[stackSize] = dim;
+			stackState[stackSize] = DO_LEFT;
+			stackSize++;
+			tree.metrics.count(IndexMetrics.Counter.NODE_VISITS, 1);
+		}
+
+		private void findNext() {
+			int[] lo = tree.lo;
+			int[] hi = tree.hi;
+			while (stackSize > 0) {
+				int i = stackSize - 1;
+				int node = stackNode[i];
+				int dim = stackDim[i];
+				switch (stackState[i]) {
+					case DO_LEFT:
+						stackState[i] = DO_KEY;
+						if (lo[node] != NONE && min[dim] <= tree.coord(node, dim)) {
+							push(lo[node], tree.nextDim(dim));
+						}
+						break;
+					case DO_KEY:
+						stackState[i] = DO_RIGHT;
+						tree.metrics.count(IndexMetrics.Counter.ENTRIES_SCANNED, 1);
+						if (tree.isEnclosed(node, min, max)) {
+							next = node;
+							return;
+						}
+						break;
+					case DO_RIGHT:
+						stackState[i] = DONE;
+						if (hi[node] != NONE && max[dim] >= tree.coord(node, dim)) {
+							push(hi[node], tree.nextDim(dim));
+						}
+						break;
+					default:
+						stackSize--;
+				}
+			}
+			next = NONE;
+		}
+
+		public boolean hasNext() {
+			return next != NONE;
+		}
+
+		/**
+		 * @return the next slot
+		 */
+		int nextSlot() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			current = next;
+			findNext();
+			return current;
+		}
+
+		/**
+		 * @return the slot returned by the last call to {@link #nextSlot()}
+		 */
+		int currentSlot() {
+			if (current == NONE) {
+				throw new IllegalStateException("next() has not been called");
+			}
+			return current;
+		}
+
+		/**
+		 * @param min lower left corner of query, or 'null' for an extent query.
+		 *            The corners must have the precision of the stored keys.
+		 * @param max upper right corner of query, or 'null' for an extent query
+		 */
+		void search(double[] min, double[] max) {
+			if (min == null && max == null) {
+				min = new double[tree.dims];
+				max = new double[tree.dims];
+				Arrays.fill(min, Double.NEGATIVE_INFINITY);
+				Arrays.fill(max, Double.POSITIVE_INFINITY);
+			}
+			this.min = min;
+			this.max = max;
+			stackSize = 0;
+			next = NONE;
+			current = NONE;
+			if (tree.root != NONE) {
+				push(tree.root, 0);
+				findNext();
+			}
+		}
+	}
+
+	/**
+	 * Returns a printable list of the tree.
+	 * @return the tree as String
+	 */
+	@Override
+	public String toStringTree() {
+		StringBuilderLn sb = new StringBuilderLn();
+		if (root == NONE) {
+			sb.append("empty tree");
+		} else {
+			toStringTree(sb, root, 0);
+		}
+		return sb.toString();
+	}
+
+	private void toStringTree(StringBuilderLn sb, int node, int depth) {
+		if (lo[node] != NONE) {
+			toStringTree(sb, lo[node], depth + 1);
+		}
+		for (int i = 0; i < depth; i++) {
+			sb.append(".");
+		}
+		sb.append(" ");
+		sb.append(Arrays.toString(point(node)));
+		sb.append(" v=").append(valueToString(node));
+		sb.append(" l/r=");
+		sb.append(lo[node] == NONE ? null : Arrays.toString(point(lo[node])));
+		sb.append("/");
+		sb.append(hi[node] == NONE ? null : Arrays.toString(point(hi[node])));
+		sb.appendLn();
+		if (hi[node] != NONE) {
+			toStringTree(sb, hi[node], depth + 1);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + ";size=" + size +
+				";capacity=" + capacity() +
+				";center=" + (root == NONE ? "null" : Arrays.toString(point(root)));
+	}
+
+	/**
+	 * Collect the statistics of the tree.
+	 * @param s the statistics
+	 * @return the statistics
+	 * @param <S> type of the statistics
+	 */
+	<S extends Stats> S collectStats(S s) {
+		s.dims = dims;
+		if (root != NONE) {
+			checkNode(s, root, 0);
+		}
+		return s;
+	}
+
+	private void checkNode(Stats s, int node, int depth) {
+		s.nNodes++;
+		s.nEntries++;
+		if (depth > s.maxDepth) {
+			s.maxDepth = depth;
+		}
+		if (lo[node] != NONE) {
+			checkNode(s, lo[node], depth + 1);
+		}
+		if (hi[node] != NONE) {
+			checkNode(s, hi[node], depth + 1);
+		}
+	}
+
+	/**
+	 * @return the number of distance calculations of kNN queries
+	 */
+	long getNDistKNN() {
+		return nDistKNN.sum();
+	}
+
+	/**
+	 * Reports node visits and scanned entries of window queries and kNN queries.
+	 * @param metrics the receiver
+	 */
+	@Override
+	public void setMetrics(IndexMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	@Override
+	public int getDims() {
+		return dims;
+	}
+
+	@Override
+	public int getNodeCount() {
+		return getStats().getNodeCount();
+	}
+
+	@Override
+	public int getDepth() {
+		return getStats().getMaxDepth();
+	}
+}
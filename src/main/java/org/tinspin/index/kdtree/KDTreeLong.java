@@ -0,0 +1,301 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.kdtree;
+
+import java.util.Arrays;
+import java.util.PrimitiveIterator;
+import java.util.function.LongPredicate;
+
+import org.tinspin.index.*;
+
+/**
+ * A variant of {@link KDTreeFlat} with primitive {@code long} values.
+ * <p>
+ * The values are kept in a {@code long[]} parallel to the coordinates, so the tree
+ * contains no objects per entry, not even boxed values. Iterators return the values
+ * via {@link PrimitiveIterator.OfLong#nextLong()} and the keys via {@code point(buf)}.
+ * <p>
+ * Keys are always copied into the internal array, query results therefore
+ * return copies of the keys.
+ */
+public class KDTreeLong extends KDTreeFlatBase implements PointMultimapLong {
+
+	private double[] coords;
+	private long[] values;
+
+
+	private KDTreeLong(int dims) {
+		super(dims);
+		init();
+	}
+
+	public static KDTreeLong create(int dims) {
+		return new KDTreeLong(dims);
+	}
+
+	@Override
+	void initStorage(int capacity) {
+		coords = new double[capacity * dims];
+		values = new long[capacity];
+	}
+
+	@Override
+	void growStorage(int capacity) {
+		coords = Arrays.copyOf(coords, capacity * dims);
+		values = Arrays.copyOf(values, capacity);
+	}
+
+	@Override
+	double coord(int slot, int dim) {
+		return coords[slot * dims + dim];
+	}
+
+	@Override
+	double[] point(int slot, double[] buf) {
+		if (buf == null) {
+			buf = new double[dims];
+		}
+		System.arraycopy(coords, slot * dims, buf, 0, dims);
+		return buf;
+	}
+
+	@Override
+	void moveSlot(int src, int dst) {
+		System.arraycopy(coords, src * dims, coords, dst * dims, dims);
+		values[dst] = values[src];
+	}
+
+	@Override
+	void clearValue(int slot) {
+		// nothing to release
+	}
+
+	@Override
+	String valueToString(int slot) {
+		return String.valueOf(values[slot]);
+	}
+
+	/**
+	 * Insert a key-value pair.
+	 *
+	 * @param key   the key
+	 * @param value the value
+	 */
+	@Override
+	public void insert(double[] key, long value) {
+		int slot = allocate();
+		System.arraycopy(key, 0, coords, slot * dims, dims);
+		values[slot] = value;
+		link(slot);
+	}
+
+	/**
+	 * Check whether a given key exists.
+	 *
+	 * @param key the key to check
+	 * @return true iff the key exists
+	 */
+	public boolean contains(double[] key) {
+		return findSlot(key, null) != NONE;
+	}
+
+	@Override
+	public boolean contains(double[] key, long value) {
+		return findSlot(key, slot -> values[slot] == value) != NONE;
+	}
+
+	/**
+	 * Lookup an entry, using exact match.
+	 *
+	 * @param point the point
+	 * @return an iterator over all entries at the given point
+	 */
+	@Override
+	public KDLongIterator queryExactPoint(double[] point) {
+		return query(point, point);
+	}
+
+	/**
+	 * Remove an entry at the given point.
+	 *
+	 * @param key the point
+	 * @param value the value of the entry
+	 * @return `true` iff an entry was found and removed
+	 */
+	@Override
+	public boolean remove(double[] key, long value) {
+		return removeSlot(key, slot -> values[slot] == value);
+	}
+
+	@Override
+	public boolean removeIf(double[] key, LongPredicate pred) {
+		return removeSlot(key, slot -> pred.test(values[slot]));
+	}
+
+	/**
+	 * Reinsert the key.
+	 *
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @param value  the value of the entry that should be updated
+	 * @return `true` iff the entry was found and updated
+	 */
+	@Override
+	public boolean update(double[] oldKey, double[] newKey, long value) {
+		if (root == NONE) {
+			return false;
+		}
+		if (remove(oldKey, value)) {
+			insert(newKey, value);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Query the tree, returning all points in the axis-aligned rectangle between 'min' and 'max'.
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @return all entries in the rectangle
+	 */
+	@Override
+	public KDLongIterator query(double[] min, double[] max) {
+		return new KDLongIterator(this, min, max);
+	}
+
+	@Override
+	public KDLongIterator iterator() {
+		return new KDLongIterator(this, null, null);
+	}
+
+	@Override
+	public KDLongIteratorKnn queryKnn(double[] center, int k) {
+		return queryKnn(center, k, PointDistance.L2);
+	}
+
+	@Override
+	public KDLongIteratorKnn queryKnn(double[] center, int k, PointDistance distFn) {
+		return new KDLongIteratorKnn(this, center, k, distFn, null);
+	}
+
+	/**
+	 * Filtered kNN query, the filter is applied during the traversal.
+	 */
+	@Override
+	public KDLongIteratorKnn queryKnn(double[] center, int k, PointDistance distFn, LongFilterKnn filterFn) {
+		return new KDLongIteratorKnn(this, center, k, distFn, filterFn);
+	}
+
+	/**
+	 * kNN iterator. The candidates are kept in primitive arrays that are reused
+	 * when the iterator is reset.
+	 */
+	public static class KDLongIteratorKnn extends KnnSearch implements PointIteratorKnnLong {
+
+		private final KDTreeLong tree;
+		// 'null' for unfiltered queries
+		private final LongFilterKnn filterFn;
+
+		KDLongIteratorKnn(KDTreeLong tree, double[] center, int k, PointDistance distFn,
+						  LongFilterKnn filterFn) {
+			super(tree, distFn);
+			this.tree = tree;
+			this.filterFn = filterFn;
+			reset(center, k);
+		}
+
+		@Override
+		boolean accept(int slot, double dist) {
+			return filterFn == null || filterFn.test(tree.values[slot], dist);
+		}
+
+		@Override
+		public long nextLong() {
+			return tree.values[nextSlot()];
+		}
+
+		@Override
+		public double[] point(double[] buf) {
+			return tree.point(currentSlot(), buf);
+		}
+
+		@Override
+		public double dist() {
+			return currentDist();
+		}
+
+		@Override
+		public KDLongIteratorKnn reset(double[] center, int k) {
+			search(center, k);
+			return this;
+		}
+	}
+
+	/**
+	 * Window query iterator. The traversal stack consists of primitive arrays
+	 * that are reused when the iterator is reset.
+	 */
+	public static class KDLongIterator extends WindowSearch implements PointIteratorLong {
+
+		private final KDTreeLong tree;
+
+		KDLongIterator(KDTreeLong tree, double[] min, double[] max) {
+			super(tree);
+			this.tree = tree;
+			reset(min, max);
+		}
+
+		@Override
+		public long nextLong() {
+			return tree.values[nextSlot()];
+		}
+
+		@Override
+		public double[] point(double[] buf) {
+			return tree.point(currentSlot(), buf);
+		}
+
+		/**
+		 * Reset the iterator. This iterator can be reused in order to reduce load on the
+		 * garbage collector.
+		 *
+		 * @param min lower left corner of query, or 'null' for an extent query
+		 * @param max upper right corner of query, or 'null' for an extent query
+		 * @return this.
+		 */
+		@Override
+		public KDLongIterator reset(double[] min, double[] max) {
+			search(min, max);
+			return this;
+		}
+	}
+
+	@Override
+	public KDLongStats getStats() {
+		return collectStats(new KDLongStats(this));
+	}
+
+	/**
+	 * Statistics container class.
+	 */
+	public static class KDLongStats extends Stats {
+		public KDLongStats(KDTreeLong tree) {
+			super(tree.getNDistKNN(), 0, tree.getNDistKNN());
+		}
+	}
+}
@@ -17,11 +17,17 @@
  */
 package org.tinspin.index.qthypercube;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.function.Predicate;
 
+import org.tinspin.index.IndexMetrics;
+import org.tinspin.index.ValueCodec;
 import org.tinspin.index.qthypercube.QuadTreeKD.QStats;
+import org.tinspin.index.util.IndexIO;
 
 import static org.tinspin.index.Index.*;
 
@@ -56,7 +62,7 @@ public class QNode<T> {
 	}
 
 	@SuppressWarnings({ "unchecked", "unused" })
-	QNode<T> tryPut(PointEntry<T> e, int maxNodeSize, boolean enforceLeaf) {
+	QNode<T> tryPut(PointEntry<T> e, int maxNodeSize, boolean enforceLeaf, IndexMetrics metrics) {
 		if (QuadTreeKD.DEBUG && !QUtil.fitsIntoNode(e.point(), center, radius)) {
 			throw new IllegalStateException("e=" + Arrays.toString(e.point()) + 
 					" center/radius=" + Arrays.toString(center) + "/" + radius);
@@ -80,6 +86,7 @@ public class QNode<T> {
 		}
 		
 		//split
+		metrics.count(IndexMetrics.Counter.NODE_SPLITS, 1);
 		ArrayList<PointEntry<T>> vals = values;
 		values = null;
 		subs = new QNode[1 << center.length];
@@ -89,7 +96,7 @@ public class QNode<T> {
 			while (sub != null) {
 				//This may recurse if all entries fall 
 				//into the same subnode
-				sub = sub.tryPut(e2, maxNodeSize, false);
+				sub = sub.tryPut(e2, maxNodeSize, false, metrics);
 			}
 		}
 		return getOrCreateSub(e);
@@ -129,7 +136,7 @@ public class QNode<T> {
 	 * @param p point
 	 * @return subnode position
 	 */
-	private int calcSubPosition(double[] p) {
+	int calcSubPosition(double[] p) {
 		int subNodePos = 0;
 		for (int d = 0; d < center.length; d++) {
 			subNodePos <<= 1;
@@ -140,12 +147,12 @@ public class QNode<T> {
 		return subNodePos;
 	}
 
-	PointEntry<T> remove(QNode<T> parent, double[] key, int maxNodeSize, Predicate<PointEntry<T>> pred) {
+	PointEntry<T> remove(QNode<T> parent, double[] key, int maxNodeSize, Predicate<PointEntry<T>> pred, IndexMetrics metrics) {
 		if (values == null) {
 			int pos = calcSubPosition(key);
 			QNode<T> sub = subs[pos];
 			if (sub != null) {
-				return sub.remove(this, key, maxNodeSize, pred);
+				return sub.remove(this, key, maxNodeSize, pred, metrics);
 			}
 			return null;
 		}
@@ -157,7 +164,7 @@ public class QNode<T> {
 				//TODO provide threshold for re-insert
 				//i.e. do not always merge.
 				if (parent != null) {
-					parent.checkAndMergeLeafNodes(maxNodeSize);
+					parent.checkAndMergeLeafNodes(maxNodeSize, metrics);
 				}
 				return e;
 			}
@@ -166,7 +173,7 @@ public class QNode<T> {
 	}
 
 	PointEntry<T> update(QNode<T> parent, double[] keyOld, double[] keyNew, int maxNodeSize,
-			boolean[] requiresReinsert, int currentDepth, int maxDepth, Predicate<PointEntry<T>> pred) {
+			boolean[] requiresReinsert, int currentDepth, int maxDepth, Predicate<PointEntry<T>> pred, IndexMetrics metrics) {
 		if (values == null) {
 			int pos = calcSubPosition(keyOld);
 			QNode<T> sub = subs[pos];
@@ -174,13 +181,13 @@ public class QNode<T> {
 				return null;
 			}
 			PointEntry<T> ret = sub.update(this, keyOld, keyNew, maxNodeSize, requiresReinsert,
-					currentDepth+1, maxDepth, pred);
+					currentDepth+1, maxDepth, pred, metrics);
 			if (ret != null && requiresReinsert[0] && 
 					QUtil.fitsIntoNode(ret.point(), center, radius/QUtil.EPS_MUL)) {
 				requiresReinsert[0] = false;
 				QNode<T> r = this;
 				while (r != null) {
-					r = r.tryPut(ret, maxNodeSize, currentDepth++ > maxDepth);
+					r = r.tryPut(ret, maxNodeSize, currentDepth++ > maxDepth, metrics);
 				}
 			}
 			return ret;
@@ -200,7 +207,7 @@ public class QNode<T> {
 					//TODO provide threshold for re-insert
 					//i.e. do not always merge.
 					if (parent != null) {
-						parent.checkAndMergeLeafNodes(maxNodeSize);
+						parent.checkAndMergeLeafNodes(maxNodeSize, metrics);
 					}
 				}
 				return e;
@@ -210,7 +217,7 @@ public class QNode<T> {
 		return null;
 	}
 
-	private void checkAndMergeLeafNodes(int maxNodeSize) {
+	private void checkAndMergeLeafNodes(int maxNodeSize, IndexMetrics metrics) {
 		//check
 		int nTotal = 0;
 		for (int i = 0; i < subs.length; i++) {
@@ -229,11 +236,14 @@ public class QNode<T> {
 		
 		//okay, let's merge
 		values = new ArrayList<>(nTotal);
+		int nSubs = 0;
 		for (int i = 0; i < subs.length; i++) {
 			if (subs[i] != null) {
 				values.addAll(subs[i].values);
+				nSubs++;
 			}
 		}
+		metrics.count(IndexMetrics.Counter.NODE_MERGES, nSubs);
 		subs = null;
 	}
 
@@ -351,6 +361,57 @@ public class QNode<T> {
 		return subs;
 	}
 
+	void write(DataOutput out, ValueCodec<? super T> codec) throws IOException {
+		IndexIO.writePoint(out, center);
+		out.writeDouble(radius);
+		out.writeBoolean(isLeaf());
+		if (isLeaf()) {
+			out.writeInt(values.size());
+			for (int i = 0; i < values.size(); i++) {
+				PointEntry<T> e = values.get(i);
+				IndexIO.writePoint(out, e.point());
+				codec.write(out, e.value());
+			}
+			return;
+		}
+		int nSubs = 0;
+		for (QNode<T> sub : subs) {
+			nSubs += sub != null ? 1 : 0;
+		}
+		out.writeInt(nSubs);
+		for (int i = 0; i < subs.length; i++) {
+			if (subs[i] != null) {
+				out.writeInt(i);
+				subs[i].write(out, codec);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> QNode<T> read(DataInput in, ValueCodec<? extends T> codec, int dims) throws IOException {
+		QNode<T> node = new QNode<>(IndexIO.readPoint(in, dims), in.readDouble());
+		if (in.readBoolean()) {
+			int n = in.readInt();
+			node.values = new ArrayList<>(Math.max(2, n));
+			for (int i = 0; i < n; i++) {
+				double[] p = IndexIO.readPoint(in, dims);
+				node.values.add(new PointEntry<>(p, codec.read(in)));
+			}
+			return node;
+		}
+		node.values = null;
+		node.subs = new QNode[1 << dims];
+		int nSubs = in.readInt();
+		for (int i = 0; i < nSubs; i++) {
+			int pos = in.readInt();
+			if (pos < 0 || pos >= node.subs.length) {
+				throw new IOException("Invalid node position: " + pos);
+			}
+			node.subs[pos] = read(in, codec, dims);
+		}
+		return node;
+	}
+
 	void adjustRadius(double radius) {
 		if (!isLeaf()) {
 			throw new IllegalStateException();
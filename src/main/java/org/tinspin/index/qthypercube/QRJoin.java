@@ -0,0 +1,280 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.qthypercube;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+
+import static org.tinspin.index.Index.BoxEntry;
+
+/**
+ * Spatial join of two {@link QuadTreeRKD} by synchronized traversal.
+ * <p>
+ * Nodes of a QuadTreeRKD can hold entries and sub-nodes at the same time (entries that overlap
+ * with the center of a node are stored in the node itself). For a pair of close nodes (a, b),
+ * every result pair (ea, eb) falls in exactly one of these cases:
+ * <ul>
+ * <li>'ea' is stored in 'a': 'ea' is joined with the whole subtree of 'b'</li>
+ * <li>'ea' is stored below 'a' and 'eb' is stored in 'b': 'eb' is joined with the sub-nodes of 'a'</li>
+ * <li>both are stored below 'a' and 'b': the join continues with all close pairs of sub-nodes</li>
+ * </ul>
+ * In parallel mode, node pairs are expanded level by level until there are enough tasks for
+ * all threads of the common {@link ForkJoinPool}, then the tasks are executed in parallel.
+ *
+ * @param <A> value type of the first tree
+ * @param <B> value type of the second tree
+ */
+final class QRJoin<A, B> {
+
+	/** In parallel mode, node pairs are expanded until there are this many tasks per thread. */
+	private static final int TASKS_PER_THREAD = 16;
+
+	private final double maxDistSq;
+	private final BiConsumer<BoxEntry<A>, BoxEntry<B>> consumer;
+
+	private QRJoin(double maxDist, BiConsumer<BoxEntry<A>, BoxEntry<B>> consumer) {
+		this.maxDistSq = maxDist * maxDist;
+		this.consumer = consumer;
+	}
+
+	/**
+	 * @param rootA root of the first tree, may be 'null'
+	 * @param rootB root of the second tree, may be 'null'
+	 * @param maxDist maximum distance of the pairs, '0' for intersecting pairs
+	 * @param consumer receives the pairs, in parallel mode from several threads
+	 * @param parallel whether to join the node pairs in parallel
+	 */
+	static <A, B> void join(QRNode<A> rootA, QRNode<B> rootB, double maxDist,
+			BiConsumer<BoxEntry<A>, BoxEntry<B>> consumer, boolean parallel) {
+		if (rootA == null || rootB == null) {
+			return;
+		}
+		QRJoin<A, B> join = new QRJoin<>(maxDist, consumer);
+		if (!join.isClose(rootA, rootB)) {
+			return;
+		}
+		if (!parallel) {
+			join.joinNodes(rootA, rootB);
+			return;
+		}
+
+		ArrayList<Runnable> tasks = new ArrayList<>();
+		ArrayList<QRNode<A>> pairsA = new ArrayList<>();
+		ArrayList<QRNode<B>> pairsB = new ArrayList<>();
+		pairsA.add(rootA);
+		pairsB.add(rootB);
+		int minTasks = TASKS_PER_THREAD * ForkJoinPool.getCommonPoolParallelism();
+		while (!pairsA.isEmpty() && tasks.size() + pairsA.size() < minTasks) {
+			ArrayList<QRNode<A>> nextA = new ArrayList<>();
+			ArrayList<QRNode<B>> nextB = new ArrayList<>();
+			for (int i = 0; i < pairsA.size(); i++) {
+				QRNode<A> a = pairsA.get(i);
+				QRNode<B> b = pairsB.get(i);
+				if (hasEntries(a) || hasEntries(b)) {
+					tasks.add(() -> join.joinLocalEntries(a, b));
+				}
+				join.expand(a, b, nextA, nextB);
+			}
+			pairsA = nextA;
+			pairsB = nextB;
+		}
+		for (int i = 0; i < pairsA.size(); i++) {
+			QRNode<A> a = pairsA.get(i);
+			QRNode<B> b = pairsB.get(i);
+			tasks.add(() -> join.joinNodes(a, b));
+		}
+		IntStream.range(0, tasks.size()).parallel().forEach(i -> tasks.get(i).run());
+	}
+
+	/**
+	 * Join the subtrees of two nodes. The nodes must be close.
+	 */
+	private void joinNodes(QRNode<A> a, QRNode<B> b) {
+		joinLocalEntries(a, b);
+		QRNode<A>[] subsA = a.getChildNodes();
+		QRNode<B>[] subsB = b.getChildNodes();
+		if (subsA == null || subsB == null) {
+			return;
+		}
+		for (QRNode<A> subA : subsA) {
+			if (subA == null || !isClose(subA, b)) {
+				continue;
+			}
+			for (QRNode<B> subB : subsB) {
+				if (subB != null && isClose(subA, subB)) {
+					joinNodes(subA, subB);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Join the entries of 'a' with the subtree of 'b' and the entries of 'b' with the
+	 * sub-nodes of 'a'.
+	 */
+	private void joinLocalEntries(QRNode<A> a, QRNode<B> b) {
+		ArrayList<BoxEntry<A>> valuesA = a.getEntries();
+		if (valuesA != null) {
+			for (int i = 0; i < valuesA.size(); i++) {
+				BoxEntry<A> ea = valuesA.get(i);
+				if (isClose(ea, b)) {
+					joinEntryA(ea, b);
+				}
+			}
+		}
+		ArrayList<BoxEntry<B>> valuesB = b.getEntries();
+		QRNode<A>[] subsA = a.getChildNodes();
+		if (valuesB != null && subsA != null) {
+			for (int i = 0; i < valuesB.size(); i++) {
+				BoxEntry<B> eb = valuesB.get(i);
+				if (!isClose(a, eb)) {
+					continue;
+				}
+				for (QRNode<A> subA : subsA) {
+					if (subA != null && isClose(subA, eb)) {
+						joinEntryB(subA, eb);
+					}
+				}
+			}
+		}
+	}
+
+	private void joinEntryA(BoxEntry<A> ea, QRNode<B> b) {
+		ArrayList<BoxEntry<B>> values = b.getEntries();
+		if (values != null) {
+			for (int i = 0; i < values.size(); i++) {
+				BoxEntry<B> eb = values.get(i);
+				if (isClose(ea.min(), ea.max(), eb.min(), eb.max())) {
+					consumer.accept(ea, eb);
+				}
+			}
+		}
+		QRNode<B>[] subs = b.getChildNodes();
+		if (subs != null) {
+			for (QRNode<B> sub : subs) {
+				if (sub != null && isClose(ea, sub)) {
+					joinEntryA(ea, sub);
+				}
+			}
+		}
+	}
+
+	private void joinEntryB(QRNode<A> a, BoxEntry<B> eb) {
+		ArrayList<BoxEntry<A>> values = a.getEntries();
+		if (values != null) {
+			for (int i = 0; i < values.size(); i++) {
+				BoxEntry<A> ea = values.get(i);
+				if (isClose(ea.min(), ea.max(), eb.min(), eb.max())) {
+					consumer.accept(ea, eb);
+				}
+			}
+		}
+		QRNode<A>[] subs = a.getChildNodes();
+		if (subs != null) {
+			for (QRNode<A> sub : subs) {
+				if (sub != null && isClose(sub, eb)) {
+					joinEntryB(sub, eb);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Collect the close pairs of sub-nodes of two nodes.
+	 */
+	private void expand(QRNode<A> a, QRNode<B> b, ArrayList<QRNode<A>> outA, ArrayList<QRNode<B>> outB) {
+		QRNode<A>[] subsA = a.getChildNodes();
+		QRNode<B>[] subsB = b.getChildNodes();
+		if (subsA == null || subsB == null) {
+			return;
+		}
+		for (QRNode<A> subA : subsA) {
+			if (subA == null) {
+				continue;
+			}
+			for (QRNode<B> subB : subsB) {
+				if (subB != null && isClose(subA, subB)) {
+					outA.add(subA);
+					outB.add(subB);
+				}
+			}
+		}
+	}
+
+	private static boolean hasEntries(QRNode<?> node) {
+		return node.getEntries() != null && !node.getEntries().isEmpty();
+	}
+
+	private boolean isClose(QRNode<?> a, QRNode<?> b) {
+		double distSq = 0;
+		double[] centerA = a.getCenter();
+		double[] centerB = b.getCenter();
+		double radius = a.getRadius() + b.getRadius();
+		for (int d = 0; d < centerA.length; d++) {
+			double gap = Math.abs(centerA[d] - centerB[d]) - radius;
+			if (gap > 0) {
+				distSq += gap * gap;
+				if (distSq > maxDistSq) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private boolean isClose(BoxEntry<?> e, QRNode<?> node) {
+		return isClose(node, e);
+	}
+
+	private boolean isClose(QRNode<?> node, BoxEntry<?> e) {
+		double distSq = 0;
+		double[] center = node.getCenter();
+		double radius = node.getRadius();
+		double[] min = e.min();
+		double[] max = e.max();
+		for (int d = 0; d < center.length; d++) {
+			double gap = Math.max(min[d] - (center[d] + radius), (center[d] - radius) - max[d]);
+			if (gap > 0) {
+				distSq += gap * gap;
+				if (distSq > maxDistSq) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return 'true' if the Euclidean distance between the two boxes is at most 'maxDist'
+	 */
+	private boolean isClose(double[] minA, double[] maxA, double[] minB, double[] maxB) {
+		double distSq = 0;
+		for (int d = 0; d < minA.length; d++) {
+			double gap = Math.max(minA[d] - maxB[d], minB[d] - maxA[d]);
+			if (gap > 0) {
+				distSq += gap * gap;
+				if (distSq > maxDistSq) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
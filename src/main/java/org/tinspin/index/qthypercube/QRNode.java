@@ -21,6 +21,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.function.Predicate;
 
+import org.tinspin.index.IndexMetrics;
 import org.tinspin.index.qthypercube.QuadTreeKD.QStats;
 
 import static org.tinspin.index.Index.*;
@@ -57,7 +58,7 @@ public class QRNode<T> {
 	}
 
 	@SuppressWarnings({ "unchecked", "unused" })
-	QRNode<T> tryPut(BoxEntry<T> e, int maxNodeSize, boolean enforceLeaf) {
+	QRNode<T> tryPut(BoxEntry<T> e, int maxNodeSize, boolean enforceLeaf, IndexMetrics metrics) {
 		if (QuadTreeKD.DEBUG && !QUtil.fitsIntoNode(e.min(), e.max(), center, radius)) {
 			throw new IllegalStateException("e=" + e + 
 					" center/radius=" + Arrays.toString(center) + "/" + radius);
@@ -87,6 +88,7 @@ public class QRNode<T> {
 		}
 		
 		//split
+		metrics.count(IndexMetrics.Counter.NODE_SPLITS, 1);
 		ArrayList<BoxEntry<T>> vals = values;
 		vals.add(e);
 		values = null;
@@ -105,7 +107,7 @@ public class QRNode<T> {
 			while (sub != null) {
 				//This may recurse if all entries fall 
 				//into the same subnode
-				sub = sub.tryPut(e2, maxNodeSize, false);
+				sub = sub.tryPut(e2, maxNodeSize, false, metrics);
 			}
 		}
 		return null;
@@ -159,13 +161,13 @@ public class QRNode<T> {
 		return subNodePos;
 	}
 
-	BoxEntry<T> remove(QRNode<T> parent, double[] keyL, double[] keyU, int maxNodeSize, Predicate<BoxEntry<T>> pred) {
+	BoxEntry<T> remove(QRNode<T> parent, double[] keyL, double[] keyU, int maxNodeSize, Predicate<BoxEntry<T>> pred, IndexMetrics metrics) {
 		if (subs != null) {
 			int pos = calcSubPositionR(keyL, keyU);
 			if (pos != OVERLAP_WITH_CENTER) {
 				QRNode<T> sub = subs[pos];
 				if (sub != null) {
-					return sub.remove(this, keyL, keyU, maxNodeSize, pred);
+					return sub.remove(this, keyL, keyU, maxNodeSize, pred, metrics);
 				}
 				return null;
 			}
@@ -182,7 +184,7 @@ public class QRNode<T> {
 				//TODO provide threshold for re-insert
 				//i.e. do not always merge.
 				if (parent != null) {
-					parent.checkAndMergeLeafNodes(maxNodeSize);
+					parent.checkAndMergeLeafNodes(maxNodeSize, metrics);
 				}
 				return e;
 			}
@@ -190,10 +192,74 @@ public class QRNode<T> {
 		return null;
 	}
 
+	/**
+	 * Remove all entries that intersect with the query window and match the condition.
+	 * Empty sub-nodes are removed and sub-nodes are merged bottom-up.
+	 * @return the number of removed entries
+	 */
+	int removeAll(double[] min, double[] max, int maxNodeSize, Predicate<BoxEntry<T>> pred, boolean contained,
+			IndexMetrics metrics) {
+		int nRemoved = 0;
+		if (values != null) {
+			int j = 0;
+			for (int i = 0; i < values.size(); i++) {
+				BoxEntry<T> e = values.get(i);
+				if (!(contained || QUtil.overlap(min, max, e.min(), e.max())) || !pred.test(e)) {
+					values.set(j++, e);
+				}
+			}
+			nRemoved = values.size() - j;
+			values.subList(j, values.size()).clear();
+		}
+		if (subs != null) {
+			for (int i = 0; i < subs.length; i++) {
+				QRNode<T> sub = subs[i];
+				if (sub != null && (contained || QUtil.overlap(min, max, sub.center, sub.radius))) {
+					int n = sub.removeAll(min, max, maxNodeSize, pred, contained || sub.isEnclosedBy(min, max),
+							metrics);
+					if (n > 0) {
+						nRemoved += n;
+						if (sub.isEmpty()) {
+							metrics.count(IndexMetrics.Counter.NODE_MERGES, 1);
+							subs[i] = null;
+						}
+					}
+				}
+			}
+			if (nRemoved > 0) {
+				checkAndMergeLeafNodes(maxNodeSize, metrics);
+			}
+		}
+		return nRemoved;
+	}
+
+	private boolean isEnclosedBy(double[] min, double[] max) {
+		for (int d = 0; d < center.length; d++) {
+			if (center[d] - radius < min[d] || center[d] + radius > max[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isEmpty() {
+		if (values != null && !values.isEmpty()) {
+			return false;
+		}
+		if (subs != null) {
+			for (int i = 0; i < subs.length; i++) {
+				if (subs[i] != null) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
 	@SuppressWarnings("unchecked")
 	BoxEntry<T> update(QRNode<T> parent, double[] keyOldL, double[] keyOldU,
 			double[] keyNewL, double[] keyNewU, int maxNodeSize,
-			boolean[] requiresReinsert, int currentDepth, int maxDepth, Predicate<T> pred) {
+			boolean[] requiresReinsert, int currentDepth, int maxDepth, Predicate<T> pred, IndexMetrics metrics) {
 		if (subs != null) {
 			int pos = calcSubPositionR(keyOldL, keyOldU);
 			if (pos != OVERLAP_WITH_CENTER) {
@@ -202,13 +268,13 @@ public class QRNode<T> {
 					return null;
 				}
 				BoxEntry<T> ret = sub.update(this, keyOldL, keyOldU, keyNewL, keyNewU,
-						maxNodeSize, requiresReinsert, currentDepth+1, maxDepth, pred);
+						maxNodeSize, requiresReinsert, currentDepth+1, maxDepth, pred, metrics);
 				if (ret != null && requiresReinsert[0] && 
 						QUtil.fitsIntoNode(ret.min(), ret.max(), center, radius)) {
 					requiresReinsert[0] = false;
 					QRNode<T> r = this;
 					while (r != null) {
-						r = r.tryPut(ret, maxNodeSize, currentDepth++ > maxDepth);
+						r = r.tryPut(ret, maxNodeSize, currentDepth++ > maxDepth, metrics);
 					}
 				}
 				return ret;
@@ -242,7 +308,7 @@ public class QRNode<T> {
 							currentDepth++;
 						}
 						while (r != null) {
-							r = r.tryPut(e, maxNodeSize, currentDepth++ > maxDepth);
+							r = r.tryPut(e, maxNodeSize, currentDepth++ > maxDepth, metrics);
 						}
 					}
 				} else {
@@ -250,7 +316,7 @@ public class QRNode<T> {
 					//TODO provide threshold for re-insert
 					//i.e. do not always merge.
 					if (parent != null) {
-						parent.checkAndMergeLeafNodes(maxNodeSize);
+						parent.checkAndMergeLeafNodes(maxNodeSize, metrics);
 					}
 				}
 				return e;
@@ -260,7 +326,7 @@ public class QRNode<T> {
 		return null;
 	}
 
-	private void checkAndMergeLeafNodes(int maxNodeSize) {
+	private void checkAndMergeLeafNodes(int maxNodeSize, IndexMetrics metrics) {
 		//check
 		int nTotal = 0;
 		if (values != null) {
@@ -286,11 +352,14 @@ public class QRNode<T> {
 		if (values == null) {
 			values = new ArrayList<>();
 		}
+		int nSubs = 0;
 		for (int i = 0; i < subs.length; i++) {
 			if (subs[i] != null) {
 				values.addAll(subs[i].values);
+				nSubs++;
 			}
 		}
+		metrics.count(IndexMetrics.Counter.NODE_MERGES, nSubs);
 		subs = null;
 	}
 
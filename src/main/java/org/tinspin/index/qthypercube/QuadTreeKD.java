@@ -17,11 +17,18 @@
  */
 package org.tinspin.index.qthypercube;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.*;
 import java.util.function.Predicate;
 
 import org.tinspin.index.*;
+import org.tinspin.index.util.IndexIO;
 import org.tinspin.index.util.StringBuilderLn;
+import org.tinspin.index.util.ZOrder;
 
 /**
  * This is a MX-quadtree implementation with configurable maximum depth, maximum nodes size, and
@@ -56,6 +63,7 @@ public class QuadTreeKD<T> implements PointMap<T>, PointMultimap<T> {
 	private final int maxNodeSize;
 	private QNode<T> root = null;
 	private int size = 0; 
+	private IndexMetrics metrics = IndexMetrics.NONE;
 	
 	private QuadTreeKD(int dims, int maxNodeSize) {
 		if (DEBUG) {
@@ -82,6 +90,44 @@ public class QuadTreeKD<T> implements PointMap<T>, PointMultimap<T> {
 		t.root = new QNode<>(Arrays.copyOf(center, center.length), radius);
 		return t;
 	}
+
+	/**
+	 * Write the tree, including its node structure, to a stream.
+	 * @param out the stream, it is flushed but not closed
+	 * @param codec codec for the values
+	 * @throws IOException if writing fails
+	 * @see #load(InputStream, ValueCodec)
+	 */
+	public void save(OutputStream out, ValueCodec<? super T> codec) throws IOException {
+		DataOutputStream dos = IndexIO.writeHeader(out, "QuadTreeKD", dims);
+		dos.writeInt(maxNodeSize);
+		dos.writeInt(size);
+		dos.writeBoolean(root != null);
+		if (root != null) {
+			root.write(dos, codec);
+		}
+		dos.flush();
+	}
+
+	/**
+	 * Read a tree that was written with {@link #save(OutputStream, ValueCodec)}.
+	 * The nodes are restored as they were written, there is no re-insertion.
+	 * @param in the stream, it should be buffered
+	 * @param codec codec for the values
+	 * @return the tree
+	 * @param <T> value type
+	 * @throws IOException if reading fails or if the stream does not contain a QuadTreeKD
+	 */
+	public static <T> QuadTreeKD<T> load(InputStream in, ValueCodec<? extends T> codec) throws IOException {
+		DataInputStream dis = IndexIO.readHeader(in, "QuadTreeKD");
+		int dims = IndexIO.readDims(dis);
+		QuadTreeKD<T> t = new QuadTreeKD<>(dims, dis.readInt());
+		t.size = dis.readInt();
+		if (dis.readBoolean()) {
+			t.root = QNode.read(dis, codec, dims);
+		}
+		return t;
+	}
 	
 	/**
 	 * Insert a key-value pair.
@@ -99,14 +145,103 @@ public class QuadTreeKD<T> implements PointMap<T>, PointMultimap<T> {
 		if (root.getRadius() == INITIAL_RADIUS) {
 			adjustRootSize(key);
 		}
-		ensureCoverage(e);
+		ensureCoverage(e.point());
 		QNode<T> r = root;
 		int depth = 0;
 		while (r != null) {
-			r = r.tryPut(e, maxNodeSize, depth++ > MAX_DEPTH);
+			r = r.tryPut(e, maxNodeSize, depth++ > MAX_DEPTH, metrics);
+		}
+	}
+
+	/**
+	 * Insert multiple entries. This is equivalent to calling {@link #insert(double[], Object)} for every
+	 * entry, but faster for large batches:
+	 * the root is sized only once for the bounding box of all entries, and
+	 * the entries are sorted by z-order (hypercube address). Each entry then continues the descent of
+	 * the previous entry from the deepest node that contains it instead of descending from the root.
+	 * <p>
+	 * As with {@link #insert(double[], Object)}, the tree stores its own entries, so updates in the tree
+	 * do not modify the given entries. The key arrays are not copied and must not be modified afterward.
+	 * @param entries the entries. The array is not modified.
+	 */
+	@SuppressWarnings("unchecked")
+	public void insertAll(PointEntry<T>[] entries) {
+		if (entries.length == 0) {
+			return;
+		}
+		double[][] bounds = ZOrder.bounds(entries);
+		if (!adjustRootSize(bounds[0], bounds[1])) {
+			// All points are identical
+			for (PointEntry<T> e : entries) {
+				insert(e.point(), e.value());
+			}
+			return;
+		}
+		ensureCoverage(bounds[0]);
+		ensureCoverage(bounds[1]);
+		size += entries.length;
+
+		PointEntry<T>[] sorted = ZOrder.sort(entries, root.getCenter(), root.getRadius());
+		// The path of the previous entry: path[i] is the subnode at position pathPos[i] of path[i-1]
+		QNode<T>[] path = new QNode[MAX_DEPTH + 2];
+		int[] pathPos = new int[path.length];
+		path[0] = root;
+		int pathLen = 1;
+		for (PointEntry<T> sortedEntry : sorted) {
+			PointEntry<T> e = new PointEntry<>(sortedEntry.point(), sortedEntry.value());
+			double[] p = e.point();
+			int depth = 1;
+			while (depth < pathLen && path[depth - 1].calcSubPosition(p) == pathPos[depth]) {
+				depth++;
+			}
+			QNode<T> r = path[depth - 1];
+			while (r != null) {
+				QNode<T> sub = r.tryPut(e, maxNodeSize, depth - 1 > MAX_DEPTH, metrics);
+				if (sub != null) {
+					if (depth == path.length) {
+						path = Arrays.copyOf(path, depth * 2);
+						pathPos = Arrays.copyOf(pathPos, depth * 2);
+					}
+					pathPos[depth] = r.calcSubPosition(p);
+					path[depth++] = sub;
+				}
+				r = sub;
+			}
+			pathLen = depth;
 		}
 	}
 
+	/**
+	 * Size the root for a batch of points, see {@link #adjustRootSize(double[])}.
+	 * @param min lower left corner of the bounding box of the batch
+	 * @param max upper right corner of the bounding box of the batch
+	 * @return 'false' if the root size cannot be determined, i.e. all points are identical to the root center.
+	 */
+	private boolean adjustRootSize(double[] min, double[] max) {
+		if (root == null) {
+			double[] center = new double[dims];
+			for (int d = 0; d < dims; d++) {
+				center[d] = (min[d] + max[d]) / 2;
+			}
+			root = new QNode<>(center, INITIAL_RADIUS);
+		}
+		if (root.getRadius() == INITIAL_RADIUS) {
+			if (!root.isLeaf()) {
+				return false;
+			}
+			double[] center = root.getCenter();
+			double dist = 0;
+			for (int d = 0; d < dims; d++) {
+				dist = Math.max(dist, Math.max(center[d] - min[d], max[d] - center[d]));
+			}
+			if (dist == 0) {
+				return false;
+			}
+			root.adjustRadius(2 * dist);
+		}
+		return true;
+	}
+
 	private void adjustRootSize(double[] key) {
 		// Idea: we calculate the root size only when adding a point that is distinct from the root's center
 		if (!root.isLeaf() || root.getEntries().isEmpty()) {
@@ -168,7 +303,7 @@ public class QuadTreeKD<T> implements PointMap<T>, PointMultimap<T> {
 		if (root == null) {
 			return null;
 		}
-		PointEntry<T> e = root.remove(null, key, maxNodeSize, x -> true);
+		PointEntry<T> e = root.remove(null, key, maxNodeSize, x -> true, metrics);
 		if (e == null) {
 			return null;
 		}
@@ -186,7 +321,7 @@ public class QuadTreeKD<T> implements PointMap<T>, PointMultimap<T> {
 		if (root == null) {
 			return false;
 		}
-		PointEntry<T> e = root.remove(null, key, maxNodeSize, condition);
+		PointEntry<T> e = root.remove(null, key, maxNodeSize, condition, metrics);
 		if (e == null) {
 			return false;
 		}
@@ -230,31 +365,30 @@ public class QuadTreeKD<T> implements PointMap<T>, PointMultimap<T> {
 		}
 		boolean[] requiresReinsert = new boolean[]{false};
 		PointEntry<T> e = root.update(null, oldKey, newKey, maxNodeSize, requiresReinsert,
-				0, MAX_DEPTH, condition);
+				0, MAX_DEPTH, condition, metrics);
 		if (e == null) {
 			//not found
 			return null;
 		}
 		if (requiresReinsert[0]) {
 			//does not fit in root node...
-			ensureCoverage(e);
+			ensureCoverage(e.point());
 			QNode<T> r = root;
 			int depth = 0;
 			while (r != null) {
-				r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH);
+				r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH, metrics);
 			}
 		}
 		return e.value();
 	}
 
 	/**
-	 * Ensure that the tree covers the entry.
-	 * @param e Entry to cover.
+	 * Ensure that the tree covers the point.
+	 * @param p Point to cover.
 	 */
 	@SuppressWarnings("unused")
-	private void ensureCoverage(PointEntry<T> e) {
-		double[] p = e.point();
-		while(!QUtil.fitsIntoNode(e.point(), root.getCenter(), root.getRadius())) {
+	private void ensureCoverage(double[] p) {
+		while(!QUtil.fitsIntoNode(p, root.getCenter(), root.getRadius())) {
 			double[] center = root.getCenter();
 			double radius = root.getRadius();
 			double[] center2 = new double[center.length];
@@ -273,10 +407,11 @@ public class QuadTreeKD<T> implements PointMap<T>, PointMultimap<T> {
 				}
 			}
 			if (QuadTreeKD.DEBUG && !QUtil.isNodeEnclosed(center, radius, center2, radius2)) {
-				throw new IllegalStateException("e=" + Arrays.toString(e.point()) + 
+				throw new IllegalStateException("e=" + Arrays.toString(p) + 
 						" center/radius=" + Arrays.toString(center2) + 
 						"/"+ radius);
 			}
+			metrics.count(IndexMetrics.Counter.ROOT_GROWTHS, 1);
 			root = new QNode<>(center2, radius2, root, subNodePos);
 		}
 	}
@@ -290,6 +425,16 @@ public class QuadTreeKD<T> implements PointMap<T>, PointMultimap<T> {
 		return size;
 	}
 
+	/**
+	 * Reports node splits, merges of underfull nodes and root growth, i.e. new root nodes that are
+	 * created when an entry lies outside the root. Queries do not report node visits.
+	 * @param metrics the receiver
+	 */
+	@Override
+	public void setMetrics(IndexMetrics metrics) {
+		this.metrics = metrics;
+	}
+
 	/**
 	 * Removes all elements from the tree.
 	 */
@@ -332,6 +477,11 @@ public class QuadTreeKD<T> implements PointMap<T>, PointMultimap<T> {
 		return PointMap.super.query1nn(center);
 	}
 
+	@Override
+	public void queryKnnBatch(double[][] centers, int k, T[] values, double[] distances, boolean parallel) {
+		PointMap.super.queryKnnBatch(centers, k, values, distances, parallel);
+	}
+
 	/**
 	 *
 	 * @param center center point
@@ -345,6 +495,15 @@ public class QuadTreeKD<T> implements PointMap<T>, PointMultimap<T> {
 		return new QIteratorKnn<>(root, k, center, dist, (e, d) -> true);
 	}
 
+	/**
+	 * Filtered kNN query, the filter is applied during the traversal.
+	 * @see PointMultimap#queryKnn(double[], int, PointDistance, PointFilterKnn)
+	 */
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn, PointFilterKnn<T> filterFn) {
+		return new QIteratorKnn<>(root, k, center, distFn, filterFn);
+	}
+
 	/**
 	 * Returns a printable list of the tree.
 	 * @return the tree as String
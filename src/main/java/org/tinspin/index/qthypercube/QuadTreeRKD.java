@@ -18,6 +18,7 @@
 package org.tinspin.index.qthypercube;
 
 import java.util.*;
+import java.util.function.BiConsumer;
 import java.util.function.Predicate;
 
 import org.tinspin.index.*;
@@ -42,6 +43,7 @@ public class QuadTreeRKD<T> implements BoxMap<T>, BoxMultimap<T> {
 	private final int maxNodeSize;
 	private QRNode<T> root = null;
 	private int size = 0; 
+	private IndexMetrics metrics = IndexMetrics.NONE;
 	
 	private QuadTreeRKD(int dims, int maxNodeSize) {
 		if (DEBUG) {
@@ -109,7 +111,7 @@ public class QuadTreeRKD<T> implements BoxMap<T>, BoxMultimap<T> {
 		QRNode<T> r = root;
 		int depth = 0;
 		while (r != null) {
-			r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH);
+			r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH, metrics);
 		}
 	}
 
@@ -123,6 +125,7 @@ public class QuadTreeRKD<T> implements BoxMap<T>, BoxMultimap<T> {
 			}
 		}			
 		radius *= 5; //for good measure
+		radius = radius == 0.0 ? 1 : radius;
 		root = new QRNode<>(center, radius);
 	}
 	
@@ -198,7 +201,7 @@ public class QuadTreeRKD<T> implements BoxMap<T>, BoxMultimap<T> {
 		if (root == null) {
 			return null;
 		}
-		BoxEntry<T> e = root.remove(null, keyL, keyU, maxNodeSize, x -> true);
+		BoxEntry<T> e = root.remove(null, keyL, keyU, maxNodeSize, x -> true, metrics);
 		if (e == null) {
 			return null;
 		}
@@ -216,7 +219,7 @@ public class QuadTreeRKD<T> implements BoxMap<T>, BoxMultimap<T> {
 		if (root == null) {
 			return false;
 		}
-		BoxEntry<T> e = root.remove(null, lower, upper, maxNodeSize, condition);
+		BoxEntry<T> e = root.remove(null, lower, upper, maxNodeSize, condition, metrics);
 		if (e == null) {
 			return false;
 		}
@@ -224,6 +227,24 @@ public class QuadTreeRKD<T> implements BoxMap<T>, BoxMultimap<T> {
 		return true;
 	}
 
+	/**
+	 * Remove all entries that intersect with the query window and match the condition,
+	 * in a single traversal. Sub-nodes that become empty are removed, and sub-nodes are merged bottom-up.
+	 * @param min Lower left corner of the query window
+	 * @param max Upper right corner of the query window
+	 * @param condition the condition required for removing an entry
+	 * @return the number of removed entries
+	 */
+	@Override
+	public int removeAll(double[] min, double[] max, Predicate<BoxEntry<T>> condition) {
+		if (root == null) {
+			return 0;
+		}
+		int n = root.removeAll(min, max, maxNodeSize, condition, false, metrics);
+		size -= n;
+		return n;
+	}
+
 	@Override
 	public boolean update(double[] oldKeyL, double[] oldKeyU, double[] newKeyL, double[] newKeyU, T value) {
 		if (root == null) {
@@ -231,7 +252,7 @@ public class QuadTreeRKD<T> implements BoxMap<T>, BoxMultimap<T> {
 		}
 		boolean[] requiresReinsert = new boolean[]{false};
 		BoxEntry<T> e = root.update(null, oldKeyL, oldKeyU, newKeyL, newKeyU,
-				maxNodeSize, requiresReinsert, 0, MAX_DEPTH, t -> Objects.equals(value, t));
+				maxNodeSize, requiresReinsert, 0, MAX_DEPTH, t -> Objects.equals(value, t), metrics);
 		if (e == null) {
 			return false;
 		}
@@ -241,7 +262,7 @@ public class QuadTreeRKD<T> implements BoxMap<T>, BoxMultimap<T> {
 			QRNode<T> r = root;
 			int depth = 0;
 			while (r != null) {
-				r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH);
+				r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH, metrics);
 			}
 		}
 		return true;
@@ -262,7 +283,7 @@ public class QuadTreeRKD<T> implements BoxMap<T>, BoxMultimap<T> {
 		}
 		boolean[] requiresReinsert = new boolean[]{false};
 		BoxEntry<T> e = root.update(null, oldKeyL, oldKeyU, newKeyL, newKeyU,
-				maxNodeSize, requiresReinsert, 0, MAX_DEPTH, t -> true);
+				maxNodeSize, requiresReinsert, 0, MAX_DEPTH, t -> true, metrics);
 		if (e == null) {
 			//not found
 			return null;
@@ -273,7 +294,7 @@ public class QuadTreeRKD<T> implements BoxMap<T>, BoxMultimap<T> {
 			QRNode<T> r = root;
 			int depth = 0;
 			while (r != null) {
-				r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH);
+				r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH, metrics);
 			}
 		}
 		return e.value();
@@ -310,6 +331,7 @@ public class QuadTreeRKD<T> implements BoxMap<T>, BoxMultimap<T> {
 						"/" + Arrays.toString(e.max()) +
 						" center/radius=" + Arrays.toString(center) + "/" + radius);
 			}
+			metrics.count(IndexMetrics.Counter.ROOT_GROWTHS, 1);
 			root = new QRNode<>(center2, radius2, root, subNodePos);
 		}
 	}
@@ -323,6 +345,16 @@ public class QuadTreeRKD<T> implements BoxMap<T>, BoxMultimap<T> {
 		return size;
 	}
 
+	/**
+	 * Reports node splits, merges of underfull nodes and root growth, i.e. new root nodes that are
+	 * created when an entry lies outside the root. Queries do not report node visits.
+	 * @param metrics the receiver
+	 */
+	@Override
+	public void setMetrics(IndexMetrics metrics) {
+		this.metrics = metrics;
+	}
+
 	/**
 	 * Removes all elements from the tree.
 	 */
@@ -432,10 +464,43 @@ public class QuadTreeRKD<T> implements BoxMap<T>, BoxMultimap<T> {
 		return new QRIteratorKnn<>(root, k, center, distFn, (t, d) -> true);
 	}
 
+	/**
+	 * Filtered kNN query, the filter is applied during the traversal.
+	 * @see BoxMultimap#queryKnn(double[], int, BoxDistance, BoxFilterKnn)
+	 */
+	@Override
+	public BoxIteratorKnn<T> queryKnn(double[] center, int k, BoxDistance distFn, BoxFilterKnn<T> filterFn) {
+		return new QRIteratorKnn<>(root, k, center, distFn, filterFn);
+	}
+
 	@Override
 	public int getDepth() {
 		return getStats().getMaxDepth();
 	}
+
+	/**
+	 * Spatial join with another quadtree. Both trees are traversed together, see {@link QRJoin}.
+	 * <p>
+	 * The consumer receives every pair of entries whose Euclidean distance is at most 'maxDist'.
+	 * With 'maxDist=0' these are the pairs of intersecting (or touching) boxes.
+	 * In parallel mode, the consumer is called concurrently from several threads.
+	 * The trees must not be modified during the join.
+	 * @param other The other tree
+	 * @param maxDist Maximum distance of the pairs
+	 * @param consumer Receives the pairs, the first entry is from this tree
+	 * @param parallel Whether to use the common ForkJoinPool
+	 * @param <S> Value type of the other tree
+	 */
+	public <S> void join(QuadTreeRKD<S> other, double maxDist,
+			BiConsumer<BoxEntry<T>, BoxEntry<S>> consumer, boolean parallel) {
+		if (maxDist < 0) {
+			throw new IllegalArgumentException("maxDist must not be negative: " + maxDist);
+		}
+		if (other.getDims() != dims) {
+			throw new IllegalArgumentException("Dimensionality mismatch: " + dims + " vs " + other.getDims());
+		}
+		QRJoin.join(root, other.getRoot(), maxDist, consumer, parallel);
+	}
 	
 	protected QRNode<T> getRoot() {
 		return root;
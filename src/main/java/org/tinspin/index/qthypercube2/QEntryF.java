@@ -0,0 +1,73 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ * 
+ * This file is part of TinSpin.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.qthypercube2;
+
+import java.util.Arrays;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * Entry of the {@link QuadTreeKD2F}, the key is stored with {@code float} precision.
+ *
+ * @param <T> Value type.
+ */
+class QEntryF<T> {
+
+	private float[] point;
+	private final T value;
+
+	QEntryF(float[] point, T value) {
+		this.point = point;
+		this.value = value;
+	}
+
+	float[] point() {
+		return point;
+	}
+
+	T value() {
+		return value;
+	}
+
+	void setPoint(float[] point) {
+		this.point = point;
+	}
+
+	/**
+	 * @param buf buffer for the widened coordinates, must have the same length as the key
+	 * @return the buffer
+	 */
+	double[] point(double[] buf) {
+		for (int d = 0; d < point.length; d++) {
+			buf[d] = point[d];
+		}
+		return buf;
+	}
+
+	/**
+	 * @return a new entry with the coordinates widened to {@code double}
+	 */
+	PointEntry<T> toEntry() {
+		return new PointEntry<>(point(new double[point.length]), value);
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(point) + ";v=" + value;
+	}
+}
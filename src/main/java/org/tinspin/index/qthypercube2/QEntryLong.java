@@ -0,0 +1,50 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ */
+package org.tinspin.index.qthypercube2;
+
+import java.util.Arrays;
+
+/**
+ * Entry of the {@link QuadTreeKD2Long}, the value is stored as primitive {@code long}.
+ */
+class QEntryLong {
+
+	private double[] point;
+	private final long value;
+
+	QEntryLong(double[] point, long value) {
+		this.point = point;
+		this.value = value;
+	}
+
+	double[] point() {
+		return point;
+	}
+
+	long value() {
+		return value;
+	}
+
+	void setPoint(double[] point) {
+		this.point = point;
+	}
+
+	@Override
+	public String toString() {
+		return Arrays.toString(point) + ";v=" + value;
+	}
+}
@@ -19,18 +19,27 @@ package org.tinspin.index.qthypercube2;
 
 import java.util.ArrayList;
 import java.util.NoSuchElementException;
+import java.util.function.Supplier;
+
+import org.tinspin.index.IndexMetrics;
+import org.tinspin.index.IndexMetrics.Counter;
 
 import static org.tinspin.index.Index.*;
 
 /**
- * Resettable query iterator.
+ * Resettable query iterator for the {@link QuadTreeKD2} and the {@link QuadTreeKD2F}.
+ * The query window is rounded to the precision of the keys.
+ * <p>
+ * The {@link QuadTreeKD2Long} reads the stored entries with {@link #nextEntry()}.
  *
  * @param <T> Value type
+ * @param <E> Entry type
+ * @param <N> Node type
  */
-public class QIterator2<T> implements PointIterator<T> {
+public class QIterator2<T, E, N extends QNodeBase<T, E, N>> implements PointIterator<T> {
 
 	private class IteratorStack {
-		private final ArrayList<StackEntry<T>> stack;
+		private final ArrayList<StackEntry<T, E, N>> stack;
 		private int size = 0;
 		
 		IteratorStack() {
@@ -41,17 +50,21 @@ public class QIterator2<T> implements PointIterator<T> {
 			return size == 0;
 		}
 
-		StackEntry<T> prepareAndPush(QNode<T> node, double[] min, double[] max) {
+		StackEntry<T, E, N> prepareAndPush(N node, double[] min, double[] max) {
 			if (size == stack.size()) {
 				stack.add(new StackEntry<>());
 			}
-			StackEntry<T> ni = stack.get(size++);
+			StackEntry<T, E, N> ni = stack.get(size++);
 			
 			ni.set(node, min, max);
+			metrics.count(Counter.NODE_VISITS, 1);
+			if (node.isLeaf()) {
+				metrics.count(Counter.ENTRIES_SCANNED, node.getValueCount());
+			}
 			return ni;
 		}
 
-		StackEntry<T> peek() {
+		StackEntry<T, E, N> peek() {
 			return stack.get(size-1);
 		}
 
@@ -64,21 +77,25 @@ public class QIterator2<T> implements PointIterator<T> {
 		}
 	}
 
-	private final QuadTreeKD2<T> tree;
+	private final Supplier<N> root;
+	private final IndexMetrics metrics;
 	private final IteratorStack stack;
-	private PointEntry<T> next = null;
+	private E next = null;
+	private N nextNode = null;
 	private double[] min;
 	private double[] max;
 	
-	private static class StackEntry<T> {
+	private static class StackEntry<T, E, N extends QNodeBase<T, E, N>> {
 		long pos;
 		long m0;
 		long m1;
+		N node;
 		Object[] entries;
 		boolean isLeaf;
 		int len;
 		
-		void set(QNode<T> node, double[] min, double[] max) {
+		void set(N node, double[] min, double[] max) {
+			this.node = node;
 			this.entries = node.getEntries();
 			this.isLeaf = node.isLeaf();
 
@@ -128,21 +145,23 @@ public class QIterator2<T> implements PointIterator<T> {
 	}
 	
 	
-	QIterator2(QuadTreeKD2<T> tree, double[] min, double[] max) {
+	QIterator2(Supplier<N> root, IndexMetrics metrics, double[] min, double[] max) {
 		this.stack = new IteratorStack();
-		this.tree = tree;
+		this.root = root;
+		this.metrics = metrics;
 		reset(min, max);
 	}
 	
 	@SuppressWarnings("unchecked")
 	private void findNext() {
 		while(!stack.isEmpty()) {
-			StackEntry<T> se = stack.peek();
+			StackEntry<T, E, N> se = stack.peek();
 			while (se.pos < se.len) {
 				if (se.isLeaf()) {
-					PointEntry<T> e = (PointEntry<T>) se.entries[(int) se.pos++];
-					if (QUtil.isPointEnclosed(e.point(), min, max)) {
+					E e = (E) se.entries[(int) se.pos++];
+					if (se.node.isPointEnclosed(e, min, max)) {
 						next = e;
+						nextNode = se.node;
 						return;
 					}
 				} else {
@@ -154,13 +173,15 @@ public class QIterator2<T> implements PointIterator<T> {
 					}
 					Object e = se.entries[pos];
 					if (e != null) {
-						if (e instanceof QNode) {
-							QNode<T> node = (QNode<T>) e;
+						if (e instanceof QNodeBase) {
+							N node = (N) e;
 							se = stack.prepareAndPush(node, min, max);
 						} else {
-							PointEntry<T> qe = (PointEntry<T>) e;
-							if (QUtil.isPointEnclosed(qe.point(), min, max)) {
+							E qe = (E) e;
+							metrics.count(Counter.ENTRIES_SCANNED, 1);
+							if (se.node.isPointEnclosed(qe, min, max)) {
 								next = qe;
+								nextNode = se.node;
 								return;
 							}
 						}
@@ -184,7 +205,19 @@ public class QIterator2<T> implements PointIterator<T> {
 		if (!hasNext()) {
 			throw new NoSuchElementException();
 		}
-		PointEntry<T> ret = next;
+		PointEntry<T> ret = nextNode.toEntry(next);
+		findNext();
+		return ret;
+	}
+
+	/**
+	 * @return the next entry as it is stored in the tree
+	 */
+	E nextEntry() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		E ret = next;
 		findNext();
 		return ret;
 	}
@@ -200,11 +233,13 @@ public class QIterator2<T> implements PointIterator<T> {
 	@Override
 	public PointIterator<T> reset(double[] min, double[] max) {
 		stack.clear();
-		this.min = min;
-		this.max = max;
 		next = null;
-		if (tree.getRoot() != null) {
-			stack.prepareAndPush(tree.getRoot(), min, max);
+		N r = root.get();
+		if (r != null) {
+			// Rounding is monotonic, rounded keys inside the window remain inside the rounded window
+			this.min = r.round(min);
+			this.max = r.round(max);
+			stack.prepareAndPush(r, this.min, this.max);
 			findNext();
 		}
 		return this;
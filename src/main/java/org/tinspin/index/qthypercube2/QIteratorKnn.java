@@ -17,148 +17,44 @@
  */
 package org.tinspin.index.qthypercube2;
 
+import org.tinspin.index.IndexMetrics;
 import org.tinspin.index.PointDistance;
-import org.tinspin.index.util.MinHeap;
-import org.tinspin.index.util.MinMaxHeap;
-
-import java.util.NoSuchElementException;
-import java.util.function.Predicate;
 
 import static org.tinspin.index.Index.*;
-import static org.tinspin.index.qthypercube2.QUtil.distToRectNode;
 
-public class QIteratorKnn<T> implements PointIteratorKnn<T> {
+/**
+ * kNN iterator for the {@link QuadTreeKD2} and the {@link QuadTreeKD2F}.
+ *
+ * @param <T> Value type
+ * @param <E> Entry type
+ * @param <N> Node type
+ */
+public class QIteratorKnn<T, E, N extends QNodeBase<T, E, N>> extends QKnnSearch<T, E, N>
+        implements PointIteratorKnn<T> {
 
-    private final QNode<T> root;
-    private final PointDistance distFn;
     private final PointFilterKnn<T> filterFn;
-    MinHeap<NodeDistT> queueN = MinHeap.create((t1, t2) -> t1.dist < t2.dist);
-    MinMaxHeap<PointEntryKnn<T>> queueV = MinMaxHeap.create((t1, t2) -> t1.dist() < t2.dist());
-    double maxNodeDist = Double.POSITIVE_INFINITY;
-    private PointEntryKnn<T> current;
-    private int remaining;
-    private double[] center;
-    private double currentDistance;
 
-    QIteratorKnn(QNode<T> root, int minResults, double[] center, PointDistance distFn, PointFilterKnn<T> filterFn) {
+    QIteratorKnn(N root, int minResults, double[] center, PointDistance distFn, PointFilterKnn<T> filterFn,
+                 IndexMetrics metrics) {
+        super(root, distFn, metrics);
         this.filterFn = filterFn;
-        this.distFn = distFn;
-        this.root = root;
         reset(center, minResults);
     }
 
     @Override
     public PointIteratorKnn<T> reset(double[] center, int minResults) {
-        this.center = center;
-        this.currentDistance = Double.MAX_VALUE;
-        this.remaining = minResults;
-        this.maxNodeDist = Double.POSITIVE_INFINITY;
-        this.current = null;
-        if (minResults <= 0 || root == null) {
-            return this;
-        }
-        queueN.clear();
-        queueV.clear();
-
-        queueN.push(new NodeDistT(0, root));
-        findNextElement();
+        search(center, minResults);
         return this;
     }
 
-    @Override
-    public boolean hasNext() {
-        return current != null;
-    }
-
     @Override
     public PointEntryKnn<T> next() {
-        if (!hasNext()) {
-            throw new NoSuchElementException();
-        }
-        PointEntryKnn<T> ret = current;
-        findNextElement();
-        return ret;
-    }
-
-    public double distance() {
-        return currentDistance;
+        Candidate<E> c = nextCandidate();
+        return new PointEntryKnn<>(root.toEntry(c.entry), c.dist);
     }
 
-    @SuppressWarnings("unchecked")
-    private void findNextElement() {
-        while (remaining > 0 && !(queueN.isEmpty() && queueV.isEmpty())) {
-            boolean useV = !queueV.isEmpty();
-            if (useV && !queueN.isEmpty()) {
-                useV = queueV.peekMin().dist() <= queueN.peekMin().dist;
-            }
-            if (useV) {
-                // data entry
-                PointEntryKnn<T> result = queueV.peekMin();
-                queueV.popMin();
-                --remaining;
-                this.current = result;
-                currentDistance = result.dist();
-                return;
-            } else {
-                // inner node
-                NodeDistT top = queueN.peekMin();
-                queueN.popMin();
-                QNode<T> node = top.node;
-                double dNode = top.dist;
-
-                if (dNode > maxNodeDist && queueV.size() >= remaining) {
-                    // ignore this node
-                    continue;
-                }
-
-                if (node.isLeaf()) {
-                    for (int i = 0; i < node.getValueCount(); i++) {
-                        processEntry(node.getValues()[i]);
-                    }
-                } else {
-                    for (Object o : node.getEntries()) {
-                        if (o instanceof QNode) {
-                            QNode<T> subnode = (QNode<T>) o;
-                            double dist = distToRectNode(center, subnode.getCenter(), subnode.getRadius(), distFn);
-                            if (dist <= maxNodeDist) {
-                                queueN.push(new NodeDistT(dist, subnode));
-                            }
-                        } else {
-                            processEntry((PointEntry<T>) o);
-                        }
-                    }
-                }
-            }
-        }
-        current = null;
-        currentDistance = Double.MAX_VALUE;
-    }
-
-    private void processEntry(PointEntry<T> entry) {
-        if (entry != null) {
-            double d = distFn.dist(center, entry.point());
-            // Using '<=' allows dealing with infinite distances.
-            if (filterFn.test(entry, d) && d <= maxNodeDist) {
-                queueV.push(new PointEntryKnn<>(entry, d));
-                if (queueV.size() >= remaining) {
-                    if (queueV.size() > remaining) {
-                        queueV.popMax();
-                    }
-                    double dMax = queueV.peekMax().dist();
-                    maxNodeDist = Math.min(maxNodeDist, dMax);
-                }
-            }
-        }
-    }
-
-    private class NodeDistT {
-        double dist;
-        QNode<T> node;
-
-        public NodeDistT(double dist, QNode<T> node) {
-            this.dist = dist;
-            this.node = node;
-        }
+    @Override
+    boolean accept(N node, E e, double dist) {
+        return filterFn.test(node.toEntry(e), dist);
     }
 }
-
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ */
+package org.tinspin.index.qthypercube2;
+
+import org.tinspin.index.IndexMetrics;
+import org.tinspin.index.IndexMetrics.Counter;
+import org.tinspin.index.PointDistance;
+import org.tinspin.index.util.MinHeap;
+import org.tinspin.index.util.MinMaxHeap;
+
+import java.util.NoSuchElementException;
+
+import static org.tinspin.index.qthypercube2.QUtil.distToRectNode;
+
+/**
+ * kNN search of the {@link QIteratorKnn} and the {@link QuadTreeKD2Long}. The candidates
+ * reference the entries as they are stored in the tree, subclasses convert them to results.
+ *
+ * @param <T> Value type
+ * @param <E> Entry type
+ * @param <N> Node type
+ */
+abstract class QKnnSearch<T, E, N extends QNodeBase<T, E, N>> {
+
+    final N root;
+    private final PointDistance distFn;
+    private final IndexMetrics metrics;
+    private final MinHeap<NodeDistT> queueN = MinHeap.create((t1, t2) -> t1.dist < t2.dist);
+    private final MinMaxHeap<Candidate<E>> queueV = MinMaxHeap.create((t1, t2) -> t1.dist < t2.dist);
+    private double maxNodeDist = Double.POSITIVE_INFINITY;
+    private Candidate<E> current;
+    // candidate that was dropped from queueV, it is reused for the next candidate
+    private Candidate<E> spare;
+    private int remaining;
+    private double[] center;
+    private double[] buf;
+
+    QKnnSearch(N root, PointDistance distFn, IndexMetrics metrics) {
+        this.root = root;
+        this.distFn = distFn;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param node the node that contains the entry
+     * @param e    the entry
+     * @param dist the distance of the entry
+     * @return 'true' if the entry should be returned
+     */
+    abstract boolean accept(N node, E e, double dist);
+
+    void search(double[] center, int minResults) {
+        this.center = center;
+        this.remaining = minResults;
+        this.maxNodeDist = Double.POSITIVE_INFINITY;
+        this.current = null;
+        if (minResults <= 0 || root == null) {
+            return;
+        }
+        if (buf == null || buf.length != center.length) {
+            buf = new double[center.length];
+        }
+        queueN.clear();
+        queueV.clear();
+
+        queueN.push(new NodeDistT(0, root));
+        findNextElement();
+    }
+
+    public boolean hasNext() {
+        return current != null;
+    }
+
+    /**
+     * @return the next result, it remains valid until the next call to this method
+     */
+    Candidate<E> nextCandidate() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Candidate<E> ret = current;
+        findNextElement();
+        return ret;
+    }
+
+    /**
+     * @return the distance of the next result
+     */
+    public double distance() {
+        return current == null ? Double.MAX_VALUE : current.dist;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void findNextElement() {
+        while (remaining > 0 && !(queueN.isEmpty() && queueV.isEmpty())) {
+            boolean useV = !queueV.isEmpty();
+            if (useV && !queueN.isEmpty()) {
+                useV = queueV.peekMin().dist <= queueN.peekMin().dist;
+            }
+            if (useV) {
+                // data entry
+                current = queueV.peekMin();
+                queueV.popMin();
+                --remaining;
+                return;
+            } else {
+                // inner node
+                NodeDistT top = queueN.peekMin();
+                queueN.popMin();
+                N node = top.node;
+                double dNode = top.dist;
+
+                if (dNode > maxNodeDist && queueV.size() >= remaining) {
+                    // ignore this node
+                    continue;
+                }
+                metrics.count(Counter.NODE_VISITS, 1);
+
+                if (node.isLeaf()) {
+                    for (int i = 0; i < node.getValueCount(); i++) {
+                        processEntry(node, node.getValues()[i]);
+                    }
+                } else {
+                    for (Object o : node.getEntries()) {
+                        if (o instanceof QNodeBase) {
+                            N subnode = (N) o;
+                            double dist = distToRectNode(center, subnode.getCenter(), subnode.getRadius(), distFn);
+                            if (dist <= maxNodeDist) {
+                                queueN.push(new NodeDistT(dist, subnode));
+                            }
+                        } else {
+                            processEntry(node, (E) o);
+                        }
+                    }
+                }
+            }
+        }
+        current = null;
+    }
+
+    private void processEntry(N node, E e) {
+        if (e != null) {
+            metrics.count(Counter.ENTRIES_SCANNED, 1);
+            double d = distFn.dist(center, node.point(e, buf));
+            // Using '<=' allows dealing with infinite distances.
+            if (d > maxNodeDist) {
+                return;
+            }
+            if (accept(node, e, d)) {
+                Candidate<E> c = spare != null ? spare : new Candidate<>();
+                spare = null;
+                c.entry = e;
+                c.dist = d;
+                queueV.push(c);
+                if (queueV.size() >= remaining) {
+                    if (queueV.size() > remaining) {
+                        spare = queueV.peekMax();
+                        queueV.popMax();
+                    }
+                    double dMax = queueV.peekMax().dist;
+                    maxNodeDist = Math.min(maxNodeDist, dMax);
+                }
+            }
+        }
+    }
+
+    static final class Candidate<E> {
+        E entry;
+        double dist;
+    }
+
+    private class NodeDistT {
+        double dist;
+        N node;
+
+        public NodeDistT(double dist, N node) {
+            this.dist = dist;
+            this.node = node;
+        }
+    }
+}
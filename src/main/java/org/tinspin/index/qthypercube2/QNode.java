@@ -17,10 +17,15 @@
  */
 package org.tinspin.index.qthypercube2;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.function.Predicate;
 
-import org.tinspin.index.qthypercube2.QuadTreeKD2.QStats;
+import org.tinspin.index.IndexMetrics;
+import org.tinspin.index.ValueCodec;
+import org.tinspin.index.util.IndexIO;
 
 import static org.tinspin.index.Index.*;
 
@@ -31,460 +36,237 @@ import static org.tinspin.index.Index.*;
  *
  * @param <T> Value type.
  */
-public class QNode<T> {
+public class QNode<T> extends QNodeBase<T, PointEntry<T>, QNode<T>> {
 
-	private double[] center;
-	private double radius;
-	// null indicates that we have sub-node i.o. values
-	private PointEntry<T>[] values;
-	private Object[] subs;
-	private int nValues = 0;
-	private boolean isLeaf;
-	
 	@SuppressWarnings("unchecked")
-	QNode(double[] center, double radius) {
-		this.center = center;
-		this.radius = radius;
-		this.values = new PointEntry[2];
-		this.isLeaf = true;
+	QNode(double[] center, double radius, int version) {
+		super(center, radius, new PointEntry[2], version);
 	}
 
-	QNode(double[] center, double radius, QNode<T> subNode, int subNodePos) {
-		this.center = center;
-		this.radius = radius;
-		this.values = null;
-		this.subs = new Object[1 << center.length];
-		subs[subNodePos] = subNode;
-		this.isLeaf = false;
+	QNode(double[] center, double radius, QNode<T> subNode, int subNodePos, int version) {
+		super(center, radius, subNode, subNodePos, version);
 	}
 
-	@SuppressWarnings("unused")
-	QNode<T> tryPut(PointEntry<T> e, int maxNodeSize, boolean enforceLeaf) {
-		if (QuadTreeKD2.DEBUG && !QUtil.fitsIntoNode(e.point(), center, radius)) {
-			throw new IllegalStateException("e=" + Arrays.toString(e.point()) + 
-					" center/radius=" + Arrays.toString(center) + "/" + radius);
-		}
-		
-		//traverse subs?
-		if (!isLeaf()) {
-			return getOrCreateSub(e, maxNodeSize, enforceLeaf);
-		}
-		
-		//add if:
-		//a) we have space
-		//b) we have maxDepth
-		//c) elements are equal (work only for n=1, avoids splitting
-		//   in cases where splitting won't help. For n>1 the
-		//   local limit is (temporarily) violated.
-		if (nValues < maxNodeSize || enforceLeaf || areAllPointsIdentical(e)) {
-			addValue(e, maxNodeSize);
-			return null;
-		}
-		
-		//split
-		PointEntry<T>[] vals = values;
-		int nVal = nValues;
-		clearValues();
-		subs = new Object[1 << center.length];
-		isLeaf = false;
-		for (int i = 0; i < nVal; i++) {
-			PointEntry<T> e2 = vals[i];
-			QNode<T> sub = getOrCreateSub(e2, maxNodeSize, enforceLeaf);
-			while (sub != null) {
-				//This may recurse if all entries fall 
-				//into the same subnode
-				sub = sub.tryPut(e2, maxNodeSize, false);
-			}
-		}
-		return getOrCreateSub(e, maxNodeSize, enforceLeaf);
+	private QNode(QNode<T> original, int version) {
+		super(original, version);
 	}
 
-	private boolean areAllPointsIdentical(PointEntry<T> e) {
-		//This discovers situation where a node overflows, but splitting won't help because all points are identical
-		for (int i = 0; i < nValues; i++) {
-			if (!QUtil.isPointEqual(e.point(), values[i].point())) {
-				return false;
-			}
-		}
-		return true;
+	@Override
+	QNode<T> createNode(double[] center, double radius, int version) {
+		return new QNode<>(center, radius, version);
 	}
-	
-	PointEntry<T>[] getValues() {
-		return values;
+
+	@Override
+	QNode<T> copy(int version) {
+		return new QNode<>(this, version);
 	}
-	
-	private void addValue(PointEntry<T> e, int maxNodeSize) {
-		//Allow overflow over max node size (for example for lots of identical values in node)
-		int maxLen = nValues >= maxNodeSize ? nValues * 2 : maxNodeSize;
-		if (nValues >= getValues().length) {
-			values = Arrays.copyOf(getValues(), Math.min(nValues * 3, maxLen));
-		}
-		getValues()[nValues++] = e;
+
+	@SuppressWarnings("unchecked")
+	@Override
+	PointEntry<T>[] createValues(int size) {
+		return new PointEntry[size];
 	}
-	
-	private void removeValue(int pos) {
-		if (isLeaf) {
-			if (pos < --nValues) {
-				System.arraycopy(getValues(), pos+1, getValues(), pos, nValues-pos);
-			}
-			getValues()[nValues] = null;
-		} else {
-			nValues--;
-			subs[pos] = null;
-		}
+
+	@Override
+	int calcSubPosition(PointEntry<T> e) {
+		return calcSubPosition(e.point());
 	}
-	
-	private void clearValues() {
-		values = null;
-		nValues = 0;
+
+	@Override
+	boolean isPointEqual(PointEntry<T> e, double[] key) {
+		return QUtil.isPointEqual(e.point(), key);
 	}
-	
-	@SuppressWarnings("unchecked")
-	private QNode<T> getOrCreateSub(PointEntry<T> e, int maxNodeSize, boolean enforceLeaf) {
-		int pos = calcSubPosition(e.point());
-		Object n = subs[pos];
-		
-		if (n instanceof QNode) {
-			return (QNode<T>)n;
-		}
-		
-		if (n == null) {
-			subs[pos] = e;
-			nValues++;
-			return null;
-		}
 
-		PointEntry<T> e2 = (PointEntry<T>) n;
-		nValues--;
-		QNode<T> sub = createSubForEntry(pos);
-		subs[pos] = sub;
-		sub.tryPut(e2, maxNodeSize, enforceLeaf);
-		return sub;
+	@Override
+	boolean isPointEqual(PointEntry<T> e1, PointEntry<T> e2) {
+		return QUtil.isPointEqual(e1.point(), e2.point());
 	}
-	
-	private QNode<T> createSubForEntry(int subNodePos) {
-		double[] centerSub = new double[center.length];
-		int mask = 1<<center.length;
-		//This ensures that the subsnodes completely cover the area of
-		//the parent node.
-		double radiusSub = radius/2.0;
-		for (int d = 0; d < center.length; d++) {
-			mask >>= 1;
-			if ((subNodePos & mask) > 0) {
-				centerSub[d] = center[d]+radiusSub;
-			} else {
-				centerSub[d] = center[d]-radiusSub; 
-			}
-		}
-		return new QNode<>(centerSub, radiusSub);		
+
+	@Override
+	boolean fitsIntoNode(PointEntry<T> e, double[] center, double radius) {
+		return QUtil.fitsIntoNode(e.point(), center, radius);
 	}
-	
-	/**
-	 * The subnode position has reverse ordering of the point's
-	 * dimension ordering. Dimension 0 of a point is the highest
-	 * ordered bit in the position.
-	 * @param p point
-	 * @return subnode position
-	 */
-	int calcSubPosition(double[] p) {
-		int subNodePos = 0;
-		for (int d = 0; d < center.length; d++) {
-			subNodePos <<= 1;
-			if (p[d] >= center[d]) {
-				subNodePos |= 1;
-			}
-		}
-		return subNodePos;
+
+	@Override
+	boolean isPointEnclosed(PointEntry<T> e, double[] min, double[] max) {
+		return QUtil.isPointEnclosed(e.point(), min, max);
 	}
 
-	@SuppressWarnings("unchecked")
-	PointEntry<T> remove(QNode<T> parent, double[] key, int maxNodeSize, Predicate<PointEntry<T>> pred) {
-		if (!isLeaf()) {
-			int pos = calcSubPosition(key);
-			Object o = subs[pos];
-			if (o instanceof QNode) {
-				return ((QNode<T>)o).remove(this, key, maxNodeSize, pred);
-			} else if (o instanceof PointEntry) {
-				PointEntry<T> e = (PointEntry<T>) o;
-				if (removeSub(parent, key, pos, e, maxNodeSize, pred)) {
-					return e;
-				}
-			}
-			return null;
-		}
-		
-		for (int i = 0; i < nValues; i++) {
-			PointEntry<T> e = values[i];
-			if (removeSub(parent, key, i, e, maxNodeSize, pred)) {
-				return e;
-			}
-		}
-		return null;
+	@Override
+	double[] point(PointEntry<T> e, double[] buf) {
+		return e.point();
 	}
 
-	private boolean removeSub(
-			QNode<T> parent, double[] key, int pos, PointEntry<T> e, int maxNodeSize, Predicate<PointEntry<T>> pred) {
-		if (QUtil.isPointEqual(e.point(), key) && pred.test(e)) {
-			removeValue(pos);
-			//TODO provide threshold for re-insert
-			// i.e. do not always merge.
-			if (parent != null) {
-				parent.checkAndMergeLeafNodes(maxNodeSize);
-			}
-			return true;
+	@Override
+	PointEntry<T> toEntry(PointEntry<T> e) {
+		return e;
+	}
+
+	@Override
+	PointEntry<T> moveEntry(PointEntry<T> e, double[] keyNew, int version) {
+		if (version == 0) {
+			e.setPoint(keyNew);
+			return e;
 		}
-		return false;
+		return new PointEntry<>(keyNew, e.value());
 	}
-	
+
+	@Override
+	double[] round(double[] key) {
+		return key;
+	}
+
+	/**
+	 * Remove all entries inside the query window that match the condition. This node must be
+	 * writable, sub-nodes are copied as necessary. Empty sub-nodes are removed and sub-nodes
+	 * are merged bottom-up.
+	 * @return the number of removed entries
+	 */
 	@SuppressWarnings("unchecked")
-	PointEntry<T> update(QNode<T> parent, double[] keyOld, double[] keyNew, int maxNodeSize,
-			boolean[] requiresReinsert, int currentDepth, int maxDepth, Predicate<PointEntry<T>> pred) {
-		if (!isLeaf()) {
-			int pos = calcSubPosition(keyOld);
-			Object e = subs[pos];
-			if (e == null) {
-				return null;
-			}
-			if (e instanceof QNode) {
-				QNode<T> sub = (QNode<T>) e;
-				PointEntry<T> ret = sub.update(this, keyOld, keyNew, maxNodeSize, requiresReinsert,
-						currentDepth+1, maxDepth, pred);
-				if (ret != null && requiresReinsert[0] && 
-						QUtil.fitsIntoNode(ret.point(), center, radius/QUtil.EPS_MUL)) {
-					requiresReinsert[0] = false;
-					QNode<T> r = this;
-					while (r != null) {
-						r = r.tryPut(ret, maxNodeSize, currentDepth++ > maxDepth);
-					}
+	int removeAll(double[] min, double[] max, int maxNodeSize, Predicate<PointEntry<T>> pred,
+				  boolean contained, int version, IndexMetrics metrics) {
+		int nRemoved = 0;
+		if (isLeaf()) {
+			int j = 0;
+			for (int i = 0; i < nValues; i++) {
+				PointEntry<T> e = values[i];
+				if (!(contained || QUtil.isPointEnclosed(e.point(), min, max)) || !pred.test(e)) {
+					values[j++] = e;
 				}
-				return ret;
 			}
-			// Entry
-			PointEntry<T> qe = (PointEntry<T>) e;
-			if (QUtil.isPointEqual(qe.point(), keyOld) && pred.test(qe)) {
-				removeValue(pos);
-				qe.setPoint(keyNew);
-				if (QUtil.fitsIntoNode(keyNew, center, radius/QUtil.EPS_MUL)) {
-					// reinsert locally
-					QNode<T> r = this;
-					while (r != null) {
-						r = r.tryPut(qe, maxNodeSize, currentDepth++ > maxDepth);
-					}
-					requiresReinsert[0] = false;
-				} else {
-					requiresReinsert[0] = true;
-					if (parent != null) {
-						parent.checkAndMergeLeafNodes(maxNodeSize);
+			nRemoved = nValues - j;
+			Arrays.fill(values, j, nValues, null);
+			nValues = j;
+			return nRemoved;
+		}
+
+		for (int i = 0; i < subs.length; i++) {
+			Object o = subs[i];
+			if (o instanceof QNode) {
+				QNode<T> sub = (QNode<T>) o;
+				if (contained || QUtil.overlap(min, max, sub.center, sub.radius)) {
+					QNode<T> copy = sub.getWritable(version);
+					int n = copy.removeAll(min, max, maxNodeSize, pred,
+							contained || sub.isEnclosedBy(min, max), version, metrics);
+					if (n > 0) {
+						nRemoved += n;
+						if (copy.isEmpty()) {
+							metrics.count(IndexMetrics.Counter.NODE_MERGES, 1);
+							subs[i] = null;
+						} else {
+							subs[i] = copy;
+						}
 					}
 				}
-				return qe;
+			} else if (o instanceof PointEntry) {
+				PointEntry<T> e = (PointEntry<T>) o;
+				if ((contained || QUtil.isPointEnclosed(e.point(), min, max)) && pred.test(e)) {
+					removeValue(i);
+					nRemoved++;
+				}
 			}
-			throw new IllegalStateException();
 		}
-		
-		for (int i = 0; i < nValues; i++) {
-			PointEntry<T> e = getValues()[i];
-			if (QUtil.isPointEqual(e.point(), keyOld) && pred.test(e)) {
-				removeValue(i);
-				e.setPoint(keyNew);
-				updateSub(keyNew, e, parent, maxNodeSize, requiresReinsert);
-				return e;
-			}
+		if (nRemoved > 0) {
+			checkAndMergeLeafNodes(maxNodeSize, metrics);
 		}
-		requiresReinsert[0] = false;
-		return null;
+		return nRemoved;
 	}
 
-	private void updateSub(double[] keyNew, PointEntry<T> e, QNode<T> parent, int maxNodeSize, boolean[] requiresReinsert) {
-		if (QUtil.fitsIntoNode(keyNew, center, radius/QUtil.EPS_MUL)) {
-			// reinsert locally
-			addValue(e, maxNodeSize);
-			requiresReinsert[0] = false;
-		} else {
-			requiresReinsert[0] = true;
-			//TODO provide threshold for re-insert
-			//i.e. do not always merge.
-			if (parent != null) {
-				parent.checkAndMergeLeafNodes(maxNodeSize);
+	private boolean isEnclosedBy(double[] min, double[] max) {
+		for (int d = 0; d < center.length; d++) {
+			if (center[d] - radius < min[d] || center[d] + radius > max[d]) {
+				return false;
 			}
 		}
+		return true;
 	}
-	
-	@SuppressWarnings("unchecked")
-	private void checkAndMergeLeafNodes(int maxNodeSize) {
-		//check: We start with including all local values: nValues
-		int nTotal = nValues;
-		for (int i = 0; i < subs.length; i++) {
-			Object e = subs[i];
-			if (e instanceof QNode) {
-				QNode<T> sub = (QNode<T>) e;
-				if (!sub.isLeaf()) {
-					//can't merge directory nodes.
-					//Merge only makes sense if we switch to list-mode, for which we don;t support subnodes!
-					return;
-				}
-				nTotal += sub.getValueCount();
-				if (nTotal > maxNodeSize) {
-					//too many children
-					return;
-				}
-			}
+
+	private boolean isEmpty() {
+		if (isLeaf()) {
+			return nValues == 0;
 		}
-		
-		//okay, let's merge
-		values = new PointEntry[nTotal];
-		nValues = 0;
 		for (int i = 0; i < subs.length; i++) {
-			Object e = subs[i];
-			if (e instanceof QNode) {
-				QNode<T> sub = (QNode<T>) e; 
-				for (int j = 0; j < sub.nValues; j++) {
-					values[nValues++] = sub.values[j];
-				}
-			} else if (e instanceof PointEntry) {
-				values[nValues++] = (PointEntry<T>) e;
+			if (subs[i] != null) {
+				return false;
 			}
 		}
-		subs = null;
-		isLeaf = true;
-	}
-
-	double[] getCenter() {
-		return center;
-	}
-
-	double getRadius() {
-		return radius;
+		return true;
 	}
 
 	@SuppressWarnings("unchecked")
-	PointEntry<T> getExact(double[] key, Predicate<PointEntry<T>> pred) {
-		if (!isLeaf()) {
-			int pos = calcSubPosition(key);
-			Object sub = subs[pos];
-			if (sub instanceof QNode) {
-				return ((QNode<T>)sub).getExact(key, pred);
-			} else  if (sub != null) {
-				PointEntry<T> e = (PointEntry<T>) sub;
-				if (QUtil.isPointEqual(e.point(), key)) {
-					return e;
-				}
+	void write(DataOutput out, ValueCodec<? super T> codec) throws IOException {
+		IndexIO.writePoint(out, center);
+		out.writeDouble(radius);
+		out.writeBoolean(isLeaf);
+		if (isLeaf) {
+			out.writeInt(nValues);
+			for (int i = 0; i < nValues; i++) {
+				writeEntry(out, values[i], codec);
 			}
-			return null;
+			return;
 		}
-		
-		for (int i = 0; i < nValues; i++) {
-			PointEntry<T> e = values[i];
-			if (QUtil.isPointEqual(e.point(), key) && pred.test(e)) {
-				return e;
+		int nSubs = 0;
+		for (Object o : subs) {
+			nSubs += o != null ? 1 : 0;
+		}
+		out.writeInt(nSubs);
+		for (int i = 0; i < subs.length; i++) {
+			Object o = subs[i];
+			if (o != null) {
+				out.writeInt(i);
+				// directory nodes contain sub-nodes and entries
+				out.writeBoolean(o instanceof QNode);
+				if (o instanceof QNode) {
+					((QNode<T>) o).write(out, codec);
+				} else {
+					writeEntry(out, (PointEntry<T>) o, codec);
+				}
 			}
 		}
-		return null;
 	}
 
-	Object[] getEntries() {
-		return isLeaf ? values : subs;
+	private static <T> void writeEntry(DataOutput out, PointEntry<T> e, ValueCodec<? super T> codec)
+			throws IOException {
+		IndexIO.writePoint(out, e.point());
+		codec.write(out, e.value());
 	}
 
-
-	@Override
-	public String toString() {
-		return "center/radius=" + Arrays.toString(center) + "/" + radius + 
-				" " + System.identityHashCode(this);
+	private static <T> PointEntry<T> readEntry(DataInput in, ValueCodec<? extends T> codec, int dims)
+			throws IOException {
+		double[] p = IndexIO.readPoint(in, dims);
+		return new PointEntry<>(p, codec.read(in));
 	}
 
 	@SuppressWarnings("unchecked")
-	void checkNode(QStats s, QNode<T> parent, int depth) {
-		if (depth > s.maxDepth) {
-			s.maxDepth = depth;
-		}
-		s.nNodes++;
-		
-		if (parent != null) {
-			if (!QUtil.isNodeEnclosed(center, radius, parent.center, parent.radius*QUtil.EPS_MUL)) {
-				for (int d = 0; d < center.length; d++) {
-//					if ((centerOuter[d]+radiusOuter) / (centerEnclosed[d]+radiusEnclosed) < 0.9999999 || 
-//							(centerOuter[d]-radiusOuter) / (centerEnclosed[d]-radiusEnclosed) > 1.0000001) {
-//						return false;
-//					}
-					System.out.println("Outer: " + parent.radius + " " + 
-						Arrays.toString(parent.center));
-					System.out.println("Child: " + radius + " " + Arrays.toString(center));
-					System.out.println((parent.center[d]+parent.radius) + " vs " + (center[d]+radius)); 
-					System.out.println("r=" + (parent.center[d]+parent.radius) / (center[d]+radius)); 
-					System.out.println((parent.center[d]-parent.radius) + " vs " + (center[d]-radius));
-					System.out.println("r=" + (parent.center[d]-parent.radius) / (center[d]-radius));
-				}
-				throw new IllegalStateException();
+	static <T> QNode<T> read(DataInput in, ValueCodec<? extends T> codec, int dims, int version)
+			throws IOException {
+		QNode<T> node = new QNode<>(IndexIO.readPoint(in, dims), in.readDouble(), version);
+		if (in.readBoolean()) {
+			int n = in.readInt();
+			node.values = new PointEntry[Math.max(2, n)];
+			for (int i = 0; i < n; i++) {
+				node.values[i] = readEntry(in, codec, dims);
 			}
+			node.nValues = n;
+			return node;
 		}
-		if (values != null) {
-			s.nLeaf++;
-			s.nEntries += nValues;
-			s.histoValues[nValues]++;
-			for (int i = 0; i < nValues; i++) {
-				PointEntry<T> e = values[i];
-				checkEntry(e);
-			}
-			if (subs != null) {
-				throw new IllegalStateException();
+		node.clearValues();
+		node.isLeaf = false;
+		node.subs = new Object[1 << dims];
+		int nSubs = in.readInt();
+		for (int i = 0; i < nSubs; i++) {
+			int pos = in.readInt();
+			if (pos < 0 || pos >= node.subs.length) {
+				throw new IOException("Invalid node position: " + pos);
 			}
-		} else {
-			s.nInner++;
-			if (subs.length != 1L<<s.dims) {
-				throw new IllegalStateException();
-			}
-			int nSubs = 0;
-			for (int i = 0; i < subs.length; i++) {
-				Object n = subs[i];
-				//TODO check pos
-				if (n instanceof QNode) {
-					nSubs++;
-					((QNode<T>)n).checkNode(s, this, depth+1);
-				} else if (n != null) {
-					s.nEntries++;
-					checkEntry(n);
-				}
-			}
-			s.histo(nSubs);
-		}
-	}
-
-	@SuppressWarnings("unchecked")
-	private void checkEntry(Object o) {
-		PointEntry<T> e = (PointEntry<T>) o;
-		if (!QUtil.fitsIntoNode(e.point(), center, radius*QUtil.EPS_MUL)) {
-			System.out.println("Node: " + radius + " " + Arrays.toString(center));
-			System.out.println("Child: " + Arrays.toString(e.point()));
-			for (int d = 0; d < center.length; d++) {
-//				if ((centerOuter[d]+radiusOuter) / (centerEnclosed[d]+radiusEnclosed) < 0.9999999 || 
-//						(centerOuter[d]-radiusOuter) / (centerEnclosed[d]-radiusEnclosed) > 1.0000001) {
-//					return false;
-//				}
-				System.out.println("min/max for " + d);
-				System.out.println("min: " + (center[d]-radius) + " vs " + (e.point()[d]));
-				System.out.println("r=" + (center[d]-radius) / (e.point()[d]));
-				System.out.println("max: " + (center[d]+radius) + " vs " + (e.point()[d])); 
-				System.out.println("r=" + (center[d]+radius) / (e.point()[d])); 
+			if (in.readBoolean()) {
+				node.subs[pos] = read(in, codec, dims, version);
+			} else {
+				node.subs[pos] = readEntry(in, codec, dims);
+				node.nValues++;
 			}
-			throw new IllegalStateException();
 		}
-		
-	}
-	
-	boolean isLeaf() {
-		return isLeaf;
-	}
-
-	public int getValueCount() {
-		return nValues;
+		return node;
 	}
 
-
-	void adjustRadius(double radius) {
-		if (!isLeaf()) {
-			throw new IllegalStateException();
-		}
-		this.radius = radius;
-	}
 }
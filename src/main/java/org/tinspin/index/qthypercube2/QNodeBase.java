@@ -0,0 +1,558 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.qthypercube2;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+import org.tinspin.index.IndexMetrics;
+import org.tinspin.index.qthypercube2.QuadTreeKD2.QStats;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * Node logic of the {@link QuadTreeKD2}, the {@link QuadTreeKD2F} and the {@link QuadTreeKD2Long}.
+ * <p>
+ * The trees differ only in how their entries store the coordinates and values. Subclasses
+ * access the coordinates of their entries with the abstract methods. Predicates are evaluated
+ * directly on the stored entries. Keys are always
+ * passed as {@code double[]}, for the {@link QuadTreeKD2F} they are already rounded to
+ * {@code float} precision.
+ *
+ * @param <T> Value type.
+ * @param <E> Entry type.
+ * @param <N> Node type.
+ */
+abstract class QNodeBase<T, E, N extends QNodeBase<T, E, N>> {
+
+	final double[] center;
+	double radius;
+	// null indicates that we have sub-node i.o. values
+	E[] values;
+	Object[] subs;
+	int nValues = 0;
+	boolean isLeaf;
+	// The tree version in which this node was created. Nodes from older versions may be shared
+	// with snapshots and must be copied before they are modified, see QuadTreeKD2.snapshot().
+	final int version;
+
+	QNodeBase(double[] center, double radius, E[] values, int version) {
+		this.center = center;
+		this.radius = radius;
+		this.values = values;
+		this.isLeaf = true;
+		this.version = version;
+	}
+
+	QNodeBase(double[] center, double radius, N subNode, int subNodePos, int version) {
+		this.center = center;
+		this.radius = radius;
+		this.values = null;
+		this.subs = new Object[1 << center.length];
+		subs[subNodePos] = subNode;
+		this.isLeaf = false;
+		this.version = version;
+	}
+
+	QNodeBase(N original, int version) {
+		this.center = original.center;
+		this.radius = original.radius;
+		this.values = original.values == null ? null : original.values.clone();
+		this.subs = original.subs == null ? null : original.subs.clone();
+		this.nValues = original.nValues;
+		this.isLeaf = original.isLeaf;
+		this.version = version;
+	}
+
+	/**
+	 * @return a new leaf node
+	 */
+	abstract N createNode(double[] center, double radius, int version);
+
+	/**
+	 * @return a copy of this node that belongs to the given version
+	 */
+	abstract N copy(int version);
+
+	abstract E[] createValues(int size);
+
+	abstract int calcSubPosition(E e);
+
+	abstract boolean isPointEqual(E e, double[] key);
+
+	abstract boolean isPointEqual(E e1, E e2);
+
+	abstract boolean fitsIntoNode(E e, double[] center, double radius);
+
+	abstract boolean isPointEnclosed(E e, double[] min, double[] max);
+
+	/**
+	 * @param e the entry
+	 * @param buf buffer for the coordinates, it may or may not be used
+	 * @return the coordinates of the entry, either the key of the entry or 'buf'
+	 */
+	abstract double[] point(E e, double[] buf);
+
+	/**
+	 * @return the entry as it is returned by queries
+	 */
+	abstract PointEntry<T> toEntry(E e);
+
+	/**
+	 * Set a new key. Entries may be shared with snapshots, so they can only be modified
+	 * if the tree has never been snapshot (version 0).
+	 * @return the entry with the new key, this is 'e' or a new entry
+	 */
+	abstract E moveEntry(E e, double[] keyNew, int version);
+
+	/**
+	 * @param key coordinates of a key or of a query window
+	 * @return the coordinates with the precision of the stored keys, this may be 'key'
+	 */
+	abstract double[] round(double[] key);
+
+	@SuppressWarnings("unchecked")
+	private N self() {
+		return (N) this;
+	}
+
+	/**
+	 * @param version the current version of the tree
+	 * @return this node if it belongs to the given version, otherwise a copy of this node
+	 */
+	N getWritable(int version) {
+		return this.version == version ? self() : copy(version);
+	}
+
+	/**
+	 * @param pos position of a sub-node
+	 * @param version the current version of the tree
+	 * @return the sub-node at 'pos', copied if it belongs to an older version
+	 */
+	@SuppressWarnings("unchecked")
+	private N getWritableSub(int pos, int version) {
+		N sub = (N) subs[pos];
+		if (sub.version != version) {
+			sub = sub.getWritable(version);
+			subs[pos] = sub;
+		}
+		return sub;
+	}
+
+	N tryPut(E e, int maxNodeSize, boolean enforceLeaf, int version, IndexMetrics metrics) {
+		if (QuadTreeKD2.DEBUG && !fitsIntoNode(e, center, radius)) {
+			throw new IllegalStateException("e=" + e +
+					" center/radius=" + Arrays.toString(center) + "/" + radius);
+		}
+
+		//traverse subs?
+		if (!isLeaf()) {
+			return getOrCreateSub(e, maxNodeSize, enforceLeaf, version, metrics);
+		}
+
+		//add if:
+		//a) we have space
+		//b) we have maxDepth
+		//c) elements are equal (work only for n=1, avoids splitting
+		//   in cases where splitting won't help. For n>1 the
+		//   local limit is (temporarily) violated.
+		if (nValues < maxNodeSize || enforceLeaf || areAllPointsIdentical(e)) {
+			addValue(e, maxNodeSize);
+			return null;
+		}
+
+		//split
+		metrics.count(IndexMetrics.Counter.NODE_SPLITS, 1);
+		E[] vals = values;
+		int nVal = nValues;
+		clearValues();
+		subs = new Object[1 << center.length];
+		isLeaf = false;
+		for (int i = 0; i < nVal; i++) {
+			E e2 = vals[i];
+			N sub = getOrCreateSub(e2, maxNodeSize, enforceLeaf, version, metrics);
+			while (sub != null) {
+				//This may recurse if all entries fall
+				//into the same subnode
+				sub = sub.tryPut(e2, maxNodeSize, false, version, metrics);
+			}
+		}
+		return getOrCreateSub(e, maxNodeSize, enforceLeaf, version, metrics);
+	}
+
+	private boolean areAllPointsIdentical(E e) {
+		//This discovers situation where a node overflows, but splitting won't help because all points are identical
+		for (int i = 0; i < nValues; i++) {
+			if (!isPointEqual(e, values[i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	E[] getValues() {
+		return values;
+	}
+
+	private void addValue(E e, int maxNodeSize) {
+		//Allow overflow over max node size (for example for lots of identical values in node)
+		int maxLen = nValues >= maxNodeSize ? nValues * 2 : maxNodeSize;
+		if (nValues >= getValues().length) {
+			values = Arrays.copyOf(getValues(), Math.min(nValues * 3, maxLen));
+		}
+		getValues()[nValues++] = e;
+	}
+
+	void removeValue(int pos) {
+		if (isLeaf) {
+			if (pos < --nValues) {
+				System.arraycopy(getValues(), pos+1, getValues(), pos, nValues-pos);
+			}
+			getValues()[nValues] = null;
+		} else {
+			nValues--;
+			subs[pos] = null;
+		}
+	}
+
+	void clearValues() {
+		values = null;
+		nValues = 0;
+	}
+
+	@SuppressWarnings("unchecked")
+	private N getOrCreateSub(E e, int maxNodeSize, boolean enforceLeaf, int version, IndexMetrics metrics) {
+		int pos = calcSubPosition(e);
+		Object n = subs[pos];
+
+		if (n instanceof QNodeBase) {
+			return getWritableSub(pos, version);
+		}
+
+		if (n == null) {
+			subs[pos] = e;
+			nValues++;
+			return null;
+		}
+
+		E e2 = (E) n;
+		nValues--;
+		N sub = createSubForEntry(pos, version);
+		subs[pos] = sub;
+		sub.tryPut(e2, maxNodeSize, enforceLeaf, version, metrics);
+		return sub;
+	}
+
+	private N createSubForEntry(int subNodePos, int version) {
+		double[] centerSub = new double[center.length];
+		int mask = 1<<center.length;
+		//This ensures that the subsnodes completely cover the area of
+		//the parent node.
+		double radiusSub = radius/2.0;
+		for (int d = 0; d < center.length; d++) {
+			mask >>= 1;
+			if ((subNodePos & mask) > 0) {
+				centerSub[d] = center[d]+radiusSub;
+			} else {
+				centerSub[d] = center[d]-radiusSub;
+			}
+		}
+		return createNode(centerSub, radiusSub, version);
+	}
+
+	/**
+	 * The subnode position has reverse ordering of the point's
+	 * dimension ordering. Dimension 0 of a point is the highest
+	 * ordered bit in the position.
+	 * @param p point
+	 * @return subnode position
+	 */
+	int calcSubPosition(double[] p) {
+		int subNodePos = 0;
+		for (int d = 0; d < center.length; d++) {
+			subNodePos <<= 1;
+			if (p[d] >= center[d]) {
+				subNodePos |= 1;
+			}
+		}
+		return subNodePos;
+	}
+
+	@SuppressWarnings("unchecked")
+	E remove(N parent, double[] key, int maxNodeSize, Predicate<E> pred, int version,
+			 IndexMetrics metrics) {
+		if (!isLeaf()) {
+			int pos = calcSubPosition(key);
+			Object o = subs[pos];
+			if (o instanceof QNodeBase) {
+				return getWritableSub(pos, version).remove(self(), key, maxNodeSize, pred, version, metrics);
+			} else if (o != null) {
+				E e = (E) o;
+				if (removeSub(parent, key, pos, e, maxNodeSize, pred, metrics)) {
+					return e;
+				}
+			}
+			return null;
+		}
+
+		for (int i = 0; i < nValues; i++) {
+			E e = values[i];
+			if (removeSub(parent, key, i, e, maxNodeSize, pred, metrics)) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	private boolean removeSub(N parent, double[] key, int pos, E e, int maxNodeSize, Predicate<E> pred,
+							  IndexMetrics metrics) {
+		if (isPointEqual(e, key) && pred.test(e)) {
+			removeValue(pos);
+			if (parent != null) {
+				parent.checkAndMergeLeafNodes(maxNodeSize, metrics);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	@SuppressWarnings("unchecked")
+	E update(N parent, double[] keyOld, double[] keyNew, int maxNodeSize,
+			boolean[] requiresReinsert, int currentDepth, int maxDepth, Predicate<E> pred, int version,
+			IndexMetrics metrics) {
+		if (!isLeaf()) {
+			int pos = calcSubPosition(keyOld);
+			Object e = subs[pos];
+			if (e == null) {
+				return null;
+			}
+			if (e instanceof QNodeBase) {
+				N sub = getWritableSub(pos, version);
+				E ret = sub.update(self(), keyOld, keyNew, maxNodeSize, requiresReinsert,
+						currentDepth+1, maxDepth, pred, version, metrics);
+				if (ret != null && requiresReinsert[0] &&
+						fitsIntoNode(ret, center, radius/QUtil.EPS_MUL)) {
+					requiresReinsert[0] = false;
+					N r = self();
+					while (r != null) {
+						r = r.tryPut(ret, maxNodeSize, currentDepth++ > maxDepth, version, metrics);
+					}
+				}
+				return ret;
+			}
+			// Entry
+			E qe = (E) e;
+			if (isPointEqual(qe, keyOld) && pred.test(qe)) {
+				removeValue(pos);
+				qe = moveEntry(qe, keyNew, version);
+				if (QUtil.fitsIntoNode(keyNew, center, radius/QUtil.EPS_MUL)) {
+					// reinsert locally
+					N r = self();
+					while (r != null) {
+						r = r.tryPut(qe, maxNodeSize, currentDepth++ > maxDepth, version, metrics);
+					}
+					requiresReinsert[0] = false;
+				} else {
+					requiresReinsert[0] = true;
+					if (parent != null) {
+						parent.checkAndMergeLeafNodes(maxNodeSize, metrics);
+					}
+				}
+				return qe;
+			}
+			requiresReinsert[0] = false;
+			return null;
+		}
+
+		for (int i = 0; i < nValues; i++) {
+			E e = getValues()[i];
+			if (isPointEqual(e, keyOld) && pred.test(e)) {
+				removeValue(i);
+				e = moveEntry(e, keyNew, version);
+				updateSub(keyNew, e, parent, maxNodeSize, requiresReinsert, metrics);
+				return e;
+			}
+		}
+		requiresReinsert[0] = false;
+		return null;
+	}
+
+	private void updateSub(double[] keyNew, E e, N parent, int maxNodeSize, boolean[] requiresReinsert,
+						   IndexMetrics metrics) {
+		if (QUtil.fitsIntoNode(keyNew, center, radius/QUtil.EPS_MUL)) {
+			// reinsert locally
+			addValue(e, maxNodeSize);
+			requiresReinsert[0] = false;
+		} else {
+			requiresReinsert[0] = true;
+			if (parent != null) {
+				parent.checkAndMergeLeafNodes(maxNodeSize, metrics);
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	void checkAndMergeLeafNodes(int maxNodeSize, IndexMetrics metrics) {
+		//check: We start with including all local values: nValues
+		int nTotal = nValues;
+		int nSubs = 0;
+		for (int i = 0; i < subs.length; i++) {
+			Object e = subs[i];
+			if (e instanceof QNodeBase) {
+				N sub = (N) e;
+				if (!sub.isLeaf()) {
+					//can't merge directory nodes.
+					//Merge only makes sense if we switch to list-mode, for which we don;t support subnodes!
+					return;
+				}
+				nTotal += sub.getValueCount();
+				if (nTotal > maxNodeSize) {
+					//too many children
+					return;
+				}
+				nSubs++;
+			}
+		}
+
+		//okay, let's merge
+		metrics.count(IndexMetrics.Counter.NODE_MERGES, nSubs);
+		values = createValues(nTotal);
+		nValues = 0;
+		for (int i = 0; i < subs.length; i++) {
+			Object e = subs[i];
+			if (e instanceof QNodeBase) {
+				N sub = (N) e;
+				for (int j = 0; j < sub.nValues; j++) {
+					values[nValues++] = sub.values[j];
+				}
+			} else if (e != null) {
+				values[nValues++] = (E) e;
+			}
+		}
+		subs = null;
+		isLeaf = true;
+	}
+
+	double[] getCenter() {
+		return center;
+	}
+
+	double getRadius() {
+		return radius;
+	}
+
+	@SuppressWarnings("unchecked")
+	E getExact(double[] key, Predicate<E> pred) {
+		if (!isLeaf()) {
+			int pos = calcSubPosition(key);
+			Object sub = subs[pos];
+			if (sub instanceof QNodeBase) {
+				return ((N)sub).getExact(key, pred);
+			} else  if (sub != null) {
+				E e = (E) sub;
+				if (isPointEqual(e, key) && pred.test(e)) {
+					return e;
+				}
+			}
+			return null;
+		}
+
+		for (int i = 0; i < nValues; i++) {
+			E e = values[i];
+			if (isPointEqual(e, key) && pred.test(e)) {
+				return e;
+			}
+		}
+		return null;
+	}
+
+	Object[] getEntries() {
+		return isLeaf ? values : subs;
+	}
+
+
+	@Override
+	public String toString() {
+		return "center/radius=" + Arrays.toString(center) + "/" + radius +
+				" " + System.identityHashCode(this);
+	}
+
+	@SuppressWarnings("unchecked")
+	void checkNode(QStats s, N parent, int depth) {
+		if (depth > s.maxDepth) {
+			s.maxDepth = depth;
+		}
+		s.nNodes++;
+
+		if (parent != null) {
+			if (!QUtil.isNodeEnclosed(center, radius, parent.center, parent.radius*QUtil.EPS_MUL)) {
+				throw new IllegalStateException("Node " + this + " is not enclosed by parent " + parent);
+			}
+		}
+		if (values != null) {
+			s.nLeaf++;
+			s.nEntries += nValues;
+			s.histoValues[nValues]++;
+			for (int i = 0; i < nValues; i++) {
+				checkEntry(values[i]);
+			}
+			if (subs != null) {
+				throw new IllegalStateException();
+			}
+		} else {
+			s.nInner++;
+			if (subs.length != 1L<<s.dims) {
+				throw new IllegalStateException();
+			}
+			int nSubs = 0;
+			for (int i = 0; i < subs.length; i++) {
+				Object n = subs[i];
+				//TODO check pos
+				if (n instanceof QNodeBase) {
+					nSubs++;
+					((N)n).checkNode(s, self(), depth+1);
+				} else if (n != null) {
+					s.nEntries++;
+					checkEntry((E) n);
+				}
+			}
+			s.histo(nSubs);
+		}
+	}
+
+	private void checkEntry(E e) {
+		if (!fitsIntoNode(e, center, radius*QUtil.EPS_MUL)) {
+			throw new IllegalStateException("Entry " + e + " does not fit into node " + this);
+		}
+	}
+
+	boolean isLeaf() {
+		return isLeaf;
+	}
+
+	public int getValueCount() {
+		return nValues;
+	}
+
+	void adjustRadius(double radius) {
+		if (!isLeaf()) {
+			throw new IllegalStateException();
+		}
+		this.radius = radius;
+	}
+}
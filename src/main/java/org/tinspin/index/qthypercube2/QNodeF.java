@@ -0,0 +1,113 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ * 
+ * This file is part of TinSpin.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.qthypercube2;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * Node class for the {@link QuadTreeKD2F}, the entries store their keys as {@code float}.
+ * <p>
+ * The {@link QuadTreeKD2F} does not support snapshots, all nodes belong to version 0.
+ *
+ * @param <T> Value type.
+ */
+public class QNodeF<T> extends QNodeBase<T, QEntryF<T>, QNodeF<T>> {
+
+	@SuppressWarnings("unchecked")
+	QNodeF(double[] center, double radius) {
+		super(center, radius, new QEntryF[2], 0);
+	}
+
+	QNodeF(double[] center, double radius, QNodeF<T> subNode, int subNodePos) {
+		super(center, radius, subNode, subNodePos, 0);
+	}
+
+	private QNodeF(QNodeF<T> original, int version) {
+		super(original, version);
+	}
+
+	@Override
+	QNodeF<T> createNode(double[] center, double radius, int version) {
+		return new QNodeF<>(center, radius);
+	}
+
+	@Override
+	QNodeF<T> copy(int version) {
+		return new QNodeF<>(this, version);
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	QEntryF<T>[] createValues(int size) {
+		return new QEntryF[size];
+	}
+
+	@Override
+	int calcSubPosition(QEntryF<T> e) {
+		float[] p = e.point();
+		int subNodePos = 0;
+		for (int d = 0; d < center.length; d++) {
+			subNodePos <<= 1;
+			if (p[d] >= center[d]) {
+				subNodePos |= 1;
+			}
+		}
+		return subNodePos;
+	}
+
+	@Override
+	boolean isPointEqual(QEntryF<T> e, double[] key) {
+		return QUtil.isPointEqual(e.point(), key);
+	}
+
+	@Override
+	boolean isPointEqual(QEntryF<T> e1, QEntryF<T> e2) {
+		return QUtil.isPointEqual(e1.point(), e2.point());
+	}
+
+	@Override
+	boolean fitsIntoNode(QEntryF<T> e, double[] center, double radius) {
+		return QUtil.fitsIntoNode(e.point(), center, radius);
+	}
+
+	@Override
+	boolean isPointEnclosed(QEntryF<T> e, double[] min, double[] max) {
+		return QUtil.isPointEnclosed(e.point(), min, max);
+	}
+
+	@Override
+	double[] point(QEntryF<T> e, double[] buf) {
+		return e.point(buf);
+	}
+
+	@Override
+	PointEntry<T> toEntry(QEntryF<T> e) {
+		return e.toEntry();
+	}
+
+	@Override
+	QEntryF<T> moveEntry(QEntryF<T> e, double[] keyNew, int version) {
+		e.setPoint(QuadTreeKD2F.toFloat(keyNew));
+		return e;
+	}
+
+	@Override
+	double[] round(double[] key) {
+		return QuadTreeKD2F.round(key);
+	}
+}
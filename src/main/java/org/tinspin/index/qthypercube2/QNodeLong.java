@@ -0,0 +1,103 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ */
+package org.tinspin.index.qthypercube2;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * Node class for the {@link QuadTreeKD2Long}, the entries store their values as {@code long}.
+ * <p>
+ * The {@link QuadTreeKD2Long} does not support snapshots, all nodes belong to version 0.
+ */
+public class QNodeLong extends QNodeBase<Long, QEntryLong, QNodeLong> {
+
+	QNodeLong(double[] center, double radius) {
+		super(center, radius, new QEntryLong[2], 0);
+	}
+
+	QNodeLong(double[] center, double radius, QNodeLong subNode, int subNodePos) {
+		super(center, radius, subNode, subNodePos, 0);
+	}
+
+	private QNodeLong(QNodeLong original, int version) {
+		super(original, version);
+	}
+
+	@Override
+	QNodeLong createNode(double[] center, double radius, int version) {
+		return new QNodeLong(center, radius);
+	}
+
+	@Override
+	QNodeLong copy(int version) {
+		return new QNodeLong(this, version);
+	}
+
+	@Override
+	QEntryLong[] createValues(int size) {
+		return new QEntryLong[size];
+	}
+
+	@Override
+	int calcSubPosition(QEntryLong e) {
+		return calcSubPosition(e.point());
+	}
+
+	@Override
+	boolean isPointEqual(QEntryLong e, double[] key) {
+		return QUtil.isPointEqual(e.point(), key);
+	}
+
+	@Override
+	boolean isPointEqual(QEntryLong e1, QEntryLong e2) {
+		return QUtil.isPointEqual(e1.point(), e2.point());
+	}
+
+	@Override
+	boolean fitsIntoNode(QEntryLong e, double[] center, double radius) {
+		return QUtil.fitsIntoNode(e.point(), center, radius);
+	}
+
+	@Override
+	boolean isPointEnclosed(QEntryLong e, double[] min, double[] max) {
+		return QUtil.isPointEnclosed(e.point(), min, max);
+	}
+
+	@Override
+	double[] point(QEntryLong e, double[] buf) {
+		return e.point();
+	}
+
+	/**
+	 * This boxes the value, the {@link QuadTreeKD2Long} reads the entries directly.
+	 */
+	@Override
+	PointEntry<Long> toEntry(QEntryLong e) {
+		return new PointEntry<>(e.point(), e.value());
+	}
+
+	@Override
+	QEntryLong moveEntry(QEntryLong e, double[] keyNew, int version) {
+		e.setPoint(keyNew);
+		return e;
+	}
+
+	@Override
+	double[] round(double[] key) {
+		return key;
+	}
+}
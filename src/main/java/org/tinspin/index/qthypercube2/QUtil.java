@@ -36,6 +36,16 @@ class QUtil {
 	}
 
 
+	public static boolean isPointEnclosed(float[] point,
+			double[] min, double[] max) {
+		for (int d = 0; d < min.length; d++) {
+			if (point[d] < min[d] || point[d] > max[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/**
 	 * The tests for inclusion with UPPER BOUNDARY EXCLUSIVE!
 	 * I.e. it firs only if point is SMALLER than (center + radius).
@@ -49,6 +59,18 @@ class QUtil {
 		return true;
 	}
 
+	/**
+	 * @see #fitsIntoNode(double[], double[], double)
+	 */
+	public static boolean fitsIntoNode(float[] point, double[] center, double radius) {
+		for (int d = 0; d < center.length; d++) {
+			if (point[d] < center[d] - radius || point[d] >= center[d] + radius) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	public static boolean isPointEqual(double[] p1, double[] p2) {
 		for (int d = 0; d < p1.length; d++) {
 			if (p1[d] != p2[d]) {
@@ -58,6 +80,24 @@ class QUtil {
 		return true;
 	}
 
+	public static boolean isPointEqual(float[] p1, float[] p2) {
+		for (int d = 0; d < p1.length; d++) {
+			if (p1[d] != p2[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public static boolean isPointEqual(float[] p1, double[] p2) {
+		for (int d = 0; d < p1.length; d++) {
+			if (p1[d] != p2[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	public static boolean overlap(double[] min, double[] max, double[] min2, double[] max2) {
 		for (int d = 0; d < min.length; d++) {
 			if (max[d] < min2[d] || min[d] > max2[d]) {
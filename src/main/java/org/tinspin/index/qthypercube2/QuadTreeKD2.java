@@ -17,11 +17,19 @@
  */
 package org.tinspin.index.qthypercube2;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.*;
 import java.util.function.Predicate;
 
 import org.tinspin.index.*;
+import org.tinspin.index.util.IndexIO;
+import org.tinspin.index.util.KnnBatch;
 import org.tinspin.index.util.StringBuilderLn;
+import org.tinspin.index.util.ZOrder;
 
 /**
  * This is a MX-quadtree implementation with configurable maximum depth, maximum nodes size, and
@@ -43,7 +51,9 @@ import org.tinspin.index.util.StringBuilderLn;
  * node could not hold date entries. 
  * With version two a directory node (which contains a hypercube array) will only
  * create a subnode if a quadrant has to mhold more than one data entry.
- * 
+ * <p>
+ * {@link #snapshot()} creates a read-only snapshot of the tree in O(1). Subsequent modifications
+ * of the tree use copy-on-write, i.e. they copy only the nodes on the modified path.
  * 
  * @author ztilmann
  *
@@ -65,6 +75,10 @@ public class QuadTreeKD2<T> implements PointMap<T>, PointMultimap<T> {
 	private final int maxNodeSize;
 	private QNode<T> root = null;
 	private int size = 0; 
+	private IndexMetrics metrics = IndexMetrics.NONE;
+	// Version for copy-on-write, this is incremented with every snapshot.
+	private int version = 0;
+	private boolean readOnly = false;
 	
 
 	private QuadTreeKD2(int dims, int maxNodeSize) {
@@ -93,9 +107,92 @@ public class QuadTreeKD2<T> implements PointMap<T>, PointMultimap<T> {
 		if (radius <= 0) {
 			throw new IllegalArgumentException("Radius must be > 0 but was " + radius);
 		}
-		t.root = new QNode<>(Arrays.copyOf(center, center.length), radius);
+		t.root = new QNode<>(Arrays.copyOf(center, center.length), radius, 0);
 		return t;
 	}
+
+	/**
+	 * Write the tree, including its node structure, to a stream.
+	 * @param out the stream, it is flushed but not closed
+	 * @param codec codec for the values
+	 * @throws IOException if writing fails
+	 * @see #load(InputStream, ValueCodec)
+	 */
+	public void save(OutputStream out, ValueCodec<? super T> codec) throws IOException {
+		DataOutputStream dos = IndexIO.writeHeader(out, "QuadTreeKD2", dims);
+		dos.writeInt(maxNodeSize);
+		dos.writeInt(size);
+		dos.writeBoolean(root != null);
+		if (root != null) {
+			root.write(dos, codec);
+		}
+		dos.flush();
+	}
+
+	/**
+	 * Read a tree that was written with {@link #save(OutputStream, ValueCodec)}.
+	 * The nodes are restored as they were written, there is no re-insertion.
+	 * The returned tree is writable, even if a read-only snapshot was saved.
+	 * @param in the stream, it should be buffered
+	 * @param codec codec for the values
+	 * @return the tree
+	 * @param <T> value type
+	 * @throws IOException if reading fails or if the stream does not contain a QuadTreeKD2
+	 */
+	public static <T> QuadTreeKD2<T> load(InputStream in, ValueCodec<? extends T> codec) throws IOException {
+		DataInputStream dis = IndexIO.readHeader(in, "QuadTreeKD2");
+		int dims = IndexIO.readDims(dis);
+		QuadTreeKD2<T> t = new QuadTreeKD2<>(dims, dis.readInt());
+		t.size = dis.readInt();
+		if (dis.readBoolean()) {
+			t.root = QNode.read(dis, codec, dims, t.version);
+		}
+		return t;
+	}
+
+	/**
+	 * Create a read-only snapshot of the tree. This takes O(1) time. The snapshot is not affected
+	 * by subsequent modifications of this tree. Modifications of this tree use copy-on-write,
+	 * i.e. they copy every node on the path to the modified entry (if the node has not been copied
+	 * since the last snapshot).
+	 * <p>
+	 * The snapshot can be queried concurrently with modifications of this tree, for example by long-running
+	 * window queries. However, this method must not be called concurrently with modifications, and the
+	 * snapshot must be safely published to other threads, e.g. via a volatile field.
+	 *
+	 * @return a read-only snapshot of the tree
+	 */
+	public QuadTreeKD2<T> snapshot() {
+		QuadTreeKD2<T> snapshot = new QuadTreeKD2<>(dims, maxNodeSize);
+		snapshot.root = root;
+		snapshot.size = size;
+		snapshot.version = version;
+		snapshot.readOnly = true;
+		version++;
+		return snapshot;
+	}
+
+	/**
+	 * @return 'true' if this tree is a read-only snapshot
+	 * @see #snapshot()
+	 */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	private void checkWritable() {
+		if (readOnly) {
+			throw new UnsupportedOperationException("Snapshots are read-only");
+		}
+	}
+
+	/**
+	 * @return the root node, copied if it is shared with a snapshot
+	 */
+	private QNode<T> getWritableRoot() {
+		root = root.getWritable(version);
+		return root;
+	}
 	
 	/**
 	 * Insert a key-value pair.
@@ -104,23 +201,116 @@ public class QuadTreeKD2<T> implements PointMap<T>, PointMultimap<T> {
 	 */
 	@Override
 	public void insert(double[] key, T value) {
+		checkWritable();
 		size++;
 		PointEntry<T> e = new PointEntry<>(key, value);
 		if (root == null) {
 			// We calculate a better radius when adding a second point.
-			root = new QNode<>(key.clone(), INITIAL_RADIUS);
+			root = new QNode<>(key.clone(), INITIAL_RADIUS, version);
 		}
+		getWritableRoot();
 		if (root.getRadius() == INITIAL_RADIUS) {
 			adjustRootSize(key);
 		}
-		ensureCoverage(e);
+		ensureCoverage(e.point());
 		QNode<T> r = root;
 		int depth = 0;
 		while (r != null) {
-			r = r.tryPut(e, maxNodeSize, depth++ > MAX_DEPTH);
+			r = r.tryPut(e, maxNodeSize, depth++ > MAX_DEPTH, version, metrics);
+		}
+	}
+
+	/**
+	 * Insert multiple entries. This is equivalent to calling {@link #insert(double[], Object)} for every
+	 * entry, but faster for large batches:
+	 * the root is sized only once for the bounding box of all entries, and
+	 * the entries are sorted by z-order (hypercube address). Each entry then continues the descent of
+	 * the previous entry from the deepest node that contains it instead of descending from the root.
+	 * <p>
+	 * As with {@link #insert(double[], Object)}, the tree stores its own entries, so updates in the tree
+	 * do not modify the given entries. The key arrays are not copied and must not be modified afterward.
+	 * @param entries the entries. The array is not modified.
+	 */
+	@SuppressWarnings("unchecked")
+	public void insertAll(PointEntry<T>[] entries) {
+		checkWritable();
+		if (entries.length == 0) {
+			return;
+		}
+		double[][] bounds = ZOrder.bounds(entries);
+		if (!adjustRootSize(bounds[0], bounds[1])) {
+			// All points are identical
+			for (PointEntry<T> e : entries) {
+				insert(e.point(), e.value());
+			}
+			return;
+		}
+		ensureCoverage(bounds[0]);
+		ensureCoverage(bounds[1]);
+		size += entries.length;
+
+		PointEntry<T>[] sorted = ZOrder.sort(entries, root.getCenter(), root.getRadius());
+		// The path of the previous entry: path[i] is the subnode at position pathPos[i] of path[i-1]
+		QNode<T>[] path = new QNode[MAX_DEPTH + 2];
+		int[] pathPos = new int[path.length];
+		path[0] = root;
+		int pathLen = 1;
+		for (PointEntry<T> sortedEntry : sorted) {
+			PointEntry<T> e = new PointEntry<>(sortedEntry.point(), sortedEntry.value());
+			double[] p = e.point();
+			int depth = 1;
+			while (depth < pathLen && path[depth - 1].calcSubPosition(p) == pathPos[depth]) {
+				depth++;
+			}
+			QNode<T> r = path[depth - 1];
+			while (r != null) {
+				QNode<T> sub = r.tryPut(e, maxNodeSize, depth - 1 > MAX_DEPTH, version, metrics);
+				if (sub != null) {
+					if (depth == path.length) {
+						path = Arrays.copyOf(path, depth * 2);
+						pathPos = Arrays.copyOf(pathPos, depth * 2);
+					}
+					pathPos[depth] = r.calcSubPosition(p);
+					path[depth++] = sub;
+				}
+				r = sub;
+			}
+			pathLen = depth;
 		}
 	}
 
+	/**
+	 * Size the root for a batch of points, see {@link #adjustRootSize(double[])}.
+	 * @param min lower left corner of the bounding box of the batch
+	 * @param max upper right corner of the bounding box of the batch
+	 * @return 'false' if the root size cannot be determined, i.e. all points are identical to the root center.
+	 */
+	private boolean adjustRootSize(double[] min, double[] max) {
+		if (root == null) {
+			double[] center = new double[dims];
+			for (int d = 0; d < dims; d++) {
+				center[d] = (min[d] + max[d]) / 2;
+			}
+			root = new QNode<>(center, INITIAL_RADIUS, version);
+		}
+		getWritableRoot();
+		if (root.getRadius() == INITIAL_RADIUS) {
+			if (!root.isLeaf()) {
+				return false;
+			}
+			double[] center = root.getCenter();
+			double dist = 0;
+			for (int d = 0; d < dims; d++) {
+				dist = Math.max(dist, Math.max(center[d] - min[d], max[d] - center[d]));
+			}
+			if (dist == 0) {
+				return false;
+			}
+			root.adjustRadius(2 * dist);
+		}
+		return true;
+	}
+
 	private void adjustRootSize(double[] key) {
 		// Idea: we calculate the root size only when adding a point that is distinct from the root's center
 		if (!root.isLeaf() || root.getValueCount() == 0) {
@@ -178,10 +368,11 @@ public class QuadTreeKD2<T> implements PointMap<T>, PointMultimap<T> {
 	 */
 	@Override
 	public T remove(double[] key) {
+		checkWritable();
 		if (root == null) {
 			return null;
 		}
-		PointEntry<T> e = root.remove(null, key, maxNodeSize, x -> true);
+		PointEntry<T> e = getWritableRoot().remove(null, key, maxNodeSize, x -> true, version, metrics);
 		if (e == null) {
 			return null;
 		}
@@ -196,10 +387,11 @@ public class QuadTreeKD2<T> implements PointMap<T>, PointMultimap<T> {
 
 	@Override
 	public boolean removeIf(double[] key, Predicate<PointEntry<T>> condition) {
+		checkWritable();
 		if (root == null) {
 			return false;
 		}
-		PointEntry<T> e = root.remove(null, key, maxNodeSize, condition);
+		PointEntry<T> e = getWritableRoot().remove(null, key, maxNodeSize, condition, version, metrics);
 		if (e == null) {
 			return false;
 		}
@@ -207,6 +399,25 @@ public class QuadTreeKD2<T> implements PointMap<T>, PointMultimap<T> {
 		return true;
 	}
 
+	/**
+	 * Remove all entries inside the query window that match the condition, in a single traversal.
+	 * Sub-nodes that become empty are removed, and sub-nodes are merged bottom-up.
+	 * @param min Lower left corner of the query window
+	 * @param max Upper right corner of the query window
+	 * @param condition the condition required for removing an entry
+	 * @return the number of removed entries
+	 */
+	@Override
+	public int removeAll(double[] min, double[] max, Predicate<PointEntry<T>> condition) {
+		checkWritable();
+		if (root == null) {
+			return 0;
+		}
+		int n = getWritableRoot().removeAll(min, max, maxNodeSize, condition, false, version, metrics);
+		size -= n;
+		return n;
+	}
+
 	/**
 	 * Reinsert the key.
 	 * @param oldKey old key
@@ -238,36 +449,36 @@ public class QuadTreeKD2<T> implements PointMap<T>, PointMultimap<T> {
 	 * @return the value associated with the key or 'null' if the key was not found.
 	 */
 	public T updateIf(double[] oldKey, double[] newKey, Predicate<PointEntry<T>> condition) {
+		checkWritable();
 		if (root == null) {
 			return null;
 		}
 		boolean[] requiresReinsert = new boolean[]{false};
-		PointEntry<T> e = root.update(null, oldKey, newKey, maxNodeSize, requiresReinsert,
-				0, MAX_DEPTH, condition);
+		PointEntry<T> e = getWritableRoot().update(null, oldKey, newKey, maxNodeSize, requiresReinsert,
+				0, MAX_DEPTH, condition, version, metrics);
 		if (e == null) {
 			//not found
 			return null;
 		}
 		if (requiresReinsert[0]) {
 			//does not fit in root node...
-			ensureCoverage(e);
+			ensureCoverage(e.point());
 			QNode<T> r = root;
 			int depth = 0;
 			while (r != null) {
-				r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH);
+				r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH, version, metrics);
 			}
 		}
 		return e.value();
 	}
 
 	/**
-	 * Ensure that the tree covers the entry.
-	 * @param e Entry to cover.
+	 * Ensure that the tree covers the point.
+	 * @param p Point to cover.
 	 */
 	@SuppressWarnings("unused")
-	private void ensureCoverage(PointEntry<T> e) {
-		double[] p = e.point();
-		while(!QUtil.fitsIntoNode(e.point(), root.getCenter(), root.getRadius())) {
+	private void ensureCoverage(double[] p) {
+		while(!QUtil.fitsIntoNode(p, root.getCenter(), root.getRadius())) {
 			double[] center = root.getCenter();
 			double radius = root.getRadius();
 			double[] center2 = new double[center.length];
@@ -286,11 +497,12 @@ public class QuadTreeKD2<T> implements PointMap<T>, PointMultimap<T> {
 				}
 			}
 			if (QuadTreeKD2.DEBUG && !QUtil.isNodeEnclosed(center, radius, center2, radius2)) {
-				throw new IllegalStateException("e=" + Arrays.toString(e.point()) + 
+				throw new IllegalStateException("e=" + Arrays.toString(p) + 
 						" center/radius=" + Arrays.toString(center2) + 
 						"/"+ radius);
 			}
-			root = new QNode<>(center2, radius2, root, subNodePos);
+			metrics.count(IndexMetrics.Counter.ROOT_GROWTHS, 1);
+			root = new QNode<>(center2, radius2, root, subNodePos, version);
 		}
 	}
 	
@@ -303,11 +515,22 @@ public class QuadTreeKD2<T> implements PointMap<T>, PointMultimap<T> {
 		return size;
 	}
 
+	/**
+	 * Reports node splits, merges of underfull nodes, root growth, and node visits and scanned entries
+	 * of kNN queries and of window queries (the latter only with {@link #ENABLE_HCI_2}).
+	 * @param metrics the receiver
+	 */
+	@Override
+	public void setMetrics(IndexMetrics metrics) {
+		this.metrics = metrics;
+	}
+
 	/**
 	 * Removes all elements from the tree.
 	 */
 	@Override
 	public void clear() {
+		checkWritable();
 		size = 0;
 		root = null;
 	}
@@ -330,7 +553,7 @@ public class QuadTreeKD2<T> implements PointMap<T>, PointMultimap<T> {
 	@Override
 	public PointIterator<T> query(double[] min, double[] max) {
 		if (ENABLE_HCI_2) {
-			return new QIterator2<>(this, min, max);
+			return new QIterator2<>(this::getRoot, metrics, min, max);
 		} else if (ENABLE_HCI_1) {
 			return new QIterator1<>(this, min, max);
 		} //else if (ENABLE_HCI_0) {
@@ -345,6 +568,18 @@ public class QuadTreeKD2<T> implements PointMap<T>, PointMultimap<T> {
 		return PointMap.super.query1nn(center);
 	}
 
+	/**
+	 * Batch kNN query, each task reuses a single {@link QIteratorKnn} (and its heaps)
+	 * for all its queries.
+	 * @see PointMap#queryKnnBatch(double[][], int, Object[], double[], boolean)
+	 */
+	@Override
+	public void queryKnnBatch(double[][] centers, int k, T[] values, double[] distances, boolean parallel) {
+		KnnBatch.query(centers, k, values, distances, parallel,
+				c -> new QIteratorKnn<>(root, k, c, PointDistance.L2, (e, d) -> true, metrics),
+				PointEntryKnn::value, PointEntryKnn::dist);
+	}
+
 	/**
 	 *
 	 * @param center   center point
@@ -355,7 +590,16 @@ public class QuadTreeKD2<T> implements PointMap<T>, PointMultimap<T> {
 	 */
 	@Override
 	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn) {
-		return new QIteratorKnn<>(root, k, center, distFn, (e, d) -> true);
+		return new QIteratorKnn<>(root, k, center, distFn, (e, d) -> true, metrics);
+	}
+
+	/**
+	 * Filtered kNN query, the filter is applied during the traversal.
+	 * @see PointMultimap#queryKnn(double[], int, PointDistance, PointFilterKnn)
+	 */
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn, PointFilterKnn<T> filterFn) {
+		return new QIteratorKnn<>(root, k, center, distFn, filterFn, metrics);
 	}
 
     /**
@@ -0,0 +1,491 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ * 
+ * This file is part of TinSpin.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.qthypercube2;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+import org.tinspin.index.*;
+import org.tinspin.index.qthypercube2.QuadTreeKD2.QStats;
+import org.tinspin.index.util.KnnBatch;
+import org.tinspin.index.util.StringBuilderLn;
+
+/**
+ * A variant of the {@link QuadTreeKD2} that stores keys as 32 bit {@code float} instead of {@code double}.
+ * This halves the memory required for keys. Node centers and radii are kept in {@code double}.
+ * <p>
+ * Keys are rounded to the nearest {@code float} when they are inserted. All operations
+ * work on the rounded keys:
+ * <ul>
+ * <li>Exact lookups, removal and updates round the given key and compare the rounded values,
+ * i.e. keys that differ only beyond {@code float} precision are considered equal.</li>
+ * <li>Window queries round the query box. Rounding is monotonic, so every point inside
+ * the original box is found.</li>
+ * <li>kNN distances are calculated in {@code double} between the query point and the
+ * rounded keys.</li>
+ * </ul>
+ * Query results are new entries that contain the rounded keys as {@code double[]}.
+ * 
+ * @param <T> Value type.
+ */
+public class QuadTreeKD2F<T> implements PointMap<T>, PointMultimap<T> {
+
+	private static final int MAX_DEPTH = 50;
+	// This is the MINIMUM MAX_NODE_SIZE. MAX__NODE_SIZE is adjust upwards automatically
+	// with increasing dimensionality
+	private static final int DEFAULT_MAX_NODE_SIZE = 10;
+	private static final double INITIAL_RADIUS = Double.MAX_VALUE;
+	private final int dims;
+	private final int maxNodeSize;
+	private QNodeF<T> root = null;
+	private int size = 0; 
+	private IndexMetrics metrics = IndexMetrics.NONE;
+	
+
+	private QuadTreeKD2F(int dims, int maxNodeSize) {
+		this.dims = dims;
+		this.maxNodeSize = maxNodeSize;
+	}
+
+	public static <T> QuadTreeKD2F<T> create(int dims) {
+		int maxNodeSize = DEFAULT_MAX_NODE_SIZE;
+		if (2 * dims > DEFAULT_MAX_NODE_SIZE) {
+			maxNodeSize = 2*dims;
+		}
+		return new QuadTreeKD2F<>(dims, maxNodeSize);
+	}
+	
+	public static <T> QuadTreeKD2F<T> create(int dims, int maxNodeSize) {
+		return new QuadTreeKD2F<>(dims, maxNodeSize);
+	}
+	
+	public static <T> QuadTreeKD2F<T> create(int dims, int maxNodeSize, 
+			double[] center, double radius) {
+		QuadTreeKD2F<T> t = new QuadTreeKD2F<>(dims, maxNodeSize);
+		if (radius <= 0) {
+			throw new IllegalArgumentException("Radius must be > 0 but was " + radius);
+		}
+		t.root = new QNodeF<>(Arrays.copyOf(center, center.length), radius);
+		return t;
+	}
+
+	static float[] toFloat(double[] key) {
+		float[] f = new float[key.length];
+		for (int d = 0; d < key.length; d++) {
+			f[d] = (float) key[d];
+		}
+		return f;
+	}
+
+	private static double[] toDouble(float[] key) {
+		double[] p = new double[key.length];
+		for (int d = 0; d < key.length; d++) {
+			p[d] = key[d];
+		}
+		return p;
+	}
+
+	/**
+	 * @param key the key
+	 * @return a new array with the key rounded to {@code float} precision
+	 */
+	static double[] round(double[] key) {
+		double[] p = new double[key.length];
+		for (int d = 0; d < key.length; d++) {
+			p[d] = (float) key[d];
+		}
+		return p;
+	}
+	
+	/**
+	 * Insert a key-value pair. The key is rounded to {@code float} precision.
+	 * @param key the key
+	 * @param value the value
+	 */
+	@Override
+	public void insert(double[] key, T value) {
+		insert(toFloat(key), value);
+	}
+
+	/**
+	 * Insert a key-value pair.
+	 * @param key the key, it is stored in the tree and must not be modified afterward
+	 * @param value the value
+	 */
+	public void insert(float[] key, T value) {
+		size++;
+		QEntryF<T> e = new QEntryF<>(key, value);
+		double[] p = toDouble(key);
+		if (root == null) {
+			// We calculate a better radius when adding a second point.
+			root = new QNodeF<>(p.clone(), INITIAL_RADIUS);
+		}
+		if (root.getRadius() == INITIAL_RADIUS) {
+			adjustRootSize(p);
+		}
+		ensureCoverage(p);
+		QNodeF<T> r = root;
+		int depth = 0;
+		while (r != null) {
+			r = r.tryPut(e, maxNodeSize, depth++ > MAX_DEPTH, 0, metrics);
+		}
+	}
+
+	private void adjustRootSize(double[] key) {
+		// Idea: we calculate the root size only when adding a point that is distinct from the root's center
+		if (!root.isLeaf() || root.getValueCount() == 0) {
+			return;
+		}
+		if (root.getRadius() == INITIAL_RADIUS) {
+			double dist = PointDistance.L2.dist(key, root.getCenter());
+			if (dist > 0) {
+				root.adjustRadius(2 * dist);
+			} else if (root.getValueCount() >= maxNodeSize - 1) {
+				// we just set an arbitrary radius here
+				root.adjustRadius(1000);
+			}
+		}
+	}
+	
+	/**
+	 * Check whether a given key exists.
+	 * @param key the key to check
+	 * @return true iff the key exists
+	 */
+	public boolean contains(double[] key) {
+		if (root == null) {
+			return false;
+		}
+		return root.getExact(round(key), entry -> true) != null;
+	}
+	
+	/**
+	 * Get the value associates with the key.
+	 * @param key the key to look up
+	 * @return the value for the key or 'null' if the key was not found
+	 */
+	@Override
+	public T queryExact(double[] key) {
+		if (root == null) {
+			return null;
+		}
+		QEntryF<T> e = root.getExact(round(key), entry -> true);
+		return e == null ? null : e.value();
+	}
+
+	@Override
+	public boolean contains(double[] key, T value) {
+		if (root == null) {
+			return false;
+		}
+		return root.getExact(round(key), e -> Objects.equals(value, e.value())) != null;
+	}
+
+	/**
+	 * Remove a key.
+	 * @param key key to remove
+	 * @return the value associated with the key or 'null' if the key was not found
+	 */
+	@Override
+	public T remove(double[] key) {
+		if (root == null) {
+			return null;
+		}
+		QEntryF<T> e = root.remove(null, round(key), maxNodeSize, x -> true, 0, metrics);
+		if (e == null) {
+			return null;
+		}
+		size--;
+		return e.value();
+	}
+
+	@Override
+	public boolean remove(double[] key, T value) {
+		return removeIf(key, e -> Objects.equals(e.value(), value));
+	}
+
+	@Override
+	public boolean removeIf(double[] key, Predicate<PointEntry<T>> condition) {
+		if (root == null) {
+			return false;
+		}
+		QEntryF<T> e = root.remove(null, round(key), maxNodeSize,
+				x -> condition.test(x.toEntry()), 0, metrics);
+		if (e == null) {
+			return false;
+		}
+		size--;
+		return true;
+	}
+
+	/**
+	 * Reinsert the key.
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @return the value associated with the key or 'null' if the key was not found.
+	 */
+	@Override
+	public T update(double[] oldKey, double[] newKey) {
+		return updateIf(oldKey, newKey, e -> true);
+	}
+
+	/**
+	 * Reinsert the key.
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @param value the value of the entry that should be updated.
+	 * @return the value associated with the key or 'null' if the key was not found.
+	 */
+	@Override
+	public boolean update(double[] oldKey, double[] newKey, T value) {
+		return updateIf(oldKey, newKey, e -> Objects.equals(e.value(), value)) != null;
+	}
+
+	/**
+	 * Reinsert the key.
+	 * @param oldKey old key
+	 * @param newKey new key
+	 * @param condition A predicate that must evaluate to 'true' for an entry to be updated.
+	 * @return the value associated with the key or 'null' if the key was not found.
+	 */
+	public T updateIf(double[] oldKey, double[] newKey, Predicate<PointEntry<T>> condition) {
+		if (root == null) {
+			return null;
+		}
+		boolean[] requiresReinsert = new boolean[]{false};
+		double[] p = round(newKey);
+		QEntryF<T> e = root.update(null, round(oldKey), p, maxNodeSize, requiresReinsert,
+				0, MAX_DEPTH, x -> condition.test(x.toEntry()), 0, metrics);
+		if (e == null) {
+			//not found
+			return null;
+		}
+		if (requiresReinsert[0]) {
+			//does not fit in root node...
+			ensureCoverage(p);
+			QNodeF<T> r = root;
+			int depth = 0;
+			while (r != null) {
+				r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH, 0, metrics);
+			}
+		}
+		return e.value();
+	}
+
+	/**
+	 * Ensure that the tree covers the point.
+	 * @param p Point to cover.
+	 */
+	private void ensureCoverage(double[] p) {
+		while(!QUtil.fitsIntoNode(p, root.getCenter(), root.getRadius())) {
+			double[] center = root.getCenter();
+			double radius = root.getRadius();
+			double[] center2 = new double[center.length];
+			double radius2 = radius*2;
+			int subNodePos = 0;
+			for (int d = 0; d < center.length; d++) {
+				subNodePos <<= 1;
+				if (p[d] < center[d]-radius) {
+					center2[d] = center[d]-radius;
+					//root will end up in upper quadrant in this 
+					//dimension
+					subNodePos |= 1;
+				} else {
+					//extend upwards, even if extension unnecessary for this dimension.
+					center2[d] = center[d]+radius; 
+				}
+			}
+			metrics.count(IndexMetrics.Counter.ROOT_GROWTHS, 1);
+			root = new QNodeF<>(center2, radius2, root, subNodePos);
+		}
+	}
+	
+	/**
+	 * Get the number of key-value pairs in the tree.
+	 * @return the size
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Reports node splits, merges of underfull nodes, root growth, and node visits and scanned entries
+	 * of window queries and kNN queries.
+	 * @param metrics the receiver
+	 */
+	@Override
+	public void setMetrics(IndexMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Removes all elements from the tree.
+	 */
+	@Override
+	public void clear() {
+		size = 0;
+		root = null;
+	}
+
+	/**
+	 * @param point the point
+	 * @return an iterator over all entries at the given coordinate.
+	 * @see PointMultimap#queryExactPoint(double[])
+	 */
+	public PointIterator<T> queryExactPoint(double[] point) {
+		return query(point, point);
+	}
+
+	/**
+	 * Query the tree, returning all points in the axis-aligned rectangle between 'min' and 'max'.
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @return all entries in the rectangle
+	 */
+	@Override
+	public PointIterator<T> query(double[] min, double[] max) {
+		return new QIterator2<>(this::getRoot, metrics, min, max);
+	}
+
+	@Override
+	public PointIterator<T> iterator() {
+		double[] min = new double[dims];
+		double[] max = new double[dims];
+		Arrays.fill(min, Double.NEGATIVE_INFINITY);
+		Arrays.fill(max, Double.POSITIVE_INFINITY);
+		return query(min, max);
+	}
+
+	@Override
+	public PointEntryKnn<T> query1nn(double[] center) {
+		return PointMap.super.query1nn(center);
+	}
+
+	/**
+	 * Batch kNN query, each task reuses a single {@link QIteratorKnn} (and its heaps)
+	 * for all its queries.
+	 * @see PointMap#queryKnnBatch(double[][], int, Object[], double[], boolean)
+	 */
+	@Override
+	public void queryKnnBatch(double[][] centers, int k, T[] values, double[] distances, boolean parallel) {
+		KnnBatch.query(centers, k, values, distances, parallel,
+				c -> new QIteratorKnn<>(root, k, c, PointDistance.L2, (e, d) -> true, metrics),
+				PointEntryKnn::value, PointEntryKnn::dist);
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k) {
+		return queryKnn(center, k, PointDistance.L2);
+	}
+
+	/**
+	 *
+	 * @param center   center point
+	 * @param k        number of neighbors
+	 * @param distFn   the point distance function to be used
+	 * @return Iterator over query result
+	 * @see PointMultimap#queryKnn(double[], int, PointDistance)
+	 */
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn) {
+		return new QIteratorKnn<>(root, k, center, distFn, (e, d) -> true, metrics);
+	}
+
+	/**
+	 * Filtered kNN query, the filter is applied during the traversal.
+	 * @see PointMultimap#queryKnn(double[], int, PointDistance, PointFilterKnn)
+	 */
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn, PointFilterKnn<T> filterFn) {
+		return new QIteratorKnn<>(root, k, center, distFn, filterFn, metrics);
+	}
+
+    /**
+	 * Returns a printable list of the tree.
+	 * @return the tree as String
+	 */
+	@Override
+	public String toStringTree() {
+		StringBuilderLn sb = new StringBuilderLn();
+		if (root == null) {
+			sb.append("empty tree");
+		} else {
+			toStringTree(sb, root, 0, 0);
+		}
+		return sb.toString();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private void toStringTree(StringBuilderLn sb, QNodeF<T> node,
+							  int depth, int posInParent) {
+		String prefix = ".".repeat(depth);
+		sb.append(prefix + posInParent + " d=" + depth);
+		sb.append(" " + Arrays.toString(node.getCenter()));
+		sb.appendLn("/" + node.getRadius());
+		prefix += " ";
+		for (int i = 0; i < node.getEntries().length; i++) {
+			Object o = node.getEntries()[i];
+			if (o instanceof QNodeF) {
+				QNodeF<T> sub = (QNodeF<T>) o;
+				toStringTree(sb, sub, depth+1, i);
+			} else if (o != null) {
+				QEntryF<T> e = (QEntryF<T>) o;
+				sb.append(prefix).append(Arrays.toString(e.point()));
+				sb.append(" v=").append(e.value()).appendLn();
+			}
+		}
+	}
+	
+	@Override
+	public String toString() {
+		return "QuadTreeKD2F;maxNodeSize=" + maxNodeSize + 
+				";maxDepth=" + MAX_DEPTH + 
+				";center/radius=" + (root==null ? "null" : 
+					(Arrays.toString(root.getCenter()) + "/" +
+				root.getRadius()));
+	}
+	
+	@Override
+	public QStats getStats() {
+		QStats s = new QStats(dims);
+		if (root != null) {
+			root.checkNode(s, null, 0);
+		}
+		return s;
+	}
+
+	@Override
+	public int getDims() {
+		return dims;
+	}
+
+	@Override
+	public int getNodeCount() {
+		return getStats().getNodeCount();
+	}
+
+	@Override
+	public int getDepth() {
+		return getStats().getMaxDepth();
+	}
+	
+	QNodeF<T> getRoot() {
+		return root;
+	}
+}
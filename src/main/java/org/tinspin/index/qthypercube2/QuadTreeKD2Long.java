@@ -0,0 +1,438 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ */
+package org.tinspin.index.qthypercube2;
+
+import java.util.*;
+import java.util.function.LongPredicate;
+
+import org.tinspin.index.*;
+import org.tinspin.index.qthypercube2.QuadTreeKD2.QStats;
+import org.tinspin.index.util.StringBuilderLn;
+
+/**
+ * A variant of the {@link QuadTreeKD2} that stores primitive {@code long} values, see {@link PointMultimapLong}.
+ * <p>
+ * The entries keep the value in a {@code long} field and the iterators return the values without boxing.
+ * Keys are copied on insert. The tree does not support snapshots.
+ */
+public class QuadTreeKD2Long implements PointMultimapLong {
+
+	private static final int MAX_DEPTH = 50;
+	// This is the MINIMUM MAX_NODE_SIZE. MAX__NODE_SIZE is adjust upwards automatically
+	// with increasing dimensionality
+	private static final int DEFAULT_MAX_NODE_SIZE = 10;
+	private static final double INITIAL_RADIUS = Double.MAX_VALUE;
+	private final int dims;
+	private final int maxNodeSize;
+	private QNodeLong root = null;
+	private int size = 0;
+	private IndexMetrics metrics = IndexMetrics.NONE;
+
+	private QuadTreeKD2Long(int dims, int maxNodeSize) {
+		this.dims = dims;
+		this.maxNodeSize = maxNodeSize;
+	}
+
+	public static QuadTreeKD2Long create(int dims) {
+		int maxNodeSize = DEFAULT_MAX_NODE_SIZE;
+		if (2 * dims > DEFAULT_MAX_NODE_SIZE) {
+			maxNodeSize = 2*dims;
+		}
+		return new QuadTreeKD2Long(dims, maxNodeSize);
+	}
+
+	public static QuadTreeKD2Long create(int dims, int maxNodeSize) {
+		return new QuadTreeKD2Long(dims, maxNodeSize);
+	}
+
+	/**
+	 * Insert a key-value pair.
+	 * @param key the key, it is copied
+	 * @param value the value
+	 */
+	@Override
+	public void insert(double[] key, long value) {
+		size++;
+		double[] p = key.clone();
+		QEntryLong e = new QEntryLong(p, value);
+		if (root == null) {
+			// We calculate a better radius when adding a second point.
+			root = new QNodeLong(p.clone(), INITIAL_RADIUS);
+		}
+		if (root.getRadius() == INITIAL_RADIUS) {
+			adjustRootSize(p);
+		}
+		ensureCoverage(p);
+		QNodeLong r = root;
+		int depth = 0;
+		while (r != null) {
+			r = r.tryPut(e, maxNodeSize, depth++ > MAX_DEPTH, 0, metrics);
+		}
+	}
+
+	private void adjustRootSize(double[] key) {
+		// Idea: we calculate the root size only when adding a point that is distinct from the root's center
+		if (!root.isLeaf() || root.getValueCount() == 0) {
+			return;
+		}
+		if (root.getRadius() == INITIAL_RADIUS) {
+			double dist = PointDistance.L2.dist(key, root.getCenter());
+			if (dist > 0) {
+				root.adjustRadius(2 * dist);
+			} else if (root.getValueCount() >= maxNodeSize - 1) {
+				// we just set an arbitrary radius here
+				root.adjustRadius(1000);
+			}
+		}
+	}
+
+	/**
+	 * Check whether a given key exists.
+	 * @param key the key to check
+	 * @return true iff the key exists
+	 */
+	public boolean contains(double[] key) {
+		if (root == null) {
+			return false;
+		}
+		return root.getExact(key, e -> true) != null;
+	}
+
+	@Override
+	public boolean contains(double[] key, long value) {
+		if (root == null) {
+			return false;
+		}
+		return root.getExact(key, e -> e.value() == value) != null;
+	}
+
+	@Override
+	public boolean remove(double[] key, long value) {
+		return removeIf(key, v -> v == value);
+	}
+
+	@Override
+	public boolean removeIf(double[] key, LongPredicate condition) {
+		if (root == null) {
+			return false;
+		}
+		QEntryLong e = root.remove(null, key, maxNodeSize, x -> condition.test(x.value()), 0, metrics);
+		if (e == null) {
+			return false;
+		}
+		size--;
+		return true;
+	}
+
+	/**
+	 * Reinsert the key.
+	 * @param oldKey old key
+	 * @param newKey new key, it is copied
+	 * @param value the value of the entry that should be updated.
+	 * @return `true` iff the entry was found and updated
+	 */
+	@Override
+	public boolean update(double[] oldKey, double[] newKey, long value) {
+		if (root == null) {
+			return false;
+		}
+		boolean[] requiresReinsert = new boolean[]{false};
+		double[] p = newKey.clone();
+		QEntryLong e = root.update(null, oldKey, p, maxNodeSize, requiresReinsert,
+				0, MAX_DEPTH, x -> x.value() == value, 0, metrics);
+		if (e == null) {
+			//not found
+			return false;
+		}
+		if (requiresReinsert[0]) {
+			//does not fit in root node...
+			ensureCoverage(p);
+			QNodeLong r = root;
+			int depth = 0;
+			while (r != null) {
+				r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH, 0, metrics);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Ensure that the tree covers the point.
+	 * @param p Point to cover.
+	 */
+	private void ensureCoverage(double[] p) {
+		while(!QUtil.fitsIntoNode(p, root.getCenter(), root.getRadius())) {
+			double[] center = root.getCenter();
+			double radius = root.getRadius();
+			double[] center2 = new double[center.length];
+			double radius2 = radius*2;
+			int subNodePos = 0;
+			for (int d = 0; d < center.length; d++) {
+				subNodePos <<= 1;
+				if (p[d] < center[d]-radius) {
+					center2[d] = center[d]-radius;
+					//root will end up in upper quadrant in this
+					//dimension
+					subNodePos |= 1;
+				} else {
+					//extend upwards, even if extension unnecessary for this dimension.
+					center2[d] = center[d]+radius;
+				}
+			}
+			metrics.count(IndexMetrics.Counter.ROOT_GROWTHS, 1);
+			root = new QNodeLong(center2, radius2, root, subNodePos);
+		}
+	}
+
+	/**
+	 * Get the number of key-value pairs in the tree.
+	 * @return the size
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Reports node splits, merges of underfull nodes, root growth, and node visits and scanned entries
+	 * of window queries and kNN queries.
+	 * @param metrics the receiver
+	 */
+	@Override
+	public void setMetrics(IndexMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Removes all elements from the tree.
+	 */
+	@Override
+	public void clear() {
+		size = 0;
+		root = null;
+	}
+
+	@Override
+	public QLongIterator queryExactPoint(double[] point) {
+		return query(point, point);
+	}
+
+	/**
+	 * Query the tree, returning all points in the axis-aligned rectangle between 'min' and 'max'.
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @return all entries in the rectangle
+	 */
+	@Override
+	public QLongIterator query(double[] min, double[] max) {
+		return new QLongIterator(new QIterator2<>(this::getRoot, metrics, min, max));
+	}
+
+	@Override
+	public QLongIterator iterator() {
+		double[] min = new double[dims];
+		double[] max = new double[dims];
+		Arrays.fill(min, Double.NEGATIVE_INFINITY);
+		Arrays.fill(max, Double.POSITIVE_INFINITY);
+		return query(min, max);
+	}
+
+	@Override
+	public QLongIteratorKnn queryKnn(double[] center, int k) {
+		return queryKnn(center, k, PointDistance.L2);
+	}
+
+	@Override
+	public QLongIteratorKnn queryKnn(double[] center, int k, PointDistance distFn) {
+		return new QLongIteratorKnn(root, k, center, distFn, null, metrics);
+	}
+
+	/**
+	 * Filtered kNN query, the filter is applied during the traversal.
+	 */
+	@Override
+	public QLongIteratorKnn queryKnn(double[] center, int k, PointDistance distFn, LongFilterKnn filterFn) {
+		return new QLongIteratorKnn(root, k, center, distFn, filterFn, metrics);
+	}
+
+	/**
+	 * Window query iterator. It reads the entries directly from the nodes.
+	 */
+	public static class QLongIterator implements PointIteratorLong {
+
+		private final QIterator2<Long, QEntryLong, QNodeLong> it;
+		private QEntryLong current;
+
+		QLongIterator(QIterator2<Long, QEntryLong, QNodeLong> it) {
+			this.it = it;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return it.hasNext();
+		}
+
+		@Override
+		public long nextLong() {
+			current = it.nextEntry();
+			return current.value();
+		}
+
+		@Override
+		public double[] point(double[] buf) {
+			return copyPoint(current, buf);
+		}
+
+		@Override
+		public QLongIterator reset(double[] min, double[] max) {
+			it.reset(min, max);
+			current = null;
+			return this;
+		}
+	}
+
+	/**
+	 * kNN iterator. It reads the entries directly from the nodes.
+	 */
+	public static class QLongIteratorKnn extends QKnnSearch<Long, QEntryLong, QNodeLong>
+			implements PointIteratorKnnLong {
+
+		// 'null' for unfiltered queries
+		private final LongFilterKnn filterFn;
+		private Candidate<QEntryLong> current;
+
+		QLongIteratorKnn(QNodeLong root, int k, double[] center, PointDistance distFn, LongFilterKnn filterFn,
+						 IndexMetrics metrics) {
+			super(root, distFn, metrics);
+			this.filterFn = filterFn;
+			reset(center, k);
+		}
+
+		@Override
+		boolean accept(QNodeLong node, QEntryLong e, double dist) {
+			return filterFn == null || filterFn.test(e.value(), dist);
+		}
+
+		@Override
+		public long nextLong() {
+			current = nextCandidate();
+			return current.entry.value();
+		}
+
+		@Override
+		public double[] point(double[] buf) {
+			return copyPoint(current == null ? null : current.entry, buf);
+		}
+
+		@Override
+		public double dist() {
+			if (current == null) {
+				throw new IllegalStateException("next() has not been called");
+			}
+			return current.dist;
+		}
+
+		@Override
+		public QLongIteratorKnn reset(double[] center, int k) {
+			search(center, k);
+			current = null;
+			return this;
+		}
+	}
+
+	private static double[] copyPoint(QEntryLong e, double[] buf) {
+		if (e == null) {
+			throw new IllegalStateException("next() has not been called");
+		}
+		double[] p = e.point();
+		if (buf == null) {
+			return p.clone();
+		}
+		System.arraycopy(p, 0, buf, 0, p.length);
+		return buf;
+	}
+
+	/**
+	 * Returns a printable list of the tree.
+	 * @return the tree as String
+	 */
+	@Override
+	public String toStringTree() {
+		StringBuilderLn sb = new StringBuilderLn();
+		if (root == null) {
+			sb.append("empty tree");
+		} else {
+			toStringTree(sb, root, 0, 0);
+		}
+		return sb.toString();
+	}
+
+	private void toStringTree(StringBuilderLn sb, QNodeLong node, int depth, int posInParent) {
+		String prefix = ".".repeat(depth);
+		sb.append(prefix + posInParent + " d=" + depth);
+		sb.append(" " + Arrays.toString(node.getCenter()));
+		sb.appendLn("/" + node.getRadius());
+		prefix += " ";
+		for (int i = 0; i < node.getEntries().length; i++) {
+			Object o = node.getEntries()[i];
+			if (o instanceof QNodeLong) {
+				toStringTree(sb, (QNodeLong) o, depth+1, i);
+			} else if (o != null) {
+				QEntryLong e = (QEntryLong) o;
+				sb.append(prefix).append(Arrays.toString(e.point()));
+				sb.append(" v=").append(e.value()).appendLn();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "QuadTreeKD2Long;maxNodeSize=" + maxNodeSize +
+				";maxDepth=" + MAX_DEPTH +
+				";center/radius=" + (root==null ? "null" :
+					(Arrays.toString(root.getCenter()) + "/" +
+				root.getRadius()));
+	}
+
+	@Override
+	public QStats getStats() {
+		QStats s = new QStats(dims);
+		if (root != null) {
+			root.checkNode(s, null, 0);
+		}
+		return s;
+	}
+
+	@Override
+	public int getDims() {
+		return dims;
+	}
+
+	@Override
+	public int getNodeCount() {
+		return getStats().getNodeCount();
+	}
+
+	@Override
+	public int getDepth() {
+		return getStats().getMaxDepth();
+	}
+
+	QNodeLong getRoot() {
+		return root;
+	}
+}
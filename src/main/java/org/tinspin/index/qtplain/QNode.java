@@ -17,12 +17,18 @@
  */
 package org.tinspin.index.qtplain;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.function.Predicate;
 
+import org.tinspin.index.IndexMetrics;
+import org.tinspin.index.ValueCodec;
 import org.tinspin.index.qtplain.QuadTreeKD0.QStats;
+import org.tinspin.index.util.IndexIO;
 
 import static org.tinspin.index.Index.*;
 
@@ -56,7 +62,7 @@ public class QNode<T> {
 	}
 
 	@SuppressWarnings("unused")
-	QNode<T> tryPut(PointEntry<T> e, int maxNodeSize, boolean enforceLeaf) {
+	QNode<T> tryPut(PointEntry<T> e, int maxNodeSize, boolean enforceLeaf, IndexMetrics metrics) {
 		if (QuadTreeKD0.DEBUG && !QUtil.fitsIntoNode(e.point(), center, radius)) {
 			throw new IllegalStateException("e=" + Arrays.toString(e.point()) + 
 					" center/radius=" + Arrays.toString(center) + "/" + radius);
@@ -80,6 +86,7 @@ public class QNode<T> {
 		}
 		
 		//split
+		metrics.count(IndexMetrics.Counter.NODE_SPLITS, 1);
 		ArrayList<PointEntry<T>> vals = values;
 		values = null;
 		subs = new ArrayList<>();
@@ -89,7 +96,7 @@ public class QNode<T> {
 			while (sub != null) {
 				//This may recurse if all entries fall 
 				//into the same subnode
-				sub = sub.tryPut(e2, maxNodeSize, false);
+				sub = sub.tryPut(e2, maxNodeSize, false, metrics);
 			}
 		}
 		return getOrCreateSub(e);
@@ -136,11 +143,11 @@ public class QNode<T> {
 		return null;
 	}
 
-	PointEntry<T> remove(QNode<T> parent, double[] key, int maxNodeSize, Predicate<PointEntry<T>> pred) {
+	PointEntry<T> remove(QNode<T> parent, double[] key, int maxNodeSize, Predicate<PointEntry<T>> pred, IndexMetrics metrics) {
 		if (values == null) {
 			QNode<T> sub = findSubNode(key);
 			if (sub != null) {
-				return sub.remove(this, key, maxNodeSize, pred);
+				return sub.remove(this, key, maxNodeSize, pred, metrics);
 			}
 			return null;
 		}
@@ -152,7 +159,7 @@ public class QNode<T> {
 				// TODO provide threshold for re-insert
 				// i.e. do not always merge.
 				if (parent != null) {
-					parent.checkAndMergeLeafNodes(maxNodeSize);
+					parent.checkAndMergeLeafNodes(maxNodeSize, metrics);
 				}
 				return e;
 			}
@@ -161,20 +168,20 @@ public class QNode<T> {
 	}
 
 	PointEntry<T> update(QNode<T> parent, double[] keyOld, double[] keyNew, int maxNodeSize,
-			boolean[] requiresReinsert, int currentDepth, int maxDepth, Predicate<PointEntry<T>> pred) {
+			boolean[] requiresReinsert, int currentDepth, int maxDepth, Predicate<PointEntry<T>> pred, IndexMetrics metrics) {
 		if (values == null) {
 			QNode<T> sub = findSubNode(keyOld);
 			if (sub == null) {
 				return null;
 			}
 			PointEntry<T> ret = sub.update(this, keyOld, keyNew, maxNodeSize, requiresReinsert,
-					currentDepth+1, maxDepth, pred);
+					currentDepth+1, maxDepth, pred, metrics);
 			if (ret != null && requiresReinsert[0] && 
 					QUtil.fitsIntoNode(ret.point(), center, radius)) {
 				requiresReinsert[0] = false;
 				QNode<T> r = this;
 				while (r != null) {
-					r = r.tryPut(ret, maxNodeSize, currentDepth++ > maxDepth);
+					r = r.tryPut(ret, maxNodeSize, currentDepth++ > maxDepth, metrics);
 				}
 			}
 			return ret;
@@ -194,7 +201,7 @@ public class QNode<T> {
 					// TODO provide threshold for re-insert
 					// i.e. do not always merge.
 					if (parent != null) {
-						parent.checkAndMergeLeafNodes(maxNodeSize);
+						parent.checkAndMergeLeafNodes(maxNodeSize, metrics);
 					}
 				}
 				return e;
@@ -204,7 +211,7 @@ public class QNode<T> {
 		return null;
 	}
 
-	private void checkAndMergeLeafNodes(int maxNodeSize) {
+	private void checkAndMergeLeafNodes(int maxNodeSize, IndexMetrics metrics) {
 		//check
 		int nTotal = 0;
 		for (int i = 0; i < subs.size(); i++) {
@@ -220,6 +227,7 @@ public class QNode<T> {
 		}
 		
 		//okay, let's merge
+		metrics.count(IndexMetrics.Counter.NODE_MERGES, subs.size());
 		values = new ArrayList<>(nTotal);
 		for (int i = 0; i < subs.size(); i++) {
 			values.addAll(subs.get(i).values);
@@ -334,6 +342,44 @@ public class QNode<T> {
 		return subs;
 	}
 
+	void write(DataOutput out, ValueCodec<? super T> codec) throws IOException {
+		IndexIO.writePoint(out, center);
+		out.writeDouble(radius);
+		out.writeBoolean(isLeaf());
+		if (isLeaf()) {
+			out.writeInt(values.size());
+			for (int i = 0; i < values.size(); i++) {
+				PointEntry<T> e = values.get(i);
+				IndexIO.writePoint(out, e.point());
+				codec.write(out, e.value());
+			}
+			return;
+		}
+		out.writeInt(subs.size());
+		for (int i = 0; i < subs.size(); i++) {
+			subs.get(i).write(out, codec);
+		}
+	}
+
+	static <T> QNode<T> read(DataInput in, ValueCodec<? extends T> codec, int dims) throws IOException {
+		QNode<T> node = new QNode<>(IndexIO.readPoint(in, dims), in.readDouble());
+		boolean isLeaf = in.readBoolean();
+		int n = in.readInt();
+		if (isLeaf) {
+			node.values = new ArrayList<>(Math.max(2, n));
+			for (int i = 0; i < n; i++) {
+				double[] p = IndexIO.readPoint(in, dims);
+				node.values.add(new PointEntry<>(p, codec.read(in)));
+			}
+			return node;
+		}
+		node.values = null;
+		node.subs = new ArrayList<>(n);
+		for (int i = 0; i < n; i++) {
+			node.subs.add(read(in, codec, dims));
+		}
+		return node;
+	}
 
 	void adjustRadius(double radius) {
 		if (!isLeaf()) {
@@ -17,12 +17,18 @@
  */
 package org.tinspin.index.qtplain;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.function.Predicate;
 
+import org.tinspin.index.IndexMetrics;
+import org.tinspin.index.ValueCodec;
 import org.tinspin.index.qtplain.QuadTreeKD0.QStats;
+import org.tinspin.index.util.IndexIO;
 
 import static org.tinspin.index.Index.*;
 
@@ -56,7 +62,7 @@ public class QRNode<T> {
 	}
 
 	@SuppressWarnings("unused")
-	QRNode<T> tryPut(BoxEntry<T> e, int maxNodeSize, boolean enforceLeaf) {
+	QRNode<T> tryPut(BoxEntry<T> e, int maxNodeSize, boolean enforceLeaf, IndexMetrics metrics) {
 		if (QuadTreeKD0.DEBUG && !QUtil.fitsIntoNode(e.min(), e.max(), center, radius)) {
 			throw new IllegalStateException("e=" + e + 
 					" center/radius=" + Arrays.toString(center) + "/" + radius);
@@ -89,6 +95,7 @@ public class QRNode<T> {
 		}
 		
 		//split
+		metrics.count(IndexMetrics.Counter.NODE_SPLITS, 1);
 		ArrayList<BoxEntry<T>> vals = values;
 		vals.add(e);
 		values = null;
@@ -109,7 +116,7 @@ public class QRNode<T> {
 			while (sub != null) {
 				//This may recurse if all entries fall 
 				//into the same subnode
-				sub = sub.tryPut(e2, maxNodeSize, false);
+				sub = sub.tryPut(e2, maxNodeSize, false, metrics);
 			}
 		}
 		return null;
@@ -164,12 +171,12 @@ public class QRNode<T> {
 		return null;
 	}
 
-	BoxEntry<T> remove(QRNode<T> parent, double[] keyL, double[] keyU, int maxNodeSize, Predicate<BoxEntry<T>> condition) {
+	BoxEntry<T> remove(QRNode<T> parent, double[] keyL, double[] keyU, int maxNodeSize, Predicate<BoxEntry<T>> condition, IndexMetrics metrics) {
 		if (subs != null) {
 			QRNode<T> sub = findSubNode(keyL, keyU);
 			if (sub != this) {
 				if (sub != null) {
-					return sub.remove(this, keyL, keyU, maxNodeSize, condition);
+					return sub.remove(this, keyL, keyU, maxNodeSize, condition, metrics);
 				}
 				return null;
 			}
@@ -186,7 +193,7 @@ public class QRNode<T> {
 				//TODO provide threshold for re-insert
 				//i.e. do not always merge.
 				if (parent != null) {
-					parent.checkAndMergeLeafNodes(maxNodeSize);
+					parent.checkAndMergeLeafNodes(maxNodeSize, metrics);
 				}
 				return e;
 			}
@@ -196,7 +203,7 @@ public class QRNode<T> {
 
 	BoxEntry<T> update(QRNode<T> parent, double[] keyOldL, double[] keyOldU,
 			double[] keyNewL, double[] keyNewU, int maxNodeSize,
-			boolean[] requiresReinsert, int currentDepth, int maxDepth, Predicate<T> pred) {
+			boolean[] requiresReinsert, int currentDepth, int maxDepth, Predicate<T> pred, IndexMetrics metrics) {
 		if (subs != null) {
 			QRNode<T> sub = findSubNode(keyOldL, keyOldU);
 			if (sub != this) {
@@ -204,7 +211,7 @@ public class QRNode<T> {
 					return null;
 				}
 				BoxEntry<T> ret = sub.update(this, keyOldL, keyOldU, keyNewL, keyNewU,
-						maxNodeSize, requiresReinsert, currentDepth+1, maxDepth, pred);
+						maxNodeSize, requiresReinsert, currentDepth+1, maxDepth, pred, metrics);
 				//Divide by EPS to ensure that we do not reinsert to low
 				if (ret != null && requiresReinsert[0] && 
 						QUtil.fitsIntoNode(ret.min(), ret.max(),
@@ -212,7 +219,7 @@ public class QRNode<T> {
 					requiresReinsert[0] = false;
 					QRNode<T> r = this;
 					while (r != null) {
-						r = r.tryPut(ret, maxNodeSize, currentDepth++ > maxDepth);
+						r = r.tryPut(ret, maxNodeSize, currentDepth++ > maxDepth, metrics);
 					}
 				}
 				return ret;
@@ -246,7 +253,7 @@ public class QRNode<T> {
 							currentDepth++;
 						}
 						while (r != null) {
-							r = r.tryPut(e, maxNodeSize, currentDepth++ > maxDepth);
+							r = r.tryPut(e, maxNodeSize, currentDepth++ > maxDepth, metrics);
 						}
 					}
 				} else {
@@ -254,7 +261,7 @@ public class QRNode<T> {
 					//TODO provide threshold for re-insert
 					//i.e. do not always merge.
 					if (parent != null) {
-						parent.checkAndMergeLeafNodes(maxNodeSize);
+						parent.checkAndMergeLeafNodes(maxNodeSize, metrics);
 					}
 				}
 				return e;
@@ -264,7 +271,7 @@ public class QRNode<T> {
 		return null;
 	}
 
-	private void checkAndMergeLeafNodes(int maxNodeSize) {
+	private void checkAndMergeLeafNodes(int maxNodeSize, IndexMetrics metrics) {
 		//check
 		int nTotal = 0;
 		if (values != null) {
@@ -286,6 +293,7 @@ public class QRNode<T> {
 		}
 		
 		//okay, let's merge
+		metrics.count(IndexMetrics.Counter.NODE_MERGES, subs.size());
 		if (values == null) {
 			values = new ArrayList<>();
 		}
@@ -419,4 +427,44 @@ public class QRNode<T> {
 	ArrayList<QRNode<T>> getChildNodes() {
 		return subs;
 	}
+
+	void write(DataOutput out, ValueCodec<? super T> codec) throws IOException {
+		IndexIO.writePoint(out, center);
+		out.writeDouble(radius);
+		// inner nodes may have values too
+		out.writeInt(values == null ? -1 : values.size());
+		if (values != null) {
+			for (int i = 0; i < values.size(); i++) {
+				BoxEntry<T> e = values.get(i);
+				IndexIO.writePoint(out, e.min());
+				IndexIO.writePoint(out, e.max());
+				codec.write(out, e.value());
+			}
+		}
+		out.writeInt(subs == null ? -1 : subs.size());
+		if (subs != null) {
+			for (int i = 0; i < subs.size(); i++) {
+				subs.get(i).write(out, codec);
+			}
+		}
+	}
+
+	static <T> QRNode<T> read(DataInput in, ValueCodec<? extends T> codec, int dims) throws IOException {
+		QRNode<T> node = new QRNode<>(IndexIO.readPoint(in, dims), in.readDouble());
+		int nValues = in.readInt();
+		node.values = nValues < 0 ? null : new ArrayList<>(nValues);
+		for (int i = 0; i < nValues; i++) {
+			double[] min = IndexIO.readPoint(in, dims);
+			double[] max = IndexIO.readPoint(in, dims);
+			node.values.add(new BoxEntry<>(min, max, codec.read(in)));
+		}
+		int nSubs = in.readInt();
+		if (nSubs >= 0) {
+			node.subs = new ArrayList<>(nSubs);
+			for (int i = 0; i < nSubs; i++) {
+				node.subs.add(read(in, codec, dims));
+			}
+		}
+		return node;
+	}
 }
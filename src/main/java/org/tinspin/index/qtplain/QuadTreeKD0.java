@@ -17,11 +17,18 @@
  */
 package org.tinspin.index.qtplain;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.*;
 import java.util.function.Predicate;
 
 import org.tinspin.index.*;
+import org.tinspin.index.util.IndexIO;
 import org.tinspin.index.util.StringBuilderLn;
+import org.tinspin.index.util.ZOrder;
 
 /**
  * A simple MX-quadtree implementation with configurable maximum depth, maximum nodes size, and
@@ -45,6 +52,7 @@ public class QuadTreeKD0<T> implements PointMap<T>, PointMultimap<T> {
 	private final int maxNodeSize;
 	private QNode<T> root = null;
 	private int size = 0; 
+	private IndexMetrics metrics = IndexMetrics.NONE;
 	
 	private QuadTreeKD0(int dims, int maxNodeSize) {
 		if (DEBUG) {
@@ -71,6 +79,44 @@ public class QuadTreeKD0<T> implements PointMap<T>, PointMultimap<T> {
 		t.root = new QNode<>(Arrays.copyOf(center, center.length), radius);
 		return t;
 	}
+
+	/**
+	 * Write the tree, including its node structure, to a stream.
+	 * @param out the stream, it is flushed but not closed
+	 * @param codec codec for the values
+	 * @throws IOException if writing fails
+	 * @see #load(InputStream, ValueCodec)
+	 */
+	public void save(OutputStream out, ValueCodec<? super T> codec) throws IOException {
+		DataOutputStream dos = IndexIO.writeHeader(out, "QuadTreeKD0", dims);
+		dos.writeInt(maxNodeSize);
+		dos.writeInt(size);
+		dos.writeBoolean(root != null);
+		if (root != null) {
+			root.write(dos, codec);
+		}
+		dos.flush();
+	}
+
+	/**
+	 * Read a tree that was written with {@link #save(OutputStream, ValueCodec)}.
+	 * The nodes are restored as they were written, there is no re-insertion.
+	 * @param in the stream, it should be buffered
+	 * @param codec codec for the values
+	 * @return the tree
+	 * @param <T> value type
+	 * @throws IOException if reading fails or if the stream does not contain a QuadTreeKD0
+	 */
+	public static <T> QuadTreeKD0<T> load(InputStream in, ValueCodec<? extends T> codec) throws IOException {
+		DataInputStream dis = IndexIO.readHeader(in, "QuadTreeKD0");
+		int dims = IndexIO.readDims(dis);
+		QuadTreeKD0<T> t = new QuadTreeKD0<>(dims, dis.readInt());
+		t.size = dis.readInt();
+		if (dis.readBoolean()) {
+			t.root = QNode.read(dis, codec, dims);
+		}
+		return t;
+	}
 	
 	/**
 	 * Insert a key-value pair.
@@ -84,11 +130,43 @@ public class QuadTreeKD0<T> implements PointMap<T>, PointMultimap<T> {
 		if (root == null) {
 			initializeRoot(key);
 		}
-		ensureCoverage(e);
+		ensureCoverage(e.point());
 		QNode<T> r = root;
 		int depth = 0;
 		while (r != null) {
-			r = r.tryPut(e, maxNodeSize, depth++ > MAX_DEPTH);
+			r = r.tryPut(e, maxNodeSize, depth++ > MAX_DEPTH, metrics);
+		}
+	}
+
+	/**
+	 * Insert multiple entries. This is equivalent to calling {@link #insert(double[], Object)} for every
+	 * entry, but faster for large batches:
+	 * the root is extended only once for the bounding box of all entries, and
+	 * the entries are inserted in z-order, i.e. consecutive entries mostly follow the same path.
+	 * <p>
+	 * As with {@link #insert(double[], Object)}, the tree stores its own entries, so updates in the tree
+	 * do not modify the given entries. The key arrays are not copied and must not be modified afterward.
+	 * @param entries the entries. The array is not modified.
+	 */
+	public void insertAll(PointEntry<T>[] entries) {
+		if (entries.length == 0) {
+			return;
+		}
+		double[][] bounds = ZOrder.bounds(entries);
+		if (root == null) {
+			initializeRoot(entries[0].point());
+		}
+		ensureCoverage(bounds[0]);
+		ensureCoverage(bounds[1]);
+		size += entries.length;
+		// Subnodes are found by scanning the subnode list, so we always descend from the root.
+		for (PointEntry<T> sortedEntry : ZOrder.sort(entries, root.getCenter(), root.getRadius())) {
+			PointEntry<T> e = new PointEntry<>(sortedEntry.point(), sortedEntry.value());
+			QNode<T> r = root;
+			int depth = 0;
+			while (r != null) {
+				r = r.tryPut(e, maxNodeSize, depth++ > MAX_DEPTH, metrics);
+			}
 		}
 	}
 
@@ -162,7 +240,7 @@ public class QuadTreeKD0<T> implements PointMap<T>, PointMultimap<T> {
 		if (root == null) {
 			return null;
 		}
-		PointEntry<T> e = root.remove(null, key, maxNodeSize, x -> true);
+		PointEntry<T> e = root.remove(null, key, maxNodeSize, x -> true, metrics);
 		if (e == null) {
 			return null;
 		}
@@ -180,7 +258,7 @@ public class QuadTreeKD0<T> implements PointMap<T>, PointMultimap<T> {
 		if (root == null) {
 			return false;
 		}
-		PointEntry<T> e = root.remove(null, key, maxNodeSize, condition);
+		PointEntry<T> e = root.remove(null, key, maxNodeSize, condition, metrics);
 		if (e == null) {
 			return false;
 		}
@@ -224,30 +302,29 @@ public class QuadTreeKD0<T> implements PointMap<T>, PointMultimap<T> {
 		}
 		boolean[] requiresReinsert = new boolean[]{false};
 		PointEntry<T> e = root.update(null, oldKey, newKey, maxNodeSize, requiresReinsert,
-				0, MAX_DEPTH, condition);
+				0, MAX_DEPTH, condition, metrics);
 		if (e == null) {
 			//not found
 			return null;
 		}
 		if (requiresReinsert[0]) {
 			//does not fit in root node...
-			ensureCoverage(e);
+			ensureCoverage(e.point());
 			QNode<T> r = root;
 			int depth = 0;
 			while (r != null) {
-				r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH);
+				r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH, metrics);
 			}
 		}
 		return e.value();
 	}
 
 	/**
-	 * Ensure that the tree covers the entry.
-	 * @param e Entry to cover.
+	 * Ensure that the tree covers the point.
+	 * @param p Point to cover.
 	 */
-	private void ensureCoverage(PointEntry<T> e) {
-		double[] p = e.point();
-		while(!QUtil.fitsIntoNode(e.point(), root.getCenter(), root.getRadius())) {
+	private void ensureCoverage(double[] p) {
+		while(!QUtil.fitsIntoNode(p, root.getCenter(), root.getRadius())) {
 			double[] center = root.getCenter();
 			double radius = root.getRadius();
 			double[] center2 = new double[center.length];
@@ -263,9 +340,10 @@ public class QuadTreeKD0<T> implements PointMap<T>, PointMultimap<T> {
 				}
 			}
 			if (QuadTreeKD0.DEBUG && !QUtil.isNodeEnclosed(center, radius, center2, radius2)) {
-				throw new IllegalStateException("e=" + Arrays.toString(e.point()) + 
+				throw new IllegalStateException("e=" + Arrays.toString(p) + 
 						" center/radius=" + Arrays.toString(center2) + "/" + radius);
 			}
+			metrics.count(IndexMetrics.Counter.ROOT_GROWTHS, 1);
 			root = new QNode<>(center2, radius2, root);
 		}
 	}
@@ -279,6 +357,16 @@ public class QuadTreeKD0<T> implements PointMap<T>, PointMultimap<T> {
 		return size;
 	}
 
+	/**
+	 * Reports node splits, merges of underfull nodes and root growth, i.e. new root nodes that are
+	 * created when an entry lies outside the root. Queries do not report node visits.
+	 * @param metrics the receiver
+	 */
+	@Override
+	public void setMetrics(IndexMetrics metrics) {
+		this.metrics = metrics;
+	}
+
 	/**
 	 * Removes all elements from the tree.
 	 */
@@ -393,6 +481,11 @@ public class QuadTreeKD0<T> implements PointMap<T>, PointMultimap<T> {
 		return new QIteratorKnn<>(this.root, 1, center, PointDistance.L2, (e, d) -> true).next();
 	}
 
+	@Override
+	public void queryKnnBatch(double[][] centers, int k, T[] values, double[] distances, boolean parallel) {
+		PointMap.super.queryKnnBatch(centers, k, values, distances, parallel);
+	}
+
 	/**
 	 *
 	 * @param center center point
@@ -406,6 +499,15 @@ public class QuadTreeKD0<T> implements PointMap<T>, PointMultimap<T> {
 		return new QIteratorKnn<>(this.root, k, center, dist, (e, d) -> true);
 	}
 
+	/**
+	 * Filtered kNN query, the filter is applied during the traversal.
+	 * @see PointMultimap#queryKnn(double[], int, PointDistance, PointFilterKnn)
+	 */
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn, PointFilterKnn<T> filterFn) {
+		return new QIteratorKnn<>(this.root, k, center, distFn, filterFn);
+	}
+
 	/**
 	 * Returns a printable list of the tree.
 	 * @return the tree as String
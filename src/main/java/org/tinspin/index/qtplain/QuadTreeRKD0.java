@@ -17,12 +17,18 @@
  */
 package org.tinspin.index.qtplain;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.*;
 import java.util.function.Predicate;
 
 import org.tinspin.index.*;
 import org.tinspin.index.qtplain.QuadTreeKD0.QStats;
 import org.tinspin.index.util.BoxIteratorWrapper;
+import org.tinspin.index.util.IndexIO;
 import org.tinspin.index.util.StringBuilderLn;
 
 /**
@@ -42,6 +48,7 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 	private final int maxNodeSize;
 	private QRNode<T> root = null;
 	private int size = 0; 
+	private IndexMetrics metrics = IndexMetrics.NONE;
 	
 	private QuadTreeRKD0(int dims, int maxNodeSize) {
 		this.dims = dims;
@@ -79,6 +86,44 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 		t.root = new QRNode<>(Arrays.copyOf(center, center.length), radius);
 		return t;
 	}
+
+	/**
+	 * Write the tree, including its node structure, to a stream.
+	 * @param out the stream, it is flushed but not closed
+	 * @param codec codec for the values
+	 * @throws IOException if writing fails
+	 * @see #load(InputStream, ValueCodec)
+	 */
+	public void save(OutputStream out, ValueCodec<? super T> codec) throws IOException {
+		DataOutputStream dos = IndexIO.writeHeader(out, "QuadTreeRKD0", dims);
+		dos.writeInt(maxNodeSize);
+		dos.writeInt(size);
+		dos.writeBoolean(root != null);
+		if (root != null) {
+			root.write(dos, codec);
+		}
+		dos.flush();
+	}
+
+	/**
+	 * Read a tree that was written with {@link #save(OutputStream, ValueCodec)}.
+	 * The nodes are restored as they were written, there is no re-insertion.
+	 * @param in the stream, it should be buffered
+	 * @param codec codec for the values
+	 * @return the tree
+	 * @param <T> value type
+	 * @throws IOException if reading fails or if the stream does not contain a QuadTreeRKD0
+	 */
+	public static <T> QuadTreeRKD0<T> load(InputStream in, ValueCodec<? extends T> codec) throws IOException {
+		DataInputStream dis = IndexIO.readHeader(in, "QuadTreeRKD0");
+		int dims = IndexIO.readDims(dis);
+		QuadTreeRKD0<T> t = new QuadTreeRKD0<>(dims, dis.readInt());
+		t.size = dis.readInt();
+		if (dis.readBoolean()) {
+			t.root = QRNode.read(dis, codec, dims);
+		}
+		return t;
+	}
 	
 	/**
 	 * Insert a key-value pair.
@@ -97,7 +142,7 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 		QRNode<T> r = root;
 		int depth = 0;
 		while (r != null) {
-			r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH);
+			r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH, metrics);
 		}
 	}
 
@@ -187,7 +232,7 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 		if (root == null) {
 			return null;
 		}
-		BoxEntry<T> e = root.remove(null, keyL, keyU, maxNodeSize, x -> true);
+		BoxEntry<T> e = root.remove(null, keyL, keyU, maxNodeSize, x -> true, metrics);
 		if (e == null) {
 			return null;
 		}
@@ -205,7 +250,7 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 		if (root == null) {
 			return false;
 		}
-		BoxEntry<T> e = root.remove(null, lower, upper, maxNodeSize, condition);
+		BoxEntry<T> e = root.remove(null, lower, upper, maxNodeSize, condition, metrics);
 		if (e == null) {
 			return false;
 		}
@@ -220,7 +265,7 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 		}
 		boolean[] requiresReinsert = new boolean[]{false};
 		BoxEntry<T> e = root.update(null, oldKeyL, oldKeyU, newKeyL, newKeyU,
-				maxNodeSize, requiresReinsert, 0, MAX_DEPTH, t -> Objects.equals(value, t));
+				maxNodeSize, requiresReinsert, 0, MAX_DEPTH, t -> Objects.equals(value, t), metrics);
 		if (e == null) {
 			return false;
 		}
@@ -230,7 +275,7 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 			QRNode<T> r = root;
 			int depth = 0;
 			while (r != null) {
-				r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH);
+				r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH, metrics);
 			}
 		}
 		return true;
@@ -251,7 +296,7 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 		}
 		boolean[] requiresReinsert = new boolean[]{false};
 		BoxEntry<T> e = root.update(null, oldKeyL, oldKeyU, newKeyL, newKeyU,
-				maxNodeSize, requiresReinsert, 0, MAX_DEPTH, t -> true);
+				maxNodeSize, requiresReinsert, 0, MAX_DEPTH, t -> true, metrics);
 		if (e == null) {
 			//not found
 			return null;
@@ -262,7 +307,7 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 			QRNode<T> r = root;
 			int depth = 0;
 			while (r != null) {
-				r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH);
+				r = r.tryPut(e, maxNodeSize, depth++>MAX_DEPTH, metrics);
 			}
 		}
 		return e.value();
@@ -295,6 +340,7 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 						"/" + Arrays.toString(e.max()) +
 						" center/radius=" + Arrays.toString(center) + "/" + radius);
 			}
+			metrics.count(IndexMetrics.Counter.ROOT_GROWTHS, 1);
 			root = new QRNode<>(center2, radius2, root);
 		}
 	}
@@ -308,6 +354,16 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 		return size;
 	}
 
+	/**
+	 * Reports node splits, merges of underfull nodes and root growth, i.e. new root nodes that are
+	 * created when an entry lies outside the root. Queries do not report node visits.
+	 * @param metrics the receiver
+	 */
+	@Override
+	public void setMetrics(IndexMetrics metrics) {
+		this.metrics = metrics;
+	}
+
 	/**
 	 * Removes all elements from the tree.
 	 */
@@ -495,7 +551,16 @@ public class QuadTreeRKD0<T> implements BoxMap<T>, BoxMultimap<T> {
 
 	@Override
 	public BoxIteratorKnn<T> queryKnn(double[] center, int k, BoxDistance distFn) {
-		throw new UnsupportedOperationException();
+		return new QRIteratorKnn<>(root, k, center, distFn, (e, d) -> true);
+	}
+
+	/**
+	 * Filtered kNN query, the filter is applied during the traversal.
+	 * @see BoxMultimap#queryKnn(double[], int, BoxDistance, BoxFilterKnn)
+	 */
+	@Override
+	public BoxIteratorKnn<T> queryKnn(double[] center, int k, BoxDistance distFn, BoxFilterKnn<T> filterFn) {
+		return new QRIteratorKnn<>(root, k, center, distFn, filterFn);
 	}
 
 	@Override
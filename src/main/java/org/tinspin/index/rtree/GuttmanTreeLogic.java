@@ -0,0 +1,257 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.rtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Insertion logic of Guttman's original R-Tree:
+ * "R-Trees: A Dynamic Index Structure for Spatial Searching", Antonin Guttman, 1984.
+ * <p>
+ * Subtrees are chosen by least area enlargement. Splits pick two seed entries and then assign the
+ * remaining entries one by one to the group whose bounding box grows least. The subclasses
+ * {@link QuadraticTreeLogic} and {@link LinearTreeLogic} differ in how they pick the seeds and the
+ * next entry. There is no forced reinsertion.
+ * <p>
+ * As for the R*Tree, the minimum fill during splits is 40% of the maximum node size, see
+ * "The R*-tree: An Efficient and Robust Access Method for Points and Rectangles", Beckmann et al., 1990.
+ */
+public abstract class GuttmanTreeLogic implements RTreeLogic {
+
+	private final int nodeMinDir;
+	private final int nodeMaxDir;
+	private final int nodeMinData;
+	private final int nodeMaxData;
+
+	int dims = -1;
+	// Entries of the node to split and their boxes, with 'dims' values per entry
+	private RTreeEntry<?>[] entries = new RTreeEntry[0];
+	double[] boxMin = new double[0];
+	double[] boxMax = new double[0];
+	// Group of each entry: 0, 1 or -1 if not assigned yet
+	int[] group = new int[0];
+	// Bounding boxes of the two groups, with 'dims' values per group
+	private double[] groupMin = new double[0];
+	private double[] groupMax = new double[0];
+	private final int[] groupSize = new int[2];
+	private final int[] seeds = new int[2];
+
+	/**
+	 * @param nodeMinDir Minimum number of children of directory nodes
+	 * @param nodeMaxDir Maximum number of children of directory nodes
+	 * @param nodeMinData Minimum number of entries of leaf nodes
+	 * @param nodeMaxData Maximum number of entries of leaf nodes
+	 */
+	GuttmanTreeLogic(int nodeMinDir, int nodeMaxDir, int nodeMinData, int nodeMaxData) {
+		this.nodeMinDir = nodeMinDir;
+		this.nodeMaxDir = nodeMaxDir;
+		this.nodeMinData = nodeMinData;
+		this.nodeMaxData = nodeMaxData;
+	}
+
+	private void ensureCapacity(int n, int dims) {
+		if (n <= group.length && dims == this.dims) {
+			return;
+		}
+		this.dims = dims;
+		n = Math.max(n, Math.max(nodeMaxDir, nodeMaxData) + 1);
+		entries = new RTreeEntry[n];
+		boxMin = new double[n * dims];
+		boxMax = new double[n * dims];
+		group = new int[n];
+		groupMin = new double[2 * dims];
+		groupMax = new double[2 * dims];
+	}
+
+	/**
+	 * Choose the child with the least area enlargement on every level (CL3).
+	 */
+	@Override
+	public <T> RTreeNode<T> chooseSubTree(RTreeNode<T> root,
+										  RTreeEntry<T> e, int desiredInsertionLevel, int nLevels) {
+		RTreeNode<T> node = root;
+		int level = nLevels-1;
+		while (level != desiredInsertionLevel) {
+			ArrayList<RTreeNode<T>> children = ((RTreeNodeDir<T>) node).getChildren();
+			double bestAreaEnl = Double.MAX_VALUE;
+			double bestArea = Double.MAX_VALUE;
+			RTreeNode<T> bestNode = null;
+			for (int i = 0; i < children.size(); i++) {
+				RTreeNode<T> child = children.get(i);
+				double area = child.calcArea();
+				double areaEnl = child.calcAreaEnlarged(e) - area;
+				//ties are resolved by choosing the node with the smallest area
+				if (areaEnl < bestAreaEnl || (areaEnl == bestAreaEnl && area < bestArea)) {
+					bestAreaEnl = areaEnl;
+					bestArea = area;
+					bestNode = child;
+				}
+			}
+			node = bestNode;
+			level--;
+		}
+		return node;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> RTreeNode<T> split(RTreeNode<T> node, RTreeEntry<T> e) {
+		final int n = node.size() + 1;
+		ensureCapacity(n, e.min().length);
+		for (int i = 0; i < n; i++) {
+			RTreeEntry<T> entry = i < n-1 ? node.getEntry(i) : e;
+			entries[i] = entry;
+			System.arraycopy(entry.min(), 0, boxMin, i * dims, dims);
+			System.arraycopy(entry.max(), 0, boxMax, i * dims, dims);
+			group[i] = -1;
+		}
+		final int m = Math.max((int) (0.40 * (n-1)), getMinM(node));
+
+		//QS1/LS1 pick the first entry of each group
+		pickSeeds(n, seeds);
+		groupSize[0] = 0;
+		groupSize[1] = 0;
+		assign(seeds[0], 0);
+		assign(seeds[1], 1);
+
+		//QS2/QS3 assign the remaining entries
+		for (int remaining = n-2; remaining > 0; remaining--) {
+			if (groupSize[0] + remaining == m || groupSize[1] + remaining == m) {
+				//the smaller group needs all remaining entries to reach the minimum fill
+				int g = groupSize[0] + remaining == m ? 0 : 1;
+				for (int i = 0; i < n; i++) {
+					if (group[i] < 0) {
+						assign(i, g);
+					}
+				}
+				break;
+			}
+			int next = pickNext(n);
+			double enl0 = enlargement(0, next);
+			double enl1 = enlargement(1, next);
+			int g;
+			if (enl0 != enl1) {
+				g = enl0 < enl1 ? 0 : 1;
+			} else {
+				//ties are resolved by smaller area, then by fewer entries
+				double area0 = area(0);
+				double area1 = area(1);
+				if (area0 != area1) {
+					g = area0 < area1 ? 0 : 1;
+				} else {
+					g = groupSize[0] <= groupSize[1] ? 0 : 1;
+				}
+			}
+			assign(next, g);
+		}
+
+		RTreeNode<T> newNode = node.createEmpty();
+
+		node.clear();
+		for (int i = 0; i < n; i++) {
+			if (group[i] == 0) {
+				node.addEntry((RTreeEntry<T>) entries[i]);
+			}
+		}
+		//shrink parents
+		node.recalcParentMBB();
+
+		for (int i = 0; i < n; i++) {
+			if (group[i] == 1) {
+				newNode.addEntry((RTreeEntry<T>) entries[i]);
+			}
+		}
+		Arrays.fill(entries, 0, n, null);
+		return newNode;
+	}
+
+	/**
+	 * @param n number of entries
+	 * @param seeds output: the two seed entries
+	 */
+	abstract void pickSeeds(int n, int[] seeds);
+
+	/**
+	 * @param n number of entries
+	 * @return an entry that is not assigned to a group yet
+	 */
+	abstract int pickNext(int n);
+
+	private void assign(int i, int g) {
+		group[i] = g;
+		int pos = i * dims;
+		int gPos = g * dims;
+		if (groupSize[g] == 0) {
+			System.arraycopy(boxMin, pos, groupMin, gPos, dims);
+			System.arraycopy(boxMax, pos, groupMax, gPos, dims);
+		} else {
+			for (int d = 0; d < dims; d++) {
+				groupMin[gPos + d] = Math.min(groupMin[gPos + d], boxMin[pos + d]);
+				groupMax[gPos + d] = Math.max(groupMax[gPos + d], boxMax[pos + d]);
+			}
+		}
+		groupSize[g]++;
+	}
+
+	/**
+	 * @return area enlargement of group 'g' when adding entry 'i'
+	 */
+	double enlargement(int g, int i) {
+		double a = 1;
+		double aEnlarged = 1;
+		for (int d = 0, gPos = g * dims, pos = i * dims; d < dims; d++, gPos++, pos++) {
+			a *= groupMax[gPos] - groupMin[gPos];
+			aEnlarged *= Math.max(groupMax[gPos], boxMax[pos]) - Math.min(groupMin[gPos], boxMin[pos]);
+		}
+		return aEnlarged - a;
+	}
+
+	private double area(int g) {
+		double a = 1;
+		for (int d = 0, gPos = g * dims; d < dims; d++, gPos++) {
+			a *= groupMax[gPos] - groupMin[gPos];
+		}
+		return a;
+	}
+
+	/**
+	 * Guttman's R-Tree does not use forced reinsertion.
+	 */
+	@Override
+	public <T> RTreeEntry<T>[] reInsert(RTreeNode<T> node, RTreeEntry<T> e) {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public boolean isReInsertEnabled() {
+		return false;
+	}
+
+	@Override
+	public <T> boolean hasSpace(RTreeNode<T> node) {
+		return node.size() < getM(node);
+	}
+
+	private int getM(RTreeNode<?> node) {
+		return node instanceof RTreeNodeLeaf ? nodeMaxData : nodeMaxDir;
+	}
+
+	private int getMinM(RTreeNode<?> node) {
+		return node instanceof RTreeNodeLeaf ? nodeMinData : nodeMinDir;
+	}
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.rtree;
+
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import org.tinspin.index.IndexConfig;
+import org.tinspin.index.util.HilbertOrder;
+
+/**
+ * Bulk loader that packs an R-Tree in Hilbert order (Kamel and Faloutsos, "On Packing R-trees", 1993).
+ * <p>
+ * The entries are sorted once by the Hilbert index of their centers and then packed into full leaves.
+ * The upper levels are packed from consecutive nodes of the level below, which are already in Hilbert order.
+ * Compared to {@link STRLoader}, loading requires only a single sort. The nodes tend to have less overlap
+ * on clustered data but may have a larger perimeter on uniform data.
+ */
+public class HilbertLoader<T> {
+
+	private final boolean parallel;
+	private final int nodeMaxDir;
+	private final int nodeMaxData;
+	private int nNodes = 0;
+	private int size = 0;
+	private RTreeNode<T> root;
+	private int depth;
+
+	/**
+	 * Create a sequential loader with the default node sizes of {@link IndexConfig}.
+	 */
+	public HilbertLoader() {
+		this(false, IndexConfig.create(0).getRTreeNodeMaxDir(),
+				IndexConfig.create(0).getRTreeNodeMaxData());
+	}
+
+	/**
+	 * @param parallel If 'true', the loader sorts the entries and packs the nodes of each level
+	 *                 with multiple threads (using the common fork/join pool).
+	 *                 The resulting tree is identical to the tree created by the sequential loader.
+	 * @param nodeMaxDir Number of children of directory nodes
+	 * @param nodeMaxData Number of entries of leaf nodes
+	 */
+	public HilbertLoader(boolean parallel, int nodeMaxDir, int nodeMaxData) {
+		this.parallel = parallel;
+		this.nodeMaxDir = nodeMaxDir;
+		this.nodeMaxData = nodeMaxData;
+	}
+
+	public RTreeNode<T> getRoot() {
+		return root;
+	}
+
+	public int getNNodes() {
+		return nNodes;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * @param entries All entries of the tree. The array is sorted in place.
+	 */
+	@SuppressWarnings("unchecked")
+	public void load(RTreeEntry<T>[] entries) {
+		int dims = entries[0].min().length;
+		int N = entries.length;
+		int M = nodeMaxData;
+
+		HilbertOrder.sort(entries, parallel);
+
+		RTreeNode<T>[] leaves = new RTreeNode[(int) Math.ceil(N/(double)M)];
+		forEachChunk(leaves.length, iNode -> {
+			RTreeNode<T> node = new RTreeNodeLeaf<>(dims, M);
+			int end = chunkStart(iNode + 1, leaves.length, N);
+			for (int i = chunkStart(iNode, leaves.length, N); i < end; i++) {
+				node.addEntry(entries[i]);
+			}
+			leaves[iNode] = node;
+		});
+		RTreeNode<T>[] nodes = leaves;
+		nNodes = nodes.length;
+		size = entries.length;
+
+		depth = 1;
+		if (nodes.length == 1) {
+			root = nodes[0];
+			return;
+		}
+
+		int MDir = nodeMaxDir;
+		RTreeNodeDir<T>[] parentNodes;
+		do {
+			depth++;
+			parentNodes = new RTreeNodeDir[(int) Math.ceil(nodes.length/(double)MDir)];
+			nNodes += parentNodes.length;
+			RTreeNode<T>[] children = nodes;
+			RTreeNodeDir<T>[] parents = parentNodes;
+			forEachChunk(parents.length, iNode -> {
+				RTreeNodeDir<T> p = new RTreeNodeDir<>(dims);
+				int end = chunkStart(iNode + 1, parents.length, children.length);
+				for (int i = chunkStart(iNode, parents.length, children.length); i < end; i++) {
+					p.addEntry(children[i]);
+				}
+				parents[iNode] = p;
+			});
+			nodes = parentNodes;
+		} while (parentNodes.length > 1);
+		root = parentNodes[0];
+	}
+
+	/**
+	 * The entries are spread evenly over the nodes of a level. Unlike filling all nodes except
+	 * the last one, this ensures that no node has fewer than half the maximum number of entries.
+	 */
+	private static int chunkStart(int iChunk, int nChunks, int n) {
+		return (int) ((long) iChunk * n / nChunks);
+	}
+
+	private void forEachChunk(int nChunks, IntConsumer consumer) {
+		IntStream range = IntStream.range(0, nChunks);
+		(parallel ? range.parallel() : range).forEach(consumer);
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.rtree;
+
+/**
+ * Guttman's R-Tree with linear split. Splitting costs O(M * dims) for M entries.
+ */
+public class LinearTreeLogic extends GuttmanTreeLogic {
+
+	/**
+	 * @param nodeMinDir Minimum number of children of directory nodes
+	 * @param nodeMaxDir Maximum number of children of directory nodes
+	 * @param nodeMinData Minimum number of entries of leaf nodes
+	 * @param nodeMaxData Maximum number of entries of leaf nodes
+	 */
+	public LinearTreeLogic(int nodeMinDir, int nodeMaxDir, int nodeMinData, int nodeMaxData) {
+		super(nodeMinDir, nodeMaxDir, nodeMinData, nodeMaxData);
+	}
+
+	/**
+	 * LinearPickSeeds: the pair of entries with the greatest normalized separation along any axis.
+	 */
+	@Override
+	void pickSeeds(int n, int[] seeds) {
+		double bestSeparation = Double.NEGATIVE_INFINITY;
+		for (int d = 0; d < dims; d++) {
+			//LPS1 entry with the highest low side and entry with the lowest high side
+			int highestLow = 0;
+			double lo = Double.POSITIVE_INFINITY;
+			double hi = Double.NEGATIVE_INFINITY;
+			for (int i = 0, pos = d; i < n; i++, pos += dims) {
+				if (boxMin[pos] > boxMin[highestLow * dims + d]) {
+					highestLow = i;
+				}
+				lo = Math.min(lo, boxMin[pos]);
+				hi = Math.max(hi, boxMax[pos]);
+			}
+			int lowestHigh = highestLow == 0 ? 1 : 0;
+			for (int i = 0, pos = d; i < n; i++, pos += dims) {
+				if (i != highestLow && boxMax[pos] < boxMax[lowestHigh * dims + d]) {
+					lowestHigh = i;
+				}
+			}
+			//LPS2 normalize by the width of the node along the axis
+			double separation = boxMin[highestLow * dims + d] - boxMax[lowestHigh * dims + d];
+			double width = hi - lo;
+			separation = width > 0 ? separation / width : 0;
+			//LPS3
+			if (separation > bestSeparation) {
+				bestSeparation = separation;
+				seeds[0] = lowestHigh;
+				seeds[1] = highestLow;
+			}
+		}
+	}
+
+	/**
+	 * PickNext: any entry, here the first one that is not assigned yet.
+	 */
+	@Override
+	int pickNext(int n) {
+		for (int i = 0; i < n; i++) {
+			if (group[i] < 0) {
+				return i;
+			}
+		}
+		throw new IllegalStateException();
+	}
+}
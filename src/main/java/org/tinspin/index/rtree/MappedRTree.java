@@ -0,0 +1,664 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.rtree;
+
+import org.tinspin.index.BoxDistance;
+import org.tinspin.index.BoxMap;
+import org.tinspin.index.Stats;
+import org.tinspin.index.util.MinHeap;
+import org.tinspin.index.util.MinMaxHeap;
+import org.tinspin.index.util.StringBuilderLn;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.function.LongFunction;
+import java.util.function.ToLongFunction;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * A read-only R-Tree that is queried in place in a memory-mapped file.
+ * <p>
+ * {@link #write(RTree, Path, ToLongFunction)} stores an {@link RTree}, for example one that was
+ * bulk loaded with {@link RTree#load(RTreeEntry[])}, in a page-aligned file.
+ * {@link #open(Path, LongFunction)} maps the file with {@link FileChannel#map} and queries read the
+ * nodes directly from the mapping. Opening a file is therefore nearly instant, independent of its size,
+ * and the tree does not occupy any space on the Java heap. Only query results are allocated.
+ * <p>
+ * Values are stored as {@code long}, the caller provides the conversion to and from the value type,
+ * for example an ID or an offset into another file.
+ * <p>
+ * File format (big-endian):
+ * <ul>
+ * <li>Header: magic {@code "TSRT"} (int), format version (int), dims (int), page size (int),
+ * number of entries (long), depth (int), number of nodes (int), offset of the root node (long).</li>
+ * <li>Nodes, in breadth-first order: 1 for leaves or 0 for directory nodes (int), number of entries (int),
+ * followed by the entries. Every entry consists of 'dims' min and 'dims' max coordinates (double) and a
+ * long, which is either the offset of a child node or the encoded value.</li>
+ * </ul>
+ * Nodes never cross page boundaries. The page size is 4KB, or larger if a node does not fit into 4KB.
+ * <p>
+ * Queries do not modify any state of the tree, the tree can be queried concurrently.
+ *
+ * @param <T> Value type.
+ */
+public class MappedRTree<T> implements BoxMap<T> {
+
+	private static final int MAGIC = 0x54535254; // "TSRT"
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_SIZE = 40;
+	private static final int DEFAULT_PAGE_SIZE = 4096;
+	private static final int NODE_HEADER_SIZE = 8;
+	// Files are mapped in chunks of 1GB. Chunks are page-aligned, so nodes never cross chunks.
+	private static final int CHUNK_BITS = 30;
+	private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+	private static final long NONE = 0;
+
+	private final ByteBuffer[] chunks;
+	private final LongFunction<? extends T> valueDecoder;
+	private final int dims;
+	private final int pageSize;
+	private final long size;
+	private final int depth;
+	private final int nNodes;
+	private final long root;
+	private final int entrySize;
+
+	private MappedRTree(ByteBuffer[] chunks, LongFunction<? extends T> valueDecoder) throws IOException {
+		this.chunks = chunks;
+		this.valueDecoder = valueDecoder;
+		ByteBuffer header = chunks[0];
+		if (header.capacity() < HEADER_SIZE || header.getInt(0) != MAGIC) {
+			throw new IOException("Not an R-Tree file");
+		}
+		if (header.getInt(4) != FORMAT_VERSION) {
+			throw new IOException("Unsupported format version: " + header.getInt(4));
+		}
+		this.dims = header.getInt(8);
+		this.pageSize = header.getInt(12);
+		this.size = header.getLong(16);
+		this.depth = header.getInt(24);
+		this.nNodes = header.getInt(28);
+		this.root = header.getLong(32);
+		this.entrySize = entrySize(dims);
+	}
+
+	/**
+	 * Open a file that was written with {@link #write(RTree, Path, ToLongFunction)}.
+	 * The mapping stays valid after the file is closed, it is released when the tree is garbage collected.
+	 *
+	 * @param file         the file
+	 * @param valueDecoder converts the stored values to values of the tree
+	 * @param <T>          Value type
+	 * @return the tree
+	 * @throws IOException if the file cannot be mapped or is not an R-Tree file
+	 */
+	public static <T> MappedRTree<T> open(Path file, LongFunction<? extends T> valueDecoder) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long length = channel.size();
+			int nChunks = (int) ((length + CHUNK_MASK) >>> CHUNK_BITS);
+			ByteBuffer[] chunks = new ByteBuffer[Math.max(nChunks, 1)];
+			for (int i = 0; i < nChunks; i++) {
+				long start = (long) i << CHUNK_BITS;
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(length - start, 1L << CHUNK_BITS));
+			}
+			if (nChunks == 0) {
+				chunks[0] = ByteBuffer.allocate(0);
+			}
+			return new MappedRTree<>(chunks, valueDecoder);
+		}
+	}
+
+	/**
+	 * Write a tree to a file. An existing file is overwritten.
+	 *
+	 * @param tree         the tree
+	 * @param file         the file
+	 * @param valueEncoder converts the values of the tree to {@code long}
+	 * @param <T>          Value type
+	 * @throws IOException if the file cannot be written
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T> void write(RTree<T> tree, Path file, ToLongFunction<? super T> valueEncoder) throws IOException {
+		int dims = tree.getDims();
+		int entrySize = entrySize(dims);
+
+		// Breadth-first order, the children of a node are stored consecutively.
+		ArrayList<RTreeNode<T>> nodes = new ArrayList<>();
+		int maxNodeSize = 0;
+		if (tree.size() > 0) {
+			nodes.add(tree.getRoot());
+		}
+		for (int i = 0; i < nodes.size(); i++) {
+			RTreeNode<T> node = nodes.get(i);
+			maxNodeSize = Math.max(maxNodeSize, NODE_HEADER_SIZE + node.size() * entrySize);
+			if (node instanceof RTreeNodeDir) {
+				nodes.addAll(((RTreeNodeDir<T>) node).getChildren());
+			}
+		}
+		int pageSize = DEFAULT_PAGE_SIZE;
+		while (pageSize < maxNodeSize) {
+			pageSize <<= 1;
+		}
+
+		long[] offsets = new long[nodes.size()];
+		long pos = pageSize;
+		for (int i = 0; i < nodes.size(); i++) {
+			int nodeSize = NODE_HEADER_SIZE + nodes.get(i).size() * entrySize;
+			long pageRemaining = pageSize - (pos % pageSize);
+			if (nodeSize > pageRemaining) {
+				pos += pageRemaining;
+			}
+			offsets[i] = pos;
+			pos += nodeSize;
+		}
+
+		try (OutputStream os = Files.newOutputStream(file);
+			 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16))) {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(dims);
+			out.writeInt(pageSize);
+			out.writeLong(tree.size());
+			out.writeInt(tree.size() == 0 ? 0 : tree.getDepth());
+			out.writeInt(nodes.size());
+			out.writeLong(nodes.isEmpty() ? NONE : offsets[0]);
+			pos = HEADER_SIZE;
+			int nextChild = 1;
+			for (int i = 0; i < nodes.size(); i++) {
+				for (; pos < offsets[i]; pos++) {
+					out.write(0);
+				}
+				RTreeNode<T> node = nodes.get(i);
+				boolean isLeaf = node instanceof RTreeNodeLeaf;
+				out.writeInt(isLeaf ? 1 : 0);
+				out.writeInt(node.size());
+				if (isLeaf) {
+					// The packed boxes of a leaf have the same layout as the file: min, then max
+					RTreeNodeLeaf<T> leaf = (RTreeNodeLeaf<T>) node;
+					double[] boxes = leaf.getBoxes();
+					for (int j = 0; j < leaf.size(); j++) {
+						for (int d = 0, offs = j * 2 * dims; d < 2 * dims; d++) {
+							out.writeDouble(boxes[offs + d]);
+						}
+						out.writeLong(valueEncoder.applyAsLong(leaf.getValue(j)));
+					}
+				} else {
+					for (RTreeNode<T> child : ((RTreeNodeDir<T>) node).getChildren()) {
+						for (int d = 0; d < dims; d++) {
+							out.writeDouble(child.min()[d]);
+						}
+						for (int d = 0; d < dims; d++) {
+							out.writeDouble(child.max()[d]);
+						}
+						out.writeLong(offsets[nextChild++]);
+					}
+				}
+				pos += NODE_HEADER_SIZE + (long) node.size() * entrySize;
+			}
+		}
+	}
+
+	private static int entrySize(int dims) {
+		return 2 * dims * Double.BYTES + Long.BYTES;
+	}
+
+	private ByteBuffer chunk(long offset) {
+		return chunks[(int) (offset >>> CHUNK_BITS)];
+	}
+
+	private static int pos(long offset) {
+		return (int) (offset & CHUNK_MASK);
+	}
+
+	private boolean isLeaf(long node) {
+		return chunk(node).getInt(pos(node)) == 1;
+	}
+
+	private int getEntryCount(long node) {
+		return chunk(node).getInt(pos(node) + 4);
+	}
+
+	/**
+	 * @return the position of the i'th entry of the node inside the node's chunk
+	 */
+	private int entryPos(long node, int i) {
+		return pos(node) + NODE_HEADER_SIZE + i * entrySize;
+	}
+
+	private void readBox(ByteBuffer buf, int pos, double[] min, double[] max) {
+		for (int d = 0; d < dims; d++) {
+			min[d] = buf.getDouble(pos + d * Double.BYTES);
+			max[d] = buf.getDouble(pos + (dims + d) * Double.BYTES);
+		}
+	}
+
+	private long readRef(ByteBuffer buf, int pos) {
+		return buf.getLong(pos + 2 * dims * Double.BYTES);
+	}
+
+	private boolean overlaps(ByteBuffer buf, int pos, double[] min, double[] max) {
+		for (int d = 0; d < dims; d++) {
+			if (buf.getDouble(pos + d * Double.BYTES) > max[d]
+					|| buf.getDouble(pos + (dims + d) * Double.BYTES) < min[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean encloses(ByteBuffer buf, int pos, double[] min, double[] max) {
+		for (int d = 0; d < dims; d++) {
+			if (buf.getDouble(pos + d * Double.BYTES) > min[d]
+					|| buf.getDouble(pos + (dims + d) * Double.BYTES) < max[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isEqual(ByteBuffer buf, int pos, double[] min, double[] max) {
+		for (int d = 0; d < dims; d++) {
+			if (buf.getDouble(pos + d * Double.BYTES) != min[d]
+					|| buf.getDouble(pos + (dims + d) * Double.BYTES) != max[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private BoxEntry<T> readEntry(ByteBuffer buf, int pos) {
+		double[] min = new double[dims];
+		double[] max = new double[dims];
+		readBox(buf, pos, min, max);
+		return new BoxEntry<>(min, max, valueDecoder.apply(readRef(buf, pos)));
+	}
+
+	@Override
+	public int getDims() {
+		return dims;
+	}
+
+	/**
+	 * @return the number of entries. Trees with more than {@link Integer#MAX_VALUE} entries
+	 * return {@link Integer#MAX_VALUE}, see {@link #sizeLong()}.
+	 */
+	@Override
+	public int size() {
+		return (int) Math.min(size, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @return the number of entries
+	 */
+	public long sizeLong() {
+		return size;
+	}
+
+	@Override
+	public int getDepth() {
+		return depth;
+	}
+
+	@Override
+	public int getNodeCount() {
+		return nNodes;
+	}
+
+	/**
+	 * @return the page size of the file
+	 */
+	public int getPageSize() {
+		return pageSize;
+	}
+
+	@Override
+	public Stats getStats() {
+		MappedStats s = new MappedStats(dims);
+		s.nEntries = size();
+		s.nNodes = nNodes;
+		s.maxDepth = depth;
+		return s;
+	}
+
+	/**
+	 * Statistics container class.
+	 */
+	public static class MappedStats extends Stats {
+		MappedStats(int dims) {
+			super(0, 0, 0);
+			this.dims = dims;
+		}
+	}
+
+	private static UnsupportedOperationException readOnly() {
+		return new UnsupportedOperationException("Mapped R-Trees are read-only");
+	}
+
+	@Override
+	public void insert(double[] min, double[] max, T value) {
+		throw readOnly();
+	}
+
+	@Override
+	public T remove(double[] min, double[] max) {
+		throw readOnly();
+	}
+
+	@Override
+	public T update(double[] minOld, double[] maxOld, double[] minNew, double[] maxNew) {
+		throw readOnly();
+	}
+
+	@Override
+	public void clear() {
+		throw readOnly();
+	}
+
+	@Override
+	public boolean contains(double[] min, double[] max) {
+		return queryExactBox(min, max).hasNext();
+	}
+
+	@Override
+	public T queryExact(double[] min, double[] max) {
+		BoxIterator<T> it = queryExactBox(min, max);
+		return it.hasNext() ? it.next().value() : null;
+	}
+
+	/**
+	 * @param min lower left corner of query
+	 * @param max upper right corner of query
+	 * @return all entries with exactly the given box
+	 */
+	public MappedIterator<T> queryExactBox(double[] min, double[] max) {
+		return new MappedIterator<>(this, min, max, true);
+	}
+
+	@Override
+	public MappedIterator<T> queryIntersect(double[] min, double[] max) {
+		return new MappedIterator<>(this, min, max, false);
+	}
+
+	@Override
+	public MappedIterator<T> iterator() {
+		double[] min = new double[dims];
+		double[] max = new double[dims];
+		Arrays.fill(min, Double.NEGATIVE_INFINITY);
+		Arrays.fill(max, Double.POSITIVE_INFINITY);
+		return queryIntersect(min, max);
+	}
+
+	@Override
+	public MappedIteratorKnn<T> queryKnn(double[] center, int k) {
+		return queryKnn(center, k, BoxDistance.EDGE);
+	}
+
+	public MappedIteratorKnn<T> queryKnn(double[] center, int k, BoxDistance distFn) {
+		return new MappedIteratorKnn<>(this, center, k, distFn, (e, d) -> true);
+	}
+
+	/**
+	 * Filtered kNN query, the filter is applied during the traversal.
+	 * @see BoxMap#queryKnn(double[], int, BoxDistance, BoxFilterKnn)
+	 */
+	@Override
+	public MappedIteratorKnn<T> queryKnn(double[] center, int k, BoxDistance distFn, BoxFilterKnn<T> filterFn) {
+		return new MappedIteratorKnn<>(this, center, k, distFn, filterFn);
+	}
+
+	/**
+	 * Window query iterator. Intersection queries descend into all child nodes that overlap with the
+	 * query box, exact queries descend only into child nodes that enclose the query box.
+	 */
+	public static class MappedIterator<T> implements BoxIterator<T> {
+
+		private final MappedRTree<T> tree;
+		private final boolean exact;
+		// One stack frame per level: node offset and position of the next entry
+		private final long[] stackNode;
+		private final int[] stackPos;
+		private int stackSize;
+		private double[] min;
+		private double[] max;
+		private BoxEntry<T> next;
+
+		MappedIterator(MappedRTree<T> tree, double[] min, double[] max, boolean exact) {
+			this.tree = tree;
+			this.exact = exact;
+			this.stackNode = new long[tree.depth + 1];
+			this.stackPos = new int[tree.depth + 1];
+			reset(min, max);
+		}
+
+		private void findNext() {
+			while (stackSize > 0) {
+				long node = stackNode[stackSize - 1];
+				int i = stackPos[stackSize - 1]++;
+				if (i >= tree.getEntryCount(node)) {
+					stackSize--;
+					continue;
+				}
+				ByteBuffer buf = tree.chunk(node);
+				int pos = tree.entryPos(node, i);
+				if (tree.isLeaf(node)) {
+					if (exact ? tree.isEqual(buf, pos, min, max) : tree.overlaps(buf, pos, min, max)) {
+						next = tree.readEntry(buf, pos);
+						return;
+					}
+				} else if (exact ? tree.encloses(buf, pos, min, max) : tree.overlaps(buf, pos, min, max)) {
+					stackNode[stackSize] = tree.readRef(buf, pos);
+					stackPos[stackSize] = 0;
+					stackSize++;
+				}
+			}
+			next = null;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return next != null;
+		}
+
+		@Override
+		public BoxEntry<T> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			BoxEntry<T> ret = next;
+			findNext();
+			return ret;
+		}
+
+		@Override
+		public MappedIterator<T> reset(double[] min, double[] max) {
+			this.min = min;
+			this.max = max;
+			stackSize = 0;
+			next = null;
+			if (tree.root != NONE) {
+				stackNode[0] = tree.root;
+				stackPos[0] = 0;
+				stackSize = 1;
+				findNext();
+			}
+			return this;
+		}
+	}
+
+	/**
+	 * kNN iterator. Nodes are traversed best-first, see {@link RTreeQueryKnn}.
+	 */
+	public static class MappedIteratorKnn<T> implements BoxIteratorKnn<T> {
+
+		private final MappedRTree<T> tree;
+		private final BoxDistance distFn;
+		private final BoxFilterKnn<T> filterFn;
+		private final MinHeap<NodeDist> queueN = MinHeap.create((t1, t2) -> t1.dist < t2.dist);
+		private final MinMaxHeap<BoxEntryKnn<T>> queueV = MinMaxHeap.create((t1, t2) -> t1.dist() < t2.dist());
+		private final double[] bufMin;
+		private final double[] bufMax;
+		private double maxNodeDist;
+		private BoxEntryKnn<T> current;
+		private int remaining;
+		private double[] center;
+
+		MappedIteratorKnn(MappedRTree<T> tree, double[] center, int k, BoxDistance distFn,
+						  BoxFilterKnn<T> filterFn) {
+			this.tree = tree;
+			this.distFn = distFn;
+			this.filterFn = filterFn;
+			this.bufMin = new double[tree.dims];
+			this.bufMax = new double[tree.dims];
+			reset(center, k);
+		}
+
+		@Override
+		public MappedIteratorKnn<T> reset(double[] center, int k) {
+			this.center = center;
+			this.remaining = k;
+			this.maxNodeDist = Double.POSITIVE_INFINITY;
+			this.current = null;
+			queueN.clear();
+			queueV.clear();
+			if (k > 0 && tree.root != NONE) {
+				queueN.push(new NodeDist(0, tree.root));
+				findNextElement();
+			}
+			return this;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return current != null;
+		}
+
+		@Override
+		public BoxEntryKnn<T> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			BoxEntryKnn<T> ret = current;
+			findNextElement();
+			return ret;
+		}
+
+		private void findNextElement() {
+			while (remaining > 0 && !(queueN.isEmpty() && queueV.isEmpty())) {
+				boolean useV = !queueV.isEmpty();
+				if (useV && !queueN.isEmpty()) {
+					useV = queueV.peekMin().dist() <= queueN.peekMin().dist;
+				}
+				if (useV) {
+					current = queueV.peekMin();
+					queueV.popMin();
+					--remaining;
+					return;
+				}
+				NodeDist top = queueN.peekMin();
+				queueN.popMin();
+				if (top.dist > maxNodeDist && queueV.size() >= remaining) {
+					continue;
+				}
+				long node = top.node;
+				ByteBuffer buf = tree.chunk(node);
+				boolean isLeaf = tree.isLeaf(node);
+				int n = tree.getEntryCount(node);
+				for (int i = 0; i < n; i++) {
+					int pos = tree.entryPos(node, i);
+					tree.readBox(buf, pos, bufMin, bufMax);
+					double d = distFn.dist(center, bufMin, bufMax);
+					// Using '<=' allows dealing with infinite distances.
+					if (d > maxNodeDist) {
+						continue;
+					}
+					if (isLeaf) {
+						BoxEntryKnn<T> e = new BoxEntryKnn<>(bufMin.clone(), bufMax.clone(),
+								tree.valueDecoder.apply(tree.readRef(buf, pos)), d);
+						if (filterFn.test(e, d)) {
+							queueV.push(e);
+							if (queueV.size() >= remaining) {
+								if (queueV.size() > remaining) {
+									queueV.popMax();
+								}
+								maxNodeDist = Math.min(maxNodeDist, queueV.peekMax().dist());
+							}
+						}
+					} else {
+						queueN.push(new NodeDist(d, tree.readRef(buf, pos)));
+					}
+				}
+			}
+			current = null;
+		}
+
+		private static class NodeDist {
+			final double dist;
+			final long node;
+
+			NodeDist(double dist, long node) {
+				this.dist = dist;
+				this.node = node;
+			}
+		}
+	}
+
+	@Override
+	public String toStringTree() {
+		StringBuilderLn sb = new StringBuilderLn();
+		if (root == NONE) {
+			sb.append("empty tree");
+		} else {
+			toStringTree(sb, root, depth - 1);
+		}
+		return sb.toString();
+	}
+
+	private void toStringTree(StringBuilderLn sb, long node, int level) {
+		String prefix = ".".repeat(depth - 1 - level);
+		ByteBuffer buf = chunk(node);
+		double[] min = new double[dims];
+		double[] max = new double[dims];
+		sb.appendLn(prefix + "L" + level + " @" + node + " n=" + getEntryCount(node));
+		for (int i = 0; i < getEntryCount(node); i++) {
+			int pos = entryPos(node, i);
+			readBox(buf, pos, min, max);
+			if (isLeaf(node)) {
+				sb.appendLn(prefix + " " + Arrays.toString(min) + Arrays.toString(max) +
+						" v=" + valueDecoder.apply(readRef(buf, pos)));
+			} else {
+				toStringTree(sb, readRef(buf, pos), level - 1);
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "MappedRTree;size=" + size + ";dims=" + dims + ";depth=" + depth + ";pageSize=" + pageSize;
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.rtree;
+
+/**
+ * Guttman's R-Tree with quadratic split. Splitting costs O(M^2) for M entries.
+ */
+public class QuadraticTreeLogic extends GuttmanTreeLogic {
+
+	/**
+	 * @param nodeMinDir Minimum number of children of directory nodes
+	 * @param nodeMaxDir Maximum number of children of directory nodes
+	 * @param nodeMinData Minimum number of entries of leaf nodes
+	 * @param nodeMaxData Maximum number of entries of leaf nodes
+	 */
+	public QuadraticTreeLogic(int nodeMinDir, int nodeMaxDir, int nodeMinData, int nodeMaxData) {
+		super(nodeMinDir, nodeMaxDir, nodeMinData, nodeMaxData);
+	}
+
+	/**
+	 * PickSeeds: the pair of entries that would waste the most area if they were in the same group.
+	 */
+	@Override
+	void pickSeeds(int n, int[] seeds) {
+		double worst = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < n; i++) {
+			for (int j = i + 1; j < n; j++) {
+				double a = 1;
+				double aI = 1;
+				double aJ = 1;
+				for (int d = 0, pI = i * dims, pJ = j * dims; d < dims; d++, pI++, pJ++) {
+					a *= Math.max(boxMax[pI], boxMax[pJ]) - Math.min(boxMin[pI], boxMin[pJ]);
+					aI *= boxMax[pI] - boxMin[pI];
+					aJ *= boxMax[pJ] - boxMin[pJ];
+				}
+				double waste = a - aI - aJ;
+				if (waste > worst) {
+					worst = waste;
+					seeds[0] = i;
+					seeds[1] = j;
+				}
+			}
+		}
+	}
+
+	/**
+	 * PickNext: the entry with the greatest preference for one group.
+	 */
+	@Override
+	int pickNext(int n) {
+		int next = -1;
+		double maxDiff = -1;
+		for (int i = 0; i < n; i++) {
+			if (group[i] < 0) {
+				double diff = Math.abs(enlargement(0, i) - enlargement(1, i));
+				if (diff > maxDiff) {
+					maxDiff = diff;
+					next = i;
+				}
+			}
+		}
+		return next;
+	}
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.rtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Insertion logic of the Revised R*Tree (RR*Tree):
+ * "A Revised R*-tree in Comparison with Related Index Structures", Norbert Beckmann and Bernhard Seeger, 2009.
+ * <p>
+ * Compared to the R*Tree, choosing a subtree considers the overlap at all levels but only of children
+ * that would actually be affected, and splits prefer overlap-free distributions with a small perimeter.
+ * There is no forced reinsertion.
+ * <p>
+ * Deviations from the paper: The split weighting function is centered on balanced splits, because the
+ * nodes do not store their original bounding box (the paper's 'asymmetry' is always 0). Choosing a subtree
+ * evaluates all candidates iteratively instead of the depth-first 'CheckComp' search, the result is the same
+ * except for ties.
+ */
+public class RRStarTreeLogic extends RStarTreeLogic {
+
+	// Parameter 's' of the weighting function, as suggested in the paper
+	private static final double S = 0.5;
+	private static final double Y1 = Math.exp(-1 / (S * S));
+	private static final double YS = 1 / (1 - Y1);
+
+	/**
+	 * @param nodeMinDir Minimum number of children of directory nodes
+	 * @param nodeMaxDir Maximum number of children of directory nodes
+	 * @param nodeMinData Minimum number of entries of leaf nodes
+	 * @param nodeMaxData Maximum number of entries of leaf nodes
+	 */
+	public RRStarTreeLogic(int nodeMinDir, int nodeMaxDir, int nodeMinData, int nodeMaxData) {
+		super(nodeMinDir, nodeMaxDir, nodeMinData, nodeMaxData);
+	}
+
+	@Override
+	public <T> RTreeNode<T> chooseSubTree(RTreeNode<T> root,
+										  RTreeEntry<T> e, int desiredInsertionLevel, int nLevels) {
+		RTreeNode<T> node = root;
+		int level = nLevels-1;
+		while (level != desiredInsertionLevel) {
+			node = chooseChild((RTreeNodeDir<T>) node, e);
+			level--;
+		}
+		return node;
+	}
+
+	private <T> RTreeNode<T> chooseChild(RTreeNodeDir<T> dir, RTreeEntry<T> e) {
+		ArrayList<RTreeNode<T>> children = dir.getChildren();
+		final int n = children.size();
+		ensureCapacity(n, e.min().length);
+		double[] eMin = e.min();
+		double[] eMax = e.max();
+
+		//If some children cover the entry, choose the one with the smallest volume, then perimeter
+		int best = -1;
+		double bestVolume = Double.MAX_VALUE;
+		double bestMargin = Double.MAX_VALUE;
+		for (int i = 0; i < n; i++) {
+			RTreeNode<T> child = children.get(i);
+			double[] min = child.min();
+			double[] max = child.max();
+			boolean covers = true;
+			for (int d = 0, pos = i * dims; d < dims; d++, pos++) {
+				boxMin[pos] = min[d];
+				boxMax[pos] = max[d];
+				covers &= min[d] <= eMin[d] && eMax[d] <= max[d];
+			}
+			if (covers) {
+				double v = volume(boxMin, boxMax, i);
+				double m = margin(boxMin, boxMax, i);
+				if (v < bestVolume || (v == bestVolume && m < bestMargin)) {
+					bestVolume = v;
+					bestMargin = m;
+					best = i;
+				}
+			}
+		}
+		if (best >= 0) {
+			return children.get(best);
+		}
+
+		//sort by perimeter enlargement
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+			enlarge(i, eMin, eMax);
+			key1[i] = margin(enlargedMin, enlargedMax, 0) - margin(boxMin, boxMax, i);
+		}
+		sort(order, n, key1, null);
+
+		//Only the children up to the last one whose overlap with the first candidate would increase
+		//need to be considered
+		int first = order[0];
+		enlarge(first, eMin, eMax);
+		int p = 0;
+		for (int j = 1; j < n; j++) {
+			int iJ = order[j];
+			if (overlap(enlargedMin, enlargedMax, 0, iJ, true) != overlap(boxMin, boxMax, first, iJ, true)) {
+				p = j;
+			}
+		}
+		if (p == 0) {
+			return children.get(first);
+		}
+
+		//Use the volume unless one of the candidates would have no volume
+		boolean perimeter = false;
+		for (int c = 0; c <= p && !perimeter; c++) {
+			enlarge(order[c], eMin, eMax);
+			perimeter = volume(enlargedMin, enlargedMax, 0) == 0;
+		}
+
+		double bestDelta = Double.MAX_VALUE;
+		for (int c = 0; c <= p; c++) {
+			int iC = order[c];
+			enlarge(iC, eMin, eMax);
+			double delta = 0;
+			for (int j = 0; j <= p; j++) {
+				if (j != c) {
+					int iJ = order[j];
+					delta += overlap(enlargedMin, enlargedMax, 0, iJ, perimeter)
+							- overlap(boxMin, boxMax, iC, iJ, perimeter);
+				}
+			}
+			if (delta == 0) {
+				return children.get(iC);
+			}
+			if (delta < bestDelta) {
+				bestDelta = delta;
+				best = iC;
+			}
+		}
+		return children.get(best);
+	}
+
+	/**
+	 * Store the box of entry 'i' enlarged by the given box in 'enlargedMin'/'enlargedMax'.
+	 */
+	private void enlarge(int i, double[] eMin, double[] eMax) {
+		for (int d = 0, pos = i * dims; d < dims; d++, pos++) {
+			enlargedMin[d] = Math.min(eMin[d], boxMin[pos]);
+			enlargedMax[d] = Math.max(eMax[d], boxMax[pos]);
+		}
+	}
+
+	/**
+	 * @return volume or perimeter of the intersection of box 'i' in min/max and box 'j' in 'boxMin'/'boxMax'
+	 */
+	private double overlap(double[] min, double[] max, int i, int j, boolean perimeter) {
+		double v = perimeter ? 0 : 1;
+		for (int d = 0, pos = i * dims, posJ = j * dims; d < dims; d++, pos++, posJ++) {
+			double len = Math.min(max[pos], boxMax[posJ]) - Math.max(min[pos], boxMin[posJ]);
+			if (len < 0 || (len == 0 && !perimeter)) {
+				return 0;
+			}
+			v = perimeter ? v + len : v * len;
+		}
+		return v;
+	}
+
+	/**
+	 * Split as described in the paper.
+	 * <p>
+	 * The split axis is chosen as in the R*Tree, but the entries are sorted separately by lower and
+	 * by upper bound. On that axis, the distribution with the smallest weighted goal value is chosen:
+	 * overlap-free distributions with a small perimeter are preferred over distributions with overlap,
+	 * and balanced distributions are preferred over unbalanced ones.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public <T> RTreeNode<T> split(RTreeNode<T> node, RTreeEntry<T> e) {
+		final int n = copyEntries(node, e);
+		final int m = Math.max((int) (0.20 * (n-1)), getMinM(node));
+
+		//choose axis
+		int bestAxis = 0;
+		double bestMargin = Double.MAX_VALUE;
+		for (int d = 0; d < dims; d++) {
+			double totalMargin = 0;
+			for (int upper = 0; upper < 2; upper++) {
+				sortByAxis(n, d, upper == 1);
+				calcPrefixAndSuffixBoxes(n, false);
+				for (int k = m; k <= n-m; k++) {
+					totalMargin += margin(preMin, preMax, k) + margin(sufMin, sufMax, k);
+				}
+			}
+			if (totalMargin < bestMargin) {
+				bestMargin = totalMargin;
+				bestAxis = d;
+			}
+		}
+
+		//choose distribution
+		double bestGoal = Double.MAX_VALUE;
+		int bestIndex = -1;
+		for (int upper = 0; upper < 2; upper++) {
+			sortByAxis(n, bestAxis, upper == 1);
+			calcPrefixAndSuffixBoxes(n, false);
+			double maxPerimeter = 2 * margin(preMin, preMax, n) - minExtent(n);
+			for (int k = m; k <= n-m; k++) {
+				double goal = goal(k, n, maxPerimeter);
+				if (goal < bestGoal) {
+					bestGoal = goal;
+					bestIndex = k;
+					System.arraycopy(order, 0, bestOrder, 0, n);
+				}
+			}
+		}
+
+		RTreeEntry<T>[] entries = (RTreeEntry<T>[]) this.entries;
+		RTreeNode<T> newNode = node.createEmpty();
+
+		node.clear();
+		for (int i = 0; i < bestIndex; i++) {
+			node.addEntry(entries[bestOrder[i]]);
+		}
+		//shrink parents
+		node.recalcParentMBB();
+
+		for (int i = bestIndex; i < n; i++) {
+			newNode.addEntry(entries[bestOrder[i]]);
+		}
+		Arrays.fill(entries, 0, n, null);
+		return newNode;
+	}
+
+	/**
+	 * @return the weighted goal value of the distribution at 'k' (smaller is better)
+	 */
+	private double goal(int k, int n, double maxPerimeter) {
+		double overlap = overlap(k);
+		if (overlap == 0 && (volume(preMin, preMax, k) == 0 || volume(sufMin, sufMax, k) == 0)) {
+			overlap = perimeterOverlap(k);
+		}
+		double x = 2.0 * k / n - 1;
+		double weight = YS * (Math.exp(-(x * x) / (S * S)) - Y1);
+		if (overlap > 0) {
+			return overlap / weight;
+		}
+		// not positive
+		double perimeter = margin(preMin, preMax, k) + margin(sufMin, sufMax, k) - maxPerimeter;
+		return perimeter * weight;
+	}
+
+	private double perimeterOverlap(int k) {
+		double p = 0;
+		for (int d = k * dims, end = d + dims; d < end; d++) {
+			double len = Math.min(preMax[d], sufMax[d]) - Math.max(preMin[d], sufMin[d]);
+			if (len < 0) {
+				return 0;
+			}
+			p += len;
+		}
+		return p;
+	}
+
+	private double minExtent(int n) {
+		double min = Double.MAX_VALUE;
+		for (int d = n * dims, end = d + dims; d < end; d++) {
+			min = Math.min(min, preMax[d] - preMin[d]);
+		}
+		return min;
+	}
+
+	/**
+	 * Sort the entries by lower bound and then upper bound, or by upper bound and then lower bound.
+	 */
+	private void sortByAxis(int n, int axis, boolean upper) {
+		if (!upper) {
+			sortByAxis(n, axis);
+			return;
+		}
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+			key1[i] = boxMax[i * dims + axis];
+			key2[i] = boxMin[i * dims + axis];
+		}
+		sort(order, n, key1, key2);
+	}
+
+	@Override
+	public boolean isReInsertEnabled() {
+		return false;
+	}
+}
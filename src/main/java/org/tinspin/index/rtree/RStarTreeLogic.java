@@ -1,7 +1,7 @@
 /*
  * Copyright 2016 Tilmann Zaeschke
- * 
- * 
+ *
+ *
  * Licensed under the Apache License, Version 2.0 (the "License");
  * you may not use this file except in compliance with the License.
  * You may obtain a copy of the License at
@@ -18,13 +18,84 @@ package org.tinspin.index.rtree;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 
+/**
+ * Insertion logic of the R*Tree.
+ * <p>
+ * Every tree has its own instance. The instance keeps scratch buffers for ranking children, sorting
+ * entries and calculating bounding boxes, so inserts and splits do not allocate temporary objects.
+ * The methods of this class are never called recursively, i.e. the buffers are only used during
+ * a single call.
+ */
 public class RStarTreeLogic implements RTreeLogic {
 
-	private final SortByAxisAsc SORT_BY_AXIS_ASC = new SortByAxisAsc();
-	private final SortByAxisDes SORT_BY_AXIS_DES = new SortByAxisDes();
-	
+	private final int nodeMinDir;
+	private final int nodeMaxDir;
+	private final int nodeMinData;
+	private final int nodeMaxData;
+
+	int dims = -1;
+	// Per child: area and area enlargement when inserting an entry. Per entry: sort keys.
+	double[] area = new double[0];
+	double[] key1 = new double[0];
+	double[] key2 = new double[0];
+	int[] order = new int[0];
+	int[] bestOrder = new int[0];
+	RTreeEntry<?>[] entries = new RTreeEntry[0];
+	// Entry boxes, and the bounding boxes and volume sums of all prefixes and suffixes of the
+	// sorted entries. All are flat arrays with 'dims' values per entry.
+	double[] boxMin = new double[0];
+	double[] boxMax = new double[0];
+	double[] preMin = new double[0];
+	double[] preMax = new double[0];
+	double[] sufMin = new double[0];
+	double[] sufMax = new double[0];
+	private double[] preVolume = new double[0];
+	private double[] sufVolume = new double[0];
+	double[] enlargedMin = new double[0];
+	double[] enlargedMax = new double[0];
+
+	/**
+	 * @param nodeMinDir Minimum number of children of directory nodes
+	 * @param nodeMaxDir Maximum number of children of directory nodes
+	 * @param nodeMinData Minimum number of entries of leaf nodes
+	 * @param nodeMaxData Maximum number of entries of leaf nodes
+	 */
+	public RStarTreeLogic(int nodeMinDir, int nodeMaxDir, int nodeMinData, int nodeMaxData) {
+		this.nodeMinDir = nodeMinDir;
+		this.nodeMaxDir = nodeMaxDir;
+		this.nodeMinData = nodeMinData;
+		this.nodeMaxData = nodeMaxData;
+	}
+
+	/**
+	 * Ensure that the scratch buffers can hold 'n' entries. Nodes usually have at most
+	 * max(nodeMaxDir, nodeMaxData) entries, plus one during a split.
+	 */
+	void ensureCapacity(int n, int dims) {
+		if (n <= area.length && dims == this.dims) {
+			return;
+		}
+		this.dims = dims;
+		n = Math.max(n, Math.max(nodeMaxDir, nodeMaxData) + 1);
+		area = new double[n];
+		key1 = new double[n];
+		key2 = new double[n];
+		order = new int[n];
+		bestOrder = new int[n];
+		entries = new RTreeEntry[n];
+		boxMin = new double[n * dims];
+		boxMax = new double[n * dims];
+		preMin = new double[(n + 1) * dims];
+		preMax = new double[(n + 1) * dims];
+		sufMin = new double[(n + 1) * dims];
+		sufMax = new double[(n + 1) * dims];
+		preVolume = new double[n + 1];
+		sufVolume = new double[n + 1];
+		enlargedMin = new double[dims];
+		enlargedMax = new double[dims];
+	}
+
 	/**
 	 * Choose subtree as described in the paper.
 	 */
@@ -34,7 +105,7 @@ public class RStarTreeLogic implements RTreeLogic {
 		//CS1
 		RTreeNode<T> node = root;
 		int level = nLevels-1;
-		
+
 		//CS2
 		while (level != desiredInsertionLevel) {
 			RTreeNodeDir<T> dir = (RTreeNodeDir<T>) node;
@@ -51,150 +122,162 @@ public class RStarTreeLogic implements RTreeLogic {
 		return node;
 	}
 
-	private static class NDPair<T> implements Comparable<NDPair<T>>{
-		RTreeNode<T> node;
-		double d;
-		public NDPair(double d, RTreeNode<T> node) {
-			this.d = d;
-			this.node = node;
-		}
-		@Override
-		public int compareTo(NDPair<T> o) {
-			double dist = d - o.d;
-			return dist < 0 ? -1 : dist > 0 ? 1 : 0;
-		}
-		@Override
-		public boolean equals(Object obj) {
-			return this == obj;
-		}
-	}
-	
-	private static class EDPair<T> implements Comparable<EDPair<T>>{
-		RTreeEntry<T> entry;
-		double d;
-		public EDPair(double d, RTreeEntry<T> entry) {
-			this.d = d;
-			this.entry = entry;
-		}
-		@Override
-		public int compareTo(EDPair<T> o) {
-			return d < o.d ? -1 : d > o.d ? 1 : 0;
-		}
-	}
-	
-	@SuppressWarnings("unchecked")
 	private <T> RTreeNode<T> chooseNodeWithNearlyMinimumOverlapCost(
 			RTreeNodeDir<T> dir, RTreeEntry<T> e) {
-		final int P = Math.min(32, dir.getChildren().size());
-		
-		//rank by area enlargement
 		ArrayList<RTreeNode<T>> children = dir.getChildren();
+		final int n = children.size();
+		final int P = Math.min(32, n);
+		ensureCapacity(n, e.min().length);
+		double[] area = this.area;
+		double[] enlargement = this.key1;
+		int[] candidates = this.order;
+
+		double[] eMin = e.min();
+		double[] eMax = e.max();
+		double[] boxMin = this.boxMin;
+		double[] boxMax = this.boxMax;
+
+		//rank by area enlargement
 		//TODO This doesn't always allow for ties...
-		NDPair<T>[] areas = new NDPair[P];
-		for (int i = 0; i < children.size(); i++) {
+		for (int i = 0; i < n; i++) {
+			//copy the boxes, the overlap calculation below accesses every box P times
 			RTreeNode<T> child = children.get(i);
-			double area = calcAreaEnlargementSize(child, e);
-			if (i < P) {
-				areas[i] = new NDPair<>(area, child);
-				if (i == P-1) {
-					Arrays.sort(areas);
-				}
-			} else if (areas[P-1].d > area) {
-				areas[P-1].d = area;
-				areas[P-1].node = child;
+			double[] min = child.min();
+			double[] max = child.max();
+			double a = 1;
+			double aEnlarged = 1;
+			for (int d = 0, pos = i * dims; d < dims; d++, pos++) {
+				boxMin[pos] = min[d];
+				boxMax[pos] = max[d];
+				a *= max[d] - min[d];
+				aEnlarged *= Math.max(max[d], eMax[d]) - Math.min(min[d], eMin[d]);
 			}
-		}
-		int dims = dir.min().length;
-		RTreeEntry<T> enlarged = new RTreeEntry<>(new double[dims], new double[dims], null);
-		double bestOverLap = Double.MAX_VALUE;
-		RTreeNode<T> bestNode = null;
-		for (int i = 0; i < P; i++) {
-			enlarged.setToCover(e, areas[i].node);
-			double o = calcOverlapSize(enlarged, areas[i].node, children);
-			if (o < bestOverLap) {
-				bestOverLap = o;
-				bestNode = areas[i].node; 
-			} else if (o == bestOverLap) {
-				//ties are resolved by choosing the node with the smallest area
-				double aBest = bestNode.calcArea();
-				double aNew = areas[i].node.calcArea();
-				if (aNew < aBest) {
-					bestOverLap = o;
-					bestNode = areas[i].node; 
-				}
+			area[i] = a;
+			enlargement[i] = aEnlarged - a;
+			candidates[i] = i;
+			if (i >= P && enlargement[candidates[P-1]] > enlargement[i]) {
+				candidates[P-1] = i;
+			}
+			if (i == P-1 && P < n) {
+				//If all children are candidates, sorting is not necessary, see tie breaking below.
+				sort(candidates, P, enlargement, null);
 			}
 		}
-		return bestNode;
-	}
 
-	private <T> double calcAreaEnlargementSize(RTreeNode<T> node, RTreeEntry<T> e) {
-		return node.calcAreaEnlarged(e) - node.calcArea();
-	}
-
-	private <T> double calcOverlapSize(RTreeEntry<T> node, RTreeEntry<T> toSkip, ArrayList<RTreeNode<T>> children) {
-		double o = 0;
-		for (int i = 0; i < children.size(); i++) {
-			if (children.get(i) != toSkip) {
-				o += node.calcOverlap(children.get(i));
+		double[] enlargedMin = this.enlargedMin;
+		double[] enlargedMax = this.enlargedMax;
+		double bestOverlap = Double.MAX_VALUE;
+		int best = -1;
+		for (int c = 0; c < P; c++) {
+			int iCand = candidates[c];
+			for (int d = 0, pos = iCand * dims; d < dims; d++, pos++) {
+				enlargedMin[d] = Math.min(eMin[d], boxMin[pos]);
+				enlargedMax[d] = Math.max(eMax[d], boxMax[pos]);
+			}
+			double o = 0;
+			for (int i = 0; i < n && o <= bestOverlap; i++) {
+				if (i != iCand) {
+					o += overlap(enlargedMin, enlargedMax, i);
+				}
+			}
+			//ties are resolved by choosing the node with the smallest area, then the node with the
+			//smallest area enlargement (this is the order of the candidates if they are sorted)
+			if (o < bestOverlap || (o == bestOverlap && (area[iCand] < area[best]
+					|| (area[iCand] == area[best] && enlargement[iCand] < enlargement[best])))) {
+				bestOverlap = o;
+				best = iCand;
 			}
 		}
-		return o;
+		return children.get(best);
 	}
 
 	private <T> RTreeNode<T> chooseNodeWithLeastAreaEnlargement(RTreeNodeDir<T> dir, RTreeEntry<T> e) {
 		ArrayList<RTreeNode<T>> children = dir.getChildren();
 		double bestAreaEnl = Double.MAX_VALUE;
+		double bestArea = Double.MAX_VALUE;
 		RTreeNode<T> bestNode = null;
 		for (int i = 0; i < children.size(); i++) {
 			RTreeNode<T> child = children.get(i);
-			double areaEnl = calcAreaEnlargementSize(child, e);
-			if (areaEnl < bestAreaEnl) {
+			double area = child.calcArea();
+			double areaEnl = child.calcAreaEnlarged(e) - area;
+			//ties are resolved by choosing the node with the smallest area
+			if (areaEnl < bestAreaEnl || (areaEnl == bestAreaEnl && area < bestArea)) {
 				bestAreaEnl = areaEnl;
-				bestNode = child; 
-			} if (areaEnl == bestAreaEnl) {
-				//ties are resolved by choosing the node with the smallest area
-				double aBest = bestNode.calcArea();
-				double aNew = child.calcArea();
-				if (aNew < aBest) {
-					bestAreaEnl = areaEnl;
-					bestNode = child; 
-				}
+				bestArea = area;
+				bestNode = child;
 			}
 		}
 		return bestNode;
 	}
 
 	/**
-	 * Choose subtree as described in the paper.
-	 * 
-	 * According to paper the function
-	 * a) returns (param) a sorted array of BB sorted for splitting
-	 * b) returns (ret) the split dimension
-	 * c) 
+	 * Split as described in the paper.
+	 * <p>
+	 * For every axis, the entries are sorted only once by their lower and then upper bound. The
+	 * descending order of the paper is the reverse of this order. The bounding boxes of all prefixes
+	 * and suffixes of the sorted entries are calculated in a single pass, so that evaluating all
+	 * distributions of an axis costs O(M * dims) instead of O(M^2 * dims).
 	 */
 	@SuppressWarnings("unchecked")
 	@Override
 	public <T> RTreeNode<T> split(RTreeNode<T> node, RTreeEntry<T> e) {
+		final int n = copyEntries(node, e);
+
 		//S1 determine axis
-		final int M = getM(node);
-		RTreeEntry<T>[] children = node.getEntries().toArray(new RTreeEntry[M+1]);
-		children[M] = e;
-		
-		int splitAxis = chooseSplitAxis(children);
+		chooseSplitAxis(n, getMinM(node));
 
-		//S2 choose split index 
+		//S2 choose split index
 		//S3 split
-		return chooseSplitIndex(node, children, splitAxis);
+		RTreeNode<T> newNode = chooseSplitIndex(node, n, (RTreeEntry<T>[]) entries);
+		Arrays.fill(entries, 0, n, null);
+		return newNode;
+	}
+
+	/**
+	 * Copy the entries of the node and the new entry to the scratch buffers.
+	 * @return number of entries
+	 */
+	<T> int copyEntries(RTreeNode<T> node, RTreeEntry<T> e) {
+		final int n = node.size() + 1;
+		final int dims = e.min().length;
+		ensureCapacity(n, dims);
+		for (int i = 0; i < n-1; i++) {
+			entries[i] = node.getEntry(i);
+		}
+		entries[n-1] = e;
+		if (node instanceof RTreeNodeLeaf) {
+			//copy the packed boxes directly
+			double[] boxes = ((RTreeNodeLeaf<T>) node).getBoxes();
+			for (int i = 0, pos = 0; i < n-1; i++, pos += dims) {
+				for (int d = 0; d < dims; d++) {
+					boxMin[pos + d] = boxes[2 * pos + d];
+					boxMax[pos + d] = boxes[2 * pos + dims + d];
+				}
+			}
+		} else {
+			for (int i = 0; i < n-1; i++) {
+				copyBox(entries[i], i);
+			}
+		}
+		copyBox(e, n-1);
+		return n;
 	}
-	
-	@SuppressWarnings("unused")
-	private <T> int chooseSplitAxis(RTreeEntry<T>[] children) {
-		int dims = children[0].min().length;
-		double[] bufMin = new double[dims];
-		double[] bufMax = new double[dims];
-
-		final int M = children.length;
-		final int m = (int) (0.40 * M);
+
+	private void copyBox(RTreeEntry<?> e, int i) {
+		double[] min = e.min();
+		double[] max = e.max();
+		for (int d = 0, pos = i * dims; d < dims; d++) {
+			boxMin[pos + d] = min[d];
+			boxMax[pos + d] = max[d];
+		}
+	}
+
+	/**
+	 * Determines the split axis and leaves the entries sorted along this axis in 'bestOrder'.
+	 */
+	private void chooseSplitAxis(int n, int minM) {
+		final int M = n;
+		final int m = Math.max((int) (0.40 * M), minM);
 		final int kMax = M-2*m+1;
 		int kMin = m;
 		int kEnd = m + kMax;
@@ -202,203 +285,271 @@ public class RStarTreeLogic implements RTreeLogic {
 		if (RTree.DEBUG && m > M) {
 			throw new IllegalStateException();
 		}
-		
-		//CSA1 
+
+		//CSA1
 		double bestMargin = Double.MAX_VALUE;
-		int bestDim = -1;
 		for (int d = 0; d < dims; d++) {
-			//total margin S for all combinations of this split axis
+			sortByAxis(n, d);
+			calcPrefixAndSuffixBoxes(n, false);
+			//total margin S for all combinations of this split axis, ascending and descending
 			double totalMargin = 0;
-			for (int sortOrder = 0; sortOrder < 2; sortOrder++) {
-				if (sortOrder == 0) {
-					SORT_BY_AXIS_ASC.setAxis(d);
-					Arrays.sort(children, SORT_BY_AXIS_ASC);
-				} else {
-					SORT_BY_AXIS_DES.setAxis(d);
-					Arrays.sort(children, SORT_BY_AXIS_DES);
-				}
-
-				for (int k = kMin+1; k <= kEnd; k++) {
-					totalMargin += calcMargin(children, 0, k, bufMin, bufMax);
-					totalMargin += calcMargin(children, k, children.length, bufMin, bufMax);
-				}
+			for (int k = kMin+1; k <= kEnd; k++) {
+				totalMargin += margin(preMin, preMax, k);
+				totalMargin += margin(sufMin, sufMax, k);
+			}
+			for (int k = kMin+1; k <= kEnd; k++) {
+				totalMargin += margin(sufMin, sufMax, n-k);
+				totalMargin += margin(preMin, preMax, n-k);
 			}
 			//CSA2
-			if (totalMargin < bestMargin) {
+			if (totalMargin < bestMargin || d == 0) {
 				bestMargin = totalMargin;
-				bestDim = d;
+				System.arraycopy(order, 0, bestOrder, 0, n);
 			}
 		}
-		return bestDim;
-	} 
-
-	private <T> double calcMargin(RTreeEntry<T>[] entries, int start, int end,
-								  double[] min, double[] max) {
-		RTreeEntry.calcBoundingBox(entries, start, end, min, max);
-		return RTreeEntry.calcMargin(min, max);
 	}
 
 	/**
-	 * 
-	 * @param children After calling this methods, the children will be in the best sorting order.
-	 * @param splitAxis
-	 * @return the split index
+	 * @param entries the entries, in the order in which they were copied to the scratch buffers
+	 * @return the new node
 	 */
 	private <T> RTreeNode<T> chooseSplitIndex(
-			RTreeNode<T> nodeToSplit, RTreeEntry<T>[] children, int splitAxis) {
-		int dims = children[0].min().length;
-		double[] bufMin1 = new double[dims];
-		double[] bufMax1 = new double[dims];
-		double[] bufMin2 = new double[dims];
-		double[] bufMax2 = new double[dims];
-
-		final int M = children.length-1;
-		final int m = (int) (0.40 * M);
+			RTreeNode<T> nodeToSplit, int n, RTreeEntry<T>[] entries) {
+		final int M = n-1;
+		final int m = Math.max((int) (0.40 * M), getMinM(nodeToSplit));
 		final int kMax = (M-2*m+1);
 		int kMin = m;
 		int kEnd = m + kMax;
 
-		int bestSortOrder = -1;
+		System.arraycopy(bestOrder, 0, order, 0, n);
+		calcPrefixAndSuffixBoxes(n, true);
+
+		boolean bestAscending = true;
 		double bestDeadSpace = Double.MAX_VALUE;
 		double bestOverlap = Double.MAX_VALUE;
 		int bestIndex = -1;
-		SORT_BY_AXIS_ASC.setAxis(splitAxis);
-		SORT_BY_AXIS_DES.setAxis(splitAxis);
 		//CSI1
 		for (int sortOrder = 0; sortOrder < 2; sortOrder++) {
-			if (sortOrder == 0) {
-				Arrays.sort(children, SORT_BY_AXIS_ASC);
-			} else {
-				Arrays.sort(children, SORT_BY_AXIS_DES);
-			}
+			boolean ascending = sortOrder == 0;
 			for (int k = kMin+1; k <= kEnd; k++) {
+				// The first group of the descending order is the suffix of the ascending order
+				int split = ascending ? k : n-k;
 				//TODO This is done as in the reference implementation.
 				//     To improve performance, it may be worth to calculate deadSpace separately,
 				//     it is only needed in case of a draw.
-				double ds1 = RTreeEntry.calcDeadspace(children, 0, k, bufMin1, bufMax1);
-				double ds2 = RTreeEntry.calcDeadspace(children, k, children.length, bufMin2, bufMax2);
-				double overlap = RTreeEntry.calcOverlap(bufMin1, bufMax1, bufMin2, bufMax2);
-				if (overlap < bestOverlap || (overlap == bestOverlap && ds1+ds2 < bestDeadSpace)) {
+				double ds = volume(preMin, preMax, split) - preVolume[split]
+						+ volume(sufMin, sufMax, split) - sufVolume[split];
+				double overlap = overlap(split);
+				if (overlap < bestOverlap || (overlap == bestOverlap && ds < bestDeadSpace)) {
 					bestOverlap = overlap;
-					bestDeadSpace = ds1 + ds2;
-					bestSortOrder = sortOrder;
+					bestDeadSpace = ds;
+					bestAscending = ascending;
 					bestIndex = k;
 				}
 			}
 		}
-		//ensure that children are in correct order
-		if (bestSortOrder == 0) {
-			Arrays.sort(children, SORT_BY_AXIS_ASC);
-		}
-		
+
 		//split
-		RTreeNode<T> newNode;
-		if (nodeToSplit instanceof RTreeNodeDir) {
-			newNode = new RTreeNodeDir<>(dims);
-		} else {
-			newNode = new RTreeNodeLeaf<>(dims);
-		}
-		
+		RTreeNode<T> newNode = nodeToSplit.createEmpty();
+
 		nodeToSplit.clear();
 		for (int i = 0; i < bestIndex; i++) {
-			nodeToSplit.addEntry(children[i]);
+			nodeToSplit.addEntry(entries[order[bestAscending ? i : n-1-i]]);
 		}
 		//shrink parents
 		nodeToSplit.recalcParentMBB();
-	
-		for (int i = bestIndex; i < children.length; i++) {
-			newNode.addEntry(children[i]);
+
+		for (int i = bestIndex; i < n; i++) {
+			newNode.addEntry(entries[order[bestAscending ? i : n-1-i]]);
 		}
-		
+
 		return newNode;
 	}
 
+	/**
+	 * Sort the entries by lower bound and then upper bound along the axis.
+	 */
+	void sortByAxis(int n, int axis) {
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+			key1[i] = boxMin[i * dims + axis];
+			key2[i] = boxMax[i * dims + axis];
+		}
+		sort(order, n, key1, key2);
+	}
+
+	/**
+	 * Calculates the bounding boxes of the first 'k' entries ('pre') and of the entries from 'k' on
+	 * ('suf') of the entries in 'order', for all 'k'. The prefix of size 0 and the suffix of size 0 are
+	 * not calculated.
+	 * @param withVolume whether to also calculate the sum of the entry volumes of all prefixes and suffixes
+	 */
+	void calcPrefixAndSuffixBoxes(int n, boolean withVolume) {
+		int first = order[0] * dims;
+		System.arraycopy(boxMin, first, preMin, dims, dims);
+		System.arraycopy(boxMax, first, preMax, dims, dims);
+		preVolume[1] = withVolume ? volume(boxMin, boxMax, order[0]) : 0;
+		for (int k = 2; k <= n; k++) {
+			int src = order[k-1] * dims;
+			int prev = (k-1) * dims;
+			int dst = k * dims;
+			for (int d = 0; d < dims; d++) {
+				preMin[dst + d] = Math.min(preMin[prev + d], boxMin[src + d]);
+				preMax[dst + d] = Math.max(preMax[prev + d], boxMax[src + d]);
+			}
+			if (withVolume) {
+				preVolume[k] = preVolume[k-1] + volume(boxMin, boxMax, order[k-1]);
+			}
+		}
+
+		int last = order[n-1] * dims;
+		System.arraycopy(boxMin, last, sufMin, (n-1) * dims, dims);
+		System.arraycopy(boxMax, last, sufMax, (n-1) * dims, dims);
+		sufVolume[n-1] = withVolume ? volume(boxMin, boxMax, order[n-1]) : 0;
+		for (int k = n-2; k >= 0; k--) {
+			int src = order[k] * dims;
+			int next = (k+1) * dims;
+			int dst = k * dims;
+			for (int d = 0; d < dims; d++) {
+				sufMin[dst + d] = Math.min(sufMin[next + d], boxMin[src + d]);
+				sufMax[dst + d] = Math.max(sufMax[next + d], boxMax[src + d]);
+			}
+			if (withVolume) {
+				sufVolume[k] = sufVolume[k+1] + volume(boxMin, boxMax, order[k]);
+			}
+		}
+	}
+
+	double margin(double[] min, double[] max, int pos) {
+		double m = 0;
+		for (int d = pos * dims, end = d + dims; d < end; d++) {
+			m += max[d] - min[d];
+		}
+		return m;
+	}
+
+	double volume(double[] min, double[] max, int pos) {
+		double v = 1;
+		for (int d = pos * dims, end = d + dims; d < end; d++) {
+			v *= max[d] - min[d];
+		}
+		return v;
+	}
+
+	/**
+	 * @return overlap of the box with the box of entry 'i' in 'boxMin'/'boxMax'
+	 */
+	private double overlap(double[] min, double[] max, int i) {
+		double v = 1;
+		for (int d = 0, pos = i * dims; d < dims; d++, pos++) {
+			double len = Math.min(max[d], boxMax[pos]) - Math.max(min[d], boxMin[pos]);
+			if (len <= 0) {
+				return 0;
+			}
+			v *= len;
+		}
+		return v;
+	}
+
+	/**
+	 * @return overlap of the prefix box and suffix box that are separated at 'k'
+	 */
+	double overlap(int k) {
+		double v = 1;
+		for (int d = k * dims, end = d + dims; d < end; d++) {
+			double len = Math.min(preMax[d], sufMax[d]) - Math.max(preMin[d], sufMin[d]);
+			if (len <= 0) {
+				return 0;
+			}
+			v *= len;
+		}
+		return v;
+	}
+
+	/**
+	 * Stable sort of the first 'n' indexes in 'order' by 'key1' and then by 'key2'.
+	 * Uses insertion sort, which is fast for the small number of entries in a node.
+	 * @param key2 secondary key, may be 'null'
+	 */
+	static void sort(int[] order, int n, double[] key1, double[] key2) {
+		for (int i = 1; i < n; i++) {
+			int x = order[i];
+			int j = i;
+			while (j > 0 && compare(x, order[j-1], key1, key2) < 0) {
+				order[j] = order[j-1];
+				j--;
+			}
+			order[j] = x;
+		}
+	}
+
+	private static int compare(int i1, int i2, double[] key1, double[] key2) {
+		if (key1[i1] < key1[i2]) {
+			return -1;
+		} else if (key1[i1] > key1[i2]) {
+			return 1;
+		}
+		if (key2 == null) {
+			return 0;
+		}
+		return key2[i1] < key2[i2] ? -1 : key2[i1] > key2[i2] ? 1 : 0;
+	}
+
 	@SuppressWarnings("unchecked")
 	@Override
 	public <T> RTreeEntry<T>[] reInsert(RTreeNode<T> node, RTreeEntry<T> e) {
 		//RI1 calculate center distances from node center
-		final int M = getM(node);
-		EDPair<T>[] children = new EDPair[M+1];
-		ArrayList<RTreeEntry<T>> currentChildren =  node.getEntries();
-		for (int i = 0; i < M; i++) {
-			RTreeEntry<T> c = currentChildren.get(i);
-			double cd = RTreeEntry.calcCenterDistance(node, c);
-			children[i] = new EDPair<>(cd, c);
+		final int n = copyEntries(node, e);
+		RTreeEntry<T>[] entries = (RTreeEntry<T>[]) this.entries;
+		for (int i = 0; i < n; i++) {
+			order[i] = i;
+			key1[i] = RTreeEntry.calcCenterDistance(node, entries[i]);
 		}
-		double cd = RTreeEntry.calcCenterDistance(node, e);
-		children[M] = new EDPair<>(cd, e);
-		
+
 		//RI2 sort according to distance
-		Arrays.sort(children);
-		
+		sort(order, n, key1, null);
+
 		//RI3 remove first P entries and adjust BB
-		int p = (int) (0.30 * (M+1));
-		int nToKeep = (M+1)-p;
+		int p = (int) (0.30 * n);
+		int nToKeep = n-p;
 
 		node.clear();
 		for (int i = 0; i < nToKeep; i++) {
-			node.addEntry(children[i].entry);
+			node.addEntry(entries[order[i]]);
 		}
 		//shrink parents
 		node.recalcParentMBB();
-		
+
 		//RI4 reinsert entries
 		//use 'close reinsert', starting with best values, as suggested in paper
 		RTreeEntry<T>[] toReinsert = new RTreeEntry[p];
 		for (int i = 0; i < p; i++) {
-			toReinsert[i] = children[i+nToKeep].entry;
+			toReinsert[i] = entries[order[i+nToKeep]];
 		}
-		return toReinsert; 
+		Arrays.fill(entries, 0, n, null);
+		return toReinsert;
 	}
 
-	private class SortByAxisAsc implements Comparator<RTreeEntry<?>> {
-		int axis = -1;
-		public void setAxis(int axis) {
-			this.axis = axis;
-		}
-		@Override
-		public int compare(RTreeEntry<?> o1, RTreeEntry<?> o2) {
-			double dMin = o1.min()[axis] - o2.min()[axis];
-			if (dMin < 0) {
-				return -1; 
-			} else if (dMin > 0) {
-				return 1;
-			}
-			double dMax = o1.max()[axis] - o2.max()[axis];
-			return dMax < 0 ? -1 : dMax > 0 ? 1 : 0; 
-		}
-	}
-	
-	private class SortByAxisDes implements Comparator<RTreeEntry<?>> {
-		int axis = -1;
-		public void setAxis(int axis) {
-			this.axis = axis;
-		}
-		@Override
-		public int compare(RTreeEntry<?> o2, RTreeEntry<?> o1) {
-			double dMin = o1.min()[axis] - o2.min()[axis];
-			if (dMin < 0) {
-				return -1; 
-			} else if (dMin > 0) {
-				return 1;
-			}
-			double dMax = o1.max()[axis] - o2.max()[axis];
-			return dMax < 0 ? -1 : dMax > 0 ? 1 : 0; 
-		}
+	@Override
+	public boolean isReInsertEnabled() {
+		return true;
 	}
-	
 
 	@Override
 	public <T> boolean hasSpace(RTreeNode<T> node) {
-		return node.hasSpace();
+		return node.size() < getM(node);
 	}
 
 	private boolean isLeaf(RTreeNode<?> node) {
 		return node instanceof RTreeNodeLeaf;
 	}
-	
+
 	private int getM(RTreeNode<?> node) {
-		return isLeaf(node) ? RTree.NODE_MAX_DATA : RTree.NODE_MAX_DIR;
+		return isLeaf(node) ? nodeMaxData : nodeMaxDir;
+	}
+
+	int getMinM(RTreeNode<?> node) {
+		return isLeaf(node) ? nodeMinData : nodeMinDir;
 	}
 
 }
@@ -17,10 +17,21 @@
  */
 package org.tinspin.index.rtree;
 
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
 import java.util.function.Predicate;
 
 import org.tinspin.index.*;
+import org.tinspin.index.IndexConfig.RTreeVariant;
+import org.tinspin.index.util.IndexIO;
 import org.tinspin.index.util.MutableRef;
 import org.tinspin.index.util.StringBuilderLn;
 
@@ -33,6 +44,9 @@ import org.tinspin.index.util.StringBuilderLn;
  * Revised R*Tree (for DBMS, see conclusion?) -- RR*Tree
  * "A Revised R*-tree in Comparison with Related Index Structures"
  * Norbert Beckmann; Bernhard Seeger
+ * <p>
+ * {@link #snapshot()} creates a read-only snapshot of the tree in O(1). Subsequent modifications
+ * of the tree use copy-on-write, i.e. they copy only the nodes on the modified paths.
  *
  * @author ztilmann
  *
@@ -40,41 +54,132 @@ import org.tinspin.index.util.StringBuilderLn;
  */
 public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 
-	static final int NODE_MAX_DIR = 10;//56; //PAPER: M=56 for 1KB pages
-	static final int NODE_MAX_DATA = 10;//50; //PAPER: M=50 for 1KB pages
-	//PAPER: m = 20% of M
-	static final int NODE_MIN_DIR = 2;//11;  //2 <= min <= max/2
-	static final int NODE_MIN_DATA = 2;//10;  //2 <= min <= max/2
 	public static final boolean DEBUG = false;
 	private final int dims;
+	//Fan-out, see IndexConfig. PAPER: M=56/50 for 1KB pages, m = 20% of M, 2 <= min <= max/2
+	private final int nodeMaxDir;
+	private final int nodeMaxData;
+	private final int nodeMinDir;
+	private final int nodeMinData;
 	private int size = 0;
 	//number of levels
 	private int depth;
 	private RTreeNode<T> root;
 	private int nNodes = 0;
-	private long nDist1NN = 0;
-	private long nDistKNN = 0;
+	// Updated by queries, which may run concurrently
+	private final LongAdder nDist1NN = new LongAdder();
+	private final LongAdder nDistKNN = new LongAdder();
+	// Version for copy-on-write, this is incremented with every snapshot.
+	private int version = 0;
+	private boolean readOnly = false;
+	private IndexMetrics metrics = IndexMetrics.NONE;
 	
-	static RTreeLogic logic = new RStarTreeLogic();
+	private final RTreeVariant variant;
+	private final RTreeLogic logic;
+	// 'true' if the leaves store the values as 'long', see RTreeLong
+	private final boolean longValues;
 	
 	/**
 	 * Create an RTree. By default, it is an R*tree.
-	 * @param dims dimensionality
+	 * @param config configuration, e.g. dimensionality and node sizes
+	 */
+	protected RTree(IndexConfig config) {
+		this(config, false);
+	}
+
+	/**
+	 * @param config configuration, e.g. dimensionality and node sizes
+	 * @param longValues whether the leaves store the values as {@code long}, see {@link RTreeLong}
 	 */
-	protected RTree(int dims) {
-		this.dims = dims;
+	RTree(IndexConfig config, boolean longValues) {
+		this.longValues = longValues;
+		this.dims = config.getDimensions();
+		this.nodeMaxDir = config.getRTreeNodeMaxDir();
+		this.nodeMaxData = config.getRTreeNodeMaxData();
+		this.nodeMinDir = config.getRTreeNodeMinDir();
+		this.nodeMinData = config.getRTreeNodeMinData();
+		if (nodeMinDir < 2 || nodeMinDir > nodeMaxDir / 2) {
+			throw new IllegalArgumentException(
+					"Require 2 <= minDir <= maxDir/2, but got: " + nodeMinDir + "/" + nodeMaxDir);
+		}
+		if (nodeMinData < 2 || nodeMinData > nodeMaxData / 2) {
+			throw new IllegalArgumentException(
+					"Require 2 <= minData <= maxData/2, but got: " + nodeMinData + "/" + nodeMaxData);
+		}
+		this.variant = config.getRTreeVariant();
+		this.logic = createLogic(variant, nodeMinDir, nodeMaxDir, nodeMinData, nodeMaxData);
 		if (DEBUG) {
 			System.err.println("WARNING: Using DEBUG mode.");
 		}
 		init();
 	} 
+
+	private RTree(RTree<T> original) {
+		this.dims = original.dims;
+		this.nodeMaxDir = original.nodeMaxDir;
+		this.nodeMaxData = original.nodeMaxData;
+		this.nodeMinDir = original.nodeMinDir;
+		this.nodeMinData = original.nodeMinData;
+		this.variant = original.variant;
+		this.logic = original.logic;
+		this.longValues = original.longValues;
+		this.size = original.size;
+		this.depth = original.depth;
+		this.root = original.root;
+		this.nNodes = original.nNodes;
+		this.version = original.version;
+		this.readOnly = true;
+		this.metrics = original.metrics;
+	}
 	
 	public static <T> RTree<T> createRStar(int dims) {
-		return new RTree<>(dims);
+		return new RTree<>(IndexConfig.create(dims));
+	}
+
+	/**
+	 * Create an R*Tree. If the configuration selects another variant, that variant is created,
+	 * see {@link #create(IndexConfig)}.
+	 * @param config configuration, e.g. dimensionality and node sizes
+	 * @return New R*Tree
+	 * @param <T> Value type
+	 */
+	public static <T> RTree<T> createRStar(IndexConfig config) {
+		return new RTree<>(config);
+	}
+
+	/**
+	 * Create an R-Tree. The insertion and split strategy is selected with
+	 * {@link IndexConfig#setRTreeVariant(RTreeVariant)}, the default is an R*Tree.
+	 * @param config configuration, e.g. dimensionality, node sizes and variant
+	 * @return New R-Tree
+	 * @param <T> Value type
+	 */
+	public static <T> RTree<T> create(IndexConfig config) {
+		return new RTree<>(config);
+	}
+
+	private static RTreeLogic createLogic(RTreeVariant variant,
+			int nodeMinDir, int nodeMaxDir, int nodeMinData, int nodeMaxData) {
+		switch (variant) {
+		case RSTAR: return new RStarTreeLogic(nodeMinDir, nodeMaxDir, nodeMinData, nodeMaxData);
+		case RRSTAR: return new RRStarTreeLogic(nodeMinDir, nodeMaxDir, nodeMinData, nodeMaxData);
+		case QUADRATIC: return new QuadraticTreeLogic(nodeMinDir, nodeMaxDir, nodeMinData, nodeMaxData);
+		case LINEAR: return new LinearTreeLogic(nodeMinDir, nodeMaxDir, nodeMinData, nodeMaxData);
+		default: throw new IllegalArgumentException("Unknown variant: " + variant);
+		}
+	}
+
+	public RTreeVariant getVariant() {
+		return variant;
 	}
 	
+	private RTreeNodeLeaf<T> createLeaf() {
+		return new RTreeNodeLeaf<>(dims, nodeMaxData, longValues);
+	}
+
 	private void init() {
-		this.root = new RTreeNodeLeaf<>(dims);
+		this.root = createLeaf();
+		this.root.setVersion(version);
 		this.nNodes = 1;
 		this.depth = 1;
 		this.size = 0;
@@ -101,8 +206,63 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 	 */
 	@Override
 	public void clear() {
+		checkWritable();
 		init();
 	}
+
+	/**
+	 * Create a read-only snapshot of the tree. This takes O(1) time. The snapshot is not affected
+	 * by subsequent modifications of this tree. Modifications of this tree use copy-on-write,
+	 * i.e. they copy every node on the modified paths (if the node has not been copied
+	 * since the last snapshot).
+	 * <p>
+	 * The snapshot can be queried concurrently with modifications of this tree, for example by long-running
+	 * window queries. However, this method must not be called concurrently with modifications, and the
+	 * snapshot must be safely published to other threads, e.g. via a volatile field.
+	 *
+	 * @return a read-only snapshot of the tree
+	 */
+	public RTree<T> snapshot() {
+		RTree<T> snapshot = new RTree<>(this);
+		version++;
+		return snapshot;
+	}
+
+	/**
+	 * @return 'true' if this tree is a read-only snapshot
+	 * @see #snapshot()
+	 */
+	public boolean isReadOnly() {
+		return readOnly;
+	}
+
+	private void checkWritable() {
+		if (readOnly) {
+			throw new UnsupportedOperationException("Snapshots are read-only");
+		}
+	}
+
+	/**
+	 * Ensure that a node can be modified. If the node may be shared with a snapshot, the node
+	 * and all its ancestors are copied.
+	 * Note that parent pointers are only maintained for the current version of the tree, queries
+	 * must not use them.
+	 * @param node the node
+	 * @return the node or its copy
+	 */
+	private RTreeNode<T> getWritable(RTreeNode<T> node) {
+		if (node.getVersion() == version) {
+			return node;
+		}
+		RTreeNode<T> copy = node.copy(version);
+		RTreeNodeDir<T> parent = node.getParent();
+		if (parent == null) {
+			root = copy;
+		} else {
+			((RTreeNodeDir<T>) getWritable(parent)).replaceChild(node, copy);
+		}
+		return copy;
+	}
 	
 	public void insert(double[] point, T value) {
 		insert(new RTreeEntry<>(point, point, value));
@@ -124,6 +284,7 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 	 * @param e the entry
 	 */
 	public void insert(RTreeEntry<T> e) {
+		checkWritable();
 		size++;
 		insertAtDepth(e, 0);
 	}
@@ -141,7 +302,7 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 	 */
 	private void insert(RTreeEntry<T> e, boolean[] blockedLevels, int desiredInsertionLevel) {
 		//I1
-		RTreeNode<T> node = logic.chooseSubTree(root, e, desiredInsertionLevel, depth);
+		RTreeNode<T> node = getWritable(logic.chooseSubTree(root, e, desiredInsertionLevel, depth));
 		//I2
 		if (logic.hasSpace(node)) {
 			node.addEntry(e);
@@ -151,11 +312,14 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 					node, e, blockedLevels, desiredInsertionLevel);
 			//I3 propagate overflow up the tree.
 			if (newNode != null) {
+				newNode.setVersion(version);
 				nNodes++;
 				if (desiredInsertionLevel+1 < depth) {
 					insert(newNode, blockedLevels, desiredInsertionLevel+1);
 				} else {
+					metrics.count(IndexMetrics.Counter.ROOT_GROWTHS, 1);
 					RTreeNodeDir<T> newRoot = new RTreeNodeDir<>(dims);
+					newRoot.setVersion(version);
 					nNodes++; //for the new root
 					newRoot.addEntry(newNode);
 					newRoot.addEntry(root);
@@ -171,20 +335,34 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 	private RTreeNode<T> overflowTreatment(RTreeNode<T> node,
 										   RTreeEntry<T> e, boolean[] blockedLevels, int desiredInsertionLevel) {
 		//OT1
-		if (node != root && !blockedLevels[desiredInsertionLevel]) {
+		if (logic.isReInsertEnabled() && node != root && !blockedLevels[desiredInsertionLevel]) {
 			blockedLevels[desiredInsertionLevel] = true;
 			RTreeEntry<T>[] toReinsert = logic.reInsert(node, e);
+			metrics.count(IndexMetrics.Counter.REINSERTS, toReinsert.length);
 			for (int i = 0; i < toReinsert.length; i++) {
 				insert(toReinsert[i], blockedLevels, desiredInsertionLevel);
 			}
 			return null;
 		} else {
+			metrics.count(IndexMetrics.Counter.NODE_SPLITS, 1);
 			return logic.split(node, e);
 		}
 	}
 
 	public void load(RTreeEntry<T>[] entries) {
-		STRLoader<T> bulkLoader = new STRLoader<>();
+		load(entries, false);
+	}
+
+	/**
+	 * Bulk-load the tree with the Sort-Tile-Recursive (STR) algorithm.
+	 * This replaces any previous content of the tree.
+	 * @param entries All entries of the tree. The array is sorted in place.
+	 * @param parallel Whether to use multiple threads for sorting and for creating the nodes.
+	 *                 The resulting tree is the same in both cases.
+	 */
+	public void load(RTreeEntry<T>[] entries, boolean parallel) {
+		checkWritable();
+		STRLoader<T> bulkLoader = new STRLoader<>(parallel, nodeMaxDir, nodeMaxData);
 		bulkLoader.load(entries);
 		size = bulkLoader.getSize();
 		nNodes = bulkLoader.getNNodes();
@@ -192,6 +370,136 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 		depth = bulkLoader.getDepth();
 	}
 
+	/**
+	 * Bulk-load the tree by packing the entries in Hilbert order, see {@link HilbertLoader}.
+	 * This replaces any previous content of the tree.
+	 * @param entries All entries of the tree. The array is sorted in place.
+	 * @see #load(RTreeEntry[])
+	 */
+	public void loadHilbert(RTreeEntry<T>[] entries) {
+		loadHilbert(entries, false);
+	}
+
+	/**
+	 * Bulk-load the tree by packing the entries in Hilbert order, see {@link HilbertLoader}.
+	 * This replaces any previous content of the tree.
+	 * @param entries All entries of the tree. The array is sorted in place.
+	 * @param parallel Whether to use multiple threads for sorting and for creating the nodes.
+	 *                 The resulting tree is the same in both cases.
+	 */
+	public void loadHilbert(RTreeEntry<T>[] entries, boolean parallel) {
+		checkWritable();
+		HilbertLoader<T> bulkLoader = new HilbertLoader<>(parallel, nodeMaxDir, nodeMaxData);
+		bulkLoader.load(entries);
+		size = bulkLoader.getSize();
+		nNodes = bulkLoader.getNNodes();
+		root = bulkLoader.getRoot();
+		depth = bulkLoader.getDepth();
+	}
+
+	/**
+	 * Write the tree, including its node structure, to a stream.
+	 * @param out the stream, it is flushed but not closed
+	 * @param codec codec for the values
+	 * @throws IOException if writing fails
+	 * @see #load(InputStream, ValueCodec)
+	 */
+	public void save(OutputStream out, ValueCodec<? super T> codec) throws IOException {
+		DataOutputStream dos = IndexIO.writeHeader(out, "RTree", dims);
+		dos.writeInt(nodeMinDir);
+		dos.writeInt(nodeMaxDir);
+		dos.writeInt(nodeMinData);
+		dos.writeInt(nodeMaxData);
+		dos.writeUTF(variant.name());
+		dos.writeInt(size);
+		dos.writeInt(depth);
+		dos.writeInt(nNodes);
+		writeNode(dos, root, codec);
+		dos.flush();
+	}
+
+	private static <T> void writeNode(DataOutput out, RTreeNode<T> node, ValueCodec<? super T> codec)
+			throws IOException {
+		boolean isLeaf = node instanceof RTreeNodeLeaf;
+		out.writeBoolean(isLeaf);
+		out.writeInt(node.size());
+		for (int i = 0; i < node.size(); i++) {
+			RTreeEntry<T> e = node.getEntry(i);
+			if (!isLeaf) {
+				writeNode(out, (RTreeNode<T>) e, codec);
+				continue;
+			}
+			// Points are written without 'max'
+			boolean isPoint = Arrays.equals(e.min(), e.max());
+			out.writeBoolean(isPoint);
+			IndexIO.writePoint(out, e.min());
+			if (!isPoint) {
+				IndexIO.writePoint(out, e.max());
+			}
+			codec.write(out, e.value());
+		}
+	}
+
+	/**
+	 * Read a tree that was written with {@link #save(OutputStream, ValueCodec)}.
+	 * The nodes are restored as they were written, there is no re-insertion and no split.
+	 * The returned tree is writable, even if a read-only snapshot was saved.
+	 * @param in the stream, it should be buffered
+	 * @param codec codec for the values
+	 * @return the tree
+	 * @param <T> value type
+	 * @throws IOException if reading fails or if the stream does not contain an RTree
+	 */
+	public static <T> RTree<T> load(InputStream in, ValueCodec<? extends T> codec) throws IOException {
+		DataInputStream dis = IndexIO.readHeader(in, "RTree");
+		IndexConfig config = IndexConfig.create(IndexIO.readDims(dis))
+				.setRTreeNodeMinDir(dis.readInt())
+				.setRTreeNodeMaxDir(dis.readInt())
+				.setRTreeNodeMinData(dis.readInt())
+				.setRTreeNodeMaxData(dis.readInt());
+		String variantName = dis.readUTF();
+		RTree<T> t;
+		try {
+			config.setRTreeVariant(RTreeVariant.valueOf(variantName));
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Unknown R-Tree variant: " + variantName);
+		}
+		try {
+			t = new RTree<>(config);
+		} catch (IllegalArgumentException e) {
+			throw new IOException(e);
+		}
+		t.size = dis.readInt();
+		t.depth = dis.readInt();
+		int nNodes = dis.readInt();
+		t.nNodes = 0;
+		t.root = t.readNode(dis, codec);
+		if (t.nNodes != nNodes) {
+			throw new IOException("Expected " + nNodes + " nodes but found " + t.nNodes);
+		}
+		return t;
+	}
+
+	private RTreeNode<T> readNode(DataInput in, ValueCodec<? extends T> codec) throws IOException {
+		boolean isLeaf = in.readBoolean();
+		int n = in.readInt();
+		RTreeNode<T> node = isLeaf ? createLeaf() : new RTreeNodeDir<>(dims);
+		node.setVersion(version);
+		nNodes++;
+		for (int i = 0; i < n; i++) {
+			if (!isLeaf) {
+				// The MBB of a directory node is calculated from its (completely read) children
+				node.addEntry(readNode(in, codec));
+				continue;
+			}
+			boolean isPoint = in.readBoolean();
+			double[] min = IndexIO.readPoint(in, dims);
+			double[] max = isPoint ? min : IndexIO.readPoint(in, dims);
+			node.addEntry(new RTreeEntry<>(min, max, codec.read(in)));
+		}
+		return node;
+	}
+
 	public Object remove(double[] point) {
 		//TODO speed up
 		return remove(point, point);
@@ -205,12 +513,13 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 	 */
 	@Override
 	public T remove(double[] min, double[] max) {
+		checkWritable();
 		MutableRef<T> ref = new MutableRef<>();
 		Predicate<RTreeEntry<T>> pred = e -> {
-			ref.set(e.checkExactMatch(min, max) ? e.value() : null);
+			ref.set(e.value());
 			return ref.get() != null;
 		};
-		findNodes(min, max, root, node -> deleteFromNode(node, pred));
+		findNodes(min, max, root, node -> deleteFromNode(node, min, max, pred));
 		return ref.get();
 	}
 
@@ -235,8 +544,152 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 	 */
 	@Override
 	public boolean removeIf(double[] min, double[] max, Predicate<BoxEntry<T>> condition) {
-		Predicate<RTreeEntry<T>> pred = e -> e.checkExactMatch(min, max) && condition.test(e);
-		return findNodes(min, max, root, node -> deleteFromNode(node, pred));
+		checkWritable();
+		Predicate<RTreeEntry<T>> pred = condition::test;
+		return findNodes(min, max, root, node -> deleteFromNode(node, min, max, pred));
+	}
+
+	/**
+	 * Remove all entries that intersect with the query window and match the condition.
+	 * <p>
+	 * The entries are removed in a single traversal. Subtrees that lose all their entries are
+	 * dropped, nodes that become underfull are dissolved and their remaining entries are
+	 * reinserted once at the end.
+	 * @param min Lower left corner of the query window
+	 * @param max Upper right corner of the query window
+	 * @param condition Condition for deletion.
+	 * @return the number of removed entries
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	public int removeAll(double[] min, double[] max, Predicate<BoxEntry<T>> condition) {
+		checkWritable();
+		int sizeBefore = size;
+		ArrayList<RTreeEntry<T>>[] orphans = new ArrayList[depth];
+		root = removeAll(root, depth-1, min, max, false, condition, orphans);
+		root.setParent(null);
+		if (root.size() == 0 && root instanceof RTreeNodeDir) {
+			root = createLeaf();
+			root.setVersion(version);
+			depth = 1;
+		}
+		//reinsert higher levels first, they may be needed for the lower levels
+		for (int level = orphans.length-1; level >= 0; level--) {
+			if (orphans[level] != null) {
+				for (RTreeEntry<T> e : orphans[level]) {
+					if (level < depth) {
+						insertAtDepth(e, level);
+					} else {
+						//the tree has become too flat for the subtree
+						reinsertEntries(e);
+					}
+				}
+			}
+		}
+		while (root.size() == 1 && root instanceof RTreeNodeDir) {
+			depth--;
+			nNodes--;
+			root = (RTreeNode<T>) root.getEntry(0);
+			root.setParent(null);
+		}
+		return sizeBefore - size;
+	}
+
+	/**
+	 * @param node the node
+	 * @param level the level of the node, '0' for leaves
+	 * @param contained whether the node is known to lie inside the query window
+	 * @param orphans Output: entries of dissolved nodes, by level of the node
+	 * @return the node, a modified copy of the node, or 'null' if the node was removed
+	 */
+	private RTreeNode<T> removeAll(RTreeNode<T> node, int level, double[] min, double[] max, boolean contained,
+			Predicate<BoxEntry<T>> condition, ArrayList<RTreeEntry<T>>[] orphans) {
+		ArrayList<RTreeEntry<T>> kept = null;
+		if (node instanceof RTreeNodeLeaf) {
+			// Entry objects are only created for candidates and, once an entry is removed,
+			// for the entries that are moved to the rebuilt leaf.
+			RTreeNodeLeaf<T> leaf = (RTreeNodeLeaf<T>) node;
+			int n = leaf.size();
+			int next = contained ? 0 : leaf.findOverlap(0, min, max);
+			for (int i = 0; i < n; i++) {
+				RTreeEntry<T> e = null;
+				boolean remove = false;
+				if (i == next) {
+					e = leaf.getEntry(i);
+					remove = condition.test(e);
+					next = contained ? i + 1 : leaf.findOverlap(i + 1, min, max);
+				}
+				if (remove && kept == null) {
+					kept = new ArrayList<>(n);
+					for (int j = 0; j < i; j++) {
+						kept.add(leaf.getEntry(j));
+					}
+				} else if (!remove && kept != null) {
+					kept.add(e != null ? e : leaf.getEntry(i));
+				}
+			}
+			if (kept == null) {
+				return node;
+			}
+			size -= n - kept.size();
+		} else {
+			ArrayList<RTreeNode<T>> children = ((RTreeNodeDir<T>) node).getChildren();
+			for (int i = 0; i < children.size(); i++) {
+				RTreeNode<T> child = children.get(i);
+				RTreeNode<T> newChild = child;
+				int sizeBefore = size;
+				if (contained || RTreeEntry.checkOverlap(min, max, child)) {
+					boolean childContained = contained || RTreeEntry.calcIncludes(min, max, child.min(), child.max());
+					newChild = removeAll(child, level-1, min, max, childContained, condition, orphans);
+				}
+				boolean changed = newChild != child || size != sizeBefore;
+				if (changed && kept == null) {
+					kept = new ArrayList<>(children.subList(0, i));
+				}
+				if (kept != null && newChild != null) {
+					kept.add(newChild);
+				}
+			}
+			if (kept == null) {
+				return node;
+			}
+		}
+
+		boolean isRoot = level == depth-1;
+		if (kept.isEmpty() && !isRoot) {
+			nNodes--;
+			return null;
+		}
+		RTreeNode<T> writable = node.getVersion() == version ? node : node.copy(version);
+		writable.clear();
+		for (int i = 0; i < kept.size(); i++) {
+			writable.addEntry(kept.get(i));
+		}
+		if (!isRoot && isUnderfull(writable)) {
+			if (orphans[level] == null) {
+				orphans[level] = new ArrayList<>();
+			}
+			orphans[level].addAll(kept);
+			nNodes--;
+			metrics.count(IndexMetrics.Counter.NODE_MERGES, 1);
+			return null;
+		}
+		return writable;
+	}
+
+	/**
+	 * Insert all data entries of a subtree at the leaf level.
+	 */
+	private void reinsertEntries(RTreeEntry<T> e) {
+		if (e instanceof RTreeNode) {
+			nNodes--;
+			RTreeNode<T> node = (RTreeNode<T>) e;
+			for (int i = 0; i < node.size(); i++) {
+				reinsertEntries(node.getEntry(i));
+			}
+		} else {
+			insertAtDepth(e, 0);
+		}
 	}
 
 	/**
@@ -286,6 +739,17 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 		return findNodeEntry(min, max, (entry, node, posInNode) -> Objects.equals(value, entry.value())) != null;
 	}
 
+	boolean containsIf(double[] min, double[] max, Predicate<RTreeEntry<T>> condition) {
+		return findNodes(min, max, root, leaf -> {
+			for (int i = leaf.findExact(0, min, max); i >= 0; i = leaf.findExact(i + 1, min, max)) {
+				if (condition.test(leaf.getEntry(i))) {
+					return true;
+				}
+			}
+			return false;
+		});
+	}
+
 	private interface Matcher<T> {
 		boolean test(RTreeEntry<T> entry, RTreeNode<T> node, int posInNode);
 	}
@@ -296,12 +760,16 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 
 	// TODO either remove findNodeEntry() or remove findNodes()
 	//     --> test performance!
+	@SuppressWarnings("unchecked")
 	private T findNodeEntry(double[] min, double[] max, Matcher<T> matcher) {
 		int[] positions = new int[depth];
+		// Parent pointers may be outdated in snapshots, so we keep track of the path.
+		RTreeNode<T>[] path = new RTreeNode[depth];
 		int level = depth-1;
 		RTreeNode<T> node = root;
 		outer:
 		while (level < depth) {
+			path[level] = node;
 			int pos = positions[level];
 			if (node instanceof RTreeNodeDir) {
 				ArrayList<RTreeNode<T>> children = ((RTreeNodeDir<T>)node).getChildren();
@@ -316,21 +784,23 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 					}
 				}
 			} else {
-				ArrayList<RTreeEntry<T>> children = node.getEntries();
-				for (int i = 0; i < children.size(); i++) {
-					RTreeEntry<T> e = children.get(i);
-					if (e.checkExactMatch(min, max) && matcher.test(e, node, i)) {
+				RTreeNodeLeaf<T> leaf = (RTreeNodeLeaf<T>) node;
+				for (int i = leaf.findExact(0, min, max); i >= 0; i = leaf.findExact(i + 1, min, max)) {
+					RTreeEntry<T> e = leaf.getEntry(i);
+					if (matcher.test(e, node, i)) {
 						return e.value();
 					}
 				}
 			}
-			node = node.getParent();
 			level++;
+			node = level < depth ? path[level] : null;
 		}
 		return null;
 	}
 
 	void deleteFromNode(RTreeNode<T> node, int pos) {
+		checkWritable();
+		node = getWritable(node);
 		size--;
 		//this also adjusts parent MBBs
 		//Question: Should we adjust parent MBBs later if we have to remove the sub-node?
@@ -340,21 +810,22 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 		//TODO check inside 'removeEntry????'
 		node.removeEntry(pos);
 		int level = 0;
-		while (node != root && node.isUnderfull()) {
-			ArrayList<RTreeEntry<T>> entries = node.getEntries();
+		while (node != root && isUnderfull(node)) {
+			RTreeNode<T> dissolved = node;
 			RTreeNodeDir<T> parent = node.getParent();
 			parent.removeChildByIdentity(node);
 			node = parent;
 			nNodes--;
-			for (int i = 0; i < entries.size(); i++) {
-				insertAtDepth(entries.get(i), level);
+			metrics.count(IndexMetrics.Counter.NODE_MERGES, 1);
+			for (int i = 0; i < dissolved.size(); i++) {
+				insertAtDepth(dissolved.getEntry(i), level);
 			}
 			level++;
 		}
-		if (root.getEntries().size() == 1 && root instanceof RTreeNodeDir) {
+		if (root.size() == 1 && root instanceof RTreeNodeDir) {
 			depth--;
 			nNodes--;
-			root = (RTreeNode<T>) root.getEntries().get(0);
+			root = (RTreeNode<T>) root.getEntry(0);
 			root.setParent(null);
 		}
 	}
@@ -374,42 +845,24 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 		return false;
 	}
 
-	boolean deleteFromNode(RTreeNode<T> node, Predicate<RTreeEntry<T>> pred) {
-		//this also adjusts parent MBBs
-		//Question: Should we adjust parent MBBs later if we have to remove the sub-node?
-		//-> But later adjustment would skew with reinsertion, because the
-		//node may look bigger than it actually is.
-		//TODO no need to remove the entry (update the MBBs if we gonna remove the node...
-		//TODO check inside 'removeEntry????'
-		boolean found = false;
-		for (int i = 0; i < node.getEntries().size(); ++i) {
-			if (pred.test(node.getEntries().get(i))) {
-				node.removeEntry(i);
-				size--;
-				found = true;
-				break;
+	/**
+	 * Delete the first entry of the leaf that has exactly the given box and matches the predicate.
+	 * @return 'true' iff an entry was deleted
+	 */
+	private boolean deleteFromNode(RTreeNodeLeaf<T> leaf, double[] min, double[] max,
+			Predicate<RTreeEntry<T>> pred) {
+		for (int i = leaf.findExact(0, min, max); i >= 0; i = leaf.findExact(i + 1, min, max)) {
+			if (pred.test(leaf.getEntry(i))) {
+				deleteFromNode(leaf, i);
+				return true;
 			}
 		}
+		return false;
+	}
 
-		int level = 0;
-		while (node != root && node.isUnderfull()) {
-			ArrayList<RTreeEntry<T>> entries = node.getEntries();
-			RTreeNodeDir<T> parent = node.getParent();
-			parent.removeChildByIdentity(node);
-			node = parent;
-			nNodes--;
-			for (int i = 0; i < entries.size(); i++) {
-				insertAtDepth(entries.get(i), level);
-			}
-			level++;
-		}
-		if (root.getEntries().size() == 1 && root instanceof RTreeNodeDir) {
-			depth--;
-			nNodes--;
-			root = (RTreeNode<T>) root.getEntries().get(0);
-			root.setParent(null);
-		}
-		return found;
+	private boolean isUnderfull(RTreeNode<T> node) {
+		int min = node instanceof RTreeNodeLeaf ? nodeMinData : nodeMinDir;
+		return node.size() < min;
 	}
 
 	/* (non-Javadoc)
@@ -469,6 +922,39 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 		return new RTreeQueryKnn<>(this, k, center, dist, (e, d) -> true);
 	}
 
+	/**
+	 * Filtered kNN query, the filter is applied during the traversal.
+	 * @see BoxMultimap#queryKnn(double[], int, BoxDistance, BoxFilterKnn)
+	 */
+	@Override
+	public RTreeQueryKnn<T> queryKnn(double[] center, int k, BoxDistance distFn, BoxFilterKnn<T> filterFn) {
+		return new RTreeQueryKnn<>(this, k, center, distFn, filterFn);
+	}
+
+	/**
+	 * Spatial join with another R-Tree. Both trees are traversed together, see {@link RTreeJoin}.
+	 * <p>
+	 * The consumer receives every pair of entries whose Euclidean distance is at most 'maxDist'.
+	 * With 'maxDist=0' these are the pairs of intersecting (or touching) boxes.
+	 * In parallel mode, the consumer is called concurrently from several threads.
+	 * The trees must not be modified during the join.
+	 * @param other The other tree
+	 * @param maxDist Maximum distance of the pairs
+	 * @param consumer Receives the pairs, the first entry is from this tree
+	 * @param parallel Whether to use the common ForkJoinPool
+	 * @param <S> Value type of the other tree
+	 */
+	public <S> void join(RTree<S> other, double maxDist,
+			BiConsumer<BoxEntry<T>, BoxEntry<S>> consumer, boolean parallel) {
+		if (maxDist < 0) {
+			throw new IllegalArgumentException("maxDist must not be negative: " + maxDist);
+		}
+		if (other.getDims() != dims) {
+			throw new IllegalArgumentException("Dimensionality mismatch: " + dims + " vs " + other.getDims());
+		}
+		RTreeJoin.join(root, other.getRoot(), maxDist, consumer, parallel);
+	}
+
 	public Iterable<BoxEntryKnn<T>> queryRangedNearestNeighbor(
 			double[] center, BoxDistance dist,
 			BoxDistance closestDist, double[] minBound, double[] maxBound) {
@@ -510,9 +996,8 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 		sb.appendLn(pre + "L=" + level + " " + node.toString() +
 				";P=" + System.identityHashCode(node.getParent()));
 		
-		ArrayList<RTreeEntry<T>> entries = node.getEntries();
-		for (int i = 0; i < entries.size(); i++) {
-			RTreeEntry<T> e = entries.get(i);
+		for (int i = 0; i < node.size(); i++) {
+			RTreeEntry<T> e = node.getEntry(i);
 			if (e instanceof RTreeNode) {
 				toStringTree(sb, (RTreeNode<T>) e, level-1);
 			} else {
@@ -523,10 +1008,26 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 
 	public static class RTreeStats extends Stats {
 		RTreeStats(RTree<?> tree) {
-			super(tree.nDist1NN + tree.nDistKNN, tree.nDist1NN, tree.nDistKNN);
+			super(tree.nDist1NN.sum() + tree.nDistKNN.sum(), tree.nDist1NN.sum(), tree.nDistKNN.sum());
 			minLevel = 0;
 			maxLevel = tree.depth;
 		}
+
+		/** Sum of the pairwise overlap volumes of the children of each directory node. */
+		public double nodeOverlap;
+
+		/**
+		 * @return the sum of the pairwise overlap volumes of sibling nodes. Lower values mean that
+		 * 		fewer nodes need to be visited by queries.
+		 */
+		public double getNodeOverlap() {
+			return nodeOverlap;
+		}
+
+		@Override
+		public String toString() {
+			return super.toString() + ";nodeOverlap=" + nodeOverlap;
+		}
 	}
 	
 	/* (non-Javadoc)
@@ -558,29 +1059,33 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 			throw new IllegalStateException();
 		}
 		
-		ArrayList<RTreeEntry<T>> entries = node.getEntries();
-		for (int i = 0; i < entries.size(); i++) {
-			RTreeEntry<T> e = entries.get(i);
+		final int n = node.size();
+		for (int i = 0; i < n; i++) {
+			RTreeEntry<T> e = node.getEntry(i);
 			if (!node.checkInclusion(e.min(), e.max())) {
 				throw new IllegalStateException();
 			}
 			if (e instanceof RTreeNode) {
+				for (int j = i + 1; j < n; j++) {
+					RTreeEntry<T> e2 = node.getEntry(j);
+					stats.nodeOverlap += RTreeEntry.calcOverlap(e.min(), e.max(), e2.min(), e2.max());
+				}
 				getStats(stats, (RTreeNode<T>) e, level-1);
 			} else {
 				stats.nEntries++;
 			}
 		}
 
-		if (node instanceof RTreeNodeLeaf && node != root && entries.size() < NODE_MIN_DATA) {
+		if (node instanceof RTreeNodeLeaf && node != root && n < nodeMinData) {
 			throw new IllegalStateException();
 		}
-		if (node instanceof RTreeNodeLeaf && entries.size() > NODE_MAX_DATA) {
+		if (node instanceof RTreeNodeLeaf && n > nodeMaxData) {
 			throw new IllegalStateException();
 		}
-		if (node instanceof RTreeNodeDir && node != root && entries.size() < NODE_MIN_DIR) {
+		if (node instanceof RTreeNodeDir && node != root && n < nodeMinDir) {
 			throw new IllegalStateException();
 		}
-		if (node instanceof RTreeNodeDir && entries.size() > NODE_MAX_DIR) {
+		if (node instanceof RTreeNodeDir && n > nodeMaxDir) {
 			throw new IllegalStateException();
 		}
 
@@ -619,21 +1124,49 @@ public class RTree<T> implements BoxMap<T>, BoxMultimap<T> {
 	protected RTreeNode<T> getRoot() {
 		return root;
 	}
+
+	/**
+	 * @return Maximum number of children of directory nodes.
+	 */
+	public int getNodeMaxDir() {
+		return nodeMaxDir;
+	}
+
+	/**
+	 * @return Maximum number of entries of leaf nodes.
+	 */
+	public int getNodeMaxData() {
+		return nodeMaxData;
+	}
 	
 	@Override
 	public String toString() {
 		return "RTreeZ;" + logic.getClass().getSimpleName() +
 				";size=" + size + ";nNodes=" + nNodes +
 				";DEBUG=" + DEBUG +
-				";dir_m/M=" + NODE_MIN_DIR + "/" + NODE_MAX_DIR +
-				";data_m/M=" + NODE_MIN_DATA + "/" + NODE_MAX_DATA;
+				";dir_m/M=" + nodeMinDir + "/" + nodeMaxDir +
+				";data_m/M=" + nodeMinData + "/" + nodeMaxData;
 	}
 
 	void incNDist1NN() {
-		nDist1NN++;		
+		nDist1NN.increment();
 	}
 
 	void incNDistKNN() {
-		nDistKNN++;
+		nDistKNN.increment();
+	}
+
+	/**
+	 * Reports node splits, underfull nodes that are dissolved (as merges), forced reinserts, root growth,
+	 * and node visits and scanned entries of window queries and kNN queries.
+	 * @param metrics the receiver
+	 */
+	@Override
+	public void setMetrics(IndexMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	IndexMetrics getMetrics() {
+		return metrics;
 	}
 }
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ */
+package org.tinspin.index.rtree;
+
+/**
+ * Data entry of the {@link RTreeLong}. The value is kept as {@code long}, {@link #value()} boxes it.
+ */
+final class RTreeEntryLong extends RTreeEntry<Long> {
+
+	private final long value;
+
+	RTreeEntryLong(double[] min, double[] max, long value) {
+		super(min, max, null);
+		this.value = value;
+	}
+
+	long longValue() {
+		return value;
+	}
+
+	@Override
+	public Long value() {
+		return value;
+	}
+}
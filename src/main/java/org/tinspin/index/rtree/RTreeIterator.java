@@ -16,10 +16,11 @@
  */
 package org.tinspin.index.rtree;
 
+import org.tinspin.index.IndexMetrics;
+import org.tinspin.index.IndexMetrics.Counter;
+
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.NoSuchElementException;
-import java.util.function.Predicate;
 
 import static org.tinspin.index.Index.*;
 
@@ -46,6 +47,11 @@ public class RTreeIterator<T> implements BoxIterator<T> {
 			}
 			
 			ni.init(node);
+			IndexMetrics metrics = tree.getMetrics();
+			metrics.count(Counter.NODE_VISITS, 1);
+			if (node instanceof RTreeNodeLeaf) {
+				metrics.count(Counter.ENTRIES_SCANNED, node.size());
+			}
 		}
 
 		IterPos<T> peek() {
@@ -62,8 +68,14 @@ public class RTreeIterator<T> implements BoxIterator<T> {
 	private double[] max;
 	private IteratorStack stack;
 	private boolean hasNext = true;
-	private RTreeEntry<T> next;
-	private final Predicate<RTreeEntry<T>> filter;
+	// The next entry is materialized only by next()
+	private RTreeNodeLeaf<T> nextLeaf;
+	private int nextPos;
+	// The entry that was returned last by nextPosition()
+	private RTreeNodeLeaf<T> currentLeaf;
+	private int currentPos;
+	// 'true' for exact match queries, 'false' for intersection queries
+	private final boolean exactMatch;
 	
 	private static class IterPos<T> {
 		private RTreeNode<T> node;
@@ -76,22 +88,18 @@ public class RTreeIterator<T> implements BoxIterator<T> {
 	}
 
 	public RTreeIterator(RTree<T> tree, double[] min, double[] max) {
-		this.stack = new IteratorStack(tree.getDepth());
-		this.tree = tree;
 		// Default: intersection query
-		this.filter = (RTreeEntry<T> entry)-> RTreeEntry.checkOverlap(this.min, this.max, entry);
-		reset(min, max);
+		this(tree, min, max, false);
 	}
 
 	public static <T> RTreeIterator<T> createExactMatch(RTree<T> tree, double[] min, double[] max) {
-		return new RTreeIterator<>(tree, min, max, e -> e instanceof RTreeNode ? RTreeEntry.checkOverlap(min, max, e) :
-				Arrays.equals(min, e.min()) && Arrays.equals(max, e.max()));
+		return new RTreeIterator<>(tree, min, max, true);
 	}
 
-	private RTreeIterator(RTree<T> tree, double[] min, double[] max, Predicate<RTreeEntry<T>> filter) {
+	private RTreeIterator(RTree<T> tree, double[] min, double[] max, boolean exactMatch) {
 		this.stack = new IteratorStack(tree.getDepth());
 		this.tree = tree;
-		this.filter = filter;
+		this.exactMatch = exactMatch;
 		reset(min, max);
 	}
 
@@ -105,6 +113,7 @@ public class RTreeIterator<T> implements BoxIterator<T> {
 		this.min = min;
 		this.max = max;
 		this.hasNext = true;
+		this.currentLeaf = null;
 		
 		if (!RTreeEntry.checkOverlap(min, max, tree.getRoot())) {
 			hasNext = false;
@@ -119,18 +128,26 @@ public class RTreeIterator<T> implements BoxIterator<T> {
 		nextSub:
 		while (!stack.isEmpty()) {
 			IterPos<T> ip = stack.peek();
-			ArrayList<RTreeEntry<T>> entries = ip.node.getEntries();
-			while (ip.pos < entries.size()) {
-				RTreeEntry<T> e = entries.get(ip.pos);
+			if (ip.node instanceof RTreeNodeLeaf) {
+				// scan the packed boxes of the leaf
+				RTreeNodeLeaf<T> leaf = (RTreeNodeLeaf<T>) ip.node;
+				int pos = exactMatch ? leaf.findExact(ip.pos, min, max) : leaf.findOverlap(ip.pos, min, max);
+				if (pos >= 0) {
+					ip.pos = pos + 1;
+					nextLeaf = leaf;
+					nextPos = pos;
+					return;
+				}
+				stack.pop();
+				continue;
+			}
+			ArrayList<RTreeNode<T>> children = ((RTreeNodeDir<T>) ip.node).getChildren();
+			while (ip.pos < children.size()) {
+				RTreeNode<T> e = children.get(ip.pos);
 				ip.pos++;
-				if (filter.test(e)) {
-					if (e instanceof RTreeNode) {
-						stack.prepareAndPush((RTreeNode<T>) e);
-						continue nextSub;
-					} else {
-						next = e;
-						return;
-					}
+				if (RTreeEntry.checkOverlap(min, max, e)) {
+					stack.prepareAndPush(e);
+					continue nextSub;
 				}
 			}
 			stack.pop();
@@ -148,9 +165,36 @@ public class RTreeIterator<T> implements BoxIterator<T> {
 		if (!hasNext()) {
 			throw new NoSuchElementException();
 		}
-		RTreeEntry<T> ret = next;
+		RTreeEntry<T> ret = nextLeaf.getEntry(nextPos);
 		findNext();
 		return ret;
 	}
+
+	/**
+	 * Advance to the next entry without creating an entry object. The entry can be read
+	 * with {@link #currentLeaf()} and {@link #currentPos()}.
+	 */
+	void nextPosition() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		currentLeaf = nextLeaf;
+		currentPos = nextPos;
+		findNext();
+	}
+
+	/**
+	 * @return the leaf of the entry that was returned by the last call to {@link #nextPosition()}
+	 */
+	RTreeNodeLeaf<T> currentLeaf() {
+		return currentLeaf;
+	}
+
+	/**
+	 * @return the position of the entry that was returned by the last call to {@link #nextPosition()}
+	 */
+	int currentPos() {
+		return currentPos;
+	}
 	
 }
\ No newline at end of file
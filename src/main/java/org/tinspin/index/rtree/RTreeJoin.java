@@ -0,0 +1,244 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.rtree;
+
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+
+import static org.tinspin.index.Index.BoxEntry;
+
+/**
+ * Spatial join of two R-Trees by synchronized traversal, see
+ * "Efficient Processing of Spatial Joins Using R-trees", Thomas Brinkhoff, Hans-Peter Kriegel
+ * and Bernhard Seeger, 1993.
+ * <p>
+ * Starting with the two roots, the children of pairs of nodes are paired if their distance is
+ * at most 'maxDist'. Before pairing, the children of each node are restricted to those that are
+ * close enough to the other node. The trees may have different depths, if a data entry is paired
+ * with a node, only the node is descended. Entry objects for data entries are only created for
+ * the entries of a leaf that are close to the other node.
+ * <p>
+ * In parallel mode, node pairs are expanded level by level until there are enough pairs for
+ * all threads of the common {@link ForkJoinPool}, then the pairs are joined in parallel.
+ *
+ * @param <A> value type of the first tree
+ * @param <B> value type of the second tree
+ */
+final class RTreeJoin<A, B> {
+
+	/** In parallel mode, node pairs are expanded until there are this many pairs per thread. */
+	private static final int PAIRS_PER_THREAD = 16;
+
+	private final double maxDistSq;
+	private final BiConsumer<BoxEntry<A>, BoxEntry<B>> consumer;
+
+	private RTreeJoin(double maxDist, BiConsumer<BoxEntry<A>, BoxEntry<B>> consumer) {
+		this.maxDistSq = maxDist * maxDist;
+		this.consumer = consumer;
+	}
+
+	/**
+	 * @param rootA root of the first tree
+	 * @param rootB root of the second tree
+	 * @param maxDist maximum distance of the pairs, '0' for intersecting pairs
+	 * @param consumer receives the pairs, in parallel mode from several threads
+	 * @param parallel whether to join the node pairs in parallel
+	 */
+	static <A, B> void join(RTreeNode<A> rootA, RTreeNode<B> rootB, double maxDist,
+			BiConsumer<BoxEntry<A>, BoxEntry<B>> consumer, boolean parallel) {
+		RTreeJoin<A, B> join = new RTreeJoin<>(maxDist, consumer);
+		if (rootA.size() == 0 || rootB.size() == 0 || !join.isClose(rootA, rootB)) {
+			return;
+		}
+		if (!parallel) {
+			join.join(rootA, rootB);
+			return;
+		}
+
+		ArrayList<RTreeEntry<A>> pairsA = new ArrayList<>();
+		ArrayList<RTreeEntry<B>> pairsB = new ArrayList<>();
+		pairsA.add(rootA);
+		pairsB.add(rootB);
+		int minPairs = PAIRS_PER_THREAD * ForkJoinPool.getCommonPoolParallelism();
+		boolean expanded = true;
+		while (pairsA.size() < minPairs && expanded) {
+			ArrayList<RTreeEntry<A>> nextA = new ArrayList<>();
+			ArrayList<RTreeEntry<B>> nextB = new ArrayList<>();
+			expanded = false;
+			for (int i = 0; i < pairsA.size(); i++) {
+				RTreeEntry<A> a = pairsA.get(i);
+				RTreeEntry<B> b = pairsB.get(i);
+				if (a instanceof RTreeNode || b instanceof RTreeNode) {
+					join.expand(a, b, nextA, nextB);
+					expanded = true;
+				} else {
+					nextA.add(a);
+					nextB.add(b);
+				}
+			}
+			pairsA = nextA;
+			pairsB = nextB;
+		}
+		ArrayList<RTreeEntry<A>> finalA = pairsA;
+		ArrayList<RTreeEntry<B>> finalB = pairsB;
+		IntStream.range(0, finalA.size()).parallel().forEach(i -> join.join(finalA.get(i), finalB.get(i)));
+	}
+
+	/**
+	 * Join two entries, at least one of them is a node. The entries must be close.
+	 */
+	private void join(RTreeEntry<A> a, RTreeEntry<B> b) {
+		boolean isNodeA = a instanceof RTreeNode;
+		boolean isNodeB = b instanceof RTreeNode;
+		if (isNodeA && isNodeB) {
+			//restrict the search space to children that are close to the other node
+			ArrayList<RTreeEntry<B>> childrenB = closeChildren((RTreeNode<B>) b, a);
+			if (childrenB.isEmpty()) {
+				return;
+			}
+			ArrayList<RTreeEntry<A>> childrenA = closeChildren((RTreeNode<A>) a, b);
+			for (int i = 0; i < childrenA.size(); i++) {
+				RTreeEntry<A> childA = childrenA.get(i);
+				for (int j = 0; j < childrenB.size(); j++) {
+					RTreeEntry<B> childB = childrenB.get(j);
+					if (isClose(childA, childB)) {
+						joinOrEmit(childA, childB);
+					}
+				}
+			}
+		} else if (isNodeA) {
+			ArrayList<RTreeEntry<A>> childrenA = closeChildren((RTreeNode<A>) a, b);
+			for (int i = 0; i < childrenA.size(); i++) {
+				joinOrEmit(childrenA.get(i), b);
+			}
+		} else if (isNodeB) {
+			ArrayList<RTreeEntry<B>> childrenB = closeChildren((RTreeNode<B>) b, a);
+			for (int j = 0; j < childrenB.size(); j++) {
+				joinOrEmit(a, childrenB.get(j));
+			}
+		} else {
+			consumer.accept(a, b);
+		}
+	}
+
+	private void joinOrEmit(RTreeEntry<A> a, RTreeEntry<B> b) {
+		if (a instanceof RTreeNode || b instanceof RTreeNode) {
+			join(a, b);
+		} else {
+			consumer.accept(a, b);
+		}
+	}
+
+	/**
+	 * Collect the close pairs of children of two entries, at least one of them is a node.
+	 */
+	private void expand(RTreeEntry<A> a, RTreeEntry<B> b,
+			ArrayList<RTreeEntry<A>> outA, ArrayList<RTreeEntry<B>> outB) {
+		ArrayList<RTreeEntry<A>> childrenA = children(a, b);
+		ArrayList<RTreeEntry<B>> childrenB = children(b, a);
+		for (int i = 0; i < childrenA.size(); i++) {
+			RTreeEntry<A> childA = childrenA.get(i);
+			for (int j = 0; j < childrenB.size(); j++) {
+				RTreeEntry<B> childB = childrenB.get(j);
+				if (isClose(childA, childB)) {
+					outA.add(childA);
+					outB.add(childB);
+				}
+			}
+		}
+	}
+
+	private <T> ArrayList<RTreeEntry<T>> children(RTreeEntry<T> e, BoxEntry<?> other) {
+		if (e instanceof RTreeNode) {
+			return closeChildren((RTreeNode<T>) e, other);
+		}
+		ArrayList<RTreeEntry<T>> list = new ArrayList<>(1);
+		list.add(e);
+		return list;
+	}
+
+	/**
+	 * @return the children of the node that are close to 'other'
+	 */
+	private <T> ArrayList<RTreeEntry<T>> closeChildren(RTreeNode<T> node, BoxEntry<?> other) {
+		ArrayList<RTreeEntry<T>> list = new ArrayList<>();
+		if (node instanceof RTreeNodeDir) {
+			ArrayList<RTreeNode<T>> children = ((RTreeNodeDir<T>) node).getChildren();
+			for (int i = 0; i < children.size(); i++) {
+				if (isClose(children.get(i), other)) {
+					list.add(children.get(i));
+				}
+			}
+			return list;
+		}
+		RTreeNodeLeaf<T> leaf = (RTreeNodeLeaf<T>) node;
+		double[] boxes = leaf.getBoxes();
+		int dims = other.min().length;
+		for (int i = 0; i < leaf.size(); i++) {
+			if (isClose(boxes, i * 2 * dims, other)) {
+				list.add(leaf.getEntry(i));
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * @return 'true' if the Euclidean distance between the two boxes is at most 'maxDist'
+	 */
+	private boolean isClose(BoxEntry<?> a, BoxEntry<?> b) {
+		double[] minA = a.min();
+		double[] maxA = a.max();
+		double[] minB = b.min();
+		double[] maxB = b.max();
+		double distSq = 0;
+		for (int d = 0; d < minA.length; d++) {
+			double gap = Math.max(minA[d] - maxB[d], minB[d] - maxA[d]);
+			if (gap > 0) {
+				distSq += gap * gap;
+				if (distSq > maxDistSq) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @param boxes packed boxes, see {@link RTreeNodeLeaf}
+	 * @param offs position of the box, 'min' is followed by 'max'
+	 * @return 'true' if the Euclidean distance between the two boxes is at most 'maxDist'
+	 */
+	private boolean isClose(double[] boxes, int offs, BoxEntry<?> b) {
+		double[] minB = b.min();
+		double[] maxB = b.max();
+		int dims = minB.length;
+		double distSq = 0;
+		for (int d = 0; d < dims; d++) {
+			double gap = Math.max(boxes[offs + d] - maxB[d], minB[d] - boxes[offs + dims + d]);
+			if (gap > 0) {
+				distSq += gap * gap;
+				if (distSq > maxDistSq) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+}
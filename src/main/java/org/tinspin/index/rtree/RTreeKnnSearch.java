@@ -0,0 +1,186 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ */
+package org.tinspin.index.rtree;
+
+import org.tinspin.index.BoxDistance;
+import org.tinspin.index.IndexMetrics.Counter;
+import org.tinspin.index.util.MinHeap;
+import org.tinspin.index.util.MinMaxHeap;
+
+import java.util.NoSuchElementException;
+
+/**
+ * kNN search of the {@link RTreeQueryKnn} and the {@link RTreeLong}. The candidates reference
+ * the entries by leaf and position, subclasses convert them to results.
+ *
+ * @param <T> Value type
+ */
+abstract class RTreeKnnSearch<T> {
+
+    final RTree<T> tree;
+    private final BoxDistance distFn;
+    private final MinHeap<NodeDistT> queueN = MinHeap.create((t1, t2) -> t1.dist < t2.dist);
+    private final MinMaxHeap<Candidate<T>> queueV = MinMaxHeap.create((t1, t2) -> t1.dist < t2.dist);
+    private double maxNodeDist = Double.POSITIVE_INFINITY;
+    private Candidate<T> current;
+    // candidate that was dropped from queueV, it is reused for the next candidate
+    private Candidate<T> spare;
+    private int remaining;
+    private double[] center;
+    // Reused for the leaf entries that are passed to the distance function and the filter
+    final RTreeEntry<T> buf;
+
+    RTreeKnnSearch(RTree<T> tree, BoxDistance distFn) {
+        this.tree = tree;
+        this.distFn = distFn;
+        this.buf = new RTreeEntry<>(new double[tree.getDims()], new double[tree.getDims()], null);
+    }
+
+    /**
+     * @param leaf the leaf that contains the entry
+     * @param pos  the position of the entry, its box is also stored in {@link #buf}
+     * @param dist the distance of the entry
+     * @return 'true' if the entry should be returned
+     */
+    abstract boolean accept(RTreeNodeLeaf<T> leaf, int pos, double dist);
+
+    void search(double[] center, int minResults) {
+        this.center = center;
+        this.remaining = minResults;
+        this.maxNodeDist = Double.POSITIVE_INFINITY;
+        this.current = null;
+        if (minResults <= 0 || tree.getRoot() == null) {
+            return;
+        }
+        queueN.clear();
+        queueV.clear();
+
+        queueN.push(new NodeDistT(0, tree.getRoot()));
+        findNextElement();
+    }
+
+    public boolean hasNext() {
+        return current != null;
+    }
+
+    /**
+     * @return the next result, it remains valid until the next call to this method
+     */
+    Candidate<T> nextCandidate() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Candidate<T> ret = current;
+        findNextElement();
+        return ret;
+    }
+
+    /**
+     * @return the distance of the next result
+     */
+    public double distance() {
+        return current == null ? Double.MAX_VALUE : current.dist;
+    }
+
+    private void findNextElement() {
+        while (remaining > 0 && !(queueN.isEmpty() && queueV.isEmpty())) {
+            boolean useV = !queueV.isEmpty();
+            if (useV && !queueN.isEmpty()) {
+                useV = queueV.peekMin().dist <= queueN.peekMin().dist;
+            }
+            if (useV) {
+                // data entry
+                current = queueV.peekMin();
+                queueV.popMin();
+                --remaining;
+                return;
+            } else {
+                // inner node
+                NodeDistT top = queueN.peekMin();
+                queueN.popMin();
+                RTreeNode<T> node = top.node;
+                double dNode = top.dist;
+
+                if (dNode > maxNodeDist && queueV.size() >= remaining) {
+                    // ignore this node
+                    continue;
+                }
+                tree.getMetrics().count(Counter.NODE_VISITS, 1);
+
+                if (node instanceof RTreeNodeLeaf) {
+                    processLeaf((RTreeNodeLeaf<T>) node);
+                } else {
+                    for (RTreeNode<T> subnode : ((RTreeNodeDir<T>) node).getChildren()) {
+                        double dist = distFn.dist(center, subnode);
+                        if (dist <= maxNodeDist) {
+                            queueN.push(new NodeDistT(dist, subnode));
+                        }
+                    }
+                }
+            }
+        }
+        current = null;
+    }
+
+    private void processLeaf(RTreeNodeLeaf<T> leaf) {
+        tree.getMetrics().count(Counter.ENTRIES_SCANNED, leaf.size());
+        double[] boxes = leaf.getBoxes();
+        double[] min = buf.min();
+        double[] max = buf.max();
+        int dims = min.length;
+        for (int i = 0; i < leaf.size(); i++) {
+            System.arraycopy(boxes, i * 2 * dims, min, 0, dims);
+            System.arraycopy(boxes, i * 2 * dims + dims, max, 0, dims);
+            double d = distFn.dist(center, buf);
+            if (accept(leaf, i, d)) {
+                // Using '<=' allows dealing with infinite distances.
+                if (d <= maxNodeDist) {
+                    Candidate<T> c = spare != null ? spare : new Candidate<>();
+                    spare = null;
+                    c.leaf = leaf;
+                    c.pos = i;
+                    c.dist = d;
+                    queueV.push(c);
+                    if (queueV.size() >= remaining) {
+                        if (queueV.size() > remaining) {
+                            spare = queueV.peekMax();
+                            queueV.popMax();
+                        }
+                        double dMax = queueV.peekMax().dist;
+                        maxNodeDist = Math.min(maxNodeDist, dMax);
+                    }
+                }
+            }
+        }
+    }
+
+    static final class Candidate<T> {
+        RTreeNodeLeaf<T> leaf;
+        int pos;
+        double dist;
+    }
+
+    private class NodeDistT {
+        double dist;
+        RTreeNode<T> node;
+
+        public NodeDistT(double dist, RTreeNode<T> node) {
+            this.dist = dist;
+            this.node = node;
+        }
+    }
+}
@@ -16,6 +16,17 @@
  */
 package org.tinspin.index.rtree;
 
+/**
+ * Insertion logic of an R-Tree: choosing the node for a new entry and treating overflowing nodes.
+ * Every tree has its own instance, see {@link org.tinspin.index.IndexConfig#setRTreeVariant}.
+ * <p>
+ * Implementations:
+ * <ul>
+ * <li>{@link RStarTreeLogic}: R*Tree with forced reinsertion</li>
+ * <li>{@link RRStarTreeLogic}: Revised R*Tree (RR*Tree)</li>
+ * <li>{@link QuadraticTreeLogic} and {@link LinearTreeLogic}: Guttman's original R-Tree splits</li>
+ * </ul>
+ */
 public interface RTreeLogic {
 
 	<T> RTreeNode<T> chooseSubTree(RTreeNode<T> root, RTreeEntry<T> e,
@@ -27,4 +38,10 @@ public interface RTreeLogic {
 
 	<T> RTreeEntry<T>[] reInsert(RTreeNode<T> node, RTreeEntry<T> e);
 
+	/**
+	 * @return 'true' if an overflowing node should first be treated with {@link #reInsert},
+	 * 'false' if it should always be split.
+	 */
+	boolean isReInsertEnabled();
+
 }
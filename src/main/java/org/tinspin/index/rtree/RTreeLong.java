@@ -0,0 +1,283 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ */
+package org.tinspin.index.rtree;
+
+import org.tinspin.index.*;
+import org.tinspin.index.PointMultimapLong.LongFilterKnn;
+
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+
+/**
+ * An R-Tree with primitive {@code long} values, see {@link BoxMultimapLong}.
+ * <p>
+ * This uses the same tree logic as the {@link RTree}, but the leaves store the values in a
+ * {@code long[]} instead of an {@code Object[]}. The iterators read the boxes and values
+ * directly from the leaves.
+ */
+public class RTreeLong implements BoxMultimapLong {
+
+	private final RTree<Long> tree;
+
+	private RTreeLong(IndexConfig config) {
+		this.tree = new RTree<>(config, true);
+	}
+
+	/**
+	 * Create an R-Tree. The insertion and split strategy is selected with
+	 * {@link IndexConfig#setRTreeVariant(IndexConfig.RTreeVariant)}, the default is an R*Tree.
+	 * @param config configuration, e.g. dimensionality, node sizes and variant
+	 * @return New R-Tree
+	 */
+	public static RTreeLong create(IndexConfig config) {
+		return new RTreeLong(config);
+	}
+
+	/**
+	 * Insert a box. The box is copied.
+	 * @param min min
+	 * @param max max
+	 * @param value value
+	 */
+	@Override
+	public void insert(double[] min, double[] max, long value) {
+		tree.insert(new RTreeEntryLong(min, max, value));
+	}
+
+	@Override
+	public boolean remove(double[] min, double[] max, long value) {
+		return removeIf(min, max, v -> v == value);
+	}
+
+	@Override
+	public boolean removeIf(double[] min, double[] max, LongPredicate condition) {
+		return tree.removeIf(min, max, e -> condition.test(((RTreeEntryLong) e).longValue()));
+	}
+
+	@Override
+	public boolean update(double[] minOld, double[] maxOld, double[] minNew, double[] maxNew, long value) {
+		if (remove(minOld, maxOld, value)) {
+			insert(minNew, maxNew, value);
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public boolean contains(double[] min, double[] max, long value) {
+		return tree.containsIf(min, max, e -> ((RTreeEntryLong) e).longValue() == value);
+	}
+
+	@Override
+	public RTreeLongIterator queryExactBox(double[] min, double[] max) {
+		return new RTreeLongIterator(RTreeIterator.createExactMatch(tree, min, max));
+	}
+
+	@Override
+	public RTreeLongIterator iterator() {
+		double[] min = new double[getDims()];
+		double[] max = new double[getDims()];
+		Arrays.fill(min, Double.NEGATIVE_INFINITY);
+		Arrays.fill(max, Double.POSITIVE_INFINITY);
+		return queryIntersect(min, max);
+	}
+
+	@Override
+	public RTreeLongIterator queryIntersect(double[] min, double[] max) {
+		return new RTreeLongIterator(new RTreeIterator<>(tree, min, max));
+	}
+
+	@Override
+	public RTreeLongIteratorKnn queryKnn(double[] center, int k) {
+		return queryKnn(center, k, BoxDistance.EDGE);
+	}
+
+	@Override
+	public RTreeLongIteratorKnn queryKnn(double[] center, int k, BoxDistance distFn) {
+		return new RTreeLongIteratorKnn(tree, k, center, distFn, null);
+	}
+
+	/**
+	 * Filtered kNN query, the filter is applied during the traversal.
+	 */
+	@Override
+	public RTreeLongIteratorKnn queryKnn(double[] center, int k, BoxDistance distFn, LongFilterKnn filterFn) {
+		return new RTreeLongIteratorKnn(tree, k, center, distFn, filterFn);
+	}
+
+	/**
+	 * Window query iterator. It reads the entries directly from the leaves.
+	 */
+	public static class RTreeLongIterator implements BoxIteratorLong {
+
+		private final RTreeIterator<Long> it;
+
+		RTreeLongIterator(RTreeIterator<Long> it) {
+			this.it = it;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return it.hasNext();
+		}
+
+		@Override
+		public long nextLong() {
+			it.nextPosition();
+			return it.currentLeaf().getLongValue(it.currentPos());
+		}
+
+		@Override
+		public double[] min(double[] buf) {
+			return copyBox(it.currentLeaf(), it.currentPos(), 0, buf);
+		}
+
+		@Override
+		public double[] max(double[] buf) {
+			return copyBox(it.currentLeaf(), it.currentPos(), 1, buf);
+		}
+
+		@Override
+		public RTreeLongIterator reset(double[] min, double[] max) {
+			it.reset(min, max);
+			return this;
+		}
+	}
+
+	/**
+	 * kNN iterator. It reads the entries directly from the leaves.
+	 */
+	public static class RTreeLongIteratorKnn extends RTreeKnnSearch<Long> implements BoxIteratorKnnLong {
+
+		// 'null' for unfiltered queries
+		private final LongFilterKnn filterFn;
+		private Candidate<Long> current;
+
+		RTreeLongIteratorKnn(RTree<Long> tree, int k, double[] center, BoxDistance distFn, LongFilterKnn filterFn) {
+			super(tree, distFn);
+			this.filterFn = filterFn;
+			reset(center, k);
+		}
+
+		@Override
+		boolean accept(RTreeNodeLeaf<Long> leaf, int pos, double dist) {
+			return filterFn == null || filterFn.test(leaf.getLongValue(pos), dist);
+		}
+
+		@Override
+		public long nextLong() {
+			current = nextCandidate();
+			return current.leaf.getLongValue(current.pos);
+		}
+
+		@Override
+		public double[] min(double[] buf) {
+			checkCurrent();
+			return copyBox(current.leaf, current.pos, 0, buf);
+		}
+
+		@Override
+		public double[] max(double[] buf) {
+			checkCurrent();
+			return copyBox(current.leaf, current.pos, 1, buf);
+		}
+
+		@Override
+		public double dist() {
+			checkCurrent();
+			return current.dist;
+		}
+
+		private void checkCurrent() {
+			if (current == null) {
+				throw new IllegalStateException("next() has not been called");
+			}
+		}
+
+		@Override
+		public RTreeLongIteratorKnn reset(double[] center, int k) {
+			search(center, k);
+			current = null;
+			return this;
+		}
+	}
+
+	/**
+	 * @param corner '0' for 'min', '1' for 'max'
+	 */
+	private static double[] copyBox(RTreeNodeLeaf<Long> leaf, int pos, int corner, double[] buf) {
+		if (leaf == null) {
+			throw new IllegalStateException("next() has not been called");
+		}
+		int dims = leaf.min().length;
+		if (buf == null) {
+			buf = new double[dims];
+		}
+		System.arraycopy(leaf.getBoxes(), (2 * pos + corner) * dims, buf, 0, dims);
+		return buf;
+	}
+
+	@Override
+	public int getDims() {
+		return tree.getDims();
+	}
+
+	@Override
+	public int size() {
+		return tree.size();
+	}
+
+	@Override
+	public void clear() {
+		tree.clear();
+	}
+
+	/**
+	 * Reports node splits, underfull nodes that are dissolved (as merges), forced reinserts, root growth,
+	 * and node visits and scanned entries of window queries and kNN queries.
+	 * @param metrics the receiver
+	 */
+	@Override
+	public void setMetrics(IndexMetrics metrics) {
+		tree.setMetrics(metrics);
+	}
+
+	@Override
+	public RTree.RTreeStats getStats() {
+		return tree.getStats();
+	}
+
+	@Override
+	public int getNodeCount() {
+		return tree.getNodeCount();
+	}
+
+	@Override
+	public int getDepth() {
+		return tree.getDepth();
+	}
+
+	@Override
+	public String toStringTree() {
+		return tree.toStringTree();
+	}
+
+	@Override
+	public String toString() {
+		return "RTreeLong;" + tree;
+	}
+}
@@ -117,6 +117,26 @@ class RTreeMixedQuery<T> implements Iterator<BoxEntryKnn<T>> {
 			this.idx = idx;
 			this.parent = parent;
 		}
+
+		@Override
+		public int hashCode() {
+			return Arrays.hashCode(min()) ^ System.identityHashCode(value());
+		}
+
+		/*
+		 * Leaves create a new entry object every time an entry is accessed, so two
+		 * entries are equal if they have the same box and the same value.
+		 */
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof RTreeEntryWrapper))
+				return false;
+			RTreeEntryWrapper<?> other = (RTreeEntryWrapper<?>) obj;
+			return value() == other.value() && Arrays.equals(min(), other.min())
+					&& Arrays.equals(max(), other.max());
+		}
 	}
 
 	private final RTree<T> tree;
@@ -210,21 +230,18 @@ class RTreeMixedQuery<T> implements Iterator<BoxEntryKnn<T>> {
 	}
 
 	private boolean processNode(RTreeNodeLeaf<T> node) {
-		ArrayList<RTreeEntry<T>> entries = node.getEntries();
 		assert node.value() == null;
-		for (int i = 0; i < entries.size(); i++) {
-			RTreeEntry<T> ent = entries.get(i);
-			assert !(ent instanceof RTreeNode);
-			insert(ent, node, i);
+		for (int i = 0; i < node.size(); i++) {
+			insert(node.getEntry(i), node, i);
 		}
-		return !entries.isEmpty();
+		return node.size() > 0;
 	}
 
 	private void insert(RTreeEntry<T> ent, RTreeNodeLeaf<T> parent, int idx) {
 		if (!filter.matches(ent)) {
 			return;
 		}
-		assert parent.getParent() == null || isTreeNode(parent);
+		assert tree.isReadOnly() || parent.getParent() == null || isTreeNode(parent);
 		assert !(ent instanceof RTreeNode);
 		double distance = dist.dist(center, ent.min(), ent.max());
 
@@ -276,10 +293,13 @@ class RTreeMixedQuery<T> implements Iterator<BoxEntryKnn<T>> {
 		BoxEntry<T> toDelete = e.node;
 		int pos = e.idx;
 		RTreeNodeLeaf<T> parent = e.parent;
-		if (parent.getEntries().size() <= pos || toDelete != parent.getEntries().get(pos)) {
-			pos = parent.getEntries().indexOf(toDelete);
+		if (!isEntryAt(parent, pos, toDelete)) {
+			pos = parent.findExact(0, toDelete.min(), toDelete.max());
+			while (pos >= 0 && !isEntryAt(parent, pos, toDelete)) {
+				pos = parent.findExact(pos + 1, toDelete.min(), toDelete.max());
+			}
 		}
-		if (pos == -1 || parent.getParent() == null) {
+		if (pos == -1 || !isTreeNode(parent)) {
 			assert remove_pointerLoss++ > 0 || true : "Counting enabled by assert";
 			// lost pointer, need to look it up from the beginning
 			if (tree.remove(e.min(), e.max()) == null) {
@@ -292,14 +312,21 @@ class RTreeMixedQuery<T> implements Iterator<BoxEntryKnn<T>> {
 		}
 	}
 	
+	private static <T> boolean isEntryAt(RTreeNodeLeaf<T> leaf, int pos, BoxEntry<T> e) {
+		return pos < leaf.size() && leaf.getValue(pos) == e.value()
+				&& leaf.findExact(pos, e.min(), e.max()) == pos;
+	}
+	
 	private boolean isTreeNode(RTreeNode<T> parent) {
 		if (parent == tree.getRoot()) {
 			return true;
 		}
-		if (!parent.getParent().getChildren().contains(parent)) {
+		// The node may have been replaced by a copy, see RTree.snapshot()
+		RTreeNodeDir<T> grandParent = parent.getParent();
+		if (grandParent == null || !grandParent.getChildren().contains(parent)) {
 			return false;
 		}
-		return isTreeNode(parent.getParent());
+		return isTreeNode(grandParent);
 	}
 
 	@Override
@@ -189,9 +189,8 @@ class RTreeMixedQuery2<T> implements Iterator<BoxEntryKnn<T>> {
 	}
 
 	private void processNode(RTreeNodeLeaf<T> node) {
-		ArrayList<RTreeEntry<T>> entries = node.getEntries();
-		for (int i = 0; i < entries.size(); i++) {
-			insert(entries.get(i));
+		for (int i = 0; i < node.size(); i++) {
+			insert(node.getEntry(i));
 		}
 	}
 
@@ -16,22 +16,61 @@
  */
 package org.tinspin.index.rtree;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 
-import static org.tinspin.index.Index.*;
-
 abstract class RTreeNode<T> extends RTreeEntry<T> {
 
 	private RTreeNodeDir<T> parent;
+	// The tree version in which this node was created. Nodes from older versions may be shared
+	// with snapshots and must be copied before they are modified, see RTree.snapshot().
+	private int version;
 
 	RTreeNode(int dim) {
 		super(new double[dim], new double[dim], null);
 	}
 
+	/**
+	 * Copy constructor. The copy has the same parent but is not a child of the parent.
+	 */
+	RTreeNode(RTreeNode<T> original, int version) {
+		super(original.min().clone(), original.max().clone(), null);
+		this.parent = original.parent;
+		this.version = version;
+	}
+
+	/**
+	 * @param version version of the copy
+	 * @return A copy of this node. Children of directory nodes are not copied but their parent is
+	 * set to the copy.
+	 */
+	abstract RTreeNode<T> copy(int version);
+
+	/**
+	 * @return A new empty node of the same kind, e.g. for splitting this node.
+	 */
+	abstract RTreeNode<T> createEmpty();
+
+	int getVersion() {
+		return version;
+	}
+
+	void setVersion(int version) {
+		this.version = version;
+	}
+
 	abstract void addEntry(RTreeEntry<T> e);
 
-	abstract ArrayList<RTreeEntry<T>> getEntries();
+	/**
+	 * @return the number of entries, i.e. of children or of data entries.
+	 */
+	abstract int size();
+
+	/**
+	 * @param i position of the entry
+	 * @return the child node at position 'i' or, for leaves, a new entry object
+	 * that represents the data entry at position 'i'.
+	 */
+	abstract RTreeEntry<T> getEntry(int i);
 
 	/**
 	 * Calculates the overlap of this node with 'othernode' if this node would be 
@@ -75,16 +114,21 @@ abstract class RTreeNode<T> extends RTreeEntry<T> {
 	/**
 	 * Extends the MBB to ensure it covers the new entry.
 	 * @param e new entry
+	 * @return 'true' iff the MBB has changed
 	 */
-	protected void extendMBB(RTreeEntry<T> e) {
+	protected boolean extendMBB(RTreeEntry<T> e) {
+		boolean changed = false;
 		for (int i = 0; i < min().length; i++) {
 			if (min()[i] > e.min()[i]) {
 				min()[i] = e.min()[i];
+				changed = true;
 			}
 			if (max()[i] < e.max()[i]) {
 				max()[i] = e.max()[i];
+				changed = true;
 			}
 		}
+		return changed;
 	}
 
 	/**
@@ -96,21 +140,15 @@ abstract class RTreeNode<T> extends RTreeEntry<T> {
 		double[] minOld = min().clone();
 		double[] maxOld = max().clone();
 		resetMBB();
-		ArrayList<RTreeEntry<T>> entries = getEntries();
-		for (int i = 0; i < entries.size(); i++) {
-			BoxEntry<T> e = entries.get(i);
-			for (int d = 0; d < min().length; d++) {
-				if (min()[d] > e.min()[d]) {
-					min()[d] = e.min()[d];
-				}
-				if (max()[d] < e.max()[d]) {
-					max()[d] = e.max()[d];
-				}
-			}
-		}
+		coverEntries();
 		return !Arrays.equals(min(), minOld) || !Arrays.equals(max(), maxOld);
 	}
 
+	/**
+	 * Extends the MBB to cover all entries.
+	 */
+	abstract void coverEntries();
+
 	protected void resetMBB() {
 		Arrays.fill(min(), Double.POSITIVE_INFINITY);
 		Arrays.fill(max(), Double.NEGATIVE_INFINITY);
@@ -128,11 +166,9 @@ abstract class RTreeNode<T> extends RTreeEntry<T> {
 	
 	public void extendParentMBB() {
 		RTreeNodeDir<T> current = this.parent;
-		// TODO ?
-		//stop adjusting parent if we get a root or if there was no change
-		// TODO remove this method? Difference to recalcParentMBB() ?
-		while (current != null) {
-			current.extendMBB(this);
+		//stop adjusting parent if we get a root or if there was no change,
+		//the ancestors of an unchanged node already cover it.
+		while (current != null && current.extendMBB(this)) {
 			current = current.getParent();
 		}
 	}
@@ -151,12 +187,5 @@ abstract class RTreeNode<T> extends RTreeEntry<T> {
 		}
 	}
 
-	public abstract boolean hasSpace();
-
-	public abstract boolean isUnderfull();
-
-	public void removeEntry(int i) {
-		getEntries().remove(i);
-		recalcRecursiveMBB();
-	}
+	public abstract void removeEntry(int i);
 }
\ No newline at end of file
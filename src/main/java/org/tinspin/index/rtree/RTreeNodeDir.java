@@ -34,6 +34,24 @@ class RTreeNodeDir<T> extends RTreeNode<T> {
 		children = new ArrayList<>();
 	}
 
+	private RTreeNodeDir(RTreeNodeDir<T> original, int version) {
+		super(original, version);
+		children = new ArrayList<>(original.children);
+		for (int i = 0; i < children.size(); i++) {
+			children.get(i).setParent(this);
+		}
+	}
+
+	@Override
+	RTreeNodeDir<T> copy(int version) {
+		return new RTreeNodeDir<>(this, version);
+	}
+
+	@Override
+	RTreeNodeDir<T> createEmpty() {
+		return new RTreeNodeDir<>(min().length);
+	}
+
 	@Override
 	public void addEntry(RTreeEntry<T> e) {
 		RTreeNode<T> node = (RTreeNode<T>) e;
@@ -71,6 +89,22 @@ class RTreeNodeDir<T> extends RTreeNode<T> {
 		throw new IllegalStateException();
 	}
 
+	/**
+	 * Replace a child with a copy of the child.
+	 * @param child the child
+	 * @param copy the copy
+	 */
+	void replaceChild(RTreeNode<T> child, RTreeNode<T> copy) {
+		for (int i = 0; i < children.size(); i++) {
+			if (children.get(i) == child) {
+				children.set(i, copy);
+				copy.setParent(this);
+				return;
+			}
+		}
+		throw new IllegalStateException();
+	}
+
 	public boolean containsLeafNodes() {
 		return children.get(0) instanceof RTreeNodeLeaf;
 	}
@@ -79,10 +113,27 @@ class RTreeNodeDir<T> extends RTreeNode<T> {
 		return children;
 	}
 
-	@SuppressWarnings({ "unchecked", "rawtypes" })
 	@Override
-	public ArrayList<RTreeEntry<T>> getEntries() {
-		return (ArrayList)children;
+	int size() {
+		return children.size();
+	}
+
+	@Override
+	RTreeNode<T> getEntry(int i) {
+		return children.get(i);
+	}
+
+	@Override
+	public void removeEntry(int i) {
+		children.remove(i);
+		recalcRecursiveMBB();
+	}
+
+	@Override
+	void coverEntries() {
+		for (int i = 0; i < children.size(); i++) {
+			extendMBB(children.get(i));
+		}
 	}
 
 	@Override
@@ -92,11 +143,6 @@ class RTreeNodeDir<T> extends RTreeNode<T> {
 		resetMBB();
 	}
 
-	@Override
-	public boolean hasSpace() {
-		return children.size() < RTree.NODE_MAX_DIR;
-	}
-	
 	@Override
 	public String toString() {
 		double[] len = new double[min().length];
@@ -106,9 +152,4 @@ class RTreeNodeDir<T> extends RTreeNode<T> {
 				";lengths=" + Arrays.toString(len) +
 				";id=" + System.identityHashCode(this);
 	}
-
-	@Override
-	public boolean isUnderfull() {
-		return children.size() < RTree.NODE_MIN_DIR;
-	}
 }
\ No newline at end of file
@@ -16,56 +16,249 @@
  */
 package org.tinspin.index.rtree;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 
+/**
+ * Leaf node.
+ * <p>
+ * The boxes of the entries are stored in a single packed array. For every entry, 'min' is
+ * followed by 'max': [min_0, max_0, min_1, max_1, ...]. The values are stored in a parallel
+ * array. Queries scan the packed array sequentially, {@link RTreeEntry} objects are only created
+ * for entries that are returned or moved to another node, see {@link #getEntry(int)}.
+ * <p>
+ * Leaves of the {@link RTreeLong} store the values in a {@code long[]} instead, see
+ * {@link #getLongValue(int)}. Their entries are passed around as {@link RTreeEntryLong}.
+ * <p>
+ * The arrays are allocated with room for the maximum number of entries of a leaf plus one,
+ * the additional entry is needed during splits. They keep their capacity when the node is cleared.
+ *
+ * @param <T> Value type
+ */
 class RTreeNodeLeaf<T> extends RTreeNode<T> {
 
-	private ArrayList<RTreeEntry<T>> entries;
-	
-	public RTreeNodeLeaf(int dim) {
+	private final int capacity;
+	private double[] boxes;
+	// Exactly one of 'values' and 'longValues' is not null
+	private Object[] values;
+	private long[] longValues;
+	private int size;
+
+	/**
+	 * @param dim dimensionality
+	 * @param maxEntries maximum number of entries, i.e. the maximum leaf size of the tree
+	 */
+	RTreeNodeLeaf(int dim, int maxEntries) {
+		this(dim, maxEntries, false);
+	}
+
+	/**
+	 * @param dim dimensionality
+	 * @param maxEntries maximum number of entries, i.e. the maximum leaf size of the tree
+	 * @param longValues whether the values are stored as {@code long}
+	 */
+	RTreeNodeLeaf(int dim, int maxEntries, boolean longValues) {
 		super(dim);
-		entries = new ArrayList<>();
+		capacity = maxEntries + 1;
+		boxes = new double[capacity * 2 * dim];
+		if (longValues) {
+			this.longValues = new long[capacity];
+		} else {
+			this.values = new Object[capacity];
+		}
+	}
+
+	private RTreeNodeLeaf(RTreeNodeLeaf<T> original, int version) {
+		super(original, version);
+		capacity = original.capacity;
+		boxes = original.boxes.clone();
+		values = original.values == null ? null : original.values.clone();
+		longValues = original.longValues == null ? null : original.longValues.clone();
+		size = original.size;
+	}
+
+	@Override
+	RTreeNodeLeaf<T> copy(int version) {
+		return new RTreeNodeLeaf<>(this, version);
+	}
+
+	@Override
+	RTreeNodeLeaf<T> createEmpty() {
+		return new RTreeNodeLeaf<>(min().length, capacity - 1, longValues != null);
 	}
 
 	@Override
 	public void addEntry(RTreeEntry<T> e) {
-		entries.add(e);
-		if (entries.size() > 1) {
+		int dims = min().length;
+		if (size * 2 * dims == boxes.length) {
+			grow();
+		}
+		int pos = size * 2 * dims;
+		System.arraycopy(e.min(), 0, boxes, pos, dims);
+		System.arraycopy(e.max(), 0, boxes, pos + dims, dims);
+		if (longValues != null) {
+			longValues[size++] = e instanceof RTreeEntryLong ?
+					((RTreeEntryLong) e).longValue() : (Long) e.value();
+		} else {
+			values[size++] = e.value();
+		}
+		if (size > 1) {
 			extendMBB(e);
 		} else {
 			setMBB(e);
 		}
 	}
 
+	/**
+	 * The arrays are presized to the maximum size of a leaf, they only grow if a leaf is
+	 * overfull, e.g. when a tree is read with a larger leaf size than it was configured with.
+	 */
+	private void grow() {
+		int newCapacity = Math.max(2 * size, capacity);
+		boxes = Arrays.copyOf(boxes, newCapacity * 2 * min().length);
+		if (longValues != null) {
+			longValues = Arrays.copyOf(longValues, newCapacity);
+		} else {
+			values = Arrays.copyOf(values, newCapacity);
+		}
+	}
+
 	@Override
-	public ArrayList<RTreeEntry<T>> getEntries() {
-		return entries;
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @param i position of the entry
+	 * @return A new entry object with a copy of the box and the value of the entry at position 'i'.
+	 */
+	@SuppressWarnings("unchecked")
+	@Override
+	RTreeEntry<T> getEntry(int i) {
+		int dims = min().length;
+		int pos = i * 2 * dims;
+		double[] min = Arrays.copyOfRange(boxes, pos, pos + dims);
+		double[] max = Arrays.copyOfRange(boxes, pos + dims, pos + 2 * dims);
+		if (longValues != null) {
+			return (RTreeEntry<T>) (RTreeEntry<?>) new RTreeEntryLong(min, max, longValues[i]);
+		}
+		return new RTreeEntry<>(min, max, getValue(i));
+	}
+
+	/**
+	 * @param i position of the entry
+	 * @return the value of the entry at position 'i', values of {@link RTreeLong} leaves are boxed
+	 */
+	@SuppressWarnings("unchecked")
+	T getValue(int i) {
+		return longValues != null ? (T) Long.valueOf(longValues[i]) : (T) values[i];
+	}
+
+	/**
+	 * @param i position of the entry
+	 * @return the value of the entry at position 'i', only for leaves of the {@link RTreeLong}
+	 */
+	long getLongValue(int i) {
+		return longValues[i];
+	}
+
+	/**
+	 * @return the packed boxes of the entries, only the first 'size * 2 * dims' values are valid.
+	 */
+	double[] getBoxes() {
+		return boxes;
+	}
+
+	@Override
+	public void removeEntry(int i) {
+		int len = 2 * min().length;
+		System.arraycopy(boxes, (i + 1) * len, boxes, i * len, (size - i - 1) * len);
+		if (longValues != null) {
+			System.arraycopy(longValues, i + 1, longValues, i, size - i - 1);
+			size--;
+		} else {
+			System.arraycopy(values, i + 1, values, i, size - i - 1);
+			values[--size] = null;
+		}
+		recalcRecursiveMBB();
 	}
 
 	@Override
 	public void clear() {
-		entries.clear();
+		if (values != null) {
+			Arrays.fill(values, 0, size, null);
+		}
+		size = 0;
 		resetMBB();
 	}
 
 	@Override
-	public boolean hasSpace() {
-		return entries.size() < RTree.NODE_MAX_DATA;
+	void coverEntries() {
+		final int dims = min().length;
+		final double[] min = min();
+		final double[] max = max();
+		for (int i = 0, pos = 0; i < size; i++, pos += 2 * dims) {
+			for (int d = 0; d < dims; d++) {
+				min[d] = Math.min(min[d], boxes[pos + d]);
+				max[d] = Math.max(max[d], boxes[pos + dims + d]);
+			}
+		}
+	}
+
+	/**
+	 * @param pos start position
+	 * @param min query box min
+	 * @param max query box max
+	 * @return The position of the first entry at or after 'pos' that overlaps with the query box,
+	 * or -1 if there is no such entry.
+	 */
+	int findOverlap(int pos, double[] min, double[] max) {
+		final int dims = min.length;
+		final int n = size;
+		final double[] b = boxes;
+		outer:
+		for (int i = pos; i < n; i++) {
+			int offs = i * 2 * dims;
+			for (int d = 0; d < dims; d++) {
+				if (min[d] > b[offs + dims + d] || max[d] < b[offs + d]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * @param pos start position
+	 * @param min box min
+	 * @param max box max
+	 * @return The position of the first entry at or after 'pos' that has exactly the
+	 * given box, or -1 if there is no such entry.
+	 */
+	int findExact(int pos, double[] min, double[] max) {
+		final int dims = min.length;
+		final int n = size;
+		final double[] b = boxes;
+		outer:
+		for (int i = pos; i < n; i++) {
+			int offs = i * 2 * dims;
+			for (int d = 0; d < dims; d++) {
+				if (min[d] != b[offs + d] || max[d] != b[offs + dims + d]) {
+					continue outer;
+				}
+			}
+			return i;
+		}
+		return -1;
 	}
-	
+
 	@Override
 	public String toString() {
 		double[] len = new double[min().length];
 		Arrays.setAll(len, i -> (max()[i]-min()[i]));
-		return "NodeData;n=" + entries.size() + 
+		return "NodeData;n=" + size + 
 				";min/max=" + Arrays.toString(min()) + "/" + Arrays.toString(max()) +
 				";lengths=" + Arrays.toString(len) +
 				";id=" + System.identityHashCode(this);
 	}
-
-	@Override
-	public boolean isUnderfull() {
-		return entries.size() < RTree.NODE_MIN_DATA;
-	}
-}
\ No newline at end of file
+}
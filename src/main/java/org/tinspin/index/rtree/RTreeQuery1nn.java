@@ -78,6 +78,9 @@ public class RTreeQuery1nn<T> {
 	private double[] center;
 	private IteratorStack stack;
 	private BoxDistance dist;
+	// Buffers for the boxes of leaf entries
+	private double[] bufMin;
+	private double[] bufMax;
 	
 	private static class IterPos<T> {
 		final NodeDistT<T>[] subNodes;
@@ -100,13 +103,13 @@ public class RTreeQuery1nn<T> {
 	}
 	
 	public RTreeQuery1nn(RTree<T> tree) {
-		this.stack = new IteratorStack(tree.getDepth(), RTree.NODE_MAX_DIR);
+		this.stack = new IteratorStack(tree.getDepth(), tree.getNodeMaxDir());
 		this.tree = tree;
 	}
 
 	public BoxEntryKnn<T> reset(double[] center, BoxDistance dist) {
 		if (stack.stack.length < tree.getDepth()) {
-			this.stack = new IteratorStack(tree.getDepth(), RTree.NODE_MAX_DIR);
+			this.stack = new IteratorStack(tree.getDepth(), tree.getNodeMaxDir());
 		} else {
 			this.stack.size = 0;
 		}
@@ -121,6 +124,10 @@ public class RTreeQuery1nn<T> {
 			System.err.println("This distance iterator only works for EDGE distance");
 		}
 		this.center = center;
+		if (bufMin == null || bufMin.length != center.length) {
+			bufMin = new double[center.length];
+			bufMax = new double[center.length];
+		}
 		if (tree.size() == 0) {
 			return null;
 		}
@@ -143,16 +150,20 @@ public class RTreeQuery1nn<T> {
 					continue nextSub;
 				}
 			} else {
-				ArrayList<RTreeEntry<T>> entries = ip.node.getEntries();
-				while (ip.pos < entries.size()) {
-					RTreeEntry<T> e = entries.get(ip.pos);
-					ip.pos++;
+				RTreeNodeLeaf<T> leaf = (RTreeNodeLeaf<T>) ip.node;
+				double[] boxes = leaf.getBoxes();
+				int dims = center.length;
+				while (ip.pos < leaf.size()) {
+					int offs = ip.pos * 2 * dims;
+					System.arraycopy(boxes, offs, bufMin, 0, dims);
+					System.arraycopy(boxes, offs + dims, bufMax, 0, dims);
 					//this works only for EDGE distance !!!
-					double d = dist(center, e.min(), e.max());
+					double d = dist(center, bufMin, bufMax);
 					if (candidate.dist() > d) {
-						candidate.set(e.min(), e.max(), e.value(), d);
+						candidate.set(bufMin.clone(), bufMax.clone(), leaf.getValue(ip.pos), d);
 						currentDist = d; 
 					}
+					ip.pos++;
 				}
 			}
 			stack.pop();
@@ -16,19 +16,46 @@
  */
 package org.tinspin.index.rtree;
 
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import org.tinspin.index.IndexConfig;
 
 import static org.tinspin.index.Index.*;
 
 public class STRLoader<T> {
 
+	private final boolean parallel;
+	private final int nodeMaxDir;
+	private final int nodeMaxData;
 	private int nNodes = 0;
 	private int size = 0;
 	private RTreeNode<T> root;
 	private int depth;
-	
+
+	/**
+	 * Create a sequential loader with the default node sizes of {@link IndexConfig}.
+	 */
+	public STRLoader() {
+		this(false, IndexConfig.create(0).getRTreeNodeMaxDir(),
+				IndexConfig.create(0).getRTreeNodeMaxData());
+	}
+
+	/**
+	 * @param parallel If 'true', the loader sorts the slices and packs the nodes of each level
+	 *                 with multiple threads (using the common fork/join pool).
+	 *                 The resulting tree is identical to the tree created by the sequential loader.
+	 * @param nodeMaxDir Number of children of directory nodes
+	 * @param nodeMaxData Number of entries of leaf nodes
+	 */
+	public STRLoader(boolean parallel, int nodeMaxDir, int nodeMaxData) {
+		this.parallel = parallel;
+		this.nodeMaxDir = nodeMaxDir;
+		this.nodeMaxData = nodeMaxData;
+	}
+
 	public RTreeNode<T> getRoot() {
 		return root;
 	}
@@ -49,21 +76,21 @@ public class STRLoader<T> {
 	public void load(RTreeEntry<T>[] entries) {
 		int dims = entries[0].min().length;
 		int N = entries.length;
-		int M = RTree.NODE_MAX_DATA;
+		int M = nodeMaxData;
 		CenterComp comp = new CenterComp();
 		
 		sortChunks(entries, dims, M, comp);
 		
-		RTreeNode<T>[] nodes = new RTreeNode[(int) Math.ceil(N/(double)M)];
-		int posNode = 0;
-		RTreeNode<T> node = null;
-		for (int i = 0; i < entries.length; i++) {
-			if (i % M == 0) {
-				node = new RTreeNodeLeaf<>(dims);
-				nodes[posNode++] = node;
+		RTreeNode<T>[] leaves = new RTreeNode[(int) Math.ceil(N/(double)M)];
+		forEachChunk(leaves.length, iNode -> {
+			RTreeNode<T> node = new RTreeNodeLeaf<>(dims, M);
+			int end = Math.min((iNode + 1) * M, entries.length);
+			for (int i = iNode * M; i < end; i++) {
+				node.addEntry(entries[i]);
 			}
-			node.addEntry(entries[i]);
-		}
+			leaves[iNode] = node;
+		});
+		RTreeNode<T>[] nodes = leaves;
 		nNodes += nodes.length;
 		
 		depth = 1;
@@ -74,7 +101,7 @@ public class STRLoader<T> {
 			return;
 		}
 		
-		int MDir = RTree.NODE_MAX_DIR;
+		int MDir = nodeMaxDir;
 		RTreeNodeDir<T>[] parentNodes = null; 
 		do {
 			depth++;
@@ -82,16 +109,16 @@ public class STRLoader<T> {
 			//sort
 			sortChunks(nodes, dims, MDir, comp);
 			nNodes += parentNodes.length;
-			RTreeNodeDir<T> p = null;
-			int posParent = 0;
-			for (int i = 0; i < nodes.length; i++) {
-				if (i % MDir == 0) {
-					p = new RTreeNodeDir<>(dims);
-					parentNodes[posParent++] = p;
+			RTreeNode<T>[] children = nodes;
+			RTreeNodeDir<T>[] parents = parentNodes;
+			forEachChunk(parents.length, iNode -> {
+				RTreeNodeDir<T> p = new RTreeNodeDir<>(dims);
+				int end = Math.min((iNode + 1) * MDir, children.length);
+				for (int i = iNode * MDir; i < end; i++) {
+					p.addEntry(children[i]);
 				}
-				// add
-				p.addEntry(nodes[i]);
-			}
+				parents[iNode] = p;
+			});
 			nodes = parentNodes;
 		} while (parentNodes.length > 1);
 		root = parentNodes[0];
@@ -115,16 +142,15 @@ public class STRLoader<T> {
 	
 	private int verifyNode(RTreeNode<T> node, int level) {
 		System.out.println("Checking node: " + node);
-		ArrayList<RTreeEntry<T>> el = node.getEntries();
 		int nEntries = 0;
 		int nNodes = 0;
-		int dim = el.get(0).min().length;
+		int dim = node.min().length;
 		double[] mbbMin = new double[dim];
 		double[] mbbMax = new double[dim];
 		Arrays.fill(mbbMin, Double.POSITIVE_INFINITY);
 		Arrays.fill(mbbMax, Double.NEGATIVE_INFINITY);
-		for (int i = 0; i < el.size(); i++) {
-			BoxEntry<T> e = el.get(i);
+		for (int i = 0; i < node.size(); i++) {
+			BoxEntry<T> e = node.getEntry(i);
 			//if (!(e instanceof RTreeNode)) {
 			//	rects.add(e.min);
 			//	rects.add(e.max);
@@ -192,9 +218,23 @@ public class STRLoader<T> {
 		return nEntries;
 	}
 	
+	/**
+	 * Calls the consumer for every chunk index. The calls are independent of each other
+	 * because the chunks of the sorted entries do not overlap.
+	 */
+	private void forEachChunk(int nChunks, IntConsumer consumer) {
+		IntStream range = IntStream.range(0, nChunks);
+		(parallel ? range.parallel() : range).forEach(consumer);
+	}
+
 	private void sortChunks(BoxEntry<T>[] entries, int dims, int M, CenterComp comp) {
 		comp.setDim(0);
-		Arrays.sort(entries, comp);
+		if (parallel) {
+			// parallelSort() is stable, so the result is identical to Arrays.sort()
+			Arrays.parallelSort(entries, comp);
+		} else {
+			Arrays.sort(entries, comp);
+		}
 		int nToSplit = entries.length;
 		for (int d = 1; d < dims; d++) {
 			int nodesPerAxis = (int) Math.pow(nToSplit/M, 1.0/(double)(dims-d+1));
@@ -203,12 +243,12 @@ public class STRLoader<T> {
 			if (chunkSize < M) {
 				break;
 			}
-			int pos = 0;
-			while (pos < entries.length) {
+			int nChunks = (int) Math.ceil(entries.length / (double) chunkSize);
+			forEachChunk(nChunks, iChunk -> {
+				int pos = iChunk * chunkSize;
 				int end = Math.min(pos+chunkSize, entries.length);
 				Arrays.sort(entries, pos, end, comp);
-				pos += chunkSize;
-			}
+			});
 			nToSplit /= nodesPerAxis;
 		}
 	}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import org.tinspin.index.BoxDistance;
+import org.tinspin.index.BoxMap;
+
+import java.util.ArrayList;
+
+/**
+ * A thread-safe facade for any {@link BoxMap}.
+ * Queries run concurrently and scale with the number of readers, modifications are serialized.
+ * Depending on the index, queries use optimistic reads, see {@link ConcurrentIndex}.
+ * Query iterators are evaluated eagerly, see {@link ConcurrentIndex}.
+ *
+ * @param <T> Value type
+ */
+public class ConcurrentBoxMap<T> extends ConcurrentIndex<BoxMap<T>> implements BoxMap<T> {
+
+	private ConcurrentBoxMap(BoxMap<T> ind) {
+		super(ind);
+	}
+
+	/**
+	 * @param ind the index to wrap. The index must not be accessed directly while the facade is in use.
+	 * @return a thread-safe facade for the index
+	 * @param <T> Value type
+	 */
+	public static <T> ConcurrentBoxMap<T> create(BoxMap<T> ind) {
+		return new ConcurrentBoxMap<>(ind);
+	}
+
+	@Override
+	public void insert(double[] min, double[] max, T value) {
+		write(() -> ind.insert(min, max, value));
+	}
+
+	@Override
+	public T remove(double[] min, double[] max) {
+		return write(() -> ind.remove(min, max));
+	}
+
+	@Override
+	public T update(double[] minOld, double[] maxOld, double[] minNew, double[] maxNew) {
+		return write(() -> ind.update(minOld, maxOld, minNew, maxNew));
+	}
+
+	@Override
+	public boolean contains(double[] min, double[] max) {
+		return read(() -> ind.contains(min, max));
+	}
+
+	@Override
+	public T queryExact(double[] min, double[] max) {
+		return read(() -> ind.queryExact(min, max));
+	}
+
+	@Override
+	public BoxIterator<T> iterator() {
+		return new BoxIter<>(readAll(result -> copyBoxes(ind.iterator(), result)), this::queryAll);
+	}
+
+	@Override
+	public BoxIterator<T> queryIntersect(double[] min, double[] max) {
+		return new BoxIter<>(queryAll(min, max), this::queryAll);
+	}
+
+	private ArrayList<BoxEntry<T>> queryAll(double[] min, double[] max) {
+		return readAll(result -> copyBoxes(ind.queryIntersect(min, max), result));
+	}
+
+	@Override
+	public BoxEntryKnn<T> query1nn(double[] center) {
+		return read(() -> {
+			BoxEntryKnn<T> e = ind.query1nn(center);
+			return e == null ? null : new BoxEntryKnn<>(e.min(), e.max(), e.value(), e.dist());
+		});
+	}
+
+	@Override
+	public BoxIteratorKnn<T> queryKnn(double[] center, int k) {
+		return new BoxIterKnn<>(queryKnnAll(center, k), this::queryKnnAll);
+	}
+
+	private ArrayList<BoxEntryKnn<T>> queryKnnAll(double[] center, int k) {
+		return readAll(result -> copyBoxesKnn(ind.queryKnn(center, k), result));
+	}
+
+	@Override
+	public BoxIteratorKnn<T> queryKnn(double[] center, int k, BoxDistance distFn, BoxFilterKnn<T> filterFn) {
+		KnnQuery<BoxEntryKnn<T>> query =
+				(c, k2) -> readAllLocked(result -> copyBoxesKnn(ind.queryKnn(c, k2, distFn, filterFn), result));
+		return new BoxIterKnn<>(query.query(center, k), query);
+	}
+}
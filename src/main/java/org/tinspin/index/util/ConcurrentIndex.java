@@ -0,0 +1,394 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import org.tinspin.index.Index;
+import org.tinspin.index.IndexMetrics;
+import org.tinspin.index.Stats;
+import org.tinspin.index.kdtree.KDTree;
+import org.tinspin.index.qthypercube2.QuadTreeKD2;
+import org.tinspin.index.rtree.RTree;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Base class for the thread-safe facades {@link ConcurrentPointMap}, {@link ConcurrentPointMultimap},
+ * {@link ConcurrentBoxMap} and {@link ConcurrentBoxMultimap}.
+ * <p>
+ * Modifications acquire the write lock of a {@link ReentrantReadWriteLock}, queries acquire the read lock.
+ * (The read lock of a {@link StampedLock} is not used because a steady stream of readers can starve
+ * the writers.)
+ * <p>
+ * For indexes whose queries do not write to any shared state, queries first run as optimistic reads
+ * of a {@link StampedLock} that is write-locked by every modification.
+ * If a concurrent modification invalidated the stamp (or caused the query to fail),
+ * the query is repeated while holding the read lock. Since all modifications go through the facade,
+ * validating the stamp also covers the modification counters of the underlying indexes.
+ * Optimistic reads are used for {@link KDTree}, {@link RTree} and {@link QuadTreeKD2}
+ * (also when wrapped by {@link PointMapWrapper} or {@link PointMultimapWrapper}), the queries of
+ * these indexes only update thread-safe counters and the {@link IndexMetrics}.
+ * Other indexes may, for example, cache values in their nodes during queries
+ * (see {@link org.tinspin.index.covertree.CoverTree}), which is not safe with concurrent modifications.
+ * Queries with user callbacks, such as filters or distance functions, always use the read lock,
+ * so the callbacks are called only once per query.
+ * <p>
+ * Query iterators are evaluated eagerly: the results are copied into a list, the returned
+ * iterator works on that list and does not hold any lock.
+ *
+ * @param <I> Type of the underlying index
+ */
+abstract class ConcurrentIndex<I extends Index> implements Index {
+
+	protected final I ind;
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	// Only validates optimistic reads, modifications hold both write locks
+	private final StampedLock version = new StampedLock();
+	private final boolean optimisticReads;
+
+	protected ConcurrentIndex(I ind) {
+		this.ind = ind;
+		this.optimisticReads = hasWriteFreeQueries(ind);
+	}
+
+	/**
+	 * @param ind an index
+	 * @return 'true' if the queries of the index can safely run concurrently with modifications,
+	 * i.e. if they do not write to the index or to any other shared state that is not thread-safe.
+	 */
+	static boolean hasWriteFreeQueries(Index ind) {
+		if (ind instanceof PointMapWrapper) {
+			return hasWriteFreeQueries(((PointMapWrapper<?>) ind).getIndex());
+		}
+		if (ind instanceof PointMultimapWrapper) {
+			return hasWriteFreeQueries(((PointMultimapWrapper<?>) ind).getIndex());
+		}
+		return ind instanceof KDTree || ind instanceof RTree || ind instanceof QuadTreeKD2;
+	}
+
+	/**
+	 * @return 'true' if queries run as optimistic reads, see {@link ConcurrentIndex}
+	 */
+	public boolean usesOptimisticReads() {
+		return optimisticReads;
+	}
+
+	/**
+	 * Execute a read-only operation. If the index supports optimistic reads, the operation may be
+	 * executed twice, once optimistically and once under the read lock. It must therefore not have
+	 * any side effects.
+	 * @param op the operation
+	 * @return the result of the operation
+	 * @param <R> result type
+	 */
+	protected <R> R read(Supplier<R> op) {
+		long stamp = optimisticReads ? version.tryOptimisticRead() : 0;
+		if (stamp != 0) {
+			try {
+				R result = op.get();
+				if (version.validate(stamp)) {
+					return result;
+				}
+			} catch (RuntimeException | StackOverflowError e) {
+				// Concurrent modifications can leave the index in an inconsistent state,
+				// e.g. with a cycle of nodes. If the error is genuine, it will be thrown again below.
+			}
+		}
+		return readLocked(op);
+	}
+
+	/**
+	 * Execute a read-only operation under the read lock, without optimistic read.
+	 * @param op the operation
+	 * @return the result of the operation
+	 * @param <R> result type
+	 */
+	protected <R> R readLocked(Supplier<R> op) {
+		lock.readLock().lock();
+		try {
+			return op.get();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Execute a read-only query and collect its results.
+	 * @param query the query, this must add all results to the given list
+	 * @return the results
+	 * @param <E> entry type
+	 */
+	protected <E> ArrayList<E> readAll(Consumer<ArrayList<E>> query) {
+		return read(() -> {
+			ArrayList<E> result = new ArrayList<>();
+			query.accept(result);
+			return result;
+		});
+	}
+
+	/**
+	 * Execute a read-only query under the read lock and collect its results. This is used for
+	 * queries that call user code, e.g. filters, which must be called only once per query.
+	 * @param query the query, this must add all results to the given list
+	 * @return the results
+	 * @param <E> entry type
+	 */
+	protected <E> ArrayList<E> readAllLocked(Consumer<ArrayList<E>> query) {
+		return readLocked(() -> {
+			ArrayList<E> result = new ArrayList<>();
+			query.accept(result);
+			return result;
+		});
+	}
+
+	/**
+	 * Execute a read-only operation under the read lock, without optimistic read.
+	 * @param op the operation
+	 */
+	protected void readLocked(Runnable op) {
+		lock.readLock().lock();
+		try {
+			op.run();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Execute a modifying operation under the write lock.
+	 * @param op the operation
+	 * @return the result of the operation
+	 * @param <R> result type
+	 */
+	protected <R> R write(Supplier<R> op) {
+		lock.writeLock().lock();
+		long stamp = version.writeLock();
+		try {
+			return op.get();
+		} finally {
+			version.unlockWrite(stamp);
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Execute a modifying operation under the write lock.
+	 * @param op the operation
+	 */
+	protected void write(Runnable op) {
+		lock.writeLock().lock();
+		long stamp = version.writeLock();
+		try {
+			op.run();
+		} finally {
+			version.unlockWrite(stamp);
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @return the underlying index. The underlying index is not thread-safe, it must not be modified
+	 * while the facade is in use.
+	 */
+	public I getIndex() {
+		return ind;
+	}
+
+	@Override
+	public int getDims() {
+		return ind.getDims();
+	}
+
+	@Override
+	public int size() {
+		return read(ind::size);
+	}
+
+	@Override
+	public void clear() {
+		write(ind::clear);
+	}
+
+	@Override
+	public Stats getStats() {
+		return read(ind::getStats);
+	}
+
+	@Override
+	public int getNodeCount() {
+		return read(ind::getNodeCount);
+	}
+
+	@Override
+	public int getDepth() {
+		return read(ind::getDepth);
+	}
+
+	@Override
+	public String toStringTree() {
+		return read(ind::toStringTree);
+	}
+
+	@Override
+	public void setMetrics(IndexMetrics metrics) {
+		write(() -> ind.setMetrics(metrics));
+	}
+
+	/**
+	 * An iterator over a list of query results.
+	 * @param <E> entry type
+	 */
+	abstract static class ResultIterator<E> implements Iterator<E> {
+
+		private ArrayList<E> entries;
+		private int pos;
+
+		ResultIterator(ArrayList<E> entries) {
+			set(entries);
+		}
+
+		void set(ArrayList<E> entries) {
+			this.entries = entries;
+			this.pos = 0;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return pos < entries.size();
+		}
+
+		@Override
+		public E next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return entries.get(pos++);
+		}
+	}
+
+	@FunctionalInterface
+	interface WindowQuery<E> {
+		ArrayList<E> query(double[] min, double[] max);
+	}
+
+	@FunctionalInterface
+	interface KnnQuery<E> {
+		ArrayList<E> query(double[] center, int k);
+	}
+
+	static class PointIter<T> extends ResultIterator<PointEntry<T>> implements PointIterator<T> {
+
+		private final WindowQuery<PointEntry<T>> query;
+
+		PointIter(ArrayList<PointEntry<T>> entries, WindowQuery<PointEntry<T>> query) {
+			super(entries);
+			this.query = query;
+		}
+
+		@Override
+		public PointIterator<T> reset(double[] min, double[] max) {
+			set(query.query(min, max));
+			return this;
+		}
+	}
+
+	static class PointIterKnn<T> extends ResultIterator<PointEntryKnn<T>> implements PointIteratorKnn<T> {
+
+		private final KnnQuery<PointEntryKnn<T>> query;
+
+		PointIterKnn(ArrayList<PointEntryKnn<T>> entries, KnnQuery<PointEntryKnn<T>> query) {
+			super(entries);
+			this.query = query;
+		}
+
+		@Override
+		public PointIteratorKnn<T> reset(double[] center, int k) {
+			set(query.query(center, k));
+			return this;
+		}
+	}
+
+	static class BoxIter<T> extends ResultIterator<BoxEntry<T>> implements BoxIterator<T> {
+
+		private final WindowQuery<BoxEntry<T>> query;
+
+		BoxIter(ArrayList<BoxEntry<T>> entries, WindowQuery<BoxEntry<T>> query) {
+			super(entries);
+			this.query = query;
+		}
+
+		@Override
+		public BoxIterator<T> reset(double[] min, double[] max) {
+			set(query.query(min, max));
+			return this;
+		}
+	}
+
+	static class BoxIterKnn<T> extends ResultIterator<BoxEntryKnn<T>> implements BoxIteratorKnn<T> {
+
+		private final KnnQuery<BoxEntryKnn<T>> query;
+
+		BoxIterKnn(ArrayList<BoxEntryKnn<T>> entries, KnnQuery<BoxEntryKnn<T>> query) {
+			super(entries);
+			this.query = query;
+		}
+
+		@Override
+		public BoxIteratorKnn<T> reset(double[] center, int k) {
+			set(query.query(center, k));
+			return this;
+		}
+	}
+
+	/**
+	 * Copy the results of a query. Indexes may reuse or modify their entries, e.g. the kD-tree
+	 * returns its nodes, so we have to copy them before releasing the lock.
+	 */
+	static <T> void copyPoints(Iterator<PointEntry<T>> it, ArrayList<PointEntry<T>> result) {
+		while (it.hasNext()) {
+			PointEntry<T> e = it.next();
+			result.add(new PointEntry<>(e.point(), e.value()));
+		}
+	}
+
+	static <T> void copyPointsKnn(Iterator<PointEntryKnn<T>> it, ArrayList<PointEntryKnn<T>> result) {
+		while (it.hasNext()) {
+			PointEntryKnn<T> e = it.next();
+			result.add(new PointEntryKnn<>(e.point(), e.value(), e.dist()));
+		}
+	}
+
+	static <T> void copyBoxes(Iterator<BoxEntry<T>> it, ArrayList<BoxEntry<T>> result) {
+		while (it.hasNext()) {
+			BoxEntry<T> e = it.next();
+			result.add(new BoxEntry<>(e.min(), e.max(), e.value()));
+		}
+	}
+
+	static <T> void copyBoxesKnn(Iterator<BoxEntryKnn<T>> it, ArrayList<BoxEntryKnn<T>> result) {
+		while (it.hasNext()) {
+			BoxEntryKnn<T> e = it.next();
+			result.add(new BoxEntryKnn<>(e.min(), e.max(), e.value(), e.dist()));
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import org.tinspin.index.PointDistance;
+import org.tinspin.index.PointMultimap;
+
+import java.util.ArrayList;
+import java.util.function.Predicate;
+
+/**
+ * A thread-safe facade for any {@link PointMultimap}.
+ * Queries run concurrently and scale with the number of readers, modifications are serialized.
+ * Depending on the index, queries use optimistic reads, see {@link ConcurrentIndex}.
+ * Query iterators are evaluated eagerly, see {@link ConcurrentIndex}.
+ *
+ * @param <T> Value type
+ */
+public class ConcurrentPointMultimap<T> extends ConcurrentIndex<PointMultimap<T>> implements PointMultimap<T> {
+
+	private ConcurrentPointMultimap(PointMultimap<T> ind) {
+		super(ind);
+	}
+
+	/**
+	 * @param ind the index to wrap. The index must not be accessed directly while the facade is in use.
+	 * @return a thread-safe facade for the index
+	 * @param <T> Value type
+	 */
+	public static <T> ConcurrentPointMultimap<T> create(PointMultimap<T> ind) {
+		return new ConcurrentPointMultimap<>(ind);
+	}
+
+	@Override
+	public void insert(double[] key, T value) {
+		write(() -> ind.insert(key, value));
+	}
+
+	@Override
+	public boolean remove(double[] point, T value) {
+		return write(() -> ind.remove(point, value));
+	}
+
+	@Override
+	public boolean removeIf(double[] point, Predicate<PointEntry<T>> condition) {
+		return write(() -> ind.removeIf(point, condition));
+	}
+
+	@Override
+	public int removeAll(double[] min, double[] max, Predicate<PointEntry<T>> condition) {
+		return write(() -> ind.removeAll(min, max, condition));
+	}
+
+	@Override
+	public boolean update(double[] oldPoint, double[] newPoint, T value) {
+		return write(() -> ind.update(oldPoint, newPoint, value));
+	}
+
+	@Override
+	public boolean contains(double[] point, T value) {
+		return read(() -> ind.contains(point, value));
+	}
+
+	@Override
+	public PointIterator<T> queryExactPoint(double[] point) {
+		return new PointIter<>(queryExactAll(point, point), this::queryExactAll);
+	}
+
+	private ArrayList<PointEntry<T>> queryExactAll(double[] point, double[] ignored) {
+		return readAll(result -> copyPoints(ind.queryExactPoint(point), result));
+	}
+
+	@Override
+	public PointIterator<T> iterator() {
+		return new PointIter<>(readAll(result -> copyPoints(ind.iterator(), result)), this::queryAll);
+	}
+
+	@Override
+	public PointIterator<T> query(double[] min, double[] max) {
+		return new PointIter<>(queryAll(min, max), this::queryAll);
+	}
+
+	private ArrayList<PointEntry<T>> queryAll(double[] min, double[] max) {
+		return readAll(result -> copyPoints(ind.query(min, max), result));
+	}
+
+	@Override
+	public PointEntryKnn<T> query1nn(double[] center) {
+		return read(() -> {
+			PointEntryKnn<T> e = ind.query1nn(center);
+			return e == null ? null : new PointEntryKnn<>(e.point(), e.value(), e.dist());
+		});
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k) {
+		return new PointIterKnn<>(queryKnnAll(center, k), this::queryKnnAll);
+	}
+
+	private ArrayList<PointEntryKnn<T>> queryKnnAll(double[] center, int k) {
+		return readAll(result -> copyPointsKnn(ind.queryKnn(center, k), result));
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn) {
+		KnnQuery<PointEntryKnn<T>> query =
+				(c, k2) -> readAllLocked(result -> copyPointsKnn(ind.queryKnn(c, k2, distFn), result));
+		return new PointIterKnn<>(query.query(center, k), query);
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn, PointFilterKnn<T> filterFn) {
+		KnnQuery<PointEntryKnn<T>> query =
+				(c, k2) -> readAllLocked(result -> copyPointsKnn(ind.queryKnn(c, k2, distFn, filterFn), result));
+		return new PointIterKnn<>(query.query(center, k), query);
+	}
+
+	/**
+	 * Batch kNN query. The whole batch is executed under the read lock.
+	 * @see PointMultimap#queryKnnBatch(double[][], int, Object[], double[], boolean)
+	 */
+	@Override
+	public void queryKnnBatch(double[][] centers, int k, T[] values, double[] distances, boolean parallel) {
+		readLocked(() -> ind.queryKnnBatch(centers, k, values, distances, parallel));
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * Helper for sorting boxes by the Hilbert order of their centers, see e.g.
+ * {@link org.tinspin.index.rtree.HilbertLoader}.
+ * <p>
+ * The centers are mapped to a grid that covers the bounding box of all centers. The Hilbert index of each
+ * grid cell is calculated with the algorithm by J. Skilling, "Programming the Hilbert curve",
+ * AIP Conference Proceedings 707, 2004. Unlike the z-order (see {@link ZOrder}), consecutive cells on the
+ * Hilbert curve are always adjacent, so runs of consecutive entries form more compact boxes.
+ */
+public class HilbertOrder {
+
+    private HilbertOrder() {
+        // static helper
+    }
+
+    /**
+     * Sort entries by the Hilbert order of their centers.
+     * <p>
+     * As in {@link ZOrder#sort(PointEntry[], double[], double)}, the key and the index of the entry are
+     * packed into a single {@code long}, so the precision of the key is {@code 63 - log2(entries.length)} bits.
+     * If there are too many dimensions for at least one bit per dimension, only the highest bits of the
+     * Hilbert index are used.
+     *
+     * @param entries  the entries, they are sorted in place
+     * @param parallel whether to calculate and sort the keys with multiple threads. The result is the same.
+     * @param <E>      entry type
+     */
+    public static <E extends BoxEntry<?>> void sort(E[] entries, boolean parallel) {
+        if (entries.length < 2) {
+            return;
+        }
+        int dims = entries[0].min().length;
+        int indexBits = 64 - Long.numberOfLeadingZeros(entries.length);
+        int keyBits = 63 - indexBits;
+        int bits = Math.max(1, keyBits / dims);
+
+        // Bounding box of the centers, we use (min+max) instead of (min+max)/2
+        double[] lo = new double[dims];
+        double[] hi = new double[dims];
+        Arrays.fill(lo, Double.POSITIVE_INFINITY);
+        Arrays.fill(hi, Double.NEGATIVE_INFINITY);
+        for (E e : entries) {
+            for (int d = 0; d < dims; d++) {
+                double c = e.min()[d] + e.max()[d];
+                lo[d] = Math.min(lo[d], c);
+                hi[d] = Math.max(hi[d], c);
+            }
+        }
+        // Map [lo, hi] to [0, 2^bits)
+        double[] scale = new double[dims];
+        for (int d = 0; d < dims; d++) {
+            double len = hi[d] - lo[d];
+            scale[d] = len > 0 ? Math.scalb(1.0, bits) / len : 0;
+        }
+        long maxCell = (1L << bits) - 1;
+
+        long[] keys = new long[entries.length];
+        IntStream range = IntStream.range(0, entries.length);
+        (parallel ? range.parallel() : range).forEach(i -> {
+            long[] cells = new long[dims];
+            double[] min = entries[i].min();
+            double[] max = entries[i].max();
+            for (int d = 0; d < dims; d++) {
+                long c = (long) ((min[d] + max[d] - lo[d]) * scale[d]);
+                cells[d] = Math.max(0, Math.min(maxCell, c));
+            }
+            keys[i] = (hilbertIndex(cells, bits, keyBits) << indexBits) | i;
+        });
+        if (parallel) {
+            Arrays.parallelSort(keys);
+        } else {
+            Arrays.sort(keys);
+        }
+
+        E[] copy = entries.clone();
+        long indexMask = (1L << indexBits) - 1;
+        for (int i = 0; i < keys.length; i++) {
+            entries[i] = copy[(int) (keys[i] & indexMask)];
+        }
+    }
+
+    /**
+     * @param cells   grid coordinates, each with 'bits' bits. The array is modified.
+     * @param bits    bits per dimension
+     * @param maxBits maximum number of bits of the result
+     * @return the highest 'maxBits' bits of the Hilbert index of the cell
+     */
+    static long hilbertIndex(long[] cells, int bits, int maxBits) {
+        axesToTranspose(cells, bits);
+        long key = 0;
+        int nBits = 0;
+        for (int b = bits - 1; b >= 0; b--) {
+            for (int d = 0; d < cells.length && nBits < maxBits; d++, nBits++) {
+                key = (key << 1) | ((cells[d] >>> b) & 1L);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Skilling's transform of grid coordinates into the "transposed" Hilbert index. Interleaving
+     * the bits of the result (dimension 0 first) gives the Hilbert index.
+     */
+    private static void axesToTranspose(long[] x, int bits) {
+        int n = x.length;
+        long m = 1L << (bits - 1);
+        // Inverse undo
+        for (long q = m; q > 1; q >>>= 1) {
+            long p = q - 1;
+            for (int i = 0; i < n; i++) {
+                if ((x[i] & q) != 0) {
+                    // invert
+                    x[0] ^= p;
+                } else {
+                    // exchange
+                    long t = (x[0] ^ x[i]) & p;
+                    x[0] ^= t;
+                    x[i] ^= t;
+                }
+            }
+        }
+        // Gray encode
+        for (int i = 1; i < n; i++) {
+            x[i] ^= x[i - 1];
+        }
+        long t = 0;
+        for (long q = m; q > 1; q >>>= 1) {
+            if ((x[n - 1] & q) != 0) {
+                t ^= q - 1;
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            x[i] ^= t;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import java.io.*;
+
+/**
+ * Common helpers for the binary format written by the {@code save(...)} methods of the indexes.
+ * <p>
+ * Every file starts with a header that consists of a magic number, the format version,
+ * the name of the index type and the number of dimensions. The remainder is specific to the index.
+ */
+public class IndexIO {
+
+	private static final int MAGIC = 0x5453_4958; // "TSIX"
+	private static final int VERSION = 1;
+
+	private IndexIO() {
+		// utility class
+	}
+
+	/**
+	 * @param out  output stream, it is buffered but not closed by the returned stream
+	 * @param type name of the index type
+	 * @param dims number of dimensions
+	 * @return an output that must be flushed after the index has been written
+	 * @throws IOException if writing fails
+	 */
+	public static DataOutputStream writeHeader(OutputStream out, String type, int dims) throws IOException {
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
+		dos.writeInt(MAGIC);
+		dos.writeInt(VERSION);
+		dos.writeUTF(type);
+		dos.writeInt(dims);
+		return dos;
+	}
+
+	/**
+	 * The returned input does not read beyond the end of the index, but it is not buffered.
+	 * Callers should pass a buffered stream.
+	 *
+	 * @param in   input stream
+	 * @param type expected name of the index type
+	 * @return an input positioned after the header
+	 * @throws IOException if reading fails or if the header does not match
+	 */
+	public static DataInputStream readHeader(InputStream in, String type) throws IOException {
+		DataInputStream dis = new DataInputStream(in);
+		if (dis.readInt() != MAGIC) {
+			throw new IOException("Not a TinSpin index");
+		}
+		int version = dis.readInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported format version: " + version);
+		}
+		String found = dis.readUTF();
+		if (!type.equals(found)) {
+			throw new IOException("Expected index type " + type + " but found " + found);
+		}
+		return dis;
+	}
+
+	public static void writePoint(DataOutput out, double[] p) throws IOException {
+		for (double d : p) {
+			out.writeDouble(d);
+		}
+	}
+
+	public static double[] readPoint(DataInput in, int dims) throws IOException {
+		double[] p = new double[dims];
+		for (int i = 0; i < dims; i++) {
+			p[i] = in.readDouble();
+		}
+		return p;
+	}
+
+	/**
+	 * @param in input
+	 * @return number of dimensions, as written by {@link #writeHeader(OutputStream, String, int)}
+	 * @throws IOException if reading fails or if the number is invalid
+	 */
+	public static int readDims(DataInput in) throws IOException {
+		int dims = in.readInt();
+		if (dims <= 0) {
+			throw new IOException("Invalid number of dimensions: " + dims);
+		}
+		return dims;
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import java.util.Arrays;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.IntStream;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * Helper for batch kNN queries, see e.g.
+ * {@link org.tinspin.index.PointMap#queryKnnBatch(double[][], int, Object[], double[], boolean)}.
+ * <p>
+ * The queries are split into chunks of {@link #CHUNK_SIZE} query points. Each chunk is processed
+ * by a single thread with a single kNN iterator that is reused via
+ * {@link QueryIteratorKnn#reset(double[], int)}, i.e. the iterator's heaps are reused for all
+ * queries in a chunk. In parallel mode the chunks are processed by the common
+ * {@link java.util.concurrent.ForkJoinPool}.
+ */
+public class KnnBatch {
+
+    /** Number of query points per task. */
+    public static final int CHUNK_SIZE = 64;
+
+    private KnnBatch() {
+        // static helper
+    }
+
+    /**
+     * Processes the query points in the range [start, end).
+     */
+    @FunctionalInterface
+    public interface ChunkQuery {
+        void run(int start, int end);
+    }
+
+    /**
+     * Execute a batch kNN query with a kNN iterator.
+     *
+     * @param centers   query points
+     * @param k         number of neighbors per query point
+     * @param values    Output: values, the results for 'centers[i]' are stored at [i*k, (i+1)*k)
+     * @param distances Output: distances, same layout as 'values'
+     * @param parallel  whether to process the chunks in parallel
+     * @param factory   creates a kNN iterator for a given center
+     * @param valueFn   extracts the value from a result entry
+     * @param distFn    extracts the distance from a result entry
+     * @param <T>       value type
+     * @param <E>       entry type
+     */
+    public static <T, E> void query(double[][] centers, int k, T[] values, double[] distances,
+                                    boolean parallel, Function<double[], ? extends QueryIteratorKnn<E>> factory,
+                                    Function<E, T> valueFn, ToDoubleFunction<E> distFn) {
+        checkArgs(centers, k, values, distances);
+        forEachChunk(centers.length, parallel, (start, end) -> {
+            QueryIteratorKnn<E> it = null;
+            for (int i = start; i < end; i++) {
+                it = it == null ? factory.apply(centers[i]) : it.reset(centers[i], k);
+                int pos = i * k;
+                int posEnd = pos + k;
+                while (pos < posEnd && it.hasNext()) {
+                    E e = it.next();
+                    values[pos] = valueFn.apply(e);
+                    distances[pos] = distFn.applyAsDouble(e);
+                    pos++;
+                }
+                clear(values, distances, pos, posEnd);
+            }
+        });
+    }
+
+    /**
+     * @param centers   query points
+     * @param k         number of neighbors per query point
+     * @param values    result values
+     * @param distances result distances
+     * @throws IllegalArgumentException if the output arrays are smaller than 'centers.length * k'
+     */
+    public static void checkArgs(double[][] centers, int k, Object[] values, double[] distances) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be >= 1: " + k);
+        }
+        long n = (long) centers.length * k;
+        if (values.length < n || distances.length < n) {
+            throw new IllegalArgumentException("Result arrays must have at least " + n + " slots: " +
+                    values.length + " / " + distances.length);
+        }
+    }
+
+    /**
+     * Split the range [0, nCenters) into chunks and execute them, sequentially or in parallel.
+     * @param nCenters number of query points
+     * @param parallel whether to process the chunks in parallel
+     * @param query    the query to execute for each chunk
+     */
+    public static void forEachChunk(int nCenters, boolean parallel, ChunkQuery query) {
+        int nChunks = (nCenters + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        IntStream chunks = IntStream.range(0, nChunks);
+        if (parallel) {
+            chunks = chunks.parallel();
+        }
+        chunks.forEach(iChunk -> {
+            int start = iChunk * CHUNK_SIZE;
+            query.run(start, Math.min(start + CHUNK_SIZE, nCenters));
+        });
+    }
+
+    /**
+     * Mark result slots [from, to) as empty: value is 'null', distance is
+     * {@link Double#POSITIVE_INFINITY}.
+     * @param values    result values
+     * @param distances result distances
+     * @param from      first slot
+     * @param to        end of range (exclusive)
+     */
+    public static void clear(Object[] values, double[] distances, int from, int to) {
+        if (from < to) {
+            Arrays.fill(values, from, to, null);
+            Arrays.fill(distances, from, to, Double.POSITIVE_INFINITY);
+        }
+    }
+}
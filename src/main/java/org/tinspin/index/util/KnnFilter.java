@@ -0,0 +1,92 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * Generic filtered kNN queries for indexes that cannot apply a filter during traversal.
+ * <p>
+ * The unfiltered kNN query is repeated with doubling 'k' until 'k' entries pass the filter or
+ * until the index has no more entries. Indexes that support filters natively should
+ * pass the filter to their kNN iterator instead, this avoids repeated traversals.
+ */
+public class KnnFilter {
+
+	private KnnFilter() {
+		// utility class
+	}
+
+	/**
+	 * @param center  center point
+	 * @param k       number of entries that pass the filter
+	 * @param filterFn filter
+	 * @param knn     unfiltered kNN query, called with (center, k)
+	 * @return an iterator over at most 'k' entries that passed the filter
+	 * @param <T> value type
+	 */
+	public static <T> PointIteratorKnn<T> queryPoints(double[] center, int k, PointFilterKnn<T> filterFn,
+			BiFunction<double[], Integer, ? extends Iterator<PointEntryKnn<T>>> knn) {
+		ConcurrentIndex.KnnQuery<PointEntryKnn<T>> query =
+				(c, k2) -> query(c, k2, e -> filterFn.test(e, e.dist()), knn);
+		return new ConcurrentIndex.PointIterKnn<>(query.query(center, k), query);
+	}
+
+	/**
+	 * @param center  center point
+	 * @param k       number of entries that pass the filter
+	 * @param filterFn filter
+	 * @param knn     unfiltered kNN query, called with (center, k)
+	 * @return an iterator over at most 'k' entries that passed the filter
+	 * @param <T> value type
+	 */
+	public static <T> BoxIteratorKnn<T> queryBoxes(double[] center, int k, BoxFilterKnn<T> filterFn,
+			BiFunction<double[], Integer, ? extends Iterator<BoxEntryKnn<T>>> knn) {
+		ConcurrentIndex.KnnQuery<BoxEntryKnn<T>> query =
+				(c, k2) -> query(c, k2, e -> filterFn.test(e, e.dist()), knn);
+		return new ConcurrentIndex.BoxIterKnn<>(query.query(center, k), query);
+	}
+
+	private static <E> ArrayList<E> query(double[] center, int k, Predicate<E> filter,
+			BiFunction<double[], Integer, ? extends Iterator<E>> knn) {
+		ArrayList<E> result = new ArrayList<>();
+		int kQuery = k;
+		while (k > 0) {
+			result.clear();
+			int n = 0;
+			Iterator<E> it = knn.apply(center, kQuery);
+			while (it.hasNext() && result.size() < k) {
+				E e = it.next();
+				n++;
+				if (filter.test(e)) {
+					result.add(e);
+				}
+			}
+			if (result.size() >= k || n < kQuery || kQuery == Integer.MAX_VALUE) {
+				break;
+			}
+			kQuery = kQuery > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : kQuery * 2;
+		}
+		return result;
+	}
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import org.tinspin.index.BoxDistance;
+import org.tinspin.index.BoxMap;
+import org.tinspin.index.IndexMetrics;
+import org.tinspin.index.IndexMetrics.Op;
+
+/**
+ * A facade for any {@link BoxMap} that reports operation latencies and returned entries
+ * to an {@link IndexMetrics}, see {@link MeteredIndex}.
+ *
+ * @param <T> Value type
+ */
+public class MeteredBoxMap<T> extends MeteredIndex<BoxMap<T>> implements BoxMap<T> {
+
+	private MeteredBoxMap(BoxMap<T> ind, IndexMetrics metrics) {
+		super(ind, metrics);
+	}
+
+	/**
+	 * @param ind the index to wrap
+	 * @param metrics the metrics receiver, it is also passed to the underlying index
+	 * @return a metered facade for the index
+	 * @param <T> Value type
+	 */
+	public static <T> MeteredBoxMap<T> create(BoxMap<T> ind, IndexMetrics metrics) {
+		return new MeteredBoxMap<>(ind, metrics);
+	}
+
+	@Override
+	public void insert(double[] min, double[] max, T value) {
+		time(Op.INSERT, () -> ind.insert(min, max, value));
+	}
+
+	@Override
+	public T remove(double[] min, double[] max) {
+		return time(Op.REMOVE, () -> ind.remove(min, max));
+	}
+
+	@Override
+	public T update(double[] minOld, double[] maxOld, double[] minNew, double[] maxNew) {
+		return time(Op.UPDATE, () -> ind.update(minOld, maxOld, minNew, maxNew));
+	}
+
+	@Override
+	public boolean contains(double[] min, double[] max) {
+		return time(Op.QUERY_EXACT, () -> ind.contains(min, max));
+	}
+
+	@Override
+	public T queryExact(double[] min, double[] max) {
+		return timeQuery(Op.QUERY_EXACT, () -> ind.queryExact(min, max));
+	}
+
+	@Override
+	public BoxIterator<T> iterator() {
+		return new BoxIter<>(time(Op.QUERY_WINDOW, ind::iterator));
+	}
+
+	@Override
+	public BoxIterator<T> queryIntersect(double[] min, double[] max) {
+		return new BoxIter<>(time(Op.QUERY_WINDOW, () -> ind.queryIntersect(min, max)));
+	}
+
+	@Override
+	public BoxEntryKnn<T> query1nn(double[] center) {
+		return timeQuery(Op.QUERY_KNN, () -> ind.query1nn(center));
+	}
+
+	@Override
+	public BoxIteratorKnn<T> queryKnn(double[] center, int k) {
+		return new BoxIterKnn<>(time(Op.QUERY_KNN, () -> ind.queryKnn(center, k)));
+	}
+
+	@Override
+	public BoxIteratorKnn<T> queryKnn(double[] center, int k, BoxDistance distFn, BoxFilterKnn<T> filterFn) {
+		return new BoxIterKnn<>(time(Op.QUERY_KNN, () -> ind.queryKnn(center, k, distFn, filterFn)));
+	}
+}
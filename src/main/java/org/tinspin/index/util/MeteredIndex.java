@@ -0,0 +1,219 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import org.tinspin.index.Index;
+import org.tinspin.index.IndexMetrics;
+import org.tinspin.index.IndexMetrics.Counter;
+import org.tinspin.index.IndexMetrics.Op;
+import org.tinspin.index.Stats;
+
+import java.util.Iterator;
+import java.util.function.Supplier;
+
+/**
+ * Base class for the metered facades {@link MeteredPointMap}, {@link MeteredPointMultimap},
+ * {@link MeteredBoxMap} and {@link MeteredBoxMultimap}.
+ * <p>
+ * The facades record the latency of every operation and count the entries that are returned by
+ * query iterators. Internal events, such as node splits, are reported by the underlying index itself,
+ * see {@link Index#setMetrics(IndexMetrics)}.
+ * <p>
+ * Query iterators are evaluated lazily, the latency of a query is the time required for creating
+ * (or resetting) the iterator. For most kNN queries this includes the whole search, for window queries
+ * it includes only the search for the first entry.
+ *
+ * @param <I> Type of the underlying index
+ */
+abstract class MeteredIndex<I extends Index> implements Index {
+
+	protected final I ind;
+	protected IndexMetrics metrics;
+
+	protected MeteredIndex(I ind, IndexMetrics metrics) {
+		this.ind = ind;
+		setMetrics(metrics);
+	}
+
+	protected <R> R time(Op op, Supplier<R> fn) {
+		long t0 = System.nanoTime();
+		try {
+			return fn.get();
+		} finally {
+			metrics.record(op, System.nanoTime() - t0);
+		}
+	}
+
+	protected void time(Op op, Runnable fn) {
+		long t0 = System.nanoTime();
+		try {
+			fn.run();
+		} finally {
+			metrics.record(op, System.nanoTime() - t0);
+		}
+	}
+
+	/**
+	 * Time a query that returns a single entry (or 'null') and count the entry.
+	 */
+	protected <R> R timeQuery(Op op, Supplier<R> fn) {
+		R result = time(op, fn);
+		if (result != null) {
+			metrics.count(Counter.ENTRIES_RETURNED, 1);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the underlying index
+	 */
+	public I getIndex() {
+		return ind;
+	}
+
+	/**
+	 * @return the metrics receiver
+	 */
+	public IndexMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Set the metrics receiver for this facade and for the underlying index.
+	 * @param metrics the receiver
+	 */
+	@Override
+	public void setMetrics(IndexMetrics metrics) {
+		this.metrics = metrics;
+		ind.setMetrics(metrics);
+	}
+
+	@Override
+	public int getDims() {
+		return ind.getDims();
+	}
+
+	@Override
+	public int size() {
+		return ind.size();
+	}
+
+	@Override
+	public void clear() {
+		ind.clear();
+	}
+
+	@Override
+	public Stats getStats() {
+		return ind.getStats();
+	}
+
+	@Override
+	public int getNodeCount() {
+		return ind.getNodeCount();
+	}
+
+	@Override
+	public int getDepth() {
+		return ind.getDepth();
+	}
+
+	@Override
+	public String toStringTree() {
+		return ind.toStringTree();
+	}
+
+	/**
+	 * An iterator that counts the returned entries.
+	 * @param <E> entry type
+	 * @param <It> type of the underlying iterator
+	 */
+	abstract class CountingIterator<E, It extends Iterator<E>> implements Iterator<E> {
+
+		protected final It it;
+
+		CountingIterator(It it) {
+			this.it = it;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return it.hasNext();
+		}
+
+		@Override
+		public E next() {
+			E e = it.next();
+			metrics.count(Counter.ENTRIES_RETURNED, 1);
+			return e;
+		}
+	}
+
+	class PointIter<T> extends CountingIterator<PointEntry<T>, PointIterator<T>> implements PointIterator<T> {
+
+		PointIter(PointIterator<T> it) {
+			super(it);
+		}
+
+		@Override
+		public PointIterator<T> reset(double[] min, double[] max) {
+			time(Op.QUERY_WINDOW, () -> it.reset(min, max));
+			return this;
+		}
+	}
+
+	class PointIterKnn<T> extends CountingIterator<PointEntryKnn<T>, PointIteratorKnn<T>>
+			implements PointIteratorKnn<T> {
+
+		PointIterKnn(PointIteratorKnn<T> it) {
+			super(it);
+		}
+
+		@Override
+		public PointIteratorKnn<T> reset(double[] center, int k) {
+			time(Op.QUERY_KNN, () -> it.reset(center, k));
+			return this;
+		}
+	}
+
+	class BoxIter<T> extends CountingIterator<BoxEntry<T>, BoxIterator<T>> implements BoxIterator<T> {
+
+		BoxIter(BoxIterator<T> it) {
+			super(it);
+		}
+
+		@Override
+		public BoxIterator<T> reset(double[] min, double[] max) {
+			time(Op.QUERY_WINDOW, () -> it.reset(min, max));
+			return this;
+		}
+	}
+
+	class BoxIterKnn<T> extends CountingIterator<BoxEntryKnn<T>, BoxIteratorKnn<T>> implements BoxIteratorKnn<T> {
+
+		BoxIterKnn(BoxIteratorKnn<T> it) {
+			super(it);
+		}
+
+		@Override
+		public BoxIteratorKnn<T> reset(double[] center, int k) {
+			time(Op.QUERY_KNN, () -> it.reset(center, k));
+			return this;
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import org.tinspin.index.IndexMetrics;
+import org.tinspin.index.IndexMetrics.Op;
+import org.tinspin.index.PointDistance;
+import org.tinspin.index.PointMap;
+
+/**
+ * A facade for any {@link PointMap} that reports operation latencies and returned entries
+ * to an {@link IndexMetrics}, see {@link MeteredIndex}.
+ *
+ * @param <T> Value type
+ */
+public class MeteredPointMap<T> extends MeteredIndex<PointMap<T>> implements PointMap<T> {
+
+	private MeteredPointMap(PointMap<T> ind, IndexMetrics metrics) {
+		super(ind, metrics);
+	}
+
+	/**
+	 * @param ind the index to wrap
+	 * @param metrics the metrics receiver, it is also passed to the underlying index
+	 * @return a metered facade for the index
+	 * @param <T> Value type
+	 */
+	public static <T> MeteredPointMap<T> create(PointMap<T> ind, IndexMetrics metrics) {
+		return new MeteredPointMap<>(ind, metrics);
+	}
+
+	@Override
+	public void insert(double[] key, T value) {
+		time(Op.INSERT, () -> ind.insert(key, value));
+	}
+
+	@Override
+	public T remove(double[] point) {
+		return time(Op.REMOVE, () -> ind.remove(point));
+	}
+
+	@Override
+	public T update(double[] oldPoint, double[] newPoint) {
+		return time(Op.UPDATE, () -> ind.update(oldPoint, newPoint));
+	}
+
+	@Override
+	public boolean contains(double[] point) {
+		return time(Op.QUERY_EXACT, () -> ind.contains(point));
+	}
+
+	@Override
+	public T queryExact(double[] point) {
+		return timeQuery(Op.QUERY_EXACT, () -> ind.queryExact(point));
+	}
+
+	@Override
+	public PointIterator<T> iterator() {
+		return new PointIter<>(time(Op.QUERY_WINDOW, ind::iterator));
+	}
+
+	@Override
+	public PointIterator<T> query(double[] min, double[] max) {
+		return new PointIter<>(time(Op.QUERY_WINDOW, () -> ind.query(min, max)));
+	}
+
+	@Override
+	public PointEntryKnn<T> query1nn(double[] center) {
+		return timeQuery(Op.QUERY_KNN, () -> ind.query1nn(center));
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k) {
+		return new PointIterKnn<>(time(Op.QUERY_KNN, () -> ind.queryKnn(center, k)));
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn, PointFilterKnn<T> filterFn) {
+		return new PointIterKnn<>(time(Op.QUERY_KNN, () -> ind.queryKnn(center, k, distFn, filterFn)));
+	}
+
+	/**
+	 * Batch kNN query. The whole batch is recorded as a single kNN query.
+	 * @see PointMap#queryKnnBatch(double[][], int, Object[], double[], boolean)
+	 */
+	@Override
+	public void queryKnnBatch(double[][] centers, int k, T[] values, double[] distances, boolean parallel) {
+		time(Op.QUERY_KNN, () -> ind.queryKnnBatch(centers, k, values, distances, parallel));
+	}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import org.tinspin.index.IndexMetrics;
+import org.tinspin.index.IndexMetrics.Op;
+import org.tinspin.index.PointDistance;
+import org.tinspin.index.PointMultimap;
+
+import java.util.function.Predicate;
+
+/**
+ * A facade for any {@link PointMultimap} that reports operation latencies and returned entries
+ * to an {@link IndexMetrics}, see {@link MeteredIndex}.
+ *
+ * @param <T> Value type
+ */
+public class MeteredPointMultimap<T> extends MeteredIndex<PointMultimap<T>> implements PointMultimap<T> {
+
+	private MeteredPointMultimap(PointMultimap<T> ind, IndexMetrics metrics) {
+		super(ind, metrics);
+	}
+
+	/**
+	 * @param ind the index to wrap
+	 * @param metrics the metrics receiver, it is also passed to the underlying index
+	 * @return a metered facade for the index
+	 * @param <T> Value type
+	 */
+	public static <T> MeteredPointMultimap<T> create(PointMultimap<T> ind, IndexMetrics metrics) {
+		return new MeteredPointMultimap<>(ind, metrics);
+	}
+
+	@Override
+	public void insert(double[] key, T value) {
+		time(Op.INSERT, () -> ind.insert(key, value));
+	}
+
+	@Override
+	public boolean remove(double[] point, T value) {
+		return time(Op.REMOVE, () -> ind.remove(point, value));
+	}
+
+	@Override
+	public boolean removeIf(double[] point, Predicate<PointEntry<T>> condition) {
+		return time(Op.REMOVE, () -> ind.removeIf(point, condition));
+	}
+
+	@Override
+	public int removeAll(double[] min, double[] max, Predicate<PointEntry<T>> condition) {
+		return time(Op.REMOVE, () -> ind.removeAll(min, max, condition));
+	}
+
+	@Override
+	public boolean update(double[] oldPoint, double[] newPoint, T value) {
+		return time(Op.UPDATE, () -> ind.update(oldPoint, newPoint, value));
+	}
+
+	@Override
+	public boolean contains(double[] point, T value) {
+		return time(Op.QUERY_EXACT, () -> ind.contains(point, value));
+	}
+
+	@Override
+	public PointIterator<T> queryExactPoint(double[] point) {
+		return new PointIter<>(time(Op.QUERY_EXACT, () -> ind.queryExactPoint(point)));
+	}
+
+	@Override
+	public PointIterator<T> iterator() {
+		return new PointIter<>(time(Op.QUERY_WINDOW, ind::iterator));
+	}
+
+	@Override
+	public PointIterator<T> query(double[] min, double[] max) {
+		return new PointIter<>(time(Op.QUERY_WINDOW, () -> ind.query(min, max)));
+	}
+
+	@Override
+	public PointEntryKnn<T> query1nn(double[] center) {
+		return timeQuery(Op.QUERY_KNN, () -> ind.query1nn(center));
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k) {
+		return new PointIterKnn<>(time(Op.QUERY_KNN, () -> ind.queryKnn(center, k)));
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn) {
+		return new PointIterKnn<>(time(Op.QUERY_KNN, () -> ind.queryKnn(center, k, distFn)));
+	}
+
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn, PointFilterKnn<T> filterFn) {
+		return new PointIterKnn<>(time(Op.QUERY_KNN, () -> ind.queryKnn(center, k, distFn, filterFn)));
+	}
+
+	/**
+	 * Batch kNN query. The whole batch is recorded as a single kNN query.
+	 * @see PointMultimap#queryKnnBatch(double[][], int, Object[], double[], boolean)
+	 */
+	@Override
+	public void queryKnnBatch(double[][] centers, int k, T[] values, double[] distances, boolean parallel) {
+		time(Op.QUERY_KNN, () -> ind.queryKnnBatch(centers, k, values, distances, parallel));
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import org.tinspin.index.IndexMetrics.Counter;
+import org.tinspin.index.IndexMetrics.Op;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * JMX adapter for a {@link MetricsRecorder}.
+ * <p>
+ * Every counter is exposed as an attribute with the name of the counter, e.g. "NODE_SPLITS".
+ * For every operation there are the attributes "&lt;op&gt;_count", "&lt;op&gt;_meanNanos",
+ * "&lt;op&gt;_p50Nanos", "&lt;op&gt;_p99Nanos" and "&lt;op&gt;_maxNanos", e.g. "INSERT_p99Nanos".
+ * The operation "reset" resets the recorder.
+ */
+public class MetricsMBean implements DynamicMBean {
+
+	private static final String DOMAIN = "org.tinspin.index";
+
+	private final MetricsRecorder recorder;
+	private final Map<String, Supplier<Object>> attributes = new LinkedHashMap<>();
+	private final MBeanInfo info;
+
+	public MetricsMBean(MetricsRecorder recorder) {
+		this.recorder = recorder;
+		for (Counter c : Counter.values()) {
+			attributes.put(c.name(), () -> recorder.getCount(c));
+		}
+		for (Op op : Op.values()) {
+			attributes.put(op.name() + "_count", () -> recorder.getCount(op));
+			attributes.put(op.name() + "_meanNanos", () -> recorder.getMeanNanos(op));
+			attributes.put(op.name() + "_p50Nanos", () -> recorder.getPercentileNanos(op, 50));
+			attributes.put(op.name() + "_p99Nanos", () -> recorder.getPercentileNanos(op, 99));
+			attributes.put(op.name() + "_maxNanos", () -> recorder.getMaxNanos(op));
+		}
+		List<MBeanAttributeInfo> attrInfos = new ArrayList<>();
+		attributes.forEach((name, getter) -> {
+			String type = name.endsWith("_meanNanos") ? "double" : "long";
+			attrInfos.add(new MBeanAttributeInfo(name, type, name, true, false, false));
+		});
+		MBeanOperationInfo reset = new MBeanOperationInfo(
+				"reset", "Reset all metrics", new MBeanParameterInfo[0], "void", MBeanOperationInfo.ACTION);
+		info = new MBeanInfo(getClass().getName(), "TinSpin index metrics",
+				attrInfos.toArray(new MBeanAttributeInfo[0]), null,
+				new MBeanOperationInfo[]{reset}, null);
+	}
+
+	/**
+	 * Register a recorder with the platform MBean server.
+	 * @param name the name of the index, used as value of the "name" key of the object name
+	 * @param recorder the recorder
+	 * @return the object name, it can be used to unregister the MBean
+	 */
+	public static ObjectName register(String name, MetricsRecorder recorder) {
+		try {
+			ObjectName objectName = new ObjectName(DOMAIN + ":type=IndexMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(new MetricsMBean(recorder), objectName);
+			return objectName;
+		} catch (JMException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @param objectName an object name returned by {@link #register(String, MetricsRecorder)}
+	 */
+	public static void unregister(ObjectName objectName) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+		} catch (JMException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Override
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Supplier<Object> getter = attributes.get(attribute);
+		if (getter == null) {
+			throw new AttributeNotFoundException(attribute);
+		}
+		return getter.get();
+	}
+
+	@Override
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Attributes are read-only: " + attribute.getName());
+	}
+
+	@Override
+	public AttributeList getAttributes(String[] names) {
+		AttributeList list = new AttributeList();
+		for (String name : names) {
+			Supplier<Object> getter = attributes.get(name);
+			if (getter != null) {
+				list.add(new Attribute(name, getter.get()));
+			}
+		}
+		return list;
+	}
+
+	@Override
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	@Override
+	public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+		if ("reset".equals(actionName) && (params == null || params.length == 0)) {
+			recorder.reset();
+			return null;
+		}
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	@Override
+	public MBeanInfo getMBeanInfo() {
+		return info;
+	}
+}
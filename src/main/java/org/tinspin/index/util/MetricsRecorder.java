@@ -0,0 +1,184 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import org.tinspin.index.IndexMetrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread-safe {@link IndexMetrics} with counters and a latency histogram per operation.
+ * <p>
+ * Histograms have one bucket per power of two nanoseconds. Percentiles are therefore approximate,
+ * they return the upper bound of the bucket that contains the percentile, i.e. they may be up to 2x
+ * larger than the exact value.
+ * <p>
+ * See {@link MetricsMBean} for exposing the metrics via JMX.
+ */
+public class MetricsRecorder implements IndexMetrics {
+
+	private final LongAdder[] counters = new LongAdder[Counter.values().length];
+	private final Histogram[] histograms = new Histogram[Op.values().length];
+
+	public MetricsRecorder() {
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = new LongAdder();
+		}
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new Histogram();
+		}
+	}
+
+	@Override
+	public void count(Counter counter, long n) {
+		counters[counter.ordinal()].add(n);
+	}
+
+	@Override
+	public void record(Op op, long nanos) {
+		histograms[op.ordinal()].record(nanos);
+	}
+
+	/**
+	 * @param counter the counter
+	 * @return the number of events
+	 */
+	public long getCount(Counter counter) {
+		return counters[counter.ordinal()].sum();
+	}
+
+	/**
+	 * @param op the operation
+	 * @return the number of executions of the operation
+	 */
+	public long getCount(Op op) {
+		return histograms[op.ordinal()].count.sum();
+	}
+
+	/**
+	 * @param op the operation
+	 * @return the mean latency in nanoseconds or 0 if the operation was never executed
+	 */
+	public double getMeanNanos(Op op) {
+		Histogram h = histograms[op.ordinal()];
+		long n = h.count.sum();
+		return n == 0 ? 0 : h.sum.sum() / (double) n;
+	}
+
+	/**
+	 * @param op the operation
+	 * @return the maximum latency in nanoseconds or 0 if the operation was never executed
+	 */
+	public long getMaxNanos(Op op) {
+		return histograms[op.ordinal()].max.get();
+	}
+
+	/**
+	 * @param op the operation
+	 * @param percentile the percentile, between 0 and 100
+	 * @return an upper bound for the latency percentile in nanoseconds, or 0 if the operation was never executed
+	 */
+	public long getPercentileNanos(Op op, double percentile) {
+		if (percentile < 0 || percentile > 100) {
+			throw new IllegalArgumentException("percentile=" + percentile);
+		}
+		Histogram h = histograms[op.ordinal()];
+		long[] buckets = new long[Histogram.N_BUCKETS];
+		long total = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = h.buckets[i].sum();
+			total += buckets[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+		long n = 0;
+		for (int i = 0; i < buckets.length; i++) {
+			n += buckets[i];
+			if (n >= rank) {
+				return Math.min(Histogram.upperBound(i), h.max.get());
+			}
+		}
+		return h.max.get();
+	}
+
+	/**
+	 * Reset all counters and histograms. Events that are reported concurrently may or may not be lost.
+	 */
+	public void reset() {
+		for (LongAdder c : counters) {
+			c.reset();
+		}
+		for (Histogram h : histograms) {
+			h.reset();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Counter c : Counter.values()) {
+			sb.append(c).append('=').append(getCount(c)).append(';');
+		}
+		for (Op op : Op.values()) {
+			sb.append(op).append("=[n=").append(getCount(op))
+					.append(";mean=").append((long) getMeanNanos(op))
+					.append(";p99=").append(getPercentileNanos(op, 99))
+					.append(";max=").append(getMaxNanos(op)).append("];");
+		}
+		return sb.toString();
+	}
+
+	private static class Histogram {
+		// bucket 'i' contains values in [2^(i-1), 2^i), bucket 0 contains 0
+		static final int N_BUCKETS = 64;
+		final LongAdder[] buckets = new LongAdder[N_BUCKETS];
+		final LongAdder count = new LongAdder();
+		final LongAdder sum = new LongAdder();
+		final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+		Histogram() {
+			for (int i = 0; i < N_BUCKETS; i++) {
+				buckets[i] = new LongAdder();
+			}
+		}
+
+		void record(long nanos) {
+			nanos = Math.max(0, nanos);
+			buckets[Math.min(N_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos))].increment();
+			count.increment();
+			sum.add(nanos);
+			max.accumulate(nanos);
+		}
+
+		static long upperBound(int bucket) {
+			return bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+		}
+
+		void reset() {
+			for (LongAdder b : buckets) {
+				b.reset();
+			}
+			count.reset();
+			sum.reset();
+			max.reset();
+		}
+	}
+}
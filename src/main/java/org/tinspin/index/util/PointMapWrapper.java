@@ -32,6 +32,13 @@ public class PointMapWrapper<T> implements PointMap<T> {
 	public static <T> PointMap<T> create(BoxMap<T> ind) {
 		return new PointMapWrapper<>(ind);
 	}
+
+	/**
+	 * @return the wrapped box index
+	 */
+	BoxMap<T> getIndex() {
+		return ind;
+	}
 	
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
@@ -83,6 +90,29 @@ public class PointMapWrapper<T> implements PointMap<T> {
 		return new PointDIter(ind.queryKnn(center, k));
 	}
 
+	/**
+	 * Filtered kNN query. The filter is passed on to the underlying box index.
+	 * @see PointMap#queryKnn(double[], int, PointDistance, PointFilterKnn)
+	 */
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn, PointFilterKnn<T> filterFn) {
+		BoxDistance boxDistFn = distFn == PointDistance.L2
+				? BoxDistance.EDGE : new BoxDistance.EdgeDistance(distFn)::edgeDistance;
+		return new PointDIter<>(ind.queryKnn(center, k, boxDistFn,
+				(e, d) -> filterFn.test(new PointEntry<>(e.min(), e.value()), d)));
+	}
+
+	/**
+	 * Batch kNN query that reads the results directly from the box kNN iterator,
+	 * i.e. without wrapping every result in a {@link PointEntryKnn}.
+	 * @see PointMap#queryKnnBatch(double[][], int, Object[], double[], boolean)
+	 */
+	@Override
+	public void queryKnnBatch(double[][] centers, int k, T[] values, double[] distances, boolean parallel) {
+		KnnBatch.query(centers, k, values, distances, parallel, c -> ind.queryKnn(c, k),
+				BoxEntryKnn::value, BoxEntryKnn::dist);
+	}
+
 	private static class PointDIter<T> implements PointIteratorKnn<T> {
 
 		private final BoxIteratorKnn<T> it;
@@ -172,8 +202,21 @@ public class PointMapWrapper<T> implements PointMap<T> {
 		((RTree<T>)ind).load(entries);
 	}
 
+	public void loadHilbert(RTreeEntry<T>[] entries) {
+		if (!(ind instanceof RTree)) {
+			throw new UnsupportedOperationException(
+					"Bulkloading is only supported for RTrees");
+		}
+		((RTree<T>)ind).loadHilbert(entries);
+	}
+
 	@Override
 	public String toStringTree() {
 		return ind.toStringTree();
 	}
+
+	@Override
+	public void setMetrics(IndexMetrics metrics) {
+		ind.setMetrics(metrics);
+	}
 }
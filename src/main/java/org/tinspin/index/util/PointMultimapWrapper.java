@@ -34,6 +34,13 @@ public class PointMultimapWrapper<T> implements PointMultimap<T> {
 	public static <T> PointMultimap<T> create(BoxMultimap<T> ind) {
 		return new PointMultimapWrapper<>(ind);
 	}
+
+	/**
+	 * @return the wrapped box index
+	 */
+	BoxMultimap<T> getIndex() {
+		return ind;
+	}
 	
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	@Override
@@ -91,6 +98,28 @@ public class PointMultimapWrapper<T> implements PointMultimap<T> {
 		return new PointDIter<>(ind.queryKnn(center, k, fn::edgeDistance));
 	}
 
+	/**
+	 * Filtered kNN query. The filter is passed on to the underlying box index.
+	 * @see PointMultimap#queryKnn(double[], int, PointDistance, PointFilterKnn)
+	 */
+	@Override
+	public PointIteratorKnn<T> queryKnn(double[] center, int k, PointDistance distFn, PointFilterKnn<T> filterFn) {
+		BoxDistance.EdgeDistance fn = new BoxDistance.EdgeDistance(distFn);
+		return new PointDIter<>(ind.queryKnn(center, k, fn::edgeDistance,
+				(e, d) -> filterFn.test(new PointEntry<>(e.min(), e.value()), d)));
+	}
+
+	/**
+	 * Batch kNN query that reads the results directly from the box kNN iterator,
+	 * i.e. without wrapping every result in a {@link PointEntryKnn}.
+	 * @see PointMultimap#queryKnnBatch(double[][], int, Object[], double[], boolean)
+	 */
+	@Override
+	public void queryKnnBatch(double[][] centers, int k, T[] values, double[] distances, boolean parallel) {
+		KnnBatch.query(centers, k, values, distances, parallel, c -> ind.queryKnn(c, k),
+				BoxEntryKnn::value, BoxEntryKnn::dist);
+	}
+
 	private static class PointDIter<T> implements PointIteratorKnn<T> {
 
 		private final BoxIteratorKnn<T> it;
@@ -132,6 +161,11 @@ public class PointMultimapWrapper<T> implements PointMultimap<T> {
 		return ind.removeIf(point, point, e -> condition.test(new PointEntry<>(e.min(), e.value())));
 	}
 
+	@Override
+	public int removeAll(double[] min, double[] max, Predicate<PointEntry<T>> condition) {
+		return ind.removeAll(min, max, e -> condition.test(new PointEntry<>(e.min(), e.value())));
+	}
+
 	@Override
 	public PointIterator<T> queryExactPoint(double[] point) {
 		return new PointIter<>(ind.queryExactBox(point, point));
@@ -185,8 +219,21 @@ public class PointMultimapWrapper<T> implements PointMultimap<T> {
 		((RTree<T>)ind).load(entries);
 	}
 
+	public void loadHilbert(RTreeEntry<T>[] entries) {
+		if (!(ind instanceof RTree)) {
+			throw new UnsupportedOperationException(
+					"Bulkloading is only supported for RTrees");
+		}
+		((RTree<T>)ind).loadHilbert(entries);
+	}
+
 	@Override
 	public String toStringTree() {
 		return ind.toStringTree();
 	}
+
+	@Override
+	public void setMetrics(IndexMetrics metrics) {
+		ind.setMetrics(metrics);
+	}
 }
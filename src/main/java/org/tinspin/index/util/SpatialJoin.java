@@ -0,0 +1,177 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+
+import org.tinspin.index.BoxMultimap;
+import org.tinspin.index.PointMultimap;
+import org.tinspin.index.qthypercube.QuadTreeRKD;
+import org.tinspin.index.rtree.RTree;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * Spatial join of two indexes: reports all pairs of entries whose Euclidean distance is at most
+ * 'maxDist'. With 'maxDist=0' these are the pairs of intersecting (or touching) entries.
+ * <p>
+ * Two {@link RTree}s or two {@link QuadTreeRKD}s are joined by traversing both trees together,
+ * see {@link RTree#join(RTree, double, BiConsumer, boolean)} and
+ * {@link QuadTreeRKD#join(QuadTreeRKD, double, BiConsumer, boolean)}. The same applies to points
+ * in an R-Tree (see {@link PointMultimap.Factory#createRStarTree(int)}) joined with an R-Tree.
+ * All other combinations probe the second index with a window query for every entry of the
+ * first index.
+ * <p>
+ * In parallel mode the work is split over the common {@link java.util.concurrent.ForkJoinPool}
+ * and the consumer is called concurrently from several threads. The indexes must not be
+ * modified during the join.
+ */
+public class SpatialJoin {
+
+    private SpatialJoin() {
+        // static helper
+    }
+
+    /**
+     * Join two box indexes.
+     *
+     * @param a        first index
+     * @param b        second index
+     * @param maxDist  maximum distance of the pairs
+     * @param consumer receives the pairs
+     * @param parallel whether to join in parallel
+     * @param <A>      value type of the first index
+     * @param <B>      value type of the second index
+     */
+    @SuppressWarnings("unchecked")
+    public static <A, B> void join(BoxMultimap<A> a, BoxMultimap<B> b, double maxDist,
+                                   BiConsumer<BoxEntry<A>, BoxEntry<B>> consumer, boolean parallel) {
+        checkArgs(a.getDims(), b.getDims(), maxDist);
+        if (a instanceof RTree && b instanceof RTree) {
+            ((RTree<A>) a).join((RTree<B>) b, maxDist, consumer, parallel);
+        } else if (a instanceof QuadTreeRKD && b instanceof QuadTreeRKD) {
+            ((QuadTreeRKD<A>) a).join((QuadTreeRKD<B>) b, maxDist, consumer, parallel);
+        } else {
+            ArrayList<BoxEntry<A>> entries = new ArrayList<>();
+            BoxIterator<A> it = a.queryIntersect(infinity(a.getDims(), -1), infinity(a.getDims(), 1));
+            while (it.hasNext()) {
+                BoxEntry<A> e = it.next();
+                entries.add(new BoxEntry<>(e.min().clone(), e.max().clone(), e.value()));
+            }
+            forEach(entries.size(), parallel, i -> {
+                BoxEntry<A> e = entries.get(i);
+                probe(b, e.min(), e.max(), maxDist, eb -> consumer.accept(e, eb));
+            });
+        }
+    }
+
+    /**
+     * Join a point index with a box index.
+     *
+     * @param points   point index
+     * @param boxes    box index
+     * @param maxDist  maximum distance of the pairs
+     * @param consumer receives the pairs
+     * @param parallel whether to join in parallel
+     * @param <A>      value type of the point index
+     * @param <B>      value type of the box index
+     */
+    @SuppressWarnings("unchecked")
+    public static <A, B> void join(PointMultimap<A> points, BoxMultimap<B> boxes, double maxDist,
+                                   BiConsumer<PointEntry<A>, BoxEntry<B>> consumer, boolean parallel) {
+        checkArgs(points.getDims(), boxes.getDims(), maxDist);
+        if (points instanceof PointMultimapWrapper && boxes instanceof RTree
+                && ((PointMultimapWrapper<A>) points).getIndex() instanceof RTree) {
+            RTree<A> tree = (RTree<A>) ((PointMultimapWrapper<A>) points).getIndex();
+            tree.join((RTree<B>) boxes, maxDist,
+                    (ea, eb) -> consumer.accept(new PointEntry<>(ea.min(), ea.value()), eb), parallel);
+        } else {
+            ArrayList<PointEntry<A>> entries = new ArrayList<>();
+            PointIterator<A> it = points.query(infinity(points.getDims(), -1), infinity(points.getDims(), 1));
+            while (it.hasNext()) {
+                PointEntry<A> e = it.next();
+                entries.add(new PointEntry<>(e.point().clone(), e.value()));
+            }
+            forEach(entries.size(), parallel, i -> {
+                PointEntry<A> e = entries.get(i);
+                probe(boxes, e.point(), e.point(), maxDist, eb -> consumer.accept(e, eb));
+            });
+        }
+    }
+
+    private static <B> void probe(BoxMultimap<B> index, double[] min, double[] max, double maxDist,
+                                  Consumer<BoxEntry<B>> consumer) {
+        double[] qMin = new double[min.length];
+        double[] qMax = new double[max.length];
+        for (int d = 0; d < min.length; d++) {
+            qMin[d] = min[d] - maxDist;
+            qMax[d] = max[d] + maxDist;
+        }
+        double maxDistSq = maxDist * maxDist;
+        BoxIterator<B> it = index.queryIntersect(qMin, qMax);
+        while (it.hasNext()) {
+            BoxEntry<B> e = it.next();
+            if (distanceSq(min, max, e.min(), e.max()) <= maxDistSq) {
+                consumer.accept(e);
+            }
+        }
+    }
+
+    /**
+     * @return the squared Euclidean distance between two boxes, '0' if they intersect
+     */
+    private static double distanceSq(double[] minA, double[] maxA, double[] minB, double[] maxB) {
+        double distSq = 0;
+        for (int d = 0; d < minA.length; d++) {
+            double gap = Math.max(minA[d] - maxB[d], minB[d] - maxA[d]);
+            if (gap > 0) {
+                distSq += gap * gap;
+            }
+        }
+        return distSq;
+    }
+
+    private static void forEach(int n, boolean parallel, IntConsumer action) {
+        if (parallel) {
+            IntStream.range(0, n).parallel().forEach(action);
+        } else {
+            for (int i = 0; i < n; i++) {
+                action.accept(i);
+            }
+        }
+    }
+
+    private static double[] infinity(int dims, int sign) {
+        double[] v = new double[dims];
+        Arrays.fill(v, sign * Double.POSITIVE_INFINITY);
+        return v;
+    }
+
+    private static void checkArgs(int dimsA, int dimsB, double maxDist) {
+        if (maxDist < 0) {
+            throw new IllegalArgumentException("maxDist must not be negative: " + maxDist);
+        }
+        if (dimsA != dimsB) {
+            throw new IllegalArgumentException("Dimensionality mismatch: " + dimsA + " vs " + dimsB);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.util;
+
+import java.util.Arrays;
+
+import static org.tinspin.index.Index.*;
+
+/**
+ * Helper for batch insertion into quadtrees, see e.g.
+ * {@link org.tinspin.index.qthypercube2.QuadTreeKD2#insertAll(PointEntry[])}.
+ * <p>
+ * Entries are sorted by their z-order (Morton order) with respect to a quadtree node. The bits of the
+ * z-order key are aligned with the hypercube addresses of the node and its subnodes, i.e. the highest
+ * 'dims' bits are the hypercube address in the node, the next 'dims' bits are the address in the subnode,
+ * and so on. Dimension 0 is the highest bit of each address. Entries that end up in the same subtree
+ * are therefore (mostly) adjacent after sorting.
+ */
+public class ZOrder {
+
+    private ZOrder() {
+        // static helper
+    }
+
+    /**
+     * @param entries the entries, must not be empty
+     * @return the bounding box of the entries as {min, max}
+     * @param <T> value type
+     */
+    public static <T> double[][] bounds(PointEntry<T>[] entries) {
+        double[] min = entries[0].point().clone();
+        double[] max = entries[0].point().clone();
+        for (PointEntry<T> e : entries) {
+            double[] p = e.point();
+            for (int d = 0; d < min.length; d++) {
+                min[d] = Math.min(min[d], p[d]);
+                max[d] = Math.max(max[d], p[d]);
+            }
+        }
+        return new double[][]{min, max};
+    }
+
+    /**
+     * Sort entries by z-order with respect to a node.
+     * <p>
+     * The z-order key and the index of the entry are packed into a single {@code long} so that the keys can
+     * be sorted as primitives. The precision of the key is therefore {@code 63 - log2(entries.length)} bits,
+     * which is sufficient because the order is only used to improve locality.
+     *
+     * @param entries the entries, the array is not modified
+     * @param center the center of the node
+     * @param radius the radius of the node
+     * @return a new array with the sorted entries
+     * @param <T> value type
+     */
+    public static <T> PointEntry<T>[] sort(PointEntry<T>[] entries, double[] center, double radius) {
+        int dims = center.length;
+        int indexBits = 64 - Long.numberOfLeadingZeros(entries.length);
+        int keyBits = 63 - indexBits;
+        // Bits per dimension, at least 1. If there are too many dimensions, only the first ones are used.
+        int bits = Math.max(1, keyBits / dims);
+        double[] lo = new double[dims];
+        for (int d = 0; d < dims; d++) {
+            lo[d] = center[d] - radius;
+        }
+        // Map [center-radius, center+radius) to [0, 2^bits)
+        double scale = Math.scalb(1.0, bits) / (2 * radius);
+        long maxCell = (1L << bits) - 1;
+        long[] cells = new long[dims];
+
+        long[] keys = new long[entries.length];
+        for (int i = 0; i < entries.length; i++) {
+            double[] p = entries[i].point();
+            for (int d = 0; d < dims; d++) {
+                long c = (long) ((p[d] - lo[d]) * scale);
+                cells[d] = Math.max(0, Math.min(maxCell, c));
+            }
+            keys[i] = (interleave(cells, bits, keyBits) << indexBits) | i;
+        }
+        Arrays.sort(keys);
+
+        PointEntry<T>[] result = entries.clone();
+        long indexMask = (1L << indexBits) - 1;
+        for (int i = 0; i < keys.length; i++) {
+            result[i] = entries[(int) (keys[i] & indexMask)];
+        }
+        return result;
+    }
+
+    private static long interleave(long[] cells, int bits, int maxBits) {
+        long key = 0;
+        int nBits = 0;
+        for (int b = bits - 1; b >= 0; b--) {
+            for (int d = 0; d < cells.length && nBits < maxBits; d++, nBits++) {
+                key = (key << 1) | ((cells[d] >>> b) & 1L);
+            }
+        }
+        return key;
+    }
+}
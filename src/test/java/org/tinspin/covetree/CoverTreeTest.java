@@ -253,6 +253,7 @@ public class CoverTreeTest {
 		}
 		
 		smokeTestAccess(tree, point_list);
+		smokeTestRemove(tree, point_list);
 	}
 	
 	@SuppressWarnings("unchecked")
@@ -299,17 +300,100 @@ public class CoverTreeTest {
 			}
 		}
 	    
-//		for (double[] key : point_list) {
-////			System.out.println(tree.toStringTree());
-////			System.out.println("Removing: " + Arrays.toString(key));
-//			if (!tree.containsExact(key)) {
-//				throw new IllegalStateException("containsExact() failed: " + Arrays.toString(key));
-//			}
-//			double[] answer = tree.remove(key); 
-//			if (answer != key && !Arrays.equals(answer, key)) {
-//				throw new IllegalStateException("Expected " + Arrays.toString(key) + " but got " + Arrays.toString(answer));
-//			}
-//		}
+		int nExtent = 0;
+		PointIterator<double[]> extent = tree.iterator();
+		while (extent.hasNext()) {
+			extent.next();
+			nExtent++;
+		}
+		if (nExtent != point_list.length) {
+			throw new IllegalStateException("Expected " + point_list.length + " but got " + nExtent);
+		}
+
+		//brute force comparison is expensive, we only check a few windows
+		for (int i = 0; i < Math.min(100, point_list.length); i++) {
+			double[] key = point_list[i];
+			double[] min = key.clone();
+			double[] max = key.clone();
+			for (int d = 0; d < key.length; d++) {
+				min[d] -= 1;
+				max[d] += 1;
+			}
+			int nExpected = 0;
+			for (double[] p : point_list) {
+				boolean isInside = true;
+				for (int d = 0; d < p.length; d++) {
+					isInside &= p[d] >= min[d] && p[d] <= max[d];
+				}
+				nExpected += isInside ? 1 : 0;
+			}
+			int nFound = 0;
+			PointIterator<double[]> iter = tree.query(min, max);
+			while (iter.hasNext()) {
+				iter.next();
+				nFound++;
+			}
+			if (nFound != nExpected) {
+				throw new IllegalStateException("Window query failed: " + Arrays.toString(key)
+						+ " expected " + nExpected + " but got " + nFound);
+			}
+		}
+	}
+
+	private void smokeTestRemove(CoverTree<double[]> tree, double[][] point_list) {
+		if (point_list.length > 10_000) {
+			//Removing inner nodes requires re-inserting their subtrees, this is too
+			//slow for large trees with many duplicates.
+			return;
+		}
+		int nRemoved = 0;
+		for (double[] key : point_list) {
+//			System.out.println(tree.toStringTree());
+//			System.out.println("Removing: " + Arrays.toString(key));
+			if (!tree.contains(key)) {
+				throw new IllegalStateException("contains() failed: " + Arrays.toString(key));
+			}
+			double[] answer = tree.remove(key); 
+			if (answer != key && !Arrays.equals(answer, key)) {
+				throw new IllegalStateException("Expected " + Arrays.toString(key) + " but got " + Arrays.toString(answer));
+			}
+			if (++nRemoved % (1 + point_list.length / 100) == 0) {
+				tree.check();
+			}
+		}
+		if (tree.size() != 0) {
+			throw new IllegalStateException("Expected empty tree but got " + tree.size());
+		}
+	}
+	
+	@Test
+	public void testUpdate() {
+		Random R = new Random(0);
+		CoverTree<Integer> tree = CoverTree.create(3);
+		double[][] points = new double[1000][3];
+		for (int i = 0; i < points.length; i++) {
+			Arrays.setAll(points[i], (d) -> R.nextDouble());
+			tree.insert(points[i], i);
+		}
+		for (int r = 0; r < 5; r++) {
+			for (int i = 0; i < points.length; i++) {
+				double[] p2 = points[i].clone();
+				Arrays.setAll(p2, (d) -> p2[d] + R.nextDouble() * 0.1 - 0.05);
+				if (tree.update(points[i], p2) != i) {
+					throw new IllegalStateException("update() failed: " + Arrays.toString(points[i]));
+				}
+				points[i] = p2;
+			}
+			tree.check();
+		}
+		for (int i = 0; i < points.length; i++) {
+			if (tree.queryExact(points[i]) != i) {
+				throw new IllegalStateException("queryExact() failed: " + Arrays.toString(points[i]));
+			}
+		}
+		if (tree.update(new double[] {-1, -1, -1}, new double[3]) != null) {
+			throw new IllegalStateException();
+		}
 	}
 
 	public void knnTest(double[][] entries, double[][] search_list, boolean print) {
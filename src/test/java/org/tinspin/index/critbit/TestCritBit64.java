@@ -86,6 +86,30 @@ public class TestCritBit64 {
 		randomInsertCheck(6, 95109, 8);
 	}
 	
+	/**
+	 * Queries failed if the root node splits at the sign bit.
+	 */
+	@Test
+	public void testQueryRootSignBit() {
+		CritBit64<Integer> cb = newCritBit();
+		cb.put(5, 1);
+		cb.put(-5, 2);
+		cb.put(50, 3);
+		QueryIterator<Integer> it = cb.query(3, 7);
+		assertTrue(it.hasNext());
+		assertEquals(5, it.nextKey());
+		assertFalse(it.hasNext());
+		it = cb.query(-10, -1);
+		assertTrue(it.hasNext());
+		assertEquals(-5, it.nextKey());
+		assertFalse(it.hasNext());
+
+		QueryIteratorMask<Integer> itM = cb.queryWithMask(4, 5);
+		assertTrue(itM.hasNext());
+		assertEquals(5, itM.nextKey());
+		assertFalse(itM.hasNext());
+	}
+	
 	@Test
 	public void testInsertIntR() {
 		randomInsertCheck(1000 * REPEAT, 0, 32);
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.critbit;
+
+import static org.junit.Assert.*;
+import static org.tinspin.index.Index.*;
+
+import java.util.*;
+
+import org.junit.Test;
+import org.tinspin.index.PointDistance;
+import org.tinspin.index.PointMap;
+
+public class TestCritBitZ {
+
+	@Test
+	public void test1D() {
+		testRandom(1, 0);
+	}
+
+	@Test
+	public void test2D() {
+		testRandom(2, 1);
+	}
+
+	@Test
+	public void test3D() {
+		testRandom(3, 2);
+	}
+
+	@Test
+	public void test4D() {
+		testRandom(4, 3);
+	}
+
+	@Test
+	public void testFactory() {
+		PointMap<Integer> tree = PointMap.Factory.createCritBitZ(2);
+		assertTrue(tree instanceof CritBitZ);
+		assertEquals(2, tree.getDims());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testTooManyDims() {
+		CritBitZ.create(5);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testZeroDims() {
+		CritBitZ.create(0);
+	}
+
+	private static void testRandom(int dims, long seed) {
+		Random R = new Random(seed);
+		CritBitZ<Integer> tree = CritBitZ.create(dims);
+		Map<Integer, double[]> expected = new HashMap<>();
+		for (int i = 0; i < 5_000; i++) {
+			// coordinates with mixed signs, some duplicates per dimension
+			double[] p = new double[dims];
+			Arrays.setAll(p, d -> R.nextInt(10) == 0 ? R.nextInt(3) - 1 : (R.nextDouble() - 0.3) * 100);
+			if (tree.contains(p)) {
+				continue;
+			}
+			tree.insert(p, i);
+			expected.put(i, p);
+		}
+		check(tree, expected, R);
+
+		// remove and update
+		List<Integer> values = new ArrayList<>(expected.keySet());
+		Collections.shuffle(values, R);
+		for (int i = 0; i < values.size() / 2; i++) {
+			int v = values.get(i);
+			double[] p = expected.get(v);
+			if (i % 2 == 0) {
+				assertEquals(v, (int) tree.remove(p));
+				assertNull(tree.remove(p));
+				expected.remove(v);
+			} else {
+				double[] p2 = p.clone();
+				p2[0] = -p2[0] + 0.5;
+				if (tree.contains(p2)) {
+					continue;
+				}
+				assertEquals(v, (int) tree.update(p, p2));
+				assertNull(tree.update(p, p2));
+				expected.put(v, p2);
+			}
+		}
+		check(tree, expected, R);
+
+		tree.clear();
+		assertEquals(0, tree.size());
+		assertFalse(tree.iterator().hasNext());
+		assertFalse(tree.queryKnn(new double[dims], 1).hasNext());
+		check(tree, new HashMap<>(), R);
+	}
+
+	private static void check(CritBitZ<Integer> tree, Map<Integer, double[]> expected, Random R) {
+		int dims = tree.getDims();
+		assertEquals(expected.size(), tree.size());
+		assertEquals(expected.size(), tree.getStats().getEntryCount());
+		expected.forEach((v, p) -> {
+			assertTrue(tree.contains(p));
+			assertEquals(v, tree.queryExact(p));
+		});
+		assertEquals(expected.size(), count(tree.iterator()));
+
+		PointIterator<Integer> it = tree.query(new double[dims], new double[dims]);
+		for (int i = 0; i < 50; i++) {
+			double[] min = new double[dims];
+			double[] max = new double[dims];
+			double w = i < 10 ? 0 : R.nextDouble() * 40;
+			Arrays.setAll(min, d -> (R.nextDouble() - 0.3) * 100);
+			Arrays.setAll(max, d -> min[d] + w);
+			long n = expected.values().stream().filter(p -> isInside(p, min, max)).count();
+			it.reset(min, max);
+			int found = 0;
+			while (it.hasNext()) {
+				PointEntry<Integer> e = it.next();
+				assertArrayEquals(expected.get(e.value()), e.point(), 0.0);
+				assertTrue(isInside(e.point(), min, max));
+				found++;
+			}
+			assertEquals(n, found);
+
+			int k = 1 + R.nextInt(20);
+			double[] dists = expected.values().stream().mapToDouble(p -> PointDistance.L2.dist(min, p))
+					.sorted().limit(k).toArray();
+			PointIteratorKnn<Integer> itKnn = tree.queryKnn(min, k);
+			for (double d : dists) {
+				PointEntryKnn<Integer> e = itKnn.next();
+				assertEquals(d, e.dist(), 0.0);
+				assertEquals(d, PointDistance.L2.dist(min, expected.get(e.value())), 0.0);
+			}
+			assertFalse(itKnn.hasNext());
+		}
+	}
+
+	@Test
+	public void testDuplicateCells() {
+		// In 4D every coordinate uses only the 16 highest bits of the float representation,
+		// i.e. these points share a single z-key.
+		CritBitZ<Integer> tree = CritBitZ.create(4);
+		for (int i = 0; i < 10; i++) {
+			tree.insert(new double[]{1 + i * 1e-6, 2, 3, 4}, i);
+		}
+		assertEquals(10, tree.size());
+		assertEquals(1, tree.getNodeCount());
+		assertEquals(10, tree.getStats().maxNodeSize);
+		// replace
+		tree.insert(new double[]{1, 2, 3, 4}, 42);
+		assertEquals(10, tree.size());
+		assertEquals(42, (int) tree.queryExact(new double[]{1, 2, 3, 4}));
+		assertEquals(1, count(tree.query(new double[]{1, 2, 3, 4}, new double[]{1, 2, 3, 4})));
+		assertEquals(10, count(tree.query(new double[]{1, 2, 3, 4}, new double[]{2, 2, 3, 4})));
+		assertNull(tree.queryExact(new double[]{1 + 0.5e-6, 2, 3, 4}));
+		for (int i = 0; i < 10; i++) {
+			assertNotNull(tree.remove(new double[]{1 + i * 1e-6, 2, 3, 4}));
+			assertEquals(9 - i, tree.size());
+			assertEquals(9 - i, count(tree.iterator()));
+		}
+		assertEquals(0, tree.getNodeCount());
+	}
+
+	@Test
+	public void testNegativeZero() {
+		CritBitZ<Integer> tree = CritBitZ.create(2);
+		tree.insert(new double[]{-0.0, 0.0}, 1);
+		tree.insert(new double[]{-1e-300, 1e-300}, 2);
+		assertEquals(1, count(tree.query(new double[]{0, 0}, new double[]{0, 0})));
+		assertEquals(1, count(tree.query(new double[]{-0.0, -0.0}, new double[]{-0.0, -0.0})));
+		assertEquals(2, count(tree.query(new double[]{-1, -1}, new double[]{1, 1})));
+		assertEquals(1, (int) tree.queryKnn(new double[]{0, 0}, 1).next().value());
+	}
+
+	@Test
+	public void testInvalidWindow() {
+		CritBitZ<Integer> tree = CritBitZ.create(2);
+		tree.insert(new double[]{1, 1}, 1);
+		assertEquals(0, count(tree.query(new double[]{2, 0}, new double[]{0, 2})));
+	}
+
+	private static boolean isInside(double[] p, double[] min, double[] max) {
+		for (int d = 0; d < p.length; d++) {
+			if (p[d] < min[d] || p[d] > max[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int count(Iterator<?> it) {
+		int n = 0;
+		while (it.hasNext()) {
+			it.next();
+			n++;
+		}
+		return n;
+	}
+}
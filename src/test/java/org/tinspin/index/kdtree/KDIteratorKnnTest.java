@@ -0,0 +1,120 @@
+/*
+ * Copyright 2009-2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.kdtree;
+
+import org.junit.Test;
+import org.tinspin.index.PointDistance;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.tinspin.index.Index.*;
+
+public class KDIteratorKnnTest {
+
+    private static final int DIMS = 3;
+
+    @Test
+    public void testResetReusesEntries() {
+        Random R = new Random(0);
+        KDTree<Integer> tree = KDTree.create(DIMS);
+        List<double[]> points = new ArrayList<>();
+        for (int i = 0; i < 10_000; i++) {
+            double[] p = new double[DIMS];
+            Arrays.setAll(p, x -> R.nextInt(100));
+            points.add(p);
+            tree.insert(p, i);
+        }
+
+        int k = 10;
+        PointIteratorKnn<Integer> it = tree.queryKnn(new double[DIMS], k);
+        Set<PointEntryKnn<Integer>> entries = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < 100; i++) {
+            double[] center = new double[DIMS];
+            Arrays.setAll(center, x -> R.nextDouble() * 100);
+            if (i > 0) {
+                it.reset(center, k);
+            }
+            check(points, it, i > 0 ? center : new double[DIMS], k, entries);
+        }
+        // All queries share the same k entries
+        assertEquals(k, entries.size());
+    }
+
+    @Test
+    public void testDistanceCountParallel() {
+        Random R = new Random(1);
+        KDTree<Integer> tree = KDTree.create(DIMS);
+        for (int i = 0; i < 10_000; i++) {
+            tree.insert(new double[]{R.nextDouble(), R.nextDouble(), R.nextDouble()}, i);
+        }
+        double[][] centers = new double[5_000][];
+        for (int i = 0; i < centers.length; i++) {
+            centers[i] = new double[]{R.nextDouble(), R.nextDouble(), R.nextDouble()};
+        }
+        int k = 5;
+        Integer[] values = new Integer[centers.length * k];
+        double[] distances = new double[centers.length * k];
+        tree.queryKnnBatch(centers, k, values, distances, false);
+        long nSequential = tree.getStats().getNDistCalcKNN();
+        assertTrue(nSequential > 0);
+        // every query calculates the same distances, no count is lost in parallel
+        tree.queryKnnBatch(centers, k, values, distances, true);
+        assertEquals(2 * nSequential, tree.getStats().getNDistCalcKNN());
+    }
+
+    @Test
+    public void testEmptyTree() {
+        KDTree<Integer> tree = KDTree.create(DIMS);
+        assertNull(tree.query1nn(new double[DIMS]));
+        assertFalse(tree.queryKnn(new double[DIMS], 3).hasNext());
+    }
+
+    @Test
+    public void testResetDifferentK() {
+        KDTree<Integer> tree = KDTree.create(DIMS);
+        List<double[]> points = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            double[] p = {i, i, i};
+            points.add(p);
+            tree.insert(p, i);
+        }
+        double[] center = {50.2, 50.2, 50.2};
+        PointIteratorKnn<Integer> it = tree.queryKnn(center, 3);
+        Set<PointEntryKnn<Integer>> entries = Collections.newSetFromMap(new IdentityHashMap<>());
+        check(points, it, center, 3, entries);
+        check(points, it.reset(center, 20), center, 20, entries);
+        check(points, it.reset(center, 1), center, 1, entries);
+        check(points, it.reset(center, 200), center, 200, entries);
+        check(points, it.reset(center, 0), center, 0, entries);
+    }
+
+    private void check(List<double[]> points, QueryIteratorKnn<PointEntryKnn<Integer>> it, double[] center, int k,
+                       Set<PointEntryKnn<Integer>> entries) {
+        double[] expected = points.stream().mapToDouble(p -> PointDistance.L2.dist(center, p)).sorted().toArray();
+        int n = 0;
+        while (it.hasNext()) {
+            PointEntryKnn<Integer> e = it.next();
+            assertEquals(expected[n], e.dist(), 0.0);
+            assertEquals(e.dist(), PointDistance.L2.dist(center, e.point()), 0.0);
+            entries.add(e);
+            n++;
+        }
+        assertEquals(Math.min(k, points.size()), n);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2009-2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.kdtree;
+
+import org.junit.Test;
+import org.tinspin.index.PointDistance;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.tinspin.index.Index.*;
+
+public class KDIteratorNearestTest {
+
+    private static final int DIMS = 3;
+
+    private static KDTree<Integer> createTree(Random R, int n, List<double[]> points) {
+        KDTree<Integer> tree = KDTree.create(DIMS);
+        for (int i = 0; i < n; i++) {
+            double[] p = new double[DIMS];
+            // many duplicates and points on splitting planes
+            Arrays.setAll(p, x -> R.nextInt(20));
+            points.add(p);
+            tree.insert(p, i);
+        }
+        return tree;
+    }
+
+    @Test
+    public void testAllEntries() {
+        Random R = new Random(0);
+        List<double[]> points = new ArrayList<>();
+        KDTree<Integer> tree = createTree(R, 5_000, points);
+        for (PointDistance distFn : new PointDistance[]{PointDistance.L2, PointDistance.L1}) {
+            double[] center = {R.nextDouble() * 20, R.nextDouble() * 20, R.nextDouble() * 20};
+            check(points, tree.queryNearest(center, distFn), center, distFn, Integer.MAX_VALUE);
+        }
+    }
+
+    @Test
+    public void testStopEarly() {
+        Random R = new Random(1);
+        List<double[]> points = new ArrayList<>();
+        KDTree<Integer> tree = createTree(R, 100_000, points);
+        double[] center = {10.5, 10.5, 10.5};
+        // "find the nearest entry with an odd value"
+        long nDist0 = tree.getStats().getNDistCalcKNN();
+        KDIteratorNearest<Integer> it = tree.queryNearest(center);
+        PointEntryKnn<Integer> found = null;
+        while (it.hasNext()) {
+            PointEntryKnn<Integer> e = it.next();
+            if (e.value() % 2 == 1) {
+                found = e;
+                break;
+            }
+        }
+        assertNotNull(found);
+        double expected = Double.POSITIVE_INFINITY;
+        for (int i = 1; i < points.size(); i += 2) {
+            expected = Math.min(expected, PointDistance.L2.dist(center, points.get(i)));
+        }
+        assertEquals(expected, found.dist(), 0.0);
+        // only a small fraction of the tree was visited
+        long nDist = tree.getStats().getNDistCalcKNN() - nDist0;
+        assertTrue(nDist < points.size() / 10);
+    }
+
+    @Test
+    public void testResetReusesEntries() {
+        Random R = new Random(2);
+        List<double[]> points = new ArrayList<>();
+        KDTree<Integer> tree = createTree(R, 10_000, points);
+        KDIteratorNearest<Integer> it = tree.queryNearest(new double[DIMS]);
+        Set<PointEntryKnn<Integer>> entries = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < 100; i++) {
+            double[] center = new double[DIMS];
+            Arrays.setAll(center, x -> R.nextDouble() * 20);
+            it.reset(center, 10);
+            check(points, it, center, PointDistance.L2, 10, entries);
+        }
+        // Entries are reused, i.e. there are far fewer entries than results
+        assertTrue(entries.size() < 100 * 10 / 2);
+
+        double[] center = {1, 2, 3};
+        check(points, it.reset(center), center, PointDistance.L2, Integer.MAX_VALUE);
+        check(points, it.reset(center, 0), center, PointDistance.L2, 0);
+    }
+
+    @Test
+    public void testEmptyTree() {
+        KDTree<Integer> tree = KDTree.create(DIMS);
+        assertFalse(tree.queryNearest(new double[DIMS]).hasNext());
+        tree.insert(new double[]{1, 2, 3}, 1);
+        KDIteratorNearest<Integer> it = tree.queryNearest(new double[DIMS]);
+        assertEquals(1, (int) it.next().value());
+        assertFalse(it.hasNext());
+        assertThrows(NoSuchElementException.class, it::next);
+    }
+
+    private static void check(List<double[]> points, PointIteratorKnn<Integer> it, double[] center,
+                              PointDistance distFn, int k) {
+        check(points, it, center, distFn, k, new HashSet<>());
+    }
+
+    private static void check(List<double[]> points, PointIteratorKnn<Integer> it, double[] center,
+                              PointDistance distFn, int k, Set<PointEntryKnn<Integer>> entries) {
+        double[] expected = points.stream().mapToDouble(p -> distFn.dist(center, p)).sorted().toArray();
+        Set<Integer> values = new HashSet<>();
+        int n = 0;
+        while (it.hasNext()) {
+            PointEntryKnn<Integer> e = it.next();
+            assertEquals(expected[n], e.dist(), 0.0);
+            assertArrayEquals(points.get(e.value()), e.point(), 0.0);
+            assertTrue(values.add(e.value()));
+            entries.add(e);
+            n++;
+        }
+        assertEquals(Math.min(k, points.size()), n);
+    }
+}
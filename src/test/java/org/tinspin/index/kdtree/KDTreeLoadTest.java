@@ -0,0 +1,168 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.kdtree;
+
+import org.junit.Test;
+import org.tinspin.index.PointMap;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.tinspin.index.Index.*;
+
+public class KDTreeLoadTest {
+
+    private static final int BOUND = 100;
+
+    @SuppressWarnings("unchecked")
+    private PointEntry<Integer>[] create(long seed, int n, int dim, int nDup) {
+        PointEntry<Integer>[] data = new PointEntry[n];
+        Random R = new Random(seed);
+        for (int i = 0; i < n; i += nDup) {
+            double[] p = new double[dim];
+            Arrays.setAll(p, x -> R.nextInt(BOUND));
+            for (int i2 = 0; i2 < nDup && i + i2 < n; ++i2) {
+                data[i + i2] = new PointEntry<>(p.clone(), i + i2);
+            }
+        }
+        return data;
+    }
+
+    @SuppressWarnings("unchecked")
+    private PointEntry<Integer>[] createSorted(int n, int dim) {
+        PointEntry<Integer>[] data = new PointEntry[n];
+        for (int i = 0; i < n; i++) {
+            double[] p = new double[dim];
+            Arrays.fill(p, i);
+            data[i] = new PointEntry<>(p, i);
+        }
+        return data;
+    }
+
+    @Test
+    public void testLoad2D() {
+        testLoad(create(0, 100_000, 2, 1));
+    }
+
+    @Test
+    public void testLoad3DDuplicates() {
+        testLoad(create(0, 50_000, 3, 4));
+    }
+
+    @Test
+    public void testLoadSorted() {
+        PointEntry<Integer>[] data = createSorted(100_000, 3);
+        KDTree<Integer> tree = testLoad(data);
+        // balanced: depth is log2(n)
+        assertTrue(tree.getDepth() <= 17);
+    }
+
+    @Test
+    public void testLoadEmpty() {
+        KDTree<Integer> tree = KDTree.create(3);
+        tree.insert(new double[]{1, 2, 3}, 1);
+        tree.load(createSorted(0, 3));
+        assertEquals(0, tree.size());
+        assertFalse(tree.contains(new double[]{1, 2, 3}));
+    }
+
+    @Test
+    public void testLoadFactory() {
+        PointEntry<Integer>[] data = create(0, 1000, 3, 2);
+        PointMap<Integer> tree = PointMap.Factory.createAndLoadKdTree(3, data);
+        assertEquals(data.length, tree.size());
+        for (PointEntry<Integer> e : data) {
+            assertTrue(tree.contains(e.point()));
+        }
+    }
+
+    @Test
+    public void testRebalance() {
+        PointEntry<Integer>[] data = createSorted(10_000, 2);
+        KDTree<Integer> tree = KDTree.create(2);
+        for (PointEntry<Integer> e : data) {
+            tree.insert(e.point(), e.value());
+        }
+        assertEquals(data.length - 1, tree.getDepth());
+        tree.rebalance();
+        assertEquals(data.length, tree.size());
+        assertTrue(tree.getDepth() <= 14);
+        check(tree, data);
+    }
+
+    @Test
+    public void testRebalanceAfterRemove() {
+        PointEntry<Integer>[] data = create(0, 10_000, 3, 3);
+        KDTree<Integer> tree = KDTree.create(3);
+        for (PointEntry<Integer> e : data) {
+            tree.insert(e.point(), e.value());
+        }
+        for (int i = 0; i < data.length / 2; i++) {
+            assertTrue(tree.remove(data[i].point(), data[i].value()));
+        }
+        tree.rebalance();
+        PointEntry<Integer>[] remaining = Arrays.copyOfRange(data, data.length / 2, data.length);
+        assertEquals(remaining.length, tree.size());
+        check(tree, remaining);
+    }
+
+    private KDTree<Integer> testLoad(PointEntry<Integer>[] data) {
+        PointEntry<Integer>[] original = data.clone();
+        KDTree<Integer> tree = KDTree.create(data.length == 0 ? 3 : data[0].point().length);
+        tree.load(data);
+        // input must not be modified
+        assertArrayEquals(original, data);
+        assertEquals(data.length, tree.size());
+        check(tree, data);
+        return tree;
+    }
+
+    private void check(KDTree<Integer> tree, PointEntry<Integer>[] data) {
+        for (PointEntry<Integer> e : data) {
+            assertTrue(tree.contains(e.point(), e.value()));
+            PointEntryKnn<Integer> nn = tree.query1nn(e.point());
+            assertEquals(0, nn.dist(), 0.0);
+        }
+
+        // window query
+        double[] min = new double[data[0].point().length];
+        double[] max = new double[min.length];
+        Arrays.fill(min, BOUND / 4.);
+        Arrays.fill(max, BOUND / 2.);
+        int nExpected = 0;
+        for (PointEntry<Integer> e : data) {
+            if (KDTree.isEnclosed(e.point(), min, max)) {
+                nExpected++;
+            }
+        }
+        int n = 0;
+        PointIterator<Integer> it = tree.query(min, max);
+        while (it.hasNext()) {
+            assertTrue(KDTree.isEnclosed(it.next().point(), min, max));
+            n++;
+        }
+        assertEquals(nExpected, n);
+
+        // remove all
+        for (PointEntry<Integer> e : data) {
+            assertTrue(tree.remove(e.point(), e.value()));
+        }
+        assertEquals(0, tree.size());
+    }
+}
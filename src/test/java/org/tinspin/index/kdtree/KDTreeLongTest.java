@@ -0,0 +1,187 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.kdtree;
+
+import org.junit.Test;
+import org.tinspin.index.PointDistance;
+import org.tinspin.index.PointMultimapLong;
+import org.tinspin.index.PointMultimapLong.PointIteratorKnnLong;
+import org.tinspin.index.PointMultimapLong.PointIteratorLong;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.tinspin.index.Index.*;
+
+/**
+ * Compare KDTreeLong against KDTreeFlat with boxed values.
+ */
+public class KDTreeLongTest {
+
+    private static final int DIMS = 3;
+    private static final int N = 10_000;
+    // ids that do not fit into an int
+    private static final long ID_OFFSET = 1L << 40;
+
+    private static List<double[]> createPoints(Random R, int n) {
+        List<double[]> points = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            double[] p = new double[DIMS];
+            // few distinct values create duplicate coordinates and keys
+            Arrays.setAll(p, x -> R.nextInt(50));
+            points.add(p);
+        }
+        return points;
+    }
+
+    @Test
+    public void testQueries() {
+        Random R = new Random(0);
+        List<double[]> points = createPoints(R, N);
+        PointMultimapLong tree = PointMultimapLong.Factory.createKdTree(DIMS);
+        KDTreeFlat<Long> ref = KDTreeFlat.create(DIMS);
+        for (int i = 0; i < N; i++) {
+            tree.insert(points.get(i), ID_OFFSET + i);
+            ref.insert(points.get(i), ID_OFFSET + i);
+        }
+        assertEquals(N, tree.size());
+        assertEquals(ref.getDepth(), tree.getDepth());
+
+        for (int i = 0; i < N; i += 7) {
+            assertTrue(tree.contains(points.get(i), ID_OFFSET + i));
+            assertFalse(tree.contains(points.get(i), i));
+        }
+
+        PointIteratorLong it = tree.query(new double[DIMS], new double[DIMS]);
+        for (int i = 0; i < 100; i++) {
+            double[] min = new double[DIMS];
+            double[] max = new double[DIMS];
+            Arrays.setAll(min, x -> R.nextInt(40));
+            Arrays.setAll(max, x -> min[x] + 10);
+            assertEquals(values(ref.query(min, max)), values(it.reset(min, max), points));
+        }
+        assertEquals(values(ref.iterator()), values(tree.iterator(), points));
+        assertEquals(values(ref.queryExactPoint(points.get(0))), values(tree.queryExactPoint(points.get(0)), points));
+
+        double[] buf = new double[DIMS];
+        PointIteratorKnnLong itKnn = tree.queryKnn(new double[DIMS], 1);
+        for (PointDistance distFn : new PointDistance[]{PointDistance.L2, PointDistance.L1}) {
+            for (int i = 0; i < 50; i++) {
+                double[] center = new double[DIMS];
+                Arrays.setAll(center, x -> R.nextDouble() * 60 - 5);
+                PointIteratorKnn<Long> refIt = ref.queryKnn(center, 10, distFn);
+                PointIteratorKnnLong longIt = distFn == PointDistance.L2
+                        ? itKnn.reset(center, 10) : tree.queryKnn(center, 10, distFn);
+                while (refIt.hasNext()) {
+                    PointEntryKnn<Long> e = refIt.next();
+                    assertTrue(longIt.hasNext());
+                    long id = longIt.nextLong();
+                    assertEquals(e.dist(), longIt.dist(), 0.0);
+                    assertArrayEquals(points.get((int) (id - ID_OFFSET)), longIt.point(buf), 0.0);
+                    assertEquals(e.dist(), distFn.dist(center, longIt.point()), 0.0);
+                }
+                assertFalse(longIt.hasNext());
+
+                PointIteratorKnnLong filtered = tree.queryKnn(center, 10, distFn, (v, d) -> v % 2 == 0);
+                PointIteratorKnn<Long> refFiltered = ref.queryKnn(center, 10, distFn, (e, d) -> e.value() % 2 == 0);
+                while (refFiltered.hasNext()) {
+                    assertEquals(refFiltered.next().dist(), dist(filtered), 0.0);
+                }
+                assertFalse(filtered.hasNext());
+            }
+        }
+    }
+
+    @Test
+    public void testRemoveAndUpdate() {
+        Random R = new Random(1);
+        List<double[]> points = createPoints(R, N);
+        KDTreeLong tree = KDTreeLong.create(DIMS);
+        for (int i = 0; i < N; i++) {
+            tree.insert(points.get(i), i);
+        }
+        for (int i = 0; i < N; i++) {
+            double[] p = points.get(i);
+            if (i % 2 == 0) {
+                assertFalse(tree.remove(p, -1));
+                assertTrue(tree.remove(p, i));
+                assertFalse(tree.contains(p, i));
+            } else {
+                double[] p2 = p.clone();
+                p2[0] += 0.5;
+                assertTrue(tree.update(p, p2, i));
+                points.set(i, p2);
+            }
+        }
+        assertEquals(N / 2, tree.size());
+        assertFalse(tree.update(new double[]{-1, -1, -1}, new double[]{1, 1, 1}, 1));
+        Set<Long> expected = new HashSet<>();
+        for (int i = 1; i < N; i += 2) {
+            assertTrue(tree.contains(points.get(i), i));
+            expected.add((long) i);
+        }
+        assertEquals(expected, values(tree.iterator(), null));
+        for (int i = 1; i < N; i += 2) {
+            assertTrue(tree.removeIf(points.get(i), v -> v == 0 || v % 2 == 1));
+        }
+        assertEquals(0, tree.size());
+        assertFalse(tree.iterator().hasNext());
+        assertFalse(tree.queryKnn(new double[DIMS], 3).hasNext());
+    }
+
+    @Test
+    public void testIteratorState() {
+        KDTreeLong tree = KDTreeLong.create(2);
+        tree.insert(new double[]{1, 2}, 42);
+        PointIteratorLong it = tree.iterator();
+        assertThrows(IllegalStateException.class, it::point);
+        assertEquals(42, it.nextLong());
+        assertArrayEquals(new double[]{1, 2}, it.point(), 0.0);
+        assertThrows(NoSuchElementException.class, it::nextLong);
+        PointIteratorKnnLong itKnn = tree.queryKnn(new double[]{1, 1}, 1);
+        assertThrows(IllegalStateException.class, itKnn::dist);
+        assertEquals(42, itKnn.nextLong());
+        assertEquals(1, itKnn.dist(), 0.0);
+    }
+
+    private static double dist(PointIteratorKnnLong it) {
+        assertTrue(it.hasNext());
+        assertEquals(0, it.nextLong() % 2);
+        return it.dist();
+    }
+
+    private static Set<Long> values(Iterator<? extends PointEntry<Long>> it) {
+        Set<Long> values = new HashSet<>();
+        while (it.hasNext()) {
+            assertTrue(values.add(it.next().value()));
+        }
+        return values;
+    }
+
+    private static Set<Long> values(PointIteratorLong it, List<double[]> points) {
+        Set<Long> values = new HashSet<>();
+        while (it.hasNext()) {
+            long id = it.nextLong();
+            assertTrue(values.add(id));
+            if (points != null) {
+                assertArrayEquals(points.get((int) (id - ID_OFFSET)), it.point(), 0.0);
+            }
+        }
+        return values;
+    }
+}
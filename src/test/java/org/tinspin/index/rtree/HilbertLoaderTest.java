@@ -0,0 +1,177 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.rtree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.tinspin.index.Index.*;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+import org.tinspin.index.test.util.TestInstances.IDX;
+import org.tinspin.index.test.util.TestInstances.TST;
+
+import ch.ethz.globis.tinspin.TestStats;
+
+public class HilbertLoaderTest {
+
+	@Test
+	public void testPoints() {
+		for (int dims = 1; dims <= 5; dims++) {
+			check(createPoints(dims, 20_000), dims);
+		}
+	}
+
+	@Test
+	public void testManyDims() {
+		// more dimensions than key bits
+		check(createPoints(80, 2_000), 80);
+	}
+
+	@Test
+	public void testSmall() {
+		for (int n = 1; n < 200; n += 7) {
+			check(createPoints(2, n), 2);
+		}
+	}
+
+	@Test
+	public void testDuplicates() {
+		RTreeEntry<Integer>[] entries = createPoints(3, 10_000);
+		for (int i = 1; i < entries.length; i += 2) {
+			entries[i] = RTreeEntry.createPoint(entries[i - 1].min(), i);
+		}
+		check(entries, 3);
+	}
+
+	@Test
+	public void testClusteredBoxes() {
+		int dims = 3;
+		RTreeEntry<Integer>[] entries = createClusterBoxes(dims, 50_000);
+		RTree<Integer> hilbert = check(entries, dims);
+		RTree<Integer> str = RTree.createRStar(dims);
+		str.load(entries.clone());
+		assertTrue(hilbert.getStats().getNodeOverlap() < str.getStats().getNodeOverlap());
+	}
+
+	@Test
+	public void testInsertAfterLoad() {
+		RTreeEntry<Integer>[] entries = createPoints(2, 10_000);
+		RTree<Integer> tree = RTree.createRStar(2);
+		tree.loadHilbert(entries.clone());
+		for (int i = 0; i < 1000; i++) {
+			tree.insert(new double[]{i * 0.001, 0.5}, -i);
+		}
+		for (int i = 0; i < entries.length; i += 3) {
+			assertTrue(tree.remove(entries[i].min(), entries[i].max(), entries[i].value()));
+		}
+		assertEquals(10_000 + 1000 - (10_000 + 2) / 3, tree.size());
+		tree.getStats();
+	}
+
+	/**
+	 * Load with the sequential and the parallel Hilbert loader and compare both trees and the
+	 * query results with an STR-loaded tree.
+	 */
+	private RTree<Integer> check(RTreeEntry<Integer>[] entries, int dims) {
+		RTree<Integer> seq = RTree.createRStar(dims);
+		seq.loadHilbert(entries.clone());
+		RTree<Integer> par = RTree.createRStar(dims);
+		par.loadHilbert(entries.clone(), true);
+		RTree<Integer> str = RTree.createRStar(dims);
+		str.load(entries.clone());
+
+		assertEquals(entries.length, seq.size());
+		assertEquals(seq.getNodeCount(), par.getNodeCount());
+		assertEquals(seq.getDepth(), par.getDepth());
+		assertSameStructure(seq.getRoot(), par.getRoot());
+		assertSame(null, par.getRoot().getParent());
+		assertEquals(seq.getNodeCount(), seq.getStats().getNodeCount());
+
+		Random rnd = new Random(1);
+		for (int i = 0; i < 100; i++) {
+			double[] min = new double[dims];
+			double[] max = new double[dims];
+			for (int d = 0; d < dims; d++) {
+				min[d] = rnd.nextDouble() * 0.9;
+				max[d] = min[d] + 0.1 + (dims > 5 ? 0.9 : 0);
+			}
+			assertEquals(values(str.queryIntersect(min, max)), values(seq.queryIntersect(min, max)));
+		}
+		return seq;
+	}
+
+	private static Set<Integer> values(BoxIterator<Integer> it) {
+		Set<Integer> set = new HashSet<>();
+		while (it.hasNext()) {
+			assertTrue(set.add(it.next().value()));
+		}
+		return set;
+	}
+
+	private void assertSameStructure(RTreeNode<Integer> n1, RTreeNode<Integer> n2) {
+		assertArrayEquals(n1.min(), n2.min(), 0.0);
+		assertArrayEquals(n1.max(), n2.max(), 0.0);
+		assertEquals(n1.size(), n2.size());
+		for (int i = 0; i < n1.size(); i++) {
+			RTreeEntry<Integer> e1 = n1.getEntry(i);
+			RTreeEntry<Integer> e2 = n2.getEntry(i);
+			if (e1 instanceof RTreeNode) {
+				RTreeNode<Integer> child = (RTreeNode<Integer>) e2;
+				assertSame(n2, child.getParent());
+				assertSameStructure((RTreeNode<Integer>) e1, child);
+			} else {
+				assertArrayEquals(e1.min(), e2.min(), 0.0);
+				assertArrayEquals(e1.max(), e2.max(), 0.0);
+				assertSame(e1.value(), e2.value());
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private RTreeEntry<Integer>[] createPoints(int dims, int n) {
+		Random rnd = new Random(0);
+		RTreeEntry<Integer>[] entries = new RTreeEntry[n];
+		for (int i = 0; i < n; i++) {
+			double[] p = new double[dims];
+			for (int d = 0; d < dims; d++) {
+				p[d] = rnd.nextDouble();
+			}
+			entries[i] = RTreeEntry.createPoint(p, i);
+		}
+		return entries;
+	}
+
+	@SuppressWarnings("unchecked")
+	private RTreeEntry<Integer>[] createClusterBoxes(int dims, int n) {
+		TestStats ts = new TestStats(TST.CLUSTER_R, IDX.HILBERT, n, dims, 5.0);
+		double[] data = TST.CLUSTER_R.createInstance(new Random(0), ts).generate();
+		RTreeEntry<Integer>[] entries = new RTreeEntry[n];
+		for (int i = 0; i < n; i++) {
+			double[] min = new double[dims];
+			double[] max = new double[dims];
+			System.arraycopy(data, 2 * i * dims, min, 0, dims);
+			System.arraycopy(data, (2 * i + 1) * dims, max, 0, dims);
+			entries[i] = RTreeEntry.createBox(min, max, i);
+		}
+		return entries;
+	}
+}
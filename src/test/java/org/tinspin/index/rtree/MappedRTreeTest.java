@@ -0,0 +1,169 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.rtree;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.tinspin.index.BoxDistance;
+import org.tinspin.index.IndexConfig;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.tinspin.index.Index.*;
+
+public class MappedRTreeTest {
+
+    private static final int DIMS = 3;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @SuppressWarnings("unchecked")
+    private static RTree<Integer> createTree(int n, long seed) {
+        Random R = new Random(seed);
+        RTreeEntry<Integer>[] entries = new RTreeEntry[n];
+        for (int i = 0; i < n; i++) {
+            double[] min = new double[DIMS];
+            double[] max = new double[DIMS];
+            for (int d = 0; d < DIMS; d++) {
+                min[d] = R.nextDouble() * 100;
+                max[d] = min[d] + R.nextDouble() * 2;
+            }
+            entries[i] = RTreeEntry.createBox(min, max, i);
+        }
+        RTree<Integer> tree = RTree.createRStar(DIMS);
+        tree.load(entries);
+        return tree;
+    }
+
+    private MappedRTree<Integer> writeAndOpen(RTree<Integer> tree) throws IOException {
+        Path file = folder.newFile().toPath();
+        MappedRTree.write(tree, file, Integer::longValue);
+        assertEquals(0, Files.size(file) % 8);
+        return MappedRTree.open(file, l -> (int) l);
+    }
+
+    @Test
+    public void testQueries() throws IOException {
+        RTree<Integer> tree = createTree(20_000, 0);
+        MappedRTree<Integer> mapped = writeAndOpen(tree);
+        assertEquals(tree.size(), mapped.size());
+        assertEquals(tree.getDepth(), mapped.getDepth());
+        assertEquals(tree.getNodeCount(), mapped.getNodeCount());
+        assertEquals(4096, mapped.getPageSize());
+
+        Random R = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            double[] min = new double[DIMS];
+            double[] max = new double[DIMS];
+            for (int d = 0; d < DIMS; d++) {
+                min[d] = R.nextDouble() * 100;
+                max[d] = min[d] + R.nextDouble() * 20;
+            }
+            assertEquals(values(tree.queryIntersect(min, max)), values(mapped.queryIntersect(min, max)));
+        }
+        assertEquals(values(tree.iterator()), values(mapped.iterator()));
+
+        for (BoxEntry<Integer> e : iterable(tree.iterator())) {
+            assertEquals(e.value(), mapped.queryExact(e.min(), e.max()));
+            BoxEntry<Integer> e2 = mapped.queryExactBox(e.min(), e.max()).next();
+            assertArrayEquals(e.min(), e2.min(), 0.0);
+            assertArrayEquals(e.max(), e2.max(), 0.0);
+        }
+        assertFalse(mapped.contains(new double[]{1, 2, 3}, new double[]{1, 2, 3}));
+
+        for (BoxDistance distFn : new BoxDistance[]{BoxDistance.EDGE, BoxDistance.CENTER}) {
+            for (int i = 0; i < 50; i++) {
+                double[] center = {R.nextDouble() * 100, R.nextDouble() * 100, R.nextDouble() * 100};
+                checkKnn(tree.queryKnn(center, 10, distFn), mapped.queryKnn(center, 10, distFn));
+                BoxFilterKnn<Integer> filter = (e, d) -> e.value() % 3 == 0;
+                checkKnn(tree.queryKnn(center, 10, distFn, filter), mapped.queryKnn(center, 10, distFn, filter));
+            }
+        }
+        // reuse
+        double[] center = {50, 50, 50};
+        MappedRTree.MappedIteratorKnn<Integer> it = mapped.queryKnn(new double[DIMS], 3);
+        checkKnn(tree.queryKnn(center, 5), it.reset(center, 5));
+    }
+
+    @Test
+    public void testLargeNodes() throws IOException {
+        // Nodes do not fit into 4KB pages
+        IndexConfig cfg = IndexConfig.create(DIMS).setRTreeNodeMaxData(200).setRTreeNodeMinData(60);
+        RTree<Integer> tree = RTree.createRStar(cfg);
+        Random R = new Random(2);
+        for (int i = 0; i < 2_000; i++) {
+            double[] p = {R.nextDouble(), R.nextDouble(), R.nextDouble()};
+            tree.insert(p, p, i);
+        }
+        MappedRTree<Integer> mapped = writeAndOpen(tree);
+        // 200 entries with 56 bytes each
+        assertEquals(16384, mapped.getPageSize());
+        assertEquals(values(tree.iterator()), values(mapped.iterator()));
+    }
+
+    @Test
+    public void testEmptyTree() throws IOException {
+        MappedRTree<Integer> mapped = writeAndOpen(RTree.createRStar(DIMS));
+        assertEquals(0, mapped.size());
+        assertFalse(mapped.iterator().hasNext());
+        assertFalse(mapped.queryKnn(new double[DIMS], 1).hasNext());
+        assertNull(mapped.query1nn(new double[DIMS]));
+        assertEquals("empty tree", mapped.toStringTree());
+    }
+
+    @Test
+    public void testReadOnlyAndInvalidFile() throws IOException {
+        MappedRTree<Integer> mapped = writeAndOpen(createTree(10, 3));
+        double[] p = new double[DIMS];
+        assertThrows(UnsupportedOperationException.class, () -> mapped.insert(p, p, 1));
+        assertThrows(UnsupportedOperationException.class, () -> mapped.remove(p, p));
+        assertThrows(UnsupportedOperationException.class, mapped::clear);
+
+        Path file = folder.newFile().toPath();
+        Files.write(file, new byte[100]);
+        assertThrows(IOException.class, () -> MappedRTree.open(file, l -> l));
+    }
+
+    private static void checkKnn(BoxIteratorKnn<Integer> expected, BoxIteratorKnn<Integer> actual) {
+        while (expected.hasNext()) {
+            assertTrue(actual.hasNext());
+            BoxEntryKnn<Integer> e1 = expected.next();
+            BoxEntryKnn<Integer> e2 = actual.next();
+            assertEquals(e1.dist(), e2.dist(), 0.0);
+        }
+        assertFalse(actual.hasNext());
+    }
+
+    private static Set<Integer> values(Iterator<BoxEntry<Integer>> it) {
+        Set<Integer> values = new HashSet<>();
+        while (it.hasNext()) {
+            assertTrue(values.add(it.next().value()));
+        }
+        return values;
+    }
+
+    private static <E> Iterable<E> iterable(Iterator<E> it) {
+        return () -> it;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.rtree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+import org.tinspin.index.IndexConfig;
+
+public class RTreeConfigTest {
+
+	private static final int DIMS = 3;
+
+	@Test
+	public void testSmallFanOut() {
+		IndexConfig cfg = IndexConfig.create(DIMS)
+				.setRTreeNodeMaxDir(4).setRTreeNodeMinDir(2)
+				.setRTreeNodeMaxData(5).setRTreeNodeMinData(2);
+		check(RTree.createRStar(cfg), 4, 5);
+	}
+
+	@Test
+	public void testLargeFanOut() {
+		IndexConfig cfg = IndexConfig.create(DIMS)
+				.setRTreeNodeMaxDir(56).setRTreeNodeMinDir(11)
+				.setRTreeNodeMaxData(50).setRTreeNodeMinData(10);
+		check(RTree.createRStar(cfg), 56, 50);
+	}
+
+	@Test
+	public void testDefault() {
+		check(RTree.createRStar(DIMS), 10, 10);
+	}
+
+	@Test
+	public void testSTRLoadLargeFanOut() {
+		IndexConfig cfg = IndexConfig.create(DIMS).setRTreeNodeMaxDir(64).setRTreeNodeMaxData(64);
+		RTree<Integer> tree = RTree.createRStar(cfg);
+		int n = 64 * 64 * 64;
+		RTreeEntry<Integer>[] entries = createEntries(n);
+		tree.load(entries);
+		assertEquals(n, tree.size());
+		assertEquals(3, tree.getDepth());
+		assertMaxNodeSize(tree.getRoot(), 64, 64);
+		for (RTreeEntry<Integer> e : entries) {
+			assertNotNull(tree.queryExact(e.min(), e.max()));
+		}
+		assertNotNull(tree.query1nn(new double[DIMS]));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIllegalMinDir() {
+		RTree.createRStar(IndexConfig.create(DIMS).setRTreeNodeMaxDir(10).setRTreeNodeMinDir(6));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIllegalMinData() {
+		RTree.createRStar(IndexConfig.create(DIMS).setRTreeNodeMinData(1));
+	}
+
+	private void check(RTree<Integer> tree, int maxDir, int maxData) {
+		int n = 20_000;
+		RTreeEntry<Integer>[] entries = createEntries(n);
+		for (RTreeEntry<Integer> e : entries) {
+			tree.insert(e.min(), e.max(), e.value());
+		}
+		assertEquals(n, tree.size());
+		// getStats() verifies the node sizes
+		assertEquals(n, tree.getStats().getEntryCount());
+		assertMaxNodeSize(tree.getRoot(), maxDir, maxData);
+		for (RTreeEntry<Integer> e : entries) {
+			assertEquals(e.value(), tree.queryExact(e.min(), e.max()));
+		}
+		assertNotNull(tree.query1nn(new double[DIMS]));
+
+		for (int i = 0; i < n / 2; i++) {
+			assertEquals(entries[i].value(), tree.remove(entries[i].min(), entries[i].max()));
+		}
+		assertEquals(n - n / 2, tree.getStats().getEntryCount());
+		assertMaxNodeSize(tree.getRoot(), maxDir, maxData);
+	}
+
+	private void assertMaxNodeSize(RTreeNode<Integer> node, int maxDir, int maxData) {
+		if (node instanceof RTreeNodeDir) {
+			assertTrue(node.size() <= maxDir);
+			for (RTreeNode<Integer> child : ((RTreeNodeDir<Integer>) node).getChildren()) {
+				assertMaxNodeSize(child, maxDir, maxData);
+			}
+		} else {
+			assertTrue(node.size() <= maxData);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private RTreeEntry<Integer>[] createEntries(int n) {
+		Random rnd = new Random(0);
+		RTreeEntry<Integer>[] entries = new RTreeEntry[n];
+		for (int i = 0; i < n; i++) {
+			double[] min = new double[DIMS];
+			double[] max = new double[DIMS];
+			for (int d = 0; d < DIMS; d++) {
+				min[d] = rnd.nextDouble();
+				max[d] = min[d] + rnd.nextDouble() * 0.01;
+			}
+			entries[i] = RTreeEntry.createBox(min, max, i);
+		}
+		return entries;
+	}
+}
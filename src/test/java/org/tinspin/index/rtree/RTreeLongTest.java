@@ -0,0 +1,205 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ */
+package org.tinspin.index.rtree;
+
+import org.junit.Test;
+import org.tinspin.index.BoxDistance;
+import org.tinspin.index.BoxMultimapLong;
+import org.tinspin.index.BoxMultimapLong.BoxIteratorKnnLong;
+import org.tinspin.index.BoxMultimapLong.BoxIteratorLong;
+import org.tinspin.index.IndexConfig;
+import org.tinspin.index.IndexConfig.RTreeVariant;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.tinspin.index.Index.*;
+
+/**
+ * Compare RTreeLong against RTree with boxed values.
+ */
+public class RTreeLongTest {
+
+	private static final int DIMS = 3;
+	private static final int N = 10_000;
+	// ids that do not fit into an int
+	private static final long ID_OFFSET = 1L << 40;
+
+	private static List<double[][]> createBoxes(Random R, int n) {
+		List<double[][]> boxes = new ArrayList<>();
+		for (int i = 0; i < n; i++) {
+			double[] min = new double[DIMS];
+			double[] max = new double[DIMS];
+			// few distinct values create duplicate boxes
+			Arrays.setAll(min, x -> R.nextInt(50));
+			Arrays.setAll(max, x -> min[x] + R.nextInt(3));
+			boxes.add(new double[][]{min, max});
+		}
+		return boxes;
+	}
+
+	@Test
+	public void testQueries() {
+		for (RTreeVariant variant : RTreeVariant.values()) {
+			IndexConfig config = IndexConfig.create(DIMS).setRTreeVariant(variant);
+			testQueries(BoxMultimapLong.Factory.createRTree(config), RTree.create(config));
+		}
+	}
+
+	private void testQueries(BoxMultimapLong tree, RTree<Long> ref) {
+		Random R = new Random(0);
+		List<double[][]> boxes = createBoxes(R, N);
+		for (int i = 0; i < N; i++) {
+			tree.insert(boxes.get(i)[0], boxes.get(i)[1], ID_OFFSET + i);
+			ref.insert(boxes.get(i)[0], boxes.get(i)[1], ID_OFFSET + i);
+		}
+		assertEquals(N, tree.size());
+		assertEquals(ref.getDepth(), tree.getDepth());
+		assertEquals(ref.getNodeCount(), tree.getNodeCount());
+
+		for (int i = 0; i < N; i += 7) {
+			assertTrue(tree.contains(boxes.get(i)[0], boxes.get(i)[1], ID_OFFSET + i));
+			assertFalse(tree.contains(boxes.get(i)[0], boxes.get(i)[1], i));
+		}
+
+		BoxIteratorLong it = tree.queryIntersect(new double[DIMS], new double[DIMS]);
+		for (int i = 0; i < 100; i++) {
+			double[] min = new double[DIMS];
+			double[] max = new double[DIMS];
+			Arrays.setAll(min, x -> R.nextInt(40));
+			Arrays.setAll(max, x -> min[x] + 10);
+			assertEquals(values(ref.queryIntersect(min, max)), values(it.reset(min, max), boxes));
+		}
+		assertEquals(values(ref.iterator()), values(tree.iterator(), boxes));
+		double[][] b0 = boxes.get(0);
+		assertEquals(values(ref.queryExactBox(b0[0], b0[1])), values(tree.queryExactBox(b0[0], b0[1]), boxes));
+
+		double[] buf = new double[DIMS];
+		BoxIteratorKnnLong itKnn = tree.queryKnn(new double[DIMS], 1);
+		for (BoxDistance distFn : new BoxDistance[]{BoxDistance.EDGE, BoxDistance.CENTER}) {
+			for (int i = 0; i < 50; i++) {
+				double[] center = new double[DIMS];
+				Arrays.setAll(center, x -> R.nextDouble() * 60 - 5);
+				BoxIteratorKnn<Long> refIt = ref.queryKnn(center, 10, distFn);
+				BoxIteratorKnnLong longIt = distFn == BoxDistance.EDGE
+						? itKnn.reset(center, 10) : tree.queryKnn(center, 10, distFn);
+				while (refIt.hasNext()) {
+					BoxEntryKnn<Long> e = refIt.next();
+					assertTrue(longIt.hasNext());
+					long id = longIt.nextLong();
+					assertEquals(e.dist(), longIt.dist(), 0.0);
+					double[][] box = boxes.get((int) (id - ID_OFFSET));
+					assertArrayEquals(box[0], longIt.min(buf), 0.0);
+					assertArrayEquals(box[1], longIt.max(), 0.0);
+					assertEquals(e.dist(), distFn.dist(center, longIt.min(), longIt.max()), 0.0);
+				}
+				assertFalse(longIt.hasNext());
+
+				BoxIteratorKnnLong filtered = tree.queryKnn(center, 10, distFn, (v, d) -> v % 2 == 0);
+				BoxIteratorKnn<Long> refFiltered = ref.queryKnn(center, 10, distFn, (e, d) -> e.value() % 2 == 0);
+				while (refFiltered.hasNext()) {
+					assertEquals(refFiltered.next().dist(), dist(filtered), 0.0);
+				}
+				assertFalse(filtered.hasNext());
+			}
+		}
+	}
+
+	@Test
+	public void testRemoveAndUpdate() {
+		Random R = new Random(1);
+		List<double[][]> boxes = createBoxes(R, N);
+		RTreeLong tree = RTreeLong.create(IndexConfig.create(DIMS));
+		for (int i = 0; i < N; i++) {
+			tree.insert(boxes.get(i)[0], boxes.get(i)[1], i);
+		}
+		for (int i = 0; i < N; i++) {
+			double[][] b = boxes.get(i);
+			if (i % 2 == 0) {
+				assertFalse(tree.remove(b[0], b[1], -1));
+				assertTrue(tree.remove(b[0], b[1], i));
+				assertFalse(tree.contains(b[0], b[1], i));
+			} else {
+				double[] min2 = b[0].clone();
+				double[] max2 = b[1].clone();
+				min2[0] += 0.5;
+				max2[0] += 0.5;
+				assertTrue(tree.update(b[0], b[1], min2, max2, i));
+				boxes.set(i, new double[][]{min2, max2});
+			}
+		}
+		assertEquals(N / 2, tree.size());
+		assertFalse(tree.update(new double[]{-1, -1, -1}, new double[]{1, 1, 1}, new double[DIMS], new double[DIMS], 1));
+		Set<Long> expected = new HashSet<>();
+		for (int i = 1; i < N; i += 2) {
+			assertTrue(tree.contains(boxes.get(i)[0], boxes.get(i)[1], i));
+			expected.add((long) i);
+		}
+		assertEquals(expected, values(tree.iterator(), null));
+		for (int i = 1; i < N; i += 2) {
+			assertTrue(tree.removeIf(boxes.get(i)[0], boxes.get(i)[1], v -> v == 0 || v % 2 == 1));
+		}
+		assertEquals(0, tree.size());
+		assertFalse(tree.iterator().hasNext());
+		assertFalse(tree.queryKnn(new double[DIMS], 3).hasNext());
+	}
+
+	@Test
+	public void testIteratorState() {
+		RTreeLong tree = RTreeLong.create(IndexConfig.create(2));
+		tree.insert(new double[]{1, 2}, new double[]{3, 4}, 42);
+		BoxIteratorLong it = tree.iterator();
+		assertThrows(IllegalStateException.class, it::min);
+		assertEquals(42, it.nextLong());
+		assertArrayEquals(new double[]{1, 2}, it.min(), 0.0);
+		assertArrayEquals(new double[]{3, 4}, it.max(), 0.0);
+		assertThrows(NoSuchElementException.class, it::nextLong);
+		BoxIteratorKnnLong itKnn = tree.queryKnn(new double[]{1, 1}, 1);
+		assertThrows(IllegalStateException.class, itKnn::dist);
+		assertEquals(42, itKnn.nextLong());
+		assertEquals(1, itKnn.dist(), 0.0);
+		assertThrows(NoSuchElementException.class, itKnn::nextLong);
+	}
+
+	private static double dist(BoxIteratorKnnLong it) {
+		assertTrue(it.hasNext());
+		assertEquals(0, it.nextLong() % 2);
+		return it.dist();
+	}
+
+	private static Set<Long> values(Iterator<? extends BoxEntry<Long>> it) {
+		Set<Long> values = new HashSet<>();
+		while (it.hasNext()) {
+			assertTrue(values.add(it.next().value()));
+		}
+		return values;
+	}
+
+	private static Set<Long> values(BoxIteratorLong it, List<double[][]> boxes) {
+		Set<Long> values = new HashSet<>();
+		while (it.hasNext()) {
+			long id = it.nextLong();
+			assertTrue(values.add(id));
+			if (boxes != null) {
+				double[][] box = boxes.get((int) (id - ID_OFFSET));
+				assertArrayEquals(box[0], it.min(), 0.0);
+				assertArrayEquals(box[1], it.max(), 0.0);
+			}
+		}
+		return values;
+	}
+}
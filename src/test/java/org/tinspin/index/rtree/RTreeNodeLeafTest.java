@@ -0,0 +1,126 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ */
+package org.tinspin.index.rtree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class RTreeNodeLeafTest {
+
+	private static final int DIMS = 3;
+	private static final int MAX_ENTRIES = 8;
+
+	@Test
+	public void testPackedBoxes() {
+		Random rnd = new Random(0);
+		RTreeNodeLeaf<Integer> leaf = new RTreeNodeLeaf<>(DIMS, MAX_ENTRIES);
+		ArrayList<RTreeEntry<Integer>> entries = new ArrayList<>();
+		for (int r = 0; r < 1000; r++) {
+			int action = rnd.nextInt(10);
+			if (action < 6 || entries.isEmpty()) {
+				double[] min = new double[DIMS];
+				double[] max = new double[DIMS];
+				for (int d = 0; d < DIMS; d++) {
+					min[d] = rnd.nextInt(10);
+					max[d] = min[d] + rnd.nextInt(3);
+				}
+				RTreeEntry<Integer> e = RTreeEntry.createBox(min, max, r);
+				leaf.addEntry(e);
+				entries.add(e);
+			} else if (action < 9) {
+				int pos = rnd.nextInt(entries.size());
+				leaf.removeEntry(pos);
+				entries.remove(pos);
+			} else {
+				leaf.clear();
+				entries.clear();
+			}
+			checkEntries(leaf, entries);
+			checkScan(leaf, entries, rnd);
+		}
+	}
+
+	@Test
+	public void testClearKeepsCapacity() {
+		RTreeNodeLeaf<Integer> leaf = new RTreeNodeLeaf<>(DIMS, MAX_ENTRIES);
+		double[] boxes = leaf.getBoxes();
+		assertEquals((MAX_ENTRIES + 1) * 2 * DIMS, boxes.length);
+		for (int i = 0; i <= MAX_ENTRIES; i++) {
+			leaf.addEntry(RTreeEntry.createPoint(new double[] {i, i, i}, i));
+		}
+		assertSame(boxes, leaf.getBoxes());
+		leaf.clear();
+		assertEquals(0, leaf.size());
+		assertSame(boxes, leaf.getBoxes());
+
+		// overfull leaves are supported
+		for (int i = 0; i < 3 * MAX_ENTRIES; i++) {
+			leaf.addEntry(RTreeEntry.createPoint(new double[] {i, i, i}, i));
+		}
+		assertEquals(3 * MAX_ENTRIES, leaf.size());
+		for (int i = 0; i < leaf.size(); i++) {
+			assertEquals(i, (int) leaf.getValue(i));
+		}
+	}
+
+	private void checkEntries(RTreeNodeLeaf<Integer> leaf, ArrayList<RTreeEntry<Integer>> entries) {
+		assertEquals(entries.size(), leaf.size());
+		for (int i = 0; i < entries.size(); i++) {
+			RTreeEntry<Integer> e = entries.get(i);
+			RTreeEntry<Integer> e2 = leaf.getEntry(i);
+			// keys are copied
+			assertNotSame(e.min(), e2.min());
+			assertArrayEquals(e.min(), e2.min(), 0.0);
+			assertArrayEquals(e.max(), e2.max(), 0.0);
+			assertSame(e.value(), e2.value());
+			assertSame(e.value(), leaf.getValue(i));
+			assertTrue(leaf.checkInclusion(e.min(), e.max()));
+		}
+	}
+
+	private void checkScan(RTreeNodeLeaf<Integer> leaf, ArrayList<RTreeEntry<Integer>> entries, Random rnd) {
+		double[] min = new double[DIMS];
+		double[] max = new double[DIMS];
+		for (int d = 0; d < DIMS; d++) {
+			min[d] = rnd.nextInt(10);
+			max[d] = min[d] + rnd.nextInt(5);
+		}
+		int pos = 0;
+		for (int i = 0; i < entries.size(); i++) {
+			if (RTreeEntry.checkOverlap(min, max, entries.get(i))) {
+				assertEquals(i, leaf.findOverlap(pos, min, max));
+				pos = i + 1;
+			}
+		}
+		assertEquals(-1, leaf.findOverlap(pos, min, max));
+
+		for (int i = 0; i < entries.size(); i++) {
+			RTreeEntry<Integer> e = entries.get(i);
+			int pos2 = leaf.findExact(0, e.min(), e.max());
+			assertTrue(pos2 >= 0 && pos2 <= i);
+			assertTrue(entries.get(pos2).checkExactMatch(e.min(), e.max()));
+		}
+	}
+}
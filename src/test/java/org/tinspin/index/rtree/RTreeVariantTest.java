@@ -0,0 +1,208 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.rtree;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+import org.tinspin.index.BoxMap;
+import org.tinspin.index.Index.BoxIterator;
+import org.tinspin.index.IndexConfig;
+import org.tinspin.index.IndexConfig.RTreeVariant;
+import org.tinspin.index.ValueCodec;
+
+public class RTreeVariantTest {
+
+	private static final int DIMS = 3;
+
+	@Test
+	public void testBoxes() {
+		for (RTreeVariant v : RTreeVariant.values()) {
+			check(create(v, 10, 10), createEntries(20_000, 0.01));
+		}
+	}
+
+	@Test
+	public void testPoints() {
+		for (RTreeVariant v : RTreeVariant.values()) {
+			check(create(v, 10, 10), createEntries(20_000, 0));
+		}
+	}
+
+	@Test
+	public void testDuplicates() {
+		for (RTreeVariant v : RTreeVariant.values()) {
+			RTreeEntry<Integer>[] entries = createEntries(5_000, 0);
+			for (int i = 1; i < entries.length; i++) {
+				if (i % 5 != 0) {
+					entries[i] = RTreeEntry.createPoint(entries[i - 1].min(), i);
+				}
+			}
+			check(create(v, 10, 10), entries);
+		}
+	}
+
+	@Test
+	public void testLargeFanOut() {
+		for (RTreeVariant v : RTreeVariant.values()) {
+			IndexConfig cfg = IndexConfig.create(DIMS).setRTreeVariant(v)
+					.setRTreeNodeMaxDir(56).setRTreeNodeMinDir(11)
+					.setRTreeNodeMaxData(50).setRTreeNodeMinData(10);
+			check(RTree.create(cfg), createEntries(20_000, 0.01));
+		}
+	}
+
+	@Test
+	public void testOverlap() {
+		RTreeEntry<Integer>[] entries = createEntries(20_000, 0.01);
+		RTree<Integer> linear = create(RTreeVariant.LINEAR, 10, 10);
+		RTree<Integer> rrStar = create(RTreeVariant.RRSTAR, 10, 10);
+		for (RTreeEntry<Integer> e : entries) {
+			linear.insert(e.min(), e.max(), e.value());
+			rrStar.insert(e.min(), e.max(), e.value());
+		}
+		assertTrue(rrStar.getStats().getNodeOverlap() < linear.getStats().getNodeOverlap());
+	}
+
+	@Test
+	public void testSaveLoad() throws IOException {
+		RTree<Integer> tree = create(RTreeVariant.QUADRATIC, 6, 8);
+		RTreeEntry<Integer>[] entries = createEntries(1_000, 0.01);
+		for (RTreeEntry<Integer> e : entries) {
+			tree.insert(e.min(), e.max(), e.value());
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		tree.save(out, ValueCodec.INTEGER);
+		RTree<Integer> tree2 = RTree.load(new ByteArrayInputStream(out.toByteArray()), ValueCodec.INTEGER);
+		assertSame(RTreeVariant.QUADRATIC, tree2.getVariant());
+		assertEquals(tree.size(), tree2.size());
+		// splits of the loaded tree must still use the quadratic logic
+		for (int i = 0; i < 1_000; i++) {
+			tree2.insert(new double[]{i * 0.001, 0.5, 0.5}, new double[]{i * 0.001, 0.5, 0.5}, -i);
+		}
+		assertEquals(2_000, tree2.getStats().getEntryCount());
+	}
+
+	@Test
+	public void testLoadUnknownVariant() throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		create(RTreeVariant.QUADRATIC, 6, 8).save(out, ValueCodec.INTEGER);
+		byte[] bytes = out.toByteArray();
+		// the variant is stored by name, e.g. a variant of a newer version
+		String s = new String(bytes, StandardCharsets.ISO_8859_1);
+		int pos = s.indexOf("QUADRATIC");
+		assertTrue(pos > 0);
+		bytes[pos + "QUADRATIC".length() - 1] = 'X';
+		ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+		IOException e = assertThrows(IOException.class, () -> RTree.load(in, ValueCodec.INTEGER));
+		assertTrue(e.getMessage(), e.getMessage().contains("QUADRATIX"));
+	}
+
+	@Test
+	public void testFactory() {
+		IndexConfig cfg = IndexConfig.create(DIMS).setRTreeVariant(RTreeVariant.RRSTAR);
+		BoxMap<Integer> map = BoxMap.Factory.createRTree(cfg);
+		assertSame(RTreeVariant.RRSTAR, ((RTree<Integer>) map).getVariant());
+		assertSame(RTreeVariant.RSTAR, RTree.createRStar(DIMS).getVariant());
+	}
+
+	private static RTree<Integer> create(RTreeVariant v, int maxDir, int maxData) {
+		return RTree.create(IndexConfig.create(DIMS).setRTreeVariant(v)
+				.setRTreeNodeMaxDir(maxDir).setRTreeNodeMaxData(maxData));
+	}
+
+	private void check(RTree<Integer> tree, RTreeEntry<Integer>[] entries) {
+		int n = entries.length;
+		for (RTreeEntry<Integer> e : entries) {
+			tree.insert(e.min(), e.max(), e.value());
+		}
+		assertEquals(n, tree.size());
+		// getStats() verifies the node sizes
+		assertEquals(n, tree.getStats().getEntryCount());
+		for (RTreeEntry<Integer> e : entries) {
+			assertTrue(tree.contains(e.min(), e.max(), e.value()));
+		}
+		checkQueries(tree, entries, 0);
+		assertNotNull(tree.query1nn(new double[DIMS]));
+
+		for (int i = 0; i < n / 2; i++) {
+			assertTrue(tree.remove(entries[i].min(), entries[i].max(), entries[i].value()));
+		}
+		assertEquals(n - n / 2, tree.getStats().getEntryCount());
+		checkQueries(tree, entries, n / 2);
+	}
+
+	private void checkQueries(RTree<Integer> tree, RTreeEntry<Integer>[] entries, int first) {
+		Random rnd = new Random(1);
+		for (int i = 0; i < 20; i++) {
+			double[] min = new double[DIMS];
+			double[] max = new double[DIMS];
+			for (int d = 0; d < DIMS; d++) {
+				min[d] = rnd.nextDouble() * 0.8;
+				max[d] = min[d] + 0.2;
+			}
+			Set<Integer> expected = new HashSet<>();
+			for (int j = first; j < entries.length; j++) {
+				if (intersects(entries[j], min, max)) {
+					expected.add(entries[j].value());
+				}
+			}
+			Set<Integer> result = new HashSet<>();
+			BoxIterator<Integer> it = tree.queryIntersect(min, max);
+			while (it.hasNext()) {
+				assertTrue(result.add(it.next().value()));
+			}
+			assertEquals(expected, result);
+		}
+	}
+
+	private static boolean intersects(RTreeEntry<Integer> e, double[] min, double[] max) {
+		for (int d = 0; d < DIMS; d++) {
+			if (e.max()[d] < min[d] || e.min()[d] > max[d]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	private RTreeEntry<Integer>[] createEntries(int n, double maxLen) {
+		Random rnd = new Random(0);
+		RTreeEntry<Integer>[] entries = new RTreeEntry[n];
+		for (int i = 0; i < n; i++) {
+			double[] min = new double[DIMS];
+			double[] max = new double[DIMS];
+			for (int d = 0; d < DIMS; d++) {
+				min[d] = rnd.nextDouble();
+				max[d] = min[d] + rnd.nextDouble() * maxLen;
+			}
+			entries[i] = RTreeEntry.createBox(min, max, i);
+		}
+		return entries;
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.rtree;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class STRLoaderTest {
+
+	@Test
+	public void testParallelPoints() {
+		for (int dims = 1; dims <= 5; dims++) {
+			check(createPoints(dims, 200_000), dims);
+		}
+	}
+
+	@Test
+	public void testParallelBoxes() {
+		check(createBoxes(3, 100_000), 3);
+	}
+
+	@Test
+	public void testParallelSmall() {
+		for (int n = 1; n < 200; n += 7) {
+			check(createPoints(2, n), 2);
+		}
+	}
+
+	@Test
+	public void testParallelDuplicates() {
+		RTreeEntry<Integer>[] entries = createPoints(3, 50_000);
+		for (int i = 1; i < entries.length; i += 2) {
+			entries[i] = RTreeEntry.createPoint(entries[i - 1].min(), i);
+		}
+		check(entries, 3);
+	}
+
+	private void check(RTreeEntry<Integer>[] entries, int dims) {
+		RTree<Integer> seq = RTree.createRStar(dims);
+		seq.load(entries.clone());
+		RTree<Integer> par = RTree.createRStar(dims);
+		par.load(entries.clone(), true);
+
+		assertEquals(seq.size(), par.size());
+		assertEquals(seq.getDepth(), par.getDepth());
+		assertEquals(seq.getNodeCount(), par.getNodeCount());
+		assertSameStructure(seq.getRoot(), par.getRoot());
+		assertSame(null, par.getRoot().getParent());
+	}
+
+	private void assertSameStructure(RTreeNode<Integer> n1, RTreeNode<Integer> n2) {
+		assertArrayEquals(n1.min(), n2.min(), 0.0);
+		assertArrayEquals(n1.max(), n2.max(), 0.0);
+		assertEquals(n1.size(), n2.size());
+		for (int i = 0; i < n1.size(); i++) {
+			RTreeEntry<Integer> e1 = n1.getEntry(i);
+			RTreeEntry<Integer> e2 = n2.getEntry(i);
+			if (e1 instanceof RTreeNode) {
+				RTreeNode<Integer> child = (RTreeNode<Integer>) e2;
+				assertSame(n2, child.getParent());
+				assertSameStructure((RTreeNode<Integer>) e1, child);
+			} else {
+				// the values are shared between both trees
+				assertArrayEquals(e1.min(), e2.min(), 0.0);
+				assertArrayEquals(e1.max(), e2.max(), 0.0);
+				assertSame(e1.value(), e2.value());
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private RTreeEntry<Integer>[] createPoints(int dims, int n) {
+		Random rnd = new Random(0);
+		RTreeEntry<Integer>[] entries = new RTreeEntry[n];
+		for (int i = 0; i < n; i++) {
+			double[] p = new double[dims];
+			for (int d = 0; d < dims; d++) {
+				p[d] = rnd.nextDouble();
+			}
+			entries[i] = RTreeEntry.createPoint(p, i);
+		}
+		return entries;
+	}
+
+	@SuppressWarnings("unchecked")
+	private RTreeEntry<Integer>[] createBoxes(int dims, int n) {
+		Random rnd = new Random(0);
+		RTreeEntry<Integer>[] entries = new RTreeEntry[n];
+		for (int i = 0; i < n; i++) {
+			double[] min = new double[dims];
+			double[] max = new double[dims];
+			for (int d = 0; d < dims; d++) {
+				min[d] = rnd.nextDouble();
+				max[d] = min[d] + rnd.nextDouble() * 0.01;
+			}
+			entries[i] = RTreeEntry.createBox(min, max, i);
+		}
+		return entries;
+	}
+}
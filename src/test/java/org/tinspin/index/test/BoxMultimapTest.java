@@ -327,6 +327,65 @@ public class BoxMultimapTest extends AbstractWrapperTest {
         assertEquals(0, tree.size());
     }
 
+    @Test
+    public void testRemoveAll() {
+        Random r = new Random(0);
+        int dim = 3;
+        ArrayList<Entry> data = createInt(0, 10_000, dim);
+        BoxMultimap<Entry> tree = createTree(data.size(), dim);
+        for (Entry e : data) {
+            tree.insert(e.p1, e.p2, e);
+        }
+
+        Set<Entry> remaining = new HashSet<>(data);
+        for (int i = 0; i < 20; i++) {
+            double[] min = new double[dim];
+            double[] max = new double[dim];
+            for (int d = 0; d < dim; d++) {
+                min[d] = r.nextInt(BOUND);
+                max[d] = min[d] + r.nextInt(BOUND / 2);
+            }
+            int mod = i % 2 == 0 ? 1 : 3;
+            Set<Entry> expected = new HashSet<>();
+            for (Entry e : remaining) {
+                if (intersects(e, min, max) && e.id % mod == 0) {
+                    expected.add(e);
+                }
+            }
+            assertEquals(expected.size(), tree.removeAll(min, max, e -> e.value().id % mod == 0));
+            remaining.removeAll(expected);
+            assertEquals(remaining.size(), tree.size());
+            for (Entry e : expected) {
+                assertFalse(containsExact(tree, e.p1, e.p2, e.id));
+            }
+        }
+        for (Entry e : remaining) {
+            assertTrue(containsExact(tree, e.p1, e.p2, e.id));
+        }
+        double[] min = new double[dim];
+        double[] max = new double[dim];
+        Arrays.fill(max, BOUND + BOX_LEN_MAX);
+        Set<Entry> all = new HashSet<>();
+        BoxIterator<Entry> it = tree.queryIntersect(min, max);
+        while (it.hasNext()) {
+            all.add(it.next().value());
+        }
+        assertEquals(remaining, all);
+
+        assertEquals(remaining.size(), tree.removeAll(min, max, e -> true));
+        assertEquals(0, tree.size());
+        assertFalse(tree.queryIntersect(min, max).hasNext());
+    }
+
+    private static boolean intersects(Entry e, double[] min, double[] max) {
+        for (int d = 0; d < min.length; d++) {
+            if (e.p2[d] < min[d] || e.p1[d] > max[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Test
     public void testIssueKnnRemove() {
         if (candidate == IDX.COVER) {
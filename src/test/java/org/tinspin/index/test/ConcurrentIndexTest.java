@@ -0,0 +1,299 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.test;
+
+import org.junit.Test;
+import org.tinspin.index.*;
+import org.tinspin.index.util.ConcurrentBoxMap;
+import org.tinspin.index.util.ConcurrentBoxMultimap;
+import org.tinspin.index.util.ConcurrentPointMap;
+import org.tinspin.index.util.ConcurrentPointMultimap;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+import static org.tinspin.index.Index.*;
+
+public class ConcurrentIndexTest {
+
+    private static final int DIMS = 3;
+    private static final int N_THREADS = 4;
+    private static final int N_PER_THREAD = 5_000;
+
+    private static double[] point(int i) {
+        Random R = new Random(i);
+        return new double[]{R.nextDouble(), R.nextDouble(), R.nextDouble()};
+    }
+
+    private static double[] max(double[] min) {
+        return new double[]{min[0] + 0.001, min[1] + 0.001, min[2] + 0.001};
+    }
+
+    @Test
+    public void testPointMap() throws Exception {
+        checkPointMap(PointMap.Factory.createKdTree(DIMS), true);
+    }
+
+    @Test
+    public void testPointMapCoverTree() throws Exception {
+        // queries of the CoverTree cache distances in the nodes
+        checkPointMap(PointMap.Factory.createCoverTree(DIMS), false);
+    }
+
+    @Test
+    public void testPointMapKdTreeFlat() throws Exception {
+        checkPointMap(PointMap.Factory.createKdTreeFlat(DIMS), false);
+    }
+
+    private void checkPointMap(PointMap<Integer> index, boolean optimistic) throws Exception {
+        ConcurrentPointMap<Integer> map = ConcurrentPointMap.create(index);
+        assertEquals(optimistic, map.usesOptimisticReads());
+        run(i -> {
+            map.insert(point(i), i);
+            if (i % 3 == 0) {
+                assertEquals(i, (int) map.remove(point(i)));
+                map.insert(point(i), i);
+            }
+        }, R -> {
+            double[] min = {R.nextDouble() * 0.9, R.nextDouble() * 0.9, R.nextDouble() * 0.9};
+            double[] max = {min[0] + 0.1, min[1] + 0.1, min[2] + 0.1};
+            PointIterator<Integer> it = map.query(min, max);
+            while (it.hasNext()) {
+                PointEntry<Integer> e = it.next();
+                assertArrayEquals(point(e.value()), e.point(), 0.0);
+                assertTrue(isInside(e.point(), min, max));
+            }
+            checkKnn(map.queryKnn(min, 5));
+            PointEntryKnn<Integer> nn = map.query1nn(min);
+            assertTrue(nn == null || nn.value() != null);
+        });
+        assertEquals(N_THREADS * N_PER_THREAD, map.size());
+        for (int i = 0; i < N_THREADS * N_PER_THREAD; i++) {
+            assertEquals(i, (int) map.queryExact(point(i)));
+        }
+        assertEquals(map.size(), count(map.query(new double[]{0, 0, 0}, new double[]{1, 1, 1})));
+        map.clear();
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void testPointMultimap() throws Exception {
+        ConcurrentPointMultimap<Integer> map =
+                ConcurrentPointMultimap.create(PointMultimap.Factory.createQuadtreeHC2(DIMS));
+        run(i -> {
+            map.insert(point(i), i);
+            map.insert(point(i), -i - 1);
+            assertTrue(map.remove(point(i), -i - 1));
+        }, R -> {
+            double[] min = {R.nextDouble() * 0.9, R.nextDouble() * 0.9, R.nextDouble() * 0.9};
+            double[] max = {min[0] + 0.1, min[1] + 0.1, min[2] + 0.1};
+            PointIterator<Integer> it = map.query(min, max);
+            while (it.hasNext()) {
+                assertTrue(isInside(it.next().point(), min, max));
+            }
+            checkKnn(map.queryKnn(min, 5));
+            checkKnn(map.queryKnn(min, 5, PointDistance.L1));
+        });
+        assertEquals(N_THREADS * N_PER_THREAD, map.size());
+        for (int i = 0; i < N_THREADS * N_PER_THREAD; i++) {
+            assertTrue(map.contains(point(i), i));
+            assertEquals(1, count(map.queryExactPoint(point(i))));
+        }
+        assertEquals(map.size(), count(map.query(new double[]{0, 0, 0}, new double[]{1, 1, 1})));
+    }
+
+    @Test
+    public void testBoxMap() throws Exception {
+        ConcurrentBoxMap<Integer> map = ConcurrentBoxMap.create(BoxMap.Factory.createRStarTree(DIMS));
+        run(i -> {
+            double[] min = point(i);
+            map.insert(min, max(min), i);
+        }, R -> {
+            double[] min = {R.nextDouble() * 0.9, R.nextDouble() * 0.9, R.nextDouble() * 0.9};
+            double[] max = {min[0] + 0.1, min[1] + 0.1, min[2] + 0.1};
+            BoxIterator<Integer> it = map.queryIntersect(min, max);
+            while (it.hasNext()) {
+                BoxEntry<Integer> e = it.next();
+                assertArrayEquals(point(e.value()), e.min(), 0.0);
+            }
+            BoxIteratorKnn<Integer> itKnn = map.queryKnn(min, 5);
+            double prev = 0;
+            while (itKnn.hasNext()) {
+                BoxEntryKnn<Integer> e = itKnn.next();
+                assertTrue(prev <= e.dist());
+                prev = e.dist();
+            }
+        });
+        assertEquals(N_THREADS * N_PER_THREAD, map.size());
+        for (int i = 0; i < N_THREADS * N_PER_THREAD; i++) {
+            double[] min = point(i);
+            assertEquals(i, (int) map.queryExact(min, max(min)));
+        }
+        assertEquals(map.size(), count(map.iterator()));
+    }
+
+    @Test
+    public void testBoxMultimap() throws Exception {
+        ConcurrentBoxMultimap<Integer> map = ConcurrentBoxMultimap.create(BoxMultimap.Factory.createRStarTree(DIMS));
+        run(i -> {
+            double[] min = point(i);
+            map.insert(min, max(min), i);
+            map.insert(min, max(min), -i - 1);
+            assertTrue(map.remove(min, max(min), -i - 1));
+        }, R -> {
+            double[] min = {R.nextDouble() * 0.9, R.nextDouble() * 0.9, R.nextDouble() * 0.9};
+            double[] max = {min[0] + 0.1, min[1] + 0.1, min[2] + 0.1};
+            BoxIterator<Integer> it = map.queryIntersect(min, max);
+            while (it.hasNext()) {
+                assertNotNull(it.next().value());
+            }
+            assertNotNull(map.queryKnn(min, 5, BoxDistance.EDGE));
+        });
+        assertEquals(N_THREADS * N_PER_THREAD, map.size());
+        for (int i = 0; i < N_THREADS * N_PER_THREAD; i++) {
+            double[] min = point(i);
+            assertTrue(map.contains(min, max(min), i));
+            assertEquals(1, count(map.queryExactBox(min, max(min))));
+        }
+    }
+
+    @Test
+    public void testOptimisticReads() {
+        assertTrue(ConcurrentPointMap.create(PointMap.Factory.createRStarTree(DIMS)).usesOptimisticReads());
+        assertTrue(ConcurrentPointMultimap.create(PointMultimap.Factory.createQuadtreeHC2(DIMS)).usesOptimisticReads());
+        assertTrue(ConcurrentBoxMap.create(BoxMap.Factory.createRStarTree(DIMS)).usesOptimisticReads());
+        assertFalse(ConcurrentPointMap.create(PointMap.Factory.createQuadtree(DIMS)).usesOptimisticReads());
+        assertFalse(ConcurrentPointMultimap.create(PointMultimap.Factory.createPhTree(DIMS)).usesOptimisticReads());
+        assertFalse(ConcurrentBoxMultimap.create(BoxMultimap.Factory.createQuadtree(DIMS)).usesOptimisticReads());
+    }
+
+    @Test
+    public void testFilterCalledOnce() throws Exception {
+        ConcurrentPointMap<Integer> map = ConcurrentPointMap.create(PointMap.Factory.createKdTree(DIMS));
+        for (int i = 0; i < 1000; i++) {
+            map.insert(point(i), i);
+        }
+        // the filter must see every entry at most once, even with concurrent modifications
+        run(1_000, i -> {
+            map.insert(point(1000 + i), 1000 + i);
+            assertEquals(1000 + i, (int) map.remove(point(1000 + i)));
+        }, R -> {
+            Set<Integer> seen = new HashSet<>();
+            PointIteratorKnn<Integer> it = map.queryKnn(point(R.nextInt(1000)), 5, PointDistance.L2,
+                    (e, dist) -> {
+                        assertTrue(seen.add(e.value()));
+                        return true;
+                    });
+            checkKnn(it);
+        });
+    }
+
+    @Test
+    public void testReset() {
+        ConcurrentPointMap<Integer> map = ConcurrentPointMap.create(PointMap.Factory.createRStarTree(DIMS));
+        for (int i = 0; i < 1000; i++) {
+            map.insert(point(i), i);
+        }
+        PointIteratorKnn<Integer> itKnn = map.queryKnn(point(0), 3);
+        assertEquals(3, count(itKnn));
+        assertEquals(10, count(itKnn.reset(point(1), 10)));
+        PointIterator<Integer> it = map.iterator();
+        assertEquals(1000, count(it));
+        assertEquals(1000, count(it.reset(new double[]{0, 0, 0}, new double[]{1, 1, 1})));
+    }
+
+    private interface Writer {
+        void write(int i);
+    }
+
+    private interface Reader {
+        void read(Random R);
+    }
+
+    /**
+     * Each writer thread writes a separate range of values while the reader threads run queries.
+     */
+    private static void run(Writer writer, Reader reader) throws Exception {
+        run(N_PER_THREAD, writer, reader);
+    }
+
+    private static void run(int nPerThread, Writer writer, Reader reader) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2 * N_THREADS);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            List<Future<?>> readers = new ArrayList<>();
+            CountDownLatch done = new CountDownLatch(N_THREADS);
+            for (int t = 0; t < N_THREADS; t++) {
+                int start = t * nPerThread;
+                writers.add(executor.submit(() -> {
+                    try {
+                        for (int i = start; i < start + nPerThread; i++) {
+                            writer.write(i);
+                        }
+                    } finally {
+                        done.countDown();
+                    }
+                }));
+                int seed = t;
+                readers.add(executor.submit(() -> {
+                    Random R = new Random(seed);
+                    do {
+                        reader.read(R);
+                    } while (done.getCount() > 0);
+                    return null;
+                }));
+            }
+            for (Future<?> f : writers) {
+                f.get();
+            }
+            for (Future<?> f : readers) {
+                f.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void checkKnn(PointIteratorKnn<Integer> it) {
+        double prev = 0;
+        while (it.hasNext()) {
+            PointEntryKnn<Integer> e = it.next();
+            assertTrue(prev <= e.dist());
+            prev = e.dist();
+        }
+    }
+
+    private static boolean isInside(double[] p, double[] min, double[] max) {
+        for (int d = 0; d < p.length; d++) {
+            if (p[d] < min[d] || p[d] > max[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int count(Iterator<?> it) {
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+}
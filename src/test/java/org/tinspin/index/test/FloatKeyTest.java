@@ -0,0 +1,226 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.test;
+
+import org.junit.Test;
+import org.tinspin.index.PointDistance;
+import org.tinspin.index.PointMap;
+import org.tinspin.index.PointMultimap;
+import org.tinspin.index.kdtree.KDTreeF;
+import org.tinspin.index.qthypercube2.QuadTreeKD2F;
+
+import java.util.*;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.*;
+import static org.tinspin.index.Index.*;
+
+/**
+ * Compare the float-keyed indexes against brute force on the rounded keys.
+ */
+public class FloatKeyTest {
+
+    private static final int DIMS = 3;
+    private static final int N = 5_000;
+
+    private static Map<String, IntFunction<PointMultimap<Integer>>> factories() {
+        Map<String, IntFunction<PointMultimap<Integer>>> factories = new LinkedHashMap<>();
+        factories.put("KDTreeF", PointMultimap.Factory::createKdTreeFloat);
+        factories.put("QuadTreeKD2F", PointMultimap.Factory::createQuadtreeHC2Float);
+        return factories;
+    }
+
+    private static List<double[]> createPoints(Random R, int n) {
+        List<double[]> points = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            double[] p = new double[DIMS];
+            Arrays.setAll(p, x -> R.nextDouble() * 100);
+            points.add(p);
+        }
+        return points;
+    }
+
+    private static double[] round(double[] p) {
+        double[] r = new double[p.length];
+        Arrays.setAll(r, d -> (float) p[d]);
+        return r;
+    }
+
+    @Test
+    public void testQueries() {
+        factories().forEach((name, factory) -> {
+            Random R = new Random(0);
+            List<double[]> points = createPoints(R, N);
+            PointMultimap<Integer> tree = factory.apply(DIMS);
+            for (int i = 0; i < points.size(); i++) {
+                tree.insert(points.get(i), i);
+            }
+            assertEquals(name, N, tree.size());
+
+            for (int i = 0; i < points.size(); i++) {
+                double[] p = points.get(i);
+                assertTrue(name, tree.contains(p, i));
+                PointIterator<Integer> it = tree.queryExactPoint(p);
+                assertTrue(name, it.hasNext());
+                PointEntry<Integer> e = it.next();
+                assertEquals(name, i, (int) e.value());
+                assertArrayEquals(name, round(p), e.point(), 0.0);
+            }
+
+            for (int i = 0; i < 100; i++) {
+                double[] min = new double[DIMS];
+                double[] max = new double[DIMS];
+                for (int d = 0; d < DIMS; d++) {
+                    double x1 = R.nextDouble() * 100;
+                    double x2 = R.nextDouble() * 100;
+                    min[d] = Math.min(x1, x2);
+                    max[d] = Math.max(x1, x2);
+                }
+                checkWindow(name, points, tree.query(min, max), min, max);
+            }
+            // points on the window boundary are found even though their keys were rounded
+            for (int i = 0; i < 100; i++) {
+                double[] p = points.get(i);
+                PointIterator<Integer> it = tree.query(p, p);
+                assertTrue(name, it.hasNext());
+                assertArrayEquals(name, round(p), it.next().point(), 0.0);
+            }
+
+            int n = 0;
+            for (PointIterator<Integer> it = tree.iterator(); it.hasNext(); it.next()) {
+                n++;
+            }
+            assertEquals(name, N, n);
+
+            for (PointDistance distFn : new PointDistance[]{PointDistance.L2, PointDistance.L1}) {
+                for (int i = 0; i < 20; i++) {
+                    double[] center = new double[DIMS];
+                    Arrays.setAll(center, x -> R.nextDouble() * 120 - 10);
+                    checkKnn(name, points, tree.queryKnn(center, 10, distFn), center, distFn, null);
+                    PointFilterKnn<Integer> filter = (e, d) -> e.value() % 3 == 0;
+                    checkKnn(name, points, tree.queryKnn(center, 10, distFn, filter), center, distFn, filter);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testRemoveAndUpdate() {
+        factories().forEach((name, factory) -> {
+            Random R = new Random(1);
+            List<double[]> points = createPoints(R, N);
+            PointMultimap<Integer> tree = factory.apply(DIMS);
+            for (int i = 0; i < points.size(); i++) {
+                tree.insert(points.get(i), i);
+            }
+            // move odd entries, remove even entries
+            for (int i = 0; i < points.size(); i++) {
+                double[] p = points.get(i);
+                if (i % 2 == 0) {
+                    assertTrue(name, tree.remove(p, i));
+                    assertFalse(name, tree.contains(p, i));
+                } else {
+                    double[] p2 = p.clone();
+                    p2[0] += 0.5;
+                    assertTrue(name, tree.update(p, p2, i));
+                    points.set(i, p2);
+                }
+            }
+            assertEquals(name, N / 2, tree.size());
+            assertFalse(name, tree.update(new double[]{-1, -1, -1}, new double[]{1, 1, 1}, 1));
+            for (int i = 1; i < points.size(); i += 2) {
+                assertTrue(name, tree.contains(points.get(i), i));
+                assertTrue(name, tree.remove(points.get(i), i));
+            }
+            assertEquals(name, 0, tree.size());
+            assertFalse(name, tree.iterator().hasNext());
+        });
+    }
+
+    @Test
+    public void testPointMap() {
+        for (PointMap<Integer> tree : Arrays.<PointMap<Integer>>asList(
+                PointMap.Factory.createKdTreeFloat(2), PointMap.Factory.createQuadtreeHC2Float(2))) {
+            double[] key = {0.1, 0.2};
+            tree.insert(key, 1);
+            assertEquals(1, (int) tree.queryExact(key));
+            // keys that differ only beyond float precision are equal
+            double[] key2 = {0.1 + 1e-12, 0.2};
+            assertEquals(1, (int) tree.queryExact(key2));
+            assertEquals(1, (int) tree.update(key2, new double[]{3, 4}));
+            assertNull(tree.queryExact(key));
+            assertEquals(1, (int) tree.query1nn(new double[]{3, 4}).value());
+            assertEquals(0, tree.query1nn(new double[]{3, 4}).dist(), 0.0);
+            assertEquals(1, (int) tree.remove(new double[]{3, 4}));
+            assertEquals(0, tree.size());
+        }
+    }
+
+    @Test
+    public void testFloatInsert() {
+        KDTreeF<Integer> kd = KDTreeF.create(2);
+        QuadTreeKD2F<Integer> qt = QuadTreeKD2F.create(2);
+        kd.insert(new float[]{1.5f, 2.5f}, 1);
+        qt.insert(new float[]{1.5f, 2.5f}, 1);
+        assertEquals(1, (int) kd.queryExact(new double[]{1.5, 2.5}));
+        assertEquals(1, (int) qt.queryExact(new double[]{1.5, 2.5}));
+    }
+
+    private static void checkWindow(String name, List<double[]> points, PointIterator<Integer> it,
+                                    double[] min, double[] max) {
+        Set<Integer> expected = new HashSet<>();
+        for (int i = 0; i < points.size(); i++) {
+            double[] p = points.get(i);
+            boolean inside = true;
+            for (int d = 0; d < DIMS; d++) {
+                inside &= (float) p[d] >= (float) min[d] && (float) p[d] <= (float) max[d];
+            }
+            if (inside) {
+                expected.add(i);
+            }
+        }
+        Set<Integer> found = new HashSet<>();
+        while (it.hasNext()) {
+            assertTrue(name, found.add(it.next().value()));
+        }
+        assertEquals(name, expected, found);
+    }
+
+    private static void checkKnn(String name, List<double[]> points, PointIteratorKnn<Integer> it,
+                                 double[] center, PointDistance distFn, PointFilterKnn<Integer> filter) {
+        double[] expected = new double[points.size()];
+        int nExpected = 0;
+        for (int i = 0; i < points.size(); i++) {
+            if (filter == null || i % 3 == 0) {
+                expected[nExpected++] = distFn.dist(center, round(points.get(i)));
+            }
+        }
+        Arrays.sort(expected, 0, nExpected);
+        int n = 0;
+        while (it.hasNext()) {
+            PointEntryKnn<Integer> e = it.next();
+            assertEquals(name, expected[n], e.dist(), 0.0);
+            assertArrayEquals(name, round(points.get(e.value())), e.point(), 0.0);
+            if (filter != null) {
+                assertEquals(name, 0, e.value() % 3);
+            }
+            n++;
+        }
+        assertEquals(name, Math.min(10, nExpected), n);
+    }
+}
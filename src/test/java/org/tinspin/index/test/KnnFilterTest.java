@@ -0,0 +1,261 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.test;
+
+import org.junit.Test;
+import org.tinspin.index.*;
+import org.tinspin.index.array.PointArray;
+import org.tinspin.index.covertree.CoverTree;
+import org.tinspin.index.phtree.PHTreeMMP;
+import org.tinspin.index.util.ConcurrentBoxMap;
+import org.tinspin.index.util.ConcurrentBoxMultimap;
+import org.tinspin.index.util.ConcurrentPointMap;
+import org.tinspin.index.util.ConcurrentPointMultimap;
+
+import java.util.*;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.*;
+import static org.tinspin.index.Index.*;
+
+/**
+ * Compare filtered kNN queries against brute force.
+ */
+public class KnnFilterTest {
+
+    private static final int DIMS = 3;
+    private static final int N = 2_000;
+    private static final int K = 7;
+
+    private static final PointFilterKnn<Integer> POINT_FILTER = (e, d) -> e.value() % 3 == 0;
+    private static final BoxFilterKnn<Integer> BOX_FILTER = (e, d) -> e.value() % 3 == 0;
+
+    private static List<double[]> createPoints(Random R) {
+        List<double[]> points = new ArrayList<>();
+        for (int i = 0; i < N; i++) {
+            double[] p = new double[DIMS];
+            Arrays.setAll(p, x -> R.nextDouble() * 100);
+            points.add(p);
+        }
+        return points;
+    }
+
+    @Test
+    public void testPointMap() {
+        Map<String, IntFunction<PointMap<Integer>>> factories = new LinkedHashMap<>();
+        factories.put("Array", dims -> PointMap.Factory.createArray(dims, N));
+        factories.put("CoverTree", PointMap.Factory::createCoverTree);
+        factories.put("CritBitZ", PointMap.Factory::createCritBitZ);
+        factories.put("KDTree", PointMap.Factory::createKdTree);
+        factories.put("KDTreeFlat", PointMap.Factory::createKdTreeFlat);
+        factories.put("PHTree", PointMap.Factory::createPhTree);
+        factories.put("Quadtree", PointMap.Factory::createQuadtree);
+        factories.put("QuadtreeHC", PointMap.Factory::createQuadtreeHC);
+        factories.put("RStarTree", PointMap.Factory::createRStarTree);
+        factories.put("Concurrent", dims -> ConcurrentPointMap.create(PointMap.Factory.createKdTree(dims)));
+        Random R = new Random(0);
+        List<double[]> points = createPoints(R);
+        factories.forEach((name, factory) -> {
+            PointMap<Integer> tree = factory.apply(DIMS);
+            for (int i = 0; i < points.size(); i++) {
+                tree.insert(points.get(i), i);
+            }
+            for (int i = 0; i < 20; i++) {
+                double[] center = randomCenter(R);
+                checkPoints(name, points, tree.queryKnn(center, K, PointDistance.L2, POINT_FILTER),
+                        center, PointDistance.L2, K);
+            }
+        });
+    }
+
+    @Test
+    public void testPointMultimap() {
+        Map<String, IntFunction<PointMultimap<Integer>>> factories = new LinkedHashMap<>();
+        factories.put("Array", dims -> PointMultimap.Factory.createArray(dims, N));
+        factories.put("KDTree", PointMultimap.Factory::createKdTree);
+        factories.put("KDTreeFlat", PointMultimap.Factory::createKdTreeFlat);
+        factories.put("PHTree", PointMultimap.Factory::createPhTree);
+        factories.put("Quadtree", PointMultimap.Factory::createQuadtree);
+        factories.put("QuadtreeHC", PointMultimap.Factory::createQuadtreeHC);
+        factories.put("RStarTree", PointMultimap.Factory::createRStarTree);
+        factories.put("Concurrent",
+                dims -> ConcurrentPointMultimap.create(PointMultimap.Factory.createQuadtree(dims)));
+        Random R = new Random(1);
+        List<double[]> points = createPoints(R);
+        factories.forEach((name, factory) -> {
+            PointMultimap<Integer> tree = factory.apply(DIMS);
+            for (int i = 0; i < points.size(); i++) {
+                tree.insert(points.get(i), i);
+            }
+            for (PointDistance distFn : new PointDistance[]{PointDistance.L2, PointDistance.L1}) {
+                if ((tree instanceof PointArray || tree instanceof PHTreeMMP) && distFn != PointDistance.L2) {
+                    // These indexes support only L2
+                    continue;
+                }
+                for (int i = 0; i < 20; i++) {
+                    double[] center = randomCenter(R);
+                    checkPoints(name, points, tree.queryKnn(center, K, distFn, POINT_FILTER), center, distFn, K);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testLargeKAndRejectAll() {
+        Random R = new Random(2);
+        List<double[]> points = createPoints(R);
+        PointMap<Integer> tree = PointMap.Factory.createPhTree(DIMS);
+        for (int i = 0; i < points.size(); i++) {
+            tree.insert(points.get(i), i);
+        }
+        double[] center = randomCenter(R);
+        // fallback query: more results requested than available
+        checkPoints("PHTree", points, tree.queryKnn(center, N, PointDistance.L2, POINT_FILTER),
+                center, PointDistance.L2, N);
+        assertFalse(tree.queryKnn(center, K, PointDistance.L2, (e, d) -> false).hasNext());
+        assertThrows(UnsupportedOperationException.class,
+                () -> tree.queryKnn(center, K, PointDistance.L1, POINT_FILTER));
+
+        PointMap<Integer> kdTree = PointMap.Factory.createKdTree(DIMS);
+        for (int i = 0; i < points.size(); i++) {
+            kdTree.insert(points.get(i), i);
+        }
+        assertFalse(kdTree.queryKnn(center, K, PointDistance.L2, (e, d) -> false).hasNext());
+        // The filter receives the distance of the entry
+        PointIteratorKnn<Integer> it = kdTree.queryKnn(center, N, PointDistance.L1, (e, d) -> d < 50);
+        int n = 0;
+        while (it.hasNext()) {
+            assertTrue(it.next().dist() < 50);
+            n++;
+        }
+        assertEquals(points.stream().filter(p -> PointDistance.L1.dist(center, p) < 50).count(), n);
+    }
+
+    @Test
+    public void testCoverTreeDistance() {
+        CoverTree<Integer> tree = CoverTree.create(DIMS, 1.3, PointDistance.L1);
+        Random R = new Random(3);
+        List<double[]> points = createPoints(R);
+        for (int i = 0; i < points.size(); i++) {
+            tree.insert(points.get(i), i);
+        }
+        double[] center = randomCenter(R);
+        checkPoints("CoverTree", points, tree.queryKnn(center, K, PointDistance.L1, POINT_FILTER),
+                center, PointDistance.L1, K);
+        assertThrows(IllegalArgumentException.class,
+                () -> tree.queryKnn(center, K, PointDistance.L2, POINT_FILTER));
+    }
+
+    @Test
+    public void testBoxMap() {
+        Map<String, IntFunction<BoxMap<Integer>>> factories = new LinkedHashMap<>();
+        factories.put("Array", dims -> BoxMap.Factory.createArray(dims, N));
+        factories.put("PHTree", BoxMap.Factory::createPhTree);
+        factories.put("Quadtree", BoxMap.Factory::createQuadtree);
+        factories.put("QuadtreeHC", BoxMap.Factory::createQuadtreeHC);
+        factories.put("RStarTree", BoxMap.Factory::createRStarTree);
+        factories.put("Concurrent", dims -> ConcurrentBoxMap.create(BoxMap.Factory.createRStarTree(dims)));
+        Random R = new Random(4);
+        List<double[]> boxes = createPoints(R);
+        factories.forEach((name, factory) -> {
+            BoxMap<Integer> tree = factory.apply(DIMS);
+            for (int i = 0; i < boxes.size(); i++) {
+                tree.insert(boxes.get(i), max(boxes.get(i)), i);
+            }
+            for (int i = 0; i < 20; i++) {
+                double[] center = randomCenter(R);
+                checkBoxes(name, boxes, tree.queryKnn(center, K, BoxDistance.EDGE, BOX_FILTER), center);
+            }
+        });
+    }
+
+    @Test
+    public void testBoxMultimap() {
+        Map<String, IntFunction<BoxMultimap<Integer>>> factories = new LinkedHashMap<>();
+        factories.put("Array", dims -> BoxMultimap.Factory.createArray(dims, N));
+        factories.put("Quadtree", BoxMultimap.Factory::createQuadtree);
+        factories.put("QuadtreeHC", BoxMultimap.Factory::createQuadtreeHC);
+        factories.put("RStarTree", BoxMultimap.Factory::createRStarTree);
+        factories.put("Concurrent",
+                dims -> ConcurrentBoxMultimap.create(BoxMultimap.Factory.createQuadtreeHC(dims)));
+        Random R = new Random(5);
+        List<double[]> boxes = createPoints(R);
+        factories.forEach((name, factory) -> {
+            BoxMultimap<Integer> tree = factory.apply(DIMS);
+            for (int i = 0; i < boxes.size(); i++) {
+                tree.insert(boxes.get(i), max(boxes.get(i)), i);
+            }
+            for (int i = 0; i < 20; i++) {
+                double[] center = randomCenter(R);
+                checkBoxes(name, boxes, tree.queryKnn(center, K, BoxDistance.EDGE, BOX_FILTER), center);
+            }
+        });
+    }
+
+    private static double[] randomCenter(Random R) {
+        double[] center = new double[DIMS];
+        Arrays.setAll(center, x -> R.nextDouble() * 120 - 10);
+        return center;
+    }
+
+    private static double[] max(double[] min) {
+        double[] max = min.clone();
+        for (int d = 0; d < DIMS; d++) {
+            max[d] += (min[d] % 1) * 5;
+        }
+        return max;
+    }
+
+    private static void checkPoints(String name, List<double[]> points, PointIteratorKnn<Integer> it,
+                                    double[] center, PointDistance distFn, int k) {
+        double[] expected = new double[points.size()];
+        int nExpected = 0;
+        for (int i = 0; i < points.size(); i += 3) {
+            expected[nExpected++] = distFn.dist(center, points.get(i));
+        }
+        Arrays.sort(expected, 0, nExpected);
+        int n = 0;
+        while (it.hasNext()) {
+            PointEntryKnn<Integer> e = it.next();
+            assertEquals(name, 0, e.value() % 3);
+            assertEquals(name, expected[n], e.dist(), 1e-9);
+            assertArrayEquals(name, points.get(e.value()), e.point(), 0.0);
+            n++;
+        }
+        assertEquals(name, Math.min(k, nExpected), n);
+    }
+
+    private static void checkBoxes(String name, List<double[]> boxes, BoxIteratorKnn<Integer> it,
+                                   double[] center) {
+        double[] expected = new double[boxes.size()];
+        int nExpected = 0;
+        for (int i = 0; i < boxes.size(); i += 3) {
+            expected[nExpected++] = BoxDistance.EDGE.dist(center, boxes.get(i), max(boxes.get(i)));
+        }
+        Arrays.sort(expected, 0, nExpected);
+        int n = 0;
+        while (it.hasNext()) {
+            BoxEntryKnn<Integer> e = it.next();
+            assertEquals(name, 0, e.value() % 3);
+            assertEquals(name, expected[n], e.dist(), 1e-9);
+            assertArrayEquals(name, boxes.get(e.value()), e.min(), 0.0);
+            n++;
+        }
+        assertEquals(name, Math.min(K, nExpected), n);
+    }
+}
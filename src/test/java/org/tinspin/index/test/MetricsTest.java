@@ -0,0 +1,272 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.test;
+
+import org.junit.Test;
+import org.tinspin.index.*;
+import org.tinspin.index.IndexMetrics.Counter;
+import org.tinspin.index.IndexMetrics.Op;
+import org.tinspin.index.util.*;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+import static org.tinspin.index.Index.*;
+
+public class MetricsTest {
+
+    private static final int DIMS = 3;
+
+    @Test
+    public void testMeteredPointMap() {
+        MetricsRecorder recorder = new MetricsRecorder();
+        PointMap<Integer> tree = MeteredPointMap.create(PointMap.Factory.createKdTree(DIMS), recorder);
+        Random R = new Random(0);
+        for (int i = 0; i < 1000; i++) {
+            tree.insert(random(R), i);
+        }
+        assertEquals(1000, recorder.getCount(Op.INSERT));
+        assertEquals(0, recorder.getCount(Op.REMOVE));
+
+        int n = count(tree.query(new double[]{0, 0, 0}, new double[]{0.5, 0.5, 0.5}));
+        assertEquals(1, recorder.getCount(Op.QUERY_WINDOW));
+        assertEquals(n, recorder.getCount(Counter.ENTRIES_RETURNED));
+
+        PointIteratorKnn<Integer> it = tree.queryKnn(random(R), 5);
+        assertEquals(5, count(it));
+        it.reset(random(R), 3);
+        assertEquals(3, count(it));
+        assertNotNull(tree.query1nn(random(R)));
+        assertEquals(3, recorder.getCount(Op.QUERY_KNN));
+        assertEquals(n + 9, recorder.getCount(Counter.ENTRIES_RETURNED));
+
+        assertNull(tree.queryExact(new double[]{-1, -1, -1}));
+        assertFalse(tree.contains(new double[]{-1, -1, -1}));
+        assertEquals(2, recorder.getCount(Op.QUERY_EXACT));
+        assertEquals(n + 9, recorder.getCount(Counter.ENTRIES_RETURNED));
+
+        assertTrue(recorder.getMeanNanos(Op.INSERT) > 0);
+        assertTrue(recorder.getPercentileNanos(Op.INSERT, 50) <= recorder.getPercentileNanos(Op.INSERT, 99));
+        assertTrue(recorder.getPercentileNanos(Op.INSERT, 99) <= recorder.getMaxNanos(Op.INSERT));
+
+        recorder.reset();
+        assertEquals(0, recorder.getCount(Op.INSERT));
+        assertEquals(0, recorder.getCount(Counter.ENTRIES_RETURNED));
+        assertEquals(0, recorder.getPercentileNanos(Op.INSERT, 50));
+    }
+
+    @Test
+    public void testRTreeEvents() {
+        MetricsRecorder recorder = new MetricsRecorder();
+        BoxMap<Integer> tree = MeteredBoxMap.create(BoxMap.Factory.createRStarTree(DIMS), recorder);
+        Random R = new Random(1);
+        double[][] points = new double[10_000][];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = random(R);
+            tree.insert(points[i], points[i], i);
+        }
+        assertTrue(recorder.getCount(Counter.NODE_SPLITS) > 0);
+        assertTrue(recorder.getCount(Counter.REINSERTS) > 0);
+        assertEquals(tree.getDepth() - 1, recorder.getCount(Counter.ROOT_GROWTHS));
+        assertEquals(0, recorder.getCount(Counter.NODE_MERGES));
+
+        int n = count(tree.queryIntersect(new double[]{0.2, 0.2, 0.2}, new double[]{0.4, 0.4, 0.4}));
+        assertTrue(n > 0);
+        assertTrue(recorder.getCount(Counter.NODE_VISITS) > 0);
+        assertTrue(recorder.getCount(Counter.ENTRIES_SCANNED) >= n);
+
+        long nVisits = recorder.getCount(Counter.NODE_VISITS);
+        assertEquals(10, count(tree.queryKnn(random(R), 10)));
+        assertTrue(recorder.getCount(Counter.NODE_VISITS) > nVisits);
+
+        for (int i = 0; i < points.length / 2; i++) {
+            assertEquals(i, (int) tree.remove(points[i], points[i]));
+        }
+        assertEquals(points.length / 2, recorder.getCount(Op.REMOVE));
+        assertTrue(recorder.getCount(Counter.NODE_MERGES) > 0);
+
+        // disable
+        tree.setMetrics(IndexMetrics.NONE);
+        recorder.reset();
+        tree.insert(points[0], points[0], 0);
+        count(tree.queryIntersect(points[0], points[0]));
+        assertEquals(0, recorder.getCount(Op.INSERT));
+        assertEquals(0, recorder.getCount(Counter.NODE_VISITS));
+    }
+
+    @Test
+    public void testQuadtreeRootGrowth() {
+        MetricsRecorder recorder = new MetricsRecorder();
+        PointMap<Integer> tree = PointMap.Factory.createQuadtreeHC(DIMS);
+        tree.setMetrics(recorder);
+        tree.insert(new double[]{0, 0, 0}, 0);
+        tree.insert(new double[]{1, 1, 1}, 1);
+        assertEquals(0, recorder.getCount(Counter.ROOT_GROWTHS));
+        tree.insert(new double[]{1000, 1000, 1000}, 2);
+        assertTrue(recorder.getCount(Counter.ROOT_GROWTHS) > 0);
+    }
+
+    @Test
+    public void testQuadtreeSplitsAndMerges() {
+        testSplitsAndMerges(PointMap.Factory.createQuadtree(DIMS), false);
+        testSplitsAndMerges(PointMap.Factory.createQuadtreeHC(DIMS), false);
+        testSplitsAndMerges(PointMap.Factory.createQuadtreeHC2(DIMS), true);
+        testSplitsAndMerges(PointMap.Factory.createQuadtreeHC2Float(DIMS), true);
+    }
+
+    private void testSplitsAndMerges(PointMap<Integer> tree, boolean reportsVisits) {
+        MetricsRecorder recorder = new MetricsRecorder();
+        tree.setMetrics(recorder);
+        Random R = new Random(3);
+        double[][] points = new double[2000][];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = random(R);
+            tree.insert(points[i], i);
+        }
+        assertTrue(recorder.getCount(Counter.NODE_SPLITS) > 0);
+        assertEquals(0, recorder.getCount(Counter.NODE_MERGES));
+
+        int n = count(tree.query(new double[]{0.2, 0.2, 0.2}, new double[]{0.4, 0.4, 0.4}));
+        assertEquals(10, count(tree.queryKnn(random(R), 10)));
+        if (reportsVisits) {
+            assertTrue(recorder.getCount(Counter.NODE_VISITS) > 0);
+            assertTrue(recorder.getCount(Counter.ENTRIES_SCANNED) >= n + 10);
+        } else {
+            assertEquals(0, recorder.getCount(Counter.NODE_VISITS));
+        }
+
+        for (int i = 0; i < points.length; i++) {
+            assertEquals(i, (int) tree.remove(points[i]));
+        }
+        assertTrue(recorder.getCount(Counter.NODE_MERGES) > 0);
+    }
+
+    @Test
+    public void testBoxQuadtreeSplitsAndMerges() {
+        testSplitsAndMerges(BoxMap.Factory.createQuadtree(DIMS));
+        testSplitsAndMerges(BoxMap.Factory.createQuadtreeHC(DIMS));
+    }
+
+    private void testSplitsAndMerges(BoxMap<Integer> tree) {
+        MetricsRecorder recorder = new MetricsRecorder();
+        tree.setMetrics(recorder);
+        Random R = new Random(4);
+        double[][] points = new double[2000][];
+        for (int i = 0; i < points.length; i++) {
+            points[i] = random(R);
+            tree.insert(points[i], points[i], i);
+        }
+        assertTrue(recorder.getCount(Counter.NODE_SPLITS) > 0);
+        assertEquals(0, recorder.getCount(Counter.NODE_MERGES));
+        for (int i = 0; i < points.length; i++) {
+            assertEquals(i, (int) tree.remove(points[i], points[i]));
+        }
+        assertTrue(recorder.getCount(Counter.NODE_MERGES) > 0);
+    }
+
+    @Test
+    public void testNodeVisits() {
+        // every node holds one entry
+        testNodeVisits(PointMap.Factory.createKdTree(DIMS));
+        testNodeVisits(PointMap.Factory.createKdTreeFlat(DIMS));
+        testNodeVisits(PointMap.Factory.createKdTreeFloat(DIMS));
+        testNodeVisits(PointMap.Factory.createCoverTree(DIMS));
+    }
+
+    private void testNodeVisits(PointMap<Integer> tree) {
+        MetricsRecorder recorder = new MetricsRecorder();
+        tree.setMetrics(recorder);
+        Random R = new Random(5);
+        int size = 1000;
+        for (int i = 0; i < size; i++) {
+            tree.insert(random(R), i);
+        }
+        assertEquals(0, recorder.getCount(Counter.NODE_VISITS));
+
+        assertEquals(size, count(tree.query(new double[]{0, 0, 0}, new double[]{1, 1, 1})));
+        assertEquals(size, recorder.getCount(Counter.NODE_VISITS));
+        assertEquals(size, recorder.getCount(Counter.ENTRIES_SCANNED));
+
+        recorder.reset();
+        assertEquals(10, count(tree.queryKnn(random(R), 10)));
+        long nVisits = recorder.getCount(Counter.NODE_VISITS);
+        assertTrue(nVisits >= 10);
+        assertTrue(nVisits < size);
+        assertTrue(recorder.getCount(Counter.ENTRIES_SCANNED) >= 10);
+        assertNotNull(tree.query1nn(random(R)));
+        assertTrue(recorder.getCount(Counter.NODE_VISITS) > nVisits);
+    }
+
+    @Test
+    public void testPercentiles() {
+        MetricsRecorder recorder = new MetricsRecorder();
+        for (int i = 1; i <= 1000; i++) {
+            recorder.record(Op.UPDATE, i);
+        }
+        assertEquals(1000, recorder.getCount(Op.UPDATE));
+        assertEquals(500.5, recorder.getMeanNanos(Op.UPDATE), 0.0);
+        assertEquals(1000, recorder.getMaxNanos(Op.UPDATE));
+        // buckets are powers of two
+        assertEquals(511, recorder.getPercentileNanos(Op.UPDATE, 50));
+        assertEquals(1000, recorder.getPercentileNanos(Op.UPDATE, 99));
+        assertEquals(1, recorder.getPercentileNanos(Op.UPDATE, 0));
+        assertThrows(IllegalArgumentException.class, () -> recorder.getPercentileNanos(Op.UPDATE, 101));
+    }
+
+    @Test
+    public void testMBean() throws Exception {
+        MetricsRecorder recorder = new MetricsRecorder();
+        BoxMultimap<Integer> tree = MeteredBoxMultimap.create(BoxMultimap.Factory.createRStarTree(DIMS), recorder);
+        ObjectName name = MetricsMBean.register("test-" + System.nanoTime(), recorder);
+        try {
+            Random R = new Random(2);
+            for (int i = 0; i < 1000; i++) {
+                double[] p = random(R);
+                tree.insert(p, p, i);
+            }
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            assertEquals(1000L, server.getAttribute(name, "INSERT_count"));
+            assertEquals(recorder.getCount(Counter.NODE_SPLITS), server.getAttribute(name, "NODE_SPLITS"));
+            assertTrue((Long) server.getAttribute(name, "INSERT_p99Nanos") > 0);
+            assertTrue((Double) server.getAttribute(name, "INSERT_meanNanos") > 0);
+            server.invoke(name, "reset", null, null);
+            assertEquals(0L, server.getAttribute(name, "INSERT_count"));
+        } finally {
+            MetricsMBean.unregister(name);
+        }
+    }
+
+    private static double[] random(Random R) {
+        double[] p = new double[DIMS];
+        Arrays.setAll(p, x -> R.nextDouble());
+        return p;
+    }
+
+    private static int count(java.util.Iterator<?> it) {
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        return n;
+    }
+}
@@ -21,6 +21,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.tinspin.index.Index;
+import org.tinspin.index.PointDistance;
 import org.tinspin.index.PointMap;
 
 import java.util.*;
@@ -49,6 +50,7 @@ public class PointMapTest extends AbstractWrapperTest {
         // l.add(new Object[]{IDX.ARRAY});
         l.add(new Object[]{IDX.COVER});
         l.add(new Object[]{IDX.KDTREE});
+        l.add(new Object[]{IDX.KDTREE_FLAT});
         l.add(new Object[]{IDX.PHTREE_MM});
         l.add(new Object[]{IDX.QUAD_HC});
         l.add(new Object[]{IDX.QUAD_HC2});
@@ -142,7 +144,7 @@ public class PointMapTest extends AbstractWrapperTest {
             assertArrayEquals("Expected " + e + " but got " + answer, answer.p, e.p, 0.0001);
         }
 
-        if (candidate != IDX.COVER && candidate != IDX.KDTREE && candidate != IDX.QUAD_PLAIN
+        if (candidate != IDX.KDTREE && candidate != IDX.QUAD_PLAIN
                 && candidate != IDX.QUAD_HC && candidate != IDX.QUAD_HC2) {
             int nExtent = 0;
             PointIterator<Entry> extent = tree.iterator();
@@ -153,32 +155,27 @@ public class PointMapTest extends AbstractWrapperTest {
             assertEquals(data.size(), nExtent);
         }
 
-        if (candidate != IDX.COVER) {
-            for (Entry e : data) {
-                // System.out.println("query: " + Arrays.toString(e.p));
-                PointIterator<Entry> iter = tree.query(e.p, e.p);
-                assertTrue("query() failed: " + e, iter.hasNext());
-            }
+        for (Entry e : data) {
+            // System.out.println("query: " + Arrays.toString(e.p));
+            PointIterator<Entry> iter = tree.query(e.p, e.p);
+            assertTrue("query() failed: " + e, iter.hasNext());
+        }
 
-            for (Entry e : data) {
-                assertTrue("contains(point) failed: " + e, tree.contains(e.p));
-                Entry e2 = tree.queryExact(e.p);
-                assertNotNull("queryExact(point) failed: " + e, e2);
-                assertArrayEquals(e.p, e2.p, 0.0000);
-                assertNotNull(tree.remove(e.p));
-
-                assertFalse("contains(point) failed: " + e, tree.contains(e.p));
-                assertNull("queryExact(point) failed: " + e, tree.queryExact(e.p));
-                assertNull(tree.remove(e.p));
-            }
+        for (Entry e : data) {
+            assertTrue("contains(point) failed: " + e, tree.contains(e.p));
+            Entry e2 = tree.queryExact(e.p);
+            assertNotNull("queryExact(point) failed: " + e, e2);
+            assertArrayEquals(e.p, e2.p, 0.0000);
+            assertNotNull(tree.remove(e.p));
+
+            assertFalse("contains(point) failed: " + e, tree.contains(e.p));
+            assertNull("queryExact(point) failed: " + e, tree.queryExact(e.p));
+            assertNull(tree.remove(e.p));
         }
     }
 
     @Test
     public void testUpdate() {
-        if (candidate == IDX.COVER) {
-            return;
-        }
         Random r = new Random(0);
         int dim = 3;
         ArrayList<Entry> data = createInt(0, 1000, 3);
@@ -214,9 +211,6 @@ public class PointMapTest extends AbstractWrapperTest {
 
     @Test
     public void testRemove() {
-        if (candidate == IDX.COVER) {
-            return;
-        }
         Random r = new Random(0);
         int dim = 3;
         ArrayList<Entry> data = createInt(0, 1000, 3);
@@ -261,9 +255,6 @@ public class PointMapTest extends AbstractWrapperTest {
 
     @Test
     public void testIssueKnnRemove() {
-        if (candidate == IDX.COVER) {
-            return;
-        }
         Random r = new Random(0);
         int dim = 3;
         int n = 1000;
@@ -320,6 +311,69 @@ public class PointMapTest extends AbstractWrapperTest {
         assertEquals(n - nDelete, kNNResult.size());
     }
 
+    @Test
+    public void testKnnBatch() {
+        Random r = new Random(0);
+        int dim = 3;
+        int k = 5;
+        ArrayList<Entry> data = createInt(0, 1000, dim);
+        PointMap<Entry> tree = createTree(data.size(), dim);
+        for (Entry e : data) {
+            tree.insert(e.p, e);
+        }
+
+        // not a multiple of the chunk size
+        double[][] centers = new double[200][];
+        for (int i = 0; i < centers.length; i++) {
+            centers[i] = data.get(r.nextInt(data.size())).p.clone();
+            centers[i][0] += 0.5;
+        }
+        for (boolean parallel : new boolean[]{false, true}) {
+            Entry[] values = new Entry[centers.length * k];
+            double[] distances = new double[centers.length * k];
+            tree.queryKnnBatch(centers, k, values, distances, parallel);
+            for (int i = 0; i < centers.length; i++) {
+                PointIteratorKnn<Entry> it = tree.queryKnn(centers[i], k);
+                for (int j = 0; j < k; j++) {
+                    int pos = i * k + j;
+                    assertTrue(it.hasNext());
+                    assertEquals(it.next().dist(), distances[pos], 0.0);
+                    assertEquals(PointDistance.L2.dist(centers[i], values[pos].p), distances[pos], 0.0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testKnnBatchFewEntries() {
+        int dim = 3;
+        int k = 5;
+        ArrayList<Entry> data = createInt(0, 3, dim);
+        PointMap<Entry> tree = createTree(data.size(), dim);
+        for (Entry e : data) {
+            tree.insert(e.p, e);
+        }
+        double[][] centers = {data.get(0).p, data.get(2).p};
+        Entry[] values = new Entry[centers.length * k];
+        double[] distances = new double[centers.length * k];
+        tree.queryKnnBatch(centers, k, values, distances, false);
+        for (int i = 0; i < centers.length * k; i++) {
+            if (i % k < data.size()) {
+                assertNotNull(values[i]);
+                assertTrue(distances[i] < Double.POSITIVE_INFINITY);
+            } else {
+                assertNull(values[i]);
+                assertEquals(Double.POSITIVE_INFINITY, distances[i], 0.0);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testKnnBatchArraySize() {
+        PointMap<Entry> tree = createTree(10, 3);
+        tree.queryKnnBatch(new double[10][3], 5, new Entry[49], new double[50], false);
+    }
+
     private <T> PointMap<T> createTree(int size, int dims) {
         switch (candidate) {
             case ARRAY:
@@ -327,6 +381,8 @@ public class PointMapTest extends AbstractWrapperTest {
             //case CRITBIT: return new PointArray<>(dims, size);
             case KDTREE:
                 return PointMap.Factory.createKdTree(dims);
+            case KDTREE_FLAT:
+                return PointMap.Factory.createKdTreeFlat(dims);
             case PHTREE_MM:
                 return PointMap.Factory.createPhTree(dims);
             case QUAD_HC:
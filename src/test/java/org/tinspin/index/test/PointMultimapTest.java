@@ -21,6 +21,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.tinspin.index.Index;
+import org.tinspin.index.PointDistance;
 import org.tinspin.index.PointMultimap;
 import org.tinspin.index.test.util.TestInstances;
 
@@ -52,6 +53,7 @@ public class PointMultimapTest extends AbstractWrapperTest {
         // l.add(new Object[]{IDX.ARRAY});
         // l.add(new Object[]{IDX.COVER});
         l.add(new Object[]{IDX.KDTREE});
+        l.add(new Object[]{IDX.KDTREE_FLAT});
         l.add(new Object[]{IDX.PHTREE_MM});
         l.add(new Object[]{IDX.QUAD_HC});
         l.add(new Object[]{IDX.QUAD_HC2});
@@ -218,6 +220,33 @@ public class PointMultimapTest extends AbstractWrapperTest {
         }
     }
 
+    @Test
+    public void testWrongValue() {
+        int dim = 3;
+        Random r = new Random(0);
+        PointMultimap<Integer> tree = createTree(1000, dim);
+        List<double[]> points = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            double[] p = new double[dim];
+            Arrays.setAll(p, x -> r.nextDouble());
+            points.add(p);
+            tree.insert(p, i);
+        }
+        double[] pNew = new double[dim];
+        for (int i = 0; i < points.size(); i++) {
+            double[] p = points.get(i);
+            assertFalse(tree.contains(p, -1));
+            assertFalse(tree.update(p, pNew, -1));
+            assertFalse(tree.remove(p, -1));
+            // missing key
+            double[] p2 = p.clone();
+            p2[0] += 0.5;
+            assertFalse(tree.update(p2, pNew, i));
+            assertTrue(tree.contains(p, i));
+        }
+        assertEquals(points.size(), tree.size());
+    }
+
     private boolean containsExact(PointMultimap<Entry> tree, double[] p, int id) {
         PointIterator<Entry> it = tree.queryExactPoint(p);
         while (it.hasNext()) {
@@ -310,6 +339,65 @@ public class PointMultimapTest extends AbstractWrapperTest {
         assertEquals(0, tree.size());
     }
 
+    @Test
+    public void testRemoveAll() {
+        Random r = new Random(0);
+        int dim = 3;
+        ArrayList<Entry> data = createInt(0, 10_000, dim);
+        PointMultimap<Entry> tree = createTree(data.size(), dim);
+        for (Entry e : data) {
+            tree.insert(e.p, e);
+        }
+
+        Set<Entry> remaining = new HashSet<>(data);
+        for (int i = 0; i < 20; i++) {
+            double[] min = new double[dim];
+            double[] max = new double[dim];
+            for (int d = 0; d < dim; d++) {
+                min[d] = r.nextInt(BOUND);
+                max[d] = min[d] + r.nextInt(BOUND / 2);
+            }
+            int mod = i % 2 == 0 ? 1 : 3;
+            Set<Entry> expected = new HashSet<>();
+            for (Entry e : remaining) {
+                if (isInside(e.p, min, max) && e.id % mod == 0) {
+                    expected.add(e);
+                }
+            }
+            assertEquals(expected.size(), tree.removeAll(min, max, e -> e.value().id % mod == 0));
+            remaining.removeAll(expected);
+            assertEquals(remaining.size(), tree.size());
+            for (Entry e : expected) {
+                assertFalse(containsExact(tree, e.p, e.id));
+            }
+        }
+        for (Entry e : remaining) {
+            assertTrue(containsExact(tree, e.p, e.id));
+        }
+        double[] min = new double[dim];
+        double[] max = new double[dim];
+        Arrays.fill(max, BOUND);
+        Set<Entry> all = new HashSet<>();
+        PointIterator<Entry> it = tree.query(min, max);
+        while (it.hasNext()) {
+            all.add(it.next().value());
+        }
+        assertEquals(remaining, all);
+
+        assertEquals(remaining.size(), tree.removeAll(min, max, e -> true));
+        assertEquals(0, tree.size());
+        assertFalse(tree.query(min, max).hasNext());
+    }
+
+    private static boolean isInside(double[] p, double[] min, double[] max) {
+        for (int d = 0; d < p.length; d++) {
+            if (p[d] < min[d] || p[d] > max[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     @Test
     public void testIssueKnnRemove() {
         if (candidate == IDX.COVER) {
@@ -370,6 +458,43 @@ public class PointMultimapTest extends AbstractWrapperTest {
         assertEquals(n - nDelete, kNNResult.size());
     }
 
+    @Test
+    public void testKnnBatch() {
+        Random r = new Random(0);
+        int dim = 3;
+        int k = 5;
+        ArrayList<Entry> data = createInt(0, 1000, dim);
+        PointMultimap<Entry> tree = createTree(data.size(), dim);
+        for (Entry e : data) {
+            tree.insert(e.p, e);
+            // duplicate
+            Entry dupl = new Entry(dim, e.id + data.size());
+            System.arraycopy(e.p, 0, dupl.p, 0, dim);
+            tree.insert(dupl.p, dupl);
+        }
+
+        // not a multiple of the chunk size
+        double[][] centers = new double[200][];
+        for (int i = 0; i < centers.length; i++) {
+            centers[i] = data.get(r.nextInt(data.size())).p.clone();
+            centers[i][0] += 0.5;
+        }
+        for (boolean parallel : new boolean[]{false, true}) {
+            Entry[] values = new Entry[centers.length * k];
+            double[] distances = new double[centers.length * k];
+            tree.queryKnnBatch(centers, k, values, distances, parallel);
+            for (int i = 0; i < centers.length; i++) {
+                PointIteratorKnn<Entry> it = tree.queryKnn(centers[i], k);
+                for (int j = 0; j < k; j++) {
+                    int pos = i * k + j;
+                    assertTrue(it.hasNext());
+                    assertEquals(it.next().dist(), distances[pos], 0.0);
+                    assertEquals(PointDistance.L2.dist(centers[i], values[pos].p), distances[pos], 0.0);
+                }
+            }
+        }
+    }
+
     private <T> PointMultimap<T> createTree(int size, int dims) {
         switch (candidate) {
             case ARRAY:
@@ -377,6 +502,8 @@ public class PointMultimapTest extends AbstractWrapperTest {
 //            //case CRITBIT: return new PointArray<>(dims, size);
             case KDTREE:
                 return PointMultimap.Factory.createKdTree(dims);
+            case KDTREE_FLAT:
+                return PointMultimap.Factory.createKdTreeFlat(dims);
             case PHTREE_MM:
                 return PointMultimap.Factory.createPhTree(dims);
             case QUAD_HC:
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.test;
+
+import org.junit.Test;
+import org.tinspin.index.PointDistance;
+import org.tinspin.index.PointMultimap;
+import org.tinspin.index.qthypercube.QuadTreeKD;
+import org.tinspin.index.qthypercube2.QuadTreeKD2;
+import org.tinspin.index.qtplain.QuadTreeKD0;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.*;
+import static org.tinspin.index.Index.*;
+
+public class QuadtreeInsertAllTest {
+
+    private static final int DIMS = 3;
+    private static final int N_DUP = 3;
+
+    @Test
+    public void testQuadtreeHC() {
+        QuadTreeKD<Integer> tree = QuadTreeKD.create(DIMS);
+        testBatches(tree, tree::insertAll);
+        QuadTreeKD<Integer> tree2 = QuadTreeKD.create(DIMS);
+        testIdentical(tree2, tree2::insertAll);
+    }
+
+    @Test
+    public void testQuadtreeHC2() {
+        QuadTreeKD2<Integer> tree = QuadTreeKD2.create(DIMS);
+        testBatches(tree, tree::insertAll);
+        QuadTreeKD2<Integer> tree2 = QuadTreeKD2.create(DIMS);
+        testIdentical(tree2, tree2::insertAll);
+    }
+
+    @Test
+    public void testUpdateDoesNotModifyEntries() {
+        PointEntry<Integer>[] batch = createBatch(new Random(3), 0, 1_000, 0, 1);
+        QuadTreeKD<Integer> hc = QuadTreeKD.create(DIMS);
+        QuadTreeKD2<Integer> hc2 = QuadTreeKD2.create(DIMS);
+        QuadTreeKD0<Integer> plain = QuadTreeKD0.create(DIMS);
+        hc.insertAll(batch);
+        hc2.insertAll(batch);
+        plain.insertAll(batch);
+        double[] p0 = batch[0].point();
+        double[] moved = {p0[0] + 1e-6, p0[1], p0[2]};
+        for (PointMultimap<Integer> tree : Arrays.<PointMultimap<Integer>>asList(hc, hc2, plain)) {
+            // fails if a previous tree has updated the shared entry
+            assertTrue(tree.update(p0, moved, 0));
+            assertSame(p0, batch[0].point());
+            assertTrue(tree.contains(moved, 0));
+        }
+    }
+
+    @Test
+    public void testQuadtreeHC2Snapshot() {
+        QuadTreeKD2<Integer> tree = QuadTreeKD2.create(DIMS);
+        List<PointEntry<Integer>> all = new ArrayList<>();
+        insertAndCheck(tree, tree::insertAll, createBatch(new Random(0), 0, 10_000, 0, 1), all);
+        QuadTreeKD2<Integer> snapshot = tree.snapshot();
+        List<PointEntry<Integer>> allSnapshot = new ArrayList<>(all);
+        insertAndCheck(tree, tree::insertAll, createBatch(new Random(1), 10_000, 10_000, -1, 2), all);
+        check(snapshot, allSnapshot);
+        assertThrows(UnsupportedOperationException.class, () -> snapshot.insertAll(createBatch(new Random(2), 0, 1, 0, 1)));
+    }
+
+    @Test
+    public void testQuadtreePlain() {
+        QuadTreeKD0<Integer> tree = QuadTreeKD0.create(DIMS);
+        testBatches(tree, tree::insertAll);
+        QuadTreeKD0<Integer> tree2 = QuadTreeKD0.create(DIMS);
+        testIdentical(tree2, tree2::insertAll);
+    }
+
+    private static void testBatches(PointMultimap<Integer> tree, Consumer<PointEntry<Integer>[]> insertAll) {
+        Random R = new Random(0);
+        List<PointEntry<Integer>> all = new ArrayList<>();
+        insertAll.accept(createBatch(R, 0, 0, 0, 1));
+        assertEquals(0, tree.size());
+        // empty tree
+        insertAndCheck(tree, insertAll, createBatch(R, 0, 10_000, 0, 1), all);
+        // inside the current range
+        insertAndCheck(tree, insertAll, createBatch(R, 10_000, 10_000, 0.2, 0.5), all);
+        // requires growing the root
+        insertAndCheck(tree, insertAll, createBatch(R, 20_000, 10_000, -5, 10), all);
+        // single entry
+        insertAndCheck(tree, insertAll, createBatch(R, 30_000, 1, 100, 1), all);
+        // mixed with regular inserts
+        for (int i = 40_000; i < 41_000; i++) {
+            double[] p = {R.nextDouble(), R.nextDouble(), R.nextDouble()};
+            tree.insert(p, i);
+            all.add(new PointEntry<>(p, i));
+        }
+        insertAndCheck(tree, insertAll, createBatch(R, 50_000, 10_000, 0, 1), all);
+    }
+
+    private static void testIdentical(PointMultimap<Integer> tree, Consumer<PointEntry<Integer>[]> insertAll) {
+        List<PointEntry<Integer>> all = new ArrayList<>();
+        @SuppressWarnings("unchecked")
+        PointEntry<Integer>[] batch = new PointEntry[100];
+        for (int i = 0; i < batch.length; i++) {
+            batch[i] = new PointEntry<>(new double[]{1, 2, 3}, i);
+        }
+        insertAndCheck(tree, insertAll, batch, all);
+        insertAndCheck(tree, insertAll, createBatch(new Random(0), 100, 1000, 0, 5), all);
+    }
+
+    /**
+     * Create a batch of 'n' entries in [offset, offset + range), with N_DUP entries per point.
+     */
+    private static PointEntry<Integer>[] createBatch(Random R, int value0, int n, double offset, double range) {
+        @SuppressWarnings("unchecked")
+        PointEntry<Integer>[] batch = new PointEntry[n];
+        for (int i = 0; i < n; i++) {
+            double[] p = new double[DIMS];
+            if (i % N_DUP == 0) {
+                Arrays.setAll(p, d -> offset + R.nextDouble() * range);
+            } else {
+                p = batch[i - 1].point().clone();
+            }
+            batch[i] = new PointEntry<>(p, value0 + i);
+        }
+        return batch;
+    }
+
+    private static void insertAndCheck(PointMultimap<Integer> tree, Consumer<PointEntry<Integer>[]> insertAll,
+                                       PointEntry<Integer>[] batch, List<PointEntry<Integer>> all) {
+        PointEntry<Integer>[] copy = batch.clone();
+        insertAll.accept(batch);
+        assertArrayEquals(copy, batch);
+        all.addAll(Arrays.asList(batch));
+        check(tree, all);
+    }
+
+    private static void check(PointMultimap<Integer> tree, List<PointEntry<Integer>> all) {
+        assertEquals(all.size(), tree.size());
+        for (PointEntry<Integer> e : all) {
+            assertTrue(tree.contains(e.point(), e.value()));
+        }
+
+        Random R = new Random(42);
+        for (int i = 0; i < 20; i++) {
+            double[] min = {R.nextDouble() - 0.2, R.nextDouble() - 0.2, R.nextDouble() - 0.2};
+            double[] max = {min[0] + 0.3, min[1] + 0.3, min[2] + 0.3};
+            long expected = all.stream().filter(e -> isInside(e.point(), min, max)).count();
+            int n = 0;
+            PointIterator<Integer> it = tree.query(min, max);
+            while (it.hasNext()) {
+                assertTrue(isInside(it.next().point(), min, max));
+                n++;
+            }
+            assertEquals(expected, n);
+
+            double[] center = min;
+            double[] dists = all.stream().mapToDouble(e -> PointDistance.L2.dist(center, e.point()))
+                    .sorted().limit(10).toArray();
+            PointIteratorKnn<Integer> itKnn = tree.queryKnn(center, 10);
+            for (double d : dists) {
+                assertEquals(d, itKnn.next().dist(), 0.0);
+            }
+        }
+    }
+
+    private static boolean isInside(double[] p, double[] min, double[] max) {
+        for (int d = 0; d < p.length; d++) {
+            if (p[d] < min[d] || p[d] > max[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke. All rights reserved.
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.test;
+
+import org.junit.Test;
+import org.tinspin.index.*;
+import org.tinspin.index.covertree.CoverTree;
+import org.tinspin.index.kdtree.KDTree;
+import org.tinspin.index.qthypercube.QuadTreeKD;
+import org.tinspin.index.qthypercube2.QuadTreeKD2;
+import org.tinspin.index.qtplain.QuadTreeKD0;
+import org.tinspin.index.qtplain.QuadTreeRKD0;
+import org.tinspin.index.rtree.RTree;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.IntFunction;
+
+import static org.junit.Assert.*;
+import static org.tinspin.index.Index.*;
+
+/**
+ * Save indexes to a stream, load them and compare the result with the original.
+ */
+public class SaveLoadTest {
+
+    private static final int DIMS = 3;
+    private static final int N = 5_000;
+    private static final double[] ALL_MIN = {-1, -1, -1};
+    private static final double[] ALL_MAX = {110, 110, 110};
+
+    private interface Saver<I> {
+        void save(I index, OutputStream out) throws IOException;
+    }
+
+    private interface Loader<I> {
+        I load(InputStream in) throws IOException;
+    }
+
+    private static class PointCase<I extends PointMap<Integer>> {
+        final IntFunction<I> factory;
+        final Saver<I> saver;
+        final Loader<I> loader;
+
+        PointCase(IntFunction<I> factory, Saver<I> saver, Loader<I> loader) {
+            this.factory = factory;
+            this.saver = saver;
+            this.loader = loader;
+        }
+    }
+
+    private static Map<String, PointCase<?>> pointCases() {
+        Map<String, PointCase<?>> cases = new LinkedHashMap<>();
+        cases.put("KDTree", new PointCase<KDTree<Integer>>(KDTree::create,
+                (t, out) -> t.save(out, ValueCodec.INTEGER), in -> KDTree.load(in, ValueCodec.INTEGER)));
+        cases.put("QuadTreeKD", new PointCase<QuadTreeKD<Integer>>(QuadTreeKD::create,
+                (t, out) -> t.save(out, ValueCodec.INTEGER), in -> QuadTreeKD.load(in, ValueCodec.INTEGER)));
+        cases.put("QuadTreeKD2", new PointCase<QuadTreeKD2<Integer>>(QuadTreeKD2::create,
+                (t, out) -> t.save(out, ValueCodec.INTEGER), in -> QuadTreeKD2.load(in, ValueCodec.INTEGER)));
+        cases.put("QuadTreeKD0", new PointCase<QuadTreeKD0<Integer>>(QuadTreeKD0::create,
+                (t, out) -> t.save(out, ValueCodec.INTEGER), in -> QuadTreeKD0.load(in, ValueCodec.INTEGER)));
+        cases.put("CoverTree", new PointCase<CoverTree<Integer>>(CoverTree::create,
+                (t, out) -> t.save(out, ValueCodec.INTEGER), in -> CoverTree.load(in, ValueCodec.INTEGER)));
+        return cases;
+    }
+
+    private static List<double[]> createPoints(Random R, int n) {
+        List<double[]> points = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            double[] p = new double[DIMS];
+            Arrays.setAll(p, x -> R.nextDouble() * 100);
+            points.add(p);
+        }
+        return points;
+    }
+
+    private static <I> I roundTrip(I index, Saver<I> saver, Loader<I> loader) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        saver.save(index, out);
+        // trailing data is not consumed
+        out.write(42);
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        I loaded = loader.load(in);
+        assertEquals(42, in.read());
+        return loaded;
+    }
+
+    @Test
+    public void testPointIndexes() throws IOException {
+        for (Map.Entry<String, PointCase<?>> c : pointCases().entrySet()) {
+            testPointIndex(c.getKey(), c.getValue());
+        }
+    }
+
+    private static <I extends PointMap<Integer>> void testPointIndex(String name, PointCase<I> c)
+            throws IOException {
+        Random R = new Random(0);
+        List<double[]> points = createPoints(R, N);
+        I tree = c.factory.apply(DIMS);
+        for (int i = 0; i < N; i++) {
+            tree.insert(points.get(i), i);
+        }
+        // removals may leave the tree in a state that cannot be reproduced by insertion
+        for (int i = 0; i < N; i += 5) {
+            assertEquals(name, i, (int) tree.remove(points.get(i)));
+        }
+
+        I loaded = roundTrip(tree, c.saver, c.loader);
+        assertEquals(name, tree.size(), loaded.size());
+        assertEquals(name, tree.getNodeCount(), loaded.getNodeCount());
+        assertEquals(name, tree.getDepth(), loaded.getDepth());
+        assertEquals(name, pointValues(all(tree)), pointValues(all(loaded)));
+        for (int i = 0; i < 20; i++) {
+            double[] min = new double[DIMS];
+            double[] max = new double[DIMS];
+            Arrays.setAll(min, x -> R.nextDouble() * 80);
+            Arrays.setAll(max, x -> min[x] + 20);
+            assertEquals(name, pointValues(tree.query(min, max)), pointValues(loaded.query(min, max)));
+            double[] center = new double[DIMS];
+            Arrays.setAll(center, x -> R.nextDouble() * 100);
+            PointIteratorKnn<Integer> it1 = tree.queryKnn(center, 10);
+            PointIteratorKnn<Integer> it2 = loaded.queryKnn(center, 10);
+            while (it1.hasNext()) {
+                assertEquals(name, it1.next().dist(), it2.next().dist(), 0.0);
+            }
+            assertFalse(name, it2.hasNext());
+        }
+
+        // the loaded tree can be modified
+        for (int i = 0; i < N; i++) {
+            if (i % 5 == 0) {
+                loaded.insert(points.get(i), i);
+            } else if (i % 5 == 1) {
+                assertEquals(name, i, (int) loaded.remove(points.get(i)));
+            }
+        }
+        assertEquals(name, N - N / 5, loaded.size());
+        for (int i = 0; i < N; i++) {
+            assertEquals(name, i % 5 != 1, loaded.contains(points.get(i)));
+        }
+
+        // empty tree
+        I empty = roundTrip(c.factory.apply(DIMS), c.saver, c.loader);
+        assertEquals(name, 0, empty.size());
+        assertFalse(name, all(empty).hasNext());
+        empty.insert(points.get(0), 0);
+        assertEquals(name, 0, (int) empty.queryExact(points.get(0)));
+    }
+
+    @Test
+    public void testBoxIndexes() throws IOException {
+        Map<String, IntFunction<BoxMap<Integer>>> factories = new LinkedHashMap<>();
+        factories.put("RTree", RTree::createRStar);
+        factories.put("QuadTreeRKD0", QuadTreeRKD0::create);
+        Saver<BoxMap<Integer>> saver = (t, out) -> {
+            if (t instanceof RTree) {
+                ((RTree<Integer>) t).save(out, ValueCodec.INTEGER);
+            } else {
+                ((QuadTreeRKD0<Integer>) t).save(out, ValueCodec.INTEGER);
+            }
+        };
+        for (Map.Entry<String, IntFunction<BoxMap<Integer>>> f : factories.entrySet()) {
+            String name = f.getKey();
+            Loader<BoxMap<Integer>> loader = name.equals("RTree")
+                    ? in -> RTree.load(in, ValueCodec.INTEGER)
+                    : in -> QuadTreeRKD0.load(in, ValueCodec.INTEGER);
+            Random R = new Random(1);
+            List<double[]> boxes = createPoints(R, N);
+            BoxMap<Integer> tree = f.getValue().apply(DIMS);
+            for (int i = 0; i < N; i++) {
+                double[] min = boxes.get(i);
+                // every second entry is a point
+                tree.insert(min, i % 2 == 0 ? min : max(min), i);
+            }
+            for (int i = 0; i < N; i += 5) {
+                double[] min = boxes.get(i);
+                assertEquals(name, i, (int) tree.remove(min, i % 2 == 0 ? min : max(min)));
+            }
+
+            BoxMap<Integer> loaded = roundTrip(tree, saver, loader);
+            assertEquals(name, tree.size(), loaded.size());
+            assertEquals(name, tree.getNodeCount(), loaded.getNodeCount());
+            assertEquals(name, tree.getDepth(), loaded.getDepth());
+            assertEquals(name, boxValues(tree.queryIntersect(ALL_MIN, ALL_MAX)),
+                    boxValues(loaded.queryIntersect(ALL_MIN, ALL_MAX)));
+            for (int i = 0; i < 20; i++) {
+                double[] min = new double[DIMS];
+                double[] max = new double[DIMS];
+                Arrays.setAll(min, x -> R.nextDouble() * 80);
+                Arrays.setAll(max, x -> min[x] + 20);
+                assertEquals(name, boxValues(tree.queryIntersect(min, max)),
+                        boxValues(loaded.queryIntersect(min, max)));
+            }
+            for (int i = 1; i < N; i += 5) {
+                double[] min = boxes.get(i);
+                assertEquals(name, i, (int) loaded.remove(min, i % 2 == 0 ? min : max(min)));
+                loaded.insert(min, min, -i);
+            }
+            assertEquals(name, tree.size(), loaded.size());
+        }
+    }
+
+    @Test
+    public void testNullValuesAndCodecs() throws IOException {
+        KDTree<String> tree = KDTree.create(2);
+        tree.insert(new double[]{1, 2}, "a");
+        tree.insert(new double[]{3, 4}, null);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        tree.save(out, ValueCodec.STRING.nullable());
+        KDTree<String> loaded = KDTree.load(new ByteArrayInputStream(out.toByteArray()),
+                ValueCodec.STRING.nullable());
+        assertEquals("a", loaded.queryExact(new double[]{1, 2}));
+        assertTrue(loaded.contains(new double[]{3, 4}));
+        assertNull(loaded.queryExact(new double[]{3, 4}));
+
+        assertThrows(NullPointerException.class, () -> tree.save(new ByteArrayOutputStream(), ValueCodec.STRING));
+    }
+
+    @Test
+    public void testCustomDistanceAndSnapshot() throws IOException {
+        PointDistance distFn = (p1, p2) -> PointDistance.l2(p1, p2) * 2;
+        CoverTree<Integer> ct = CoverTree.create(DIMS, 1.3, distFn);
+        List<double[]> points = createPoints(new Random(2), 1_000);
+        for (int i = 0; i < points.size(); i++) {
+            ct.insert(points.get(i), i);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ct.save(out, ValueCodec.INTEGER);
+        byte[] bytes = out.toByteArray();
+        assertThrows(IOException.class, () -> CoverTree.load(new ByteArrayInputStream(bytes), ValueCodec.INTEGER));
+        CoverTree<Integer> loaded = CoverTree.load(new ByteArrayInputStream(bytes), ValueCodec.INTEGER, distFn);
+        double[] center = {50, 50, 50};
+        assertEquals(ct.query1nn(center).dist(), loaded.query1nn(center).dist(), 0.0);
+
+        // snapshots are loaded as writable trees
+        RTree<Integer> rt = RTree.createRStar(DIMS);
+        for (int i = 0; i < points.size(); i++) {
+            rt.insert(points.get(i), i);
+        }
+        out.reset();
+        rt.snapshot().save(out, ValueCodec.INTEGER);
+        RTree<Integer> rtLoaded = RTree.load(new ByteArrayInputStream(out.toByteArray()), ValueCodec.INTEGER);
+        rtLoaded.insert(center, center, -1);
+        assertEquals(points.size() + 1, rtLoaded.size());
+    }
+
+    @Test
+    public void testInvalidStream() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        KDTree.<Integer>create(DIMS).save(out, ValueCodec.INTEGER);
+        byte[] bytes = out.toByteArray();
+        // wrong index type
+        assertThrows(IOException.class, () -> RTree.load(new ByteArrayInputStream(bytes), ValueCodec.INTEGER));
+        // not an index
+        assertThrows(IOException.class,
+                () -> KDTree.load(new ByteArrayInputStream(new byte[100]), ValueCodec.INTEGER));
+        // truncated
+        KDTree<Integer> tree = KDTree.create(DIMS);
+        tree.insert(new double[]{1, 2, 3}, 1);
+        out.reset();
+        tree.save(out, ValueCodec.INTEGER);
+        byte[] truncated = Arrays.copyOf(out.toByteArray(), out.size() - 2);
+        assertThrows(EOFException.class,
+                () -> KDTree.load(new ByteArrayInputStream(truncated), ValueCodec.INTEGER));
+    }
+
+    private static PointIterator<Integer> all(PointMap<Integer> tree) {
+        // KDTree does not support iterator()
+        return tree.query(ALL_MIN, ALL_MAX);
+    }
+
+    private static double[] max(double[] min) {
+        double[] max = min.clone();
+        for (int d = 0; d < DIMS; d++) {
+            max[d] += (min[d] % 1) * 5;
+        }
+        return max;
+    }
+
+    private static Set<Integer> pointValues(Iterator<? extends PointEntry<Integer>> it) {
+        Set<Integer> values = new HashSet<>();
+        while (it.hasNext()) {
+            assertTrue(values.add(it.next().value()));
+        }
+        return values;
+    }
+
+    private static Set<Integer> boxValues(Iterator<? extends BoxEntry<Integer>> it) {
+        Set<Integer> values = new HashSet<>();
+        while (it.hasNext()) {
+            assertTrue(values.add(it.next().value()));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.test;
+
+import org.junit.Test;
+import org.tinspin.index.PointDistance;
+import org.tinspin.index.qthypercube2.QuadTreeKD2;
+import org.tinspin.index.rtree.RTree;
+import org.tinspin.index.rtree.RTreeEntry;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+import static org.tinspin.index.Index.*;
+
+public class SnapshotTest {
+
+    private static final int DIMS = 3;
+    private static final int N = 10_000;
+    private static final double[] MIN = {-1, -1, -1};
+    private static final double[] MAX = {2, 2, 2};
+
+    /** Expected content: value -> point */
+    private static Map<Integer, double[]> createPoints(Random R, int n) {
+        Map<Integer, double[]> map = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            map.put(i, new double[]{R.nextDouble(), R.nextDouble(), R.nextDouble()});
+        }
+        return map;
+    }
+
+    private static double[] randomPoint(Random R) {
+        return new double[]{R.nextDouble(), R.nextDouble(), R.nextDouble()};
+    }
+
+    @Test
+    public void testQuadtree() {
+        Random R = new Random(0);
+        Map<Integer, double[]> expected = createPoints(R, N);
+        QuadTreeKD2<Integer> tree = QuadTreeKD2.create(DIMS);
+        expected.forEach((v, p) -> tree.insert(p, v));
+
+        List<QuadTreeKD2<Integer>> snapshots = new ArrayList<>();
+        List<Map<Integer, double[]>> snapshotContent = new ArrayList<>();
+        for (int round = 0; round < 5; round++) {
+            snapshots.add(tree.snapshot());
+            snapshotContent.add(new HashMap<>(expected));
+            modifyQuadtree(tree, expected, R, N / 2);
+            checkQuadtree(tree, expected);
+            for (int i = 0; i < snapshots.size(); i++) {
+                checkQuadtree(snapshots.get(i), snapshotContent.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testQuadtreeRemoveAll() {
+        Random R = new Random(0);
+        Map<Integer, double[]> expected = createPoints(R, N);
+        QuadTreeKD2<Integer> tree = QuadTreeKD2.create(DIMS);
+        expected.forEach((v, p) -> tree.insert(p, v));
+
+        List<QuadTreeKD2<Integer>> snapshots = new ArrayList<>();
+        List<Map<Integer, double[]>> snapshotContent = new ArrayList<>();
+        for (int round = 0; round < 5; round++) {
+            snapshots.add(tree.snapshot());
+            snapshotContent.add(new HashMap<>(expected));
+            double[] min = randomPoint(R);
+            double[] max = windowMax(min);
+            int n = removeAll(expected, min, max);
+            assertEquals(n, tree.removeAll(min, max, e -> e.value() % 2 == 0));
+            checkQuadtree(tree, expected);
+            modifyQuadtree(tree, expected, R, N / 10);
+            checkQuadtree(tree, expected);
+            for (int i = 0; i < snapshots.size(); i++) {
+                checkQuadtree(snapshots.get(i), snapshotContent.get(i));
+            }
+        }
+    }
+
+    private static double[] windowMax(double[] min) {
+        return new double[]{min[0] + 0.4, min[1] + 0.4, min[2] + 0.4};
+    }
+
+    /**
+     * Remove all entries with even values from 'expected' that lie inside the window.
+     */
+    private static int removeAll(Map<Integer, double[]> expected, double[] min, double[] max) {
+        int n = expected.size();
+        expected.entrySet().removeIf(e -> e.getKey() % 2 == 0 && isInside(e.getValue(), min, max));
+        return n - expected.size();
+    }
+
+    private static boolean isInside(double[] p, double[] min, double[] max) {
+        for (int d = 0; d < p.length; d++) {
+            if (p[d] < min[d] || p[d] > max[d]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void modifyQuadtree(QuadTreeKD2<Integer> tree, Map<Integer, double[]> expected, Random R, int n) {
+        int nextValue = expected.keySet().stream().max(Integer::compare).orElse(0) + 1;
+        List<Integer> values = new ArrayList<>(expected.keySet());
+        for (int i = 0; i < n; i++) {
+            int action = R.nextInt(3);
+            if (action == 0) {
+                double[] p = randomPoint(R);
+                tree.insert(p, nextValue);
+                expected.put(nextValue, p);
+                values.add(nextValue++);
+            } else {
+                int pos = R.nextInt(values.size());
+                int v = values.get(pos);
+                double[] p = expected.get(v);
+                if (action == 1) {
+                    assertTrue(tree.remove(p, v));
+                    expected.remove(v);
+                    values.set(pos, values.get(values.size() - 1));
+                    values.remove(values.size() - 1);
+                } else {
+                    double[] p2 = randomPoint(R);
+                    assertTrue(tree.update(p, p2, v));
+                    expected.put(v, p2);
+                }
+            }
+        }
+    }
+
+    private static void checkQuadtree(QuadTreeKD2<Integer> tree, Map<Integer, double[]> expected) {
+        assertEquals(expected.size(), tree.size());
+        Map<Integer, double[]> found = new HashMap<>();
+        PointIterator<Integer> it = tree.query(MIN, MAX);
+        while (it.hasNext()) {
+            PointEntry<Integer> e = it.next();
+            assertNull(found.put(e.value(), e.point()));
+        }
+        assertEquals(expected.size(), found.size());
+        expected.forEach((v, p) -> {
+            assertArrayEquals(p, found.get(v), 0.0);
+            assertTrue(tree.contains(p, v));
+        });
+        double[] center = {0.5, 0.5, 0.5};
+        double[] dists = expected.values().stream()
+                .mapToDouble(p -> PointDistance.L2.dist(center, p)).sorted().limit(10).toArray();
+        PointIteratorKnn<Integer> itKnn = tree.queryKnn(center, 10);
+        for (double d : dists) {
+            assertEquals(d, itKnn.next().dist(), 0.0);
+        }
+        assertFalse(itKnn.hasNext());
+        assertEquals(expected.size(), tree.getStats().getEntryCount());
+    }
+
+    @Test
+    public void testRTree() {
+        Random R = new Random(0);
+        Map<Integer, double[]> expected = createPoints(R, N);
+        RTree<Integer> tree = RTree.createRStar(DIMS);
+        expected.forEach((v, p) -> tree.insert(p, max(p), v));
+
+        List<RTree<Integer>> snapshots = new ArrayList<>();
+        List<Map<Integer, double[]>> snapshotContent = new ArrayList<>();
+        for (int round = 0; round < 5; round++) {
+            snapshots.add(tree.snapshot());
+            snapshotContent.add(new HashMap<>(expected));
+            modifyRTree(tree, expected, R, N / 2);
+            checkRTree(tree, expected);
+            for (int i = 0; i < snapshots.size(); i++) {
+                checkRTree(snapshots.get(i), snapshotContent.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testRTreeBulkLoaded() {
+        Random R = new Random(0);
+        Map<Integer, double[]> expected = createPoints(R, N);
+        RTree<Integer> tree = RTree.createRStar(DIMS);
+        @SuppressWarnings("unchecked")
+        RTreeEntry<Integer>[] entries = new RTreeEntry[N];
+        expected.forEach((v, p) -> entries[v] = RTreeEntry.createBox(p, max(p), v));
+        tree.load(entries);
+
+        RTree<Integer> snapshot = tree.snapshot();
+        Map<Integer, double[]> snapshotContent = new HashMap<>(expected);
+        modifyRTree(tree, expected, R, N);
+        checkRTree(tree, expected);
+        checkRTree(snapshot, snapshotContent);
+    }
+
+    @Test
+    public void testRTreeRemoveAll() {
+        Random R = new Random(0);
+        Map<Integer, double[]> expected = createPoints(R, N);
+        RTree<Integer> tree = RTree.createRStar(DIMS);
+        expected.forEach((v, p) -> tree.insert(p, max(p), v));
+
+        List<RTree<Integer>> snapshots = new ArrayList<>();
+        List<Map<Integer, double[]>> snapshotContent = new ArrayList<>();
+        for (int round = 0; round < 5; round++) {
+            snapshots.add(tree.snapshot());
+            snapshotContent.add(new HashMap<>(expected));
+            // boxes intersect the window if their lower corner is inside the enlarged window
+            double[] min = randomPoint(R);
+            double[] max = windowMax(min);
+            int n = removeAll(expected, new double[]{min[0] - 0.01, min[1] - 0.01, min[2] - 0.01}, max);
+            assertEquals(n, tree.removeAll(min, max, e -> e.value() % 2 == 0));
+            checkRTree(tree, expected);
+            modifyRTree(tree, expected, R, N / 10);
+            checkRTree(tree, expected);
+            for (int i = 0; i < snapshots.size(); i++) {
+                checkRTree(snapshots.get(i), snapshotContent.get(i));
+            }
+        }
+    }
+
+    private static double[] max(double[] min) {
+        return new double[]{min[0] + 0.01, min[1] + 0.01, min[2] + 0.01};
+    }
+
+    private static void modifyRTree(RTree<Integer> tree, Map<Integer, double[]> expected, Random R, int n) {
+        int nextValue = expected.keySet().stream().max(Integer::compare).orElse(0) + 1;
+        List<Integer> values = new ArrayList<>(expected.keySet());
+        for (int i = 0; i < n; i++) {
+            int action = R.nextInt(3);
+            if (action == 0) {
+                double[] p = randomPoint(R);
+                tree.insert(p, max(p), nextValue);
+                expected.put(nextValue, p);
+                values.add(nextValue++);
+            } else {
+                int pos = R.nextInt(values.size());
+                int v = values.get(pos);
+                double[] p = expected.get(v);
+                if (action == 1) {
+                    assertTrue(tree.remove(p, max(p), v));
+                    expected.remove(v);
+                    values.set(pos, values.get(values.size() - 1));
+                    values.remove(values.size() - 1);
+                } else {
+                    double[] p2 = randomPoint(R);
+                    assertTrue(tree.update(p, max(p), p2, max(p2), v));
+                    expected.put(v, p2);
+                }
+            }
+        }
+    }
+
+    private static void checkRTree(RTree<Integer> tree, Map<Integer, double[]> expected) {
+        assertEquals(expected.size(), tree.size());
+        Map<Integer, double[]> found = new HashMap<>();
+        BoxIterator<Integer> it = tree.iterator();
+        while (it.hasNext()) {
+            BoxEntry<Integer> e = it.next();
+            assertNull(found.put(e.value(), e.min()));
+        }
+        assertEquals(expected.size(), found.size());
+        expected.forEach((v, p) -> {
+            assertArrayEquals(p, found.get(v), 0.0);
+            assertTrue(tree.contains(p, max(p), v));
+        });
+        double[] center = {0.5, 0.5, 0.5};
+        BoxIteratorKnn<Integer> itKnn = tree.queryKnn(center, 10);
+        int n = 0;
+        while (itKnn.hasNext()) {
+            BoxEntryKnn<Integer> e = itKnn.next();
+            assertArrayEquals(expected.get(e.value()), e.min(), 0.0);
+            n++;
+        }
+        assertEquals(10, n);
+        // getStats() verifies the MBBs and node counts
+        assertEquals(expected.size(), tree.getStats().getEntryCount());
+    }
+
+    @Test
+    public void testReadOnly() {
+        QuadTreeKD2<Integer> qt = QuadTreeKD2.create(DIMS);
+        qt.insert(new double[]{1, 2, 3}, 1);
+        QuadTreeKD2<Integer> qtSnapshot = qt.snapshot();
+        assertTrue(qtSnapshot.isReadOnly());
+        assertFalse(qt.isReadOnly());
+        assertThrows(UnsupportedOperationException.class, () -> qtSnapshot.insert(new double[]{1, 2, 3}, 2));
+        assertThrows(UnsupportedOperationException.class, () -> qtSnapshot.remove(new double[]{1, 2, 3}));
+        assertThrows(UnsupportedOperationException.class, qtSnapshot::clear);
+        qt.clear();
+        assertEquals(1, qtSnapshot.size());
+        assertEquals(1, (int) qtSnapshot.queryExact(new double[]{1, 2, 3}));
+
+        RTree<Integer> rt = RTree.createRStar(DIMS);
+        rt.insert(new double[]{1, 2, 3}, 1);
+        RTree<Integer> rtSnapshot = rt.snapshot();
+        assertTrue(rtSnapshot.isReadOnly());
+        assertThrows(UnsupportedOperationException.class, () -> rtSnapshot.insert(new double[]{1, 2, 3}, 2));
+        assertThrows(UnsupportedOperationException.class, () -> rtSnapshot.remove(new double[]{1, 2, 3}));
+        assertThrows(UnsupportedOperationException.class, rtSnapshot::clear);
+        rt.clear();
+        assertEquals(1, rtSnapshot.size());
+        assertEquals(1, (int) rtSnapshot.queryExact(new double[]{1, 2, 3}, new double[]{1, 2, 3}));
+    }
+
+    @Test
+    public void testConcurrentQueries() throws Exception {
+        Random R = new Random(0);
+        Map<Integer, double[]> expected = createPoints(R, N);
+        QuadTreeKD2<Integer> qt = QuadTreeKD2.create(DIMS);
+        RTree<Integer> rt = RTree.createRStar(DIMS);
+        expected.forEach((v, p) -> {
+            qt.insert(p, v);
+            rt.insert(p, max(p), v);
+        });
+        QuadTreeKD2<Integer> qtSnapshot = qt.snapshot();
+        RTree<Integer> rtSnapshot = rt.snapshot();
+        Map<Integer, double[]> snapshotContent = new HashMap<>(expected);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> readers = executor.submit(() -> {
+                for (int i = 0; i < 5; i++) {
+                    checkQuadtree(qtSnapshot, snapshotContent);
+                    checkRTree(rtSnapshot, snapshotContent);
+                }
+            });
+            Map<Integer, double[]> expectedRt = new HashMap<>(expected);
+            modifyQuadtree(qt, expected, new Random(1), 5 * N);
+            modifyRTree(rt, expectedRt, new Random(1), 5 * N);
+            readers.get();
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2023 Tilmann Zaeschke
+ *
+ * This file is part of TinSpin.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinspin.index.test;
+
+import org.junit.Test;
+import org.tinspin.index.BoxMultimap;
+import org.tinspin.index.IndexConfig;
+import org.tinspin.index.PointMultimap;
+import org.tinspin.index.qthypercube.QuadTreeRKD;
+import org.tinspin.index.rtree.RTree;
+import org.tinspin.index.util.SpatialJoin;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+import static org.tinspin.index.Index.*;
+
+public class SpatialJoinTest {
+
+    private static final int DIMS = 3;
+    private static final double[] EPS = {0, 0.01, 0.05};
+
+    private static double[][] createBoxes(Random R, int n, double maxLen) {
+        double[][] boxes = new double[2 * n][];
+        for (int i = 0; i < n; i++) {
+            double[] min = new double[DIMS];
+            double[] max = new double[DIMS];
+            for (int d = 0; d < DIMS; d++) {
+                min[d] = R.nextDouble();
+                max[d] = min[d] + R.nextDouble() * maxLen;
+            }
+            boxes[2 * i] = min;
+            boxes[2 * i + 1] = max;
+        }
+        return boxes;
+    }
+
+    private static <T> T load(T index, double[][] boxes) {
+        for (int i = 0; i < boxes.length / 2; i++) {
+            if (index instanceof BoxMultimap) {
+                ((BoxMultimap<Integer>) index).insert(boxes[2 * i], boxes[2 * i + 1], i);
+            } else {
+                ((PointMultimap<Integer>) index).insert(boxes[2 * i], i);
+            }
+        }
+        return index;
+    }
+
+    /** Brute force: "a:b" for all pairs with a distance <= maxDist. */
+    private static Set<String> expected(double[][] a, double[][] b, double maxDist) {
+        Set<String> set = new HashSet<>();
+        for (int i = 0; i < a.length / 2; i++) {
+            for (int j = 0; j < b.length / 2; j++) {
+                double distSq = 0;
+                for (int d = 0; d < DIMS; d++) {
+                    double gap = Math.max(a[2 * i][d] - b[2 * j + 1][d], b[2 * j][d] - a[2 * i + 1][d]);
+                    distSq += gap > 0 ? gap * gap : 0;
+                }
+                if (distSq <= maxDist * maxDist) {
+                    set.add(i + ":" + j);
+                }
+            }
+        }
+        return set;
+    }
+
+    private static void check(Set<String> expected, List<String> result) {
+        assertEquals(expected.size(), result.size());
+        assertEquals(expected, new HashSet<>(result));
+    }
+
+    private void checkBoxJoin(BoxMultimap<Integer> a, BoxMultimap<Integer> b, double[][] boxesA, double[][] boxesB) {
+        for (double eps : EPS) {
+            Set<String> expected = expected(boxesA, boxesB, eps);
+            for (boolean parallel : new boolean[]{false, true}) {
+                List<String> result = Collections.synchronizedList(new ArrayList<>());
+                SpatialJoin.join(a, b, eps, (ea, eb) -> result.add(ea.value() + ":" + eb.value()), parallel);
+                check(expected, result);
+            }
+        }
+    }
+
+    private void checkPointJoin(PointMultimap<Integer> a, BoxMultimap<Integer> b, double[][] pointsA, double[][] boxesB) {
+        for (double eps : EPS) {
+            Set<String> expected = expected(pointsA, boxesB, eps);
+            for (boolean parallel : new boolean[]{false, true}) {
+                List<String> result = Collections.synchronizedList(new ArrayList<>());
+                SpatialJoin.join(a, b, eps, (ea, eb) -> result.add(ea.value() + ":" + eb.value()), parallel);
+                check(expected, result);
+            }
+        }
+    }
+
+    @Test
+    public void testRTree() {
+        Random R = new Random(0);
+        double[][] boxesA = createBoxes(R, 3_000, 0.02);
+        double[][] boxesB = createBoxes(R, 2_000, 0.05);
+        RTree<Integer> a = load(RTree.createRStar(DIMS), boxesA);
+        // different node sizes and therefore different depths
+        RTree<Integer> b = load(RTree.create(IndexConfig.create(DIMS)
+                .setRTreeNodeMaxDir(4).setRTreeNodeMinDir(2)
+                .setRTreeNodeMaxData(4).setRTreeNodeMinData(2)), boxesB);
+        assertNotEquals(a.getDepth(), b.getDepth());
+        checkBoxJoin(a, b, boxesA, boxesB);
+        checkBoxJoin(b, a, boxesB, boxesA);
+    }
+
+    @Test
+    public void testQuadtree() {
+        Random R = new Random(1);
+        double[][] boxesA = createBoxes(R, 3_000, 0.02);
+        double[][] boxesB = createBoxes(R, 2_000, 0.05);
+        QuadTreeRKD<Integer> a = load(QuadTreeRKD.create(DIMS), boxesA);
+        QuadTreeRKD<Integer> b = load(QuadTreeRKD.create(DIMS, 3, new double[DIMS], new double[]{2, 2, 2}), boxesB);
+        checkBoxJoin(a, b, boxesA, boxesB);
+        checkBoxJoin(b, a, boxesB, boxesA);
+    }
+
+    @Test
+    public void testMixed() {
+        Random R = new Random(2);
+        double[][] boxesA = createBoxes(R, 1_000, 0.02);
+        double[][] boxesB = createBoxes(R, 1_000, 0.05);
+        BoxMultimap<Integer> a = load(BoxMultimap.Factory.createQuadtree(DIMS), boxesA);
+        BoxMultimap<Integer> b = load(RTree.createRStar(DIMS), boxesB);
+        checkBoxJoin(a, b, boxesA, boxesB);
+        checkBoxJoin(b, a, boxesB, boxesA);
+    }
+
+    @Test
+    public void testPoints() {
+        Random R = new Random(3);
+        double[][] points = createBoxes(R, 3_000, 0);
+        double[][] boxes = createBoxes(R, 1_000, 0.05);
+        BoxMultimap<Integer> b = load(RTree.createRStar(DIMS), boxes);
+        checkPointJoin(load(PointMultimap.Factory.createRStarTree(DIMS), points), b, points, boxes);
+        checkPointJoin(load(PointMultimap.Factory.createKdTree(DIMS), points), b, points, boxes);
+    }
+
+    @Test
+    public void testEmpty() {
+        Random R = new Random(4);
+        double[][] boxes = createBoxes(R, 100, 0.05);
+        double[][] none = new double[0][];
+        checkBoxJoin(RTree.createRStar(DIMS), load(RTree.createRStar(DIMS), boxes), none, boxes);
+        checkBoxJoin(load(RTree.createRStar(DIMS), boxes), RTree.createRStar(DIMS), boxes, none);
+        checkBoxJoin(QuadTreeRKD.create(DIMS), load(QuadTreeRKD.create(DIMS), boxes), none, boxes);
+        checkBoxJoin(load(QuadTreeRKD.create(DIMS), boxes), QuadTreeRKD.create(DIMS), boxes, none);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeDistance() {
+        SpatialJoin.join(RTree.<Integer>createRStar(DIMS), RTree.<Integer>createRStar(DIMS), -1, (a, b) -> {}, false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDimensionMismatch() {
+        SpatialJoin.join(RTree.<Integer>createRStar(DIMS), RTree.<Integer>createRStar(2), 0, (a, b) -> {}, false);
+    }
+}
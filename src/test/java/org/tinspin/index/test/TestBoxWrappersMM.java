@@ -52,6 +52,7 @@ public class TestBoxWrappersMM extends AbstractWrapperTest {
 		l.add(new Object[]{IDX.QUAD_HC});
 		l.add(new Object[]{IDX.RSTAR});
 		l.add(new Object[]{IDX.STR});
+		l.add(new Object[]{IDX.HILBERT});
 		return l;
 	}
 
@@ -31,6 +31,7 @@ public class BoxMapCandidate extends Candidate {
 	private BoxIterator<Integer> query = null;
 	private BoxIteratorKnn<Integer> queryKnn = null;
 	private final boolean bulkloadSTR;
+	private final boolean bulkloadHilbert;
 
 	public static BoxMapCandidate create(TestStats ts) {
 		return new BoxMapCandidate(createIndex(ts), ts);
@@ -45,6 +46,7 @@ public class BoxMapCandidate extends Candidate {
 			case QUAD_HC: return QuadTreeRKD.create(dims);
 			case QUAD_PLAIN: return QuadTreeRKD0.create(dims);
 			case RSTAR:
+			case HILBERT:
 			case STR: return RTree.createRStar(dims);
 			default:
 				throw new UnsupportedOperationException();
@@ -61,13 +63,14 @@ public class BoxMapCandidate extends Candidate {
 		this.dims = ts.cfgNDims;
 		this.idx = (BoxMap<Integer>) ri;
 		this.bulkloadSTR = ts.INDEX.equals(TestInstances.IDX.STR);
+		this.bulkloadHilbert = ts.INDEX.equals(TestInstances.IDX.HILBERT);
 	}
 	
 	@SuppressWarnings("unchecked")
 	@Override
 	public void load(double[] data, int dims) {
 		this.data = data;
-		if (bulkloadSTR) {
+		if (bulkloadSTR || bulkloadHilbert) {
 			RTreeEntry<Integer>[] entries = new RTreeEntry[N];
 			int pos = 0;
 			for (int i = 0; i < N; i++) {
@@ -80,7 +83,11 @@ public class BoxMapCandidate extends Candidate {
 				entries[i] = RTreeEntry.createBox(lo, hi, i);
 			}
 			RTree<Integer> rt = (RTree<Integer>) idx;
-			rt.load(entries);
+			if (bulkloadHilbert) {
+				rt.loadHilbert(entries);
+			} else {
+				rt.load(entries);
+			}
 		} else {
 			int pos = 0;
 			for (int n = 0; n < N; n++) {
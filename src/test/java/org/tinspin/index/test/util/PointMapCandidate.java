@@ -15,6 +15,7 @@ import org.tinspin.index.*;
 import org.tinspin.index.array.PointArray;
 import org.tinspin.index.covertree.CoverTree;
 import org.tinspin.index.kdtree.KDTree;
+import org.tinspin.index.kdtree.KDTreeFlat;
 import org.tinspin.index.phtree.PHTreeP;
 import org.tinspin.index.qthypercube.QuadTreeKD;
 import org.tinspin.index.qthypercube2.QuadTreeKD2;
@@ -35,6 +36,7 @@ public class PointMapCandidate extends Candidate {
 	private PointIterator<Integer> it;
 	private PointIteratorKnn<Integer> itKnn;
 	private final boolean bulkloadSTR;
+	private final boolean bulkloadHilbert;
 	private final IndexHandle index;
 
 	public static PointMapCandidate create(TestStats ts) {
@@ -49,11 +51,13 @@ public class PointMapCandidate extends Candidate {
 			case ARRAY: return new PointArray<>(dims, size);
 			//case CRITBIT: return new PointArray<>(dims, size);
 			case KDTREE: return KDTree.create(dims);
+			case KDTREE_FLAT: return KDTreeFlat.create(dims);
 			case PHTREE: return PHTreeP.create(dims);
 			case QUAD_HC: return QuadTreeKD.create(dims);
 			case QUAD_HC2: return QuadTreeKD2.create(dims);
 			case QUAD_PLAIN: return QuadTreeKD0.create(dims);
 			case RSTAR:
+			case HILBERT:
 			case STR: return PointMapWrapper.create(RTree.createRStar(dims));
 			case COVER: return CoverTree.create(dims);
 			default:
@@ -72,13 +76,14 @@ public class PointMapCandidate extends Candidate {
 		idx = (PointMap<Integer>) pi;
 		this.index = ts.INDEX;
 		this.bulkloadSTR = IDX.STR == this.index;
+		this.bulkloadHilbert = IDX.HILBERT == this.index;
 	}
 	
 	@SuppressWarnings("unchecked")
 	@Override
 	public void load(double[] data, int dims) {
 		this.data = data;
-		if (bulkloadSTR) {
+		if (bulkloadSTR || bulkloadHilbert) {
 			RTreeEntry<Integer>[] entries = new RTreeEntry[N];
 			int pos = 0;
 			for (int i = 0; i < N; i++) {
@@ -88,7 +93,11 @@ public class PointMapCandidate extends Candidate {
 				entries[i] = RTreeEntry.createPoint(buf, i);
 			}
 			PointMapWrapper<Integer> rt = (PointMapWrapper<Integer>) idx;
-			rt.load(entries);
+			if (bulkloadHilbert) {
+				rt.loadHilbert(entries);
+			} else {
+				rt.load(entries);
+			}
 		} else {
 			for (int i = 0; i < N; i++) {
 				double[] buf = new double[dims];
@@ -224,17 +233,17 @@ public class PointMapCandidate extends Candidate {
 
 	@Override
 	public boolean supportsWindowQuery() {
-		return this.index != IDX.COVER;
+		return true;
 	}
 	
 	@Override
 	public boolean supportsUpdate() {
-		return dims <= 16 && this.index != IDX.COVER;
+		return dims <= 16;
 	}
 
 	@Override
 	public boolean supportsUnload() {
-		return dims <= 16 && this.index != IDX.COVER;
+		return dims <= 16;
 	}
 	
 	@Override
@@ -12,6 +12,7 @@ import ch.ethz.globis.tinspin.wrappers.Candidate;
 import org.tinspin.index.*;
 import org.tinspin.index.array.PointArray;
 import org.tinspin.index.kdtree.KDTree;
+import org.tinspin.index.kdtree.KDTreeFlat;
 import org.tinspin.index.phtree.PHTreeMMP;
 import org.tinspin.index.qthypercube.QuadTreeKD;
 import org.tinspin.index.qthypercube2.QuadTreeKD2;
@@ -34,6 +35,7 @@ public class PointMultimapCandidate extends Candidate {
 	private PointIterator<Integer> it;
 	private PointIteratorKnn<Integer> itKnn;
 	private final boolean bulkloadSTR;
+	private final boolean bulkloadHilbert;
 	private final IndexHandle index;
 
 	public static PointMultimapCandidate create(TestStats ts) {
@@ -48,11 +50,13 @@ public class PointMultimapCandidate extends Candidate {
 			case ARRAY: return new PointArray<>(dims, size);
 			//case CRITBIT: return new PointArray<>(dims, size);
 			case KDTREE: return KDTree.create(dims);
+			case KDTREE_FLAT: return KDTreeFlat.create(dims);
 			case PHTREE_MM: return PHTreeMMP.create(dims);
 			case QUAD_HC: return QuadTreeKD.create(dims);
 			case QUAD_HC2: return QuadTreeKD2.create(dims);
 			case QUAD_PLAIN: return QuadTreeKD0.create(dims);
 			case RSTAR:
+			case HILBERT:
 			case STR: return PointMultimapWrapper.create(RTree.createRStar(dims));
 			//case COVER: return CoverTree.create(dims);
 			default:
@@ -71,13 +75,14 @@ public class PointMultimapCandidate extends Candidate {
 		idx = (PointMultimap<Integer>) pi;
 		this.index = ts.INDEX;
 		this.bulkloadSTR = IDX.STR == this.index;
+		this.bulkloadHilbert = IDX.HILBERT == this.index;
 	}
 	
 	@SuppressWarnings("unchecked")
 	@Override
 	public void load(double[] data, int dims) {
 		this.data = data;
-		if (bulkloadSTR) {
+		if (bulkloadSTR || bulkloadHilbert) {
 			RTreeEntry<Integer>[] entries = new RTreeEntry[N];
 			int pos = 0;
 			for (int i = 0; i < N; i++) {
@@ -87,7 +92,11 @@ public class PointMultimapCandidate extends Candidate {
 				entries[i] = RTreeEntry.createPoint(buf, i);
 			}
 			PointMultimapWrapper<Integer> rt = (PointMultimapWrapper<Integer>) idx;
-			rt.load(entries);
+			if (bulkloadHilbert) {
+				rt.loadHilbert(entries);
+			} else {
+				rt.load(entries);
+			}
 		} else {
 			for (int i = 0; i < N; i++) {
 				double[] buf = new double[dims];
@@ -12,7 +12,9 @@ import ch.ethz.globis.tinspin.data.AbstractTest;
 import org.tinspin.index.array.PointArray;
 import org.tinspin.index.array.RectArray;
 import org.tinspin.index.covertree.CoverTree;
+import org.tinspin.index.critbit.CritBitZ;
 import org.tinspin.index.kdtree.KDTree;
+import org.tinspin.index.kdtree.KDTreeFlat;
 import org.tinspin.index.phtree.PHTreeMMP;
 import org.tinspin.index.phtree.PHTreeP;
 import org.tinspin.index.phtree.PHTreeR;
@@ -40,8 +42,12 @@ public class TestInstances {
 		PHTREE_MM(PHTreeMMP.class.getName(), ""),
 		/** CoverTree */
 		COVER(CoverTree.class.getName(), ""),
+		/** CritBit64 with z-order keys, 1 to 4 dimensions */
+		CRITBIT_Z(CritBitZ.class.getName(), ""),
 		/** KD-Tree */
 		KDTREE(KDTree.class.getName(), ""),
+		/** KD-Tree with flat array storage */
+		KDTREE_FLAT(KDTreeFlat.class.getName(), ""),
 		/** Quadtree with HC navigation */
 		QUAD_HC(QuadTreeKD.class.getName(), QuadTreeRKD.class.getName()),
 		/** Quadtree with HC navigation v2 */
@@ -52,6 +58,8 @@ public class TestInstances {
 		RSTAR(RTree.class.getName(), RTree.class.getName()),
 		/** STR-loaded RStarTree */
 		STR(RTree.class.getName(), RTree.class.getName()),
+		/** Hilbert-loaded RStarTree */
+		HILBERT(RTree.class.getName(), RTree.class.getName()),
 
 		//Other
 		//=====
@@ -49,6 +49,8 @@ public class TestStats implements Serializable, Cloneable {
 		RSTAR,
 		/** STR-loaded RStarTree */
 		STR,
+		/** Hilbert-loaded RStarTree */
+		HILBERT,
 		/** CoverTree */
 		COVER
 	}
@@ -63,6 +65,7 @@ public class TestStats implements Serializable, Cloneable {
 			case QUAD_HC2: return QuadTreeKD2.create(dims);
 			case QUAD_PLAIN: return QuadTreeKD0.create(dims);
 			case RSTAR:
+			case HILBERT:
 			case STR: return PointMapWrapper.create(RTree.createRStar(dims));
 			case COVER: return CoverTree.create(dims);
 			default:
@@ -80,6 +83,7 @@ public class TestStats implements Serializable, Cloneable {
 			case QUAD_HC2: return QuadTreeKD2.create(dims);
 			case QUAD_PLAIN: return QuadTreeKD0.create(dims);
 			case RSTAR:
+			case HILBERT:
 			case STR: return PointMultimapWrapper.create(RTree.createRStar(dims));
 			//case COVER: return CoverTree.create(dims);
 			default:
@@ -95,6 +99,7 @@ public class TestStats implements Serializable, Cloneable {
 		case QUAD_HC: return QuadTreeRKD.create(dims);
 		case QUAD_PLAIN: return QuadTreeRKD0.create(dims);
 		case RSTAR: 
+		case HILBERT:
 		case STR: return RTree.createRStar(dims);
 		default:
 			throw new UnsupportedOperationException();